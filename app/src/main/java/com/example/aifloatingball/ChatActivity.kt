@@ -220,6 +220,8 @@ class ChatActivity : AppCompatActivity(), GroupChatListener {
         
         // 注册群聊监听器
         groupChatManager.addGroupChatListener(this)
+        // 群聊流式回复按消息ID刷新，页面销毁时自动停止
+        groupMessageAdapter.collectReplyUpdates(groupChatManager.replyUpdates, lifecycleScope)
         
         // 设置实时数据更新机制
         setupRealtimeDataUpdate()
@@ -1891,7 +1893,7 @@ class ChatActivity : AppCompatActivity(), GroupChatListener {
                         aiMessage.content += chunk
                         // 流式回复时只进行简单清理，不进行复杂格式化
                         val simpleCleanedContent = simpleCleanText(aiMessage.content)
-                        messageAdapter.updateLastMessage(simpleCleanedContent)
+                        messageAdapter.streamLastMessage(simpleCleanedContent)
                         
                         // 减少滚动频率，只在必要时滚动
                         if (messagesRecyclerView.canScrollVertically(1)) {
@@ -2260,7 +2262,7 @@ class ChatActivity : AppCompatActivity(), GroupChatListener {
                                         aiMessage.content += chunk
                                         // 流式回复时只进行简单清理，不进行复杂格式化
                                         val simpleCleanedContent = simpleCleanText(aiMessage.content)
-                                        messageAdapter.updateLastMessage(simpleCleanedContent)
+                                        messageAdapter.streamLastMessage(simpleCleanedContent)
                                         
                                         // 减少滚动频率，只在必要时滚动
                                         if (messagesRecyclerView.canScrollVertically(1)) {
@@ -2909,7 +2911,7 @@ class ChatActivity : AppCompatActivity(), GroupChatListener {
                                         aiMessage.content += chunk
                                         // 流式回复时只进行简单清理，不进行复杂格式化
                                         val simpleCleanedContent = simpleCleanText(aiMessage.content)
-                                        messageAdapter.updateLastMessage(simpleCleanedContent)
+                                        messageAdapter.streamLastMessage(simpleCleanedContent)
                                         
                                         // 减少滚动频率，只在必要时滚动
                                         if (messagesRecyclerView.canScrollVertically(1)) {
@@ -2,12 +2,34 @@ package com.example.aifloatingball
 
 import android.app.Application
 import androidx.appcompat.app.AppCompatDelegate
+import com.example.aifloatingball.manager.GroupChatManager
+import com.example.aifloatingball.manager.IconService
+import com.example.aifloatingball.service.ClipboardWatcher
+import com.example.aifloatingball.voice.VoskModelRegistry
 
 class MainApplication : Application() {
     override fun onCreate() {
         super.onCreate()
         val settingsManager = SettingsManager.getInstance(this)
         applyTheme(settingsManager.getThemeMode())
+        // 提前创建，拿不到 Context 的图标加载器（如 FaviconLoader）直接使用这个实例
+        IconService.getInstance(this)
+    }
+
+    override fun onTrimMemory(level: Int) {
+        super.onTrimMemory(level)
+        // 空闲的语音模型占用几百MB，内存紧张时优先释放
+        VoskModelRegistry.onTrimMemory(level)
+        // 群聊流式回复是延迟写入的，进程可能随后被回收，先把未写入的内容落盘
+        GroupChatManager.onTrimMemory(level)
+        IconService.onTrimMemory(level)
+        // 进入后台后剪贴板回调可能收不到，恢复轮询
+        ClipboardWatcher.onTrimMemory(level)
+    }
+
+    override fun onLowMemory() {
+        super.onLowMemory()
+        VoskModelRegistry.onTrimMemory(TRIM_MEMORY_COMPLETE)
     }
 
     private fun applyTheme(themeMode: Int) {
@@ -17,4 +39,4 @@ class MainApplication : Application() {
             else -> AppCompatDelegate.setDefaultNightMode(AppCompatDelegate.MODE_NIGHT_FOLLOW_SYSTEM)
         }
     }
-}
\ No newline at end of file
+}
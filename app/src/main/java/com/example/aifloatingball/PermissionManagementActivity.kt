@@ -235,6 +235,12 @@ class PermissionManagementActivity : AppCompatActivity() {
                     android.util.Log.w("PermissionManagementFragment", "找不到background_clipboard_test偏好")
                 }
 
+                // AI请求上下文查看
+                findPreference<Preference>("context_inspector")?.setOnPreferenceClickListener {
+                    startContextInspector()
+                    true
+                }
+
                 // 更新权限状态
                 updatePermissionStatus()
                 android.util.Log.d("PermissionManagementFragment", "权限偏好设置完成")
@@ -492,6 +498,16 @@ class PermissionManagementActivity : AppCompatActivity() {
             }
         }
         
+        private fun startContextInspector() {
+            try {
+                val intent = Intent(requireContext(), com.example.aifloatingball.debug.ContextInspectorActivity::class.java)
+                startActivity(intent)
+            } catch (e: Exception) {
+                android.util.Log.e("PermissionManagementFragment", "启动上下文查看失败", e)
+                Toast.makeText(requireContext(), "启动失败: ${e.message}", Toast.LENGTH_SHORT).show()
+            }
+        }
+        
         private fun getAutoStartIntent(context: Context): Intent {
             val manufacturer = Build.MANUFACTURER.lowercase()
             val intent = Intent()
@@ -928,6 +928,16 @@ class SettingsManager private constructor(context: Context) {
         prefs.edit().putString("default_window_count", count.toString()).apply()
         notifyListeners("default_window_count", count)
     }
+
+    // 发送给AI的对话历史的token预算（含当前消息）
+    fun getContextTokenBudget(): Int {
+        return prefs.getInt("context_token_budget", 4000)
+    }
+
+    fun setContextTokenBudget(tokens: Int) {
+        prefs.edit().putInt("context_token_budget", tokens).apply()
+        notifyListeners("context_token_budget", tokens)
+    }
     
     // 获取选择的搜索引擎（旧的方法，使用不同的键）
     fun getSelectedSearchEngines(): Set<String> {
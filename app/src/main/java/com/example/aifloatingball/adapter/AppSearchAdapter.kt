@@ -7,6 +7,7 @@ import android.widget.ImageView
 import android.widget.TextView
 import androidx.recyclerview.widget.RecyclerView
 import com.example.aifloatingball.R
+import com.example.aifloatingball.manager.AppIconCache
 import com.example.aifloatingball.model.AppInfo
 
 class AppSearchAdapter(
@@ -42,12 +43,12 @@ class AppSearchAdapter(
         private val appName: TextView? = if (!isHorizontal) itemView.findViewById(R.id.app_name) else null
 
         fun bind(app: AppInfo, clickListener: (AppInfo) -> Unit) {
-            // 设置图标，如果图标为null则使用默认图标
+            // 设置图标，如果图标为null则按需加载已安装应用的图标
             if (app.icon != null) {
+                appIcon.setTag(R.id.app_icon, null)
                 appIcon.setImageDrawable(app.icon)
             } else {
-                // 使用默认应用图标
-                appIcon.setImageResource(android.R.drawable.sym_def_app_icon)
+                AppIconCache.getInstance(itemView.context).bind(appIcon, app.packageName)
             }
             
             if (!isHorizontal) {
@@ -11,6 +11,7 @@ import com.example.aifloatingball.ChatActivity
 import com.example.aifloatingball.R
 import com.example.aifloatingball.ui.PlatformIconsView
 import com.example.aifloatingball.utils.AdvancedMarkdownRenderer
+import com.example.aifloatingball.utils.StreamingRenderPipeline
 import java.text.SimpleDateFormat
 import java.util.*
 
@@ -27,10 +28,16 @@ class ChatMessageAdapter(
     
     // 高级Markdown渲染器
     private val advancedMarkdownRenderer: AdvancedMarkdownRenderer
+    
+    // 最后一条AI消息流式输出时的渲染管线和最新渲染结果
+    private var streamingPipeline: StreamingRenderPipeline? = null
+    private var streamingText: CharSequence? = null
+    private val frameIntervalNanos = StreamingRenderPipeline.frameIntervalNanos(context)
 
     companion object {
         private const val TYPE_USER_MESSAGE = 1
         private const val TYPE_AI_MESSAGE = 2
+        private const val PAYLOAD_STREAMING_TEXT = "streaming_text"
     }
     
     init {
@@ -66,9 +73,20 @@ class ChatMessageAdapter(
         }
     }
 
+    override fun onBindViewHolder(holder: RecyclerView.ViewHolder, position: Int, payloads: MutableList<Any>) {
+        val text = streamingText
+        if (holder is AIMessageViewHolder && text != null && payloads.contains(PAYLOAD_STREAMING_TEXT)) {
+            // 流式输出只替换正文，不重建平台图标和按钮
+            holder.bindStreamingText(text)
+        } else {
+            super.onBindViewHolder(holder, position, payloads)
+        }
+    }
+
     override fun getItemCount(): Int = messages.size
 
     fun updateMessages(newMessages: List<ChatActivity.ChatMessage>) {
+        finishStreaming()
         messages = newMessages
         notifyDataSetChanged()
     }
@@ -80,7 +98,34 @@ class ChatMessageAdapter(
         notifyItemInserted(messages.size - 1)
     }
 
+    /**
+     * 流式更新最后一条AI消息
+     *
+     * 内容立即写入消息，界面每帧最多刷新一次，且只重新渲染未结束的最后一个块；
+     * 回复结束后调用 [updateLastMessage] 做一次完整渲染。
+     */
+    fun streamLastMessage(content: String) {
+        val lastMessage = messages.lastOrNull() ?: return
+        if (lastMessage.isFromUser) return
+        lastMessage.content = content
+        val pipeline = streamingPipeline ?: StreamingRenderPipeline(
+            renderBlock = { advancedMarkdownRenderer.renderAIResponse(it) },
+            frameIntervalNanos = frameIntervalNanos
+        ) { rendered ->
+            streamingText = rendered
+            if (messages.isNotEmpty()) notifyItemChanged(messages.size - 1, PAYLOAD_STREAMING_TEXT)
+        }.also { streamingPipeline = it }
+        pipeline.update(content)
+    }
+
+    private fun finishStreaming() {
+        streamingPipeline?.finish()
+        streamingPipeline = null
+        streamingText = null
+    }
+
     fun updateLastMessage(content: String) {
+        finishStreaming()
         if (messages.isNotEmpty()) {
             val lastMessage = messages.last()
             if (!lastMessage.isFromUser) {
@@ -147,6 +192,10 @@ class ChatMessageAdapter(
         private val ttsSpeakButton: android.widget.ImageButton = itemView.findViewById(R.id.btn_tts_speak)
         private val platformIconsContainer: LinearLayout = itemView.findViewById(R.id.platform_icons_container)
 
+        fun bindStreamingText(text: CharSequence) {
+            messageText.text = text
+        }
+
         fun bind(message: ChatActivity.ChatMessage, position: Int) {
             // 处理消息内容：移除平台图标标记（如果存在）
             val actualContent = if (message.content.contains("[PLATFORM_ICONS]")) {
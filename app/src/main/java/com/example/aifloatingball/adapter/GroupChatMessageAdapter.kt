@@ -13,11 +13,13 @@ import android.widget.TextView
 import androidx.recyclerview.widget.LinearLayoutManager
 import androidx.recyclerview.widget.RecyclerView
 import com.example.aifloatingball.R
+import com.example.aifloatingball.manager.GroupReplyUpdate
 import com.example.aifloatingball.model.GroupChatMessage
 import com.example.aifloatingball.model.GroupMessageType
 import com.example.aifloatingball.utils.FaviconLoader
 import com.example.aifloatingball.utils.SimpleMarkdownRenderer
 import com.example.aifloatingball.utils.AdvancedMarkdownRenderer
+import com.example.aifloatingball.utils.StreamingRenderPipeline
 import com.google.android.material.card.MaterialCardView
 import java.text.SimpleDateFormat
 import java.util.*
@@ -28,6 +30,11 @@ import android.content.ClipboardManager
 import android.content.Intent
 import android.widget.Toast
 import android.app.AlertDialog
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.launch
 
 /**
  * 群聊消息适配器
@@ -42,6 +49,7 @@ class GroupChatMessageAdapter(
         private const val TYPE_USER_MESSAGE = 1
         private const val TYPE_GROUP_AI_REPLIES = 2
         private const val TYPE_SINGLE_AI_MESSAGE = 3
+        private const val PAYLOAD_STREAMING_TEXT = "streaming_text"
     }
 
     private val timeFormat = SimpleDateFormat("HH:mm", Locale.getDefault())
@@ -50,6 +58,11 @@ class GroupChatMessageAdapter(
     // Markdown渲染器
     private val markdownRenderer = SimpleMarkdownRenderer.getInstance(context)
     private val advancedMarkdownRenderer = AdvancedMarkdownRenderer.getInstance(context)
+    
+    // 多个AI同时流式回复时，每条消息一个渲染管线
+    private val streamingPipelines = mutableMapOf<String, StreamingRenderPipeline>()
+    private val streamingTexts = mutableMapOf<String, CharSequence>()
+    private val frameIntervalNanos = StreamingRenderPipeline.frameIntervalNanos(context)
 
     /**
      * 消息操作监听器
@@ -109,6 +122,16 @@ class GroupChatMessageAdapter(
         }
     }
 
+    override fun onBindViewHolder(holder: RecyclerView.ViewHolder, position: Int, payloads: MutableList<Any>) {
+        val text = streamingTexts[messages[position].id]
+        if (holder is SingleAIMessageViewHolder && text != null && payloads.contains(PAYLOAD_STREAMING_TEXT)) {
+            // 流式输出只替换正文
+            holder.bindStreamingText(text)
+        } else {
+            super.onBindViewHolder(holder, position, payloads)
+        }
+    }
+
     override fun getItemCount(): Int = messages.size
 
     /**
@@ -129,10 +152,67 @@ class GroupChatMessageAdapter(
         }
     }
 
+    /**
+     * 按消息ID更新内容，不在当前列表中（例如尚未分页加载）的消息会被忽略
+     */
+    fun updateMessageContent(messageId: String, content: String) {
+        val position = messages.indexOfFirst { it.id == messageId }
+        if (position >= 0 && messages[position].content != content) {
+            messages[position] = messages[position].copy(content = content)
+            notifyItemChanged(position)
+        }
+    }
+
+    /**
+     * 在主线程收集群聊的流式回复，[scope] 结束时自动停止
+     */
+    fun collectReplyUpdates(updates: Flow<GroupReplyUpdate>, scope: CoroutineScope): Job {
+        return scope.launch(Dispatchers.Main) {
+            try {
+                updates.collect { update ->
+                    if (update.isComplete) {
+                        finishStreaming(update.messageId)
+                        updateMessageContent(update.messageId, update.content)
+                    } else {
+                        streamMessageContent(update.messageId, update.content)
+                    }
+                }
+            } finally {
+                streamingPipelines.keys.toList().forEach { finishStreaming(it) }
+            }
+        }
+    }
+
+    /**
+     * 流式更新某条消息，界面每帧最多刷新一次，且只重新渲染未结束的最后一个块
+     */
+    private fun streamMessageContent(messageId: String, content: String) {
+        val position = messages.indexOfFirst { it.id == messageId }
+        if (position < 0) return
+        messages[position] = messages[position].copy(content = content)
+        val pipeline = streamingPipelines.getOrPut(messageId) {
+            StreamingRenderPipeline(
+                renderBlock = { advancedMarkdownRenderer.renderAIResponse(it) },
+                frameIntervalNanos = frameIntervalNanos
+            ) { rendered ->
+                streamingTexts[messageId] = rendered
+                val index = messages.indexOfFirst { it.id == messageId }
+                if (index >= 0) notifyItemChanged(index, PAYLOAD_STREAMING_TEXT)
+            }
+        }
+        pipeline.update(content)
+    }
+
+    private fun finishStreaming(messageId: String) {
+        streamingPipelines.remove(messageId)?.finish()
+        streamingTexts.remove(messageId)
+    }
+
     /**
      * 更新消息列表
      */
     fun updateMessages(newMessages: List<GroupChatMessage>) {
+        streamingPipelines.keys.toList().forEach { finishStreaming(it) }
         messages.clear()
         messages.addAll(newMessages)
         notifyDataSetChanged()
@@ -505,6 +585,11 @@ class GroupChatMessageAdapter(
         private val regenerateButton: ImageButton = itemView.findViewById(R.id.btn_regenerate)
         private val ttsSpeakButton: ImageButton = itemView.findViewById(R.id.btn_tts_speak)
 
+        fun bindStreamingText(text: CharSequence) {
+            aiText.text = text
+            aiText.setTextColor(context.getColor(android.R.color.black))
+        }
+
         fun bind(message: GroupChatMessage) {
             // 显示单个AI消息容器，隐藏其他容器
             userContainer.visibility = View.GONE
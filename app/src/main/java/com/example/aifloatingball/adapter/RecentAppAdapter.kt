@@ -7,6 +7,7 @@ import android.widget.ImageView
 import android.widget.TextView
 import androidx.recyclerview.widget.RecyclerView
 import com.example.aifloatingball.R
+import com.example.aifloatingball.manager.AppIconCache
 import com.example.aifloatingball.model.AppInfo
 
 class RecentAppAdapter(
@@ -30,12 +31,12 @@ class RecentAppAdapter(
     override fun onBindViewHolder(holder: RecentAppViewHolder, position: Int) {
         val app = apps[position]
         
-        // 设置图标，如果图标为null则使用默认图标
+        // 设置图标，如果图标为null则按需加载已安装应用的图标
         if (app.icon != null) {
+            holder.appIcon.setTag(R.id.app_icon, null)
             holder.appIcon.setImageDrawable(app.icon)
         } else {
-            // 使用默认应用图标
-            holder.appIcon.setImageResource(android.R.drawable.sym_def_app_icon)
+            AppIconCache.getInstance(holder.itemView.context).bind(holder.appIcon, app.packageName)
         }
         
         holder.appName.text = app.label
@@ -0,0 +1,218 @@
+package com.example.aifloatingball.adblock
+
+import java.io.BufferedReader
+
+/**
+ * Adblock Plus / EasyList 网络过滤规则解析器
+ *
+ * 支持的语法：`||域名^`、`|` 开头/结尾锚点、`*` 通配符、`^` 分隔符、`@@` 例外规则，
+ * 以及 `$third-party`、资源类型（`script`、`image` 等）和 `domain=` 选项。
+ * 元素隐藏规则（`##`、`#@#`）原样收集，交给 [CosmeticFilterIndex]；正则规则和含不支持选项的规则会被跳过。
+ */
+object AbpFilterParser {
+
+    // 资源类型位掩码
+    const val TYPE_SCRIPT = 1
+    const val TYPE_IMAGE = 1 shl 1
+    const val TYPE_STYLESHEET = 1 shl 2
+    const val TYPE_XMLHTTPREQUEST = 1 shl 3
+    const val TYPE_SUBDOCUMENT = 1 shl 4
+    const val TYPE_MEDIA = 1 shl 5
+    const val TYPE_FONT = 1 shl 6
+    const val TYPE_OBJECT = 1 shl 7
+    const val TYPE_PING = 1 shl 8
+    const val TYPE_WEBSOCKET = 1 shl 9
+    const val TYPE_OTHER = 1 shl 10
+    const val TYPE_DOCUMENT = 1 shl 11
+
+    // 未指定类型的规则对除页面本身以外的所有请求生效
+    const val TYPE_DEFAULT = (1 shl 11) - 1
+
+    const val PARTY_ANY = 0
+    const val PARTY_THIRD = 1
+    const val PARTY_FIRST = 2
+
+    private val TYPE_OPTIONS = mapOf(
+        "script" to TYPE_SCRIPT,
+        "image" to TYPE_IMAGE,
+        "stylesheet" to TYPE_STYLESHEET,
+        "xmlhttprequest" to TYPE_XMLHTTPREQUEST,
+        "subdocument" to TYPE_SUBDOCUMENT,
+        "media" to TYPE_MEDIA,
+        "font" to TYPE_FONT,
+        "object" to TYPE_OBJECT,
+        "ping" to TYPE_PING,
+        "websocket" to TYPE_WEBSOCKET,
+        "other" to TYPE_OTHER,
+        "document" to TYPE_DOCUMENT
+    )
+
+    // 不影响网络请求匹配结果、可以直接忽略的选项
+    private val IGNORED_OPTIONS = setOf("match-case", "~match-case", "collapse", "~collapse", "important")
+
+    /**
+     * 一条网络过滤规则
+     *
+     * @param pattern 去掉锚点和选项后的匹配模式（小写），可含 `*` 和 `^`
+     * @param exception 是否为 `@@` 例外规则
+     * @param hostAnchored 是否以 `||` 开头（从主机名的某一级域名开始匹配）
+     * @param startAnchored 是否以 `|` 开头（从URL开头匹配）
+     * @param endAnchored 是否以 `|` 结尾（匹配到URL结尾）
+     * @param typeMask 适用的资源类型
+     * @param party 第三方限制，见 [PARTY_ANY] 等
+     * @param includeDomains `domain=` 中指定的页面域名
+     * @param excludeDomains `domain=` 中以 `~` 排除的页面域名
+     */
+    data class NetworkFilter(
+        val pattern: String,
+        val exception: Boolean,
+        val hostAnchored: Boolean,
+        val startAnchored: Boolean,
+        val endAnchored: Boolean,
+        val typeMask: Int = TYPE_DEFAULT,
+        val party: Int = PARTY_ANY,
+        val includeDomains: List<String> = emptyList(),
+        val excludeDomains: List<String> = emptyList()
+    )
+
+    /**
+     * 解析结果
+     *
+     * @param filters 成功解析的网络规则
+     * @param cosmeticRules 元素隐藏规则原文
+     * @param skipped 被跳过的非注释行数（正则、不支持的选项和扩展语法等）
+     */
+    data class ParseResult(val filters: List<NetworkFilter>, val cosmeticRules: List<String>, val skipped: Int)
+
+    fun parse(reader: BufferedReader): ParseResult {
+        val filters = mutableListOf<NetworkFilter>()
+        val cosmeticRules = mutableListOf<String>()
+        var skipped = 0
+        reader.useLines { lines ->
+            lines.forEach { raw ->
+                val line = raw.trim()
+                if (line.isEmpty() || line.startsWith("!") || line.startsWith("[")) return@forEach
+                if (CosmeticFilterIndex.isCosmeticRule(line)) {
+                    cosmeticRules.add(line)
+                    return@forEach
+                }
+                val filter = parseLine(line)
+                if (filter != null) filters.add(filter) else skipped++
+            }
+        }
+        return ParseResult(filters, cosmeticRules, skipped)
+    }
+
+    /**
+     * 解析单行规则，不是受支持的网络规则时返回 null
+     */
+    fun parseLine(line: String): NetworkFilter? {
+        var text = line.trim()
+        if (text.isEmpty() || text.startsWith("!") || text.startsWith("[")) return null
+        // 元素隐藏及其扩展语法
+        if (text.contains("##") || text.contains("#@#") || text.contains("#?#") || text.contains("#$#")) return null
+
+        val exception = text.startsWith("@@")
+        if (exception) text = text.substring(2)
+
+        var typeMask = TYPE_DEFAULT
+        var party = PARTY_ANY
+        val includeDomains = mutableListOf<String>()
+        val excludeDomains = mutableListOf<String>()
+
+        val optionsStart = text.lastIndexOf('$')
+        // 正则规则
+        val body = if (optionsStart >= 0) text.substring(0, optionsStart) else text
+        if (body.length > 1 && body.startsWith("/") && body.endsWith("/")) return null
+
+        if (optionsStart >= 0) {
+            var positiveTypes = 0
+            var negativeTypes = 0
+            text.substring(optionsStart + 1).lowercase().split(',').forEach { rawOption ->
+                val option = rawOption.trim()
+                when {
+                    option.isEmpty() || option in IGNORED_OPTIONS -> Unit
+                    option == "third-party" || option == "3p" -> party = PARTY_THIRD
+                    option == "~third-party" || option == "1p" || option == "first-party" -> party = PARTY_FIRST
+                    option.startsWith("domain=") -> option.removePrefix("domain=").split('|').forEach { domain ->
+                        if (domain.startsWith("~")) excludeDomains.add(domain.substring(1))
+                        else if (domain.isNotEmpty()) includeDomains.add(domain)
+                    }
+                    option.startsWith("~") && TYPE_OPTIONS.containsKey(option.substring(1)) ->
+                        negativeTypes = negativeTypes or TYPE_OPTIONS.getValue(option.substring(1))
+                    TYPE_OPTIONS.containsKey(option) -> positiveTypes = positiveTypes or TYPE_OPTIONS.getValue(option)
+                    // 不认识的选项可能会改变规则含义，宁可不用这条规则
+                    else -> return null
+                }
+            }
+            if (positiveTypes != 0) typeMask = positiveTypes
+            typeMask = typeMask and negativeTypes.inv()
+            if (typeMask == 0) return null
+            text = text.substring(0, optionsStart)
+        }
+
+        var hostAnchored = false
+        var startAnchored = false
+        var endAnchored = false
+        if (text.startsWith("||")) {
+            hostAnchored = true
+            text = text.substring(2)
+        } else if (text.startsWith("|")) {
+            startAnchored = true
+            text = text.substring(1)
+        }
+        if (text.endsWith("|")) {
+            endAnchored = true
+            text = text.dropLast(1)
+        }
+
+        // 开头或结尾是通配符时锚点没有意义
+        if (text.startsWith("*")) {
+            hostAnchored = false
+            startAnchored = false
+        }
+        if (text.endsWith("*")) endAnchored = false
+
+        val pattern = text.lowercase()
+        // 空模式或只有通配符的规则会匹配所有请求
+        if (pattern.all { it == '*' }) return null
+
+        return NetworkFilter(
+            pattern = pattern,
+            exception = exception,
+            hostAnchored = hostAnchored,
+            startAnchored = startAnchored,
+            endAnchored = endAnchored,
+            typeMask = typeMask,
+            party = party,
+            includeDomains = includeDomains.map { it.lowercase() },
+            excludeDomains = excludeDomains.map { it.lowercase() }
+        )
+    }
+
+    /**
+     * 根据URL后缀和 Accept 请求头推断资源类型
+     *
+     * @param isMainFrame 是否为顶层页面导航，是时返回 [TYPE_DOCUMENT]，只有 `$document` 规则会作用于它
+     */
+    fun inferResourceType(url: String, accept: String? = null, isMainFrame: Boolean = false): Int {
+        if (isMainFrame) return TYPE_DOCUMENT
+        val path = url.substringBefore('?').substringBefore('#').lowercase()
+        val extension = path.substringAfterLast('/').substringAfterLast('.', "")
+        return when (extension) {
+            "js", "mjs" -> TYPE_SCRIPT
+            "css" -> TYPE_STYLESHEET
+            "png", "jpg", "jpeg", "gif", "webp", "svg", "ico", "bmp", "avif" -> TYPE_IMAGE
+            "woff", "woff2", "ttf", "otf", "eot" -> TYPE_FONT
+            "mp4", "webm", "mp3", "m4a", "ogg", "m3u8", "ts" -> TYPE_MEDIA
+            "html", "htm" -> TYPE_SUBDOCUMENT
+            else -> when {
+                accept == null -> TYPE_OTHER
+                accept.startsWith("image/") -> TYPE_IMAGE
+                accept.startsWith("text/css") -> TYPE_STYLESHEET
+                accept.startsWith("text/html") -> TYPE_SUBDOCUMENT
+                else -> TYPE_OTHER
+            }
+        }
+    }
+}
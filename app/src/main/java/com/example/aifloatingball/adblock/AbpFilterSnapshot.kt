@@ -0,0 +1,441 @@
+package com.example.aifloatingball.adblock
+
+import java.io.BufferedOutputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+
+/**
+ * 预编译的过滤规则快照
+ *
+ * 导入规则列表时，把解析后的规则和按关键词建立的哈希索引写成二进制文件；
+ * 启动时只需把文件映射到内存并读取文件头，规则在第一次成为候选时才解码。
+ *
+ * 匹配时把URL切分成由字母数字组成的关键词，只检查索引中包含这些关键词的规则；
+ * `||域名^` 形式的规则按请求主机名的各级后缀查找。
+ *
+ * 文件结构（大端序）：
+ * ```
+ * 文件头   MAGIC, VERSION, 规则数, 拦截表槽数, 例外表槽数,
+ *          规则偏移表位置, 拦截表位置, 例外表位置
+ * 规则区   每条规则: flags, typeMask, 模式, 包含域名列表, 排除域名列表
+ * 偏移表   int[规则数]
+ * 哈希表   每个槽: key, 规则ID起始下标, 数量（key 为 0 表示空槽）
+ * ID区     int[]
+ * ```
+ */
+class AbpFilterSnapshot private constructor(private val buffer: ByteBuffer) {
+
+    /**
+     * 对一个请求的判定结果
+     */
+    enum class Result {
+        NO_MATCH,
+        BLOCK,
+        EXCEPTION
+    }
+
+    companion object {
+        private const val MAGIC = 0x41425053 // "ABPS"
+        private const val VERSION = 1
+        private const val HEADER_SIZE = 8 * 4
+        private const val SLOT_SIZE = 12
+
+        private const val FLAG_HOST_ANCHORED = 1
+        private const val FLAG_START_ANCHORED = 2
+        private const val FLAG_END_ANCHORED = 4
+        private const val PARTY_SHIFT = 3
+
+        // 无法提取关键词的规则统一放在这个键下，每个请求都要检查
+        private const val GENERIC_KEY = 1
+        private const val MIN_TOKEN_LENGTH = 2
+
+        /**
+         * 把解析后的规则编译成快照文件（先写临时文件再替换）
+         *
+         * @return 写入的规则数
+         */
+        @Throws(IOException::class)
+        fun compile(filters: List<AbpFilterParser.NetworkFilter>, output: File): Int {
+            val blockIndex = HashMap<Int, MutableList<Int>>()
+            val exceptionIndex = HashMap<Int, MutableList<Int>>()
+            filters.forEachIndexed { id, filter ->
+                val index = if (filter.exception) exceptionIndex else blockIndex
+                index.getOrPut(indexKeyOf(filter)) { mutableListOf() }.add(id)
+            }
+
+            val records = java.io.ByteArrayOutputStream(filters.size * 32)
+            val recordData = DataOutputStream(records)
+            val offsets = IntArray(filters.size)
+            filters.forEachIndexed { id, filter ->
+                offsets[id] = recordData.size()
+                var flags = filter.party shl PARTY_SHIFT
+                if (filter.hostAnchored) flags = flags or FLAG_HOST_ANCHORED
+                if (filter.startAnchored) flags = flags or FLAG_START_ANCHORED
+                if (filter.endAnchored) flags = flags or FLAG_END_ANCHORED
+                recordData.writeByte(flags)
+                recordData.writeInt(filter.typeMask)
+                writeString(recordData, filter.pattern)
+                recordData.writeShort(filter.includeDomains.size)
+                filter.includeDomains.forEach { writeString(recordData, it) }
+                recordData.writeShort(filter.excludeDomains.size)
+                filter.excludeDomains.forEach { writeString(recordData, it) }
+            }
+            recordData.flush()
+
+            val blockSlots = tableSize(blockIndex.size)
+            val exceptionSlots = tableSize(exceptionIndex.size)
+            val recordsStart = HEADER_SIZE
+            val offsetsStart = recordsStart + records.size()
+            val blockTableStart = offsetsStart + filters.size * 4
+            val exceptionTableStart = blockTableStart + blockSlots * SLOT_SIZE
+            val idsStart = exceptionTableStart + exceptionSlots * SLOT_SIZE
+
+            val tempFile = File(output.parentFile, output.name + ".tmp")
+            output.parentFile?.mkdirs()
+            FileOutputStream(tempFile).use { stream ->
+                val data = DataOutputStream(BufferedOutputStream(stream, 64 * 1024))
+                data.writeInt(MAGIC)
+                data.writeInt(VERSION)
+                data.writeInt(filters.size)
+                data.writeInt(blockSlots)
+                data.writeInt(exceptionSlots)
+                data.writeInt(offsetsStart)
+                data.writeInt(blockTableStart)
+                data.writeInt(exceptionTableStart)
+                records.writeTo(data)
+                offsets.forEach { data.writeInt(recordsStart + it) }
+
+                val ids = mutableListOf<Int>()
+                writeTable(data, blockIndex, blockSlots, idsStart, ids)
+                writeTable(data, exceptionIndex, exceptionSlots, idsStart, ids)
+                ids.forEach { data.writeInt(it) }
+                data.flush()
+                stream.fd.sync()
+            }
+            if (!tempFile.renameTo(output)) {
+                output.delete()
+                if (!tempFile.renameTo(output)) throw IOException("无法替换规则快照: ${output.path}")
+            }
+            return filters.size
+        }
+
+        /**
+         * 映射快照文件，文件不存在或格式不符时返回 null
+         */
+        fun open(file: File): AbpFilterSnapshot? {
+            if (!file.exists() || file.length() < HEADER_SIZE) return null
+            return try {
+                val buffer = RandomAccessFile(file, "r").use { raf ->
+                    raf.channel.map(FileChannel.MapMode.READ_ONLY, 0, raf.length())
+                }
+                if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) null else AbpFilterSnapshot(buffer)
+            } catch (e: IOException) {
+                null
+            }
+        }
+
+        private fun writeString(data: DataOutputStream, value: String) {
+            val bytes = value.toByteArray(Charsets.UTF_8)
+            data.writeShort(bytes.size)
+            data.write(bytes)
+        }
+
+        private fun tableSize(keys: Int): Int {
+            var size = 16
+            while (size < keys * 2) size = size shl 1
+            return size
+        }
+
+        private fun writeTable(
+            data: DataOutputStream,
+            index: Map<Int, List<Int>>,
+            slots: Int,
+            idsStart: Int,
+            ids: MutableList<Int>
+        ) {
+            val keys = IntArray(slots)
+            val starts = IntArray(slots)
+            val counts = IntArray(slots)
+            index.forEach { (key, ruleIds) ->
+                var slot = key and (slots - 1)
+                while (keys[slot] != 0) slot = (slot + 1) and (slots - 1)
+                keys[slot] = key
+                starts[slot] = idsStart + ids.size * 4
+                counts[slot] = ruleIds.size
+                ids.addAll(ruleIds)
+            }
+            for (slot in 0 until slots) {
+                data.writeInt(keys[slot])
+                data.writeInt(starts[slot])
+                data.writeInt(counts[slot])
+            }
+        }
+
+        /**
+         * 规则在索引中的键：完整域名规则取域名哈希，否则取最长的完整关键词哈希
+         */
+        internal fun indexKeyOf(filter: AbpFilterParser.NetworkFilter): Int {
+            val pattern = filter.pattern
+            if (filter.hostAnchored) {
+                val hostEnd = pattern.indexOfFirst { it == '^' || it == '/' || it == '*' || it == '|' }
+                    .let { if (it < 0) pattern.length else it }
+                val domainComplete = hostEnd == pattern.length && filter.endAnchored ||
+                    hostEnd < pattern.length && (pattern[hostEnd] == '^' || pattern[hostEnd] == '/')
+                if (domainComplete && hostEnd > 0) return domainKey(pattern, 0, hostEnd)
+            }
+
+            var bestStart = -1
+            var bestEnd = -1
+            var i = 0
+            while (i < pattern.length) {
+                if (!isTokenChar(pattern[i])) {
+                    i++
+                    continue
+                }
+                val start = i
+                while (i < pattern.length && isTokenChar(pattern[i])) i++
+                // 关键词两侧都必须是确定的边界，URL中切出的关键词才会与之完全相同
+                val leftBounded = if (start == 0) filter.startAnchored || filter.hostAnchored else pattern[start - 1] != '*'
+                val rightBounded = if (i == pattern.length) filter.endAnchored else pattern[i] != '*'
+                if (leftBounded && rightBounded && i - start >= MIN_TOKEN_LENGTH && i - start > bestEnd - bestStart) {
+                    bestStart = start
+                    bestEnd = i
+                }
+            }
+            return if (bestStart < 0) GENERIC_KEY else tokenKey(pattern, bestStart, bestEnd)
+        }
+
+        internal fun isTokenChar(c: Char): Boolean = c in 'a'..'z' || c in '0'..'9' || c == '%'
+
+        private fun tokenKey(text: String, start: Int, end: Int): Int = hash(text, start, end, -0x7ee3623b)
+
+        private fun domainKey(text: String, start: Int, end: Int): Int = hash(text, start, end, 0x2f1a5b3d)
+
+        // FNV-1a，0 和 GENERIC_KEY 保留
+        private fun hash(text: String, start: Int, end: Int, seed: Int): Int {
+            var h = seed
+            for (i in start until end) {
+                h = (h xor text[i].code) * 0x01000193
+            }
+            return if (h == 0 || h == GENERIC_KEY) h + 2 else h
+        }
+
+        private fun isSeparator(c: Char): Boolean =
+            !(c.isLetterOrDigit() || c == '_' || c == '-' || c == '.' || c == '%')
+    }
+
+    /**
+     * 解码后的规则，模式按 `*` 预先切分
+     */
+    private class Rule(
+        val flags: Int,
+        val typeMask: Int,
+        val segments: List<String>,
+        val includeDomains: List<String>,
+        val excludeDomains: List<String>
+    ) {
+        val hostAnchored get() = flags and FLAG_HOST_ANCHORED != 0
+        val startAnchored get() = flags and FLAG_START_ANCHORED != 0
+        val endAnchored get() = flags and FLAG_END_ANCHORED != 0
+        val party get() = flags ushr PARTY_SHIFT
+    }
+
+    val ruleCount: Int = buffer.getInt(8)
+    private val blockSlots = buffer.getInt(12)
+    private val exceptionSlots = buffer.getInt(16)
+    private val offsetsStart = buffer.getInt(20)
+    private val blockTableStart = buffer.getInt(24)
+    private val exceptionTableStart = buffer.getInt(28)
+
+    // 已解码的规则；多个线程同时解码同一条规则只会多做一次，结果相同
+    private val decoded = arrayOfNulls<Rule>(ruleCount)
+
+    /**
+     * 判定一个请求
+     *
+     * @param lowerUrl 已转为小写的请求URL
+     * @param documentHost 发起请求的页面主机名，未知时为 null（此时按第一方请求处理）
+     * @param resourceType 资源类型，见 [AbpFilterParser.TYPE_SCRIPT] 等
+     */
+    fun match(lowerUrl: String, documentHost: String?, resourceType: Int): Result {
+        val host = AdBlockMatcher.hostOf(lowerUrl)
+        val schemeEnd = lowerUrl.indexOf("://")
+        val hostStart = lowerUrl.indexOf(host, if (schemeEnd >= 0) schemeEnd + 3 else 0).coerceAtLeast(0)
+        val request = Request(lowerUrl, host, hostStart, hostStart + host.length, documentHost, resourceType)
+
+        if (!anyMatch(request, blockTableStart, blockSlots)) return Result.NO_MATCH
+        return if (anyMatch(request, exceptionTableStart, exceptionSlots)) Result.EXCEPTION else Result.BLOCK
+    }
+
+    private class Request(
+        val url: String,
+        val host: String,
+        val hostStart: Int,
+        val hostEnd: Int,
+        val documentHost: String?,
+        val type: Int
+    ) {
+        // 只有带 $third-party / ~third-party 的规则才需要查公共后缀
+        val thirdParty: Boolean by lazy(LazyThreadSafetyMode.NONE) {
+            documentHost != null && !PublicSuffix.sameSite(host, documentHost)
+        }
+    }
+
+    private fun anyMatch(request: Request, tableStart: Int, slots: Int): Boolean {
+        if (matchBucket(request, tableStart, slots, GENERIC_KEY)) return true
+
+        // 主机名的每一级后缀
+        val host = request.host
+        var labelStart = 0
+        while (labelStart < host.length) {
+            if (matchBucket(request, tableStart, slots, domainKey(host, labelStart, host.length))) return true
+            val dot = host.indexOf('.', labelStart)
+            if (dot < 0) break
+            labelStart = dot + 1
+        }
+
+        // URL中的每个关键词
+        val url = request.url
+        var i = 0
+        while (i < url.length) {
+            if (!isTokenChar(url[i])) {
+                i++
+                continue
+            }
+            val start = i
+            while (i < url.length && isTokenChar(url[i])) i++
+            if (i - start >= MIN_TOKEN_LENGTH && matchBucket(request, tableStart, slots, tokenKey(url, start, i))) return true
+        }
+        return false
+    }
+
+    private fun matchBucket(request: Request, tableStart: Int, slots: Int, key: Int): Boolean {
+        var slot = key and (slots - 1)
+        while (true) {
+            val position = tableStart + slot * SLOT_SIZE
+            val slotKey = buffer.getInt(position)
+            if (slotKey == 0) return false
+            if (slotKey == key) {
+                val idsStart = buffer.getInt(position + 4)
+                val count = buffer.getInt(position + 8)
+                for (k in 0 until count) {
+                    if (matches(rule(buffer.getInt(idsStart + k * 4)), request)) return true
+                }
+                return false
+            }
+            slot = (slot + 1) and (slots - 1)
+        }
+    }
+
+    private fun rule(id: Int): Rule {
+        decoded[id]?.let { return it }
+        val view = buffer.duplicate()
+        view.position(buffer.getInt(offsetsStart + id * 4))
+        val flags = view.get().toInt() and 0xFF
+        val typeMask = view.getInt()
+        val pattern = readString(view)
+        val includeDomains = List(view.getShort().toInt()) { readString(view) }
+        val excludeDomains = List(view.getShort().toInt()) { readString(view) }
+        val rule = Rule(flags, typeMask, pattern.split('*').filter { it.isNotEmpty() }, includeDomains, excludeDomains)
+        decoded[id] = rule
+        return rule
+    }
+
+    private fun readString(view: ByteBuffer): String {
+        val bytes = ByteArray(view.getShort().toInt() and 0xFFFF)
+        view.get(bytes)
+        return String(bytes, Charsets.UTF_8)
+    }
+
+    private fun matches(rule: Rule, request: Request): Boolean {
+        if (rule.typeMask and request.type == 0) return false
+        when (rule.party) {
+            AbpFilterParser.PARTY_THIRD -> if (!request.thirdParty) return false
+            AbpFilterParser.PARTY_FIRST -> if (request.thirdParty) return false
+        }
+        if (rule.includeDomains.isNotEmpty() || rule.excludeDomains.isNotEmpty()) {
+            val documentHost = request.documentHost ?: request.host
+            if (rule.excludeDomains.any { isSameOrSubdomain(documentHost, it) }) return false
+            if (rule.includeDomains.isNotEmpty() && rule.includeDomains.none { isSameOrSubdomain(documentHost, it) }) return false
+        }
+        return matchesPattern(rule, request)
+    }
+
+    private fun matchesPattern(rule: Rule, request: Request): Boolean {
+        val url = request.url
+        val segments = rule.segments
+        if (segments.isEmpty()) return true
+
+        if (rule.hostAnchored) {
+            // 从主机名开头或任意一级域名的开头开始匹配
+            for (start in request.hostStart until request.hostEnd) {
+                if (start != request.hostStart && url[start - 1] != '.') continue
+                val end = matchSegmentAt(segments[0], url, start)
+                if (end >= 0 && matchRest(rule, url, segments, 1, end)) return true
+            }
+            return false
+        }
+        if (rule.startAnchored) {
+            val end = matchSegmentAt(segments[0], url, 0)
+            return end >= 0 && matchRest(rule, url, segments, 1, end)
+        }
+        return matchRest(rule, url, segments, 0, 0)
+    }
+
+    /**
+     * 从 [from] 开始依次在URL中寻找剩余片段（通配符只由 `*` 切分，取最左匹配即可）
+     */
+    private fun matchRest(rule: Rule, url: String, segments: List<String>, first: Int, from: Int): Boolean {
+        var position = from
+        for (index in first until segments.size) {
+            val segment = segments[index]
+            val last = index == segments.size - 1
+            if (last && rule.endAnchored) {
+                for (start in position..url.length) {
+                    if (matchSegmentAt(segment, url, start) == url.length) return true
+                }
+                return false
+            }
+            var found = -1
+            for (start in position..url.length) {
+                val end = matchSegmentAt(segment, url, start)
+                if (end >= 0) {
+                    found = end
+                    break
+                }
+            }
+            if (found < 0) return false
+            position = found
+        }
+        // 只有第一个片段且要求匹配到结尾
+        return !rule.endAnchored || first < segments.size || position == url.length
+    }
+
+    /**
+     * 片段是否能从 [start] 处开始匹配，返回匹配结束位置，不匹配时返回 -1
+     */
+    private fun matchSegmentAt(segment: String, url: String, start: Int): Int {
+        var position = start
+        for (c in segment) {
+            if (c == '^') {
+                // 分隔符也可以匹配URL结尾
+                if (position == url.length) continue
+                if (!isSeparator(url[position])) return -1
+                position++
+            } else {
+                if (position >= url.length || url[position] != c) return -1
+                position++
+            }
+        }
+        return position
+    }
+
+    private fun isSameOrSubdomain(host: String, domain: String): Boolean {
+        return host == domain || host.endsWith(domain) && host[host.length - domain.length - 1] == '.'
+    }
+}
@@ -2,18 +2,24 @@ package com.example.aifloatingball.adblock
 
 import android.content.Context
 import android.util.Log
-import java.util.regex.Pattern
+import java.io.File
+import java.io.InputStream
 
 /**
  * AdBlock过滤器，用于拦截广告和跟踪器
+ *
+ * 规则在构造和修改时编译成 [AdBlockMatcher]，[shouldBlock] 只对URL扫描一遍。
+ * 另外可以导入 EasyList 等 Adblock Plus 格式的规则列表，导入时预编译成 [AbpFilterSnapshot]，
+ * 之后启动只需映射快照文件。
  */
 class AdBlockFilter(private val context: Context) {
     
     companion object {
         private const val TAG = "AdBlockFilter"
+        private const val FILTER_LIST_FILE_NAME = "adblock_filter_list.bin"
         
         // 常见广告域名模式
-        private val AD_DOMAINS = setOf(
+        internal val AD_DOMAINS = setOf(
             "doubleclick.net",
             "googleadservices.com",
             "googlesyndication.com",
@@ -74,7 +80,7 @@ class AdBlockFilter(private val context: Context) {
         )
         
         // 广告URL路径模式
-        private val AD_PATHS = setOf(
+        internal val AD_PATHS = setOf(
             "/ads/",
             "/ad/",
             "/advertisement/",
@@ -101,7 +107,7 @@ class AdBlockFilter(private val context: Context) {
         )
         
         // 广告文件扩展名
-        private val AD_EXTENSIONS = setOf(
+        internal val AD_EXTENSIONS = setOf(
             ".ads.js",
             ".analytics.js",
             ".tracking.js",
@@ -116,7 +122,7 @@ class AdBlockFilter(private val context: Context) {
         )
         
         // 广告查询参数
-        private val AD_PARAMS = setOf(
+        internal val AD_PARAMS = setOf(
             "utm_source",
             "utm_medium",
             "utm_campaign",
@@ -145,87 +151,136 @@ class AdBlockFilter(private val context: Context) {
     private var isEnabled = true
     private val customBlockList = mutableSetOf<String>()
     private val whiteList = mutableSetOf<String>()
+
+    // 规则变化时整体替换，shouldBlock 读取时不需要加锁
+    @Volatile
+    private var matcher = buildMatcher()
+
+    private val filterListFile = File(context.filesDir, FILTER_LIST_FILE_NAME)
+
+    // 导入的规则列表快照，未导入时为 null
+    @Volatile
+    private var filterList: AbpFilterSnapshot? = AbpFilterSnapshot.open(filterListFile)
     
     /**
      * 检查URL是否应该被拦截
+     *
+     * @param documentUrl 发起请求的页面URL，用于判断 `$third-party` 和 `domain=` 规则，未知时传 null
+     * @param accept 请求的 Accept 头，用于在URL没有后缀时推断资源类型
+     * @param isMainFrame 是否为顶层页面导航，导入的规则列表中只有 `$document` 规则会拦截它
      */
-    fun shouldBlock(url: String): Boolean {
+    fun shouldBlock(url: String, documentUrl: String? = null, accept: String? = null, isMainFrame: Boolean = false): Boolean {
         if (!isEnabled) return false
         
         try {
             val lowerUrl = url.lowercase()
-            
-            // 检查白名单
-            if (isWhitelisted(lowerUrl)) {
-                return false
-            }
-            
-            // 检查自定义拦截列表
-            if (isInCustomBlockList(lowerUrl)) {
-                Log.d(TAG, "Blocked by custom list: $url")
-                return true
-            }
-            
-            // 检查广告域名
-            if (containsAdDomain(lowerUrl)) {
-                Log.d(TAG, "Blocked ad domain: $url")
-                return true
-            }
-            
-            // 检查广告路径
-            if (containsAdPath(lowerUrl)) {
-                Log.d(TAG, "Blocked ad path: $url")
-                return true
-            }
-            
-            // 检查广告文件扩展名
-            if (containsAdExtension(lowerUrl)) {
-                Log.d(TAG, "Blocked ad extension: $url")
-                return true
-            }
-            
-            // 检查广告查询参数
-            if (containsAdParams(lowerUrl)) {
-                Log.d(TAG, "Blocked ad params: $url")
-                return true
+            val verdict = matcher.match(lowerUrl)
+            if (verdict == AdBlockMatcher.Verdict.WHITELISTED) return false
+
+            val listResult = filterList?.match(
+                lowerUrl,
+                documentUrl?.let { AdBlockMatcher.hostOf(it.lowercase()) },
+                AbpFilterParser.inferResourceType(lowerUrl, accept, isMainFrame)
+            )
+            // 规则列表中的 @@ 例外规则同样可以放行内置规则拦截的请求
+            if (listResult == AbpFilterSnapshot.Result.EXCEPTION) return false
+
+            return when (verdict) {
+                AdBlockMatcher.Verdict.ALLOW, AdBlockMatcher.Verdict.WHITELISTED -> {
+                    if (listResult == AbpFilterSnapshot.Result.BLOCK) {
+                        Log.d(TAG, "Blocked by filter list: $url")
+                        true
+                    } else {
+                        false
+                    }
+                }
+                AdBlockMatcher.Verdict.CUSTOM -> {
+                    Log.d(TAG, "Blocked by custom list: $url")
+                    true
+                }
+                AdBlockMatcher.Verdict.DOMAIN -> {
+                    Log.d(TAG, "Blocked ad domain: $url")
+                    true
+                }
+                AdBlockMatcher.Verdict.PATH -> {
+                    Log.d(TAG, "Blocked ad path: $url")
+                    true
+                }
+                AdBlockMatcher.Verdict.EXTENSION -> {
+                    Log.d(TAG, "Blocked ad extension: $url")
+                    true
+                }
+                AdBlockMatcher.Verdict.PARAM -> {
+                    Log.d(TAG, "Blocked ad params: $url")
+                    true
+                }
             }
-            
-            return false
-            
         } catch (e: Exception) {
             Log.e(TAG, "Error checking URL: $url", e)
             return false
         }
     }
     
-    private fun isWhitelisted(url: String): Boolean {
-        return whiteList.any { url.contains(it) }
-    }
-    
-    private fun isInCustomBlockList(url: String): Boolean {
-        return customBlockList.any { url.contains(it) }
-    }
-    
-    private fun containsAdDomain(url: String): Boolean {
-        return AD_DOMAINS.any { url.contains(it) }
-    }
-    
-    private fun containsAdPath(url: String): Boolean {
-        return AD_PATHS.any { url.contains(it) }
+    /**
+     * 根据当前规则重新编译匹配器
+     */
+    private fun buildMatcher(): AdBlockMatcher = synchronized(customBlockList) {
+        AdBlockMatcher.build(
+            domains = AD_DOMAINS,
+            paths = AD_PATHS,
+            extensions = AD_EXTENSIONS,
+            params = AD_PARAMS,
+            customRules = customBlockList.toList(),
+            whitelist = whiteList.toList()
+        )
     }
     
-    private fun containsAdExtension(url: String): Boolean {
-        return AD_EXTENSIONS.any { url.endsWith(it) }
+    private fun updateRules(action: () -> Unit) {
+        synchronized(customBlockList) {
+            action()
+            matcher = buildMatcher()
+        }
     }
     
-    private fun containsAdParams(url: String): Boolean {
-        if (!url.contains("?")) return false
-        
-        val queryString = url.substringAfter("?")
-        return AD_PARAMS.any { param ->
-            queryString.contains("$param=") || queryString.contains("&$param=")
+    /**
+     * 导入 Adblock Plus / EasyList 格式的规则列表，替换之前导入的列表
+     *
+     * 其中的元素隐藏规则交给 [CosmeticFilterManager]。
+     * 解析和编译较耗时，应在后台线程调用。
+     *
+     * @return 导入的网络规则数，失败时返回 -1
+     */
+    fun importFilterList(input: InputStream): Int {
+        return try {
+            val startTime = System.currentTimeMillis()
+            val result = input.bufferedReader().use { AbpFilterParser.parse(it) }
+            AbpFilterSnapshot.compile(result.filters, filterListFile)
+            filterList = AbpFilterSnapshot.open(filterListFile)
+            CosmeticFilterManager.getInstance(context).updateRules(result.cosmeticRules)
+            Log.d(TAG, "Imported filter list: ${result.filters.size} rules, ${result.cosmeticRules.size} cosmetic rules, skipped ${result.skipped}, took ${System.currentTimeMillis() - startTime}ms")
+            result.filters.size
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to import filter list", e)
+            -1
         }
     }
+
+    fun importFilterList(file: File): Int = file.inputStream().use { importFilterList(it) }
+
+    /**
+     * 删除已导入的规则列表
+     */
+    fun clearFilterList() {
+        filterList = null
+        filterListFile.delete()
+        CosmeticFilterManager.getInstance(context).clearRules()
+        Log.d(TAG, "Cleared filter list")
+    }
+
+    /**
+     * 已导入的规则列表中的规则数
+     */
+    fun getFilterListRuleCount(): Int = filterList?.ruleCount ?: 0
     
     /**
      * 启用/禁用AdBlock
@@ -239,7 +294,7 @@ class AdBlockFilter(private val context: Context) {
      * 添加自定义拦截规则
      */
     fun addCustomBlockRule(rule: String) {
-        customBlockList.add(rule.lowercase())
+        updateRules { customBlockList.add(rule.lowercase()) }
         Log.d(TAG, "Added custom block rule: $rule")
     }
     
@@ -247,7 +302,7 @@ class AdBlockFilter(private val context: Context) {
      * 移除自定义拦截规则
      */
     fun removeCustomBlockRule(rule: String) {
-        customBlockList.remove(rule.lowercase())
+        updateRules { customBlockList.remove(rule.lowercase()) }
         Log.d(TAG, "Removed custom block rule: $rule")
     }
     
@@ -255,7 +310,7 @@ class AdBlockFilter(private val context: Context) {
      * 添加白名单
      */
     fun addWhitelistRule(rule: String) {
-        whiteList.add(rule.lowercase())
+        updateRules { whiteList.add(rule.lowercase()) }
         Log.d(TAG, "Added whitelist rule: $rule")
     }
     
@@ -263,7 +318,7 @@ class AdBlockFilter(private val context: Context) {
      * 移除白名单
      */
     fun removeWhitelistRule(rule: String) {
-        whiteList.remove(rule.lowercase())
+        updateRules { whiteList.remove(rule.lowercase()) }
         Log.d(TAG, "Removed whitelist rule: $rule")
     }
     
@@ -279,8 +334,10 @@ class AdBlockFilter(private val context: Context) {
      * 清除所有自定义规则
      */
     fun clearCustomRules() {
-        customBlockList.clear()
-        whiteList.clear()
+        updateRules {
+            customBlockList.clear()
+            whiteList.clear()
+        }
         Log.d(TAG, "Cleared all custom rules")
     }
 }
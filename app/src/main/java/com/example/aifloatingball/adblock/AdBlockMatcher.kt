@@ -0,0 +1,285 @@
+package com.example.aifloatingball.adblock
+
+/**
+ * 编译后的广告拦截规则匹配器
+ *
+ * - 纯域名规则放入按标签倒序组织的域名树，只匹配主机名本身及其子域名；
+ * - 含路径的域名规则、路径片段、文件后缀、自定义规则和白名单编译成一个 Aho-Corasick 自动机，
+ *   对URL只扫描一遍即可得到所有命中；
+ * - 查询参数按参数名查表；
+ * - 每个主机名的域名树结果缓存在一个 LRU 中。
+ *
+ * 实例创建后不再修改，规则变化时构建新实例整体替换即可，不需要加锁。
+ * 只依赖 JDK，可直接在 JVM 单元测试中使用。
+ */
+class AdBlockMatcher private constructor(
+    private val domainTrie: DomainNode,
+    private val automaton: Automaton,
+    private val adParams: Set<String>,
+    hostCacheSize: Int
+) {
+
+    /**
+     * 匹配结果，按原先的检查顺序排列
+     */
+    enum class Verdict {
+        ALLOW,
+        WHITELISTED,
+        CUSTOM,
+        DOMAIN,
+        PATH,
+        EXTENSION,
+        PARAM;
+
+        val blocked: Boolean
+            get() = this != ALLOW && this != WHITELISTED
+    }
+
+    companion object {
+        private const val FLAG_WHITELIST = 1
+        private const val FLAG_CUSTOM = 2
+        private const val FLAG_DOMAIN = 4
+        private const val FLAG_PATH = 8
+        private const val FLAG_EXTENSION = 16
+
+        private const val ALPHABET = 128
+        private const val DEFAULT_HOST_CACHE_SIZE = 512
+
+        /**
+         * 从规则集合构建匹配器，所有规则应已转为小写
+         *
+         * @param domains 域名规则，不含 "/" 的按域名树匹配，含 "/" 的按URL片段匹配
+         * @param paths URL中出现即拦截的路径片段
+         * @param extensions URL以此结尾即拦截的后缀
+         * @param params 查询参数名
+         * @param customRules 用户添加的拦截片段
+         * @param whitelist 用户添加的放行片段，优先于所有拦截规则
+         */
+        fun build(
+            domains: Collection<String>,
+            paths: Collection<String>,
+            extensions: Collection<String>,
+            params: Collection<String>,
+            customRules: Collection<String>,
+            whitelist: Collection<String>,
+            hostCacheSize: Int = DEFAULT_HOST_CACHE_SIZE
+        ): AdBlockMatcher {
+            val trie = DomainNode()
+            val builder = AutomatonBuilder()
+            domains.forEach { rule ->
+                if (rule.contains('/')) builder.add(rule, FLAG_DOMAIN) else trie.add(rule)
+            }
+            paths.forEach { builder.add(it, FLAG_PATH) }
+            extensions.forEach { builder.add(it, FLAG_EXTENSION) }
+            customRules.forEach { builder.add(it, FLAG_CUSTOM) }
+            whitelist.forEach { builder.add(it, FLAG_WHITELIST) }
+            return AdBlockMatcher(trie, builder.build(), params.toHashSet(), hostCacheSize)
+        }
+
+        /**
+         * 取出URL中的主机名（不含端口和用户信息），URL应已转为小写
+         */
+        internal fun hostOf(url: String): String {
+            val schemeEnd = url.indexOf("://")
+            val start = if (schemeEnd >= 0) schemeEnd + 3 else 0
+            var end = url.length
+            for (i in start until url.length) {
+                val c = url[i]
+                if (c == '/' || c == '?' || c == '#') {
+                    end = i
+                    break
+                }
+            }
+            var hostStart = start
+            val at = url.lastIndexOf('@', end - 1)
+            if (at >= start) hostStart = at + 1
+            var hostEnd = end
+            val colon = url.indexOf(':', hostStart)
+            if (colon in hostStart until end) hostEnd = colon
+            return url.substring(hostStart, hostEnd)
+        }
+    }
+
+    // 主机名 → 是否命中域名规则
+    private val hostCache = object : LinkedHashMap<String, Boolean>(hostCacheSize, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, Boolean>?): Boolean {
+            return size > hostCacheSize
+        }
+    }
+
+    /**
+     * 判断URL（已转为小写）应如何处理
+     */
+    fun match(lowerUrl: String): Verdict {
+        val flags = automaton.scan(lowerUrl)
+        if (flags and FLAG_WHITELIST != 0) return Verdict.WHITELISTED
+        if (flags and FLAG_CUSTOM != 0) return Verdict.CUSTOM
+        if (flags and FLAG_DOMAIN != 0 || isAdHost(hostOf(lowerUrl))) return Verdict.DOMAIN
+        if (flags and FLAG_PATH != 0) return Verdict.PATH
+        if (flags and FLAG_EXTENSION != 0) return Verdict.EXTENSION
+        if (containsAdParam(lowerUrl)) return Verdict.PARAM
+        return Verdict.ALLOW
+    }
+
+    fun shouldBlock(lowerUrl: String): Boolean = match(lowerUrl).blocked
+
+    private fun isAdHost(host: String): Boolean {
+        if (host.isEmpty()) return false
+        synchronized(hostCache) {
+            hostCache[host]?.let { return it }
+        }
+        val blocked = domainTrie.matches(host)
+        synchronized(hostCache) {
+            hostCache[host] = blocked
+        }
+        return blocked
+    }
+
+    private fun containsAdParam(url: String): Boolean {
+        if (adParams.isEmpty()) return false
+        val queryStart = url.indexOf('?')
+        if (queryStart < 0) return false
+        val queryEnd = url.indexOf('#', queryStart).let { if (it < 0) url.length else it }
+
+        var keyStart = queryStart + 1
+        while (keyStart < queryEnd) {
+            var pairEnd = url.indexOf('&', keyStart)
+            if (pairEnd < 0 || pairEnd > queryEnd) pairEnd = queryEnd
+            val equals = url.indexOf('=', keyStart)
+            if (equals in keyStart until pairEnd && url.substring(keyStart, equals) in adParams) {
+                return true
+            }
+            keyStart = pairEnd + 1
+        }
+        return false
+    }
+
+    /**
+     * 按标签倒序组织的域名树，例如 ads.yahoo.com 存为 com → yahoo → ads
+     */
+    private class DomainNode {
+        val children = HashMap<String, DomainNode>()
+        var terminal = false
+
+        fun add(domain: String) {
+            var node = this
+            domain.trim('.').split('.').asReversed().forEach { label ->
+                node = node.children.getOrPut(label) { DomainNode() }
+            }
+            node.terminal = true
+        }
+
+        /**
+         * 主机名等于某条规则或是其子域名时返回 true
+         */
+        fun matches(host: String): Boolean {
+            var node = this
+            var end = host.length
+            while (end > 0) {
+                val dot = host.lastIndexOf('.', end - 1)
+                node = node.children[host.substring(dot + 1, end)] ?: return false
+                if (node.terminal) return true
+                end = dot
+            }
+            return false
+        }
+    }
+
+    /**
+     * ASCII 字符上的稠密 Aho-Corasick 自动机，每个状态记录所有在此结束的规则类型
+     *
+     * 含非 ASCII 字符的规则很少见，单独逐条比较。
+     */
+    private class Automaton(
+        private val transitions: IntArray,
+        private val outputs: IntArray,
+        private val suffixOutputs: IntArray,
+        private val fallbackRules: List<Pair<String, Int>>
+    ) {
+        fun scan(text: String): Int {
+            var state = 0
+            var flags = 0
+            for (i in text.indices) {
+                val c = text[i].code
+                state = if (c < ALPHABET) transitions[state * ALPHABET + c] else 0
+                flags = flags or outputs[state]
+            }
+            // 后缀规则只在扫描结束的状态上生效
+            flags = flags or suffixOutputs[state]
+            fallbackRules.forEach { (rule, flag) ->
+                val hit = if (flag == FLAG_EXTENSION) text.endsWith(rule) else text.contains(rule)
+                if (hit) flags = flags or flag
+            }
+            return flags
+        }
+    }
+
+    private class AutomatonBuilder {
+        private val goto = mutableListOf(IntArray(ALPHABET) { -1 })
+        private val outputs = mutableListOf(0)
+        private val suffixOutputs = mutableListOf(0)
+        private val fallbackRules = mutableListOf<Pair<String, Int>>()
+
+        fun add(rule: String, flag: Int) {
+            if (rule.isEmpty()) return
+            if (rule.any { it.code >= ALPHABET }) {
+                fallbackRules.add(Pair(rule, flag))
+                return
+            }
+            var state = 0
+            rule.forEach { c ->
+                var next = goto[state][c.code]
+                if (next < 0) {
+                    next = goto.size
+                    goto.add(IntArray(ALPHABET) { -1 })
+                    outputs.add(0)
+                    suffixOutputs.add(0)
+                    goto[state][c.code] = next
+                }
+                state = next
+            }
+            if (flag == FLAG_EXTENSION) {
+                suffixOutputs[state] = suffixOutputs[state] or flag
+            } else {
+                outputs[state] = outputs[state] or flag
+            }
+        }
+
+        fun build(): Automaton {
+            val stateCount = goto.size
+            val transitions = IntArray(stateCount * ALPHABET)
+            val out = outputs.toIntArray()
+            val suffixOut = suffixOutputs.toIntArray()
+            val fail = IntArray(stateCount)
+
+            // 按层次遍历补全转移表，同时沿失败链合并输出
+            val queue = ArrayDeque<Int>()
+            for (c in 0 until ALPHABET) {
+                val next = goto[0][c]
+                if (next > 0) {
+                    fail[next] = 0
+                    transitions[c] = next
+                    queue.add(next)
+                } else {
+                    transitions[c] = 0
+                }
+            }
+            while (queue.isNotEmpty()) {
+                val state = queue.removeFirst()
+                out[state] = out[state] or out[fail[state]]
+                suffixOut[state] = suffixOut[state] or suffixOut[fail[state]]
+                for (c in 0 until ALPHABET) {
+                    val next = goto[state][c]
+                    if (next > 0) {
+                        fail[next] = transitions[fail[state] * ALPHABET + c]
+                        transitions[state * ALPHABET + c] = next
+                        queue.add(next)
+                    } else {
+                        transitions[state * ALPHABET + c] = transitions[fail[state] * ALPHABET + c]
+                    }
+                }
+            }
+            return Automaton(transitions, out, suffixOut, fallbackRules.toList())
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package com.example.aifloatingball.adblock
+
+import java.util.TreeMap
+
+/**
+ * 元素隐藏（`##选择器`）规则索引
+ *
+ * 通用规则和按域名划分的规则分开存放，每个主机名只在第一次请求时合成一份样式表，
+ * 之后从 LRU 缓存中直接返回。
+ *
+ * 支持的语法：
+ * - `##选择器`：对所有站点生效
+ * - `a.com,b.com##选择器`：只对这些域名及其子域名生效
+ * - `~a.com##选择器`：对除这些域名以外的站点生效
+ * - `a.com#@#选择器`：在这些域名上取消对应的隐藏规则（不带域名时全局取消）
+ *
+ * 扩展语法（`#?#`、`#$#`、`:-abp-` 等）无法用纯 CSS 实现，会被忽略。
+ * 只依赖 JDK，可直接在 JVM 单元测试中使用。
+ */
+class CosmeticFilterIndex(private val cacheSize: Int = 64) {
+
+    companion object {
+        const val HIDE_DECLARATION = "{display:none!important}"
+
+        /**
+         * 是否为本索引能处理的元素隐藏规则
+         */
+        fun isCosmeticRule(line: String): Boolean {
+            val text = line.trim()
+            if (text.startsWith("!")) return false
+            if (text.contains("#?#") || text.contains("#$#") || text.contains("#@?#")) return false
+            return text.contains("##") || text.contains("#@#")
+        }
+    }
+
+    private val genericSelectors = LinkedHashSet<String>()
+    // 通用规则中带 ~域名 排除的部分
+    private val genericExclusions = HashMap<String, MutableSet<String>>()
+    private val domainSelectors = HashMap<String, LinkedHashSet<String>>()
+    private val domainExceptions = HashMap<String, MutableSet<String>>()
+    private val globalExceptions = HashSet<String>()
+
+    // 不受任何域名例外影响时共用的通用样式表
+    private var genericStylesheet: String? = null
+    private var documentStartTable: String? = null
+
+    private val stylesheetCache = object : LinkedHashMap<String, String>(cacheSize, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, String>?): Boolean {
+            return size > cacheSize
+        }
+    }
+
+    val ruleCount: Int
+        @Synchronized get() = genericSelectors.size + domainSelectors.values.sumOf { it.size }
+
+    /**
+     * 添加一行规则，不是受支持的元素隐藏规则时返回 false
+     */
+    @Synchronized
+    fun addRule(line: String): Boolean {
+        val text = line.trim()
+        if (!isCosmeticRule(text)) return false
+
+        val exception = text.contains("#@#")
+        val separator = if (exception) "#@#" else "##"
+        val selector = text.substringAfter(separator).trim()
+        if (selector.isEmpty() || selector.contains(":-abp-") || selector.contains("{")) return false
+
+        val domains = text.substringBefore(separator).split(',').map { it.trim().lowercase() }.filter { it.isNotEmpty() }
+        val included = domains.filter { !it.startsWith("~") }
+        val excluded = domains.filter { it.startsWith("~") }.map { it.substring(1) }
+
+        when {
+            exception && included.isEmpty() -> globalExceptions.add(selector)
+            exception -> included.forEach { domainExceptions.getOrPut(it) { HashSet() }.add(selector) }
+            included.isEmpty() -> {
+                genericSelectors.add(selector)
+                excluded.forEach { genericExclusions.getOrPut(it) { HashSet() }.add(selector) }
+            }
+            else -> included.forEach { domainSelectors.getOrPut(it) { LinkedHashSet() }.add(selector) }
+        }
+        genericStylesheet = null
+        documentStartTable = null
+        stylesheetCache.clear()
+        return true
+    }
+
+    /**
+     * 批量添加规则，返回实际添加的数量
+     */
+    fun addRules(lines: Sequence<String>): Int = lines.count { addRule(it) }
+
+    /**
+     * 某个主机名应隐藏的选择器
+     */
+    @Synchronized
+    fun selectorsFor(host: String): List<String> {
+        val suffixes = domainSuffixes(host.lowercase())
+        val excepted = HashSet<String>(globalExceptions)
+        suffixes.forEach { suffix ->
+            domainExceptions[suffix]?.let { excepted.addAll(it) }
+            genericExclusions[suffix]?.let { excepted.addAll(it) }
+        }
+
+        val selectors = LinkedHashSet<String>()
+        genericSelectors.forEach { if (it !in excepted) selectors.add(it) }
+        suffixes.forEach { suffix ->
+            domainSelectors[suffix]?.forEach { if (it !in excepted) selectors.add(it) }
+        }
+        return selectors.toList()
+    }
+
+    /**
+     * 不针对任何站点的通用样式表（已去掉全局例外），适合在还不知道主机名时先注入
+     */
+    @Synchronized
+    fun genericStylesheet(): String {
+        return genericStylesheet ?: buildStylesheet(genericSelectors.filter { it !in globalExceptions }).also {
+            genericStylesheet = it
+        }
+    }
+
+    /**
+     * 某个主机名的隐藏样式表，没有需要隐藏的元素时返回空字符串
+     */
+    @Synchronized
+    fun stylesheetFor(host: String): String {
+        val key = host.lowercase()
+        stylesheetCache[key]?.let { return it }
+
+        val suffixes = domainSuffixes(key)
+        val touchesGeneric = suffixes.any { domainExceptions.containsKey(it) || genericExclusions.containsKey(it) }
+        val stylesheet = if (touchesGeneric) {
+            buildStylesheet(selectorsFor(key))
+        } else {
+            // 大部分站点只需要通用样式表加上少量站点规则
+            val generic = genericStylesheet()
+            val specific = suffixes.flatMap { domainSelectors[it].orEmpty() }.filter { it !in globalExceptions && it !in genericSelectors }
+            generic + buildStylesheet(specific)
+        }
+        stylesheetCache[key] = stylesheet
+        return stylesheet
+    }
+
+    /**
+     * 文档开始脚本使用的紧凑规则表（JSON），页面中按 location.hostname 选出选择器，选取方式与 [selectorsFor] 相同
+     *
+     * - `s`：去重后的选择器
+     * - `g`：通用规则
+     * - `d`：域名 → 只对该域名及其子域名生效的规则
+     * - `x`：域名 → 在该域名及其子域名上取消的规则（`#@#` 例外和通用规则的 `~域名`）
+     *
+     * `g`、`d`、`x` 中都是 `s` 的下标，全局例外已经去掉。
+     */
+    @Synchronized
+    fun documentStartTable(): String {
+        documentStartTable?.let { return it }
+
+        val ids = LinkedHashMap<String, Int>()
+        fun idOf(selector: String) = ids.getOrPut(selector) { ids.size }
+        val generic = genericSelectors.filter { it !in globalExceptions }.map(::idOf)
+        val specific = domainSelectors.toSortedMap().mapValues { (_, selectors) ->
+            selectors.filter { it !in globalExceptions }.map(::idOf)
+        }
+        val excepted = TreeMap<String, LinkedHashSet<String>>()
+        domainExceptions.forEach { (domain, selectors) -> excepted.getOrPut(domain) { LinkedHashSet() }.addAll(selectors) }
+        genericExclusions.forEach { (domain, selectors) -> excepted.getOrPut(domain) { LinkedHashSet() }.addAll(selectors) }
+        // 只有表里出现过的选择器才需要取消
+        val exceptions = excepted.mapValues { (_, selectors) -> selectors.mapNotNull { ids[it] } }
+
+        val builder = StringBuilder(ids.keys.sumOf { it.length + 3 } + 64)
+        builder.append("{\"s\":[")
+        ids.keys.forEachIndexed { i, selector ->
+            if (i > 0) builder.append(',')
+            appendQuoted(builder, selector)
+        }
+        builder.append("],\"g\":")
+        appendIds(builder, generic)
+        builder.append(",\"d\":")
+        appendDomainIds(builder, specific)
+        builder.append(",\"x\":")
+        appendDomainIds(builder, exceptions)
+        builder.append('}')
+        return builder.toString().also { documentStartTable = it }
+    }
+
+    @Synchronized
+    fun clear() {
+        genericSelectors.clear()
+        genericExclusions.clear()
+        domainSelectors.clear()
+        domainExceptions.clear()
+        globalExceptions.clear()
+        genericStylesheet = null
+        documentStartTable = null
+        stylesheetCache.clear()
+    }
+
+    /**
+     * 每个选择器单独成一条规则，避免一个浏览器不支持的选择器让整组规则失效
+     */
+    private fun buildStylesheet(selectors: Collection<String>): String {
+        if (selectors.isEmpty()) return ""
+        val builder = StringBuilder(selectors.sumOf { it.length + HIDE_DECLARATION.length + 1 })
+        selectors.forEach { builder.append(it).append(HIDE_DECLARATION).append('\n') }
+        return builder.toString()
+    }
+
+    private fun appendIds(builder: StringBuilder, ids: List<Int>) {
+        builder.append('[')
+        ids.forEachIndexed { i, id ->
+            if (i > 0) builder.append(',')
+            builder.append(id)
+        }
+        builder.append(']')
+    }
+
+    private fun appendDomainIds(builder: StringBuilder, table: Map<String, List<Int>>) {
+        builder.append('{')
+        var first = true
+        table.forEach { (domain, ids) ->
+            if (ids.isEmpty()) return@forEach
+            if (!first) builder.append(',')
+            first = false
+            appendQuoted(builder, domain)
+            builder.append(':')
+            appendIds(builder, ids)
+        }
+        builder.append('}')
+    }
+
+    /**
+     * 按 JSON 字符串转义，U+2028/U+2029 也转义，保证结果同时是合法的 JS 字面量
+     */
+    private fun appendQuoted(builder: StringBuilder, value: String) {
+        builder.append('"')
+        for (c in value) {
+            when {
+                c == '"' || c == '\\' -> builder.append('\\').append(c)
+                c < ' ' || c == '\u2028' || c == '\u2029' -> builder.append("\\u").append(String.format("%04x", c.code))
+                else -> builder.append(c)
+            }
+        }
+        builder.append('"')
+    }
+
+    /**
+     * 主机名本身及其各级上级域名，例如 a.b.com → [a.b.com, b.com, com]
+     */
+    private fun domainSuffixes(host: String): List<String> {
+        val suffixes = mutableListOf<String>()
+        var start = 0
+        while (start < host.length) {
+            suffixes.add(host.substring(start))
+            val dot = host.indexOf('.', start)
+            if (dot < 0) break
+            start = dot + 1
+        }
+        return suffixes
+    }
+}
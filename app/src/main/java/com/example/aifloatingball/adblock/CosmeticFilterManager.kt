@@ -0,0 +1,256 @@
+package com.example.aifloatingball.adblock
+
+import android.content.Context
+import android.net.Uri
+import android.os.Handler
+import android.os.Looper
+import android.util.Log
+import android.webkit.WebView
+import androidx.webkit.ScriptHandler
+import androidx.webkit.WebViewCompat
+import androidx.webkit.WebViewFeature
+import org.json.JSONObject
+import java.io.File
+import java.util.WeakHashMap
+import java.util.concurrent.Executors
+
+/**
+ * 元素隐藏规则的注入管理
+ *
+ * 每个 WebView 注册一段文档开始脚本，脚本里带着 [CosmeticFilterIndex.documentStartTable] 生成的紧凑规则表，
+ * 在页面解析前按 location.hostname 选出通用规则、站点规则并去掉例外，一次插入完整的样式表，
+ * 广告元素从一开始就不会渲染，也不会在加载后再重排。
+ *
+ * 不向页面暴露任何 JS 接口，页面无法调用拦截器。规则文件读完之前先用内置规则注册，
+ * 读完或规则更新后在主线程重新注册。不支持文档开始脚本的 WebView 版本在 onPageStarted 时按主机名注入。
+ */
+class CosmeticFilterManager private constructor(context: Context) {
+
+    companion object {
+        private const val TAG = "CosmeticFilterManager"
+        private const val RULES_FILE_NAME = "adblock_cosmetic_rules.txt"
+        private const val STYLE_ELEMENT_ID = "__aifb_cosmetic"
+
+        // 内置的通用规则，只包含不会误伤正常内容的广告容器
+        private val DEFAULT_RULES = listOf(
+            "##ins.adsbygoogle",
+            "##div[id^=\"div-gpt-ad\"]",
+            "##iframe[src*=\"doubleclick.net\"]",
+            "##iframe[src*=\"googlesyndication.com\"]",
+            "##iframe[src*=\"googleadservices.com\"]",
+            "##a[href^=\"https://ad.doubleclick.net/\"]",
+            "##.adsbygoogle"
+        )
+
+        // 不支持文档开始脚本时，onPageStarted 注入站点的完整样式表
+        private fun injectScript(css: String): String = """
+            (function() {
+                try {
+                    var style = document.getElementById('$STYLE_ELEMENT_ID');
+                    if (!style) {
+                        style = document.createElement('style');
+                        style.id = '$STYLE_ELEMENT_ID';
+                        (document.head || document.documentElement).appendChild(style);
+                    }
+                    style.textContent = ${JSONObject.quote(css)};
+                } catch (e) {
+                    // 忽略错误
+                }
+            })();
+        """.trimIndent()
+
+        // 文档开始脚本：从规则表中按主机名及其上级域名选出选择器，与 CosmeticFilterIndex.selectorsFor 一致
+        private fun documentStartScript(table: String): String = """
+            (function() {
+                try {
+                    var t = $table;
+                    var host = (location.hostname || '').toLowerCase();
+                    var suffixes = [];
+                    while (host) {
+                        suffixes.push(host);
+                        var dot = host.indexOf('.');
+                        if (dot < 0) break;
+                        host = host.substring(dot + 1);
+                    }
+                    var excepted = {}, seen = {}, rules = [];
+                    suffixes.forEach(function(s) {
+                        (t.x[s] || []).forEach(function(i) { excepted[i] = 1; });
+                    });
+                    function add(i) {
+                        if (excepted[i] || seen[i]) return;
+                        seen[i] = 1;
+                        rules.push(t.s[i] + '${CosmeticFilterIndex.HIDE_DECLARATION}');
+                    }
+                    t.g.forEach(add);
+                    suffixes.forEach(function(s) { (t.d[s] || []).forEach(add); });
+                    if (!rules.length) return;
+                    var style = document.createElement('style');
+                    style.id = '$STYLE_ELEMENT_ID';
+                    style.textContent = rules.join('\n');
+                    (document.head || document.documentElement).appendChild(style);
+                } catch (e) {
+                    // 忽略错误
+                }
+            })();
+        """.trimIndent()
+
+        @Volatile
+        private var INSTANCE: CosmeticFilterManager? = null
+
+        fun getInstance(context: Context): CosmeticFilterManager {
+            return INSTANCE ?: synchronized(this) {
+                INSTANCE ?: CosmeticFilterManager(context.applicationContext).also { INSTANCE = it }
+            }
+        }
+    }
+
+    private val rulesFile = File(context.filesDir, RULES_FILE_NAME)
+    private val mainHandler = Handler(Looper.getMainLooper())
+
+    // 第一次需要样式表时才读取规则文件
+    @Volatile
+    private var index: CosmeticFilterIndex? = null
+    // 规则文件读完之前先注册的内置规则，不涉及文件读取，可以在主线程构建
+    private val builtinIndex by lazy { CosmeticFilterIndex().apply { addRules(DEFAULT_RULES.asSequence()) } }
+    private val loadExecutor = Executors.newSingleThreadExecutor()
+
+    private class Registration(val handler: ScriptHandler, val index: CosmeticFilterIndex)
+
+    // 已注册文档开始脚本的 WebView，只在主线程访问
+    private val documentStartViews = WeakHashMap<WebView, Registration>()
+
+    // 最近一次生成的文档开始脚本，多个 WebView 共用
+    @Volatile
+    private var cachedScript: Pair<CosmeticFilterIndex, String>? = null
+
+    /**
+     * 为 WebView 安装元素隐藏脚本，应在第一次加载页面之前在主线程调用
+     *
+     * 规则尚未读取时先用内置规则注册，保证第一次导航就有文档开始样式；
+     * 规则文件在后台读取，读完后换成完整的规则，不阻塞 WebView 的创建。
+     */
+    fun install(webView: WebView) {
+        if (!WebViewFeature.isFeatureSupported(WebViewFeature.DOCUMENT_START_SCRIPT)) return
+        val current = index
+        if (current != null) {
+            registerDocumentStartScript(webView, current)
+            return
+        }
+        registerDocumentStartScript(webView, builtinIndex)
+        loadExecutor.execute {
+            // 规则表在后台生成，主线程上只做注册
+            scriptFor(index())
+            mainHandler.post { refreshRegistrations() }
+        }
+    }
+
+    /**
+     * 在 onPageStarted 中调用；已注册文档开始脚本的 WebView 不需要再注入，
+     * 只有不支持或注册失败时才按主机名注入完整样式表
+     */
+    fun onPageStarted(webView: WebView?, url: String?) {
+        webView ?: return
+        if (documentStartViews.containsKey(webView)) return
+        // 规则还没读取时在后台读取，不在主线程读文件
+        val current = index ?: run {
+            loadExecutor.execute { index() }
+            return
+        }
+
+        val host = url?.let { Uri.parse(it).host }
+        val stylesheet = try {
+            if (host.isNullOrEmpty()) current.genericStylesheet() else current.stylesheetFor(host)
+        } catch (e: Exception) {
+            Log.e(TAG, "生成样式表失败: $host", e)
+            return
+        }
+        if (stylesheet.isEmpty()) return
+        webView.evaluateJavascript(injectScript(stylesheet), null)
+    }
+
+    /**
+     * 规则读取完成或更新后，把已注册的 WebView 换成当前规则，只在主线程调用
+     */
+    private fun refreshRegistrations() {
+        val current = index ?: return
+        documentStartViews.entries.filter { it.value.index !== current }.map { it.key }.forEach {
+            registerDocumentStartScript(it, current)
+        }
+    }
+
+    private fun scriptFor(rules: CosmeticFilterIndex): String {
+        return cachedScript?.takeIf { it.first === rules }?.second
+            ?: documentStartScript(rules.documentStartTable()).also { cachedScript = rules to it }
+    }
+
+    private fun registerDocumentStartScript(webView: WebView, rules: CosmeticFilterIndex) {
+        val script = scriptFor(rules)
+        documentStartViews.remove(webView)?.handler?.remove()
+        try {
+            val handler = WebViewCompat.addDocumentStartJavaScript(webView, script, setOf("*"))
+            documentStartViews[webView] = Registration(handler, rules)
+        } catch (e: Exception) {
+            Log.w(TAG, "注册文档开始脚本失败，改为页面开始时注入", e)
+        }
+    }
+
+    /**
+     * 用导入的规则列表中的元素隐藏规则替换之前导入的规则
+     *
+     * @return 实际生效的规则数
+     */
+    fun updateRules(rules: List<String>): Int {
+        return try {
+            val tempFile = File(rulesFile.parentFile, rulesFile.name + ".tmp")
+            tempFile.bufferedWriter().use { writer ->
+                rules.forEach { writer.write(it); writer.newLine() }
+            }
+            if (!tempFile.renameTo(rulesFile)) {
+                rulesFile.delete()
+                tempFile.renameTo(rulesFile)
+            }
+            val rebuilt = buildIndex()
+            scriptFor(rebuilt)
+            index = rebuilt
+            mainHandler.post { refreshRegistrations() }
+            Log.d(TAG, "更新元素隐藏规则: ${rebuilt.ruleCount} 条")
+            rebuilt.ruleCount
+        } catch (e: Exception) {
+            Log.e(TAG, "保存元素隐藏规则失败", e)
+            -1
+        }
+    }
+
+    /**
+     * 删除导入的规则，只保留内置规则
+     */
+    fun clearRules() {
+        rulesFile.delete()
+        index = buildIndex().also { scriptFor(it) }
+        mainHandler.post { refreshRegistrations() }
+    }
+
+    fun getRuleCount(): Int = index().ruleCount
+
+    private fun index(): CosmeticFilterIndex {
+        index?.let { return it }
+        return synchronized(this) {
+            index ?: buildIndex().also { index = it }
+        }
+    }
+
+    private fun buildIndex(): CosmeticFilterIndex {
+        val startTime = System.currentTimeMillis()
+        val built = CosmeticFilterIndex()
+        built.addRules(DEFAULT_RULES.asSequence())
+        if (rulesFile.exists()) {
+            try {
+                rulesFile.bufferedReader().useLines { built.addRules(it) }
+            } catch (e: Exception) {
+                Log.e(TAG, "读取元素隐藏规则失败", e)
+            }
+        }
+        Log.d(TAG, "加载元素隐藏规则 ${built.ruleCount} 条，耗时 ${System.currentTimeMillis() - startTime}ms")
+        return built
+    }
+}
@@ -0,0 +1,54 @@
+package com.example.aifloatingball.adblock
+
+import okhttp3.HttpUrl
+
+/**
+ * 基于公共后缀列表（Public Suffix List）判断主机名所属的站点
+ *
+ * 后缀列表使用 OkHttp 自带的数据库，`co.uk`、`com.cn` 这类多级后缀也能正确处理。
+ * 查询结果按主机名缓存，同一页面的请求不会重复构建 [HttpUrl]。
+ */
+internal object PublicSuffix {
+
+    private const val CACHE_SIZE = 512
+
+    // 主机名 → 可注册域名
+    private val domainCache = object : LinkedHashMap<String, String>(CACHE_SIZE, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, String>?): Boolean {
+            return size > CACHE_SIZE
+        }
+    }
+
+    /**
+     * 主机名的可注册域名（公共后缀再加一级），IP地址、单级主机名和本身就是公共后缀的主机名返回原值
+     */
+    fun registrableDomain(host: String): String {
+        synchronized(domainCache) {
+            domainCache[host]?.let { return it }
+        }
+        val domain = try {
+            HttpUrl.Builder().scheme("http").host(host).build().topPrivateDomain() ?: host
+        } catch (e: IllegalArgumentException) {
+            host
+        }
+        synchronized(domainCache) {
+            domainCache[host] = domain
+        }
+        return domain
+    }
+
+    /**
+     * 两个主机名是否属于同一站点，用于判断 `$third-party`
+     */
+    fun sameSite(a: String, b: String): Boolean {
+        if (a == b) return true
+        // a 的可注册域名只能是 a 本身或它的上级域名，不在 b 的站点之下时无需再查 a
+        val site = registrableDomain(b)
+        if (!isSameOrSubdomain(a, site)) return false
+        return registrableDomain(a) == site
+    }
+
+    private fun isSameOrSubdomain(host: String, domain: String): Boolean {
+        return host == domain || host.endsWith(domain) && host[host.length - domain.length - 1] == '.'
+    }
+}
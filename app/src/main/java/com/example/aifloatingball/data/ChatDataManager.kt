@@ -4,14 +4,21 @@ import android.content.Context
 import android.content.SharedPreferences
 import android.util.Log
 import com.example.aifloatingball.manager.AIServiceType
+import com.example.aifloatingball.search.FullTextIndex
+import com.example.aifloatingball.search.PersistentSearchIndex
 import org.json.JSONArray
 import org.json.JSONObject
+import java.io.File
 import java.util.*
+import java.util.concurrent.Executors
 
 /**
  * 统一的聊天数据管理器
  * 用于简易模式和悬浮球模式的多AI引擎对话数据共享
  * 支持按AI引擎类型分别保存数据
+ *
+ * 消息保存在 [ChatMessageStore] 中（每个会话一个追加日志文件），会话内容在首次访问时才读取；
+ * 收藏和当前会话ID等少量数据仍保存在SharedPreferences中。
  */
 class ChatDataManager private constructor(private val context: Context) {
 
@@ -21,6 +28,10 @@ class ChatDataManager private constructor(private val context: Context) {
         private const val KEY_SESSIONS = "chat_sessions"
         private const val KEY_FAVORITES = "favorite_messages"
         private const val KEY_CURRENT_SESSION = "current_session_id"
+        private const val SEARCH_INDEX_FILE_NAME = "chat_messages_search.idx"
+        private const val MESSAGES_DIR_NAME = "chat_sessions"
+        // 索引查不到时逐条匹配的消息数上限，按输入搜索时每次按键的耗时不随历史消息总量增长
+        private const val MAX_SCAN_MESSAGES = 5000
 
         // 为不同AI引擎添加前缀
         private fun getSessionsKey(aiServiceType: AIServiceType): String {
@@ -47,10 +58,23 @@ class ChatDataManager private constructor(private val context: Context) {
     
     private val prefs: SharedPreferences = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
 
-    // 内存缓存 - 按AI引擎类型分别存储
-    private val chatSessions = mutableMapOf<AIServiceType, MutableMap<String, MutableList<ChatMessage>>>()
+    private val messageStore = ChatMessageStore(File(context.filesDir, MESSAGES_DIR_NAME))
+
+    // 内存缓存 - 按AI引擎类型分别存储，消息列表为null表示该会话尚未从磁盘读取
+    private val chatSessions = mutableMapOf<AIServiceType, MutableMap<String, MutableList<ChatMessage>?>>()
     private val favoriteMessages = mutableMapOf<AIServiceType, MutableList<FavoriteMessage>>()
     private val currentSessionIds = mutableMapOf<AIServiceType, String?>()
+
+    // 消息全文索引，每条消息一个文档，首次搜索或写入时在后台线程打开
+    private val searchIndex = PersistentSearchIndex(
+        File(context.filesDir, SEARCH_INDEX_FILE_NAME),
+        floatArrayOf(1f),
+        booleanArrayOf(false)
+    )
+    private val searchExecutor = Executors.newSingleThreadExecutor()
+    // 索引打开期间的增删先排队，打开后按顺序执行；searchIndexOpening 也由它保护
+    private val pendingSearchUpdates = mutableListOf<() -> Unit>()
+    private var searchIndexOpening = false
     
     data class ChatMessage(
         val role: String,
@@ -79,13 +103,13 @@ class ChatDataManager private constructor(private val context: Context) {
     }
     
     /**
-     * 从SharedPreferences加载数据
+     * 加载会话列表、收藏和当前会话ID（不读取消息内容）
      */
     private fun loadDataFromPrefs() {
         try {
             // 为每个AI引擎类型加载数据
             AIServiceType.values().forEach { aiServiceType ->
-                loadDataForAIService(aiServiceType)
+                readDataForAIService(aiServiceType)
             }
 
             Log.d(TAG, "加载了所有AI引擎的聊天数据")
@@ -99,37 +123,21 @@ class ChatDataManager private constructor(private val context: Context) {
      * 为特定AI引擎加载数据
      */
     fun loadDataForAIService(aiServiceType: AIServiceType) {
-        try {
-            val sessionsKey = getSessionsKey(aiServiceType)
-            Log.d(TAG, "loadDataForAIService - 加载 ${aiServiceType.name} 数据，键名: $sessionsKey")
-            
-            // 加载会话数据
-            val sessionsJson = prefs.getString(sessionsKey, "{}") ?: "{}"
-            Log.d(TAG, "loadDataForAIService - 原始JSON数据: ${sessionsJson.take(200)}...")
-            
-            val sessionsObject = JSONObject(sessionsJson)
-
-            val aiSessions = mutableMapOf<String, MutableList<ChatMessage>>()
-            sessionsObject.keys().forEach { sessionId ->
-                val messagesArray = sessionsObject.getJSONArray(sessionId)
-                val messages = mutableListOf<ChatMessage>()
+        readDataForAIService(aiServiceType)
+        syncSearchIndex()
+    }
 
-                for (i in 0 until messagesArray.length()) {
-                    val messageObj = messagesArray.getJSONObject(i)
-                    val message = ChatMessage(
-                        role = messageObj.getString("role"),
-                        content = messageObj.getString("content"),
-                        timestamp = messageObj.optLong("timestamp", System.currentTimeMillis()),
-                        messageId = messageObj.optString("messageId", UUID.randomUUID().toString())
-                    )
-                    messages.add(message)
-                }
+    private fun readDataForAIService(aiServiceType: AIServiceType) {
+        try {
+            migrateSessionsFromPrefs(aiServiceType)
 
-                aiSessions[sessionId] = messages
-                Log.d(TAG, "loadDataForAIService - 加载会话 $sessionId: ${messages.size} 条消息")
+            // 只登记会话ID，消息在 getMessages 等首次访问时再读取
+            val aiSessions = mutableMapOf<String, MutableList<ChatMessage>?>()
+            messageStore.sessionIds(aiServiceType.name).forEach { sessionId ->
+                aiSessions[sessionId] = null
             }
             chatSessions[aiServiceType] = aiSessions
-            Log.d(TAG, "loadDataForAIService - 完成加载 ${aiServiceType.name} 数据: ${aiSessions.size} 个会话")
+            Log.d(TAG, "loadDataForAIService - 完成加载 ${aiServiceType.name} 会话列表: ${aiSessions.size} 个会话")
             
             // 加载收藏数据
             val favoritesJson = prefs.getString(getFavoritesKey(aiServiceType), "[]") ?: "[]"
@@ -165,6 +173,102 @@ class ChatDataManager private constructor(private val context: Context) {
         }
     }
     
+    /**
+     * 把旧版本保存在SharedPreferences中的整块会话JSON迁移到 [messageStore]
+     *
+     * 全部会话写入成功后才删除旧数据，中途失败下次启动会重新迁移。
+     */
+    private fun migrateSessionsFromPrefs(aiServiceType: AIServiceType) {
+        val sessionsKey = getSessionsKey(aiServiceType)
+        val sessionsJson = prefs.getString(sessionsKey, null) ?: return
+
+        try {
+            val sessionsObject = JSONObject(sessionsJson)
+            var migrated = true
+            sessionsObject.keys().forEach { sessionId ->
+                val messagesArray = sessionsObject.getJSONArray(sessionId)
+                val messages = mutableListOf<ChatMessage>()
+
+                for (i in 0 until messagesArray.length()) {
+                    val messageObj = messagesArray.getJSONObject(i)
+                    val message = ChatMessage(
+                        role = messageObj.getString("role"),
+                        content = messageObj.getString("content"),
+                        timestamp = messageObj.optLong("timestamp", System.currentTimeMillis()),
+                        messageId = messageObj.optString("messageId", UUID.randomUUID().toString())
+                    )
+                    messages.add(message)
+                }
+
+                if (!messageStore.writeSession(aiServiceType.name, sessionId, messages)) {
+                    migrated = false
+                }
+            }
+
+            if (migrated) {
+                prefs.edit().remove(sessionsKey).commit()
+                Log.d(TAG, "迁移 ${aiServiceType.name} 会话数据完成: ${sessionsObject.length()} 个会话")
+            } else {
+                Log.e(TAG, "迁移 ${aiServiceType.name} 会话数据未完成，下次启动重试")
+            }
+        } catch (e: Exception) {
+            Log.e(TAG, "迁移 ${aiServiceType.name} 会话数据失败", e)
+        }
+    }
+
+    /**
+     * 返回会话的消息列表，尚未读取时从磁盘读取；会话不存在时返回null
+     */
+    private fun loadedMessages(aiServiceType: AIServiceType, sessionId: String): MutableList<ChatMessage>? {
+        val aiSessions = chatSessions[aiServiceType] ?: return null
+        if (!aiSessions.containsKey(sessionId)) return null
+        aiSessions[sessionId]?.let { return it }
+
+        val startTime = System.currentTimeMillis()
+        val messages = messageStore.readSession(aiServiceType.name, sessionId)
+        aiSessions[sessionId] = messages
+        Log.d(TAG, "读取会话 (${aiServiceType.name}) $sessionId: ${messages.size} 条消息, 耗时 ${System.currentTimeMillis() - startTime}ms")
+        return messages
+    }
+
+    /**
+     * 某个AI引擎下的全部会话；尚未读取的会话只读会话头，消息在第一次访问 [ChatSession.messages] 时才读取
+     */
+    private fun sessionsOf(aiServiceType: AIServiceType): List<ChatSession> {
+        val aiSessions = chatSessions[aiServiceType] ?: return emptyList()
+        return aiSessions.entries.toList().mapNotNull { (sessionId, messages) ->
+            if (messages != null) {
+                return@mapNotNull ChatSession(
+                    id = sessionId,
+                    title = getSessionTitle(messages),
+                    messages = messages.toList(),
+                    createdAt = messages.firstOrNull()?.timestamp ?: System.currentTimeMillis(),
+                    updatedAt = messages.lastOrNull()?.timestamp ?: System.currentTimeMillis()
+                )
+            }
+            val header = messageStore.readHeader(aiServiceType.name, sessionId) ?: return@mapNotNull null
+            ChatSession(
+                id = sessionId,
+                title = sessionTitle(header.firstUserMessage),
+                messages = LazyMessages { loadedMessages(aiServiceType, sessionId)?.toList() ?: emptyList() },
+                createdAt = header.createdAt,
+                updatedAt = header.updatedAt
+            )
+        }
+    }
+
+    /**
+     * 第一次访问时才读取的消息列表
+     */
+    private class LazyMessages(load: () -> List<ChatMessage>) : AbstractList<ChatMessage>() {
+        private val messages by lazy(load)
+
+        override val size: Int
+            get() = messages.size
+
+        override fun get(index: Int): ChatMessage = messages[index]
+    }
+
     /**
      * 保存数据到SharedPreferences
      */
@@ -181,30 +285,12 @@ class ChatDataManager private constructor(private val context: Context) {
     }
 
     /**
-     * 为特定AI引擎保存数据
+     * 为特定AI引擎保存收藏和当前会话ID（消息由 [messageStore] 逐条保存）
      */
     private fun saveDataForAIService(aiServiceType: AIServiceType) {
         try {
             val editor = prefs.edit()
 
-            // 保存会话数据
-            val aiSessions = chatSessions[aiServiceType] ?: mutableMapOf()
-            val sessionsObject = JSONObject()
-            aiSessions.forEach { (sessionId, messages) ->
-                val messagesArray = JSONArray()
-                messages.forEach { message ->
-                    val messageObj = JSONObject().apply {
-                        put("role", message.role)
-                        put("content", message.content)
-                        put("timestamp", message.timestamp)
-                        put("messageId", message.messageId)
-                    }
-                    messagesArray.put(messageObj)
-                }
-                sessionsObject.put(sessionId, messagesArray)
-            }
-            editor.putString(getSessionsKey(aiServiceType), sessionsObject.toString())
-
             // 保存收藏数据
             val aiFavorites = favoriteMessages[aiServiceType] ?: mutableListOf()
             val favoritesArray = JSONArray()
@@ -248,6 +334,7 @@ class ChatDataManager private constructor(private val context: Context) {
         }
 
         chatSessions[aiServiceType]!![sessionId] = mutableListOf()
+        messageStore.createSession(aiServiceType.name, sessionId)
         currentSessionIds[aiServiceType] = sessionId
         saveDataForAIService(aiServiceType)
         Log.d(TAG, "开始新对话 (${aiServiceType.name}): $sessionId")
@@ -288,15 +375,17 @@ class ChatDataManager private constructor(private val context: Context) {
             Log.d(TAG, "创建新会话 (${aiServiceType.name}) $sessionId")
         }
 
+        // 只追加这一条消息，不重写整个会话；未读取的会话不必为此读取
         aiSessions[sessionId]?.add(message)
+        if (!messageStore.append(aiServiceType.name, sessionId, message)) {
+            Log.e(TAG, "保存消息失败 (${aiServiceType.name}) $sessionId")
+        }
+        indexMessage(aiServiceType, sessionId, message)
         
         // 更新会话的最后更新时间
         updateSessionTimestamp(sessionId, aiServiceType)
-        
-        saveDataForAIService(aiServiceType)
 
         Log.d(TAG, "添加消息到会话 (${aiServiceType.name}) $sessionId: ${role} - ${content.take(50)}")
-        Log.d(TAG, "会话 $sessionId 现在有 ${aiSessions[sessionId]?.size ?: 0} 条消息")
         return message
     }
     
@@ -314,16 +403,7 @@ class ChatDataManager private constructor(private val context: Context) {
     fun getMessages(sessionId: String, aiServiceType: AIServiceType = AIServiceType.DEEPSEEK): List<ChatMessage> {
         Log.d(TAG, "getMessages - 请求会话ID: $sessionId, 服务类型: ${aiServiceType.name}")
         
-        // 调试：打印所有可用的会话
-        Log.d(TAG, "getMessages - 当前所有会话:")
-        chatSessions.forEach { (serviceType, sessions) ->
-            Log.d(TAG, "  服务类型: ${serviceType.name}, 会话数: ${sessions.size}")
-            sessions.forEach { (id, messages) ->
-                Log.d(TAG, "    会话ID: $id, 消息数: ${messages.size}")
-            }
-        }
-        
-        val messages = chatSessions[aiServiceType]?.get(sessionId)?.toList() ?: emptyList()
+        val messages = loadedMessages(aiServiceType, sessionId)?.toList() ?: emptyList()
         Log.d(TAG, "getMessages - 返回消息数: ${messages.size}")
         return messages
     }
@@ -332,22 +412,7 @@ class ChatDataManager private constructor(private val context: Context) {
      * 获取所有会话
      */
     fun getAllSessions(): List<ChatSession> {
-        val allSessions = mutableListOf<ChatSession>()
-
-        chatSessions.forEach { (aiServiceType, sessions) ->
-            sessions.forEach { (sessionId, messages) ->
-                val session = ChatSession(
-                    id = sessionId,
-                    title = getSessionTitle(messages),
-                    messages = messages.toList(),
-                    createdAt = messages.firstOrNull()?.timestamp ?: System.currentTimeMillis(),
-                    updatedAt = messages.lastOrNull()?.timestamp ?: System.currentTimeMillis()
-                )
-                allSessions.add(session)
-            }
-        }
-
-        return allSessions.sortedByDescending { it.updatedAt }
+        return chatSessions.keys.toList().flatMap { sessionsOf(it) }.sortedByDescending { it.updatedAt }
     }
     
     /**
@@ -364,6 +429,7 @@ class ChatDataManager private constructor(private val context: Context) {
             
             // 重新加载数据
             loadDataFromPrefs()
+            syncSearchIndex()
             
             Log.d(TAG, "数据重新加载完成")
         } catch (e: Exception) {
@@ -381,6 +447,10 @@ class ChatDataManager private constructor(private val context: Context) {
             chatSessions.forEach { (aiServiceType, sessions) ->
                 Log.d(TAG, "AI服务类型: ${aiServiceType.name}, 会话数: ${sessions.size}")
                 sessions.forEach { (sessionId, messages) ->
+                    if (messages == null) {
+                        Log.d(TAG, "  会话ID: $sessionId, 尚未读取")
+                        return@forEach
+                    }
                     Log.d(TAG, "  会话ID: $sessionId, 消息数: ${messages.size}")
                     messages.forEachIndexed { index, message ->
                         Log.d(TAG, "    消息${index + 1}: [${message.role}] ${message.content.take(30)}...")
@@ -398,8 +468,10 @@ class ChatDataManager private constructor(private val context: Context) {
      * 删除会话
      */
     fun deleteSession(sessionId: String, aiServiceType: AIServiceType = AIServiceType.DEEPSEEK) {
-        val aiSessions = chatSessions[aiServiceType]
-        aiSessions?.remove(sessionId)
+        val source = searchSource(aiServiceType, sessionId)
+        updateSearchIndex { searchIndex.removeSource(source, ::searchSourceOf) }
+        chatSessions[aiServiceType]?.remove(sessionId)
+        messageStore.deleteSession(aiServiceType.name, sessionId)
 
         if (currentSessionIds[aiServiceType] == sessionId) {
             currentSessionIds[aiServiceType] = null
@@ -417,8 +489,7 @@ class ChatDataManager private constructor(private val context: Context) {
      * 收藏消息
      */
     fun favoriteMessage(sessionId: String, messageId: String, aiServiceType: AIServiceType = AIServiceType.DEEPSEEK) {
-        val aiSessions = chatSessions[aiServiceType] ?: return
-        val messages = aiSessions[sessionId] ?: return
+        val messages = loadedMessages(aiServiceType, sessionId) ?: return
         val message = messages.find { it.messageId == messageId } ?: return
 
         // 确保收藏列表存在
@@ -458,41 +529,168 @@ class ChatDataManager private constructor(private val context: Context) {
     }
     
     /**
-     * 搜索会话
+     * 搜索会话：消息内容命中的会话按得分最高的消息排序，其后是只有标题命中的会话
      */
     fun searchSessions(query: String, aiServiceType: AIServiceType = AIServiceType.DEEPSEEK): List<ChatSession> {
-        if (query.isBlank()) return getAllSessions(aiServiceType)
+        val allSessions = getAllSessions(aiServiceType)
+        if (query.isBlank()) return allSessions
 
-        return getAllSessions(aiServiceType).filter { session ->
-            session.title.contains(query, ignoreCase = true) ||
-            session.messages.any { it.content.contains(query, ignoreCase = true) }
+        val sessionIds = LinkedHashSet<String>()
+        searchMessages(query).forEach { (serviceType, sessionId, _) ->
+            if (serviceType == aiServiceType) sessionIds.add(sessionId)
         }
+        allSessions.forEach { session ->
+            if (session.title.contains(query, ignoreCase = true)) sessionIds.add(session.id)
+        }
+
+        val sessionsById = allSessions.associateBy { it.id }
+        return sessionIds.mapNotNull { sessionsById[it] }
     }
-    
+
+    /**
+     * 全文搜索消息，按相关度排序
+     *
+     * 索引查不到时（标点、单词中间的片段等）或索引还在后台打开时，退回逐条子串匹配，
+     * 从最近的会话往前最多匹配 [MAX_SCAN_MESSAGES] 条消息。
+     *
+     * @return (AI引擎, 会话ID, 命中结果)，命中结果中的 messageId 可通过 [FullTextIndex.Hit.id] 解析
+     */
+    fun searchMessages(query: String, limit: Int = Int.MAX_VALUE): List<Triple<AIServiceType, String, FullTextIndex.Hit>> {
+        if (query.isBlank()) return emptyList()
+        openSearchIndexAsync()
+        val hits = searchIndex.search(query, limit).ifEmpty {
+            FullTextIndex.scan(query, scanDocuments().asIterable(), limit)
+        }
+        return hits.mapNotNull { hit ->
+            val parts = hit.id.split('/', limit = 3)
+            if (parts.size != 3) return@mapNotNull null
+            val serviceType = AIServiceType.values().find { it.name == parts[0] } ?: return@mapNotNull null
+            Triple(serviceType, parts[1], hit)
+        }
+    }
+
+    private fun searchDocumentId(aiServiceType: AIServiceType, sessionId: String, messageId: String): String {
+        return "${aiServiceType.name}/$sessionId/$messageId"
+    }
+
+    // 索引按会话分组：每个会话文件是一个来源，打开索引时只读取快照之后有变化的会话
+    private fun searchSource(aiServiceType: AIServiceType, sessionId: String): String = "${aiServiceType.name}/$sessionId"
+
+    private fun searchSourceOf(documentId: String): String = documentId.substringBeforeLast('/')
+
+    private fun searchSourceStamps(services: Collection<AIServiceType>): Map<String, Long> {
+        val stamps = HashMap<String, Long>()
+        services.forEach { serviceType ->
+            messageStore.sessionStamps(serviceType.name).forEach { (sessionId, stamp) ->
+                stamps[searchSource(serviceType, sessionId)] = stamp
+            }
+        }
+        return stamps
+    }
+
+    /**
+     * 直接从会话文件读取一个来源的索引文档，不经过消息缓存，可在后台线程调用
+     */
+    private fun storedSearchDocumentsOf(source: String): List<FullTextIndex.Document> {
+        val serviceType = AIServiceType.values().find { it.name == source.substringBefore('/') } ?: return emptyList()
+        val sessionId = source.substringAfter('/')
+        return messageStore.readSession(serviceType.name, sessionId).map { message ->
+            FullTextIndex.Document(searchDocumentId(serviceType, sessionId, message.messageId), listOf(message.content))
+        }
+    }
+
+    /**
+     * 逐条匹配用的消息文档，从最近创建的会话往前，最多 [MAX_SCAN_MESSAGES] 条
+     *
+     * 已读取的会话直接用内存中的消息；其他会话临时从文件读取，用完即丢，不放进消息缓存。
+     */
+    private fun scanDocuments(): Sequence<FullTextIndex.Document> = sequence {
+        var scanned = 0
+        for (serviceType in chatSessions.keys.toList()) {
+            for (sessionId in messageStore.sessionIds(serviceType.name).asReversed()) {
+                val messages = chatSessions[serviceType]?.get(sessionId)?.toList()
+                    ?: messageStore.readSession(serviceType.name, sessionId)
+                for (message in messages.asReversed()) {
+                    if (scanned++ >= MAX_SCAN_MESSAGES) return@sequence
+                    yield(FullTextIndex.Document(searchDocumentId(serviceType, sessionId, message.messageId), listOf(message.content)))
+                }
+            }
+        }
+    }
+
+    /**
+     * 在后台线程打开索引（没有快照时要读取全部会话重建），不阻塞调用线程
+     */
+    private fun openSearchIndexAsync() {
+        if (searchIndex.isOpen()) return
+        synchronized(pendingSearchUpdates) {
+            if (searchIndexOpening || searchIndex.isOpen()) return
+            searchIndexOpening = true
+        }
+        val services = chatSessions.keys.toList()
+        searchExecutor.execute {
+            try {
+                searchIndex.openSources(searchSourceStamps(services), ::searchSourceOf, ::storedSearchDocumentsOf)
+            } catch (e: Exception) {
+                Log.e(TAG, "打开消息索引失败", e)
+            }
+            synchronized(pendingSearchUpdates) {
+                pendingSearchUpdates.forEach { it() }
+                pendingSearchUpdates.clear()
+                searchIndexOpening = false
+            }
+        }
+    }
+
+    /**
+     * 修改索引：正在打开时排队，打开后执行；尚未打开时直接忽略，打开时会按版本戳核对
+     */
+    private fun updateSearchIndex(update: () -> Unit) {
+        synchronized(pendingSearchUpdates) {
+            if (searchIndexOpening) pendingSearchUpdates.add(update) else update()
+        }
+    }
+
+    /**
+     * 数据重新加载后，在后台修正索引中有变化的会话
+     */
+    private fun syncSearchIndex() {
+        val services = chatSessions.keys.toList()
+        // 与打开索引在同一个线程上，排在打开之后执行
+        searchExecutor.execute {
+            searchIndex.syncSources(searchSourceStamps(services), ::searchSourceOf, ::storedSearchDocumentsOf)
+        }
+    }
+
+    private fun indexMessage(aiServiceType: AIServiceType, sessionId: String, message: ChatMessage) {
+        openSearchIndexAsync()
+        val document = FullTextIndex.Document(searchDocumentId(aiServiceType, sessionId, message.messageId), listOf(message.content))
+        val source = searchSource(aiServiceType, sessionId)
+        val stamp = messageStore.sessionStamp(aiServiceType.name, sessionId)
+        updateSearchIndex {
+            if (stamp != null) {
+                searchIndex.put(document, source, stamp)
+            } else {
+                searchIndex.put(document)
+            }
+        }
+    }
+
     /**
      * 获取特定AI引擎的所有会话
      */
     fun getAllSessions(aiServiceType: AIServiceType = AIServiceType.DEEPSEEK): List<ChatSession> {
-        val aiSessions = chatSessions[aiServiceType] ?: return emptyList()
-
-        return aiSessions.map { (sessionId, messages) ->
-            ChatSession(
-                id = sessionId,
-                title = getSessionTitle(messages),
-                messages = messages.toList(),
-                createdAt = messages.firstOrNull()?.timestamp ?: System.currentTimeMillis(),
-                updatedAt = messages.lastOrNull()?.timestamp ?: System.currentTimeMillis()
-            )
-        }.sortedByDescending { it.updatedAt }
+        return sessionsOf(aiServiceType).sortedByDescending { it.updatedAt }
     }
 
     /**
      * 获取会话标题
      */
     private fun getSessionTitle(messages: List<ChatMessage>): String {
-        val firstUserMessage = messages.find { it.role == "user" }
-        return firstUserMessage?.content?.take(30) ?: "新对话"
+        return sessionTitle(messages.find { it.role == "user" }?.content)
     }
+
+    private fun sessionTitle(firstUserMessage: String?): String = firstUserMessage?.take(30) ?: "新对话"
     
     /**
      * 清空所有数据
@@ -501,6 +699,8 @@ class ChatDataManager private constructor(private val context: Context) {
         chatSessions.clear()
         favoriteMessages.clear()
         currentSessionIds.clear()
+        updateSearchIndex { searchIndex.clear() }
+        messageStore.clearAll()
         prefs.edit().clear().apply()
         Log.d(TAG, "清空所有聊天数据")
     }
@@ -509,7 +709,12 @@ class ChatDataManager private constructor(private val context: Context) {
      * 清空特定AI引擎的数据
      */
     fun clearDataForAIService(aiServiceType: AIServiceType) {
+        chatSessions[aiServiceType]?.keys?.toList()?.forEach { sessionId ->
+            val source = searchSource(aiServiceType, sessionId)
+            updateSearchIndex { searchIndex.removeSource(source, ::searchSourceOf) }
+        }
         chatSessions.remove(aiServiceType)
+        messageStore.clearService(aiServiceType.name)
         favoriteMessages.remove(aiServiceType)
         currentSessionIds.remove(aiServiceType)
         saveDataForAIService(aiServiceType)
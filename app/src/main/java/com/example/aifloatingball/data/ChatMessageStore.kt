@@ -0,0 +1,302 @@
+package com.example.aifloatingball.data
+
+import com.google.gson.Gson
+import java.io.BufferedWriter
+import java.io.File
+import java.io.FileOutputStream
+import java.io.OutputStreamWriter
+import java.io.RandomAccessFile
+import java.net.URLDecoder
+import java.net.URLEncoder
+
+/**
+ * 聊天消息的分段追加存储
+ *
+ * 每个AI引擎一个目录，每个会话一个日志文件。文件第一行是以 `#` 开头的会话头（记录创建时间），
+ * 其后每行是一条消息的JSON。添加消息只在对应会话文件末尾追加一行，耗时与已有消息数量无关；
+ * 会话内容只在第一次被读取时才解析，会话列表只需要读 [readHeader] 返回的会话头。
+ *
+ * 不依赖 Android API，可直接在 JVM 单元测试中使用，出错时通过返回值告知调用方。
+ */
+class ChatMessageStore(private val rootDir: File) {
+
+    companion object {
+        private const val SESSION_FILE_SUFFIX = ".log"
+        private const val HEADER_PREFIX = "#"
+        // 从文件末尾找最后一条消息时每次多读的字节数
+        private const val TAIL_CHUNK_BYTES = 8 * 1024
+    }
+
+    private class Header(val createdAt: Long)
+
+    /**
+     * 会话列表需要的信息，不必读取全部消息
+     *
+     * @param firstUserMessage 第一条用户消息的内容，用于生成标题
+     * @param updatedAt 最后一条消息的时间，没有消息时等于创建时间
+     */
+    data class SessionHeader(
+        val sessionId: String,
+        val createdAt: Long,
+        val updatedAt: Long,
+        val firstUserMessage: String?
+    )
+
+    private val gson = Gson()
+    private val lock = Any()
+
+    /**
+     * 返回某个AI引擎下的所有会话ID（按会话创建先后排序），只读取每个文件的会话头
+     */
+    fun sessionIds(service: String): List<String> = synchronized(lock) {
+        val files = sessionFiles(service)
+        files.map { it to createdAt(it) }
+            .sortedWith(compareBy<Pair<File, Long>> { it.second }.thenBy { it.first.name })
+            .map { decode(it.first.name.removeSuffix(SESSION_FILE_SUFFIX)) }
+    }
+
+    /**
+     * 读取会话头：创建时间、第一条用户消息和最后一条消息的时间；会话不存在时返回 null
+     *
+     * 只读取文件开头到第一条用户消息为止的部分和文件末尾。
+     */
+    fun readHeader(service: String, sessionId: String): SessionHeader? = synchronized(lock) {
+        val file = sessionFile(service, sessionId)
+        if (!file.exists()) return null
+        var createdAt = -1L
+        var firstTimestamp = -1L
+        var firstUserMessage: String? = null
+        file.bufferedReader(Charsets.UTF_8).useLines { lines ->
+            for (line in lines) {
+                if (line.isBlank()) continue
+                if (line.startsWith(HEADER_PREFIX)) {
+                    parseHeader(line)?.let { createdAt = it.createdAt }
+                    continue
+                }
+                val message = parseMessage(line) ?: continue
+                if (firstTimestamp < 0) firstTimestamp = message.timestamp
+                if (message.role == "user") {
+                    firstUserMessage = message.content
+                    break
+                }
+            }
+        }
+        if (createdAt < 0) createdAt = if (firstTimestamp >= 0) firstTimestamp else file.lastModified()
+        val updatedAt = lastMessage(file)?.timestamp ?: createdAt
+        SessionHeader(sessionId, createdAt, updatedAt, firstUserMessage)
+    }
+
+    /**
+     * 某个AI引擎下每个会话文件的版本戳（由文件长度和修改时间得出），内容变化后版本戳随之变化
+     */
+    fun sessionStamps(service: String): Map<String, Long> = synchronized(lock) {
+        sessionFiles(service).associate { decode(it.name.removeSuffix(SESSION_FILE_SUFFIX)) to stampOf(it) }
+    }
+
+    /**
+     * 单个会话文件的版本戳，会话不存在时返回 null
+     */
+    fun sessionStamp(service: String, sessionId: String): Long? = synchronized(lock) {
+        val file = sessionFile(service, sessionId)
+        if (file.exists()) stampOf(file) else null
+    }
+
+    fun hasSession(service: String, sessionId: String): Boolean = synchronized(lock) {
+        sessionFile(service, sessionId).exists()
+    }
+
+    /**
+     * 读取会话的全部消息，会话不存在时返回空列表
+     *
+     * 末尾不完整的行（进程在写入过程中被杀）会被跳过。
+     */
+    fun readSession(service: String, sessionId: String): MutableList<ChatDataManager.ChatMessage> = synchronized(lock) {
+        val file = sessionFile(service, sessionId)
+        val messages = mutableListOf<ChatDataManager.ChatMessage>()
+        if (!file.exists()) return messages
+        file.bufferedReader(Charsets.UTF_8).useLines { lines ->
+            lines.forEach { line ->
+                if (line.isBlank() || line.startsWith(HEADER_PREFIX)) return@forEach
+                parseMessage(line)?.let { messages.add(it) }
+            }
+        }
+        messages
+    }
+
+    /**
+     * 创建空会话，已存在时不做任何修改
+     */
+    fun createSession(service: String, sessionId: String, createdAt: Long = System.currentTimeMillis()): Boolean = synchronized(lock) {
+        try {
+            val file = sessionFile(service, sessionId)
+            file.parentFile?.mkdirs()
+            if (file.exists()) return true
+            FileOutputStream(file).use { output ->
+                val writer = BufferedWriter(OutputStreamWriter(output, Charsets.UTF_8))
+                writeHeader(writer, createdAt)
+                writer.flush()
+            }
+            true
+        } catch (e: Exception) {
+            false
+        }
+    }
+
+    /**
+     * 在会话末尾追加一条消息，会话不存在时自动创建（创建时间取这条消息的时间）
+     */
+    fun append(service: String, sessionId: String, message: ChatDataManager.ChatMessage): Boolean = synchronized(lock) {
+        try {
+            val file = sessionFile(service, sessionId)
+            file.parentFile?.mkdirs()
+            val isNew = !file.exists() || file.length() == 0L
+            FileOutputStream(file, true).use { output ->
+                val writer = BufferedWriter(OutputStreamWriter(output, Charsets.UTF_8))
+                if (isNew) writeHeader(writer, message.timestamp)
+                writer.write(gson.toJson(message))
+                writer.newLine()
+                writer.flush()
+            }
+            true
+        } catch (e: Exception) {
+            false
+        }
+    }
+
+    /**
+     * 用给定消息整体重写会话（数据迁移时使用），先写临时文件再替换；创建时间取第一条消息的时间
+     */
+    fun writeSession(service: String, sessionId: String, messages: List<ChatDataManager.ChatMessage>): Boolean = synchronized(lock) {
+        val file = sessionFile(service, sessionId)
+        val tempFile = File(file.parentFile, file.name + ".tmp")
+        try {
+            file.parentFile?.mkdirs()
+            FileOutputStream(tempFile).use { output ->
+                val writer = BufferedWriter(OutputStreamWriter(output, Charsets.UTF_8))
+                writeHeader(writer, messages.firstOrNull()?.timestamp ?: System.currentTimeMillis())
+                messages.forEach { message ->
+                    writer.write(gson.toJson(message))
+                    writer.newLine()
+                }
+                writer.flush()
+                output.fd.sync()
+            }
+            if (!tempFile.renameTo(file)) {
+                file.delete()
+                if (!tempFile.renameTo(file)) return false
+            }
+            true
+        } catch (e: Exception) {
+            tempFile.delete()
+            false
+        }
+    }
+
+    fun deleteSession(service: String, sessionId: String): Boolean = synchronized(lock) {
+        val file = sessionFile(service, sessionId)
+        !file.exists() || file.delete()
+    }
+
+    /**
+     * 删除某个AI引擎下的全部会话
+     */
+    fun clearService(service: String): Boolean = synchronized(lock) {
+        serviceDir(service).deleteRecursively()
+    }
+
+    /**
+     * 删除全部会话
+     */
+    fun clearAll(): Boolean = synchronized(lock) {
+        rootDir.deleteRecursively()
+    }
+
+    private fun serviceDir(service: String): File = File(rootDir, encode(service))
+
+    private fun sessionFiles(service: String): List<File> {
+        return serviceDir(service).listFiles { file ->
+            file.isFile && file.name.endsWith(SESSION_FILE_SUFFIX)
+        }?.toList() ?: emptyList()
+    }
+
+    private fun stampOf(file: File): Long = file.length() * 31 + file.lastModified()
+
+    private fun writeHeader(writer: BufferedWriter, createdAt: Long) {
+        writer.write(HEADER_PREFIX)
+        writer.write(gson.toJson(Header(createdAt)))
+        writer.newLine()
+    }
+
+    private fun parseHeader(line: String): Header? {
+        return try {
+            gson.fromJson(line.substring(HEADER_PREFIX.length), Header::class.java)
+        } catch (e: Exception) {
+            null
+        }
+    }
+
+    private fun parseMessage(line: String): ChatDataManager.ChatMessage? {
+        return try {
+            gson.fromJson(line, ChatDataManager.ChatMessage::class.java)
+        } catch (e: Exception) {
+            // 半行记录，跳过
+            null
+        }
+    }
+
+    /**
+     * 会话创建时间：会话头中的时间；旧版本没有会话头的文件取第一条消息的时间，空文件取修改时间
+     */
+    private fun createdAt(file: File): Long {
+        try {
+            file.bufferedReader(Charsets.UTF_8).use { reader ->
+                while (true) {
+                    val line = reader.readLine() ?: break
+                    if (line.isBlank()) continue
+                    if (line.startsWith(HEADER_PREFIX)) {
+                        parseHeader(line)?.let { return it.createdAt }
+                        continue
+                    }
+                    parseMessage(line)?.let { return it.timestamp }
+                }
+            }
+        } catch (e: Exception) {
+            // 读取失败时按修改时间排序
+        }
+        return file.lastModified()
+    }
+
+    /**
+     * 从文件末尾向前读取，返回最后一条完整的消息
+     */
+    private fun lastMessage(file: File): ChatDataManager.ChatMessage? {
+        RandomAccessFile(file, "r").use { raf ->
+            val length = raf.length()
+            var window = TAIL_CHUNK_BYTES.toLong()
+            while (true) {
+                val start = (length - window).coerceAtLeast(0L)
+                val bytes = ByteArray((length - start).toInt())
+                raf.seek(start)
+                raf.readFully(bytes)
+                val lines = String(bytes, Charsets.UTF_8).split('\n')
+                // 窗口不是从文件开头开始时，第一段可能是半行
+                val first = if (start == 0L) 0 else 1
+                for (i in lines.size - 1 downTo first) {
+                    val line = lines[i].trimEnd('\r')
+                    if (line.isBlank() || line.startsWith(HEADER_PREFIX)) continue
+                    parseMessage(line)?.let { return it }
+                }
+                if (start == 0L) return null
+                window *= 4
+            }
+        }
+    }
+
+    private fun sessionFile(service: String, sessionId: String): File =
+        File(serviceDir(service), encode(sessionId) + SESSION_FILE_SUFFIX)
+
+    // 会话ID由调用方传入，编码后再作为文件名，避免出现路径分隔符等字符
+    private fun encode(name: String): String = URLEncoder.encode(name, "UTF-8")
+
+    private fun decode(name: String): String = URLDecoder.decode(name, "UTF-8")
+}
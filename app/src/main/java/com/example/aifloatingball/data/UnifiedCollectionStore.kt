@@ -0,0 +1,372 @@
+package com.example.aifloatingball.data
+
+import android.util.Log
+import com.example.aifloatingball.model.CollectionType
+import com.example.aifloatingball.model.UnifiedCollectionItem
+import com.example.aifloatingball.search.MinHashLshIndex
+import com.google.gson.Gson
+import java.io.BufferedWriter
+import java.io.File
+import java.io.FileOutputStream
+import java.io.OutputStreamWriter
+import java.util.TreeMap
+
+/**
+ * 统一收藏的存储引擎
+ *
+ * 数据以追加日志（每行一条JSON记录）的形式保存在文件中，启动时只解析一次，
+ * 之后所有读取都走内存中的 id→收藏项 映射以及按类型、标签、时间建立的二级索引。
+ * 单条增删改只追加一行记录，日志中的过期记录超过一定比例时再整体压缩重写。
+ * 每条记录同时保存标题和内容的 MinHash 签名，启动时直接恢复内容相似度索引。
+ */
+class UnifiedCollectionStore(private val logFile: File) {
+
+    companion object {
+        private const val TAG = "UnifiedCollectionStore"
+        private const val OP_PUT = "put"
+        private const val OP_DELETE = "del"
+
+        // 日志记录数至少达到该值才考虑压缩，避免小数据量时频繁重写
+        private const val COMPACT_MIN_RECORDS = 256
+    }
+
+    /**
+     * 日志中的一条记录
+     */
+    private data class LogRecord(
+        val op: String,
+        val id: String,
+        val item: UnifiedCollectionItem? = null,
+        val sig: IntArray? = null
+    )
+
+    /**
+     * 数据变更监听，用于维护存储之外的派生索引（如全文索引）
+     */
+    interface ChangeListener {
+        fun onItemsPut(items: Collection<UnifiedCollectionItem>)
+        fun onItemsRemoved(ids: Collection<String>)
+        fun onItemsReplaced(items: Collection<UnifiedCollectionItem>)
+    }
+
+    private val gson = Gson()
+    private val lock = Any()
+
+    @Volatile
+    var changeListener: ChangeListener? = null
+
+    // 主表：保持插入顺序，与原先列表存储的顺序一致
+    private val items = LinkedHashMap<String, UnifiedCollectionItem>()
+    // 插入序号，用于让索引查询结果保持与主表一致的顺序
+    private val sequences = HashMap<String, Long>()
+    private var nextSequence = 0L
+
+    // 二级索引
+    private val typeIndex = HashMap<CollectionType?, LinkedHashSet<String>>()
+    private val tagIndex = HashMap<String, LinkedHashSet<String>>()
+    private val timeIndex = TreeMap<Long, LinkedHashSet<String>>()
+    // 反向关联索引：targetId → 指向它的收藏项ID
+    private val incomingRelations = HashMap<String, LinkedHashSet<String>>()
+    // 内容相似度索引（MinHash 签名 + LSH 分桶）
+    private val similarityIndex = MinHashLshIndex()
+
+    // 日志中的记录总数（包含已被覆盖的旧记录）
+    private var logRecordCount = 0
+
+    init {
+        load()
+    }
+
+    /**
+     * 收藏项数量
+     */
+    val size: Int
+        get() = synchronized(lock) { items.size }
+
+    fun isEmpty(): Boolean = size == 0
+
+    /**
+     * 按插入顺序返回所有收藏项的快照
+     */
+    fun getAll(): List<UnifiedCollectionItem> = synchronized(lock) {
+        ArrayList(items.values)
+    }
+
+    fun get(id: String): UnifiedCollectionItem? = synchronized(lock) {
+        items[id]
+    }
+
+    fun contains(id: String): Boolean = synchronized(lock) {
+        items.containsKey(id)
+    }
+
+    fun getByType(type: CollectionType): List<UnifiedCollectionItem> = synchronized(lock) {
+        resolve(typeIndex[type].orEmpty())
+    }
+
+    /**
+     * 返回带有任一指定标签的收藏项
+     */
+    fun getByAnyTag(tags: Collection<String>): List<UnifiedCollectionItem> = synchronized(lock) {
+        val ids = LinkedHashSet<String>()
+        tags.forEach { tag -> tagIndex[tag]?.let { ids.addAll(it) } }
+        resolve(ids)
+    }
+
+    /**
+     * 返回收藏时间在 [startTime, endTime] 区间内的收藏项
+     */
+    fun getByCollectedTime(startTime: Long, endTime: Long): List<UnifiedCollectionItem> = synchronized(lock) {
+        if (startTime > endTime) return emptyList()
+        val ids = LinkedHashSet<String>()
+        timeIndex.subMap(startTime, true, endTime, true).values.forEach { ids.addAll(it) }
+        resolve(ids)
+    }
+
+    /**
+     * 返回关联关系中指向指定ID的收藏项
+     */
+    fun getItemsRelatedTo(targetId: String): List<UnifiedCollectionItem> = synchronized(lock) {
+        resolve(incomingRelations[targetId].orEmpty())
+    }
+
+    /**
+     * 所有标签（按字典序）
+     */
+    fun getAllTags(): List<String> = synchronized(lock) {
+        tagIndex.keys.sorted()
+    }
+
+    /**
+     * 返回与指定收藏项内容相似度不低于 [threshold] 的收藏项ID及相似度，按相似度降序
+     */
+    fun findSimilar(id: String, threshold: Float): List<Pair<String, Float>> =
+        similarityIndex.findSimilar(id, threshold)
+
+    /**
+     * 把所有收藏项按内容相似度聚类，只返回包含两个以上收藏项的类
+     */
+    fun clusterBySimilarity(threshold: Float): List<MinHashLshIndex.Cluster> =
+        similarityIndex.cluster(threshold)
+
+    /**
+     * 插入或更新单条收藏项
+     */
+    fun put(item: UnifiedCollectionItem): Boolean = putAll(listOf(item))
+
+    /**
+     * 批量插入或更新，只追加对应的记录并同步一次磁盘
+     */
+    fun putAll(newItems: Collection<UnifiedCollectionItem>): Boolean {
+        if (newItems.isEmpty()) return true
+        synchronized(lock) {
+            val signatures = newItems.map { signatureFor(it) }
+            val written = appendRecords(newItems.mapIndexed { i, item -> LogRecord(OP_PUT, item.id, item, signatures[i]) })
+            if (!written) return false
+            newItems.forEachIndexed { i, item -> applyPut(item, signatures[i]) }
+            compactIfNeeded()
+        }
+        changeListener?.onItemsPut(newItems)
+        return true
+    }
+
+    /**
+     * 删除单条收藏项
+     */
+    fun remove(id: String): Boolean = removeAll(listOf(id)) > 0
+
+    /**
+     * 批量删除，返回实际删除的数量
+     */
+    fun removeAll(ids: Collection<String>): Int {
+        val removed = synchronized(lock) {
+            val existing = ids.filter { items.containsKey(it) }.distinct()
+            if (existing.isEmpty()) return 0
+            if (!appendRecords(existing.map { LogRecord(OP_DELETE, it) })) return 0
+            existing.forEach { applyDelete(it) }
+            compactIfNeeded()
+            existing
+        }
+        changeListener?.onItemsRemoved(removed)
+        return removed.size
+    }
+
+    /**
+     * 用给定列表整体替换现有数据（覆盖导入、迁移时使用）
+     */
+    fun replaceAll(newItems: List<UnifiedCollectionItem>): Boolean {
+        val written = synchronized(lock) {
+            clearMemory()
+            newItems.forEach { applyPut(it, signatureFor(it)) }
+            rewriteLog()
+        }
+        changeListener?.onItemsReplaced(newItems)
+        return written
+    }
+
+    // ==================== 内部实现 ====================
+
+    private fun resolve(ids: Collection<String>): List<UnifiedCollectionItem> {
+        if (ids.isEmpty()) return emptyList()
+        return ids.sortedBy { sequences[it] ?: Long.MAX_VALUE }.mapNotNull { items[it] }
+    }
+
+    private fun load() {
+        synchronized(lock) {
+            if (!logFile.exists()) return
+            val startTime = System.currentTimeMillis()
+            var corrupted = 0
+            try {
+                logFile.bufferedReader(Charsets.UTF_8).useLines { lines ->
+                    lines.forEach { line ->
+                        if (line.isBlank()) return@forEach
+                        try {
+                            val record = gson.fromJson(line, LogRecord::class.java)
+                            when (record?.op) {
+                                // 旧版本写入的记录没有签名，加载时补算
+                                OP_PUT -> record.item?.let { applyPut(it, record.sig ?: signatureFor(it)) }
+                                OP_DELETE -> applyDelete(record.id)
+                            }
+                            logRecordCount++
+                        } catch (e: Exception) {
+                            // 通常是进程在写入过程中被杀导致的半行记录，跳过即可
+                            corrupted++
+                        }
+                    }
+                }
+            } catch (e: Exception) {
+                Log.e(TAG, "读取收藏日志失败", e)
+            }
+            Log.d(TAG, "加载收藏 ${items.size} 条，日志记录 $logRecordCount 条，损坏 $corrupted 条，耗时 ${System.currentTimeMillis() - startTime}ms")
+            if (corrupted > 0) {
+                rewriteLog()
+            }
+        }
+    }
+
+    private fun appendRecords(records: List<LogRecord>): Boolean {
+        return try {
+            logFile.parentFile?.mkdirs()
+            FileOutputStream(logFile, true).use { output ->
+                val writer = BufferedWriter(OutputStreamWriter(output, Charsets.UTF_8))
+                records.forEach { record ->
+                    writer.write(gson.toJson(record))
+                    writer.newLine()
+                }
+                writer.flush()
+                // 与原先 commit() 的语义一致：返回时数据已落盘
+                output.fd.sync()
+            }
+            logRecordCount += records.size
+            true
+        } catch (e: Exception) {
+            Log.e(TAG, "追加收藏日志失败", e)
+            false
+        }
+    }
+
+    private fun compactIfNeeded() {
+        if (logRecordCount >= COMPACT_MIN_RECORDS && logRecordCount > items.size * 2) {
+            rewriteLog()
+        }
+    }
+
+    /**
+     * 把当前内存中的数据写成新的日志文件并原子替换旧文件
+     */
+    private fun rewriteLog(): Boolean {
+        val tempFile = File(logFile.parentFile, logFile.name + ".tmp")
+        return try {
+            logFile.parentFile?.mkdirs()
+            FileOutputStream(tempFile).use { output ->
+                val writer = BufferedWriter(OutputStreamWriter(output, Charsets.UTF_8))
+                items.values.forEach { item ->
+                    writer.write(gson.toJson(LogRecord(OP_PUT, item.id, item, similarityIndex.getSignature(item.id))))
+                    writer.newLine()
+                }
+                writer.flush()
+                output.fd.sync()
+            }
+            if (!tempFile.renameTo(logFile)) {
+                logFile.delete()
+                if (!tempFile.renameTo(logFile)) {
+                    Log.e(TAG, "替换收藏日志失败")
+                    return false
+                }
+            }
+            logRecordCount = items.size
+            Log.d(TAG, "收藏日志已压缩，当前 ${items.size} 条")
+            true
+        } catch (e: Exception) {
+            Log.e(TAG, "重写收藏日志失败", e)
+            tempFile.delete()
+            false
+        }
+    }
+
+    private fun clearMemory() {
+        items.clear()
+        sequences.clear()
+        typeIndex.clear()
+        tagIndex.clear()
+        timeIndex.clear()
+        incomingRelations.clear()
+        similarityIndex.clear()
+    }
+
+    /**
+     * 计算收藏项的内容签名；标题和内容都没变时沿用已有签名
+     */
+    private fun signatureFor(item: UnifiedCollectionItem): IntArray? {
+        val old = items[item.id]
+        if (old != null && old.title == item.title && old.content == item.content) {
+            similarityIndex.getSignature(item.id)?.let { return it }
+        }
+        return MinHashLshIndex.signatureOf(item.title + " " + item.content)
+    }
+
+    private fun applyPut(item: UnifiedCollectionItem, signature: IntArray?) {
+        val old = items[item.id]
+        if (old != null) {
+            unindex(old)
+        } else {
+            sequences[item.id] = nextSequence++
+        }
+        items[item.id] = item
+        index(item)
+        similarityIndex.put(item.id, signature)
+    }
+
+    private fun applyDelete(id: String) {
+        val old = items.remove(id) ?: return
+        sequences.remove(id)
+        unindex(old)
+        similarityIndex.remove(id)
+    }
+
+    private fun index(item: UnifiedCollectionItem) {
+        typeIndex.getOrPut(item.collectionType) { LinkedHashSet() }.add(item.id)
+        item.customTags.orEmpty().forEach { tag ->
+            tagIndex.getOrPut(tag) { LinkedHashSet() }.add(item.id)
+        }
+        timeIndex.getOrPut(item.collectedTime) { LinkedHashSet() }.add(item.id)
+        item.relations.orEmpty().forEach { relation ->
+            incomingRelations.getOrPut(relation.targetId) { LinkedHashSet() }.add(item.id)
+        }
+    }
+
+    private fun unindex(item: UnifiedCollectionItem) {
+        removeFromIndex(typeIndex, item.collectionType, item.id)
+        item.customTags.orEmpty().forEach { removeFromIndex(tagIndex, it, item.id) }
+        removeFromIndex(timeIndex, item.collectedTime, item.id)
+        item.relations.orEmpty().forEach { removeFromIndex(incomingRelations, it.targetId, item.id) }
+    }
+
+    private fun <K> removeFromIndex(index: MutableMap<K, LinkedHashSet<String>>, key: K, id: String) {
+        val ids = index[key] ?: return
+        ids.remove(id)
+        if (ids.isEmpty()) {
+            index.remove(key)
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.example.aifloatingball.database
+
+import androidx.room.Dao
+import androidx.room.Insert
+import androidx.room.OnConflictStrategy
+import androidx.room.Query
+import androidx.room.Transaction
+import androidx.room.Update
+import com.example.aifloatingball.viewer.Bookmark
+import com.example.aifloatingball.viewer.Highlight
+import com.example.aifloatingball.viewer.Note
+import com.example.aifloatingball.viewer.ReadingProgress
+
+/**
+ * 阅读器数据访问
+ *
+ * 所有查询都按 filePath（以及页码）走索引，翻页时只读取当前页的数据。
+ */
+@Dao
+interface ReaderDao {
+
+    // ==================== 书签 ====================
+
+    @Query("SELECT * FROM reader_bookmarks WHERE filePath = :filePath ORDER BY pageIndex, position")
+    fun getBookmarks(filePath: String): List<Bookmark>
+
+    @Query("SELECT * FROM reader_bookmarks")
+    fun getAllBookmarks(): List<Bookmark>
+
+    @Query("SELECT EXISTS(SELECT 1 FROM reader_bookmarks WHERE filePath = :filePath AND pageIndex = :pageIndex AND position = :position)")
+    fun hasBookmark(filePath: String, pageIndex: Int, position: Int): Boolean
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    fun insertBookmark(bookmark: Bookmark)
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    fun insertBookmarks(bookmarks: List<Bookmark>)
+
+    @Query("DELETE FROM reader_bookmarks WHERE id = :id")
+    fun deleteBookmark(id: String)
+
+    // ==================== 划线 ====================
+
+    @Query("SELECT * FROM reader_highlights WHERE filePath = :filePath ORDER BY pageIndex, startPosition")
+    fun getHighlights(filePath: String): List<Highlight>
+
+    @Query("SELECT * FROM reader_highlights")
+    fun getAllHighlights(): List<Highlight>
+
+    /**
+     * 某一页上与 [start, end) 有交集的划线
+     */
+    @Query(
+        "SELECT * FROM reader_highlights WHERE filePath = :filePath AND pageIndex = :pageIndex " +
+            "AND startPosition < :end AND endPosition > :start ORDER BY startPosition"
+    )
+    fun getHighlightsInRange(filePath: String, pageIndex: Int, start: Int, end: Int): List<Highlight>
+
+    /**
+     * 已存在相同ID的划线时忽略
+     */
+    @Insert(onConflict = OnConflictStrategy.IGNORE)
+    fun insertHighlight(highlight: Highlight): Long
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    fun insertHighlights(highlights: List<Highlight>)
+
+    @Query("DELETE FROM reader_highlights WHERE id = :id")
+    fun deleteHighlight(id: String)
+
+    // ==================== 笔记 ====================
+
+    @Query("SELECT * FROM reader_notes WHERE filePath = :filePath ORDER BY pageIndex, position")
+    fun getNotes(filePath: String): List<Note>
+
+    @Query("SELECT * FROM reader_notes")
+    fun getAllNotes(): List<Note>
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    fun insertNote(note: Note)
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    fun insertNotes(notes: List<Note>)
+
+    @Update
+    fun updateNote(note: Note): Int
+
+    @Query("DELETE FROM reader_notes WHERE id = :id")
+    fun deleteNote(id: String)
+
+    // ==================== 阅读进度 ====================
+
+    @Query("SELECT * FROM reader_progress WHERE filePath = :filePath")
+    fun getProgress(filePath: String): ReadingProgress?
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    fun saveProgress(progress: ReadingProgress)
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    fun saveProgressList(progress: List<ReadingProgress>)
+
+    /**
+     * 一次写入从 SharedPreferences 迁移来的全部数据
+     */
+    @Transaction
+    fun importAll(
+        bookmarks: List<Bookmark>,
+        highlights: List<Highlight>,
+        notes: List<Note>,
+        progress: List<ReadingProgress>
+    ) {
+        insertBookmarks(bookmarks)
+        insertHighlights(highlights)
+        insertNotes(notes)
+        saveProgressList(progress)
+    }
+}
@@ -0,0 +1,44 @@
+package com.example.aifloatingball.database
+
+import android.content.Context
+import androidx.room.Database
+import androidx.room.Room
+import androidx.room.RoomDatabase
+import com.example.aifloatingball.viewer.Bookmark
+import com.example.aifloatingball.viewer.Highlight
+import com.example.aifloatingball.viewer.Note
+import com.example.aifloatingball.viewer.ReadingProgress
+
+/**
+ * 阅读器数据库：书签、划线、笔记和阅读进度
+ *
+ * 与 [AppDatabase] 分开，避免 AppDatabase 的破坏性迁移清掉阅读数据。
+ * 阅读器在主线程按页读取少量数据（都有索引），因此允许主线程查询。
+ */
+@Database(
+    entities = [Bookmark::class, Highlight::class, Note::class, ReadingProgress::class],
+    version = 1,
+    exportSchema = false
+)
+abstract class ReaderDatabase : RoomDatabase() {
+
+    abstract fun readerDao(): ReaderDao
+
+    companion object {
+        @Volatile
+        private var INSTANCE: ReaderDatabase? = null
+
+        fun getDatabase(context: Context): ReaderDatabase {
+            return INSTANCE ?: synchronized(this) {
+                INSTANCE ?: Room.databaseBuilder(
+                    context.applicationContext,
+                    ReaderDatabase::class.java,
+                    "reader_database"
+                )
+                .allowMainThreadQueries()
+                .build()
+                .also { INSTANCE = it }
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.example.aifloatingball.debug
+
+import android.app.Activity
+import android.graphics.Typeface
+import android.os.Bundle
+import android.widget.Button
+import android.widget.LinearLayout
+import android.widget.ScrollView
+import android.widget.TextView
+import com.example.aifloatingball.SettingsManager
+import com.example.aifloatingball.manager.ConversationContextBuilder
+import java.text.SimpleDateFormat
+import java.util.Date
+import java.util.Locale
+
+/**
+ * 查看最近几次AI请求实际发送了哪些历史：每轮是保留原文、截断还是并入摘要，以及估算的token数
+ */
+class ContextInspectorActivity : Activity() {
+
+    private lateinit var reportText: TextView
+    private val timeFormat = SimpleDateFormat("HH:mm:ss", Locale.getDefault())
+
+    override fun onCreate(savedInstanceState: Bundle?) {
+        super.onCreate(savedInstanceState)
+
+        val layout = LinearLayout(this).apply {
+            orientation = LinearLayout.VERTICAL
+            setPadding(32, 32, 32, 32)
+        }
+
+        val budgetText = TextView(this).apply {
+            text = "当前预算：${SettingsManager.getInstance(this@ContextInspectorActivity).getContextTokenBudget()} tokens"
+            textSize = 16f
+            setPadding(0, 0, 0, 16)
+        }
+        layout.addView(budgetText)
+
+        val refreshButton = Button(this).apply {
+            text = "刷新"
+            setOnClickListener { refresh() }
+        }
+        layout.addView(refreshButton)
+
+        reportText = TextView(this).apply {
+            textSize = 12f
+            typeface = Typeface.MONOSPACE
+            setTextIsSelectable(true)
+            setPadding(0, 16, 0, 0)
+        }
+        val scrollView = ScrollView(this).apply {
+            addView(reportText)
+        }
+        layout.addView(scrollView, LinearLayout.LayoutParams(
+            LinearLayout.LayoutParams.MATCH_PARENT, 0, 1f
+        ))
+
+        setContentView(layout)
+        refresh()
+    }
+
+    override fun onResume() {
+        super.onResume()
+        refresh()
+    }
+
+    private fun refresh() {
+        val reports = ConversationContextBuilder.recentReports()
+        reportText.text = if (reports.isEmpty()) {
+            "还没有发送过AI请求"
+        } else {
+            reports.joinToString("\n") { report ->
+                timeFormat.format(Date(report.timestamp)) + " " + report.describe()
+            }
+        }
+    }
+}
@@ -3,6 +3,8 @@ package com.example.aifloatingball.manager
 import android.content.Context
 import android.util.Log
 import com.example.aifloatingball.SettingsManager
+import com.example.aifloatingball.network.AIProviderAdapter
+import com.example.aifloatingball.network.AIStreamingEngine
 import kotlinx.coroutines.*
 import org.json.JSONArray
 import org.json.JSONObject
@@ -11,12 +13,6 @@ import java.io.InputStreamReader
 import java.net.HttpURLConnection
 import java.net.URL
 import java.nio.charset.StandardCharsets
-import javax.net.ssl.HttpsURLConnection
-import javax.net.ssl.SSLContext
-import javax.net.ssl.TrustManager
-import javax.net.ssl.X509TrustManager
-import javax.net.ssl.HostnameVerifier
-import java.security.cert.X509Certificate
 
 // AI服务类型
 enum class AIServiceType {
@@ -41,22 +37,10 @@ class AIApiManager(private val context: Context) {
     
     private val settingsManager = SettingsManager.getInstance(context)
     private val scope = CoroutineScope(Dispatchers.IO + Job())
+    private val streamingEngine = AIStreamingEngine()
     
     companion object {
         private const val TAG = "AIApiManager"
-        
-        // 创建信任所有证书的SSL上下文
-        private fun createTrustAllSSLContext(): SSLContext {
-            val trustAllCerts = arrayOf<TrustManager>(object : X509TrustManager {
-                override fun checkClientTrusted(chain: Array<out X509Certificate>?, authType: String?) {}
-                override fun checkServerTrusted(chain: Array<out X509Certificate>?, authType: String?) {}
-                override fun getAcceptedIssuers(): Array<X509Certificate> = arrayOf()
-            })
-            
-            val sslContext = SSLContext.getInstance("SSL")
-            sslContext.init(null, trustAllCerts, java.security.SecureRandom())
-            return sslContext
-        }
     }
     
     /**
@@ -269,587 +253,66 @@ class AIApiManager(private val context: Context) {
         Log.d(TAG, "API配置获取成功: ${config.name}, URL: ${config.apiUrl}")
         
         scope.launch {
-            try {
-                when (config.type) {
-                    AIServiceType.CHATGPT -> sendToChatGPT(config, message, conversationHistory, callback)
-                    AIServiceType.CLAUDE -> sendToClaude(config, message, conversationHistory, callback)
-                    AIServiceType.GEMINI -> sendToGemini(config, message, conversationHistory, callback)
-                    AIServiceType.WENXIN -> sendToWenxin(config, message, conversationHistory, callback)
-                    AIServiceType.DEEPSEEK -> sendToDeepSeek(config, message, conversationHistory, callback)
-                    AIServiceType.QIANWEN -> sendToQianwen(config, message, conversationHistory, callback)
-                    AIServiceType.XINGHUO -> sendToXinghuo(config, message, conversationHistory, callback)
-                    AIServiceType.KIMI -> sendToKimi(config, message, conversationHistory, callback)
-                    AIServiceType.ZHIPU_AI -> {
-                        Log.d(TAG, "调用智谱AI API")
-                        sendToZhupu(config, message, conversationHistory, callback)
-                    }
-                    AIServiceType.DOUBAO -> {
-                        Log.d(TAG, "调用豆包Pro API")
-                        sendToDoubao(config, message, conversationHistory, callback)
-                    }
-                    AIServiceType.TEMP_SERVICE -> {
-                        Log.d(TAG, "调用临时专线API")
-                        sendToTempService(config, message, conversationHistory, callback)
-                    }
-                }
-            } catch (e: Exception) {
-                Log.e(TAG, "发送消息失败", e)
-                callback.onError("发送消息失败: ${e.message}")
-            }
-        }
-    }
-    
-    /**
-     * 发送到ChatGPT
-     */
-    private suspend fun sendToChatGPT(
-        config: AIServiceConfig,
-        message: String,
-        conversationHistory: List<Map<String, String>>,
-        callback: StreamingCallback
-    ) {
-        val url = URL(config.apiUrl)
-        val connection = url.openConnection() as HttpURLConnection
-        
-        connection.apply {
-            requestMethod = "POST"
-            setRequestProperty("Content-Type", "application/json")
-            setRequestProperty("Authorization", "Bearer ${config.apiKey}")
-            doOutput = true
-            doInput = true
-        }
-        
-        val requestBody = JSONObject().apply {
-            put("model", config.model)
-            put("messages", JSONArray().apply {
-                // 添加历史对话
-                conversationHistory.forEach { msg ->
-                    put(JSONObject().apply {
-                        put("role", msg["role"])
-                        put("content", msg["content"])
-                    })
-                }
-                // 添加当前消息
-                put(JSONObject().apply {
-                    put("role", "user")
-                    put("content", message)
-                })
-            })
-            put("stream", true)
-            put("max_tokens", config.maxTokens)
-            put("temperature", config.temperature)
-        }
-        
-        connection.outputStream.use { os ->
-            val input = requestBody.toString().toByteArray(StandardCharsets.UTF_8)
-            os.write(input, 0, input.size)
-        }
-        
-        if (connection.responseCode == HttpURLConnection.HTTP_OK) {
-            val reader = BufferedReader(InputStreamReader(connection.inputStream, StandardCharsets.UTF_8))
-            var fullResponse = ""
-            var line: String?
-            
-            while (reader.readLine().also { line = it } != null) {
-                if (line!!.startsWith("data: ")) {
-                    val jsonString = line!!.substring(6)
-                    if (jsonString.trim() == "[DONE]") {
-                        break
-                    }
-                    try {
-                        val jsonObject = JSONObject(jsonString)
-                        val delta = jsonObject.getJSONArray("choices").getJSONObject(0).getJSONObject("delta")
-                        if (delta.has("content")) {
-                            val contentChunk = delta.getString("content")
-                            fullResponse += contentChunk
-                            callback.onChunkReceived(contentChunk)
-                        }
-                    } catch (e: Exception) {
-                        // 忽略JSON解析错误
-                    }
-                }
-            }
-            reader.close()
-            callback.onComplete(fullResponse)
-        } else {
-            val errorBody = connection.errorStream?.bufferedReader()?.readText() ?: "Unknown error"
-            callback.onError("API错误: ${connection.responseCode} - $errorBody")
-        }
-    }
-    
-    /**
-     * 发送到Claude
-     */
-    private suspend fun sendToClaude(
-        config: AIServiceConfig,
-        message: String,
-        conversationHistory: List<Map<String, String>>,
-        callback: StreamingCallback
-    ) {
-        val url = URL(config.apiUrl)
-        val connection = url.openConnection() as HttpURLConnection
-        
-        connection.apply {
-            requestMethod = "POST"
-            setRequestProperty("Content-Type", "application/json")
-            setRequestProperty("x-api-key", config.apiKey)
-            setRequestProperty("anthropic-version", "2023-06-01")
-            doOutput = true
-            doInput = true
-        }
-        
-        val requestBody = JSONObject().apply {
-            put("model", config.model)
-            put("max_tokens", config.maxTokens)
-            put("messages", JSONArray().apply {
-                // 添加历史对话
-                conversationHistory.forEach { msg ->
-                    put(JSONObject().apply {
-                        put("role", msg["role"])
-                        put("content", msg["content"])
-                    })
-                }
-                // 添加当前消息
-                put(JSONObject().apply {
-                    put("role", "user")
-                    put("content", message)
-                })
-            })
-        }
-        
-        connection.outputStream.use { os ->
-            val input = requestBody.toString().toByteArray(StandardCharsets.UTF_8)
-            os.write(input, 0, input.size)
-        }
-        
-        if (connection.responseCode == HttpURLConnection.HTTP_OK) {
-            val reader = BufferedReader(InputStreamReader(connection.inputStream, StandardCharsets.UTF_8))
-            var fullResponse = ""
-            var line: String?
-            
-            while (reader.readLine().also { line = it } != null) {
-                if (line!!.startsWith("data: ")) {
-                    val jsonString = line!!.substring(6)
-                    if (jsonString.trim() == "[DONE]") {
-                        break
-                    }
-                    try {
-                        val jsonObject = JSONObject(jsonString)
-                        if (jsonObject.has("delta") && jsonObject.getJSONObject("delta").has("content")) {
-                            val contentChunk = jsonObject.getJSONObject("delta").getJSONArray("content").getJSONObject(0).getString("text")
-                            fullResponse += contentChunk
-                            callback.onChunkReceived(contentChunk)
-                        }
-                    } catch (e: Exception) {
-                        // 忽略JSON解析错误
-                    }
-                }
-            }
-            reader.close()
-            callback.onComplete(fullResponse)
-        } else {
-            val errorBody = connection.errorStream?.bufferedReader()?.readText() ?: "Unknown error"
-            callback.onError("API错误: ${connection.responseCode} - $errorBody")
-        }
-    }
-    
-    /**
-     * 发送到Gemini
-     */
-    private suspend fun sendToGemini(
-        config: AIServiceConfig,
-        message: String,
-        conversationHistory: List<Map<String, String>>,
-        callback: StreamingCallback
-    ) {
-        val url = URL(config.apiUrl)
-        val connection = url.openConnection() as HttpURLConnection
-        
-        connection.apply {
-            requestMethod = "POST"
-            setRequestProperty("Content-Type", "application/json")
-            doOutput = true
-            doInput = true
-        }
-        
-        val requestBody = JSONObject().apply {
-            put("contents", JSONArray().apply {
-                // 添加历史对话和当前消息
-                val allMessages = conversationHistory.toMutableList()
-                allMessages.add(mapOf("role" to "user", "content" to message))
-                
-                allMessages.forEach { msg ->
-                    put(JSONObject().apply {
-                        put("parts", JSONArray().apply {
-                            put(JSONObject().apply {
-                                put("text", msg["content"])
-                            })
-                        })
-                    })
-                }
-            })
-            put("generationConfig", JSONObject().apply {
-                put("maxOutputTokens", config.maxTokens)
-                put("temperature", config.temperature)
-            })
-        }
-        
-        connection.outputStream.use { os ->
-            val input = requestBody.toString().toByteArray(StandardCharsets.UTF_8)
-            os.write(input, 0, input.size)
-        }
-        
-        if (connection.responseCode == HttpURLConnection.HTTP_OK) {
-            val reader = BufferedReader(InputStreamReader(connection.inputStream, StandardCharsets.UTF_8))
-            val response = reader.readText()
-            reader.close()
-            
-            try {
-                val jsonObject = JSONObject(response)
-                val candidates = jsonObject.getJSONArray("candidates")
-                if (candidates.length() > 0) {
-                    val content = candidates.getJSONObject(0).getJSONObject("content")
-                    val parts = content.getJSONArray("parts")
-                    if (parts.length() > 0) {
-                        val text = parts.getJSONObject(0).getString("text")
-                        callback.onChunkReceived(text)
-                        callback.onComplete(text)
-                    }
-                }
-            } catch (e: Exception) {
-                callback.onError("解析响应失败: ${e.message}")
-            }
-        } else {
-            val errorBody = connection.errorStream?.bufferedReader()?.readText() ?: "Unknown error"
-            callback.onError("API错误: ${connection.responseCode} - $errorBody")
+            streamMessage(serviceType, message, conversationHistory, callback, config)
         }
     }
     
     /**
-     * 发送到文心一言
+     * 在调用方协程中发送消息，回调结束前一直挂起
+     *
+     * 与 [sendMessage] 不同，调用方协程被取消时进行中的请求会被立即中止，
+     * 适合需要统一管理多个请求生命周期的场景（例如群聊同时回复）。
      */
-    private suspend fun sendToWenxin(
-        config: AIServiceConfig,
+    suspend fun streamMessage(
+        serviceType: AIServiceType,
         message: String,
-        conversationHistory: List<Map<String, String>>,
-        callback: StreamingCallback
+        conversationHistory: List<Map<String, String>> = emptyList(),
+        callback: StreamingCallback,
+        customConfig: AIServiceConfig? = null
     ) {
-        val url = URL(config.apiUrl)
-        val connection = url.openConnection() as HttpURLConnection
-        
-        connection.apply {
-            requestMethod = "POST"
-            setRequestProperty("Content-Type", "application/json")
-            doOutput = true
-            doInput = true
-        }
-        
-        val requestBody = JSONObject().apply {
-            put("messages", JSONArray().apply {
-                // 添加历史对话
-                conversationHistory.forEach { msg ->
-                    put(JSONObject().apply {
-                        put("role", msg["role"])
-                        put("content", msg["content"])
-                    })
-                }
-                // 添加当前消息
-                put(JSONObject().apply {
-                    put("role", "user")
-                    put("content", message)
-                })
-            })
-            put("stream", true)
-        }
-        
-        connection.outputStream.use { os ->
-            val input = requestBody.toString().toByteArray(StandardCharsets.UTF_8)
-            os.write(input, 0, input.size)
+        val config = customConfig ?: getServiceConfig(serviceType)
+        if (config == null) {
+            Log.e(TAG, "API配置获取失败，服务类型: ${serviceType.name}")
+            callback.onError("API密钥未配置")
+            return
         }
         
-        if (connection.responseCode == HttpURLConnection.HTTP_OK) {
-            val reader = BufferedReader(InputStreamReader(connection.inputStream, StandardCharsets.UTF_8))
-            var fullResponse = ""
-            var line: String?
-            
-            while (reader.readLine().also { line = it } != null) {
-                if (line!!.startsWith("data: ")) {
-                    val jsonString = line!!.substring(6)
-                    if (jsonString.trim() == "[DONE]") {
-                        break
-                    }
-                    try {
-                        val jsonObject = JSONObject(jsonString)
-                        if (jsonObject.has("result")) {
-                            val contentChunk = jsonObject.getString("result")
-                            fullResponse += contentChunk
-                            callback.onChunkReceived(contentChunk)
-                        }
-                    } catch (e: Exception) {
-                        // 忽略JSON解析错误
-                    }
-                }
-            }
-            reader.close()
-            callback.onComplete(fullResponse)
-        } else {
-            val errorBody = connection.errorStream?.bufferedReader()?.readText() ?: "Unknown error"
-            callback.onError("API错误: ${connection.responseCode} - $errorBody")
-        }
-    }
-    
-    /**
-     * 发送到DeepSeek
-     */
-    private suspend fun sendToDeepSeek(
-        config: AIServiceConfig,
-        message: String,
-        conversationHistory: List<Map<String, String>>,
-        callback: StreamingCallback
-    ) {
         try {
-            Log.d(TAG, "开始发送DeepSeek请求")
-            Log.d(TAG, "API URL: ${config.apiUrl}")
-            Log.d(TAG, "模型: ${config.model}")
-            Log.d(TAG, "API密钥长度: ${config.apiKey.length}")
-            Log.d(TAG, "API密钥前10位: ${config.apiKey.take(10)}...")
-            
-            val url = URL(config.apiUrl)
-            val connection = url.openConnection() as HttpURLConnection
-            
-            connection.apply {
-                requestMethod = "POST"
-                setRequestProperty("Content-Type", "application/json")
-                setRequestProperty("Authorization", "Bearer ${config.apiKey}")
-                setRequestProperty("User-Agent", "AI-FloatingBall/1.0")
-                doOutput = true
-                doInput = true
-                connectTimeout = 30000
-                readTimeout = 60000
-            }
-            
-            val requestBody = JSONObject().apply {
-                put("model", config.model)
-                put("messages", JSONArray().apply {
-                    // 添加历史对话
-                    conversationHistory.forEach { msg ->
-                        put(JSONObject().apply {
-                            put("role", msg["role"])
-                            put("content", msg["content"])
-                        })
-                    }
-                    // 添加当前消息
-                    put(JSONObject().apply {
-                        put("role", "user")
-                        put("content", message)
-                    })
-                })
-                put("stream", true)
-                put("max_tokens", config.maxTokens)
-                put("temperature", config.temperature)
-            }
-            
-            val requestJson = requestBody.toString()
-            Log.d(TAG, "请求体: $requestJson")
-            
-            connection.outputStream.use { os ->
-                val input = requestJson.toByteArray(StandardCharsets.UTF_8)
-                os.write(input, 0, input.size)
-            }
-            
-            val responseCode = connection.responseCode
-            Log.d(TAG, "DeepSeek响应码: $responseCode")
-            
-            if (responseCode == HttpURLConnection.HTTP_OK) {
-                val reader = BufferedReader(InputStreamReader(connection.inputStream, StandardCharsets.UTF_8))
-                var fullResponse = ""
-                var line: String?
-                
-                while (reader.readLine().also { line = it } != null) {
-                    if (line!!.startsWith("data: ")) {
-                        val jsonString = line!!.substring(6)
-                        if (jsonString.trim() == "[DONE]") {
-                            break
-                        }
-                        try {
-                            val jsonObject = JSONObject(jsonString)
-                            val delta = jsonObject.getJSONArray("choices").getJSONObject(0).getJSONObject("delta")
-                            if (delta.has("content")) {
-                                val contentChunk = delta.getString("content")
-                                fullResponse += contentChunk
-                                callback.onChunkReceived(contentChunk)
-                            }
-                        } catch (e: Exception) {
-                            Log.w(TAG, "解析流式响应时出错: ${e.message}")
-                        }
-                    }
-                }
-                reader.close()
-                callback.onComplete(fullResponse)
-            } else {
-                val errorStream = connection.errorStream
-                val errorBody = if (errorStream != null) {
-                    BufferedReader(InputStreamReader(errorStream, StandardCharsets.UTF_8)).use { it.readText() }
-                } else {
-                    "Unknown error"
-                }
-                
-                Log.e(TAG, "DeepSeek API错误: $responseCode - $errorBody")
-                
-                // 根据错误码提供更具体的错误信息和解决建议
-                val errorMessage = when (responseCode) {
-                    400 -> {
-                        // 解析错误详情
-                        val detailMessage = try {
-                            val jsonObject = JSONObject(errorBody)
-                            val error = jsonObject.optJSONObject("error")
-                            error?.optString("message") ?: "请求参数错误"
-                        } catch (e: Exception) {
-                            "请求参数错误"
-                        }
-                        "请求参数错误：$detailMessage"
-                    }
-                    401 -> {
-                        // 解析具体的认证错误
-                        val detailMessage = try {
-                            val jsonObject = JSONObject(errorBody)
-                            val error = jsonObject.optJSONObject("error")
-                            error?.optString("message") ?: "API密钥无效"
-                        } catch (e: Exception) {
-                            "API密钥无效"
-                        }
-                        "认证失败：$detailMessage"
-                    }
-                    403 -> {
-                        val detailMessage = try {
-                            val jsonObject = JSONObject(errorBody)
-                            val error = jsonObject.optJSONObject("error")
-                            error?.optString("message") ?: "权限不足"
-                        } catch (e: Exception) {
-                            "权限不足"
-                        }
-                        "权限不足：$detailMessage"
-                    }
-                    429 -> {
-                        val detailMessage = try {
-                            val jsonObject = JSONObject(errorBody)
-                            val error = jsonObject.optJSONObject("error")
-                            error?.optString("message") ?: "请求频率过高"
-                        } catch (e: Exception) {
-                            "请求频率过高"
-                        }
-                        "请求频率限制：$detailMessage"
-                    }
-                    500, 502, 503, 504 -> {
-                        "DeepSeek服务器暂时不可用（错误码：$responseCode），请稍后重试"
-                    }
-                    else -> {
-                        // 尝试解析其他错误
-                        val detailMessage = try {
-                            val jsonObject = JSONObject(errorBody)
-                            val error = jsonObject.optJSONObject("error")
-                            error?.optString("message") ?: errorBody
-                        } catch (e: Exception) {
-                            errorBody
-                        }
-                        "DeepSeek API错误（$responseCode）：$detailMessage"
+            when (config.type) {
+                AIServiceType.XINGHUO -> sendToXinghuo(config, message, conversationHistory, callback)
+                AIServiceType.TEMP_SERVICE -> {
+                    Log.d(TAG, "调用临时专线API")
+                    withContext(Dispatchers.IO) {
+                        sendToTempService(config, message, conversationHistory, callback)
                     }
                 }
-
-                callback.onError(errorMessage)
+                else -> sendWithStreamingEngine(config, message, conversationHistory, callback)
             }
+        } catch (e: CancellationException) {
+            throw e
         } catch (e: Exception) {
-            Log.e(TAG, "DeepSeek请求异常", e)
-
-            // 根据异常类型提供更具体的错误信息
-            val errorMessage = when {
-                e is java.net.UnknownHostException -> {
-                    "网络连接失败，请检查网络连接或DNS设置"
-                }
-                e is java.net.SocketTimeoutException -> {
-                    "请求超时，请检查网络连接或稍后重试"
-                }
-                e is java.net.ConnectException -> {
-                    "无法连接到DeepSeek服务器，请检查网络连接"
-                }
-                e is javax.net.ssl.SSLException -> {
-                    "SSL连接失败，请检查网络安全设置"
-                }
-                e.message?.contains("JSON") == true -> {
-                    "服务器响应格式错误，请稍后重试"
-                }
-                else -> {
-                    "DeepSeek请求失败：${e.message ?: "未知错误"}"
-                }
-            }
-
-            callback.onError(errorMessage)
+            Log.e(TAG, "发送消息失败", e)
+            callback.onError("发送消息失败: ${e.message}")
         }
     }
     
     /**
-     * 发送到通义千问
+     * 通过共用的流式引擎发送，各服务的协议差异由 [AIProviderAdapter] 处理
      */
-    private suspend fun sendToQianwen(
+    private suspend fun sendWithStreamingEngine(
         config: AIServiceConfig,
         message: String,
         conversationHistory: List<Map<String, String>>,
         callback: StreamingCallback
     ) {
-        val url = URL(config.apiUrl)
-        val connection = url.openConnection() as HttpURLConnection
-        
-        connection.apply {
-            requestMethod = "POST"
-            setRequestProperty("Content-Type", "application/json")
-            setRequestProperty("Authorization", "Bearer ${config.apiKey}")
-            doOutput = true
-            doInput = true
-        }
-        
-        val requestBody = JSONObject().apply {
-            put("model", config.model)
-            put("input", JSONObject().apply {
-                put("messages", JSONArray().apply {
-                    // 添加历史对话
-                    conversationHistory.forEach { msg ->
-                        put(JSONObject().apply {
-                            put("role", msg["role"])
-                            put("content", msg["content"])
-                        })
-                    }
-                    // 添加当前消息
-                    put(JSONObject().apply {
-                        put("role", "user")
-                        put("content", message)
-                    })
-                })
-            })
-        }
-        
-        connection.outputStream.use { os ->
-            val input = requestBody.toString().toByteArray(StandardCharsets.UTF_8)
-            os.write(input, 0, input.size)
-        }
-        
-        if (connection.responseCode == HttpURLConnection.HTTP_OK) {
-            val reader = BufferedReader(InputStreamReader(connection.inputStream, StandardCharsets.UTF_8))
-            val response = reader.readText()
-            reader.close()
-            
-            try {
-                val jsonObject = JSONObject(response)
-                val output = jsonObject.getJSONObject("output")
-                val text = output.getString("text")
-                callback.onChunkReceived(text)
-                callback.onComplete(text)
-            } catch (e: Exception) {
-                callback.onError("解析响应失败: ${e.message}")
-            }
-        } else {
-            val errorBody = connection.errorStream?.bufferedReader()?.readText() ?: "Unknown error"
-            callback.onError("API错误: ${connection.responseCode} - $errorBody")
+        val adapter = AIProviderAdapter.forType(config.type)
+        if (adapter == null) {
+            callback.onError("${config.name}暂不支持")
+            return
         }
+        val metrics = streamingEngine.stream(adapter, config, message, conversationHistory, callback) ?: return
+        Log.d(TAG, "${config.name} 响应头 ${metrics.headersMs}ms, 首字 ${metrics.firstTokenMs}ms, " +
+            "总耗时 ${metrics.totalMs}ms, ${metrics.events} 个事件, ${metrics.bytes} 字节, ${metrics.protocol}")
     }
     
     /**
@@ -867,165 +330,6 @@ class AIApiManager(private val context: Context) {
         callback.onError("讯飞星火API暂未实现")
     }
     
-    /**
-     * 发送到Kimi
-     */
-    private suspend fun sendToKimi(
-        config: AIServiceConfig,
-        message: String,
-        conversationHistory: List<Map<String, String>>,
-        callback: StreamingCallback
-    ) {
-        try {
-            Log.d(TAG, "开始发送Kimi请求")
-            Log.d(TAG, "API URL: ${config.apiUrl}")
-            Log.d(TAG, "模型: ${config.model}")
-            Log.d(TAG, "API密钥长度: ${config.apiKey.length}")
-            Log.d(TAG, "API密钥前10位: ${config.apiKey.take(10)}...")
-            
-            val url = URL(config.apiUrl)
-            val connection = url.openConnection() as HttpURLConnection
-            
-            // 如果是HTTPS连接，配置SSL信任
-            if (connection is HttpsURLConnection) {
-                val sslContext = createTrustAllSSLContext()
-                connection.sslSocketFactory = sslContext.socketFactory
-                connection.hostnameVerifier = HostnameVerifier { _, _ -> true }
-            }
-            
-            connection.apply {
-                requestMethod = "POST"
-                setRequestProperty("Content-Type", "application/json")
-                setRequestProperty("Authorization", "Bearer ${config.apiKey}")
-                setRequestProperty("User-Agent", "AI-FloatingBall/1.0")
-                doOutput = true
-                doInput = true
-                connectTimeout = 30000
-                readTimeout = 60000
-            }
-            
-            val requestBody = JSONObject().apply {
-                put("model", config.model)
-                put("messages", JSONArray().apply {
-                    // 添加历史对话
-                    conversationHistory.forEach { msg ->
-                        put(JSONObject().apply {
-                            put("role", msg["role"])
-                            put("content", msg["content"])
-                        })
-                    }
-                    // 添加当前消息
-                    put(JSONObject().apply {
-                        put("role", "user")
-                        put("content", message)
-                    })
-                })
-                put("stream", true)
-                put("max_tokens", config.maxTokens)
-                put("temperature", config.temperature)
-            }
-            
-            val requestJson = requestBody.toString()
-            Log.d(TAG, "请求体: $requestJson")
-            
-            connection.outputStream.use { os ->
-                val input = requestJson.toByteArray(StandardCharsets.UTF_8)
-                os.write(input, 0, input.size)
-            }
-            
-            val responseCode = connection.responseCode
-            Log.d(TAG, "Kimi响应码: $responseCode")
-            
-            if (responseCode == HttpURLConnection.HTTP_OK) {
-                val reader = BufferedReader(InputStreamReader(connection.inputStream, StandardCharsets.UTF_8))
-                var fullResponse = ""
-                var line: String?
-                var lineCount = 0
-                
-                while (reader.readLine().also { line = it } != null) {
-                    lineCount++
-                    Log.d(TAG, "Kimi响应行 $lineCount: $line")
-                    
-                    if (line!!.startsWith("data: ")) {
-                        val jsonString = line!!.substring(6)
-                        Log.d(TAG, "解析JSON: $jsonString")
-                        
-                        if (jsonString.trim() == "[DONE]") {
-                            Log.d(TAG, "收到结束标记")
-                            break
-                        }
-                        
-                        try {
-                            val jsonObject = JSONObject(jsonString)
-                            Log.d(TAG, "JSON对象: $jsonObject")
-                            
-                            if (jsonObject.has("choices")) {
-                                val choices = jsonObject.getJSONArray("choices")
-                                if (choices.length() > 0) {
-                                    val choice = choices.getJSONObject(0)
-                                    Log.d(TAG, "Choice对象: $choice")
-                                    
-                                    if (choice.has("delta")) {
-                                        val delta = choice.getJSONObject("delta")
-                                        Log.d(TAG, "Delta对象: $delta")
-                                        
-                                        if (delta.has("content")) {
-                                            val contentChunk = delta.getString("content")
-                                            Log.d(TAG, "内容块: '$contentChunk'")
-                                            fullResponse += contentChunk
-                                            callback.onChunkReceived(contentChunk)
-                                        } else {
-                                            Log.d(TAG, "Delta中没有content字段")
-                                        }
-                                    } else {
-                                        Log.d(TAG, "Choice中没有delta字段")
-                                    }
-                                } else {
-                                    Log.d(TAG, "Choices数组为空")
-                                }
-                            } else {
-                                Log.d(TAG, "JSON中没有choices字段")
-                            }
-                        } catch (e: Exception) {
-                            Log.w(TAG, "解析Kimi流式响应时出错: ${e.message}")
-                            Log.w(TAG, "原始JSON: $jsonString")
-                        }
-                    } else if (line!!.isNotEmpty()) {
-                        Log.d(TAG, "非data行: $line")
-                    }
-                }
-                reader.close()
-                Log.d(TAG, "Kimi完整响应: '$fullResponse'")
-                callback.onComplete(fullResponse)
-            } else {
-                val errorBody = connection.errorStream?.bufferedReader()?.readText() ?: "Unknown error"
-                Log.e(TAG, "Kimi API错误: $responseCode - $errorBody")
-                callback.onError("Kimi API错误: $responseCode - $errorBody")
-            }
-        } catch (e: Exception) {
-            Log.e(TAG, "Kimi请求异常", e)
-            val errorMessage = when {
-                e is java.net.SocketTimeoutException -> {
-                    "Kimi请求超时，请检查网络连接"
-                }
-                e is java.net.ConnectException -> {
-                    "无法连接到Kimi服务器，请检查网络连接"
-                }
-                e is javax.net.ssl.SSLException -> {
-                    "SSL连接失败，请检查网络安全设置"
-                }
-                e.message?.contains("JSON") == true -> {
-                    "服务器响应格式错误，请稍后重试"
-                }
-                else -> {
-                    "Kimi请求失败：${e.message ?: "未知错误"}"
-                }
-            }
-            
-            callback.onError(errorMessage)
-        }
-    }
-
     /**
      * 发送到智谱AI
      */
@@ -1329,483 +633,6 @@ class AIApiManager(private val context: Context) {
         }
     }
 
-    private suspend fun sendToZhupu(
-        config: AIServiceConfig,
-        message: String,
-        conversationHistory: List<Map<String, String>>,
-        callback: StreamingCallback
-    ) {
-        try {
-            Log.d(TAG, "开始发送智谱AI请求")
-            Log.d(TAG, "API URL: ${config.apiUrl}")
-            Log.d(TAG, "模型: ${config.model}")
-            Log.d(TAG, "API密钥长度: ${config.apiKey.length}")
-            Log.d(TAG, "API密钥前10位: ${config.apiKey.take(10)}...")
-            
-            val url = URL(config.apiUrl)
-            val connection = url.openConnection() as HttpURLConnection
-            
-            // 如果是HTTPS连接，配置SSL信任
-            if (connection is HttpsURLConnection) {
-                val sslContext = createTrustAllSSLContext()
-                connection.sslSocketFactory = sslContext.socketFactory
-                connection.hostnameVerifier = HostnameVerifier { _, _ -> true }
-            }
-            
-            connection.apply {
-                requestMethod = "POST"
-                setRequestProperty("Content-Type", "application/json")
-                setRequestProperty("Authorization", "Bearer ${config.apiKey}")
-                setRequestProperty("User-Agent", "AI-FloatingBall/1.0")
-                doOutput = true
-                doInput = true
-                connectTimeout = 30000
-                readTimeout = 60000
-            }
-            
-            val requestBody = JSONObject().apply {
-                put("model", config.model)
-                put("messages", JSONArray().apply {
-                    // 添加历史对话
-                    conversationHistory.forEach { msg ->
-                        put(JSONObject().apply {
-                            put("role", msg["role"])
-                            put("content", msg["content"])
-                        })
-                    }
-                    // 添加当前消息
-                    put(JSONObject().apply {
-                        put("role", "user")
-                        put("content", message)
-                    })
-                })
-                put("stream", true)
-                put("max_tokens", config.maxTokens)
-                put("temperature", config.temperature)
-                // 智谱AI特定参数
-                put("top_p", 0.7)
-                put("incremental", true)
-            }
-            
-            val requestJson = requestBody.toString()
-            Log.d(TAG, "请求体: $requestJson")
-            
-            connection.outputStream.use { os ->
-                val input = requestJson.toByteArray(StandardCharsets.UTF_8)
-                os.write(input, 0, input.size)
-            }
-            
-            val responseCode = connection.responseCode
-            Log.d(TAG, "智谱AI响应码: $responseCode")
-            
-            if (responseCode == HttpURLConnection.HTTP_OK) {
-                val reader = BufferedReader(InputStreamReader(connection.inputStream, StandardCharsets.UTF_8))
-                var fullResponse = ""
-                var line: String?
-                var lineCount = 0
-                
-                while (reader.readLine().also { line = it } != null) {
-                    lineCount++
-                    Log.d(TAG, "智谱AI响应行 $lineCount: $line")
-                    
-                    if (line!!.startsWith("data: ")) {
-                        val jsonString = line!!.substring(6)
-                        Log.d(TAG, "解析JSON: $jsonString")
-                        
-                        if (jsonString.trim() == "[DONE]") {
-                            Log.d(TAG, "收到结束标记")
-                            break
-                        }
-                        
-                        try {
-                            val jsonObject = JSONObject(jsonString)
-                            Log.d(TAG, "JSON对象: $jsonObject")
-                            
-                            if (jsonObject.has("choices")) {
-                                val choices = jsonObject.getJSONArray("choices")
-                                if (choices.length() > 0) {
-                                    val choice = choices.getJSONObject(0)
-                                    Log.d(TAG, "Choice对象: $choice")
-                                    
-                                    if (choice.has("delta")) {
-                                        val delta = choice.getJSONObject("delta")
-                                        Log.d(TAG, "Delta对象: $delta")
-                                        
-                                        if (delta.has("content")) {
-                                            val contentChunk = delta.getString("content")
-                                            Log.d(TAG, "内容块: '$contentChunk'")
-                                            fullResponse += contentChunk
-                                            callback.onChunkReceived(contentChunk)
-                                        } else {
-                                            Log.d(TAG, "Delta中没有content字段")
-                                        }
-                                    } else {
-                                        Log.d(TAG, "Choice中没有delta字段")
-                                    }
-                                } else {
-                                    Log.d(TAG, "Choices数组为空")
-                                }
-                            } else {
-                                Log.d(TAG, "JSON中没有choices字段")
-                            }
-                        } catch (e: Exception) {
-                            Log.w(TAG, "解析智谱AI流式响应时出错: ${e.message}")
-                            Log.w(TAG, "原始JSON: $jsonString")
-                        }
-                    } else if (line!!.isNotEmpty()) {
-                        Log.d(TAG, "非data行: $line")
-                    }
-                }
-                reader.close()
-                Log.d(TAG, "智谱AI完整响应: '$fullResponse'")
-                callback.onComplete(fullResponse)
-            } else {
-                val errorBody = connection.errorStream?.bufferedReader()?.readText() ?: "Unknown error"
-                Log.e(TAG, "智谱AI API错误: $responseCode - $errorBody")
-                callback.onError("智谱AI API错误: $responseCode - $errorBody")
-            }
-        } catch (e: Exception) {
-            Log.e(TAG, "智谱AI请求异常", e)
-            val errorMessage = when {
-                e is java.net.SocketTimeoutException -> {
-                    "智谱AI请求超时，请检查网络连接"
-                }
-                e is java.net.ConnectException -> {
-                    "无法连接到智谱AI服务器，请检查网络连接"
-                }
-                e is javax.net.ssl.SSLException -> {
-                    "SSL连接失败，请检查网络安全设置"
-                }
-                e.message?.contains("JSON") == true -> {
-                    "服务器响应格式错误，请稍后重试"
-                }
-                else -> {
-                    "智谱AI请求失败：${e.message ?: "未知错误"}"
-                }
-            }
-            
-            callback.onError(errorMessage)
-        }
-    }
-    
-    /**
-     * 发送到豆包Pro
-     */
-    private suspend fun sendToDoubao(
-        config: AIServiceConfig,
-        message: String,
-        conversationHistory: List<Map<String, String>>,
-        callback: StreamingCallback
-    ) {
-        try {
-            Log.d(TAG, "开始发送豆包Pro请求")
-            Log.d(TAG, "API URL: ${config.apiUrl}")
-            Log.d(TAG, "模型: ${config.model}")
-            Log.d(TAG, "API密钥长度: ${config.apiKey.length}")
-            Log.d(TAG, "API密钥前10位: ${config.apiKey.take(10)}...")
-            
-            val url = URL(config.apiUrl)
-            val connection = url.openConnection() as HttpURLConnection
-            
-            // 如果是HTTPS连接，配置SSL信任
-            if (connection is HttpsURLConnection) {
-                val sslContext = createTrustAllSSLContext()
-                connection.sslSocketFactory = sslContext.socketFactory
-                connection.hostnameVerifier = HostnameVerifier { _, _ -> true }
-            }
-            
-            connection.apply {
-                requestMethod = "POST"
-                setRequestProperty("Content-Type", "application/json")
-                setRequestProperty("Authorization", "Bearer ${config.apiKey}")
-                setRequestProperty("User-Agent", "AI-FloatingBall/1.0")
-                doOutput = true
-                doInput = true
-                connectTimeout = 30000
-                readTimeout = 60000
-            }
-            
-            val requestBody = JSONObject().apply {
-                put("model", config.model)
-                put("messages", JSONArray().apply {
-                    // 添加历史对话
-                    conversationHistory.forEach { msg ->
-                        put(JSONObject().apply {
-                            put("role", msg["role"])
-                            put("content", msg["content"])
-                        })
-                    }
-                    // 添加当前消息
-                    put(JSONObject().apply {
-                        put("role", "user")
-                        put("content", message)
-                    })
-                })
-                put("stream", true)
-                put("max_tokens", config.maxTokens)
-                put("temperature", config.temperature)
-            }
-            
-            val requestJson = requestBody.toString()
-            Log.d(TAG, "请求体: $requestJson")
-            
-            connection.outputStream.use { os ->
-                val input = requestJson.toByteArray(StandardCharsets.UTF_8)
-                os.write(input, 0, input.size)
-            }
-            
-            val responseCode = connection.responseCode
-            Log.d(TAG, "豆包Pro响应码: $responseCode")
-            
-            if (responseCode == HttpURLConnection.HTTP_OK) {
-                val reader = BufferedReader(InputStreamReader(connection.inputStream, StandardCharsets.UTF_8))
-                var fullResponse = ""
-                var line: String?
-                var lineCount = 0
-                var hasReceivedContent = false
-                
-                // 尝试读取完整响应（用于非流式响应）
-                val responseBuilder = StringBuilder()
-                while (reader.readLine().also { line = it } != null) {
-                    responseBuilder.append(line).append("\n")
-                }
-                reader.close()
-                
-                val fullResponseText = responseBuilder.toString().trim()
-                Log.d(TAG, "豆包Pro完整响应文本（前500字符）: ${fullResponseText.take(500)}")
-                
-                // 尝试解析为流式响应（SSE格式）
-                if (fullResponseText.contains("data: ")) {
-                    Log.d(TAG, "检测到流式响应格式（SSE）")
-                    fullResponseText.lines().forEach { responseLine ->
-                        lineCount++
-                        if (responseLine.startsWith("data: ")) {
-                            val jsonString = responseLine.substring(6).trim()
-                            Log.d(TAG, "解析JSON: $jsonString")
-                            
-                            if (jsonString == "[DONE]") {
-                                Log.d(TAG, "收到结束标记")
-                                return@forEach
-                            }
-                            
-                            if (jsonString.isNotEmpty()) {
-                                try {
-                                    val jsonObject = JSONObject(jsonString)
-                                    Log.d(TAG, "JSON对象: $jsonObject")
-                                    
-                                    // 检查是否有错误
-                                    if (jsonObject.has("error")) {
-                                        val error = jsonObject.getJSONObject("error")
-                                        val errorMessage = error.optString("message", "未知错误")
-                                        Log.e(TAG, "豆包Pro API返回错误: $errorMessage")
-                                        callback.onError("豆包Pro API错误: $errorMessage")
-                                        return@forEach
-                                    }
-                                    
-                                    if (jsonObject.has("choices")) {
-                                        val choices = jsonObject.getJSONArray("choices")
-                                        if (choices.length() > 0) {
-                                            val choice = choices.getJSONObject(0)
-                                            Log.d(TAG, "Choice对象: $choice")
-                                            
-                                            // 检查是否有delta字段（流式响应）
-                                            if (choice.has("delta")) {
-                                                val delta = choice.getJSONObject("delta")
-                                                Log.d(TAG, "Delta对象: $delta")
-                                                
-                                                if (delta.has("content")) {
-                                                    val contentChunk = delta.getString("content")
-                                                    Log.d(TAG, "内容块: '$contentChunk'")
-                                                    fullResponse += contentChunk
-                                                    hasReceivedContent = true
-                                                    callback.onChunkReceived(contentChunk)
-                                                }
-                                            } 
-                                            // 检查是否有message字段（非流式响应）
-                                            else if (choice.has("message")) {
-                                                val message = choice.getJSONObject("message")
-                                                if (message.has("content")) {
-                                                    val content = message.getString("content")
-                                                    Log.d(TAG, "消息内容: '$content'")
-                                                    fullResponse += content
-                                                    hasReceivedContent = true
-                                                    callback.onChunkReceived(content)
-                                                }
-                                            }
-                                        }
-                                    }
-                                } catch (e: Exception) {
-                                    Log.w(TAG, "解析豆包Pro流式响应时出错: ${e.message}", e)
-                                    Log.w(TAG, "原始JSON: $jsonString")
-                                }
-                            }
-                        }
-                    }
-                } 
-                // 尝试解析为非流式JSON响应
-                else if (fullResponseText.startsWith("{") || fullResponseText.startsWith("[")) {
-                    Log.d(TAG, "检测到非流式JSON响应")
-                    try {
-                        val jsonObject = JSONObject(fullResponseText)
-                        Log.d(TAG, "JSON对象: $jsonObject")
-                        
-                        // 检查是否有错误
-                        if (jsonObject.has("error")) {
-                            val error = jsonObject.getJSONObject("error")
-                            val rawMessage = error.optString("message", "未知错误")
-                            
-                            // 检查是否是模型ID相关的错误
-                            val errorMessage = if (rawMessage.contains("model", ignoreCase = true) || 
-                                rawMessage.contains("endpoint", ignoreCase = true) ||
-                                rawMessage.contains("does not exist", ignoreCase = true) ||
-                                rawMessage.contains("do not have access", ignoreCase = true)) {
-                                "模型ID（Endpoint ID）配置错误：$rawMessage\n\n请检查：\n1. 模型ID格式是否正确（应为 ep-xxx 格式）\n2. 是否在豆包控制台创建了接入点\n3. 当前使用的模型ID: ${config.model}\n\n请在设置中重新配置正确的Endpoint ID"
-                            } else {
-                                "豆包Pro API错误: $rawMessage"
-                            }
-                            
-                            Log.e(TAG, "豆包Pro API返回错误: $rawMessage")
-                            callback.onError(errorMessage)
-                            return
-                        }
-                        
-                        if (jsonObject.has("choices")) {
-                            val choices = jsonObject.getJSONArray("choices")
-                            if (choices.length() > 0) {
-                                val choice = choices.getJSONObject(0)
-                                if (choice.has("message")) {
-                                    val message = choice.getJSONObject("message")
-                                    if (message.has("content")) {
-                                        val content = message.getString("content")
-                                        Log.d(TAG, "消息内容: '$content'")
-                                        fullResponse = content
-                                        hasReceivedContent = true
-                                        callback.onChunkReceived(content)
-                                    }
-                                }
-                            }
-                        }
-                    } catch (e: Exception) {
-                        Log.e(TAG, "解析豆包Pro JSON响应时出错: ${e.message}", e)
-                        callback.onError("解析豆包Pro响应失败: ${e.message}")
-                        return
-                    }
-                } else {
-                    Log.w(TAG, "无法识别的响应格式")
-                    if (fullResponseText.isNotEmpty()) {
-                        Log.d(TAG, "响应内容: $fullResponseText")
-                    }
-                }
-                
-                Log.d(TAG, "豆包Pro完整响应: '$fullResponse', 是否收到内容: $hasReceivedContent")
-                
-                if (hasReceivedContent && fullResponse.isNotEmpty()) {
-                    callback.onComplete(fullResponse)
-                } else if (fullResponse.isEmpty()) {
-                    Log.w(TAG, "豆包Pro响应为空，可能没有收到有效内容")
-                    callback.onError("豆包Pro响应为空，请检查API配置和网络连接")
-                } else {
-                    callback.onComplete(fullResponse)
-                }
-            } else {
-                // 读取错误响应
-                val errorStream = connection.errorStream
-                val errorBody = if (errorStream != null) {
-                    try {
-                        BufferedReader(InputStreamReader(errorStream, StandardCharsets.UTF_8)).use { reader ->
-                            reader.readText()
-                        }
-                    } catch (e: Exception) {
-                        Log.e(TAG, "读取错误响应失败", e)
-                        "无法读取错误信息"
-                    }
-                } else {
-                    // 尝试从正常输入流读取错误信息
-                    try {
-                        BufferedReader(InputStreamReader(connection.inputStream, StandardCharsets.UTF_8)).use { reader ->
-                            reader.readText()
-                        }
-                    } catch (e: Exception) {
-                        "未知错误 (HTTP $responseCode)"
-                    }
-                }
-                
-                Log.e(TAG, "豆包Pro API错误: $responseCode")
-                Log.e(TAG, "错误响应体: $errorBody")
-                
-                // 尝试解析错误JSON
-                val errorMessage = try {
-                    if (errorBody.startsWith("{") || errorBody.startsWith("[")) {
-                        val errorJson = JSONObject(if (errorBody.startsWith("[")) {
-                            JSONArray(errorBody).getJSONObject(0).toString()
-                        } else {
-                            errorBody
-                        })
-                        if (errorJson.has("error")) {
-                            val error = errorJson.getJSONObject("error")
-                            val rawMessage = error.optString("message", error.optString("code", "未知错误"))
-                            
-                            // 检查是否是模型ID相关的错误
-                            if (rawMessage.contains("model", ignoreCase = true) || 
-                                rawMessage.contains("endpoint", ignoreCase = true) ||
-                                rawMessage.contains("does not exist", ignoreCase = true) ||
-                                rawMessage.contains("do not have access", ignoreCase = true)) {
-                                "模型ID（Endpoint ID）配置错误：$rawMessage\n\n请检查：\n1. 模型ID格式是否正确（应为 ep-xxx 格式）\n2. 是否在豆包控制台创建了接入点\n3. 当前使用的模型ID: ${config.model}\n\n请在设置中重新配置正确的Endpoint ID"
-                            } else {
-                                rawMessage
-                            }
-                        } else {
-                            errorJson.optString("message", "未知错误")
-                        }
-                    } else {
-                        errorBody
-                    }
-                } catch (e: Exception) {
-                    when (responseCode) {
-                        401 -> "API密钥无效，请检查配置"
-                        403 -> "API密钥无权限访问此资源"
-                        404 -> "API地址不存在，请检查URL配置"
-                        429 -> "请求过于频繁，请稍后重试"
-                        500 -> "服务器内部错误，请稍后重试"
-                        502, 503, 504 -> "服务暂时不可用，请稍后重试"
-                        else -> {
-                            // 检查错误信息中是否包含模型相关的内容
-                            if (errorBody.contains("model", ignoreCase = true) || 
-                                errorBody.contains("endpoint", ignoreCase = true)) {
-                                "模型ID（Endpoint ID）配置错误\n\n请检查：\n1. 模型ID格式是否正确（应为 ep-xxx 格式）\n2. 是否在豆包控制台创建了接入点\n3. 当前使用的模型ID: ${config.model}\n\n请在设置中重新配置正确的Endpoint ID"
-                            } else {
-                                "豆包Pro API错误 (HTTP $responseCode): $errorBody"
-                            }
-                        }
-                    }
-                }
-                
-                callback.onError(errorMessage)
-            }
-        } catch (e: Exception) {
-            Log.e(TAG, "豆包Pro请求异常", e)
-            val errorMessage = when {
-                e is java.net.SocketTimeoutException -> {
-                    "豆包Pro请求超时，请检查网络连接"
-                }
-                e is java.net.ConnectException -> {
-                    "无法连接到豆包Pro服务器，请检查网络连接"
-                }
-                e is javax.net.ssl.SSLException -> {
-                    "SSL连接失败，请检查网络安全设置"
-                }
-                e.message?.contains("JSON") == true -> {
-                    "服务器响应格式错误，请稍后重试"
-                }
-                else -> {
-                    "豆包Pro请求失败：${e.message ?: "未知错误"}"
-                }
-            }
-            
-            callback.onError(errorMessage)
-        }
-    }
-    
     /**
      * 获取文心一言访问令牌
      */
@@ -1894,6 +721,7 @@ class AIApiManager(private val context: Context) {
      * 释放资源
      */
     fun destroy() {
+        streamingEngine.cancelAll()
         scope.cancel()
     }
 }
@@ -0,0 +1,267 @@
+package com.example.aifloatingball.manager
+
+import android.content.Context
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.graphics.Canvas
+import android.graphics.drawable.BitmapDrawable
+import android.graphics.drawable.Drawable
+import android.util.Log
+import android.util.LruCache
+import android.widget.ImageView
+import com.example.aifloatingball.R
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+import java.io.File
+import java.io.FileOutputStream
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * 进程内共享的图标位图缓存
+ *
+ * 已安装应用的图标不再在加载应用列表时一次性解码，而是显示时按控件的目标尺寸解码：
+ * 先查内存 LRU，再查磁盘上的小图标缓存，最后才从 PackageManager 解码并写回两级缓存。
+ * 磁盘缓存文件比应用最后更新时间旧时视为过期，重新解码。
+ *
+ * 内存 LRU 按位图字节数限制总大小，[IconService] 按 URL 加载的网络图标、各图标加载器处理后的结果
+ * 和 [IconPreloader] 处理过的图标也存放在这里，共用同一个上限，不再各自无限增长。
+ */
+class AppIconCache private constructor(private val context: Context) {
+
+    companion object {
+        private const val TAG = "AppIconCache"
+        private const val DISK_DIR = "app_icon_thumbs"
+        // 超过这个尺寸的图标只放内存，不写磁盘
+        private const val MAX_DISK_ICON_PX = 192
+        private const val DEFAULT_ICON_DP = 48
+        private const val MAX_CACHE_KB = 8 * 1024
+
+        @Volatile
+        private var instance: AppIconCache? = null
+
+        @JvmStatic
+        fun getInstance(context: Context): AppIconCache {
+            return instance ?: synchronized(this) {
+                instance ?: AppIconCache(context.applicationContext).also { instance = it }
+            }
+        }
+
+        /**
+         * 已创建的实例，供拿不到 Context 的调用方使用
+         */
+        fun peekInstance(): AppIconCache? = instance
+
+        /**
+         * 把任意 Drawable 画成指定尺寸的位图，尺寸不大于 0 时使用固有尺寸
+         */
+        fun toBitmap(drawable: Drawable, sizePx: Int = 0): Bitmap {
+            if (drawable is BitmapDrawable && drawable.bitmap != null &&
+                (sizePx <= 0 || (drawable.bitmap.width == sizePx && drawable.bitmap.height == sizePx))
+            ) {
+                return drawable.bitmap
+            }
+            val width = if (sizePx > 0) sizePx else drawable.intrinsicWidth.takeIf { it > 0 } ?: 96
+            val height = if (sizePx > 0) sizePx else drawable.intrinsicHeight.takeIf { it > 0 } ?: 96
+            val bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888)
+            val canvas = Canvas(bitmap)
+            drawable.setBounds(0, 0, width, height)
+            drawable.draw(canvas)
+            return bitmap
+        }
+    }
+
+    /**
+     * 缓存统计
+     *
+     * @param memoryBytes 内存 LRU 中位图的总字节数，即图标常驻堆内存
+     * @param decodes 从 PackageManager 解码的次数
+     */
+    data class Stats(
+        val entries: Int,
+        val memoryBytes: Long,
+        val maxMemoryBytes: Long,
+        val hits: Long,
+        val misses: Long,
+        val diskHits: Long,
+        val decodes: Long,
+        val evictions: Long
+    )
+
+    private val memoryCache: LruCache<String, Bitmap>
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+    // 同一个图标同时只解码一次，等待中的控件在完成后统一刷新；只在主线程访问
+    private val pending = HashMap<String, MutableList<ImageView>>()
+    private val diskDir = File(context.cacheDir, DISK_DIR)
+    private val defaultSizePx = (DEFAULT_ICON_DP * context.resources.displayMetrics.density).toInt()
+
+    private val diskHits = AtomicLong()
+    private val decodes = AtomicLong()
+
+    init {
+        val maxMemory = (Runtime.getRuntime().maxMemory() / 1024).toInt()
+        val cacheSize = minOf(maxMemory / 16, MAX_CACHE_KB)
+        memoryCache = object : LruCache<String, Bitmap>(cacheSize) {
+            override fun sizeOf(key: String, bitmap: Bitmap): Int {
+                return (bitmap.byteCount / 1024).coerceAtLeast(1)
+            }
+        }
+    }
+
+    fun get(key: String): Bitmap? = memoryCache.get(key)
+
+    fun getDrawable(key: String): Drawable? = get(key)?.let { BitmapDrawable(context.resources, it) }
+
+    fun put(key: String, bitmap: Bitmap) {
+        memoryCache.put(key, bitmap)
+    }
+
+    fun put(key: String, drawable: Drawable) {
+        try {
+            put(key, toBitmap(drawable))
+        } catch (e: Exception) {
+            Log.w(TAG, "图标转换失败: $key", e)
+        }
+    }
+
+    fun remove(key: String) {
+        memoryCache.remove(key)
+    }
+
+    /**
+     * 移除以 [prefix] 开头的全部内存条目
+     */
+    fun removeByPrefix(prefix: String) {
+        memoryCache.snapshot().keys.filter { it.startsWith(prefix) }.forEach { memoryCache.remove(it) }
+    }
+
+    fun countByPrefix(prefix: String): Int = memoryCache.snapshot().keys.count { it.startsWith(prefix) }
+
+    /**
+     * 内存中已有的应用图标，不做任何 IO
+     */
+    fun getAppIcon(packageName: String, sizePx: Int = defaultSizePx): Bitmap? = get(appKey(packageName, sizePx))
+
+    /**
+     * 获取应用图标，必要时读磁盘或解码，应在后台线程调用
+     */
+    fun loadAppIcon(packageName: String, sizePx: Int = defaultSizePx): Bitmap? {
+        val key = appKey(packageName, sizePx)
+        get(key)?.let { return it }
+
+        val pm = context.packageManager
+        val lastUpdate = try {
+            pm.getPackageInfo(packageName, 0).lastUpdateTime
+        } catch (e: Exception) {
+            // 应用已卸载
+            return null
+        }
+
+        val file = diskFile(packageName, sizePx)
+        if (file.exists() && file.lastModified() >= lastUpdate) {
+            BitmapFactory.decodeFile(file.absolutePath)?.let { bitmap ->
+                diskHits.incrementAndGet()
+                put(key, bitmap)
+                return bitmap
+            }
+        }
+
+        val bitmap = try {
+            toBitmap(pm.getApplicationIcon(packageName), sizePx)
+        } catch (e: Exception) {
+            Log.w(TAG, "无法加载应用图标: $packageName", e)
+            return null
+        }
+        decodes.incrementAndGet()
+        put(key, bitmap)
+        if (sizePx <= MAX_DISK_ICON_PX) writeDisk(file, bitmap)
+        return bitmap
+    }
+
+    /**
+     * 把应用图标显示到 [imageView]：内存命中时立即设置，否则先显示默认图标，加载完成后再替换
+     *
+     * 目标尺寸取控件的布局尺寸，控件被复用给其他应用后不会被旧的结果覆盖。
+     */
+    fun bind(imageView: ImageView, packageName: String) {
+        val sizePx = targetSize(imageView)
+        imageView.setTag(R.id.app_icon, packageName)
+        getAppIcon(packageName, sizePx)?.let {
+            imageView.setImageBitmap(it)
+            return
+        }
+        imageView.setImageResource(android.R.drawable.sym_def_app_icon)
+
+        val key = appKey(packageName, sizePx)
+        pending[key]?.let {
+            it.add(imageView)
+            return
+        }
+        val waiting = mutableListOf(imageView)
+        pending[key] = waiting
+
+        scope.launch {
+            val bitmap = try {
+                loadAppIcon(packageName, sizePx)
+            } catch (e: Exception) {
+                Log.w(TAG, "加载应用图标失败: $packageName", e)
+                null
+            }
+            withContext(Dispatchers.Main) {
+                pending.remove(key)
+                if (bitmap != null) {
+                    waiting.filter { it.getTag(R.id.app_icon) == packageName }.forEach { it.setImageBitmap(bitmap) }
+                }
+            }
+        }
+    }
+
+    /**
+     * 应用更新或卸载后丢弃它的图标
+     */
+    fun evictPackage(packageName: String) {
+        removeByPrefix("app:$packageName@")
+        try {
+            diskDir.listFiles { file -> file.name.startsWith("$packageName@") }?.forEach { it.delete() }
+        } catch (e: Exception) {
+            Log.w(TAG, "清理图标缓存失败: $packageName", e)
+        }
+    }
+
+    fun stats(): Stats = Stats(
+        entries = memoryCache.snapshot().size,
+        memoryBytes = memoryCache.size() * 1024L,
+        maxMemoryBytes = memoryCache.maxSize() * 1024L,
+        hits = memoryCache.hitCount().toLong(),
+        misses = memoryCache.missCount().toLong(),
+        diskHits = diskHits.get(),
+        decodes = decodes.get(),
+        evictions = memoryCache.evictionCount().toLong()
+    )
+
+    private fun appKey(packageName: String, sizePx: Int) = "app:$packageName@$sizePx"
+
+    private fun diskFile(packageName: String, sizePx: Int) = File(diskDir, "$packageName@$sizePx.png")
+
+    private fun targetSize(imageView: ImageView): Int {
+        val params = imageView.layoutParams
+        val size = maxOf(imageView.width, imageView.height, params?.width ?: 0, params?.height ?: 0)
+        return if (size > 0) size else defaultSizePx
+    }
+
+    private fun writeDisk(file: File, bitmap: Bitmap) {
+        try {
+            if (!diskDir.exists()) diskDir.mkdirs()
+            val temp = File(file.path + ".tmp")
+            FileOutputStream(temp).use { out ->
+                bitmap.compress(Bitmap.CompressFormat.PNG, 100, out)
+            }
+            if (!temp.renameTo(file)) temp.delete()
+        } catch (e: Exception) {
+            // 磁盘缓存失败不影响显示
+            Log.w(TAG, "写入图标缓存失败: ${file.name}", e)
+        }
+    }
+}
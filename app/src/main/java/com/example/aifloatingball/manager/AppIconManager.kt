@@ -2,15 +2,11 @@ package com.example.aifloatingball.manager
 
 import android.content.Context
 import android.content.pm.PackageManager
-import android.graphics.Bitmap
-import android.graphics.BitmapFactory
 import android.graphics.drawable.BitmapDrawable
 import android.graphics.drawable.Drawable
 import kotlinx.coroutines.*
 import org.json.JSONObject
 import java.io.File
-import java.io.FileOutputStream
-import java.net.URL
 import java.net.URLEncoder
 import java.util.concurrent.ConcurrentHashMap
 
@@ -19,11 +15,19 @@ import java.util.concurrent.ConcurrentHashMap
  */
 class AppIconManager private constructor(private val context: Context) {
     
-    private val iconCache = ConcurrentHashMap<String, Drawable>()
+    // 下载的图标放在共享的有界缓存中，与应用图标共用一个内存上限
+    private val iconCache = AppIconCache.getInstance(context)
+    // 下载、磁盘缓存和失败记录由统一的图标服务负责
+    private val iconService = IconService.getInstance(context)
     private val downloadingIcons = ConcurrentHashMap<String, Job>()
     private val iconUrlCache = ConcurrentHashMap<String, List<String>>()
     
     companion object {
+        private const val CACHE_PREFIX = "remote:"
+        private const val SOURCE_PREFIX = "app_manager:"
+        // 旧版本单独保存的图标目录，清理缓存时一并删除
+        private const val LEGACY_CACHE_DIR = "app_icons"
+
         @Volatile
         private var instance: AppIconManager? = null
         
@@ -43,16 +47,16 @@ class AppIconManager private constructor(private val context: Context) {
         onIconLoaded: (Drawable?) -> Unit
     ) {
         // 1. 检查内存缓存
-        iconCache[packageName]?.let { cachedIcon ->
+        iconCache.getDrawable(CACHE_PREFIX + packageName)?.let { cachedIcon ->
             onIconLoaded(cachedIcon)
             return
         }
         
-        // 2. 检查本地缓存
-        val localIcon = getCachedAppIcon(packageName)
+        // 2. 上次找到的图标地址，直接从共享磁盘缓存解码
+        val localIcon = iconService.loadRemembered(SOURCE_PREFIX + packageName)
         if (localIcon != null) {
-            iconCache[packageName] = localIcon
-            onIconLoaded(localIcon)
+            iconCache.put(CACHE_PREFIX + packageName, localIcon)
+            onIconLoaded(BitmapDrawable(context.resources, localIcon))
             return
         }
         
@@ -67,9 +71,7 @@ class AppIconManager private constructor(private val context: Context) {
             try {
                 val icon = downloadAppIcon(packageName, appName)
                 if (icon != null) {
-                    // 缓存到内存和本地
-                    iconCache[packageName] = icon
-                    cacheAppIcon(packageName, icon)
+                    iconCache.put(CACHE_PREFIX + packageName, icon)
                     
                     // 在主线程回调
                     withContext(Dispatchers.Main) {
@@ -105,6 +107,7 @@ class AppIconManager private constructor(private val context: Context) {
                     try {
                         val icon = downloadImageFromUrl(source)
                         if (icon != null) {
+                            iconService.rememberUrl(SOURCE_PREFIX + packageName, source)
                             return@withContext icon
                         }
                     } catch (e: Exception) {
@@ -794,108 +797,14 @@ class AppIconManager private constructor(private val context: Context) {
      * 从URL下载文本内容
      */
     private suspend fun downloadTextFromUrl(url: String): String? {
-        return withContext(Dispatchers.IO) {
-            try {
-                val connection = URL(url).openConnection()
-                connection.connectTimeout = 5000
-                connection.readTimeout = 10000
-                connection.setRequestProperty("User-Agent", "Mozilla/5.0 (Android)")
-                connection.setRequestProperty("Accept", "application/json")
-                connection.connect()
-
-                val inputStream = connection.getInputStream()
-                val text = inputStream.bufferedReader().use { it.readText() }
-                inputStream.close()
-
-                text
-            } catch (e: Exception) {
-                null
-            }
-        }
+        return iconService.fetchText(url)
     }
 
     /**
      * 从URL下载图片
      */
     private suspend fun downloadImageFromUrl(url: String): Drawable? {
-        return withContext(Dispatchers.IO) {
-            try {
-                val connection = URL(url).openConnection()
-                connection.connectTimeout = 5000
-                connection.readTimeout = 10000
-                connection.setRequestProperty("User-Agent", "Mozilla/5.0 (Android)")
-                connection.connect()
-
-                val inputStream = connection.getInputStream()
-                val bitmap = BitmapFactory.decodeStream(inputStream)
-                inputStream.close()
-
-                if (bitmap != null) {
-                    BitmapDrawable(context.resources, bitmap)
-                } else null
-            } catch (e: Exception) {
-                null
-            }
-        }
-    }
-    
-    /**
-     * 从本地缓存获取应用图标
-     */
-    private fun getCachedAppIcon(packageName: String): Drawable? {
-        return try {
-            val cacheDir = File(context.cacheDir, "app_icons")
-            val iconFile = File(cacheDir, "$packageName.png")
-            if (iconFile.exists()) {
-                val bitmap = BitmapFactory.decodeFile(iconFile.absolutePath)
-                if (bitmap != null) {
-                    BitmapDrawable(context.resources, bitmap)
-                } else null
-            } else null
-        } catch (e: Exception) {
-            null
-        }
-    }
-    
-    /**
-     * 缓存应用图标到本地
-     */
-    private fun cacheAppIcon(packageName: String, drawable: Drawable) {
-        try {
-            val cacheDir = File(context.cacheDir, "app_icons")
-            if (!cacheDir.exists()) {
-                cacheDir.mkdirs()
-            }
-            
-            val iconFile = File(cacheDir, "$packageName.png")
-            val bitmap = drawableToBitmap(drawable)
-            
-            FileOutputStream(iconFile).use { out ->
-                bitmap.compress(Bitmap.CompressFormat.PNG, 90, out)
-            }
-        } catch (e: Exception) {
-            // 缓存失败不影响主要功能
-        }
-    }
-    
-    /**
-     * 将Drawable转换为Bitmap
-     */
-    private fun drawableToBitmap(drawable: Drawable): Bitmap {
-        if (drawable is BitmapDrawable) {
-            return drawable.bitmap
-        }
-        
-        val bitmap = Bitmap.createBitmap(
-            drawable.intrinsicWidth.takeIf { it > 0 } ?: 96,
-            drawable.intrinsicHeight.takeIf { it > 0 } ?: 96,
-            Bitmap.Config.ARGB_8888
-        )
-        
-        val canvas = android.graphics.Canvas(bitmap)
-        drawable.setBounds(0, 0, canvas.width, canvas.height)
-        drawable.draw(canvas)
-        return bitmap
+        return iconService.load(url)?.let { BitmapDrawable(context.resources, it) }
     }
     
     /**
@@ -948,9 +857,10 @@ class AppIconManager private constructor(private val context: Context) {
      * 清理缓存
      */
     fun clearCache() {
-        iconCache.clear()
+        iconCache.removeByPrefix(CACHE_PREFIX)
+        iconService.forgetUrls(SOURCE_PREFIX)
         try {
-            val cacheDir = File(context.cacheDir, "app_icons")
+            val cacheDir = File(context.cacheDir, LEGACY_CACHE_DIR)
             if (cacheDir.exists()) {
                 cacheDir.deleteRecursively()
             }
@@ -1,19 +1,13 @@
 package com.example.aifloatingball.manager
 
 import android.content.Context
-import android.graphics.Bitmap
-import android.graphics.BitmapFactory
 import android.graphics.drawable.BitmapDrawable
 import android.graphics.drawable.Drawable
 import com.example.aifloatingball.config.IconResolutionConfig
 import kotlinx.coroutines.*
 import org.json.JSONObject
 import java.io.File
-import java.io.FileOutputStream
-import java.net.HttpURLConnection
-import java.net.URL
 import java.net.URLEncoder
-import java.util.concurrent.ConcurrentHashMap
 
 /**
  * 专门用于App Store图标获取的管理器
@@ -21,17 +15,20 @@ import java.util.concurrent.ConcurrentHashMap
  */
 class AppStoreIconManager private constructor(private val context: Context) {
     
-    private val iconCache = ConcurrentHashMap<String, Drawable>()
-    private val urlCache = ConcurrentHashMap<String, List<String>>()
-    private val failedUrls = ConcurrentHashMap<String, Long>()
-    private val cacheDir = File(context.cacheDir, "appstore_icons")
+    // 内存缓存、下载、磁盘缓存和失败记录都交给统一的图标服务
+    private val iconCache = AppIconCache.getInstance(context)
+    private val iconService = IconService.getInstance(context)
     
     companion object {
         @Volatile
         private var instance: AppStoreIconManager? = null
         
-        private const val CACHE_EXPIRY_TIME = 24 * 60 * 60 * 1000L // 24小时
-        private const val FAILED_URL_RETRY_TIME = 60 * 60 * 1000L // 1小时后重试失败的URL
+        private const val CACHE_PREFIX = "appstore:"
+        private const val SOURCE_PREFIX = "appstore:"
+        // 商店图标小于这个尺寸时视为占位图
+        private const val MIN_ICON_PX = 32
+        // 旧版本单独保存的图标目录，清理缓存时删除
+        private const val LEGACY_CACHE_DIR = "appstore_icons"
         
         fun getInstance(context: Context): AppStoreIconManager {
             return instance ?: synchronized(this) {
@@ -40,12 +37,6 @@ class AppStoreIconManager private constructor(private val context: Context) {
         }
     }
     
-    init {
-        if (!cacheDir.exists()) {
-            cacheDir.mkdirs()
-        }
-    }
-    
     /**
      * 获取App Store高质量图标 (支持配置化分辨率)
      */
@@ -58,27 +49,25 @@ class AppStoreIconManager private constructor(private val context: Context) {
         val cacheKey = "${packageName}_${appName}_appstore"
         
         // 1. 检查内存缓存
-        iconCache[cacheKey]?.let { cachedIcon ->
+        iconCache.getDrawable(CACHE_PREFIX + cacheKey)?.let { cachedIcon ->
             onIconLoaded(cachedIcon)
             return
         }
         
-        // 2. 检查本地缓存
-        val localIcon = loadFromLocalCache(cacheKey)
+        // 2. 上次找到的图标地址，直接从共享磁盘缓存解码
+        val localIcon = iconService.loadRemembered(SOURCE_PREFIX + cacheKey)
         if (localIcon != null) {
-            iconCache[cacheKey] = localIcon
-            onIconLoaded(localIcon)
+            iconCache.put(CACHE_PREFIX + cacheKey, localIcon)
+            onIconLoaded(BitmapDrawable(context.resources, localIcon))
             return
         }
         
         // 3. 异步从App Store获取 (使用配置化分辨率)
         CoroutineScope(Dispatchers.IO).launch {
             try {
-                val icon = fetchFromAppStore(packageName, appName, displayContext)
+                val icon = fetchFromAppStore(packageName, appName, displayContext, SOURCE_PREFIX + cacheKey)
                 if (icon != null) {
-                    // 缓存到内存和本地
-                    iconCache[cacheKey] = icon
-                    saveToLocalCache(cacheKey, icon)
+                    iconCache.put(CACHE_PREFIX + cacheKey, icon)
 
                     withContext(Dispatchers.Main) {
                         onIconLoaded(icon)
@@ -99,7 +88,12 @@ class AppStoreIconManager private constructor(private val context: Context) {
     /**
      * 从App Store获取图标 (支持配置化分辨率 + AI应用增强)
      */
-    private suspend fun fetchFromAppStore(packageName: String, appName: String, displayContext: IconResolutionConfig.DisplayContext): Drawable? {
+    private suspend fun fetchFromAppStore(
+        packageName: String,
+        appName: String,
+        displayContext: IconResolutionConfig.DisplayContext,
+        sourceKey: String
+    ): Drawable? {
         return withContext(Dispatchers.IO) {
             try {
                 // 0. 优先尝试AI应用图标增强器
@@ -113,7 +107,7 @@ class AppStoreIconManager private constructor(private val context: Context) {
                     for (keyword in alternativeKeywords) {
                         val keywordIcons = searchByExactName(keyword, displayContext)
                         for (iconUrl in keywordIcons) {
-                            val icon = downloadIcon(iconUrl)
+                            val icon = downloadIcon(iconUrl, sourceKey)
                             if (icon != null) return@withContext icon
                         }
                     }
@@ -122,21 +116,21 @@ class AppStoreIconManager private constructor(private val context: Context) {
                 // 1. 尝试精确搜索
                 val exactIcons = searchByExactName(appName, displayContext)
                 for (iconUrl in exactIcons) {
-                    val icon = downloadIcon(iconUrl)
+                    val icon = downloadIcon(iconUrl, sourceKey)
                     if (icon != null) return@withContext icon
                 }
 
                 // 2. 尝试模糊搜索
                 val fuzzyIcons = searchByFuzzyName(appName, displayContext)
                 for (iconUrl in fuzzyIcons) {
-                    val icon = downloadIcon(iconUrl)
+                    val icon = downloadIcon(iconUrl, sourceKey)
                     if (icon != null) return@withContext icon
                 }
 
                 // 3. 尝试通过包名推测
                 val packageIcons = searchByPackageName(packageName, displayContext)
                 for (iconUrl in packageIcons) {
-                    val icon = downloadIcon(iconUrl)
+                    val icon = downloadIcon(iconUrl, sourceKey)
                     if (icon != null) return@withContext icon
                 }
 
@@ -435,125 +429,31 @@ class AppStoreIconManager private constructor(private val context: Context) {
     }
 
     /**
-     * 下载文本内容 (使用配置化超时)
+     * 下载文本内容，同一查询的并发请求由 [IconService] 合并
      */
-    private fun downloadText(urlString: String): String? {
-        return try {
-            val url = URL(urlString)
-            val connection = url.openConnection() as HttpURLConnection
-            val (connectTimeout, readTimeout) = IconResolutionConfig.getNetworkTimeouts()
-            connection.connectTimeout = connectTimeout
-            connection.readTimeout = readTimeout
-            connection.setRequestProperty("User-Agent", "Mozilla/5.0 (iPhone; CPU iPhone OS 14_0 like Mac OS X)")
-
-            val response = connection.inputStream.bufferedReader().use { it.readText() }
-            connection.disconnect()
-            response
-        } catch (e: Exception) {
-            null
-        }
+    private suspend fun downloadText(urlString: String): String? {
+        return iconService.fetchText(urlString)
     }
 
     /**
-     * 下载图标
+     * 下载图标，成功时记下图标地址供下次直接使用
      */
-    private fun downloadIcon(iconUrl: String): Drawable? {
+    private suspend fun downloadIcon(iconUrl: String, sourceKey: String): Drawable? {
         if (iconUrl.isEmpty()) return null
-
-        // 检查失败缓存
-        failedUrls[iconUrl]?.let { failTime ->
-            if (System.currentTimeMillis() - failTime < FAILED_URL_RETRY_TIME) {
-                return null
-            }
-        }
-
-        return try {
-            val url = URL(iconUrl)
-            val connection = url.openConnection() as HttpURLConnection
-            connection.connectTimeout = 5000
-            connection.readTimeout = 5000
-            connection.setRequestProperty("User-Agent", "Mozilla/5.0 (iPhone; CPU iPhone OS 14_0 like Mac OS X)")
-
-            if (connection.responseCode == HttpURLConnection.HTTP_OK) {
-                val bitmap = BitmapFactory.decodeStream(connection.inputStream)
-                connection.disconnect()
-
-                if (bitmap != null && bitmap.width >= 32 && bitmap.height >= 32) {
-                    BitmapDrawable(context.resources, bitmap)
-                } else {
-                    failedUrls[iconUrl] = System.currentTimeMillis()
-                    null
-                }
-            } else {
-                failedUrls[iconUrl] = System.currentTimeMillis()
-                null
-            }
-        } catch (e: Exception) {
-            failedUrls[iconUrl] = System.currentTimeMillis()
-            null
-        }
-    }
-
-    /**
-     * 从本地缓存加载
-     */
-    private fun loadFromLocalCache(cacheKey: String): Drawable? {
-        return try {
-            val cacheFile = File(cacheDir, "$cacheKey.png")
-            if (cacheFile.exists() &&
-                System.currentTimeMillis() - cacheFile.lastModified() < CACHE_EXPIRY_TIME) {
-                val bitmap = BitmapFactory.decodeFile(cacheFile.absolutePath)
-                if (bitmap != null) {
-                    BitmapDrawable(context.resources, bitmap)
-                } else {
-                    cacheFile.delete()
-                    null
-                }
-            } else {
-                null
-            }
-        } catch (e: Exception) {
-            null
-        }
+        val bitmap = iconService.load(iconUrl, minSourcePx = MIN_ICON_PX) ?: return null
+        iconService.rememberUrl(sourceKey, iconUrl)
+        return BitmapDrawable(context.resources, bitmap)
     }
 
     /**
-     * 保存到本地缓存
-     */
-    private fun saveToLocalCache(cacheKey: String, drawable: Drawable) {
-        try {
-            if (drawable is BitmapDrawable) {
-                val cacheFile = File(cacheDir, "$cacheKey.png")
-                val outputStream = FileOutputStream(cacheFile)
-                drawable.bitmap.compress(Bitmap.CompressFormat.PNG, 90, outputStream)
-                outputStream.close()
-            }
-        } catch (e: Exception) {
-            // 忽略缓存保存错误
-        }
-    }
-
-    /**
-     * 清理过期缓存
+     * 清理缓存：丢弃记下的图标地址和旧版本的图标目录，之后会重新查询
      */
     fun cleanExpiredCache() {
+        iconCache.removeByPrefix(CACHE_PREFIX)
+        iconService.forgetUrls(SOURCE_PREFIX)
         CoroutineScope(Dispatchers.IO).launch {
             try {
-                val currentTime = System.currentTimeMillis()
-                cacheDir.listFiles()?.forEach { file ->
-                    if (currentTime - file.lastModified() > CACHE_EXPIRY_TIME) {
-                        file.delete()
-                    }
-                }
-
-                // 清理失败URL缓存
-                val iterator = failedUrls.entries.iterator()
-                while (iterator.hasNext()) {
-                    val entry = iterator.next()
-                    if (currentTime - entry.value > FAILED_URL_RETRY_TIME) {
-                        iterator.remove()
-                    }
-                }
+                File(context.cacheDir, LEGACY_CACHE_DIR).deleteRecursively()
             } catch (e: Exception) {
                 // 忽略清理错误
             }
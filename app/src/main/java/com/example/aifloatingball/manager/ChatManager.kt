@@ -74,8 +74,20 @@ class ChatManager(private val context: Context) {
         private const val KEY_SESSIONS = "chat_sessions_v2"
         private const val KEY_FAVORITES = "chat_favorites_v1"
         private const val KEY_CURRENT_SESSION_ID = "current_session_id_v2"
+        private const val KEY_CONTEXT_SUMMARY = "context_summary_"
     }
 
+    // 按token预算裁剪历史，早期对话的摘要和会话存放在同一个SharedPreferences中
+    private val contextBuilder = ConversationContextBuilder(
+        budget = ConversationContextBuilder.Budget(),
+        loadSummary = { key ->
+            context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).getString(KEY_CONTEXT_SUMMARY + key, null)
+        },
+        saveSummary = { key, json ->
+            context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit().putString(KEY_CONTEXT_SUMMARY + key, json).apply()
+        }
+    )
+
     init {
         loadSessions()
         loadFavorites()
@@ -233,6 +245,8 @@ class ChatManager(private val context: Context) {
                 saveCurrentSessionId()
             }
             saveSessions()
+            contextBuilder.forget(sessionId)
+            context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit().remove(KEY_CONTEXT_SUMMARY + sessionId).apply()
         }
 
         @android.webkit.JavascriptInterface
@@ -383,10 +397,32 @@ class ChatManager(private val context: Context) {
             saveSessions()
         }
 
-        val contextMessages = session.messages.map { mapOf("role" to it.role, "content" to it.content) }
+        val contextMessages = buildContextMessages(session, isDeepSeek)
         streamResponse(webView, apiUrl, apiKey, model, contextMessages, sessionId)
     }
 
+    /**
+     * 按token预算构建请求消息：最近的轮次保留原文，更早的用缓存的摘要代替，最后是本次的问题
+     */
+    private suspend fun buildContextMessages(session: ChatSession, isDeepSeek: Boolean): List<Map<String, String>> {
+        val snapshot = messageLock.withLock { session.messages.toList() }
+        val current = snapshot.lastOrNull() ?: return emptyList()
+        val turns = snapshot.dropLast(1)
+            .filter { !it.isLoading && it.content.isNotBlank() }
+            .map { ConversationContextBuilder.Turn("${it.timestamp}-${it.role}", it.role, it.content) }
+
+        val estimator = TokenEstimator(if (isDeepSeek) TokenEstimator.Family.DEEPSEEK else TokenEstimator.Family.OPENAI)
+        contextBuilder.budget = contextBuilder.budget.copy(maxTokens = settingsManager.getContextTokenBudget())
+        val result = contextBuilder.build(
+            key = session.id,
+            turns = turns,
+            estimator = estimator,
+            reservedTokens = estimator.estimateMessage(current.role, current.content)
+        )
+        Log.d("ChatManager", "会话 ${session.id} 历史: ${turns.size} 轮，估算 ${result.report.originalTokens} → ${result.report.finalTokens} tokens")
+        return result.messages + mapOf("role" to current.role, "content" to current.content)
+    }
+
     private suspend fun streamResponse(webView: WebView, apiUrl: String, apiKey: String, model: String, context: List<Map<String, String>>, sessionId: String) {
         withContext(Dispatchers.IO) {
             try {
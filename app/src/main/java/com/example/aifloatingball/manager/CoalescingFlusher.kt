@@ -0,0 +1,166 @@
+package com.example.aifloatingball.manager
+
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+
+/**
+ * 合并写入的延迟刷盘器（write-behind）
+ *
+ * 数据变化时只调用 [markDirty] 把键放进脏集合，不立即写入；
+ * 第一个脏键出现 [intervalMs] 后由一个后台任务统一把脏键交给 [write]，同一个键在一个周期内无论被标记多少次都只写一次。
+ * 需要马上落盘的时刻（一轮回复结束、内存紧张、退出）调用 [flush]。
+ *
+ * 刷盘过程串行执行，同一个键不会并发写入。[write] 抛出异常时按指数退避重试（[intervalMs] 的 1、2、4… 倍），
+ * 连续失败超过 [maxRetries] 次后放弃，直到该键再次被标记，避免一个总是失败的写入每个周期都重试。
+ * 只依赖 kotlinx.coroutines，可直接在 JVM 单元测试中使用。
+ */
+class CoalescingFlusher(
+    private val scheduler: Scheduler,
+    private val intervalMs: Long,
+    private val maxRetries: Int = DEFAULT_MAX_RETRIES,
+    private val write: (key: String) -> Unit
+) {
+
+    companion object {
+        const val DEFAULT_MAX_RETRIES = 5
+    }
+
+    /**
+     * 延迟执行任务，测试中可替换为手动推进的时钟
+     */
+    fun interface Scheduler {
+        fun schedule(delayMs: Long, task: () -> Unit)
+    }
+
+    /**
+     * 在 [scope] 中用协程延迟执行，作用域取消后不再写入
+     */
+    constructor(
+        scope: CoroutineScope,
+        intervalMs: Long,
+        maxRetries: Int = DEFAULT_MAX_RETRIES,
+        write: (key: String) -> Unit
+    ) : this(
+        Scheduler { delayMs, task ->
+            scope.launch {
+                delay(delayMs)
+                task()
+            }
+        },
+        intervalMs,
+        maxRetries,
+        write
+    )
+
+    /**
+     * @param marks [markDirty] 调用次数
+     * @param writes 实际调用 [write] 成功的次数
+     * @param flushes 刷盘批次数
+     * @param failures [write] 抛出异常的次数
+     * @param abandoned 连续失败达到上限后放弃的次数
+     * @param pending 等待写入或重试的键数
+     */
+    data class Stats(
+        val marks: Long,
+        val writes: Long,
+        val flushes: Long,
+        val failures: Long,
+        val abandoned: Long,
+        val pending: Int
+    )
+
+    private val lock = Any()
+    // 串行化刷盘，保证同一个键的写入按顺序完成
+    private val writeLock = Any()
+    private val dirty = LinkedHashSet<String>()
+    private var flushScheduled = false
+    // 正在等待重试的键及其连续失败次数
+    private val retries = HashMap<String, Int>()
+
+    private var marks = 0L
+    private var writes = 0L
+    private var flushes = 0L
+    private var failures = 0L
+    private var abandoned = 0L
+
+    /**
+     * 标记键已变化，最迟 [intervalMs] 后写入
+     */
+    fun markDirty(key: String) {
+        synchronized(lock) {
+            marks++
+            dirty.add(key)
+            if (flushScheduled) return
+            flushScheduled = true
+        }
+        scheduler.schedule(intervalMs) {
+            // 刷盘期间新标记的键由下一个任务负责
+            synchronized(lock) { flushScheduled = false }
+            flush()
+        }
+    }
+
+    /**
+     * 立即写入全部脏键和等待重试的键，在调用线程中执行
+     */
+    fun flush() {
+        synchronized(writeLock) {
+            val keys = synchronized(lock) {
+                LinkedHashSet(dirty).apply { addAll(retries.keys) }.also { dirty.clear() }
+            }
+            if (keys.isEmpty()) return
+            synchronized(lock) { flushes++ }
+            keys.forEach { writeKey(it) }
+        }
+    }
+
+    /**
+     * 立即写入一个键，无论它是否被标记过；其他脏键仍按周期写入
+     */
+    fun flush(key: String) {
+        synchronized(writeLock) {
+            synchronized(lock) { dirty.remove(key) }
+            writeKey(key)
+        }
+    }
+
+    fun hasPending(): Boolean = synchronized(lock) { dirty.isNotEmpty() || retries.isNotEmpty() }
+
+    fun stats(): Stats = synchronized(lock) {
+        Stats(
+            marks = marks,
+            writes = writes,
+            flushes = flushes,
+            failures = failures,
+            abandoned = abandoned,
+            pending = dirty.size + retries.keys.count { it !in dirty }
+        )
+    }
+
+    private fun writeKey(key: String) {
+        try {
+            write(key)
+            synchronized(lock) {
+                writes++
+                retries.remove(key)
+            }
+        } catch (e: Exception) {
+            val attempt = synchronized(lock) {
+                failures++
+                val attempt = (retries[key] ?: 0) + 1
+                if (attempt > maxRetries) {
+                    retries.remove(key)
+                    abandoned++
+                    return
+                }
+                retries[key] = attempt
+                attempt
+            }
+            scheduler.schedule(intervalMs shl (attempt - 1)) {
+                // 期间已经写入成功或又失败过一次时，由那一次安排的任务负责
+                if (synchronized(lock) { retries[key] == attempt }) flush(key)
+            }
+        }
+    }
+}
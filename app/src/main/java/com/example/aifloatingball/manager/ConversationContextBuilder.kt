@@ -0,0 +1,282 @@
+package com.example.aifloatingball.manager
+
+import com.google.gson.Gson
+
+/**
+ * 按 token 预算构建发送给 AI 的对话历史
+ *
+ * 从最新的一轮往前保留原文，直到放不下预算；更早的轮次不再原样发送，而是压缩成一条摘要。
+ * 摘要按会话缓存并通过 [loadSummary]/[saveSummary] 持久化在会话数据旁边，
+ * 新的轮次被挤出原文窗口时只把这几轮追加进已有摘要，不会每次从头生成，
+ * 摘要前缀保持稳定，也有利于服务端的前缀缓存。
+ *
+ * 每次构建的取舍记录在 [recentReports] 中，供调试界面查看。只依赖 Gson，可直接在 JVM 单元测试中使用。
+ */
+class ConversationContextBuilder(
+    @Volatile var budget: Budget,
+    private val loadSummary: (key: String) -> String?,
+    private val saveSummary: (key: String, json: String) -> Unit
+) {
+
+    companion object {
+        private const val MAX_REPORTS = 20
+        private const val MAX_MEMORY_SUMMARIES = 32
+        // 摘要中每轮最多保留的字符数
+        private const val SUMMARY_LINE_CHARS = 60
+        private const val SUMMARY_HEADER = "【更早的对话摘要】"
+        private const val SUMMARY_ACK = "好的，我会结合这些背景继续对话。"
+        private const val TRUNCATED_MARK = "\n……（中间内容已省略）……\n"
+
+        private val reports = ArrayDeque<Report>()
+
+        /**
+         * 最近的构建记录，最新的在前
+         */
+        fun recentReports(): List<Report> = synchronized(reports) { reports.toList() }
+
+        private fun record(report: Report) {
+            synchronized(reports) {
+                reports.addFirst(report)
+                while (reports.size > MAX_REPORTS) reports.removeLast()
+            }
+        }
+    }
+
+    /**
+     * @param maxTokens 历史加当前消息的总预算
+     * @param minRecentTurns 无论预算如何都保留原文的最近轮数
+     * @param summaryMaxTokens 摘要最多占用的 token 数
+     * @param maxTurnTokens 单轮超过这个长度时掐头去尾
+     */
+    data class Budget(
+        val maxTokens: Int = 4000,
+        val minRecentTurns: Int = 2,
+        val summaryMaxTokens: Int = 400,
+        val maxTurnTokens: Int = 1200
+    )
+
+    data class Turn(val id: String, val role: String, val content: String)
+
+    enum class Decision { KEPT, TRUNCATED, SUMMARIZED }
+
+    data class Entry(
+        val turnId: String,
+        val role: String,
+        val tokens: Int,
+        val decision: Decision,
+        val preview: String
+    )
+
+    /**
+     * 一次构建的取舍记录
+     *
+     * @param originalTokens 不做任何裁剪时整段历史的估算 token 数
+     * @param finalTokens 实际发送的历史的估算 token 数
+     * @param summaryFromCache 摘要是否直接来自缓存（含增量追加）
+     */
+    data class Report(
+        val key: String,
+        val family: TokenEstimator.Family,
+        val budgetTokens: Int,
+        val reservedTokens: Int,
+        val originalTokens: Int,
+        val finalTokens: Int,
+        val summaryTokens: Int,
+        val summaryFromCache: Boolean,
+        val entries: List<Entry>,
+        val timestamp: Long = System.currentTimeMillis()
+    ) {
+        fun describe(): String = buildString {
+            appendLine("[$key] ${family.name} 预算 $budgetTokens（当前消息 $reservedTokens）")
+            appendLine("原始 $originalTokens → 实际 $finalTokens tokens，摘要 $summaryTokens${if (summaryFromCache) "（缓存）" else ""}")
+            entries.forEach { entry ->
+                appendLine("  ${entry.decision.name.padEnd(10)} ${entry.role.padEnd(9)} ${entry.tokens.toString().padStart(5)}  ${entry.preview}")
+            }
+        }
+    }
+
+    data class Result(val messages: List<Map<String, String>>, val report: Report)
+
+    /**
+     * 持久化的摘要：覆盖前 [coveredCount] 轮，最后一轮的 ID 为 [coveredLastId]
+     */
+    private data class Summary(
+        val coveredCount: Int,
+        val coveredLastId: String,
+        val lines: List<String>
+    )
+
+    private val gson = Gson()
+    private val memorySummaries = object : LinkedHashMap<String, Summary>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, Summary>?): Boolean {
+            return size > MAX_MEMORY_SUMMARIES
+        }
+    }
+
+    /**
+     * 构建历史
+     *
+     * @param key 会话标识，同时是摘要的存储键
+     * @param turns 按时间顺序排列的历史轮次，不含当前消息
+     * @param reservedTokens 当前消息和提示词预计占用的 token 数
+     */
+    fun build(key: String, turns: List<Turn>, estimator: TokenEstimator, reservedTokens: Int = 0): Result {
+        val budget = this.budget
+        val family = estimator.family
+        val costs = turns.map { estimator.estimateMessage(it.role, it.content) }
+        val originalTokens = family.tokensPerRequest + costs.sum()
+        val available = budget.maxTokens - reservedTokens - family.tokensPerRequest
+
+        // 从最新的一轮往前保留原文；还有更早的轮次时给摘要留出位置
+        val kept = ArrayList<Pair<Turn, Decision>>()
+        var used = 0
+        var firstKept = turns.size
+        for (i in turns.indices.reversed()) {
+            var turn = turns[i]
+            var cost = costs[i]
+            var decision = Decision.KEPT
+            if (cost > budget.maxTurnTokens) {
+                turn = turn.copy(content = truncate(turn.content, budget.maxTurnTokens, estimator))
+                cost = estimator.estimateMessage(turn.role, turn.content)
+                decision = Decision.TRUNCATED
+            }
+            val forced = turns.size - i <= budget.minRecentTurns
+            val reserve = if (i > 0) budget.summaryMaxTokens else 0
+            if (!forced && used + cost + reserve > available) break
+            kept.add(turn to decision)
+            used += cost
+            firstKept = i
+        }
+        kept.reverse()
+
+        val entries = ArrayList<Entry>(turns.size)
+        val messages = ArrayList<Map<String, String>>(kept.size + 2)
+        var summaryTokens = 0
+        var summaryFromCache = false
+        if (firstKept > 0) {
+            val (summary, fromCache) = summarize(key, turns, firstKept, estimator, budget)
+            summaryFromCache = fromCache
+            val text = SUMMARY_HEADER + "\n" + summary.lines.joinToString("\n")
+            messages.add(mapOf("role" to "user", "content" to text))
+            messages.add(mapOf("role" to "assistant", "content" to SUMMARY_ACK))
+            summaryTokens = estimator.estimateMessage("user", text) + estimator.estimateMessage("assistant", SUMMARY_ACK)
+            for (i in 0 until firstKept) {
+                entries.add(Entry(turns[i].id, turns[i].role, costs[i], Decision.SUMMARIZED, preview(turns[i].content)))
+            }
+        }
+        kept.forEach { (turn, decision) ->
+            messages.add(mapOf("role" to turn.role, "content" to turn.content))
+            entries.add(Entry(turn.id, turn.role, estimator.estimateMessage(turn.role, turn.content), decision, preview(turn.content)))
+        }
+
+        val report = Report(
+            key = key,
+            family = family,
+            budgetTokens = budget.maxTokens,
+            reservedTokens = reservedTokens,
+            originalTokens = originalTokens,
+            finalTokens = family.tokensPerRequest + summaryTokens + used,
+            summaryTokens = summaryTokens,
+            summaryFromCache = summaryFromCache,
+            entries = entries
+        )
+        record(report)
+        return Result(messages, report)
+    }
+
+    /**
+     * 丢弃会话的内存摘要，持久化的部分由调用方随会话一起删除
+     */
+    fun forget(key: String) {
+        synchronized(memorySummaries) { memorySummaries.remove(key) }
+    }
+
+    /**
+     * 取得覆盖前 [count] 轮的摘要：缓存完全匹配时直接使用，缓存是其前缀时只追加新挤出的轮次，否则重新生成
+     */
+    private fun summarize(
+        key: String,
+        turns: List<Turn>,
+        count: Int,
+        estimator: TokenEstimator,
+        budget: Budget
+    ): Pair<Summary, Boolean> {
+        val cached = cachedSummary(key)?.takeIf {
+            it.coveredCount in 1..count && turns[it.coveredCount - 1].id == it.coveredLastId
+        }
+        if (cached != null && cached.coveredCount == count) return cached to true
+
+        val start = cached?.coveredCount ?: 0
+        val lines = ArrayList(cached?.lines ?: emptyList())
+        for (i in start until count) {
+            summaryLine(turns[i])?.let { lines.add(it) }
+        }
+        // 超出摘要预算时丢弃最早的内容
+        var tokens = lines.sumOf { estimator.estimate(it) + 1 }
+        while (lines.size > 1 && tokens > budget.summaryMaxTokens) {
+            tokens -= estimator.estimate(lines.removeAt(0)) + 1
+        }
+        val summary = Summary(count, turns[count - 1].id, lines)
+        synchronized(memorySummaries) { memorySummaries[key] = summary }
+        try {
+            saveSummary(key, gson.toJson(summary))
+        } catch (e: Exception) {
+            // 摘要缓存写入失败只影响下次的构建速度
+        }
+        return summary to (cached != null)
+    }
+
+    private fun cachedSummary(key: String): Summary? {
+        synchronized(memorySummaries) { memorySummaries[key] }?.let { return it }
+        val json = try {
+            loadSummary(key)
+        } catch (e: Exception) {
+            null
+        } ?: return null
+        val summary = try {
+            gson.fromJson(json, Summary::class.java)
+        } catch (e: Exception) {
+            null
+        }
+        // Gson 绕过构造函数，旧数据缺字段时这里可能为 null
+        @Suppress("SENSELESS_COMPARISON")
+        if (summary == null || summary.lines == null || summary.coveredLastId == null) return null
+        synchronized(memorySummaries) { memorySummaries[key] = summary }
+        return summary
+    }
+
+    /**
+     * 抽取式摘要：每轮取第一句话
+     */
+    private fun summaryLine(turn: Turn): String? {
+        val text = turn.content.trim()
+        if (text.isEmpty()) return null
+        val end = text.indexOfFirst { it == '\n' || it == '。' || it == '！' || it == '？' || it == '?' || it == '!' }
+        var sentence = if (end > 0) text.substring(0, end + 1).trim() else text
+        if (sentence.length > SUMMARY_LINE_CHARS) sentence = sentence.take(SUMMARY_LINE_CHARS) + "…"
+        val label = when (turn.role) {
+            "user" -> "用户"
+            "assistant" -> "助手"
+            else -> turn.role
+        }
+        return "$label：$sentence"
+    }
+
+    /**
+     * 保留开头和结尾，使估算 token 数不超过 [maxTokens]
+     */
+    private fun truncate(content: String, maxTokens: Int, estimator: TokenEstimator): String {
+        val total = estimator.estimate(content)
+        if (total <= maxTokens) return content
+        val keepChars = (content.length.toLong() * maxTokens / total).toInt() - TRUNCATED_MARK.length
+        if (keepChars <= 0) return content.take(maxTokens)
+        val head = keepChars * 2 / 3
+        val tail = keepChars - head
+        return content.take(head) + TRUNCATED_MARK + content.takeLast(tail)
+    }
+
+    private fun preview(content: String): String {
+        val line = content.replace('\n', ' ')
+        return if (line.length > 30) line.take(30) + "…" else line
+    }
+}
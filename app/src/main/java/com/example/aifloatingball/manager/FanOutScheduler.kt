@@ -0,0 +1,254 @@
+package com.example.aifloatingball.manager
+
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.channelFlow
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
+import kotlinx.coroutines.withTimeoutOrNull
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * 群聊中一个问题同时发给多个AI时的调度器
+ *
+ * - 全局和单个服务各有并发上限，超出的成员排队而不是被丢弃
+ * - 每个成员有首字截止时间，超时的成员直接失败，不会拖住整轮回复
+ * - 迟迟没有首字时对同一服务发起一次对冲请求，先出字的请求胜出，另一个被取消；
+ *   请求在出字前失败时立即重试，不做退避，整轮耗时取决于最慢的有效成员而不是重试次数之和
+ * - 所有成员的输出合并为一个带成员标记的 [Flow]，收集方取消时所有进行中的请求一并取消
+ *
+ * 不依赖 Android 框架，可以在 JVM 单元测试中使用。
+ */
+class FanOutScheduler(
+    private val source: StreamSource,
+    private val config: Config = Config()
+) {
+
+    /**
+     * @param maxConcurrent 同时进行的成员数上限
+     * @param maxPerProvider 同一服务同时进行的成员数上限
+     * @param firstTokenTimeoutMs 从成员开始到收到首字的最长等待时间
+     * @param hedgeDelayMs 多久没有首字就发起对冲请求，0 表示不对冲
+     * @param maxAttempts 每个成员最多发出的请求数（含对冲和重试）
+     * @param streamTimeoutMs 单个成员从开始到回复结束的最长时间
+     */
+    data class Config(
+        val maxConcurrent: Int = 6,
+        val maxPerProvider: Int = 2,
+        val firstTokenTimeoutMs: Long = 20_000L,
+        val hedgeDelayMs: Long = 8_000L,
+        val maxAttempts: Int = 2,
+        val streamTimeoutMs: Long = 180_000L
+    )
+
+    /**
+     * 实际发出请求的一方，回调结束前应一直挂起，协程取消时应中止请求
+     */
+    fun interface StreamSource {
+        suspend fun stream(target: Target, callback: AIApiManager.StreamingCallback)
+    }
+
+    /**
+     * 一个回复成员
+     *
+     * @param memberId 成员ID，用于标记输出
+     * @param serviceType 成员使用的AI服务，用于单个服务的并发限制
+     */
+    data class Target(
+        val memberId: String,
+        val serviceType: AIServiceType,
+        val message: String,
+        val history: List<Map<String, String>> = emptyList()
+    )
+
+    /**
+     * 合并输出中的事件，均带有成员ID
+     */
+    sealed class Event {
+        abstract val memberId: String
+
+        /** 成员拿到并发名额，开始请求 */
+        data class Started(override val memberId: String) : Event()
+
+        /** 一段增量文本 */
+        data class Chunk(override val memberId: String, val text: String) : Event()
+
+        /**
+         * 成员回复完成
+         *
+         * @param attempts 实际发出的请求数
+         */
+        data class Completed(
+            override val memberId: String,
+            val content: String,
+            val firstTokenMs: Long,
+            val totalMs: Long,
+            val attempts: Int
+        ) : Event()
+
+        /**
+         * 成员回复失败
+         *
+         * @param timedOut 是否因为首字或总时长超时
+         */
+        data class Failed(
+            override val memberId: String,
+            val error: String,
+            val timedOut: Boolean,
+            val attempts: Int
+        ) : Event()
+    }
+
+    // 单次请求向成员协调者报告的信号
+    private sealed class Signal(val attempt: Int) {
+        class Token(attempt: Int, val text: String) : Signal(attempt)
+        class Done(attempt: Int, val content: String) : Signal(attempt)
+        class Error(attempt: Int, val message: String) : Signal(attempt)
+    }
+
+    private val globalPermits = Semaphore(config.maxConcurrent.coerceAtLeast(1))
+    private val providerPermits = ConcurrentHashMap<AIServiceType, Semaphore>()
+
+    /**
+     * 向所有成员发出请求，返回合并后的事件流
+     *
+     * 每个成员恰好以一个 [Event.Completed] 或 [Event.Failed] 结束；流在所有成员结束后完成。
+     */
+    fun fanOut(targets: List<Target>): Flow<Event> = channelFlow {
+        targets.forEach { target ->
+            launch {
+                val providerLimit = providerPermits.getOrPut(target.serviceType) {
+                    Semaphore(config.maxPerProvider.coerceAtLeast(1))
+                }
+                // 先占服务名额再占全局名额，排队等同一服务的成员不会占住全局名额
+                providerLimit.withPermit {
+                    globalPermits.withPermit {
+                        send(Event.Started(target.memberId))
+                        runMember(target) { send(it) }
+                    }
+                }
+            }
+        }
+    }
+
+    private suspend fun runMember(target: Target, emit: suspend (Event) -> Unit) = coroutineScope {
+        val signals = Channel<Signal>(Channel.UNLIMITED)
+        val attempts = HashMap<Int, Job>()
+        var attemptCount = 0
+
+        fun startAttempt() {
+            val attempt = ++attemptCount
+            attempts[attempt] = launch {
+                val callback = object : AIApiManager.StreamingCallback {
+                    override fun onChunkReceived(chunk: String) {
+                        if (chunk.isNotEmpty()) signals.trySend(Signal.Token(attempt, chunk))
+                    }
+
+                    override fun onComplete(fullResponse: String) {
+                        signals.trySend(Signal.Done(attempt, fullResponse))
+                    }
+
+                    override fun onError(error: String) {
+                        signals.trySend(Signal.Error(attempt, error))
+                    }
+                }
+                try {
+                    source.stream(target, callback)
+                } catch (e: CancellationException) {
+                    throw e
+                } catch (e: Exception) {
+                    signals.trySend(Signal.Error(attempt, e.message ?: "未知错误"))
+                }
+            }
+        }
+
+        fun cancelAttempts(except: Int = -1) {
+            attempts.forEach { (attempt, job) -> if (attempt != except) job.cancel() }
+        }
+
+        val start = System.currentTimeMillis()
+        val firstTokenDeadline = start + config.firstTokenTimeoutMs
+        val streamDeadline = start + config.streamTimeoutMs
+        var nextHedgeAt = if (config.hedgeDelayMs > 0) start + config.hedgeDelayMs else Long.MAX_VALUE
+        var winner = -1
+        var firstTokenMs = -1L
+        val content = StringBuilder()
+
+        // 出字前失败：还有请求在进行就继续等，否则立即重试；返回 true 表示成员已失败
+        suspend fun attemptFailed(attempt: Int, error: String): Boolean {
+            attempts.remove(attempt)
+            if (attempts.values.any { it.isActive }) return false
+            if (attemptCount < config.maxAttempts) {
+                startAttempt()
+                return false
+            }
+            emit(Event.Failed(target.memberId, error, timedOut = false, attempts = attemptCount))
+            return true
+        }
+
+        startAttempt()
+        while (true) {
+            val now = System.currentTimeMillis()
+            val waitUntil = if (winner < 0) minOf(firstTokenDeadline, nextHedgeAt) else streamDeadline
+            val signal = if (waitUntil > now) withTimeoutOrNull(waitUntil - now) { signals.receive() } else null
+
+            if (signal == null) {
+                val timedOutAt = System.currentTimeMillis()
+                when {
+                    winner >= 0 || timedOutAt >= firstTokenDeadline -> {
+                        cancelAttempts()
+                        val error = if (winner >= 0) "回复超时" else "等待首字超时"
+                        emit(Event.Failed(target.memberId, error, timedOut = true, attempts = attemptCount))
+                        return@coroutineScope
+                    }
+                    attemptCount < config.maxAttempts -> {
+                        startAttempt()
+                        nextHedgeAt = timedOutAt + config.hedgeDelayMs
+                    }
+                    else -> nextHedgeAt = Long.MAX_VALUE
+                }
+                continue
+            }
+
+            if (winner >= 0 && signal.attempt != winner) continue
+            when (signal) {
+                is Signal.Token -> {
+                    if (winner < 0) {
+                        winner = signal.attempt
+                        firstTokenMs = System.currentTimeMillis() - start
+                        cancelAttempts(except = winner)
+                    }
+                    content.append(signal.text)
+                    emit(Event.Chunk(target.memberId, signal.text))
+                }
+                is Signal.Done -> {
+                    if (winner < 0) {
+                        if (signal.content.isEmpty()) {
+                            if (attemptFailed(signal.attempt, "回复为空")) return@coroutineScope
+                            continue
+                        }
+                        // 非流式服务可能只回调 onComplete
+                        firstTokenMs = System.currentTimeMillis() - start
+                        emit(Event.Chunk(target.memberId, signal.content))
+                    }
+                    cancelAttempts(except = signal.attempt)
+                    val finalContent = signal.content.ifEmpty { content.toString() }
+                    emit(Event.Completed(target.memberId, finalContent, firstTokenMs, System.currentTimeMillis() - start, attemptCount))
+                    return@coroutineScope
+                }
+                is Signal.Error -> {
+                    if (winner >= 0) {
+                        // 已经输出过内容，不再重试，以免内容重复
+                        emit(Event.Failed(target.memberId, signal.message, timedOut = false, attempts = attemptCount))
+                        return@coroutineScope
+                    }
+                    if (attemptFailed(signal.attempt, signal.message)) return@coroutineScope
+                }
+            }
+        }
+    }
+}
@@ -2,11 +2,18 @@ package com.example.aifloatingball.manager
 
 import android.content.Context
 import android.content.SharedPreferences
+import android.os.Handler
+import android.os.Looper
 import android.util.Log
+import com.example.aifloatingball.SettingsManager
 import com.example.aifloatingball.model.*
 import com.google.gson.Gson
 import com.google.gson.reflect.TypeToken
 import kotlinx.coroutines.*
+import kotlinx.coroutines.channels.BufferOverflow
+import kotlinx.coroutines.flow.MutableSharedFlow
+import kotlinx.coroutines.flow.SharedFlow
+import kotlinx.coroutines.flow.asSharedFlow
 import kotlinx.coroutines.suspendCancellableCoroutine
 import kotlin.coroutines.resume
 import kotlin.coroutines.resumeWithException
@@ -24,6 +31,20 @@ interface GroupChatListener {
     fun onGroupChatUpdated(groupChat: GroupChat)
 }
 
+/**
+ * 群聊中某条AI回复的最新内容
+ *
+ * @param content 目前为止的完整内容（不是增量）
+ * @param isComplete 是否为最终内容
+ */
+data class GroupReplyUpdate(
+    val groupId: String,
+    val messageId: String,
+    val memberId: String,
+    val content: String,
+    val isComplete: Boolean
+)
+
 /**
  * 群聊管理器
  * 负责管理群聊的创建、消息处理、成员管理等功能
@@ -35,6 +56,10 @@ class GroupChatManager private constructor(private val context: Context) {
         private const val PREFS_NAME = "group_chat_prefs"
         private const val KEY_GROUP_CHATS = "group_chats"
         private const val KEY_GROUP_MESSAGES = "group_messages_"
+        // 每个AI成员的历史摘要，键为 context_summary_群聊ID:成员ID
+        private const val KEY_CONTEXT_SUMMARY = "context_summary_"
+        // 流式回复期间最多每隔这么久写一次存储
+        private const val FLUSH_INTERVAL_MS = 1000L
         
         @Volatile
         private var INSTANCE: GroupChatManager? = null
@@ -44,11 +69,26 @@ class GroupChatManager private constructor(private val context: Context) {
                 INSTANCE ?: GroupChatManager(context.applicationContext).also { INSTANCE = it }
             }
         }
+        
+        /**
+         * 内存紧张时进程随时可能被回收，把尚未写入的消息立即落盘；管理器还没创建时什么都不做
+         */
+        fun onTrimMemory(level: Int) {
+            INSTANCE?.flushPendingWrites()
+        }
     }
     
     private val prefs: SharedPreferences = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
     private val gson = Gson()
     private val aiApiManager = AIApiManager(context)
+    private val settingsManager = SettingsManager.getInstance(context)
+    
+    // 按token预算裁剪发给各成员的历史，早期对话的摘要和群聊消息存放在同一个SharedPreferences中
+    private val contextBuilder = ConversationContextBuilder(
+        budget = ConversationContextBuilder.Budget(),
+        loadSummary = { key -> prefs.getString(KEY_CONTEXT_SUMMARY + key, null) },
+        saveSummary = { key, json -> prefs.edit().putString(KEY_CONTEXT_SUMMARY + key, json).apply() }
+    )
     
     // 群聊数据缓存
     private val groupChats = mutableMapOf<String, GroupChat>()
@@ -58,9 +98,24 @@ class GroupChatManager private constructor(private val context: Context) {
     // 监听器列表
     private val groupChatListeners = mutableListOf<GroupChatListener>()
     
+    private val _replyUpdates = MutableSharedFlow<GroupReplyUpdate>(
+        extraBufferCapacity = 64,
+        onBufferOverflow = BufferOverflow.DROP_OLDEST
+    )
+    
+    /**
+     * 流式回复的增量内容，按消息ID更新界面即可，不会触发存储写入
+     */
+    val replyUpdates: SharedFlow<GroupReplyUpdate> = _replyUpdates.asSharedFlow()
+    
     // 协程作用域
     private val managerScope = CoroutineScope(Dispatchers.IO + SupervisorJob())
     
+    // 延迟合并写入：键为 KEY_GROUP_CHATS 或群聊ID
+    private val flusher = CoalescingFlusher(managerScope, FLUSH_INTERVAL_MS) { key ->
+        if (key == KEY_GROUP_CHATS) writeGroupChats() else writeGroupMessages(key)
+    }
+    
     init {
         loadGroupChats()
         // 自动修复缺少aiServiceType的AI成员
@@ -242,9 +297,9 @@ class GroupChatManager private constructor(private val context: Context) {
         // 添加消息到群聊
         addMessageToGroup(groupId, userMessage)
         
-        // 触发AI回复
+        // 触发AI回复；上一个问题已经在按预算构建的历史中，发给AI的只有本次的问题
         if (groupChat.settings.allowAllMembersReply) {
-            triggerAIReplies(groupId, contextualContent, groupChat)
+            triggerAIReplies(groupId, content, groupChat)
         }
         
         return true
@@ -344,6 +399,8 @@ class GroupChatManager private constructor(private val context: Context) {
     
     /**
      * 同时回复模式
+     *
+     * 由 [FanOutScheduler] 按并发上限排队发出，超出上限的成员等待名额而不是被丢弃
      */
     private suspend fun triggerSimultaneousReplies(
         groupId: String,
@@ -351,17 +408,8 @@ class GroupChatManager private constructor(private val context: Context) {
         aiMembers: List<GroupMember>,
         groupChat: GroupChat
     ) {
-        val maxConcurrent = minOf(aiMembers.size, groupChat.settings.maxConcurrentReplies)
-        
-        // 使用协程并发处理AI回复
-        val jobs = aiMembers.take(maxConcurrent).map { member ->
-            managerScope.async {
-                processAIReply(groupId, userMessage, member, groupChat)
-            }
-        }
-        
-        // 等待所有回复完成
-        jobs.awaitAll()
+        val scheduler = createScheduler(groupChat.settings.maxConcurrentReplies)
+        streamReplies(groupId, userMessage, aiMembers, groupChat, scheduler)
     }
     
     /**
@@ -373,8 +421,9 @@ class GroupChatManager private constructor(private val context: Context) {
         aiMembers: List<GroupMember>,
         groupChat: GroupChat
     ) {
+        val scheduler = createScheduler(1)
         for (member in aiMembers) {
-            processAIReply(groupId, userMessage, member, groupChat)
+            streamReplies(groupId, userMessage, listOf(member), groupChat, scheduler)
             
             // 添加延迟
             if (groupChat.settings.replyDelay > 0) {
@@ -383,160 +432,108 @@ class GroupChatManager private constructor(private val context: Context) {
         }
     }
     
+    private fun createScheduler(maxConcurrent: Int): FanOutScheduler {
+        return FanOutScheduler(
+            source = { target, callback ->
+                aiApiManager.streamMessage(target.serviceType, target.message, target.history, callback)
+            },
+            config = FanOutScheduler.Config(maxConcurrent = maxConcurrent)
+        )
+    }
+    
     /**
-     * 处理单个AI的回复（支持流式回复）
+     * 为每个成员创建空的回复消息，然后在当前协程中收集所有成员的流式输出
+     *
+     * 调用方协程被取消（例如离开聊天界面）时，所有进行中的请求一并取消。
+     * 流式片段只更新内存并通过 [replyUpdates] 推送，回复结束时才写入存储。
      */
-    private suspend fun processAIReply(
+    private suspend fun streamReplies(
         groupId: String,
         userMessage: String,
-        aiMember: GroupMember,
-        groupChat: GroupChat
-    ) {
-        Log.d(TAG, "开始处理AI回复: ${aiMember.name} (ID: ${aiMember.id})")
-        Log.d(TAG, "AI成员详情: name=${aiMember.name}, type=${aiMember.type}, aiServiceType=${aiMember.aiServiceType}")
-        
-        val aiServiceType = aiMember.aiServiceType
-        if (aiServiceType == null) {
-            Log.e(TAG, "AI成员 ${aiMember.name} (ID: ${aiMember.id}) 缺少aiServiceType，尝试自动修复")
-            
-            // 尝试推断和修复aiServiceType
-            val inferredType = inferAIServiceType(aiMember.name, aiMember.id)
-            if (inferredType != null) {
-                Log.d(TAG, "成功推断AI服务类型: $inferredType，正在修复成员配置")
-                
-                // 更新群聊中的成员配置
-                val groupChat = groupChats[groupId]
-                if (groupChat != null) {
-                    val updatedMembers = groupChat.members.map { member ->
-                        if (member.id == aiMember.id) {
-                            if (inferredType == AIServiceType.ZHIPU_AI) {
-                                // 智谱AI特殊处理，标准化名称和ID
-                                member.copy(
-                                    id = com.example.aifloatingball.utils.AIServiceTypeUtils.generateZhipuAIId(),
-                                    name = com.example.aifloatingball.utils.AIServiceTypeUtils.getZhipuAIStandardName(),
-                                    aiServiceType = inferredType
-                                )
-                            } else {
-                                member.copy(aiServiceType = inferredType)
-                            }
-                        } else {
-                            member
-                        }
-                    }
-                    
-                    val updatedGroupChat = groupChat.copy(members = updatedMembers)
-                    groupChats[groupId] = updatedGroupChat
-                    saveGroupChats()
-                    
-                    // 重新开始处理回复，使用修复后的成员
-                    val fixedMember = updatedMembers.first { it.id == aiMember.id || it.name == aiMember.name }
-                    Log.d(TAG, "AI成员修复完成，重新开始处理回复：${fixedMember.name} (aiServiceType: ${fixedMember.aiServiceType})")
-                    processAIReply(groupId, userMessage, fixedMember, groupChat)
-                    return
-                }
-            }
-            
-            Log.e(TAG, "无法修复AI成员 ${aiMember.name} (ID: ${aiMember.id}) 的aiServiceType")
-            updateAIReplyStatus(groupId, aiMember.id, AIReplyStatus.ERROR, "AI服务类型未配置且无法自动修复")
-            
-            // 通知监听器错误状态
-            CoroutineScope(Dispatchers.Main).launch {
-                groupChatListeners.forEach { listener ->
-                    listener.onAIReplyStatusChanged(groupId, aiMember.id, AIReplyStatus.ERROR, "AI服务类型未配置且无法自动修复")
-                }
-            }
-            return
-        }
-        
-        Log.d(TAG, "AI服务类型确认: ${aiServiceType.name}")
-        
-        try {
-            // 更新状态为正在输入
-            updateAIReplyStatus(groupId, aiMember.id, AIReplyStatus.TYPING)
-            
-            // 通知监听器状态变化
-            CoroutineScope(Dispatchers.Main).launch {
-                groupChatListeners.forEach { listener ->
-                    listener.onAIReplyStatusChanged(groupId, aiMember.id, AIReplyStatus.TYPING)
-                }
-            }
-            
-            // 获取对话历史
-            val conversationHistory = buildConversationHistory(groupId, aiMember.id)
-            
-            // 创建初始AI回复消息（空内容）
+        aiMembers: List<GroupMember>,
+        groupChat: GroupChat,
+        scheduler: FanOutScheduler
+    ) = withContext(Dispatchers.IO) {
+        val fullMessage = groupChat.settings.customPrompt?.let { "$it\n\n$userMessage" } ?: userMessage
+        val replyMessages = HashMap<String, GroupChatMessage>()
+        // 每个成员一个表情过滤器，片段到达时只处理增量
+        val filters = HashMap<String, StreamingEmojiFilter>()
+        val targets = aiMembers.mapNotNull { member ->
+            val serviceType = member.aiServiceType ?: return@mapNotNull null
+            // 历史需在添加空回复之前构建
+            val history = buildConversationHistory(groupId, member.id, serviceType, fullMessage)
             val aiMessage = GroupChatMessage(
                 id = UUID.randomUUID().toString(),
                 content = "",
-                senderId = aiMember.id,
-                senderName = aiMember.name,
+                senderId = member.id,
+                senderName = member.name,
                 senderType = MemberType.AI
             )
-            
-            // 添加空消息到群聊
             addMessageToGroup(groupId, aiMessage)
-            val messageIndex = getMessageIndex(groupId, aiMessage.id)
-            
-            try {
-                // 调用AI API（流式回复）
-                callAIAPIStreaming(aiServiceType, userMessage, conversationHistory, groupChat.settings.customPrompt) { chunk, isComplete, fullResponse ->
-                    if (isComplete) {
-                        // 流式回复完成，更新最终内容
-                        val cleanContent = removeEmojis(fullResponse)
-                        val updatedMessage = aiMessage.copy(content = cleanContent)
-                        updateMessageInGroup(groupId, messageIndex, updatedMessage)
-                        updateAIReplyStatus(groupId, aiMember.id, AIReplyStatus.COMPLETED)
-                        
-                        // 保存群聊消息到持久化存储
-                        saveGroupMessages(groupId)
-                        
-                        // 通知监听器回复完成
-                        CoroutineScope(Dispatchers.Main).launch {
-                            groupChatListeners.forEach { listener ->
-                                listener.onAIReplyStatusChanged(groupId, aiMember.id, AIReplyStatus.COMPLETED, cleanContent)
-                            }
-                        }
-                        
-                        Log.d(TAG, "AI ${aiMember.name} 流式回复完成，内容长度: ${cleanContent.length}")
-                    } else {
-                        // 流式回复中，更新部分内容
-                        // 获取当前消息的最新内容
-                        val currentMessage = getGroupMessages(groupId).getOrNull(messageIndex)
-                        val currentContent = currentMessage?.content ?: ""
-                        val newContent = currentContent + removeEmojis(chunk)
-                        val updatedMessage = aiMessage.copy(content = newContent)
-                        updateMessageInGroup(groupId, messageIndex, updatedMessage)
-                        
-                        Log.d(TAG, "AI ${aiMember.name} 流式更新，当前内容长度: ${newContent.length}")
+            replyMessages[member.id] = aiMessage
+            filters[member.id] = StreamingEmojiFilter()
+            FanOutScheduler.Target(member.id, serviceType, fullMessage, history)
+        }
+        val memberNames = aiMembers.associate { it.id to it.name }
+        
+        try {
+            scheduler.fanOut(targets).collect { event ->
+                val aiMessage = replyMessages[event.memberId] ?: return@collect
+                when (event) {
+                    is FanOutScheduler.Event.Started -> {
+                        updateAIReplyStatus(groupId, event.memberId, AIReplyStatus.TYPING)
+                        notifyReplyStatus(groupId, event.memberId, AIReplyStatus.TYPING)
                     }
-                }
-                
-            } catch (e: Exception) {
-                val errorMessage = "API调用失败: ${e.message}"
-                updateAIReplyStatus(groupId, aiMember.id, AIReplyStatus.ERROR, errorMessage)
-                
-                // 通知监听器错误状态
-                CoroutineScope(Dispatchers.Main).launch {
-                    groupChatListeners.forEach { listener ->
-                        listener.onAIReplyStatusChanged(groupId, aiMember.id, AIReplyStatus.ERROR, errorMessage)
+                    is FanOutScheduler.Event.Chunk -> {
+                        val partial = filters.getValue(event.memberId).append(event.text)
+                        updateMessageContent(groupId, aiMessage.id, partial)
+                        _replyUpdates.tryEmit(GroupReplyUpdate(groupId, aiMessage.id, event.memberId, partial, false))
+                    }
+                    is FanOutScheduler.Event.Completed -> {
+                        val cleanContent = StreamingEmojiFilter.clean(event.content)
+                        updateMessageInGroup(groupId, getMessageIndex(groupId, aiMessage.id), aiMessage.copy(content = cleanContent))
+                        updateAIReplyStatus(groupId, event.memberId, AIReplyStatus.COMPLETED)
+                        _replyUpdates.tryEmit(GroupReplyUpdate(groupId, aiMessage.id, event.memberId, cleanContent, true))
+                        notifyReplyStatus(groupId, event.memberId, AIReplyStatus.COMPLETED, cleanContent)
+                        Log.d(TAG, "AI ${memberNames[event.memberId]} 回复完成，首字 ${event.firstTokenMs}ms，" +
+                            "总耗时 ${event.totalMs}ms，请求 ${event.attempts} 次，内容长度: ${cleanContent.length}")
+                    }
+                    is FanOutScheduler.Event.Failed -> {
+                        val errorMessage = "API调用失败: ${event.error}"
+                        // 结束界面上的流式渲染，保留已经收到的内容
+                        val partial = filters.getValue(event.memberId).finish()
+                        _replyUpdates.tryEmit(GroupReplyUpdate(groupId, aiMessage.id, event.memberId, partial, true))
+                        updateAIReplyStatus(groupId, event.memberId, AIReplyStatus.ERROR, errorMessage)
+                        notifyReplyStatus(groupId, event.memberId, AIReplyStatus.ERROR, errorMessage)
+                        Log.e(TAG, "AI ${memberNames[event.memberId]} 回复失败: ${event.error}，请求 ${event.attempts} 次")
                     }
                 }
-                
-                Log.e(TAG, "AI ${aiMember.name} 回复失败", e)
             }
-            
-        } catch (e: Exception) {
-            val errorMessage = e.message ?: "未知错误"
-            updateAIReplyStatus(groupId, aiMember.id, AIReplyStatus.ERROR, errorMessage)
-            
-            // 通知监听器错误状态
-            CoroutineScope(Dispatchers.Main).launch {
-                groupChatListeners.forEach { listener ->
-                    listener.onAIReplyStatusChanged(groupId, aiMember.id, AIReplyStatus.ERROR, errorMessage)
-                }
+        } finally {
+            // 一轮回复结束（或被取消）时立即落盘，被取消时也保留已经收到的部分内容
+            flushPendingWrites()
+            Log.d(TAG, "群聊 $groupId 本轮回复结束，存储写入统计: ${flusher.stats()}")
+        }
+    }
+    
+    /**
+     * 更新内存中的消息内容，存储由 [flusher] 按周期合并写入
+     */
+    private fun updateMessageContent(groupId: String, messageId: String, content: String) {
+        val messages = groupMessages[groupId] ?: return
+        // 流式回复的消息都在列表末尾，从后往前找
+        val index = messages.indexOfLast { it.id == messageId }
+        if (index >= 0) {
+            messages[index] = messages[index].copy(content = content)
+            saveGroupMessages(groupId)
+        }
+    }
+    
+    private fun notifyReplyStatus(groupId: String, aiId: String, status: AIReplyStatus, message: String? = null) {
+        CoroutineScope(Dispatchers.Main).launch {
+            groupChatListeners.forEach { listener ->
+                listener.onAIReplyStatusChanged(groupId, aiId, status, message)
             }
-            
-            Log.e(TAG, "AI ${aiMember.name} 回复异常", e)
         }
     }
     
@@ -566,40 +563,55 @@ class GroupChatManager private constructor(private val context: Context) {
                 
                 Log.d(TAG, "完整消息内容: $fullMessage")
                 
-                var fullResponse = ""
+                val fullResponse = StringBuilder()
+                // 主线程还没处理的增量；上一批送达之前新到的片段只追加，不再另外投递
+                val pendingChunk = StringBuilder()
+                var deliveryScheduled = false
                 var isCompleted = false
+                val mainHandler = Handler(Looper.getMainLooper())
+                val deliverChunks = Runnable {
+                    val chunk: String
+                    val snapshot: String
+                    synchronized(pendingChunk) {
+                        chunk = pendingChunk.toString()
+                        pendingChunk.setLength(0)
+                        snapshot = fullResponse.toString()
+                        deliveryScheduled = false
+                    }
+                    if (chunk.isNotEmpty()) onUpdate(chunk, false, snapshot)
+                }
                 
                 val callback = object : AIApiManager.StreamingCallback {
                     override fun onChunkReceived(chunk: String) {
-                        Log.d(TAG, "收到AI响应块: '$chunk'")
-                        if (!isCompleted) {
-                            fullResponse += chunk
-                            // 在主线程更新UI
-                            CoroutineScope(Dispatchers.Main).launch {
-                                onUpdate(chunk, false, fullResponse)
-                            }
+                        synchronized(pendingChunk) {
+                            if (isCompleted) return
+                            fullResponse.append(chunk)
+                            pendingChunk.append(chunk)
+                            if (deliveryScheduled) return
+                            deliveryScheduled = true
                         }
+                        // 在主线程更新UI
+                        mainHandler.post(deliverChunks)
                     }
                     
                     override fun onComplete(response: String) {
                         Log.d(TAG, "AI响应完成，总长度: ${response.length}")
-                        if (!isCompleted) {
+                        synchronized(pendingChunk) {
+                            if (isCompleted) return
                             isCompleted = true
-                            fullResponse = response
-                            // 在主线程更新UI
-                            CoroutineScope(Dispatchers.Main).launch {
-                                onUpdate("", true, fullResponse)
-                            }
-                            continuation.resume(Unit)
                         }
+                        // 排在尚未送达的增量之后
+                        mainHandler.post { onUpdate("", true, response) }
+                        continuation.resume(Unit)
                     }
                     
                     override fun onError(error: String) {
                         Log.e(TAG, "AI API调用失败: $error")
-                        if (!isCompleted) {
+                        synchronized(pendingChunk) {
+                            if (isCompleted) return
                             isCompleted = true
-                            continuation.resumeWithException(Exception(error))
                         }
+                        continuation.resumeWithException(Exception(error))
                     }
                 }
                 
@@ -684,40 +696,52 @@ class GroupChatManager private constructor(private val context: Context) {
     
     /**
      * 构建对话历史
+     *
+     * 只包含用户消息和该成员自己的回复，按成员所用服务的token估算在预算内保留最近的原文，
+     * 更早的部分用缓存的摘要代替；取舍记录可在调试界面查看。
+     *
+     * @param currentMessage 本次要发送的消息，历史末尾与它相同的用户消息会被去掉，避免重复发送
+     * @param endIndex 只使用这条消息之前的历史，默认全部
      */
-    private fun buildConversationHistory(groupId: String, aiId: String): List<Map<String, String>> {
+    private fun buildConversationHistory(
+        groupId: String,
+        aiId: String,
+        serviceType: AIServiceType,
+        currentMessage: String,
+        endIndex: Int? = null
+    ): List<Map<String, String>> {
         val messages = groupMessages[groupId] ?: return emptyList()
-        val history = mutableListOf<Map<String, String>>()
+        val snapshot = ArrayList(messages).let { if (endIndex != null) it.take(endIndex) else it }
         
-        // 获取最近的对话历史（限制数量以避免过长）
-        val recentMessages = messages.takeLast(20)
-        
-        for (message in recentMessages) {
+        val turns = ArrayList<ConversationContextBuilder.Turn>(snapshot.size)
+        for (message in snapshot) {
             when (message.senderType) {
                 MemberType.USER -> {
-                    history.add(mapOf("role" to "user", "content" to message.content))
+                    // 存储的内容可能带有上下文引用，历史中只用原始问题
+                    val content = message.metadata["originalContent"] ?: message.content
+                    turns.add(ConversationContextBuilder.Turn(message.id, "user", content))
                 }
                 MemberType.AI -> {
-                    if (message.senderId == aiId) {
-                        history.add(mapOf("role" to "assistant", "content" to message.content))
+                    if (message.senderId == aiId && message.content.isNotBlank()) {
+                        turns.add(ConversationContextBuilder.Turn(message.id, "assistant", message.content))
                     }
                 }
             }
         }
+        turns.lastOrNull()?.let { last ->
+            if (last.role == "user" && currentMessage.endsWith(last.content)) turns.removeAt(turns.size - 1)
+        }
         
-        return history
-    }
-    
-    /**
-     * 移除文本中的表情包
-     */
-    private fun removeEmojis(text: String): String {
-        // 移除Unicode表情符号
-        val emojiPattern = "[\uD83C-\uDBFF\uDC00-\uDFFF]+".toRegex()
-        return text.replace(emojiPattern, "")
-            .replace(":([a-zA-Z0-9_]+):".toRegex(), "") // 移除:emoji_name:格式
-            .replace("\\s+".toRegex(), " ") // 合并多个空格
-            .trim()
+        val estimator = TokenEstimator(TokenEstimator.Family.forService(serviceType.name))
+        contextBuilder.budget = contextBuilder.budget.copy(maxTokens = settingsManager.getContextTokenBudget())
+        val result = contextBuilder.build(
+            key = "$groupId:$aiId",
+            turns = turns,
+            estimator = estimator,
+            reservedTokens = estimator.estimateMessage("user", currentMessage)
+        )
+        Log.d(TAG, "成员 $aiId 历史: ${turns.size} 轮，估算 ${result.report.originalTokens} → ${result.report.finalTokens} tokens")
+        return result.messages
     }
     
     /**
@@ -736,9 +760,9 @@ class GroupChatManager private constructor(private val context: Context) {
         if (messageIndex >= 0 && messageIndex < messages.size) {
             messages[messageIndex] = updatedMessage
             
-            // 保存消息到持久化存储
+            // 标记待写入，由 flusher 合并写入
             saveGroupMessages(groupId)
-            Log.d(TAG, "消息更新并保存: 群聊=$groupId, 索引=$messageIndex, 内容长度=${updatedMessage.content.length}")
+            Log.d(TAG, "消息更新: 群聊=$groupId, 索引=$messageIndex, 内容长度=${updatedMessage.content.length}")
             
             // 如果是最后一条消息，更新群聊的最后消息信息
             if (messageIndex == messages.size - 1) {
@@ -858,10 +882,26 @@ class GroupChatManager private constructor(private val context: Context) {
             
             // 删除消息数据
             prefs.edit().remove(KEY_GROUP_MESSAGES + groupId).apply()
+            removeContextSummaries(groupId)
         }
         return removed
     }
     
+    /**
+     * 删除群聊各成员的历史摘要
+     */
+    private fun removeContextSummaries(groupId: String) {
+        val prefix = "$groupId:"
+        val keys = prefs.all.keys.filter { it.startsWith(KEY_CONTEXT_SUMMARY + prefix) }
+        if (keys.isEmpty()) return
+        val editor = prefs.edit()
+        keys.forEach { key ->
+            editor.remove(key)
+            contextBuilder.forget(key.removePrefix(KEY_CONTEXT_SUMMARY))
+        }
+        editor.apply()
+    }
+    
     /**
      * 更新群聊设置
      */
@@ -951,14 +991,27 @@ class GroupChatManager private constructor(private val context: Context) {
     }
     
     /**
-     * 保存群聊数据
+     * 保存群聊数据：只标记为待写入，最迟 [FLUSH_INTERVAL_MS] 后与其他变化一起写入
      */
     private fun saveGroupChats() {
+        flusher.markDirty(KEY_GROUP_CHATS)
+    }
+    
+    /**
+     * 立即写入所有待保存的群聊和消息
+     */
+    fun flushPendingWrites() {
+        if (flusher.hasPending()) flusher.flush()
+    }
+    
+    private fun writeGroupChats() {
         try {
-            val json = gson.toJson(groupChats.values.toList())
+            val json = gson.toJson(ArrayList(groupChats.values))
             prefs.edit().putString(KEY_GROUP_CHATS, json).apply()
         } catch (e: Exception) {
+            // 例如写入时群聊列表正在变化，交给 flusher 退避重试
             Log.e(TAG, "保存群聊数据失败", e)
+            throw e
         }
     }
     
@@ -1036,9 +1089,13 @@ class GroupChatManager private constructor(private val context: Context) {
     }
     
     /**
-     * 保存群聊消息
+     * 保存群聊消息：只标记为待写入，同一群聊在一个写入周期内只序列化一次
      */
     private fun saveGroupMessages(groupId: String) {
+        flusher.markDirty(groupId)
+    }
+    
+    private fun writeGroupMessages(groupId: String) {
         try {
             val messages = groupMessages[groupId]
             if (messages == null) {
@@ -1046,13 +1103,14 @@ class GroupChatManager private constructor(private val context: Context) {
                 return
             }
             
-            val json = gson.toJson(messages)
-            Log.d(TAG, "保存群聊消息 $groupId，共 ${messages.size} 条消息，JSON长度: ${json.length}")
-            
+            // 流式回复可能同时在修改列表，先复制一份再序列化
+            val json = gson.toJson(ArrayList(messages))
             prefs.edit().putString(KEY_GROUP_MESSAGES + groupId, json).apply()
-            Log.d(TAG, "群聊消息 $groupId 保存成功")
+            Log.d(TAG, "群聊消息 $groupId 保存成功，共 ${messages.size} 条消息，JSON长度: ${json.length}")
         } catch (e: Exception) {
+            // 交给 flusher 退避重试
             Log.e(TAG, "保存群聊消息失败: $groupId", e)
+            throw e
         }
     }
     
@@ -1113,7 +1171,7 @@ class GroupChatManager private constructor(private val context: Context) {
         
         try {
             // 构建对话历史
-            val conversationHistory = buildConversationHistory(groupId, aiId)
+            val conversationHistory = buildConversationHistory(groupId, aiId, aiServiceType, message.content, messageIndex)
             
             // 调用AI API生成新回复
             callAIAPIStreaming(
@@ -1121,19 +1179,15 @@ class GroupChatManager private constructor(private val context: Context) {
                 message = message.content,
                 conversationHistory = conversationHistory,
                 customPrompt = groupChat.settings.customPrompt,
-                onUpdate = { chunk: String, isComplete: Boolean, fullResponse: String ->
-                    // 更新流式回复内容
-                    val currentReply = message.content
-                    val updatedContent = if (isComplete) fullResponse else currentReply + chunk
-                    
-                    val updatedMessage = message.copy(content = updatedContent)
+                onUpdate = { _: String, _: Boolean, fullResponse: String ->
+                    // 更新流式回复内容；已在主线程，增量已合并为一批
+                    val updatedMessage = message.copy(content = fullResponse)
                     messages[messageIndex] = updatedMessage
+                    saveGroupMessages(groupId)
                     
                     // 通知监听器
-                    CoroutineScope(Dispatchers.Main).launch {
-                        groupChatListeners.forEach { listener ->
-                            listener.onMessageUpdated(groupId, messageIndex, updatedMessage)
-                        }
+                    groupChatListeners.forEach { listener ->
+                        listener.onMessageUpdated(groupId, messageIndex, updatedMessage)
                     }
                 }
             )
@@ -1141,10 +1195,8 @@ class GroupChatManager private constructor(private val context: Context) {
             // 更新AI回复状态为完成
             updateAIReplyStatus(groupId, aiId, AIReplyStatus.COMPLETED)
             
-            // 保存消息
-            saveGroupMessages(groupId)
-            
-            // AI回复完成后的处理在onChunkReceived中已经完成
+            // 回复完成，立即写入
+            flushPendingWrites()
             
         } catch (e: Exception) {
             Log.e(TAG, "重新生成AI回复失败: ${e.message}", e)
@@ -1355,6 +1407,7 @@ class GroupChatManager private constructor(private val context: Context) {
      * 清理资源
      */
     fun cleanup() {
+        flushPendingWrites()
         managerScope.cancel()
     }
 }
\ No newline at end of file
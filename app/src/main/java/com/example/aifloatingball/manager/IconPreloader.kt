@@ -17,13 +17,15 @@ class IconPreloader private constructor(private val context: Context) {
     
     private val iconManager = AppIconManager.getInstance(context)
     private val iconProcessor = IconProcessor(context)
-    private val preloadedIcons = ConcurrentHashMap<String, Drawable>()
+    // 处理后的图标放在共享的有界缓存中，被淘汰后下次需要时重新预加载
+    private val iconCache = AppIconCache.getInstance(context)
     private val preloadingJobs = ConcurrentHashMap<String, Job>()
     private val preloadProgress = AtomicInteger(0)
     
     companion object {
         private const val TAG = "IconPreloader"
         private const val MAX_CONCURRENT_PRELOADS = 3 // 最大并发预加载数
+        private const val CACHE_PREFIX = "preload:"
         
         @Volatile
         private var instance: IconPreloader? = null
@@ -68,7 +70,7 @@ class IconPreloader private constructor(private val context: Context) {
             delay(200)
         }
         
-        Log.d(TAG, "预加载完成，成功缓存${preloadedIcons.size}个图标")
+        Log.d(TAG, "预加载完成，成功缓存${iconCache.countByPrefix(CACHE_PREFIX)}个图标")
     }
     
     /**
@@ -78,7 +80,7 @@ class IconPreloader private constructor(private val context: Context) {
         val cacheKey = "${app.packageName}_${app.appName}"
         
         // 检查是否已经预加载
-        if (preloadedIcons.containsKey(cacheKey)) {
+        if (iconCache.get(CACHE_PREFIX + cacheKey) != null) {
             return
         }
         
@@ -102,7 +104,7 @@ class IconPreloader private constructor(private val context: Context) {
                         )
                         
                         if (processedIcon != null) {
-                            preloadedIcons[cacheKey] = processedIcon
+                            iconCache.put(CACHE_PREFIX + cacheKey, processedIcon)
                             Log.d(TAG, "✅ 预加载成功: ${app.appName}")
                         }
                     } else {
@@ -126,7 +128,7 @@ class IconPreloader private constructor(private val context: Context) {
      */
     fun getPreloadedIcon(packageName: String, appName: String): Drawable? {
         val cacheKey = "${packageName}_${appName}"
-        return preloadedIcons[cacheKey]
+        return iconCache.getDrawable(CACHE_PREFIX + cacheKey)
     }
     
     /**
@@ -134,7 +136,7 @@ class IconPreloader private constructor(private val context: Context) {
      */
     fun isIconPreloaded(packageName: String, appName: String): Boolean {
         val cacheKey = "${packageName}_${appName}"
-        return preloadedIcons.containsKey(cacheKey)
+        return iconCache.get(CACHE_PREFIX + cacheKey) != null
     }
     
     /**
@@ -181,7 +183,7 @@ class IconPreloader private constructor(private val context: Context) {
         
         val unloadedApps = apps.filter { app ->
             val cacheKey = "${app.packageName}_${app.appName}"
-            !preloadedIcons.containsKey(cacheKey)
+            iconCache.get(CACHE_PREFIX + cacheKey) == null
         }
         
         if (unloadedApps.isEmpty()) {
@@ -196,8 +198,8 @@ class IconPreloader private constructor(private val context: Context) {
      * 清理预加载缓存
      */
     fun clearPreloadCache() {
-        Log.d(TAG, "清理预加载缓存: ${preloadedIcons.size}个图标")
-        preloadedIcons.clear()
+        Log.d(TAG, "清理预加载缓存: ${iconCache.countByPrefix(CACHE_PREFIX)}个图标")
+        iconCache.removeByPrefix(CACHE_PREFIX)
         
         // 取消所有正在进行的预加载任务
         preloadingJobs.values.forEach { job ->
@@ -211,18 +213,17 @@ class IconPreloader private constructor(private val context: Context) {
      */
     fun getCacheStats(): CacheStats {
         return CacheStats(
-            preloadedCount = preloadedIcons.size,
+            preloadedCount = iconCache.countByPrefix(CACHE_PREFIX),
             preloadingCount = preloadingJobs.size,
             totalMemoryUsage = estimateMemoryUsage()
         )
     }
     
     /**
-     * 估算内存使用量 (KB)
+     * 共享图标缓存的实际内存占用 (KB)，包含应用图标和下载的图标
      */
     private fun estimateMemoryUsage(): Long {
-        // 假设每个图标平均占用 20KB (96x96 ARGB_8888)
-        return preloadedIcons.size * 20L
+        return iconCache.stats().memoryBytes / 1024
     }
     
     /**
@@ -0,0 +1,107 @@
+package com.example.aifloatingball.manager
+
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.async
+
+/**
+ * 图标请求的合并与失败缓存
+ *
+ * 同一个键同时只有一个加载在执行，其余调用方等待同一个结果，不会重复下载和解码。
+ * 加载在 [scope] 中执行，某个调用方被取消不影响其他等待者。
+ *
+ * 加载结果为 null 或抛出异常时把 failureKey 记入失败缓存，[failureTtlMs] 内再次请求直接返回 null，
+ * 过期后才重新尝试。只依赖 kotlinx.coroutines，可直接在 JVM 单元测试中使用。
+ */
+class IconRequestGate(
+    private val scope: CoroutineScope,
+    private val failureTtlMs: Long,
+    private val clock: () -> Long = System::currentTimeMillis
+) {
+
+    /**
+     * @param started 实际执行的加载次数
+     * @param coalesced 等待已有加载而没有重新发起的请求数
+     * @param negativeHits 因失败缓存直接返回的请求数
+     */
+    data class Stats(
+        val started: Long,
+        val coalesced: Long,
+        val negativeHits: Long,
+        val failures: Long,
+        val inFlight: Int,
+        val failedKeys: Int
+    )
+
+    private val lock = Any()
+    private val inFlight = HashMap<String, Deferred<Any?>>()
+    // 失败键 -> 过期时间
+    private val failed = HashMap<String, Long>()
+
+    private var started = 0L
+    private var coalesced = 0L
+    private var negativeHits = 0L
+    private var failures = 0L
+
+    /**
+     * 执行或等待 [key] 对应的加载
+     *
+     * @param failureKey 失败缓存使用的键，多个请求共用一个来源时（例如同一 URL 的不同尺寸）传入来源的键
+     */
+    suspend fun <T : Any> run(key: String, failureKey: String = key, load: suspend () -> T?): T? {
+        val deferred = synchronized(lock) {
+            if (isFailedLocked(failureKey)) {
+                negativeHits++
+                return null
+            }
+            inFlight[key]?.let {
+                coalesced++
+                return@synchronized it
+            }
+            started++
+            val job = scope.async {
+                val result = try {
+                    load()
+                } catch (e: Exception) {
+                    null
+                }
+                if (result == null) markFailed(failureKey)
+                result
+            }
+            inFlight[key] = job
+            // 已完成时回调会立即在当前线程执行，synchronized 可重入
+            job.invokeOnCompletion {
+                synchronized(lock) {
+                    if (inFlight[key] === job) inFlight.remove(key)
+                }
+            }
+            job
+        }
+        @Suppress("UNCHECKED_CAST")
+        return deferred.await() as T?
+    }
+
+    fun isFailed(failureKey: String): Boolean = synchronized(lock) { isFailedLocked(failureKey) }
+
+    fun markFailed(failureKey: String) {
+        synchronized(lock) {
+            failures++
+            failed[failureKey] = clock() + failureTtlMs
+        }
+    }
+
+    fun clearFailures() {
+        synchronized(lock) { failed.clear() }
+    }
+
+    fun stats(): Stats = synchronized(lock) {
+        Stats(started, coalesced, negativeHits, failures, inFlight.size, failed.size)
+    }
+
+    private fun isFailedLocked(failureKey: String): Boolean {
+        val expiresAt = failed[failureKey] ?: return false
+        if (clock() < expiresAt) return true
+        failed.remove(failureKey)
+        return false
+    }
+}
@@ -0,0 +1,481 @@
+package com.example.aifloatingball.manager
+
+import android.content.ComponentCallbacks2
+import android.content.Context
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.os.Handler
+import android.os.Looper
+import android.util.Log
+import android.util.LruCache
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.io.FileOutputStream
+import java.net.HttpURLConnection
+import java.net.URL
+import java.security.MessageDigest
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * 统一的网络图标服务
+ *
+ * 应用商店图标、网站 favicon、小组件图标等所有按 URL 获取的图标都经过这里：
+ * 1. 内存：解码后的位图放在 [AppIconCache] 的共享 LRU 中，与已安装应用的图标共用一个按字节计算的上限；
+ * 2. 磁盘：按内容寻址，原始字节以自身的 SHA-1 存放在 `blobs` 目录，`index` 目录中每个 URL 一个小文件记录对应的摘要；
+ *    不同加载器请求同一 URL、或不同 URL 返回同一张图片时都只存一份，总大小超限时删除最旧的内容；
+ * 3. 网络：同一 URL 的并发请求只下载一次，失败的 URL 在一段时间内不再请求。
+ *
+ * 解码时按目标尺寸计算采样率，不会把 512px 的商店图标完整解码后再缩成 48px。
+ * iTunes 等接口的 JSON 响应也通过 [fetchText] 共享合并与失败缓存。
+ * 各加载器经过多轮查询才找到的图标地址用 [rememberUrl] 记下，下次启动直接从磁盘缓存解码，不用重新查询。
+ */
+class IconService private constructor(private val context: Context) {
+
+    companion object {
+        private const val TAG = "IconService"
+        private const val DISK_DIR = "icon_store"
+        private const val BLOB_DIR = "blobs"
+        private const val INDEX_DIR = "index"
+        private const val SOURCES_PREFS = "icon_service_sources"
+        private const val MEMORY_PREFIX = "url:"
+        private const val MAX_DISK_BYTES = 24L * 1024 * 1024
+        private const val DISK_EXPIRY_MS = 7L * 24 * 60 * 60 * 1000
+        private const val MAX_DOWNLOAD_BYTES = 2 * 1024 * 1024
+        private const val FAILURE_TTL_MS = 30L * 60 * 1000
+        private const val MAX_TEXT_CHARS = 256 * 1024
+        private const val MAX_REDIRECTS = 5
+        private const val CONNECT_TIMEOUT_MS = 5000
+        private const val READ_TIMEOUT_MS = 8000
+        // 每写入这么多文件检查一次磁盘占用
+        private const val TRIM_EVERY_WRITES = 16
+        private const val USER_AGENT = "Mozilla/5.0 (Linux; Android 10; Mobile) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/91.0 Mobile Safari/537.36"
+        private const val ACCEPT_IMAGE = "image/webp,image/apng,image/*,*/*;q=0.8"
+
+        @Volatile
+        private var instance: IconService? = null
+
+        @JvmStatic
+        fun getInstance(context: Context): IconService {
+            return instance ?: synchronized(this) {
+                instance ?: IconService(context.applicationContext).also { instance = it }
+            }
+        }
+
+        /**
+         * 已创建的实例，供拿不到 Context 的调用方使用；应用启动时已在 [com.example.aifloatingball.MainApplication] 中创建
+         */
+        fun peekInstance(): IconService? = instance
+
+        fun onTrimMemory(level: Int) {
+            instance?.trimMemory(level)
+        }
+
+        /**
+         * 解码到不小于 [targetPx] 的最大 2 的幂采样率，[targetPx] 不大于 0 时不采样
+         */
+        fun sampleSize(width: Int, height: Int, targetPx: Int): Int {
+            if (targetPx <= 0 || width <= 0 || height <= 0) return 1
+            var sample = 1
+            while (width / (sample * 2) >= targetPx && height / (sample * 2) >= targetPx) {
+                sample *= 2
+            }
+            return sample
+        }
+
+        @JvmStatic
+        fun sha1(text: String): String = sha1(text.toByteArray(Charsets.UTF_8))
+
+        @JvmStatic
+        fun sha1(bytes: ByteArray): String {
+            val digest = MessageDigest.getInstance("SHA-1").digest(bytes)
+            val sb = StringBuilder(digest.size * 2)
+            for (b in digest) {
+                val v = b.toInt() and 0xff
+                sb.append("0123456789abcdef"[v ushr 4]).append("0123456789abcdef"[v and 0x0f])
+            }
+            return sb.toString()
+        }
+    }
+
+    /**
+     * 供 Java 调用方使用的结果回调，在主线程执行
+     */
+    fun interface Callback {
+        fun onResult(bitmap: Bitmap?)
+    }
+
+    /**
+     * @param downloads 实际发起的图片下载次数
+     * @param diskHits 从磁盘缓存解码的次数
+     * @param textRequests 实际发起的文本请求次数
+     */
+    data class Stats(
+        val downloads: Long,
+        val downloadBytes: Long,
+        val diskHits: Long,
+        val textRequests: Long,
+        val textHits: Long,
+        val gate: IconRequestGate.Stats
+    )
+
+    private val memory = AppIconCache.getInstance(context)
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+    private val gate = IconRequestGate(scope, FAILURE_TTL_MS)
+    private val diskDir = File(context.cacheDir, DISK_DIR)
+    private val blobDir = File(diskDir, BLOB_DIR)
+    private val indexDir = File(diskDir, INDEX_DIR)
+    private val mainHandler = Handler(Looper.getMainLooper())
+    private val sources = context.getSharedPreferences(SOURCES_PREFS, Context.MODE_PRIVATE)
+    private val textCache = object : LruCache<String, String>(MAX_TEXT_CHARS) {
+        override fun sizeOf(key: String, value: String): Int = value.length.coerceAtLeast(1)
+    }
+
+    private val downloads = AtomicLong()
+    private val downloadBytes = AtomicLong()
+    private val diskHits = AtomicLong()
+    private val textRequests = AtomicLong()
+    private val diskWrites = AtomicLong()
+
+    /**
+     * 内存中已有的图标，不做任何 IO
+     */
+    fun getCached(url: String, sizePx: Int = 0): Bitmap? = memory.get(memoryKey(url, sizePx))
+
+    /**
+     * 获取图标：内存 → 磁盘 → 网络
+     *
+     * @param sizePx 目标尺寸，解码时按它采样，不大于 0 时按原尺寸解码
+     * @param minSourcePx 原图宽或高小于这个值时视为无效图标（例如 1x1 的占位图）
+     */
+    suspend fun load(url: String, sizePx: Int = 0, minSourcePx: Int = 0): Bitmap? {
+        if (url.isBlank()) return null
+        val key = memoryKey(url, sizePx)
+        memory.get(key)?.let { return it }
+        return gate.run(key, failureKey = url) {
+            memory.get(key) ?: decodeFromDiskOrNetwork(url, sizePx, minSourcePx)?.also { memory.put(key, it) }
+        }
+    }
+
+    /**
+     * 依次尝试 [urls]，返回第一个成功的图标；已知失败的 URL 直接跳过
+     */
+    suspend fun loadFirst(urls: List<String>, sizePx: Int = 0, minSourcePx: Int = 0): Bitmap? {
+        for (url in urls) {
+            load(url, sizePx, minSourcePx)?.let { return it }
+        }
+        return null
+    }
+
+    /**
+     * [load] 的阻塞版本，供 Java 和已在后台线程的调用方使用，不要在主线程调用
+     */
+    @JvmOverloads
+    fun loadBlocking(url: String, sizePx: Int = 0, minSourcePx: Int = 0): Bitmap? =
+        runBlocking { load(url, sizePx, minSourcePx) }
+
+    @JvmOverloads
+    fun loadFirstBlocking(urls: List<String>, sizePx: Int = 0, minSourcePx: Int = 0): Bitmap? =
+        runBlocking { loadFirst(urls, sizePx, minSourcePx) }
+
+    /**
+     * 异步加载，内存命中时立即回调，否则加载完成后在主线程回调
+     */
+    fun load(url: String, sizePx: Int, callback: Callback) {
+        getCached(url, sizePx)?.let {
+            callback.onResult(it)
+            return
+        }
+        scope.launch {
+            val bitmap = load(url, sizePx)
+            mainHandler.post { callback.onResult(bitmap) }
+        }
+    }
+
+    /**
+     * 获取文本（iTunes 查询等 JSON 接口），同一 URL 的并发请求只发一次，结果短期缓存在内存
+     */
+    suspend fun fetchText(url: String, accept: String = "application/json"): String? {
+        textCache.get(url)?.let { return it }
+        return gate.run("text:$url", failureKey = url) {
+            textRequests.incrementAndGet()
+            download(url, accept)?.toString(Charsets.UTF_8.name())?.also { text ->
+                textCache.put(url, text)
+            }
+        }
+    }
+
+    @JvmOverloads
+    fun fetchTextBlocking(url: String, accept: String = "application/json"): String? =
+        runBlocking { fetchText(url, accept) }
+
+    fun isFailed(url: String): Boolean = gate.isFailed(url)
+
+    /**
+     * 记下 [sourceKey]（例如某个应用）最终使用的图标地址
+     */
+    fun rememberUrl(sourceKey: String, url: String) {
+        if (sources.getString(sourceKey, null) != url) {
+            sources.edit().putString(sourceKey, url).apply()
+        }
+    }
+
+    fun rememberedUrl(sourceKey: String): String? = sources.getString(sourceKey, null)
+
+    /**
+     * 按记下的地址加载图标，没有记录或加载失败时返回 null
+     */
+    suspend fun loadRemembered(sourceKey: String, sizePx: Int = 0): Bitmap? {
+        val url = rememberedUrl(sourceKey) ?: return null
+        return load(url, sizePx)
+    }
+
+    @JvmOverloads
+    fun loadRememberedBlocking(sourceKey: String, sizePx: Int = 0): Bitmap? =
+        runBlocking { loadRemembered(sourceKey, sizePx) }
+
+    fun forgetUrls(prefix: String) {
+        val editor = sources.edit()
+        sources.all.keys.filter { it.startsWith(prefix) }.forEach { editor.remove(it) }
+        editor.apply()
+    }
+
+    /**
+     * 清空内存和磁盘缓存以及失败记录
+     */
+    fun clear() {
+        memory.removeByPrefix(MEMORY_PREFIX)
+        textCache.evictAll()
+        gate.clearFailures()
+        sources.edit().clear().apply()
+        try {
+            diskDir.walkBottomUp().filter { it != diskDir }.forEach { it.delete() }
+        } catch (e: Exception) {
+            Log.w(TAG, "清理图标磁盘缓存失败", e)
+        }
+    }
+
+    fun stats(): Stats = Stats(
+        downloads = downloads.get(),
+        downloadBytes = downloadBytes.get(),
+        diskHits = diskHits.get(),
+        textRequests = textRequests.get(),
+        textHits = textCache.hitCount().toLong(),
+        gate = gate.stats()
+    )
+
+    /**
+     * 读取 [storeBitmap] 存入的位图，不存在或已过期时返回 null；会访问磁盘，不要在主线程调用
+     */
+    fun loadStoredBitmap(key: String): Bitmap? {
+        val blob = storedBlob(key) ?: return null
+        val bitmap = BitmapFactory.decodeFile(blob.path)
+        if (bitmap == null) {
+            removeStored(key, blob)
+            return null
+        }
+        diskHits.incrementAndGet()
+        return bitmap
+    }
+
+    /**
+     * 把调用方处理好的位图（例如按小组件尺寸缩放后的图标）存进同一个磁盘缓存，与下载的图标共用过期时间和容量上限
+     *
+     * [key] 需要带上调用方自己的前缀，避免与图标地址冲突；会访问磁盘，不要在主线程调用
+     */
+    fun storeBitmap(key: String, bitmap: Bitmap) {
+        val bytes = ByteArrayOutputStream().use { out ->
+            bitmap.compress(Bitmap.CompressFormat.PNG, 100, out)
+            out.toByteArray()
+        }
+        writeDisk(key, bytes)
+    }
+
+    private fun trimMemory(level: Int) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            memory.removeByPrefix(MEMORY_PREFIX)
+            textCache.evictAll()
+        }
+    }
+
+    private fun memoryKey(url: String, sizePx: Int) = "$MEMORY_PREFIX$sizePx:$url"
+
+    // URL（或 storeBitmap 的键）→ 内容摘要，文件的修改时间即存入时间
+    private fun indexFile(key: String) = File(indexDir, sha1(key))
+
+    private fun blobFile(digest: String) = File(blobDir, digest)
+
+    /**
+     * [key] 对应的内容文件，没有记录、已过期或内容已被清理时返回 null
+     */
+    private fun storedBlob(key: String): File? {
+        val pointer = indexFile(key)
+        if (!pointer.exists()) return null
+        if (System.currentTimeMillis() - pointer.lastModified() >= DISK_EXPIRY_MS) {
+            pointer.delete()
+            return null
+        }
+        val blob = try {
+            blobFile(pointer.readText())
+        } catch (e: Exception) {
+            null
+        }
+        if (blob == null || !blob.exists()) {
+            pointer.delete()
+            return null
+        }
+        return blob
+    }
+
+    /**
+     * 内容无法解码时删掉记录和内容；引用同一内容的其他 URL 下次读取时发现内容不存在会自行清理记录
+     */
+    private fun removeStored(key: String, blob: File) {
+        indexFile(key).delete()
+        blob.delete()
+    }
+
+    private suspend fun decodeFromDiskOrNetwork(url: String, sizePx: Int, minSourcePx: Int): Bitmap? {
+        storedBlob(url)?.let { blob ->
+            decode(blob.readBytes(), sizePx, minSourcePx)?.let {
+                diskHits.incrementAndGet()
+                return it
+            }
+            removeStored(url, blob)
+        }
+        // 同一 URL 的不同尺寸共用一次下载
+        val bytes = gate.run("download:$url", failureKey = url) {
+            downloads.incrementAndGet()
+            download(url, ACCEPT_IMAGE)?.takeIf { isImage(it) }?.also {
+                downloadBytes.addAndGet(it.size.toLong())
+                writeDisk(url, it)
+            }
+        } ?: return null
+        return decode(bytes, sizePx, minSourcePx)
+    }
+
+    private fun isImage(bytes: ByteArray): Boolean {
+        val options = BitmapFactory.Options().apply { inJustDecodeBounds = true }
+        BitmapFactory.decodeByteArray(bytes, 0, bytes.size, options)
+        return options.outWidth > 0 && options.outHeight > 0
+    }
+
+    private fun decode(bytes: ByteArray, sizePx: Int, minSourcePx: Int): Bitmap? {
+        val bounds = BitmapFactory.Options().apply { inJustDecodeBounds = true }
+        BitmapFactory.decodeByteArray(bytes, 0, bytes.size, bounds)
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) return null
+        if (bounds.outWidth < minSourcePx || bounds.outHeight < minSourcePx) return null
+        val options = BitmapFactory.Options().apply {
+            inSampleSize = sampleSize(bounds.outWidth, bounds.outHeight, sizePx)
+        }
+        return BitmapFactory.decodeByteArray(bytes, 0, bytes.size, options)
+    }
+
+    /**
+     * 下载 [url] 的内容，跨协议重定向手动跟随；非 200 或超过大小上限时返回 null
+     */
+    private fun download(url: String, accept: String): ByteArray? {
+        var current = url
+        repeat(MAX_REDIRECTS + 1) {
+            val connection = try {
+                URL(current).openConnection() as HttpURLConnection
+            } catch (e: Exception) {
+                Log.w(TAG, "无效的图标地址: $current")
+                return null
+            }
+            try {
+                connection.connectTimeout = CONNECT_TIMEOUT_MS
+                connection.readTimeout = READ_TIMEOUT_MS
+                connection.instanceFollowRedirects = true
+                connection.setRequestProperty("User-Agent", USER_AGENT)
+                connection.setRequestProperty("Accept", accept)
+                when (val code = connection.responseCode) {
+                    HttpURLConnection.HTTP_OK -> return readLimited(connection)
+                    HttpURLConnection.HTTP_MOVED_PERM, HttpURLConnection.HTTP_MOVED_TEMP,
+                    HttpURLConnection.HTTP_SEE_OTHER, 307, 308 -> {
+                        val location = connection.getHeaderField("Location") ?: return null
+                        current = URL(URL(current), location).toString()
+                    }
+                    else -> {
+                        Log.d(TAG, "HTTP $code: $current")
+                        return null
+                    }
+                }
+            } catch (e: Exception) {
+                Log.d(TAG, "下载失败: $current - ${e.message}")
+                return null
+            } finally {
+                connection.disconnect()
+            }
+        }
+        return null
+    }
+
+    private fun readLimited(connection: HttpURLConnection): ByteArray? {
+        val declared = connection.contentLength
+        if (declared > MAX_DOWNLOAD_BYTES) return null
+        connection.inputStream.use { input ->
+            val out = ByteArrayOutputStream(if (declared > 0) declared else 16 * 1024)
+            val buffer = ByteArray(16 * 1024)
+            while (true) {
+                val n = input.read(buffer)
+                if (n < 0) break
+                if (out.size() + n > MAX_DOWNLOAD_BYTES) return null
+                out.write(buffer, 0, n)
+            }
+            return out.toByteArray()
+        }
+    }
+
+    /**
+     * 按内容摘要存放 [bytes]，已有相同内容时只更新记录，再把 [key] 指向它
+     */
+    private fun writeDisk(key: String, bytes: ByteArray) {
+        try {
+            if (!blobDir.exists()) blobDir.mkdirs()
+            if (!indexDir.exists()) indexDir.mkdirs()
+            val digest = sha1(bytes)
+            val blob = blobFile(digest)
+            // 已有的内容刷新修改时间，按容量清理时保留
+            if (!blob.exists() || !blob.setLastModified(System.currentTimeMillis())) writeFile(blob, bytes)
+            writeFile(indexFile(key), digest.toByteArray(Charsets.UTF_8))
+            if (diskWrites.incrementAndGet() % TRIM_EVERY_WRITES == 0L) trimDisk()
+        } catch (e: Exception) {
+            // 磁盘缓存失败不影响显示
+            Log.w(TAG, "写入图标缓存失败: $key", e)
+        }
+    }
+
+    /**
+     * 先写临时文件再改名，读取方不会看到写了一半的文件；不同 URL 可能同时写入同一份内容，临时文件名各不相同
+     */
+    private fun writeFile(file: File, bytes: ByteArray) {
+        val temp = File.createTempFile(file.name, ".tmp", file.parentFile)
+        FileOutputStream(temp).use { it.write(bytes) }
+        if (!temp.renameTo(file)) temp.delete()
+    }
+
+    /**
+     * 删除过期的记录和旧版本按 URL 存放的文件；内容总大小超过上限时从最旧的开始删除，直到降到上限的四分之三
+     */
+    private fun trimDisk() {
+        val now = System.currentTimeMillis()
+        indexDir.listFiles()?.forEach { pointer ->
+            if (now - pointer.lastModified() >= DISK_EXPIRY_MS) pointer.delete()
+        }
+        diskDir.listFiles()?.forEach { if (it.isFile) it.delete() }
+
+        val files = blobDir.listFiles() ?: return
+        var total = files.sumOf { it.length() }
+        if (total <= MAX_DISK_BYTES) return
+        for (file in files.sortedBy { it.lastModified() }) {
+            if (total <= MAX_DISK_BYTES * 3 / 4) break
+            total -= file.length()
+            file.delete()
+        }
+    }
+}
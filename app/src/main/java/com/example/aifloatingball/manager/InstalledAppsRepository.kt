@@ -1,12 +1,16 @@
 package com.example.aifloatingball.manager
 
+import android.content.BroadcastReceiver
 import android.content.Context
 import android.content.Intent
+import android.content.IntentFilter
 import android.content.pm.ApplicationInfo
 import android.content.pm.PackageManager
+import android.content.pm.ResolveInfo
 import com.example.aifloatingball.model.AppCategory
 import com.example.aifloatingball.model.AppSearchConfig
 import com.example.aifloatingball.R
+import com.example.aifloatingball.search.AppSearchIndex
 
 /**
  * 负责扫描设备上可启动的应用，按类别归类并过滤“无搜索意义”的系统工具。
@@ -20,6 +24,10 @@ class InstalledAppsRepository private constructor(private val context: Context)
     @Volatile
     private var cached: List<AppSearchConfig>? = null
 
+    // 随扫描结果一起建好，应用安装或卸载时增量更新
+    private val searchIndex = AppSearchIndex<AppSearchConfig>({ it.appName }, { it.packageName })
+    private val collator = java.text.Collator.getInstance(java.util.Locale.CHINA)
+
     companion object {
         @Volatile
         private var instance: InstalledAppsRepository? = null
@@ -31,6 +39,10 @@ class InstalledAppsRepository private constructor(private val context: Context)
         }
     }
 
+    init {
+        registerPackageReceiver()
+    }
+
     /**
      * 异步前应在后台线程调用。
      */
@@ -44,37 +56,107 @@ class InstalledAppsRepository private constructor(private val context: Context)
         var order = 1
 
         for (ri in activities) {
-            val appInfo = ri.activityInfo?.applicationInfo ?: continue
-            val pkg = ri.activityInfo.packageName ?: continue
-            val label = ri.loadLabel(pm)?.toString()?.trim().orEmpty()
-
-            // 过滤无搜索意义或系统工具
-            if (isNonSearchUtility(pkg, label, appInfo)) continue
-
-            val category = overrides.getOverride(pkg) ?: classify(appInfo, pkg, label)
-
-            // 构造 AppSearchConfig；searchUrl 对未知应用留空，由通用发送/自动粘贴逻辑处理
-            val config = AppSearchConfig(
-                appId = pkg,
-                appName = label.ifEmpty { pkg.substringAfterLast('.') },
-                packageName = pkg,
-                isEnabled = true,
-                order = order++,
-                iconResId = R.drawable.ic_web_default,
-                searchUrl = "",
-                category = category,
-                description = ""
-            )
+            val config = toConfig(ri, order) ?: continue
+            order++
             results.add(config)
         }
 
         // 中文友好排序
-        val collator = java.text.Collator.getInstance(java.util.Locale.CHINA)
         val sorted = results.sortedWith(compareBy(collator) { it.appName })
+        searchIndex.replaceAll(sorted)
         cached = sorted
         return sorted
     }
 
+    /**
+     * 在已扫描的应用中按名称、拼音、首字母和包名搜索；尚未扫描时返回空列表
+     */
+    fun search(query: String, limit: Int = AppSearchIndex.DEFAULT_LIMIT): List<AppSearchConfig> {
+        if (cached == null) return emptyList()
+        return searchIndex.search(query, limit)
+    }
+
+    private fun toConfig(ri: ResolveInfo, order: Int): AppSearchConfig? {
+        val appInfo = ri.activityInfo?.applicationInfo ?: return null
+        val pkg = ri.activityInfo.packageName ?: return null
+        val label = ri.loadLabel(pm)?.toString()?.trim().orEmpty()
+
+        // 过滤无搜索意义或系统工具
+        if (isNonSearchUtility(pkg, label, appInfo)) return null
+
+        val category = overrides.getOverride(pkg) ?: classify(appInfo, pkg, label)
+
+        // 构造 AppSearchConfig；searchUrl 对未知应用留空，由通用发送/自动粘贴逻辑处理
+        return AppSearchConfig(
+            appId = pkg,
+            appName = label.ifEmpty { pkg.substringAfterLast('.') },
+            packageName = pkg,
+            isEnabled = true,
+            order = order,
+            iconResId = R.drawable.ic_web_default,
+            searchUrl = "",
+            category = category,
+            description = ""
+        )
+    }
+
+    /**
+     * 应用安装、更新或卸载时只更新对应的包；还没扫描过就不用管，下次扫描自然是最新的
+     */
+    private fun registerPackageReceiver() {
+        val receiver = object : BroadcastReceiver() {
+            override fun onReceive(context: Context, intent: Intent) {
+                val pkg = intent.data?.schemeSpecificPart ?: return
+                val replacing = intent.getBooleanExtra(Intent.EXTRA_REPLACING, false)
+                when (intent.action) {
+                    Intent.ACTION_PACKAGE_REMOVED -> if (!replacing) onPackageRemoved(pkg)
+                    Intent.ACTION_PACKAGE_ADDED -> if (!replacing) onPackageChanged(pkg)
+                    Intent.ACTION_PACKAGE_REPLACED -> onPackageChanged(pkg)
+                }
+            }
+        }
+        val filter = IntentFilter().apply {
+            addAction(Intent.ACTION_PACKAGE_ADDED)
+            addAction(Intent.ACTION_PACKAGE_REMOVED)
+            addAction(Intent.ACTION_PACKAGE_REPLACED)
+            addDataScheme("package")
+        }
+        try {
+            context.registerReceiver(receiver, filter)
+        } catch (e: Exception) {
+            android.util.Log.e("InstalledAppsRepository", "注册应用变化监听失败", e)
+        }
+    }
+
+    private fun onPackageChanged(pkg: String) {
+        val current = cached ?: return
+        // 查询包信息较慢，放到后台线程
+        Thread {
+            try {
+                val intent = Intent(Intent.ACTION_MAIN).addCategory(Intent.CATEGORY_LAUNCHER).setPackage(pkg)
+                val nextOrder = (current.maxOfOrNull { it.order } ?: 0) + 1
+                val added = pm.queryIntentActivities(intent, 0)
+                    .mapIndexedNotNull { index, ri -> toConfig(ri, nextOrder + index) }
+                synchronized(this) {
+                    val latest = cached ?: return@Thread
+                    cached = (latest.filter { it.packageName != pkg } + added)
+                        .sortedWith(compareBy(collator) { it.appName })
+                    searchIndex.update(pkg, added)
+                }
+            } catch (e: Exception) {
+                android.util.Log.e("InstalledAppsRepository", "更新应用信息失败: $pkg", e)
+            }
+        }.start()
+    }
+
+    private fun onPackageRemoved(pkg: String) {
+        synchronized(this) {
+            val latest = cached ?: return
+            cached = latest.filter { it.packageName != pkg }
+            searchIndex.remove(pkg)
+        }
+    }
+
     fun getCached(): List<AppSearchConfig>? = cached
 
     fun invalidate() { cached = null }
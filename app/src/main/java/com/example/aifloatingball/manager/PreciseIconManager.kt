@@ -1,16 +1,11 @@
 package com.example.aifloatingball.manager
 
 import android.content.Context
-import android.graphics.Bitmap
-import android.graphics.BitmapFactory
 import android.graphics.drawable.BitmapDrawable
 import android.graphics.drawable.Drawable
 import android.util.Log
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.withContext
-import java.io.InputStream
-import java.net.HttpURLConnection
-import java.net.URL
 
 /**
  * 精准图标管理器
@@ -20,8 +15,9 @@ class PreciseIconManager(private val context: Context) {
     
     companion object {
         private const val TAG = "PreciseIconManager"
-        private const val TIMEOUT = 8000
     }
+
+    private val iconService = IconService.getInstance(context)
     
     /**
      * AI应用精准图标映射
@@ -420,37 +416,10 @@ class PreciseIconManager(private val context: Context) {
     }
     
     /**
-     * 从URL下载图标
+     * 从URL下载图标，缓存与失败记录由 [IconService] 统一管理
      */
     private suspend fun downloadIconFromUrl(urlString: String): Drawable? {
-        return withContext(Dispatchers.IO) {
-            try {
-                val url = URL(urlString)
-                val connection = url.openConnection() as HttpURLConnection
-                connection.connectTimeout = TIMEOUT
-                connection.readTimeout = TIMEOUT
-                connection.setRequestProperty("User-Agent", "Mozilla/5.0 (Android; Mobile)")
-                
-                if (connection.responseCode == HttpURLConnection.HTTP_OK) {
-                    val inputStream: InputStream = connection.inputStream
-                    val bitmap = BitmapFactory.decodeStream(inputStream)
-                    inputStream.close()
-                    connection.disconnect()
-                    
-                    if (bitmap != null) {
-                        BitmapDrawable(context.resources, bitmap)
-                    } else {
-                        null
-                    }
-                } else {
-                    connection.disconnect()
-                    null
-                }
-            } catch (e: Exception) {
-                Log.e(TAG, "下载图标失败: $urlString", e)
-                null
-            }
-        }
+        return iconService.load(urlString)?.let { BitmapDrawable(context.resources, it) }
     }
     
     /**
@@ -0,0 +1,117 @@
+package com.example.aifloatingball.manager
+
+/**
+ * 流式回复的表情过滤器：每个片段只处理新到的增量
+ *
+ * 规则与 [clean] 相同：去掉表情符号（U+1F000 起的字符和落单的代理字符）和 `:emoji_name:`，连续空白合并为一个空格，去掉首尾空白。
+ * 被片段边界拆开的代理对要等下一个片段才能判断；一个 `:name` 还没等到结尾的冒号时无法判断是否要移除，先留在缓冲区里，后续片段到达后再决定；
+ * 末尾的空白同样要等到后面出现非空白字符才输出。
+ *
+ * 一次回复使用一个实例，非线程安全。只依赖 JDK，可直接在 JVM 单元测试中使用。
+ */
+class StreamingEmojiFilter {
+
+    companion object {
+        private const val FIRST_EMOJI_CODE_POINT = 0x1F000
+
+        // 表情符号所在的辅助平面（U+1F000 起）以及落单的代理字符；写成正则转义，避免两个代理字符被合成一个码点
+        private val EMOJI_PATTERN = Regex("[\\x{1F000}-\\x{10FFFF}\\uD800-\\uDFFF]+")
+        private val EMOJI_NAME_PATTERN = Regex(":([a-zA-Z0-9_]+):")
+        private val WHITESPACE_PATTERN = Regex("\\s+")
+
+        /**
+         * 一次性清理完整文本
+         */
+        fun clean(text: String): String {
+            return text.replace(EMOJI_PATTERN, "")
+                .replace(EMOJI_NAME_PATTERN, "")
+                .replace(WHITESPACE_PATTERN, " ")
+                .trim()
+        }
+
+        private fun isNameChar(c: Char) = c in 'a'..'z' || c in 'A'..'Z' || c in '0'..'9' || c == '_'
+
+        // 与正则中的 \s 一致
+        private fun isSpace(c: Char) = c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\u000C' || c == '\r'
+    }
+
+    private val output = StringBuilder()
+    // 片段末尾的高位代理，要等下一个片段的低位代理才能确定是哪个字符
+    private var highSurrogate: Char? = null
+    // 已去掉表情符号、但还不能确定是否属于 :name: 的尾部；处理完一个片段后总是以冒号开头
+    private val pending = StringBuilder()
+    private var pendingSpace = false
+
+    /**
+     * 追加一个片段，返回目前为止的清理结果
+     */
+    fun append(delta: String): String {
+        for (c in delta) {
+            val high = highSurrogate
+            if (high != null) {
+                highSurrogate = null
+                if (Character.isLowSurrogate(c)) {
+                    if (Character.toCodePoint(high, c) < FIRST_EMOJI_CODE_POINT) pending.append(high).append(c)
+                    continue
+                }
+                // 落单的高位代理直接丢掉
+            }
+            when {
+                Character.isHighSurrogate(c) -> highSurrogate = c
+                Character.isLowSurrogate(c) -> Unit
+                else -> pending.append(c)
+            }
+        }
+        drain(final = false)
+        return output.toString()
+    }
+
+    /**
+     * 回复结束：缓冲区中未闭合的 `:name` 按普通文本输出，返回完整的清理结果
+     */
+    fun finish(): String {
+        highSurrogate = null
+        drain(final = true)
+        return output.toString()
+    }
+
+    /**
+     * 按正则从左到右的匹配顺序处理缓冲区，只留下尚无法判断的 `:name` 尾部
+     */
+    private fun drain(final: Boolean) {
+        val length = pending.length
+        var i = 0
+        while (i < length) {
+            val c = pending[i]
+            if (c != ':') {
+                emit(c)
+                i++
+                continue
+            }
+            var j = i + 1
+            while (j < length && isNameChar(pending[j])) j++
+            when {
+                j == length && !final -> break
+                j < length && j > i + 1 && pending[j] == ':' -> i = j + 1
+                else -> {
+                    emit(c)
+                    i++
+                }
+            }
+        }
+        pending.delete(0, i)
+    }
+
+    private fun emit(c: Char) {
+        if (isSpace(c)) {
+            // 开头的空白直接丢掉，其余的等到后面出现非空白字符才输出
+            if (output.isNotEmpty()) pendingSpace = true
+            return
+        }
+        if (pendingSpace) {
+            output.append(' ')
+            pendingSpace = false
+        }
+        output.append(c)
+    }
+}
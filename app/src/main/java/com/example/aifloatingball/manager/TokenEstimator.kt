@@ -0,0 +1,160 @@
+package com.example.aifloatingball.manager
+
+import kotlin.math.ceil
+
+/**
+ * 本地 token 数估算器
+ *
+ * 不加载任何词表，按字符类别单遍扫描，模拟各家 BPE 分词器的切分方式：
+ * - 汉字、假名、谚文按每字的平均 token 数计算，这是各家差别最大的地方；
+ * - 拉丁字母组成的单词连同前面的一个空格算作一段，常见短词 1 个 token，长词按字符数折算；
+ * - 数字按每段最多几位切分，标点连续出现时两个一组，表情等其他符号按多 token 计算。
+ *
+ * 每个 [Family] 的系数来自对应厂商公布的换算比例和 cl100k 等公开词表的实测，
+ * 用于决定历史消息是否放得下预算，误差在 ±15% 以内即可。
+ */
+class TokenEstimator(val family: Family) {
+
+    /**
+     * 分词器家族
+     *
+     * @param cjkTokensPerChar 每个汉字/假名/谚文的平均 token 数
+     * @param charsPerToken 长单词每个 token 覆盖的字母数
+     * @param shortWordLength 不超过这个长度的单词按 1 个 token 计算
+     * @param digitsPerToken 连续数字每个 token 覆盖的位数
+     * @param tokensPerMessage 每条消息的格式开销（角色、分隔符）
+     * @param tokensPerRequest 每次请求的固定开销
+     */
+    enum class Family(
+        val cjkTokensPerChar: Double,
+        val charsPerToken: Double,
+        val shortWordLength: Int,
+        val digitsPerToken: Int,
+        val tokensPerMessage: Int,
+        val tokensPerRequest: Int
+    ) {
+        /** OpenAI cl100k/o200k 系列 */
+        OPENAI(1.0, 4.2, 6, 3, 4, 3),
+        /** Anthropic，中文切分比 cl100k 更细 */
+        CLAUDE(1.2, 4.0, 6, 3, 5, 3),
+        /** Gemini SentencePiece 词表，中文常用字多为单 token 或双字词 */
+        GEMINI(0.8, 4.5, 7, 1, 4, 2),
+        /** DeepSeek 官方换算：1 个中文字符约 0.6 token */
+        DEEPSEEK(0.6, 4.0, 6, 1, 4, 3),
+        /** 通义、文心、Kimi、智谱、豆包、星火等中文优化词表 */
+        CHINESE(0.7, 4.0, 6, 1, 4, 3);
+
+        companion object {
+            /**
+             * 按 [AIServiceType] 的名称选择家族，未知服务按 OpenAI 兼容处理
+             */
+            fun forService(serviceName: String?): Family = when (serviceName) {
+                "CHATGPT" -> OPENAI
+                "CLAUDE" -> CLAUDE
+                "GEMINI" -> GEMINI
+                "DEEPSEEK" -> DEEPSEEK
+                "WENXIN", "QIANWEN", "XINGHUO", "KIMI", "ZHIPU_AI", "DOUBAO" -> CHINESE
+                else -> OPENAI
+            }
+        }
+    }
+
+    /**
+     * 估算一段纯文本的 token 数
+     */
+    fun estimate(text: String): Int {
+        if (text.isEmpty()) return 0
+        var tokens = 0.0
+        var cjk = 0
+        var i = 0
+        val n = text.length
+        while (i < n) {
+            val c = text[i]
+            when {
+                isCjk(c) -> {
+                    cjk++
+                    i++
+                }
+                c.isWhitespace() -> {
+                    val start = i
+                    while (i < n && text[i].isWhitespace()) i++
+                    // 单词和标点会吞掉前面的一个空格，其余空白单独成段
+                    val next = if (i < n) text[i] else null
+                    val merges = next != null && !isCjk(next) && !next.isDigit() && (next.isLetter() || isPunctuation(next))
+                    if (!merges || i - start > 1) tokens += 1
+                }
+                c.isDigit() -> {
+                    val start = i
+                    while (i < n && text[i].isDigit()) i++
+                    tokens += ceil((i - start).toDouble() / family.digitsPerToken)
+                }
+                c.isLetter() -> {
+                    val start = i
+                    var ascii = true
+                    while (i < n && text[i].isLetter() && !isCjk(text[i])) {
+                        if (text[i].code > 0x7F) ascii = false
+                        i++
+                    }
+                    tokens += wordTokens(i - start, ascii)
+                }
+                isPunctuation(c) -> {
+                    val start = i
+                    while (i < n && isPunctuation(text[i])) i++
+                    tokens += ceil((i - start) / 2.0)
+                }
+                Character.isSurrogate(c) -> {
+                    // 表情等补充平面字符在字节级 BPE 中通常占 2~3 个 token
+                    tokens += 2
+                    i += if (i + 1 < n && Character.isSurrogatePair(c, text[i + 1])) 2 else 1
+                }
+                else -> {
+                    tokens += 1
+                    i++
+                }
+            }
+        }
+        tokens += cjk * family.cjkTokensPerChar
+        return ceil(tokens).toInt().coerceAtLeast(1)
+    }
+
+    /**
+     * 估算一条聊天消息的 token 数，含格式开销
+     */
+    fun estimateMessage(role: String, content: String): Int {
+        return family.tokensPerMessage + estimate(role) + estimate(content)
+    }
+
+    /**
+     * 估算整组消息的 token 数，含请求的固定开销
+     */
+    fun estimateMessages(messages: List<Map<String, String>>): Int {
+        return family.tokensPerRequest + messages.sumOf { estimateMessage(it["role"] ?: "", it["content"] ?: "") }
+    }
+
+    private fun wordTokens(length: Int, ascii: Boolean): Double {
+        if (!ascii) {
+            // 西里尔、带音调的拉丁字母等在英文为主的词表里切得更碎
+            return ceil(length / 2.0)
+        }
+        return if (length <= family.shortWordLength) 1.0 else ceil(length / family.charsPerToken)
+    }
+
+    private fun isPunctuation(c: Char): Boolean {
+        return c.code < 0x80 && !c.isLetterOrDigit() && !c.isWhitespace() ||
+            Character.getType(c).let {
+                it == Character.OTHER_PUNCTUATION.toInt() || it == Character.START_PUNCTUATION.toInt() ||
+                    it == Character.END_PUNCTUATION.toInt() || it == Character.DASH_PUNCTUATION.toInt() ||
+                    it == Character.INITIAL_QUOTE_PUNCTUATION.toInt() || it == Character.FINAL_QUOTE_PUNCTUATION.toInt()
+            }
+    }
+
+    private fun isCjk(c: Char): Boolean {
+        return when (Character.UnicodeScript.of(c.code)) {
+            Character.UnicodeScript.HAN,
+            Character.UnicodeScript.HIRAGANA,
+            Character.UnicodeScript.KATAKANA,
+            Character.UnicodeScript.HANGUL -> true
+            else -> false
+        }
+    }
+}
@@ -3,270 +3,262 @@ package com.example.aifloatingball.manager
 import android.content.Context
 import android.content.SharedPreferences
 import android.util.Log
+import com.example.aifloatingball.data.UnifiedCollectionStore
 import com.example.aifloatingball.model.*
+import com.example.aifloatingball.search.FullTextIndex
+import com.example.aifloatingball.search.PersistentSearchIndex
 import com.google.gson.Gson
 import com.google.gson.reflect.TypeToken
+import java.io.File
 import java.io.Serializable
 
 /**
  * 统一收藏管理器
  * 负责所有收藏项的增删改查、筛选、排序、导入导出等功能
+ *
+ * 数据保存在 [UnifiedCollectionStore] 中：启动时解析一次，之后的查询都走内存索引，
+ * 单条修改只追加一条日志记录，不再整体重写收藏列表。
  */
 class UnifiedCollectionManager private constructor(private val context: Context) {
-    
+
     companion object {
         private const val TAG = "UnifiedCollectionManager"
         private const val PREFS_NAME = "unified_collections"
+        // 旧版整体存储在SharedPreferences中的收藏列表，仅用于一次性迁移
         private const val KEY_COLLECTIONS = "collections_list"
         private const val KEY_MIGRATION_COMPLETED = "migration_completed"
-        
+        private const val KEY_STORE_MIGRATED = "store_migrated"
+        private const val STORE_FILE_NAME = "unified_collections.log"
+        private const val SEARCH_INDEX_FILE_NAME = "unified_collections_search.idx"
+
+        // 全文索引的字段序号，对应 FullTextIndex.MatchRange.field，用于搜索结果高亮
+        const val SEARCH_FIELD_TITLE = 0
+        const val SEARCH_FIELD_TAGS = 1
+        const val SEARCH_FIELD_CONTENT = 2
+        const val SEARCH_FIELD_SOURCE = 3
+        private val SEARCH_FIELD_WEIGHTS = floatArrayOf(3f, 2f, 1f, 1f)
+        private val SEARCH_PINYIN_FIELDS = booleanArrayOf(true, true, false, false)
+
         @Volatile
         private var INSTANCE: UnifiedCollectionManager? = null
-        
+
         fun getInstance(context: Context): UnifiedCollectionManager {
             return INSTANCE ?: synchronized(this) {
                 INSTANCE ?: UnifiedCollectionManager(context.applicationContext).also { INSTANCE = it }
             }
         }
     }
-    
+
     private val prefs: SharedPreferences = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
     private val gson = Gson()
-    
+    private val store: UnifiedCollectionStore by lazy {
+        UnifiedCollectionStore(File(context.filesDir, STORE_FILE_NAME)).also {
+            migrateFromPrefs(it)
+            it.changeListener = searchIndexUpdater
+        }
+    }
+    private val searchIndex = PersistentSearchIndex(
+        File(context.filesDir, SEARCH_INDEX_FILE_NAME),
+        SEARCH_FIELD_WEIGHTS,
+        SEARCH_PINYIN_FIELDS
+    )
+
     /**
-     * 获取所有收藏项
+     * 收藏变化时同步维护全文索引
      */
-    fun getAllCollections(): List<UnifiedCollectionItem> {
-        val json = prefs.getString(KEY_COLLECTIONS, "[]") ?: "[]"
-        return try {
-            val type = object : TypeToken<List<UnifiedCollectionItem>>() {}.type
-            gson.fromJson(json, type) ?: emptyList()
+    private val searchIndexUpdater = object : UnifiedCollectionStore.ChangeListener {
+        override fun onItemsPut(items: Collection<UnifiedCollectionItem>) {
+            openSearchIndex()
+            items.forEach { searchIndex.put(toSearchDocument(it)) }
+        }
+
+        override fun onItemsRemoved(ids: Collection<String>) {
+            openSearchIndex()
+            ids.forEach { searchIndex.remove(it) }
+        }
+
+        override fun onItemsReplaced(items: Collection<UnifiedCollectionItem>) {
+            if (searchIndex.isOpen()) {
+                searchIndex.sync(items.map { toSearchDocument(it) })
+            } else {
+                openSearchIndex()
+            }
+        }
+    }
+
+    private fun openSearchIndex() {
+        if (!searchIndex.isOpen()) {
+            searchIndex.open(store.getAll().map { toSearchDocument(it) })
+        }
+    }
+
+    private fun toSearchDocument(item: UnifiedCollectionItem): FullTextIndex.Document {
+        val source = listOfNotNull(item.sourceLocation, item.sourceDetail).joinToString(" ")
+        return FullTextIndex.Document(
+            item.id,
+            listOf(item.title, item.customTags.orEmpty().joinToString(" "), item.content, source)
+        )
+    }
+
+    /**
+     * 把旧版SharedPreferences中的收藏列表一次性迁移到存储引擎
+     */
+    private fun migrateFromPrefs(store: UnifiedCollectionStore) {
+        if (prefs.getBoolean(KEY_STORE_MIGRATED, false) && !prefs.contains(KEY_COLLECTIONS)) {
+            return
+        }
+        try {
+            val json = prefs.getString(KEY_COLLECTIONS, null)
+            val legacy: List<UnifiedCollectionItem> = if (json.isNullOrEmpty()) {
+                emptyList()
+            } else {
+                val type = object : TypeToken<List<UnifiedCollectionItem>>() {}.type
+                gson.fromJson(json, type) ?: emptyList()
+            }
+
+            val migrated = if (store.isEmpty()) {
+                store.replaceAll(legacy)
+            } else {
+                // 存储中已有数据（上次迁移中途退出），只补齐缺少的项
+                store.putAll(legacy.filter { !store.contains(it.id) })
+            }
+
+            if (migrated) {
+                prefs.edit()
+                    .remove(KEY_COLLECTIONS)
+                    .putBoolean(KEY_STORE_MIGRATED, true)
+                    .commit()
+                Log.d(TAG, "✅ 收藏数据迁移完成: ${legacy.size} 条")
+            } else {
+                Log.e(TAG, "❌ 收藏数据迁移失败，下次启动重试")
+            }
         } catch (e: Exception) {
-            Log.e(TAG, "解析收藏项失败", e)
-            emptyList()
+            Log.e(TAG, "解析旧版收藏数据失败", e)
         }
     }
-    
+
+    /**
+     * 获取所有收藏项
+     */
+    fun getAllCollections(): List<UnifiedCollectionItem> {
+        return store.getAll()
+    }
+
     /**
      * 根据ID获取收藏项
      */
     fun getCollectionById(id: String): UnifiedCollectionItem? {
-        return getAllCollections().find { it.id == id }
+        return store.get(id)
     }
-    
+
     /**
      * 根据类型获取收藏项
      */
     fun getCollectionsByType(type: CollectionType): List<UnifiedCollectionItem> {
         return try {
-            val allCollections = getAllCollections()
-            Log.d(TAG, "========== 查询类型: ${type.name} (${type.displayName}), 总收藏数: ${allCollections.size} ==========")
-            
-            // 详细检查每个收藏项的类型
-            if (allCollections.isNotEmpty()) {
-                Log.d(TAG, "开始过滤，检查每个收藏项的类型:")
-                allCollections.forEachIndexed { index, item ->
-                    try {
-                        val itemTypeName = item.collectionType?.name ?: "null"
-                        val itemTypeDisplay = item.collectionType?.displayName ?: "null"
-                        // 使用多种方式比较，确保能正确匹配
-                        val matches1 = item.collectionType == type
-                        val matches2 = item.collectionType?.name == type.name
-                        val matches3 = item.collectionType?.ordinal == type.ordinal
-                        val finalMatch = matches1 || matches2 || matches3
-                        Log.d(TAG, "  收藏项[$index]: id=${item.id.take(8)}..., title='${item.title.take(30)}...', type=$itemTypeName ($itemTypeDisplay)")
-                        Log.d(TAG, "    匹配检查: ==比较=${matches1}, name比较=${matches2}, ordinal比较=${matches3}, 最终匹配=${finalMatch}")
-                    } catch (e: Exception) {
-                        Log.e(TAG, "检查收藏项[$index]时出错", e)
-                    }
-                }
-            } else {
-                Log.d(TAG, "⚠️ 所有收藏项列表为空")
-            }
-            
-            // 使用多种方式过滤，确保能正确匹配
-            val filtered = allCollections.filter { item ->
-                try {
-                    val match1 = item.collectionType == type
-                    val match2 = item.collectionType?.name == type.name
-                    val match3 = item.collectionType?.ordinal == type.ordinal
-                    match1 || match2 || match3
-                } catch (e: Exception) {
-                    Log.e(TAG, "过滤收藏项时出错: id=${item.id}", e)
-                    false
-                }
-            }
-            Log.d(TAG, "✅ 匹配的收藏数: ${filtered.size}")
-            
-            // 如果查询结果为空，输出所有收藏的类型用于调试
-            if (filtered.isEmpty() && allCollections.isNotEmpty()) {
-                Log.w(TAG, "⚠️ 未找到匹配的收藏项，所有收藏的类型分布:")
-                val typeCounts = allCollections.groupingBy { it.collectionType?.name ?: "null" }.eachCount()
-                typeCounts.forEach { (typeName, count) ->
-                    Log.w(TAG, "  - $typeName: $count 条")
-                }
-                // 检查是否有类型为null的项
-                val nullTypeCount = allCollections.count { it.collectionType == null }
-                if (nullTypeCount > 0) {
-                    Log.w(TAG, "⚠️ 发现 $nullTypeCount 条收藏项的类型为null")
-                }
-                // 输出所有收藏项的详细信息
-                Log.w(TAG, "所有收藏项详情:")
-                allCollections.forEachIndexed { index, item ->
-                    try {
-                        Log.w(TAG, "  [$index] id=${item.id.take(8)}..., title='${item.title.take(30)}...', type=${item.collectionType?.name ?: "null"}, typeClass=${item.collectionType?.javaClass?.name ?: "null"}")
-                    } catch (e: Exception) {
-                        Log.e(TAG, "输出收藏项[$index]详情时出错", e)
-                    }
-                }
-            } else if (filtered.isNotEmpty()) {
-                Log.d(TAG, "✅ 找到匹配的收藏项，详细信息:")
-                filtered.forEachIndexed { index, item ->
-                    Log.d(TAG, "  [$index] id=${item.id.take(8)}..., title='${item.title.take(30)}...', type=${item.collectionType?.name}")
-                }
-            }
-            
-            Log.d(TAG, "========== 查询完成，返回 ${filtered.size} 条 ==========")
+            val filtered = store.getByType(type)
+            Log.d(TAG, "查询类型: ${type.name} (${type.displayName}), 总收藏数: ${store.size}, 匹配: ${filtered.size}")
             filtered
         } catch (e: Exception) {
             Log.e(TAG, "❌ 查询收藏项时发生异常", e)
-            e.printStackTrace()
             emptyList()
         }
     }
-    
+
     /**
      * 添加收藏项
      */
     fun addCollection(item: UnifiedCollectionItem): Boolean {
         Log.d(TAG, "添加收藏项: id=${item.id}, title=${item.title}, type=${item.collectionType?.name ?: "null"}")
-        
-        val collections = getAllCollections().toMutableList()
-        
-        // 检查是否已存在相同ID的项
-        val existingIndex = collections.indexOfFirst { it.id == item.id }
-        if (existingIndex >= 0) {
-            // 更新现有项
-            Log.d(TAG, "更新现有收藏项: index=$existingIndex")
-            collections[existingIndex] = item.updateModifiedTime()
-        } else {
-            // 添加新项
-            Log.d(TAG, "添加新收藏项，当前总数: ${collections.size}")
-            collections.add(item)
-            Log.d(TAG, "添加后总数: ${collections.size}")
-        }
-        
-        val success = saveCollections(collections)
-        
+
+        // 已存在相同ID的项时视为更新
+        val toSave = if (store.contains(item.id)) item.updateModifiedTime() else item
+        val success = store.put(toSave)
+
         if (success) {
-            // 验证保存是否成功
-            val saved = getCollectionById(item.id)
-            if (saved != null) {
-                Log.d(TAG, "✅ 收藏项保存成功: id=${saved.id}, type=${saved.collectionType?.name ?: "null"}")
-            } else {
-                Log.e(TAG, "❌ 收藏项保存后验证失败: id=${item.id}")
-            }
+            Log.d(TAG, "✅ 收藏项保存成功: id=${item.id}, 当前总数: ${store.size}")
         } else {
             Log.e(TAG, "❌ 保存收藏项失败")
         }
-        
+
         return success
     }
-    
+
     /**
      * 更新收藏项
      */
     fun updateCollection(item: UnifiedCollectionItem): Boolean {
-        val collections = getAllCollections().toMutableList()
-        val index = collections.indexOfFirst { it.id == item.id }
-        
-        if (index >= 0) {
-            collections[index] = item.updateModifiedTime()
-            return saveCollections(collections)
+        if (!store.contains(item.id)) {
+            return false
         }
-        
-        return false
+        return store.put(item.updateModifiedTime())
     }
-    
+
     /**
      * 删除收藏项
      */
     fun deleteCollection(id: String): Boolean {
-        val collections = getAllCollections().toMutableList()
-        val removed = collections.removeIf { it.id == id }
-        
-        if (removed) {
-            return saveCollections(collections)
-        }
-        
-        return false
+        return store.remove(id)
     }
-    
+
     /**
      * 批量删除收藏项
      */
     fun deleteCollections(ids: List<String>): Int {
-        val collections = getAllCollections().toMutableList()
-        var deletedCount = 0
-        
-        ids.forEach { id ->
-            if (collections.removeIf { it.id == id }) {
-                deletedCount++
-            }
-        }
-        
-        if (deletedCount > 0) {
-            saveCollections(collections)
-        }
-        
-        return deletedCount
+        return store.removeAll(ids)
     }
-    
+
     /**
      * 移动收藏项到其他类型
      */
     fun moveCollectionToType(id: String, newType: CollectionType): Boolean {
-        val collections = getAllCollections().toMutableList()
-        val index = collections.indexOfFirst { it.id == id }
-        
-        if (index >= 0) {
-            collections[index] = collections[index].copy(
+        val item = store.get(id) ?: return false
+        return store.put(
+            item.copy(
                 collectionType = newType,
                 modifiedTime = System.currentTimeMillis()
             )
-            return saveCollections(collections)
-        }
-        
-        return false
+        )
     }
-    
+
     /**
      * 批量移动收藏项到其他类型
      */
     fun moveCollectionsToType(ids: List<String>, newType: CollectionType): Int {
-        val collections = getAllCollections().toMutableList()
-        var movedCount = 0
-        
-        ids.forEach { id ->
-            val index = collections.indexOfFirst { it.id == id }
-            if (index >= 0) {
-                collections[index] = collections[index].copy(
-                    collectionType = newType,
-                    modifiedTime = System.currentTimeMillis()
-                )
-                movedCount++
-            }
+        val now = System.currentTimeMillis()
+        val moved = ids.distinct().mapNotNull { id ->
+            store.get(id)?.copy(collectionType = newType, modifiedTime = now)
         }
-        
-        if (movedCount > 0) {
-            saveCollections(collections)
+
+        if (moved.isNotEmpty() && !store.putAll(moved)) {
+            return 0
         }
-        
-        return movedCount
+
+        return moved.size
     }
-    
+
+    /**
+     * 全文搜索收藏项，按相关度排序并返回命中位置（用于高亮）
+     *
+     * 索引查不到时（标点、单词中间的片段等）退回逐条子串匹配，和原先的 contains 搜索结果一致。
+     * 命中位置的字段序号见 [SEARCH_FIELD_TITLE] 等常量
+     */
+    fun searchCollectionsWithMatches(query: String, limit: Int = Int.MAX_VALUE): List<Pair<UnifiedCollectionItem, FullTextIndex.Hit>> {
+        if (query.isBlank()) return emptyList()
+        openSearchIndex()
+        val hits = searchIndex.search(query, limit).ifEmpty {
+            FullTextIndex.scan(query, store.getAll().map { toSearchDocument(it) }, limit)
+        }
+        return hits.mapNotNull { hit ->
+            store.get(hit.id)?.let { Pair(it, hit) }
+        }
+    }
+
     /**
      * 搜索收藏项
+     *
+     * 有关键词时通过全文索引检索并按相关度排序；否则先用类型、标签、时间索引缩小候选集。
+     * 其余条件再逐项过滤
      */
     fun searchCollections(
         query: String? = null,
@@ -277,32 +269,26 @@ class UnifiedCollectionManager private constructor(private val context: Context)
         completionStatus: CompletionStatus? = null,
         isEncrypted: Boolean? = null
     ): List<UnifiedCollectionItem> {
-        var results = getAllCollections()
-        
-        // 文本搜索
-        if (!query.isNullOrBlank()) {
-            val lowerQuery = query.lowercase()
-            results = results.filter {
-                it.title.contains(lowerQuery, ignoreCase = true) ||
-                it.content.contains(lowerQuery, ignoreCase = true) ||
-                it.customTags.any { tag -> tag.contains(lowerQuery, ignoreCase = true) } ||
-                it.sourceLocation.contains(lowerQuery, ignoreCase = true) ||
-                it.sourceDetail?.contains(lowerQuery, ignoreCase = true) == true
-            }
+        var results = when {
+            !query.isNullOrBlank() -> searchCollectionsWithMatches(query).map { it.first }
+            type != null -> store.getByType(type)
+            tags != null && tags.isNotEmpty() -> store.getByAnyTag(tags)
+            timeRange != null -> store.getByCollectedTime(timeRange.first, timeRange.second)
+            else -> store.getAll()
         }
-        
+
         // 类型筛选
         if (type != null) {
             results = results.filter { it.collectionType == type }
         }
-        
+
         // 标签筛选
         if (tags != null && tags.isNotEmpty()) {
             results = results.filter { item ->
                 tags.any { tag -> item.customTags.contains(tag) }
             }
         }
-        
+
         // 时间范围筛选
         if (timeRange != null) {
             val (startTime, endTime) = timeRange
@@ -310,22 +296,22 @@ class UnifiedCollectionManager private constructor(private val context: Context)
                 it.collectedTime in startTime..endTime
             }
         }
-        
+
         // 优先级筛选
         if (priority != null) {
             results = results.filter { it.priority == priority }
         }
-        
+
         // 完成状态筛选
         if (completionStatus != null) {
             results = results.filter { it.completionStatus == completionStatus }
         }
-        
+
         // 加密状态筛选
         if (isEncrypted != null) {
             results = results.filter { it.isEncrypted == isEncrypted }
         }
-        
+
         return results
     }
     
@@ -394,10 +380,7 @@ class UnifiedCollectionManager private constructor(private val context: Context)
      * 获取所有自定义标签
      */
     fun getAllCustomTags(): List<String> {
-        return getAllCollections()
-            .flatMap { it.customTags }
-            .distinct()
-            .sorted()
+        return store.getAllTags()
     }
     
     /**
@@ -455,17 +438,11 @@ class UnifiedCollectionManager private constructor(private val context: Context)
             
             if (merge) {
                 // 合并模式：保留现有项，添加新项
-                val existing = getAllCollections()
-                val existingIds = existing.map { it.id }.toSet()
-                val newItems = imported.filter { it.id !in existingIds }
-                
-                val allItems = existing + newItems
-                saveCollections(allItems)
-                newItems.size
+                val newItems = imported.filter { !store.contains(it.id) }
+                if (store.putAll(newItems)) newItems.size else 0
             } else {
                 // 覆盖模式：替换所有项
-                saveCollections(imported)
-                imported.size
+                if (store.replaceAll(imported)) imported.size else 0
             }
         } catch (e: Exception) {
             Log.e(TAG, "导入JSON失败", e)
@@ -482,51 +459,6 @@ class UnifiedCollectionManager private constructor(private val context: Context)
         return 0
     }
     
-    /**
-     * 保存收藏项列表
-     */
-    private fun saveCollections(collections: List<UnifiedCollectionItem>): Boolean {
-        return try {
-            val json = gson.toJson(collections)
-            // 使用commit()确保立即保存，而不是异步的apply()
-            val success = prefs.edit().putString(KEY_COLLECTIONS, json).commit()
-            Log.d(TAG, "保存收藏项: ${collections.size} 条, commit结果: $success")
-            
-            // 验证保存是否成功
-            val savedJson = prefs.getString(KEY_COLLECTIONS, "[]")
-            val savedCount = if (savedJson != null && savedJson.isNotEmpty()) {
-                try {
-                    val type = object : TypeToken<List<UnifiedCollectionItem>>() {}.type
-                    val saved = gson.fromJson<List<UnifiedCollectionItem>>(savedJson, type) ?: emptyList()
-                    saved.size
-                } catch (e: Exception) {
-                    Log.e(TAG, "验证保存数据失败", e)
-                    0
-                }
-            } else {
-                0
-            }
-            
-            if (savedCount == collections.size) {
-                Log.d(TAG, "✅ 验证通过：保存的收藏项数量正确 ($savedCount)")
-            } else {
-                Log.w(TAG, "⚠️ 验证警告：保存的收藏项数量不匹配 (期望: ${collections.size}, 实际: $savedCount)")
-            }
-            
-            // 统计各类型收藏数量
-            val typeCounts = collections.groupingBy { it.collectionType }.eachCount()
-            typeCounts.forEach { (type, count) ->
-                Log.d(TAG, "  - ${type.displayName}: $count 条")
-            }
-            
-            true
-        } catch (e: Exception) {
-            Log.e(TAG, "保存收藏项失败", e)
-            e.printStackTrace()
-            false
-        }
-    }
-    
     /**
      * CSV字段转义
      */
@@ -571,12 +503,10 @@ class UnifiedCollectionManager private constructor(private val context: Context)
         weight: Float = 1.0f,
         bidirectional: Boolean = true
     ): Boolean {
-        val collections = getAllCollections().toMutableList()
-        
-        val sourceIndex = collections.indexOfFirst { it.id == sourceId }
-        val targetIndex = collections.indexOfFirst { it.id == targetId }
+        val source = store.get(sourceId)
+        val target = store.get(targetId)
         
-        if (sourceIndex < 0 || targetIndex < 0) {
+        if (source == null || target == null) {
             Log.e(TAG, "关联失败：源或目标收藏项不存在")
             return false
         }
@@ -595,15 +525,15 @@ class UnifiedCollectionManager private constructor(private val context: Context)
         }
         
         // 更新源收藏项
-        collections[sourceIndex] = collections[sourceIndex].addRelation(targetId, relationType, note, weight)
+        val updated = mutableListOf(source.addRelation(targetId, relationType, note, weight))
         
         // 双向关联：更新目标收藏项
         if (bidirectional) {
             val reverseType = getReverseRelationType(relationType)
-            collections[targetIndex] = collections[targetIndex].addRelation(sourceId, reverseType, note, weight)
+            updated.add(target.addRelation(sourceId, reverseType, note, weight))
         }
         
-        return saveCollections(collections)
+        return store.putAll(updated)
     }
     
     /**
@@ -615,24 +545,18 @@ class UnifiedCollectionManager private constructor(private val context: Context)
      * @return 是否移除成功
      */
     fun removeRelation(sourceId: String, targetId: String, bidirectional: Boolean = true): Boolean {
-        val collections = getAllCollections().toMutableList()
-        
-        val sourceIndex = collections.indexOfFirst { it.id == sourceId }
-        val targetIndex = collections.indexOfFirst { it.id == targetId }
-        
-        if (sourceIndex < 0 || targetIndex < 0) {
-            return false
-        }
+        val source = store.get(sourceId) ?: return false
+        val target = store.get(targetId) ?: return false
         
         // 移除源收藏项的关联
-        collections[sourceIndex] = collections[sourceIndex].removeRelation(targetId)
+        val updated = mutableListOf(source.removeRelation(targetId))
         
         // 双向移除
         if (bidirectional) {
-            collections[targetIndex] = collections[targetIndex].removeRelation(sourceId)
+            updated.add(target.removeRelation(sourceId))
         }
         
-        return saveCollections(collections)
+        return store.putAll(updated)
     }
     
     /**
@@ -650,25 +574,19 @@ class UnifiedCollectionManager private constructor(private val context: Context)
         newType: RelationType,
         bidirectional: Boolean = true
     ): Boolean {
-        val collections = getAllCollections().toMutableList()
-        
-        val sourceIndex = collections.indexOfFirst { it.id == sourceId }
-        val targetIndex = collections.indexOfFirst { it.id == targetId }
-        
-        if (sourceIndex < 0 || targetIndex < 0) {
-            return false
-        }
+        val source = store.get(sourceId) ?: return false
+        val target = store.get(targetId) ?: return false
         
         // 更新源收藏项的关联类型
-        collections[sourceIndex] = collections[sourceIndex].updateRelationType(targetId, newType)
+        val updated = mutableListOf(source.updateRelationType(targetId, newType))
         
         // 双向更新
         if (bidirectional) {
             val reverseType = getReverseRelationType(newType)
-            collections[targetIndex] = collections[targetIndex].updateRelationType(sourceId, reverseType)
+            updated.add(target.updateRelationType(sourceId, reverseType))
         }
         
-        return saveCollections(collections)
+        return store.putAll(updated)
     }
     
     /**
@@ -686,24 +604,18 @@ class UnifiedCollectionManager private constructor(private val context: Context)
         note: String?,
         bidirectional: Boolean = true
     ): Boolean {
-        val collections = getAllCollections().toMutableList()
-        
-        val sourceIndex = collections.indexOfFirst { it.id == sourceId }
-        val targetIndex = collections.indexOfFirst { it.id == targetId }
-        
-        if (sourceIndex < 0 || targetIndex < 0) {
-            return false
-        }
+        val source = store.get(sourceId) ?: return false
+        val target = store.get(targetId) ?: return false
         
         // 更新源收藏项的关联备注
-        collections[sourceIndex] = collections[sourceIndex].updateRelationNote(targetId, note)
+        val updated = mutableListOf(source.updateRelationNote(targetId, note))
         
         // 双向更新
         if (bidirectional) {
-            collections[targetIndex] = collections[targetIndex].updateRelationNote(sourceId, note)
+            updated.add(target.updateRelationNote(sourceId, note))
         }
         
-        return saveCollections(collections)
+        return store.putAll(updated)
     }
     
     /**
@@ -771,23 +683,20 @@ class UnifiedCollectionManager private constructor(private val context: Context)
      * 重写deleteCollection方法以支持关联清理
      */
     fun deleteCollectionWithRelations(id: String): Boolean {
-        val collections = getAllCollections().toMutableList()
-        
-        // 移除所有指向该收藏项的关联
-        collections.forEachIndexed { index, item ->
-            if (item.isRelatedTo(id)) {
-                collections[index] = item.removeRelation(id)
-            }
+        if (!store.contains(id)) {
+            return false
         }
         
-        // 删除收藏项本身
-        val removed = collections.removeIf { it.id == id }
-        
-        if (removed) {
-            return saveCollections(collections)
+        // 移除所有指向该收藏项的关联（通过反向关联索引定位，无需遍历全部收藏）
+        val updated = store.getItemsRelatedTo(id)
+            .filter { it.id != id }
+            .map { it.removeRelation(id) }
+        if (updated.isNotEmpty() && !store.putAll(updated)) {
+            return false
         }
         
-        return false
+        // 删除收藏项本身
+        return store.remove(id)
     }
     
     /**
@@ -894,7 +803,8 @@ class UnifiedCollectionManager private constructor(private val context: Context)
             return emptyList()
         }
         
-        return getAllCollections().filter { other ->
+        // 只需检查至少共享一个标签的候选项
+        return store.getByAnyTag(itemTags).filter { other ->
             other.id != itemId && other.customTags.intersect(itemTags).size >= minCommonTags
         }.sortedByDescending { other ->
             other.customTags.intersect(itemTags).size
@@ -904,45 +814,64 @@ class UnifiedCollectionManager private constructor(private val context: Context)
     /**
      * 基于内容相似度查找相关收藏项
      * 
+     * 相似度为标题和内容字符片段的 Jaccard 相似度（由保存时计算的 MinHash 签名估计），
+     * 候选项通过 LSH 分桶得到，不再逐条比较全部收藏。
+     * 
      * @param itemId 收藏项ID
      * @param similarityThreshold 相似度阈值（0-1，默认0.3）
      * @return 相关收藏项及其相似度列表
      */
     fun findRelatedByContent(itemId: String, similarityThreshold: Float = 0.3f): List<Pair<UnifiedCollectionItem, Float>> {
-        val item = getCollectionById(itemId) ?: return emptyList()
-        val itemWords = extractWords(item.title + " " + item.content)
+        if (!store.contains(itemId)) return emptyList()
         
-        return getAllCollections().mapNotNull { other ->
-            if (other.id == itemId) return@mapNotNull null
-            
-            val otherWords = extractWords(other.title + " " + other.content)
-            val similarity = calculateJaccardSimilarity(itemWords, otherWords)
-            
-            if (similarity >= similarityThreshold) {
-                Pair(other, similarity)
-            } else {
-                null
-            }
-        }.sortedByDescending { it.second }
+        return store.findSimilar(itemId, similarityThreshold).mapNotNull { (otherId, similarity) ->
+            store.get(otherId)?.let { Pair(it, similarity) }
+        }
     }
     
     /**
-     * 提取关键词
+     * 把所有收藏项按内容相似度聚类
+     * 
+     * @param similarityThreshold 相似度阈值（0-1，默认0.5）
+     * @return 每个聚类中的收藏项，只包含两个以上收藏项的类，按类大小降序
      */
-    private fun extractWords(text: String): Set<String> {
-        return text.lowercase()
-            .split(Regex("[\\s\\p{Punct}]+"))
-            .filter { it.length > 1 }
-            .toSet()
+    fun clusterCollectionsByContent(similarityThreshold: Float = 0.5f): List<List<UnifiedCollectionItem>> {
+        return store.clusterBySimilarity(similarityThreshold).map { cluster ->
+            cluster.ids.mapNotNull { store.get(it) }
+        }.filter { it.size > 1 }
     }
     
     /**
-     * 计算Jaccard相似度
-     */
-    private fun calculateJaccardSimilarity(set1: Set<String>, set2: Set<String>): Float {
-        val intersection = set1.intersect(set2).size
-        val union = set1.union(set2).size
-        return if (union == 0) 0f else intersection.toFloat() / union.toFloat()
+     * 批量为内容相似的收藏项建立"相似"关联（双向，权重为相似度）
+     * 
+     * 已存在任意关联的两项不会被覆盖，所有变更一次性写入。
+     * 
+     * @param similarityThreshold 相似度阈值（0-1，默认0.5）
+     * @return 新增的关联对数
+     */
+    fun linkSimilarCollections(similarityThreshold: Float = 0.5f): Int {
+        val startTime = System.currentTimeMillis()
+        val updated = LinkedHashMap<String, UnifiedCollectionItem>()
+        var linked = 0
+        
+        store.clusterBySimilarity(similarityThreshold).forEach { cluster ->
+            cluster.pairs.forEach { (sourceId, targetId, similarity) ->
+                val source = updated[sourceId] ?: store.get(sourceId) ?: return@forEach
+                val target = updated[targetId] ?: store.get(targetId) ?: return@forEach
+                if (source.isRelatedTo(targetId) || target.isRelatedTo(sourceId)) return@forEach
+                
+                updated[sourceId] = source.addRelation(targetId, RelationType.SIMILAR, weight = similarity)
+                updated[targetId] = target.addRelation(sourceId, RelationType.SIMILAR, weight = similarity)
+                linked++
+            }
+        }
+        
+        if (updated.isNotEmpty() && !store.putAll(updated.values)) {
+            Log.e(TAG, "批量建立相似关联失败")
+            return 0
+        }
+        Log.d(TAG, "批量建立相似关联 $linked 对，耗时 ${System.currentTimeMillis() - startTime}ms")
+        return linked
     }
 }
 
@@ -2,9 +2,12 @@ package com.example.aifloatingball.model
 
 import android.graphics.drawable.Drawable
  
+/**
+ * @param icon 为 null 时显示端通过 [com.example.aifloatingball.manager.AppIconCache] 按需加载
+ */
 data class AppInfo(
     val label: String,
     val packageName: String,
-    val icon: Drawable,
+    val icon: Drawable? = null,
     val urlScheme: String? = null
-) 
\ No newline at end of file
+)
@@ -0,0 +1,376 @@
+package com.example.aifloatingball.network
+
+import com.example.aifloatingball.manager.AIApiManager.AIServiceConfig
+import com.example.aifloatingball.manager.AIServiceType
+import com.google.gson.JsonArray
+import com.google.gson.JsonElement
+import com.google.gson.JsonObject
+import com.google.gson.JsonParser
+import okhttp3.MediaType.Companion.toMediaType
+import okhttp3.Request
+import okhttp3.RequestBody.Companion.toRequestBody
+
+/**
+ * 各家AI服务的协议适配
+ *
+ * [AIStreamingEngine] 负责连接、SSE 解析、计时和回调，适配器只需要描述三件事：
+ * 如何构造请求、如何从一个事件里取出增量文本、如何从非流式响应里取出完整文本。
+ */
+interface AIProviderAdapter {
+
+    /**
+     * 是否请求流式响应；服务端仍返回普通 JSON 时会自动改用 [parseBody]
+     */
+    val streaming: Boolean get() = true
+
+    /**
+     * 是否跳过证书校验（沿用部分服务原先的连接方式）
+     */
+    val trustAllCertificates: Boolean get() = false
+
+    fun buildRequest(config: AIServiceConfig, message: String, history: List<Map<String, String>>): Request
+
+    /**
+     * 处理一个 SSE 事件，把增量文本追加到 [out]
+     *
+     * @return 流已结束时返回 false
+     * @throws AIStreamException 服务端在流中返回错误
+     */
+    fun parseEvent(event: String?, data: String, out: StringBuilder): Boolean
+
+    /**
+     * 从非流式响应中取出完整文本
+     *
+     * @throws AIStreamException 响应中包含错误
+     */
+    fun parseBody(body: String): String
+
+    /**
+     * HTTP 错误码对应的提示文字
+     */
+    fun describeHttpError(config: AIServiceConfig, code: Int, body: String): String {
+        return "${config.name} API错误: $code - ${errorMessageOf(body) ?: body}"
+    }
+
+    companion object {
+        /**
+         * 服务类型对应的适配器，没有可用实现时返回 null
+         */
+        fun forType(type: AIServiceType): AIProviderAdapter? = when (type) {
+            AIServiceType.CHATGPT -> OpenAiCompatibleAdapter()
+            AIServiceType.DEEPSEEK -> DeepSeekAdapter()
+            AIServiceType.KIMI -> OpenAiCompatibleAdapter(trustAll = true)
+            AIServiceType.ZHIPU_AI -> ZhipuAdapter()
+            AIServiceType.DOUBAO -> DoubaoAdapter()
+            AIServiceType.CLAUDE -> ClaudeAdapter()
+            AIServiceType.GEMINI -> GeminiAdapter()
+            AIServiceType.WENXIN -> WenxinAdapter()
+            AIServiceType.QIANWEN -> QianwenAdapter()
+            AIServiceType.XINGHUO, AIServiceType.TEMP_SERVICE -> null
+        }
+    }
+}
+
+private const val USER_AGENT = "AI-FloatingBall/1.0"
+private val JSON_MEDIA_TYPE = "application/json; charset=utf-8".toMediaType()
+
+private fun jsonRequest(url: String, body: JsonObject, vararg headers: Pair<String, String>): Request {
+    val builder = Request.Builder()
+        .url(url)
+        .header("User-Agent", USER_AGENT)
+        .header("Accept", "text/event-stream, application/json")
+        .post(body.toString().toRequestBody(JSON_MEDIA_TYPE))
+    headers.forEach { (name, value) -> builder.header(name, value) }
+    return builder.build()
+}
+
+/**
+ * 历史对话加当前消息，按 OpenAI 的 messages 格式组织
+ */
+private fun chatMessages(message: String, history: List<Map<String, String>>): JsonArray {
+    val messages = JsonArray()
+    history.forEach { msg ->
+        messages.add(JsonObject().apply {
+            addProperty("role", msg["role"])
+            addProperty("content", msg["content"])
+        })
+    }
+    messages.add(JsonObject().apply {
+        addProperty("role", "user")
+        addProperty("content", message)
+    })
+    return messages
+}
+
+private fun parseObject(text: String): JsonObject? {
+    return try {
+        JsonParser.parseString(text).takeIf { it.isJsonObject }?.asJsonObject
+    } catch (e: Exception) {
+        null
+    }
+}
+
+/**
+ * 常见的 `{"error": {"message": ...}}` / `{"message": ...}` 错误格式
+ */
+private fun errorMessageOf(body: String): String? {
+    val json = parseObject(body) ?: return null
+    val error = json.get("error")
+    return when {
+        error != null && error.isJsonObject -> error.asJsonObject.string("message") ?: error.asJsonObject.string("code")
+        error != null && error.isJsonPrimitive -> error.asString
+        else -> json.string("message")
+    }
+}
+
+private fun JsonObject.string(name: String): String? {
+    val element: JsonElement = get(name) ?: return null
+    return if (element.isJsonPrimitive) element.asString else null
+}
+
+private fun JsonObject.obj(name: String): JsonObject? {
+    val element = get(name) ?: return null
+    return if (element.isJsonObject) element.asJsonObject else null
+}
+
+private fun JsonObject.firstOf(name: String): JsonObject? {
+    val element = get(name) ?: return null
+    if (!element.isJsonArray || element.asJsonArray.size() == 0) return null
+    val first = element.asJsonArray[0]
+    return if (first.isJsonObject) first.asJsonObject else null
+}
+
+/**
+ * 服务端在响应中返回的错误
+ */
+class AIStreamException(message: String) : Exception(message)
+
+/**
+ * OpenAI 兼容协议（ChatGPT、Kimi 等）
+ */
+open class OpenAiCompatibleAdapter(private val trustAll: Boolean = false) : AIProviderAdapter {
+
+    override val trustAllCertificates: Boolean get() = trustAll
+
+    protected open fun extraParameters(body: JsonObject) {}
+
+    override fun buildRequest(config: AIServiceConfig, message: String, history: List<Map<String, String>>): Request {
+        val body = JsonObject().apply {
+            addProperty("model", config.model)
+            add("messages", chatMessages(message, history))
+            addProperty("stream", true)
+            addProperty("max_tokens", config.maxTokens)
+            addProperty("temperature", config.temperature)
+        }
+        extraParameters(body)
+        return jsonRequest(config.apiUrl, body, "Authorization" to "Bearer ${config.apiKey}")
+    }
+
+    override fun parseEvent(event: String?, data: String, out: StringBuilder): Boolean {
+        if (data.trim() == "[DONE]") return false
+        val json = parseObject(data) ?: return true
+        json.obj("error")?.let { throw AIStreamException(it.string("message") ?: "未知错误") }
+        val choice = json.firstOf("choices") ?: return true
+        // 个别兼容服务在流式请求中也会返回完整的 message
+        val content = choice.obj("delta")?.string("content") ?: choice.obj("message")?.string("content")
+        if (content != null) out.append(content)
+        return true
+    }
+
+    override fun parseBody(body: String): String {
+        val json = parseObject(body) ?: throw AIStreamException("无法识别的响应格式")
+        json.obj("error")?.let { throw AIStreamException(it.string("message") ?: "未知错误") }
+        return json.firstOf("choices")?.obj("message")?.string("content")
+            ?: throw AIStreamException("响应中没有内容")
+    }
+}
+
+/**
+ * DeepSeek：按错误码给出更具体的提示
+ */
+class DeepSeekAdapter : OpenAiCompatibleAdapter() {
+    override fun describeHttpError(config: AIServiceConfig, code: Int, body: String): String {
+        val detail = errorMessageOf(body)
+        return when (code) {
+            400 -> "请求参数错误：${detail ?: "请求参数错误"}"
+            401 -> "认证失败：${detail ?: "API密钥无效"}"
+            403 -> "权限不足：${detail ?: "权限不足"}"
+            429 -> "请求频率限制：${detail ?: "请求频率过高"}"
+            500, 502, 503, 504 -> "DeepSeek服务器暂时不可用（错误码：$code），请稍后重试"
+            else -> "DeepSeek API错误（$code）：${detail ?: body}"
+        }
+    }
+}
+
+/**
+ * 智谱AI：OpenAI 兼容协议加上特有参数
+ */
+class ZhipuAdapter : OpenAiCompatibleAdapter(trustAll = true) {
+    override fun extraParameters(body: JsonObject) {
+        body.addProperty("top_p", 0.7)
+        body.addProperty("incremental", true)
+    }
+}
+
+/**
+ * 豆包：模型ID（Endpoint ID）配置错误时给出排查提示
+ */
+class DoubaoAdapter : OpenAiCompatibleAdapter(trustAll = true) {
+
+    override fun describeHttpError(config: AIServiceConfig, code: Int, body: String): String {
+        val detail = errorMessageOf(body)
+        return when {
+            detail != null && isModelError(detail) -> modelErrorHint(detail, config.model)
+            detail != null -> detail
+            code == 401 -> "API密钥无效，请检查配置"
+            code == 403 -> "API密钥无权限访问此资源"
+            code == 404 -> "API地址不存在，请检查URL配置"
+            code == 429 -> "请求过于频繁，请稍后重试"
+            code == 500 -> "服务器内部错误，请稍后重试"
+            code in 502..504 -> "服务暂时不可用，请稍后重试"
+            isModelError(body) -> modelErrorHint("", config.model)
+            else -> "豆包Pro API错误 (HTTP $code): $body"
+        }
+    }
+
+    private fun isModelError(text: String): Boolean {
+        return text.contains("model", ignoreCase = true) ||
+            text.contains("endpoint", ignoreCase = true) ||
+            text.contains("does not exist", ignoreCase = true) ||
+            text.contains("do not have access", ignoreCase = true)
+    }
+
+    private fun modelErrorHint(detail: String, model: String): String {
+        return "模型ID（Endpoint ID）配置错误：$detail\n\n请检查：\n1. 模型ID格式是否正确（应为 ep-xxx 格式）\n" +
+            "2. 是否在豆包控制台创建了接入点\n3. 当前使用的模型ID: $model\n\n请在设置中重新配置正确的Endpoint ID"
+    }
+}
+
+/**
+ * Anthropic Messages 流式协议：正文在 content_block_delta 事件的 delta.text 中
+ */
+class ClaudeAdapter : AIProviderAdapter {
+
+    override fun buildRequest(config: AIServiceConfig, message: String, history: List<Map<String, String>>): Request {
+        val body = JsonObject().apply {
+            addProperty("model", config.model)
+            addProperty("max_tokens", config.maxTokens)
+            add("messages", chatMessages(message, history))
+            addProperty("stream", true)
+        }
+        return jsonRequest(
+            config.apiUrl, body,
+            "x-api-key" to config.apiKey,
+            "anthropic-version" to "2023-06-01"
+        )
+    }
+
+    override fun parseEvent(event: String?, data: String, out: StringBuilder): Boolean {
+        if (event == "message_stop") return false
+        val json = parseObject(data) ?: return true
+        when (json.string("type") ?: event) {
+            "error" -> throw AIStreamException(json.obj("error")?.string("message") ?: "未知错误")
+            "content_block_delta" -> json.obj("delta")?.string("text")?.let { out.append(it) }
+            "message_stop" -> return false
+        }
+        return true
+    }
+
+    override fun parseBody(body: String): String {
+        val json = parseObject(body) ?: throw AIStreamException("无法识别的响应格式")
+        json.obj("error")?.let { throw AIStreamException(it.string("message") ?: "未知错误") }
+        return json.firstOf("content")?.string("text") ?: throw AIStreamException("响应中没有内容")
+    }
+}
+
+/**
+ * Gemini generateContent（非流式）
+ */
+class GeminiAdapter : AIProviderAdapter {
+
+    override val streaming: Boolean get() = false
+
+    override fun buildRequest(config: AIServiceConfig, message: String, history: List<Map<String, String>>): Request {
+        val contents = JsonArray()
+        (history.map { it["content"] } + message).forEach { text ->
+            contents.add(JsonObject().apply {
+                add("parts", JsonArray().apply { add(JsonObject().apply { addProperty("text", text) }) })
+            })
+        }
+        val body = JsonObject().apply {
+            add("contents", contents)
+            add("generationConfig", JsonObject().apply {
+                addProperty("maxOutputTokens", config.maxTokens)
+                addProperty("temperature", config.temperature)
+            })
+        }
+        return jsonRequest(config.apiUrl, body)
+    }
+
+    override fun parseEvent(event: String?, data: String, out: StringBuilder): Boolean {
+        out.append(parseBody(data))
+        return true
+    }
+
+    override fun parseBody(body: String): String {
+        val json = parseObject(body) ?: throw AIStreamException("无法识别的响应格式")
+        json.obj("error")?.let { throw AIStreamException(it.string("message") ?: "未知错误") }
+        return json.firstOf("candidates")?.obj("content")?.firstOf("parts")?.string("text")
+            ?: throw AIStreamException("响应中没有内容")
+    }
+}
+
+/**
+ * 文心一言：增量文本在 result 字段，is_end 表示结束
+ */
+class WenxinAdapter : AIProviderAdapter {
+
+    override fun buildRequest(config: AIServiceConfig, message: String, history: List<Map<String, String>>): Request {
+        val body = JsonObject().apply {
+            add("messages", chatMessages(message, history))
+            addProperty("stream", true)
+        }
+        return jsonRequest(config.apiUrl, body)
+    }
+
+    override fun parseEvent(event: String?, data: String, out: StringBuilder): Boolean {
+        if (data.trim() == "[DONE]") return false
+        val json = parseObject(data) ?: return true
+        json.string("error_msg")?.let { throw AIStreamException(it) }
+        json.string("result")?.let { out.append(it) }
+        return json.get("is_end")?.takeIf { it.isJsonPrimitive }?.asBoolean != true
+    }
+
+    override fun parseBody(body: String): String {
+        val json = parseObject(body) ?: throw AIStreamException("无法识别的响应格式")
+        json.string("error_msg")?.let { throw AIStreamException(it) }
+        return json.string("result") ?: throw AIStreamException("响应中没有内容")
+    }
+}
+
+/**
+ * 通义千问 DashScope 文本生成（非流式）
+ */
+class QianwenAdapter : AIProviderAdapter {
+
+    override val streaming: Boolean get() = false
+
+    override fun buildRequest(config: AIServiceConfig, message: String, history: List<Map<String, String>>): Request {
+        val body = JsonObject().apply {
+            addProperty("model", config.model)
+            add("input", JsonObject().apply { add("messages", chatMessages(message, history)) })
+        }
+        return jsonRequest(config.apiUrl, body, "Authorization" to "Bearer ${config.apiKey}")
+    }
+
+    override fun parseEvent(event: String?, data: String, out: StringBuilder): Boolean {
+        out.append(parseBody(data))
+        return true
+    }
+
+    override fun parseBody(body: String): String {
+        val json = parseObject(body) ?: throw AIStreamException("无法识别的响应格式")
+        return json.obj("output")?.string("text")
+            ?: throw AIStreamException(json.string("message") ?: "响应中没有内容")
+    }
+}
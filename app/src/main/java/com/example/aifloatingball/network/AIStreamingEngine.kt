@@ -0,0 +1,316 @@
+package com.example.aifloatingball.network
+
+import com.example.aifloatingball.manager.AIApiManager.AIServiceConfig
+import com.example.aifloatingball.manager.AIApiManager.StreamingCallback
+import com.example.aifloatingball.manager.AIServiceType
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.awaitCancellation
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+import okhttp3.Call
+import okhttp3.ConnectionPool
+import okhttp3.Dispatcher
+import okhttp3.OkHttpClient
+import okhttp3.Protocol
+import java.io.InputStream
+import java.security.SecureRandom
+import java.security.cert.X509Certificate
+import java.util.Collections
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import javax.net.ssl.SSLContext
+import javax.net.ssl.X509TrustManager
+
+/**
+ * AI服务的流式请求引擎
+ *
+ * 所有服务共用一个 OkHttpClient：同一主机的请求复用 HTTP/2 连接和 TLS 会话，
+ * 多个AI同时回答时不必各自握手。响应体按块读取后交给 [SseParser]，
+ * 同一次读取中解析出的增量文本合并成一次 [StreamingCallback.onChunkReceived]。
+ *
+ * 每次请求都会记录首字节和首个文本的耗时（TTFT），见 [StreamMetrics]。
+ * 不依赖 Android 框架，可以在 JVM 单元测试中配合 MockWebServer 使用。
+ */
+class AIStreamingEngine(private val client: OkHttpClient = sharedClient) {
+
+    companion object {
+        private const val READ_BUFFER_SIZE = 8 * 1024
+
+        /**
+         * 进程内共用的客户端
+         */
+        val sharedClient: OkHttpClient by lazy {
+            OkHttpClient.Builder()
+                .protocols(listOf(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                .connectionPool(ConnectionPool(8, 5, TimeUnit.MINUTES))
+                .dispatcher(Dispatcher().apply { maxRequestsPerHost = 16 })
+                .connectTimeout(30, TimeUnit.SECONDS)
+                .readTimeout(60, TimeUnit.SECONDS)
+                .retryOnConnectionFailure(true)
+                .build()
+        }
+
+        private val trustAllManager = object : X509TrustManager {
+            override fun checkClientTrusted(chain: Array<out X509Certificate>?, authType: String?) {}
+            override fun checkServerTrusted(chain: Array<out X509Certificate>?, authType: String?) {}
+            override fun getAcceptedIssuers(): Array<X509Certificate> = arrayOf()
+        }
+
+        // 所有跳过证书校验的请求共用一个 SSLContext，才能复用 TLS 会话
+        private val trustAllSslContext: SSLContext by lazy {
+            SSLContext.getInstance("TLS").apply { init(null, arrayOf(trustAllManager), SecureRandom()) }
+        }
+
+        private val latencyStats = ConcurrentHashMap<AIServiceType, LatencyStats>()
+
+        /**
+         * 某个服务的 TTFT 统计，没有成功请求过时返回 null
+         */
+        fun latencyStats(type: AIServiceType): LatencyStats? = latencyStats[type]
+
+        fun allLatencyStats(): Map<AIServiceType, LatencyStats> = HashMap(latencyStats)
+    }
+
+    /**
+     * 单次请求的耗时
+     *
+     * @param headersMs 从发起请求到收到响应头
+     * @param firstTokenMs 从发起请求到第一个非空文本块，没有收到文本时为 -1
+     * @param totalMs 整个请求耗时
+     * @param events 解析出的 SSE 事件数，非流式响应为 0
+     * @param bytes 读取的响应体字节数
+     * @param protocol 实际使用的协议，例如 h2
+     */
+    data class StreamMetrics(
+        val service: AIServiceType,
+        val headersMs: Long,
+        val firstTokenMs: Long,
+        val totalMs: Long,
+        val events: Int,
+        val bytes: Long,
+        val protocol: String
+    )
+
+    /**
+     * 某个服务的累计 TTFT
+     */
+    class LatencyStats {
+        var count = 0
+            private set
+        var lastMs = -1L
+            private set
+        var minMs = Long.MAX_VALUE
+            private set
+        var maxMs = 0L
+            private set
+        private var totalMs = 0L
+
+        val averageMs: Long
+            @Synchronized get() = if (count == 0) -1 else totalMs / count
+
+        @Synchronized
+        internal fun record(firstTokenMs: Long) {
+            count++
+            lastMs = firstTokenMs
+            totalMs += firstTokenMs
+            if (firstTokenMs < minMs) minMs = firstTokenMs
+            if (firstTokenMs > maxMs) maxMs = firstTokenMs
+        }
+    }
+
+    // 跳过证书校验的客户端，与 client 共用连接池和调度器
+    private val trustAllClient: OkHttpClient by lazy {
+        client.newBuilder()
+            .sslSocketFactory(trustAllSslContext.socketFactory, trustAllManager)
+            .hostnameVerifier { _, _ -> true }
+            .build()
+    }
+
+    private val activeCalls = Collections.synchronizedSet(HashSet<Call>())
+
+    /**
+     * 在当前线程同步执行一次请求，结果通过 [callback] 返回
+     *
+     * @return 请求的耗时统计；请求失败（已回调 onError）或被取消时为 null
+     */
+    fun execute(
+        adapter: AIProviderAdapter,
+        config: AIServiceConfig,
+        message: String,
+        history: List<Map<String, String>>,
+        callback: StreamingCallback
+    ): StreamMetrics? = executeCall(newCall(adapter, config, message, history), adapter, config, callback)
+
+    /**
+     * 与 [execute] 相同，但在 IO 线程执行，调用方协程被取消时立即中止请求
+     */
+    suspend fun stream(
+        adapter: AIProviderAdapter,
+        config: AIServiceConfig,
+        message: String,
+        history: List<Map<String, String>>,
+        callback: StreamingCallback
+    ): StreamMetrics? = coroutineScope {
+        val call = newCall(adapter, config, message, history)
+        // 阻塞中的读取不响应协程取消，需要直接取消请求
+        val canceller = launch {
+            try {
+                awaitCancellation()
+            } finally {
+                call.cancel()
+            }
+        }
+        try {
+            withContext(Dispatchers.IO) { executeCall(call, adapter, config, callback) }
+        } finally {
+            canceller.cancel()
+        }
+    }
+
+    private fun newCall(
+        adapter: AIProviderAdapter,
+        config: AIServiceConfig,
+        message: String,
+        history: List<Map<String, String>>
+    ): Call {
+        val httpClient = if (adapter.trustAllCertificates) trustAllClient else client
+        return httpClient.newCall(adapter.buildRequest(config, message, history))
+    }
+
+    private fun executeCall(
+        call: Call,
+        adapter: AIProviderAdapter,
+        config: AIServiceConfig,
+        callback: StreamingCallback
+    ): StreamMetrics? {
+        activeCalls.add(call)
+        val start = System.nanoTime()
+        try {
+            call.execute().use { response ->
+                val body = response.body
+                if (!response.isSuccessful || body == null) {
+                    callback.onError(adapter.describeHttpError(config, response.code, body?.string() ?: ""))
+                    return null
+                }
+
+                val headersMs = elapsedMs(start)
+                val isEventStream = body.contentType()?.subtype == "event-stream"
+                val result = try {
+                    if (adapter.streaming && isEventStream) {
+                        readStream(adapter, body.byteStream(), callback, start)
+                    } else {
+                        val text = body.string()
+                        if (adapter.streaming && text.trimStart().startsWith("data:")) {
+                            // 个别服务返回 SSE 时不带 text/event-stream
+                            readStream(adapter, text.byteInputStream(), callback, start)
+                        } else {
+                            readBody(adapter, config, text, callback, start)
+                        }
+                    }
+                } catch (e: AIStreamException) {
+                    callback.onError(e.message ?: "${config.name}响应错误")
+                    return null
+                }
+                return finish(config, headersMs, result, response.protocol, start)
+            }
+        } catch (e: Exception) {
+            if (call.isCanceled()) return null
+            callback.onError(describeException(config, e))
+            return null
+        } finally {
+            activeCalls.remove(call)
+        }
+    }
+
+    /**
+     * 取消所有进行中的请求
+     */
+    fun cancelAll() {
+        synchronized(activeCalls) {
+            activeCalls.forEach { it.cancel() }
+            activeCalls.clear()
+        }
+    }
+
+    private class StreamResult(val firstTokenMs: Long, val events: Int, val bytes: Long)
+
+    private fun readStream(
+        adapter: AIProviderAdapter,
+        input: InputStream,
+        callback: StreamingCallback,
+        start: Long
+    ): StreamResult {
+        val fullResponse = StringBuilder()
+        val pending = StringBuilder()
+        var finished = false
+        var events = 0
+        var bytes = 0L
+        var firstTokenMs = -1L
+        val parser = SseParser { event, data ->
+            events++
+            if (!finished && !adapter.parseEvent(event, data, pending)) finished = true
+        }
+
+        val buffer = ByteArray(READ_BUFFER_SIZE)
+        while (!finished) {
+            val read = input.read(buffer)
+            if (read < 0) {
+                parser.finish()
+            } else {
+                bytes += read
+                parser.feed(buffer, 0, read)
+            }
+            if (pending.isNotEmpty()) {
+                if (firstTokenMs < 0) firstTokenMs = elapsedMs(start)
+                val chunk = pending.toString()
+                pending.setLength(0)
+                fullResponse.append(chunk)
+                callback.onChunkReceived(chunk)
+            }
+            if (read < 0) break
+        }
+        callback.onComplete(fullResponse.toString())
+        return StreamResult(firstTokenMs, events, bytes)
+    }
+
+    private fun readBody(
+        adapter: AIProviderAdapter,
+        config: AIServiceConfig,
+        text: String,
+        callback: StreamingCallback,
+        start: Long
+    ): StreamResult {
+        val content = adapter.parseBody(text)
+        if (content.isEmpty()) throw AIStreamException("${config.name}响应为空，请检查API配置和网络连接")
+        val firstTokenMs = elapsedMs(start)
+        callback.onChunkReceived(content)
+        callback.onComplete(content)
+        return StreamResult(firstTokenMs, 0, text.length.toLong())
+    }
+
+    private fun finish(
+        config: AIServiceConfig,
+        headersMs: Long,
+        result: StreamResult,
+        protocol: Protocol,
+        start: Long
+    ): StreamMetrics {
+        if (result.firstTokenMs >= 0) {
+            latencyStats.getOrPut(config.type) { LatencyStats() }.record(result.firstTokenMs)
+        }
+        return StreamMetrics(config.type, headersMs, result.firstTokenMs, elapsedMs(start), result.events, result.bytes, protocol.toString())
+    }
+
+    private fun describeException(config: AIServiceConfig, e: Exception): String {
+        return when (e) {
+            is java.net.UnknownHostException -> "网络连接失败，请检查网络连接或DNS设置"
+            is java.net.SocketTimeoutException -> "${config.name}请求超时，请检查网络连接"
+            is java.net.ConnectException -> "无法连接到${config.name}服务器，请检查网络连接"
+            is javax.net.ssl.SSLException -> "SSL连接失败，请检查网络安全设置"
+            else -> "${config.name}请求失败：${e.message ?: "未知错误"}"
+        }
+    }
+
+    private fun elapsedMs(start: Long): Long = (System.nanoTime() - start) / 1_000_000
+}
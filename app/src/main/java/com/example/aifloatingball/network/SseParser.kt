@@ -0,0 +1,150 @@
+package com.example.aifloatingball.network
+
+import java.nio.charset.StandardCharsets
+
+/**
+ * 增量式 Server-Sent Events 解析器
+ *
+ * 直接处理网络读到的字节块，不按行创建字符串：字段内容先累积在可复用的字节缓冲区里，
+ * 遇到空行（事件结束）时才解码一次。多行 `data:` 按规范用换行拼接，
+ * 多字节 UTF-8 字符跨两次读取也不会被截断。
+ *
+ * 支持 `\n`、`\r`、`\r\n` 三种换行，`:` 开头的注释行会被忽略。
+ * 只依赖 JDK，可直接在 JVM 单元测试中使用。
+ */
+class SseParser(private val listener: Listener) {
+
+    /**
+     * 解析出的事件回调
+     */
+    fun interface Listener {
+        /**
+         * @param event `event:` 字段，未指定时为 null
+         * @param data 所有 `data:` 行拼接后的内容
+         */
+        fun onEvent(event: String?, data: String)
+    }
+
+    private var line = ByteArray(1024)
+    private var lineLength = 0
+    private var data = ByteArray(1024)
+    private var dataLength = 0
+    private var hasData = false
+    private var eventType: String? = null
+    // 上一个字节是 \r，紧跟的 \n 属于同一个换行
+    private var skipLineFeed = false
+
+    /**
+     * 最近一次 `id:` 字段
+     */
+    var lastEventId: String? = null
+        private set
+
+    /**
+     * 服务端通过 `retry:` 建议的重连间隔（毫秒），未指定时为 -1
+     */
+    var retryMillis: Long = -1
+        private set
+
+    /**
+     * 送入一段字节，解析出的完整事件会立即回调
+     */
+    fun feed(bytes: ByteArray, offset: Int = 0, length: Int = bytes.size) {
+        val end = offset + length
+        var i = offset
+        while (i < end) {
+            val b = bytes[i++]
+            if (skipLineFeed) {
+                skipLineFeed = false
+                if (b == LF) continue
+            }
+            when (b) {
+                CR -> {
+                    skipLineFeed = true
+                    processLine()
+                }
+                LF -> processLine()
+                else -> {
+                    if (lineLength == line.size) line = line.copyOf(line.size * 2)
+                    line[lineLength++] = b
+                }
+            }
+        }
+    }
+
+    /**
+     * 流结束时调用，处理最后一个没有以空行结尾的事件
+     */
+    fun finish() {
+        if (lineLength > 0) processLine()
+        dispatch()
+    }
+
+    private fun processLine() {
+        if (lineLength == 0) {
+            dispatch()
+            return
+        }
+        if (line[0] == COLON) {
+            lineLength = 0
+            return
+        }
+
+        var colon = 0
+        while (colon < lineLength && line[colon] != COLON) colon++
+        var valueStart = if (colon < lineLength) colon + 1 else lineLength
+        if (valueStart < lineLength && line[valueStart] == SPACE) valueStart++
+
+        when {
+            fieldIs(FIELD_DATA, colon) -> {
+                val valueLength = lineLength - valueStart
+                ensureDataCapacity(dataLength + valueLength + 1)
+                if (hasData) data[dataLength++] = LF
+                System.arraycopy(line, valueStart, data, dataLength, valueLength)
+                dataLength += valueLength
+                hasData = true
+            }
+            fieldIs(FIELD_EVENT, colon) -> eventType = decode(line, valueStart, lineLength - valueStart)
+            fieldIs(FIELD_ID, colon) -> lastEventId = decode(line, valueStart, lineLength - valueStart)
+            fieldIs(FIELD_RETRY, colon) -> decode(line, valueStart, lineLength - valueStart).toLongOrNull()?.let { retryMillis = it }
+        }
+        lineLength = 0
+    }
+
+    private fun dispatch() {
+        if (hasData) {
+            listener.onEvent(eventType, decode(data, 0, dataLength))
+        }
+        dataLength = 0
+        hasData = false
+        eventType = null
+    }
+
+    private fun fieldIs(name: ByteArray, length: Int): Boolean {
+        if (length != name.size) return false
+        for (i in name.indices) {
+            if (line[i] != name[i]) return false
+        }
+        return true
+    }
+
+    private fun ensureDataCapacity(capacity: Int) {
+        if (capacity > data.size) data = data.copyOf(maxOf(capacity, data.size * 2))
+    }
+
+    private fun decode(bytes: ByteArray, offset: Int, length: Int): String {
+        return String(bytes, offset, length, StandardCharsets.UTF_8)
+    }
+
+    private companion object {
+        const val CR = '\r'.code.toByte()
+        const val LF = '\n'.code.toByte()
+        const val COLON = ':'.code.toByte()
+        const val SPACE = ' '.code.toByte()
+
+        val FIELD_DATA = "data".toByteArray()
+        val FIELD_EVENT = "event".toByteArray()
+        val FIELD_ID = "id".toByteArray()
+        val FIELD_RETRY = "retry".toByteArray()
+    }
+}
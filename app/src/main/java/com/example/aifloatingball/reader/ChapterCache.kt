@@ -0,0 +1,110 @@
+package com.example.aifloatingball.reader
+
+import com.google.gson.Gson
+import com.google.gson.reflect.TypeToken
+import java.io.File
+import java.security.MessageDigest
+
+/**
+ * 小说章节的磁盘缓存
+ *
+ * 每章按地址的 MD5 存为一个 JSON 文件，每本书的目录按目录页地址单独存放。
+ * 读取时更新文件的修改时间，总大小超过上限时按修改时间淘汰最久未读的文件，
+ * 已缓存的章节在离线时也能直接打开。只依赖 JDK 和 Gson。
+ */
+class ChapterCache(
+    private val dir: File,
+    private val maxBytes: Long = DEFAULT_MAX_BYTES
+) {
+
+    companion object {
+        const val DEFAULT_MAX_BYTES = 50L * 1024 * 1024
+        private const val CHAPTER_PREFIX = "chapter_"
+        private const val CATALOG_PREFIX = "catalog_"
+        private const val SUFFIX = ".json"
+        // 淘汰时降到上限的 90%，避免每次写入都触发淘汰
+        private const val TRIM_RATIO = 0.9
+    }
+
+    private val gson = Gson()
+    private var totalBytes = -1L
+
+    @Synchronized
+    fun get(url: String): NovelChapter? {
+        return read(file(CHAPTER_PREFIX, url), NovelChapter::class.java)
+    }
+
+    @Synchronized
+    fun put(chapter: NovelChapter) {
+        write(file(CHAPTER_PREFIX, chapter.url), gson.toJson(chapter))
+    }
+
+    @Synchronized
+    fun getCatalog(catalogUrl: String): List<NovelReaderManager.CatalogItem>? {
+        val type = object : TypeToken<List<NovelReaderManager.CatalogItem>>() {}.type
+        return read(file(CATALOG_PREFIX, catalogUrl), type)
+    }
+
+    @Synchronized
+    fun putCatalog(catalogUrl: String, catalog: List<NovelReaderManager.CatalogItem>) {
+        write(file(CATALOG_PREFIX, catalogUrl), gson.toJson(catalog))
+    }
+
+    /**
+     * 当前占用的字节数
+     */
+    @Synchronized
+    fun size(): Long = ensureSize()
+
+    private fun <T> read(file: File, type: java.lang.reflect.Type): T? {
+        if (!file.exists()) return null
+        return try {
+            val value: T? = gson.fromJson(file.readText(), type)
+            file.setLastModified(System.currentTimeMillis())
+            value
+        } catch (e: Exception) {
+            // 损坏的缓存直接删除
+            totalBytes = -1
+            file.delete()
+            null
+        }
+    }
+
+    private fun write(file: File, json: String) {
+        ensureSize()
+        dir.mkdirs()
+        val oldSize = if (file.exists()) file.length() else 0L
+        val temp = File(dir, file.name + ".tmp")
+        temp.writeText(json)
+        if (!temp.renameTo(file)) {
+            temp.delete()
+            return
+        }
+        totalBytes += file.length() - oldSize
+        if (totalBytes > maxBytes) trimTo((maxBytes * TRIM_RATIO).toLong(), keep = file)
+    }
+
+    private fun trimTo(targetBytes: Long, keep: File) {
+        val files = dir.listFiles { f -> f.name.endsWith(SUFFIX) }?.sortedBy { it.lastModified() } ?: return
+        for (f in files) {
+            if (totalBytes <= targetBytes) break
+            if (f == keep) continue
+            val length = f.length()
+            if (f.delete()) totalBytes -= length
+        }
+    }
+
+    private fun ensureSize(): Long {
+        if (totalBytes < 0) {
+            totalBytes = dir.listFiles { f -> f.name.endsWith(SUFFIX) }?.sumOf { it.length() } ?: 0L
+        }
+        return totalBytes
+    }
+
+    private fun file(prefix: String, url: String): File {
+        // 页内锚点不影响内容
+        val key = url.substringBefore('#')
+        val digest = MessageDigest.getInstance("MD5").digest(key.toByteArray())
+        return File(dir, prefix + digest.joinToString("") { "%02x".format(it) } + SUFFIX)
+    }
+}
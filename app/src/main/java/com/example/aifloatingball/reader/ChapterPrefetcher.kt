@@ -0,0 +1,217 @@
+package com.example.aifloatingball.reader
+
+import android.util.Log
+import com.example.aifloatingball.network.AIStreamingEngine
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.async
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.suspendCancellableCoroutine
+import kotlinx.coroutines.withContext
+import okhttp3.Call
+import okhttp3.Callback
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import okhttp3.Response
+import java.io.IOException
+import java.util.concurrent.TimeUnit
+import kotlin.coroutines.resume
+import kotlin.coroutines.resumeWithException
+
+/**
+ * 章节预取器
+ *
+ * 阅读到某一章时，沿"下一章"链接在后台提前取回后面 [aheadCount] 章：
+ * 先用普通 HTTP 请求加 [ChapterTextExtractor] 提取正文，提取不到（靠脚本渲染的页面）时才交给 [fallback]，
+ * 通常是一个隐藏的 WebView。取回的章节写入 [ChapterCache]，翻页时直接从缓存显示，离线时也能阅读已缓存的章节。
+ *
+ * 同一地址同时只会有一个请求，翻页时可以等待正在进行的预取而不是重新加载。
+ *
+ * @param requestHeaders 按地址返回请求头，例如与 WebView 一致的 User-Agent 和 Cookie
+ * @param fallback 在主线程之外调用的备用提取方式，返回 null 表示失败
+ */
+class ChapterPrefetcher(
+    private val cache: ChapterCache,
+    private val client: OkHttpClient = defaultClient,
+    private val requestHeaders: (url: String) -> Map<String, String> = { emptyMap() },
+    private val fallback: suspend (url: String) -> NovelChapter? = { null },
+    private val aheadCount: Int = DEFAULT_AHEAD_COUNT
+) {
+
+    companion object {
+        private const val TAG = "ChapterPrefetcher"
+        const val DEFAULT_AHEAD_COUNT = 3
+        // 超过这个大小的页面不可能是单章正文
+        private const val MAX_PAGE_BYTES = 4L * 1024 * 1024
+
+        private val defaultClient: OkHttpClient by lazy {
+            AIStreamingEngine.sharedClient.newBuilder()
+                .connectTimeout(10, TimeUnit.SECONDS)
+                .readTimeout(15, TimeUnit.SECONDS)
+                .build()
+        }
+    }
+
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+    private val inFlight = HashMap<String, Deferred<NovelChapter?>>()
+    private var prefetchJob: Job? = null
+
+    /**
+     * 已缓存或正在预取的章节；都没有时返回 null，不会发起新的请求
+     */
+    suspend fun peek(url: String): NovelChapter? {
+        if (url.isEmpty()) return null
+        val pending = synchronized(inFlight) { inFlight[url] }
+        if (pending != null) return pending.await()
+        return withContext(Dispatchers.IO) { cache.get(url) }
+    }
+
+    /**
+     * 取一章：缓存、正在进行的请求、HTTP 提取、备用提取依次尝试，成功后写入缓存
+     */
+    suspend fun load(url: String): NovelChapter? {
+        if (url.isEmpty()) return null
+        return loadAsync(url).await()
+    }
+
+    /**
+     * 章节已经由调用方解析出来（例如当前 WebView 显示的页面），直接写入缓存
+     */
+    fun store(chapter: NovelChapter) {
+        scope.launch {
+            try {
+                cache.put(chapter)
+            } catch (e: IOException) {
+                Log.w(TAG, "写入章节缓存失败: ${chapter.url}", e)
+            }
+        }
+    }
+
+    /**
+     * 从某一章开始沿"下一章"链接向后预取，取消上一次尚未完成的预取
+     */
+    fun prefetchFrom(url: String) {
+        prefetchJob?.cancel()
+        if (url.isEmpty() || aheadCount <= 0) return
+        prefetchJob = scope.launch {
+            var next = url
+            for (i in 0 until aheadCount) {
+                val chapter = load(next) ?: break
+                Log.d(TAG, "已预取: ${chapter.title}")
+                next = chapter.nextUrl
+                if (next.isEmpty()) break
+            }
+        }
+    }
+
+    /**
+     * 目录：先读缓存，再用 HTTP 提取；都失败时返回 null
+     */
+    suspend fun loadCatalog(catalogUrl: String): List<NovelReaderManager.CatalogItem>? = withContext(Dispatchers.IO) {
+        cache.getCatalog(catalogUrl)?.takeIf { it.isNotEmpty() }?.let { return@withContext it }
+        try {
+            val html = download(catalogUrl) ?: return@withContext null
+            ChapterTextExtractor.extractCatalog(html, catalogUrl)
+                .map { NovelReaderManager.CatalogItem(it.first, it.second) }
+                .takeIf { it.isNotEmpty() }
+                ?.also { cache.putCatalog(catalogUrl, it) }
+        } catch (e: IOException) {
+            Log.w(TAG, "加载目录失败: $catalogUrl", e)
+            null
+        }
+    }
+
+    /**
+     * 缓存由调用方解析出的目录
+     */
+    fun storeCatalog(catalogUrl: String, catalog: List<NovelReaderManager.CatalogItem>) {
+        if (catalogUrl.isEmpty() || catalog.isEmpty()) return
+        scope.launch {
+            try {
+                cache.putCatalog(catalogUrl, catalog)
+            } catch (e: IOException) {
+                Log.w(TAG, "写入目录缓存失败: $catalogUrl", e)
+            }
+        }
+    }
+
+    /**
+     * 取消预取和所有进行中的请求，之后不能再使用
+     */
+    fun cancel() {
+        scope.cancel()
+        synchronized(inFlight) { inFlight.clear() }
+    }
+
+    private fun loadAsync(url: String): Deferred<NovelChapter?> = synchronized(inFlight) {
+        inFlight[url]?.let { return it }
+        // 先登记再启动，保证完成时的移除发生在登记之后
+        val deferred = scope.async(start = CoroutineStart.LAZY) {
+            try {
+                cache.get(url) ?: fetch(url)?.also { chapter ->
+                    try {
+                        cache.put(chapter)
+                    } catch (e: IOException) {
+                        Log.w(TAG, "写入章节缓存失败: $url", e)
+                    }
+                }
+            } finally {
+                synchronized(inFlight) { inFlight.remove(url) }
+            }
+        }
+        inFlight[url] = deferred
+        deferred.start()
+        deferred
+    }
+
+    private suspend fun fetch(url: String): NovelChapter? {
+        val html = try {
+            download(url)
+        } catch (e: IOException) {
+            // 网络不通时备用方式同样会失败，不再尝试
+            Log.w(TAG, "下载章节失败: $url", e)
+            return null
+        } ?: return null
+
+        ChapterTextExtractor.extract(html, url)?.let { return it }
+        Log.d(TAG, "页面中没有可直接提取的正文，改用备用方式: $url")
+        return fallback(url)
+    }
+
+    private suspend fun download(url: String): String? {
+        val builder = try {
+            Request.Builder().url(url)
+        } catch (e: IllegalArgumentException) {
+            Log.w(TAG, "无效的地址: $url")
+            return null
+        }
+        requestHeaders(url).forEach { (name, value) -> builder.header(name, value) }
+        val call = client.newCall(builder.build())
+        val response = suspendCancellableCoroutine<Response> { continuation ->
+            continuation.invokeOnCancellation { call.cancel() }
+            call.enqueue(object : Callback {
+                override fun onFailure(call: Call, e: IOException) {
+                    continuation.resumeWithException(e)
+                }
+
+                override fun onResponse(call: Call, response: Response) {
+                    continuation.resume(response) { response.close() }
+                }
+            })
+        }
+        return response.use {
+            val body = it.body
+            if (!it.isSuccessful || body == null) {
+                Log.w(TAG, "请求失败 ${it.code}: $url")
+                return null
+            }
+            if (body.contentLength() > MAX_PAGE_BYTES) return null
+            ChapterTextExtractor.decode(body.bytes(), it.header("Content-Type"))
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package com.example.aifloatingball.reader
+
+import java.net.URI
+import java.nio.charset.Charset
+
+/**
+ * 提取出的一章
+ *
+ * @param url 章节页地址
+ * @param nextUrl 下一章地址，没有时为空字符串
+ */
+data class NovelChapter(
+    val url: String,
+    val title: String,
+    val content: String,
+    val nextUrl: String = "",
+    val prevUrl: String = "",
+    val catalogUrl: String = ""
+)
+
+/**
+ * 不依赖 DOM 的章节提取器
+ *
+ * 直接在 HTML 源码上按常见的正文容器 id/class 截取内容，去掉标签和实体得到纯文本，
+ * 链接按文字匹配"下一章""上一章""目录"，规则与阅读模式注入的 JS 一致。
+ * 正文太短（例如靠脚本渲染的页面）时返回 null，由调用方改用 WebView 解析。
+ *
+ * 只依赖 JDK，可以在 JVM 单元测试中使用。
+ */
+object ChapterTextExtractor {
+
+    const val MIN_CONTENT_LENGTH = 100
+    private const val MIN_CONTAINER_TEXT = 200
+    private const val MIN_PARAGRAPH_TEXT = 500
+    private const val MIN_CATALOG_SIZE = 10
+
+    // 与 JS 中的 contentSelectors 对应，按优先级排列
+    private val CONTENT_IDS = listOf(
+        "content", "chaptercontent", "novelcontent", "text", "bookcontent", "booktxt", "txtcontent"
+    )
+    private val CONTENT_CLASSES = listOf(
+        "content", "chapter-content", "text-content", "novel-content", "read-content",
+        "text", "article-content", "book-content"
+    )
+    private val CATALOG_KEYWORDS = listOf("全部章节", "完整目录", "章节列表", "目录", "Chapter List", "Table of Contents", "Index")
+    private val NAVIGATION_KEYWORDS = listOf(
+        "首页", "主页", "分类", "搜索", "登录", "注册", "关于", "联系", "帮助", "反馈", "设置", "个人中心",
+        "我的", "书架", "推荐", "排行榜", "热门", "最新", "完结", "连载", "免费", "vip"
+    )
+
+    private val OPTIONS = setOf(RegexOption.IGNORE_CASE, RegexOption.DOT_MATCHES_ALL)
+    private val SCRIPT_PATTERN = Regex("<(script|style|noscript)\\b.*?</\\1\\s*>", OPTIONS)
+    private val COMMENT_PATTERN = Regex("<!--.*?-->", OPTIONS)
+    private val CONTAINER_PATTERN = Regex("<(div|article|section|dd|td)\\b([^>]*)>", RegexOption.IGNORE_CASE)
+    private val ATTRIBUTE_PATTERN = Regex("\\b(id|class)\\s*=\\s*[\"']([^\"']*)[\"']", RegexOption.IGNORE_CASE)
+    private val PARAGRAPH_PATTERN = Regex("<p\\b[^>]*>(.*?)</p\\s*>", OPTIONS)
+    private val LINK_PATTERN = Regex("<a\\b[^>]*?href\\s*=\\s*[\"']([^\"']+)[\"'][^>]*>(.*?)</a\\s*>", OPTIONS)
+    private val H1_PATTERN = Regex("<h1\\b[^>]*>(.*?)</h1\\s*>", OPTIONS)
+    private val TITLE_PATTERN = Regex("<title\\b[^>]*>(.*?)</title\\s*>", OPTIONS)
+    private val LINE_BREAK_PATTERN = Regex("<br\\s*/?>|</(p|div|h[1-6]|li|dd)\\s*>", RegexOption.IGNORE_CASE)
+    private val TAG_PATTERN = Regex("<[^>]+>")
+    private val WHITESPACE = Regex("\\s+")
+    private val ENTITY_PATTERN = Regex("&(#x[0-9a-f]+|#\\d+|[a-z]+);", RegexOption.IGNORE_CASE)
+    private val META_CHARSET_PATTERN = Regex("<meta[^>]+charset\\s*=\\s*[\"']?([\\w-]+)", RegexOption.IGNORE_CASE)
+    private val CHAPTER_TITLE_PATTERN = Regex("第[\\d一二三四五六七八九十百千万]+[章节回]|^[\\d.]+[、.\\s]")
+    private val CHAPTER_PATH_PATTERN = Regex("chap|\\d+\\.html", RegexOption.IGNORE_CASE)
+    private val NOISE_LINE_PATTERN = Regex("^(上一章|下一章|上一页|下一页|目录|返回|返回目录|加入书签|投推荐票)+$")
+
+    /**
+     * 按 Content-Type 或页面中的 meta 标签解码，国内小说站点常用 GBK
+     */
+    fun decode(bytes: ByteArray, contentType: String?): String {
+        val declared = contentType?.substringAfter("charset=", "")?.trim()?.trim('"')?.takeIf { it.isNotEmpty() }
+            ?: META_CHARSET_PATTERN.find(String(bytes, 0, minOf(bytes.size, 4096), Charsets.ISO_8859_1))?.groupValues?.get(1)
+        val charset = try {
+            declared?.let { Charset.forName(it) } ?: Charsets.UTF_8
+        } catch (e: Exception) {
+            Charsets.UTF_8
+        }
+        return String(bytes, charset)
+    }
+
+    /**
+     * 提取章节；正文不足 [MIN_CONTENT_LENGTH] 字时返回 null
+     */
+    fun extract(html: String, url: String): NovelChapter? {
+        val cleaned = COMMENT_PATTERN.replace(SCRIPT_PATTERN.replace(html, ""), "")
+        val content = findContent(cleaned)
+        if (content.length < MIN_CONTENT_LENGTH) return null
+
+        val links = links(cleaned, url)
+        return NovelChapter(
+            url = url,
+            title = findTitle(cleaned, content),
+            content = content,
+            nextUrl = links.firstOrNull { it.first.contains("下一章") || it.first.contains("下页") }?.second ?: "",
+            prevUrl = links.firstOrNull { it.first.contains("上一章") || it.first.contains("上页") }?.second ?: "",
+            catalogUrl = findCatalogLink(links)
+        )
+    }
+
+    /**
+     * 提取目录页上的章节链接（标题, 地址），少于 10 个时返回空列表
+     */
+    fun extractCatalog(html: String, url: String): List<Pair<String, String>> {
+        val cleaned = COMMENT_PATTERN.replace(SCRIPT_PATTERN.replace(html, ""), "")
+        val seen = HashSet<String>()
+        val chapters = links(cleaned, url).filter { (text, href) ->
+            isChapterLink(text, href) && !isNavigationLink(text) && seen.add(href)
+        }
+        return if (chapters.size >= MIN_CATALOG_SIZE) chapters else emptyList()
+    }
+
+    private fun findContent(html: String): String {
+        val containers = CONTAINER_PATTERN.findAll(html).mapNotNull { match ->
+            val attributes = ATTRIBUTE_PATTERN.findAll(match.groupValues[2])
+                .associate { it.groupValues[1].lowercase() to it.groupValues[2] }
+            if (attributes.isEmpty()) null else Triple(match, attributes["id"]?.lowercase(), attributes["class"]?.lowercase())
+        }.toList()
+
+        val candidates = CONTENT_IDS.map { id -> containers.filter { it.second == id } } +
+            CONTENT_CLASSES.map { cls -> containers.filter { it.third?.split(WHITESPACE)?.contains(cls) == true } }
+        for (group in candidates) {
+            for ((match, _, _) in group) {
+                val inner = innerHtml(html, match) ?: continue
+                val text = toText(inner)
+                if (text.length > MIN_CONTAINER_TEXT) return text
+            }
+        }
+
+        // 没有常见的正文容器时，取所有段落
+        val paragraphs = PARAGRAPH_PATTERN.findAll(html)
+            .map { toText(it.groupValues[1]) }
+            .filter { it.length > 5 && !it.contains("上一章") && !it.contains("下一章") }
+            .toList()
+        val text = paragraphs.joinToString("\n")
+        return if (text.length > MIN_PARAGRAPH_TEXT) text else ""
+    }
+
+    /**
+     * 从开始标签找到配对的结束标签，返回两者之间的 HTML
+     */
+    private fun innerHtml(html: String, open: MatchResult): String? {
+        val tag = open.groupValues[1].lowercase()
+        val tagPattern = Regex("<(/?)$tag\\b[^>]*>", RegexOption.IGNORE_CASE)
+        var depth = 1
+        var match = tagPattern.find(html, open.range.last + 1)
+        while (match != null) {
+            depth += if (match.groupValues[1].isEmpty()) 1 else -1
+            if (depth == 0) return html.substring(open.range.last + 1, match.range.first)
+            match = match.next()
+        }
+        return null
+    }
+
+    private fun findTitle(html: String, content: String): String {
+        H1_PATTERN.find(html)?.let { toText(it.groupValues[1]) }?.takeIf { it.isNotEmpty() && it.length < 200 }?.let { return it }
+        // 正文第一行通常是章节标题
+        content.lineSequence().take(5).firstOrNull { it.length < 100 && it.contains("第") && it.contains("章") }?.let { return it }
+        val documentTitle = TITLE_PATTERN.find(html)?.let { toText(it.groupValues[1]) } ?: ""
+        return documentTitle.replace(Regex("[-_|].*$"), "").trim().ifEmpty { "未知章节" }
+    }
+
+    private fun findCatalogLink(links: List<Pair<String, String>>): String {
+        for (keyword in CATALOG_KEYWORDS) {
+            links.firstOrNull { (text, _) -> text == keyword || (text.length < 10 && text.contains(keyword)) }
+                ?.let { return it.second }
+        }
+        return ""
+    }
+
+    /**
+     * 页面上的链接（文字, 绝对地址），跳过脚本链接和页内锚点
+     */
+    private fun links(html: String, baseUrl: String): List<Pair<String, String>> {
+        val base = try {
+            URI(baseUrl)
+        } catch (e: Exception) {
+            null
+        }
+        return LINK_PATTERN.findAll(html).mapNotNull { match ->
+            val href = decodeEntities(match.groupValues[1].trim())
+            if (href.startsWith("javascript:", ignoreCase = true) || href.startsWith("#")) return@mapNotNull null
+            val text = toText(match.groupValues[2], dropNoise = false).replace('\n', ' ')
+            if (text.isEmpty()) return@mapNotNull null
+            val absolute = try {
+                base?.resolve(href)?.toString() ?: href
+            } catch (e: Exception) {
+                return@mapNotNull null
+            }
+            text to absolute
+        }.toList()
+    }
+
+    private fun isChapterLink(text: String, href: String): Boolean {
+        if (CHAPTER_TITLE_PATTERN.containsMatchIn(text)) return true
+        val path = try {
+            URI(href).path ?: ""
+        } catch (e: Exception) {
+            ""
+        }
+        return CHAPTER_PATH_PATTERN.containsMatchIn(path)
+    }
+
+    private fun isNavigationLink(text: String): Boolean {
+        val lower = text.lowercase()
+        return NAVIGATION_KEYWORDS.any { lower.contains(it) }
+    }
+
+    /**
+     * HTML 片段转纯文本：块级结束标签和 <br> 换行，去掉空行；[dropNoise] 时还去掉正文中夹杂的导航文字
+     */
+    private fun toText(fragment: String, dropNoise: Boolean = true): String {
+        val withBreaks = LINE_BREAK_PATTERN.replace(fragment, "\n")
+        val text = decodeEntities(TAG_PATTERN.replace(withBreaks, ""))
+        return text.lineSequence()
+            .map { it.trim { c -> c.isWhitespace() || c == '\u3000' || c == '\u00A0' } }
+            .filter { it.isNotEmpty() && !(dropNoise && NOISE_LINE_PATTERN.matches(it)) }
+            .joinToString("\n")
+    }
+
+    private fun decodeEntities(text: String): String {
+        if (text.indexOf('&') < 0) return text
+        return ENTITY_PATTERN.replace(text) { match ->
+            val entity = match.groupValues[1]
+            when {
+                entity.startsWith("#x", ignoreCase = true) ->
+                    entity.substring(2).toIntOrNull(16)?.takeIf { Character.isValidCodePoint(it) }
+                        ?.let { String(Character.toChars(it)) } ?: match.value
+                entity.startsWith("#") ->
+                    entity.substring(1).toIntOrNull()?.takeIf { Character.isValidCodePoint(it) }
+                        ?.let { String(Character.toChars(it)) } ?: match.value
+                else -> when (entity.lowercase()) {
+                    "nbsp" -> " "
+                    "lt" -> "<"
+                    "gt" -> ">"
+                    "amp" -> "&"
+                    "quot" -> "\""
+                    "apos" -> "'"
+                    "hellip" -> "…"
+                    "mdash" -> "—"
+                    else -> match.value
+                }
+            }
+        }
+    }
+}
@@ -1,17 +1,43 @@
 package com.example.aifloatingball.reader
 
 import android.content.Context
+import android.webkit.CookieManager
+import android.webkit.WebResourceError
+import android.webkit.WebResourceRequest
 import android.webkit.WebView
+import android.webkit.WebViewClient
 import android.util.Log
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.suspendCancellableCoroutine
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.withContext
+import kotlinx.coroutines.withTimeoutOrNull
 import org.json.JSONObject
+import java.io.File
+import kotlin.coroutines.resume
 
 /**
  * 小说阅读模式管理器
  * 负责检测小说页面、解析内容、管理阅读状态
+ *
+ * 阅读时通过 [ChapterPrefetcher] 在后台预取后面几章并写入磁盘缓存，
+ * 翻页时优先从缓存显示，缓存中没有时才让当前 WebView 加载下一章页面。
  */
 class NovelReaderManager(private val context: Context) {
     companion object {
         private const val TAG = "NovelReaderManager"
+        private const val CHAPTER_CACHE_DIR = "novel_chapters"
+        private const val DEFAULT_USER_AGENT = "Mozilla/5.0 (Linux; Android 10; Mobile) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/90.0.4430.210 Mobile Safari/537.36"
+        // 页面加载完成后等待脚本渲染出内容的轮询间隔和次数
+        private const val POLL_INTERVAL_MS = 300L
+        private const val POLL_ATTEMPTS = 10
+        private const val BACKGROUND_LOAD_TIMEOUT_MS = 20_000L
         private var instance: NovelReaderManager? = null
 
         fun getInstance(context: Context): NovelReaderManager {
@@ -20,167 +46,10 @@ class NovelReaderManager(private val context: Context) {
             }
             return instance!!
         }
-    }
-
-    // 是否处于阅读模式
-    var isReaderModeActive = false
-        private set
-
-    // 当前阅读的WebView
-    private var currentWebView: WebView? = null
-
-    // 目录链接
-    private var catalogUrl: String = ""
-    
-    // 已解析的目录列表（从当前页面解析到的）
-    private var cachedCatalog: List<CatalogItem> = emptyList()
-    
-    // 是否正在加载下一章
-    private var isLoadingNext: Boolean = false
-    
-    // 下一章URL
-    private var nextChapterUrl: String = ""
-    
-    // 上一章URL
-    private var prevChapterUrl: String = ""
-    
-    // 后台WebView，用于加载目录
-    private var backgroundWebView: WebView? = null
-
-    // 目录数据类
-    data class CatalogItem(val title: String, val url: String)
-
-    // 监听器
-    interface ReaderModeListener {
-        fun onReaderModeStateChanged(isActive: Boolean)
-        fun onChapterLoaded(title: String, content: String, hasNext: Boolean, hasPrev: Boolean, isAppend: Boolean)
-        fun onChapterLoadFailed(error: String)
-        fun onCatalogLoaded(catalog: List<CatalogItem>)
-        fun onCatalogLoadFailed(error: String)
-        fun onCatalogPageDetected(catalog: List<CatalogItem>) // 新增：检测到目录页面时回调
-    }
-
-    private var listener: ReaderModeListener? = null
-
-    fun setListener(listener: ReaderModeListener) {
-        this.listener = listener
-    }
-
-    /**
-     * 检测当前页面是否为小说页面
-     * @param webView 当前WebView
-     * @param url 当前URL
-     * @param title 页面标题
-     * @param htmlContent 页面HTML内容（可选，如果能获取到）
-     */
-    fun detectNovelPage(webView: WebView, url: String, title: String?, callback: (Boolean) -> Unit) {
-        // 简单的关键词检测
-        val isNovel = title?.let {
-            it.contains("章") || it.contains("节") || it.contains("阅读") || it.contains("小说")
-        } ?: false
-
-        // 如果标题包含关键词，进一步通过JS检测内容结构
-        if (isNovel) {
-            // 注入JS检测主要文本内容长度和结构
-            val js = """
-                (function() {
-                    // 简单的启发式算法
-                    var pTags = document.getElementsByTagName('p');
-                    var textLength = 0;
-                    for (var i = 0; i < pTags.length; i++) {
-                        textLength += pTags[i].innerText.length;
-                    }
-                    // 如果P标签文本总长度超过1000字，且包含"章"字，可能是小说
-                    var hasChapterKeyword = document.title.indexOf('章') > -1;
-                    return {
-                        isNovel: textLength > 800 && hasChapterKeyword,
-                        textLength: textLength,
-                        title: document.title
-                    };
-                })();
-            """.trimIndent()
-
-            webView.evaluateJavascript(js) { result ->
-                try {
-                    val json = JSONObject(result)
-                    val confirmed = json.optBoolean("isNovel", false)
-                    callback(confirmed)
-                } catch (e: Exception) {
-                    Log.e(TAG, "检测小说页面失败", e)
-                    callback(false)
-                }
-            }
-        } else {
-            callback(false)
-        }
-    }
-
-    /**
-     * 进入阅读模式
-     */
-    fun enterReaderMode(webView: WebView) {
-        if (isReaderModeActive && currentWebView == webView && !isLoadingNext) return
-        
-        currentWebView = webView
-        isReaderModeActive = true
-        isLoadingNext = false // 重置加载状态
-        listener?.onReaderModeStateChanged(true)
-        
-        // 解析当前章节
-        android.widget.Toast.makeText(context, "正在进入阅读模式...", android.widget.Toast.LENGTH_SHORT).show()
-        parseCurrentChapter(isAppend = false)
-    }
-
-    /**
-     * 退出阅读模式
-     */
-    fun exitReaderMode() {
-        if (!isReaderModeActive) return
-        
-        isReaderModeActive = false
-        currentWebView = null
-        isLoadingNext = false
-        nextChapterUrl = ""
-        prevChapterUrl = ""
-        catalogUrl = ""
-        cachedCatalog = emptyList() // 清空缓存的目录
-        // 清理后台WebView
-        backgroundWebView?.destroy()
-        backgroundWebView = null
-        
-        listener?.onReaderModeStateChanged(false)
-    }
-
-    /**
-     * 页面加载完成通知
-     */
-    fun onPageFinished(url: String) {
-        if (!isReaderModeActive) return
-        
-        // 延迟执行，确保DOM完全加载和JS执行完成
-        currentWebView?.postDelayed({
-            // 如果是正在加载下一章，追加内容
-            if (isLoadingNext) {
-                parseCurrentChapter(isAppend = true)
-                isLoadingNext = false
-            } else {
-                // 否则，重新解析当前页面（可能是点击目录章节跳转过来的）
-                parseCurrentChapter(isAppend = false)
-            }
-        }, 500) // 延迟500ms，确保页面完全加载
-    }
 
-    /**
-     * 解析当前章节内容
-     * 支持目录页面识别和章节解析
-     */
-    private fun parseCurrentChapter(isAppend: Boolean) {
-        val webView = currentWebView ?: return
-        
-        // 注入JS解析内容
-        // 这里使用一个通用的解析脚本，尝试提取正文、标题、上一章、下一章链接、目录链接
+        // 通用的章节解析脚本，尝试提取正文、标题、上一章、下一章链接、目录链接
         // 同时支持目录页面的章节列表解析
-        val js = """
+        private val CHAPTER_SCRIPT = """
             (function() {
                 function findMainContent() {
                     // 方法1: 尝试使用常见的内容选择器
@@ -487,156 +356,8 @@ class NovelReaderManager(private val context: Context) {
             })();
         """.trimIndent()
 
-        webView.evaluateJavascript(js) { result ->
-            try {
-                // result 是 JSON 字符串，可能被引号包裹
-                var jsonStr = result
-                if (jsonStr.startsWith("\"") && jsonStr.endsWith("\"")) {
-                    jsonStr = jsonStr.substring(1, jsonStr.length - 1).replace("\\\"", "\"").replace("\\\\", "\\")
-                }
-                
-                val json = JSONObject(jsonStr)
-                val title = json.optString("title")
-                val content = json.optString("content")
-                val nextUrl = json.optString("nextUrl")
-                val prevUrl = json.optString("prevUrl")
-                val catUrl = json.optString("catalogUrl")
-                val chaptersArray = json.optJSONArray("chapters")
-                
-                // 解析章节列表
-                val chapters = mutableListOf<CatalogItem>()
-                if (chaptersArray != null) {
-                    for (i in 0 until chaptersArray.length()) {
-                        val chapterObj = chaptersArray.getJSONObject(i)
-                        chapters.add(
-                            CatalogItem(
-                                title = chapterObj.optString("title", ""),
-                                url = chapterObj.optString("url", "")
-                            )
-                        )
-                    }
-                }
-                
-                // 判断当前页面是目录页面还是章节页面
-                // 目录页面特征：内容很少（<200字符）且章节列表很多（>=3个）
-                val isCatalogPage = content.length < 200 && chapters.size >= 3
-                
-                if (isCatalogPage) {
-                    // 目录页面：通知UI显示目录列表
-                    Log.d(TAG, "✅ 检测到目录页面，章节数: ${chapters.size}")
-                    cachedCatalog = chapters // 缓存目录
-                    listener?.onCatalogPageDetected(chapters)
-                } else if (content.isNotEmpty() && content.length >= 100) {
-                    // 章节页面：正常处理（内容长度至少100字符才认为是有效内容）
-                    Log.d(TAG, "✅ 检测到章节页面，标题: $title, 内容长度: ${content.length}, 章节数: ${chapters.size}")
-                    nextChapterUrl = nextUrl
-                    prevChapterUrl = prevUrl
-                    if (catUrl.isNotEmpty()) {
-                        catalogUrl = catUrl
-                    }
-                    // 如果章节页面也解析到了目录，保存起来供用户查看
-                    if (chapters.size >= 3) {
-                        Log.d(TAG, "📚 章节页面也解析到了目录，章节数: ${chapters.size}，已缓存")
-                        cachedCatalog = chapters
-                    }
-                    listener?.onChapterLoaded(title, content, nextUrl.isNotEmpty(), prevUrl.isNotEmpty(), isAppend)
-                } else {
-                    // 如果内容为空或太短，尝试再次解析（可能是页面还没完全加载）
-                    Log.w(TAG, "⚠️ 无法解析正文内容，内容长度: ${content.length}, 章节数: ${chapters.size}，尝试延迟重试")
-                    // 延迟重试一次
-                    currentWebView?.postDelayed({
-                        if (isReaderModeActive) {
-                            parseCurrentChapter(isAppend)
-                        }
-                    }, 1000)
-                }
-            } catch (e: Exception) {
-                Log.e(TAG, "解析章节失败", e)
-                listener?.onChapterLoadFailed("解析错误: ${e.message}")
-            }
-        }
-    }
-    
-    /**
-     * 加载下一章
-     */
-    fun loadNextChapter() {
-        if (nextChapterUrl.isNotEmpty() && !isLoadingNext) {
-            isLoadingNext = true
-            currentWebView?.loadUrl(nextChapterUrl)
-        } else if (nextChapterUrl.isEmpty()) {
-            listener?.onChapterLoadFailed("没有下一章链接")
-        }
-    }
-    
-    /**
-     * 加载上一章
-     */
-    fun loadPrevChapter() {
-        if (prevChapterUrl.isNotEmpty() && !isLoadingNext) {
-            isLoadingNext = false // 上一章不是追加
-            currentWebView?.loadUrl(prevChapterUrl)
-        } else if (prevChapterUrl.isEmpty()) {
-            listener?.onChapterLoadFailed("没有上一章链接")
-        }
-    }
-    
-    /**
-     * 获取目录
-     * 优先级：1. 已缓存的目录 2. 目录链接 3. 当前页面解析
-     */
-    fun fetchCatalog() {
-        // 优先使用已缓存的目录（从章节页面解析到的）
-        if (cachedCatalog.isNotEmpty()) {
-            Log.d(TAG, "✅ 使用已缓存的目录，章节数: ${cachedCatalog.size}")
-            listener?.onCatalogLoaded(cachedCatalog)
-            return
-        }
-        
-        if (catalogUrl.isNotEmpty()) {
-            // 在后台加载目录页
-            Log.d(TAG, "从目录链接加载目录: $catalogUrl")
-            loadCatalogInBackground(catalogUrl)
-        } else {
-            // 尝试直接解析当前页面（可能当前页面就包含目录）
-            Log.d(TAG, "尝试从当前页面解析目录")
-            currentWebView?.let { webView ->
-                // 延迟执行，确保页面完全加载
-                webView.postDelayed({
-                    parseCatalogFromWebView(webView)
-                }, 500)
-            }
-        }
-    }
-    
-    private fun loadCatalogInBackground(url: String) {
-        if (backgroundWebView == null) {
-            backgroundWebView = WebView(context).apply {
-                settings.javaScriptEnabled = true
-                settings.blockNetworkImage = true // 不加载图片，加快速度
-                // 设置UserAgent，防止被识别为爬虫
-                settings.userAgentString = "Mozilla/5.0 (Linux; Android 10; Mobile) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/90.0.4430.210 Mobile Safari/537.36"
-                
-                webViewClient = object : android.webkit.WebViewClient() {
-                    override fun onPageFinished(view: WebView?, url: String?) {
-                        super.onPageFinished(view, url)
-                        // 延时，确保JS执行环境准备好和DOM完全加载
-                        view?.postDelayed({
-                            parseCatalogFromWebView(view)
-                        }, 1000) // 增加到1秒，确保页面完全加载
-                    }
-                    
-                    override fun onReceivedError(view: WebView?, errorCode: Int, description: String?, failingUrl: String?) {
-                        listener?.onCatalogLoadFailed("加载目录页失败: $description")
-                    }
-                }
-            }
-        }
-        backgroundWebView?.loadUrl(url)
-    }
-    
-    private fun parseCatalogFromWebView(webView: WebView) {
-        val js = """
+        // 目录页解析脚本：找出链接最多、最像章节列表的容器
+        private val CATALOG_SCRIPT = """
             (function() {
                 // 辅助函数：检查是否是章节链接
                 function isChapterLink(text, href) {
@@ -750,24 +471,520 @@ class NovelReaderManager(private val context: Context) {
                 return "[]";
             })();
         """.trimIndent()
-        
-        webView.evaluateJavascript(js) { result ->
-            try {
-                var jsonStr = result
-                if (jsonStr.startsWith("\"") && jsonStr.endsWith("\"")) {
-                    jsonStr = jsonStr.substring(1, jsonStr.length - 1).replace("\\\"", "\"").replace("\\\\", "\\")
-                }
-                
-                val jsonArray = org.json.JSONArray(jsonStr)
-                val catalog = ArrayList<CatalogItem>()
-                
+    }
+
+    // 是否处于阅读模式
+    var isReaderModeActive = false
+        private set
+
+    // 当前阅读的WebView
+    private var currentWebView: WebView? = null
+
+    // 目录链接
+    private var catalogUrl: String = ""
+    
+    // 已解析的目录列表（从当前页面解析到的）
+    private var cachedCatalog: List<CatalogItem> = emptyList()
+    
+    // 是否正在加载下一章
+    private var isLoadingNext: Boolean = false
+    
+    // 下一章URL
+    private var nextChapterUrl: String = ""
+    
+    // 上一章URL
+    private var prevChapterUrl: String = ""
+
+    // 正在阅读的章节URL，从缓存翻页时当前WebView不会跟着跳转
+    @Volatile
+    private var currentChapterUrl: String = ""
+    
+    // 后台WebView，用于加载目录
+    private var backgroundWebView: WebView? = null
+
+    // 预取用的隐藏WebView，只在HTTP提取不到正文时使用，同一时间只加载一页
+    private var prefetchWebView: WebView? = null
+    private val prefetchWebViewLock = Mutex()
+
+    // 与当前WebView一致的User-Agent，预取请求使用
+    @Volatile
+    private var userAgent: String = DEFAULT_USER_AGENT
+
+    private val mainScope = CoroutineScope(SupervisorJob() + Dispatchers.Main)
+    private val chapterCache by lazy { ChapterCache(File(context.filesDir, CHAPTER_CACHE_DIR)) }
+    private var prefetcher: ChapterPrefetcher? = null
+    private var turnJob: Job? = null
+
+    // 目录数据类
+    data class CatalogItem(val title: String, val url: String)
+
+    // 章节脚本的解析结果
+    private class ParsedPage(
+        val title: String,
+        val content: String,
+        val nextUrl: String,
+        val prevUrl: String,
+        val catalogUrl: String,
+        val chapters: List<CatalogItem>
+    )
+
+    // 监听器
+    interface ReaderModeListener {
+        fun onReaderModeStateChanged(isActive: Boolean)
+        fun onChapterLoaded(title: String, content: String, hasNext: Boolean, hasPrev: Boolean, isAppend: Boolean)
+        fun onChapterLoadFailed(error: String)
+        fun onCatalogLoaded(catalog: List<CatalogItem>)
+        fun onCatalogLoadFailed(error: String)
+        fun onCatalogPageDetected(catalog: List<CatalogItem>) // 新增：检测到目录页面时回调
+    }
+
+    private var listener: ReaderModeListener? = null
+
+    fun setListener(listener: ReaderModeListener) {
+        this.listener = listener
+    }
+
+    /**
+     * 检测当前页面是否为小说页面
+     * @param webView 当前WebView
+     * @param url 当前URL
+     * @param title 页面标题
+     * @param htmlContent 页面HTML内容（可选，如果能获取到）
+     */
+    fun detectNovelPage(webView: WebView, url: String, title: String?, callback: (Boolean) -> Unit) {
+        // 简单的关键词检测
+        val isNovel = title?.let {
+            it.contains("章") || it.contains("节") || it.contains("阅读") || it.contains("小说")
+        } ?: false
+
+        // 如果标题包含关键词，进一步通过JS检测内容结构
+        if (isNovel) {
+            // 注入JS检测主要文本内容长度和结构
+            val js = """
+                (function() {
+                    // 简单的启发式算法
+                    var pTags = document.getElementsByTagName('p');
+                    var textLength = 0;
+                    for (var i = 0; i < pTags.length; i++) {
+                        textLength += pTags[i].innerText.length;
+                    }
+                    // 如果P标签文本总长度超过1000字，且包含"章"字，可能是小说
+                    var hasChapterKeyword = document.title.indexOf('章') > -1;
+                    return {
+                        isNovel: textLength > 800 && hasChapterKeyword,
+                        textLength: textLength,
+                        title: document.title
+                    };
+                })();
+            """.trimIndent()
+
+            webView.evaluateJavascript(js) { result ->
+                try {
+                    val json = JSONObject(result)
+                    val confirmed = json.optBoolean("isNovel", false)
+                    callback(confirmed)
+                } catch (e: Exception) {
+                    Log.e(TAG, "检测小说页面失败", e)
+                    callback(false)
+                }
+            }
+        } else {
+            callback(false)
+        }
+    }
+
+    /**
+     * 进入阅读模式
+     */
+    fun enterReaderMode(webView: WebView) {
+        if (isReaderModeActive && currentWebView == webView && !isLoadingNext) return
+        
+        currentWebView = webView
+        isReaderModeActive = true
+        isLoadingNext = false // 重置加载状态
+        webView.settings.userAgentString?.takeIf { it.isNotEmpty() }?.let { userAgent = it }
+        if (prefetcher == null) {
+            prefetcher = createPrefetcher()
+        }
+        listener?.onReaderModeStateChanged(true)
+        
+        // 解析当前章节
+        android.widget.Toast.makeText(context, "正在进入阅读模式...", android.widget.Toast.LENGTH_SHORT).show()
+        parseCurrentChapter(isAppend = false)
+    }
+
+    /**
+     * 退出阅读模式
+     */
+    fun exitReaderMode() {
+        if (!isReaderModeActive) return
+        
+        // 从缓存翻过页时WebView还停在旧页面，跳到正在阅读的章节
+        val webView = currentWebView
+        if (webView != null && currentChapterUrl.isNotEmpty() && webView.url != currentChapterUrl) {
+            webView.loadUrl(currentChapterUrl)
+        }
+
+        isReaderModeActive = false
+        currentWebView = null
+        isLoadingNext = false
+        nextChapterUrl = ""
+        prevChapterUrl = ""
+        currentChapterUrl = ""
+        catalogUrl = ""
+        cachedCatalog = emptyList() // 清空缓存的目录
+        turnJob?.cancel()
+        turnJob = null
+        prefetcher?.cancel()
+        prefetcher = null
+        // 清理后台WebView
+        backgroundWebView?.destroy()
+        backgroundWebView = null
+        prefetchWebView?.destroy()
+        prefetchWebView = null
+        
+        listener?.onReaderModeStateChanged(false)
+    }
+
+    /**
+     * 页面加载完成通知
+     */
+    fun onPageFinished(url: String) {
+        if (!isReaderModeActive) return
+        
+        // 延迟执行，确保DOM完全加载和JS执行完成
+        currentWebView?.postDelayed({
+            // 如果是正在加载下一章，追加内容
+            if (isLoadingNext) {
+                parseCurrentChapter(isAppend = true)
+                isLoadingNext = false
+            } else {
+                // 否则，重新解析当前页面（可能是点击目录章节跳转过来的）
+                parseCurrentChapter(isAppend = false)
+            }
+        }, 500) // 延迟500ms，确保页面完全加载
+    }
+
+    /**
+     * 解析当前章节内容
+     * 支持目录页面识别和章节解析
+     */
+    private fun parseCurrentChapter(isAppend: Boolean) {
+        val webView = currentWebView ?: return
+
+        webView.evaluateJavascript(CHAPTER_SCRIPT) { result ->
+            try {
+                val page = parsePageResult(result)
+                val content = page.content
+                val chapters = page.chapters
+                val pageUrl = webView.url ?: ""
+                
+                // 判断当前页面是目录页面还是章节页面
+                // 目录页面特征：内容很少（<200字符）且章节列表很多（>=3个）
+                val isCatalogPage = content.length < 200 && chapters.size >= 3
+                
+                if (isCatalogPage) {
+                    // 目录页面：通知UI显示目录列表
+                    Log.d(TAG, "✅ 检测到目录页面，章节数: ${chapters.size}")
+                    cachedCatalog = chapters // 缓存目录
+                    prefetcher?.storeCatalog(pageUrl, chapters)
+                    listener?.onCatalogPageDetected(chapters)
+                } else if (content.isNotEmpty() && content.length >= 100) {
+                    // 章节页面：正常处理（内容长度至少100字符才认为是有效内容）
+                    Log.d(TAG, "✅ 检测到章节页面，标题: ${page.title}, 内容长度: ${content.length}, 章节数: ${chapters.size}")
+                    // 如果章节页面也解析到了目录，保存起来供用户查看
+                    if (chapters.size >= 3) {
+                        Log.d(TAG, "📚 章节页面也解析到了目录，章节数: ${chapters.size}，已缓存")
+                        cachedCatalog = chapters
+                    }
+                    val chapter = NovelChapter(pageUrl, page.title, content, page.nextUrl, page.prevUrl, page.catalogUrl)
+                    if (pageUrl.isNotEmpty()) {
+                        prefetcher?.store(chapter)
+                    }
+                    showChapter(chapter, isAppend)
+                } else {
+                    // 如果内容为空或太短，尝试再次解析（可能是页面还没完全加载）
+                    Log.w(TAG, "⚠️ 无法解析正文内容，内容长度: ${content.length}, 章节数: ${chapters.size}，尝试延迟重试")
+                    // 延迟重试一次
+                    currentWebView?.postDelayed({
+                        if (isReaderModeActive) {
+                            parseCurrentChapter(isAppend)
+                        }
+                    }, 1000)
+                }
+            } catch (e: Exception) {
+                Log.e(TAG, "解析章节失败", e)
+                listener?.onChapterLoadFailed("解析错误: ${e.message}")
+            }
+        }
+    }
+
+    /**
+     * 解析章节脚本的返回值
+     */
+    private fun parsePageResult(result: String): ParsedPage {
+        // result 是 JSON 字符串，可能被引号包裹
+        var jsonStr = result
+        if (jsonStr.startsWith("\"") && jsonStr.endsWith("\"")) {
+            jsonStr = jsonStr.substring(1, jsonStr.length - 1).replace("\\\"", "\"").replace("\\\\", "\\")
+        }
+        
+        val json = JSONObject(jsonStr)
+        val chaptersArray = json.optJSONArray("chapters")
+        
+        // 解析章节列表
+        val chapters = mutableListOf<CatalogItem>()
+        if (chaptersArray != null) {
+            for (i in 0 until chaptersArray.length()) {
+                val chapterObj = chaptersArray.getJSONObject(i)
+                chapters.add(
+                    CatalogItem(
+                        title = chapterObj.optString("title", ""),
+                        url = chapterObj.optString("url", "")
+                    )
+                )
+            }
+        }
+        return ParsedPage(
+            title = json.optString("title"),
+            content = json.optString("content"),
+            nextUrl = json.optString("nextUrl"),
+            prevUrl = json.optString("prevUrl"),
+            catalogUrl = json.optString("catalogUrl"),
+            chapters = chapters
+        )
+    }
+
+    /**
+     * 显示一章并更新翻页链接，然后从它的下一章开始预取
+     */
+    private fun showChapter(chapter: NovelChapter, isAppend: Boolean) {
+        currentChapterUrl = chapter.url
+        nextChapterUrl = chapter.nextUrl
+        prevChapterUrl = chapter.prevUrl
+        if (chapter.catalogUrl.isNotEmpty()) {
+            catalogUrl = chapter.catalogUrl
+        }
+        listener?.onChapterLoaded(chapter.title, chapter.content, chapter.nextUrl.isNotEmpty(), chapter.prevUrl.isNotEmpty(), isAppend)
+        prefetcher?.prefetchFrom(chapter.nextUrl)
+    }
+
+    /**
+     * 翻到某一章：已缓存或正在预取时直接显示，否则让当前WebView加载该页面
+     */
+    private fun turnTo(url: String, isAppend: Boolean) {
+        turnJob?.cancel()
+        turnJob = mainScope.launch {
+            val chapter = prefetcher?.peek(url)
+            if (!isReaderModeActive) return@launch
+            if (chapter != null) {
+                Log.d(TAG, "📖 从缓存显示章节: ${chapter.title}")
+                isLoadingNext = false
+                showChapter(chapter, isAppend)
+            } else {
+                // 页面加载完成后会自动触发 onPageFinished -> parseCurrentChapter
+                isLoadingNext = isAppend
+                currentWebView?.loadUrl(url)
+            }
+        }
+    }
+
+    private fun createPrefetcher(): ChapterPrefetcher {
+        return ChapterPrefetcher(
+            cache = chapterCache,
+            requestHeaders = { url -> requestHeaders(url) },
+            fallback = { url -> withContext(Dispatchers.Main) { extractWithWebView(url) } }
+        )
+    }
+
+    /**
+     * 预取请求使用与WebView一致的User-Agent和Cookie，避免被站点区别对待
+     */
+    private fun requestHeaders(url: String): Map<String, String> {
+        val headers = mutableMapOf("User-Agent" to userAgent)
+        try {
+            CookieManager.getInstance().getCookie(url)?.let { headers["Cookie"] = it }
+        } catch (e: Exception) {
+            Log.w(TAG, "读取Cookie失败", e)
+        }
+        currentChapterUrl.takeIf { it.isNotEmpty() }?.let { headers["Referer"] = it }
+        return headers
+    }
+
+    /**
+     * 用隐藏的WebView加载页面并运行章节脚本，用于需要脚本渲染正文的站点；必须在主线程调用
+     */
+    private suspend fun extractWithWebView(url: String): NovelChapter? = prefetchWebViewLock.withLock {
+        if (!isReaderModeActive) return@withLock null
+        val webView = prefetchWebView ?: createHiddenWebView().also { prefetchWebView = it }
+        withTimeoutOrNull(BACKGROUND_LOAD_TIMEOUT_MS) {
+            if (!loadAndAwait(webView, url)) return@withTimeoutOrNull null
+            // 不再固定等待，内容出现即返回
+            for (attempt in 0 until POLL_ATTEMPTS) {
+                val page = try {
+                    parsePageResult(evaluate(webView, CHAPTER_SCRIPT))
+                } catch (e: Exception) {
+                    null
+                }
+                if (page != null && page.content.length >= ChapterTextExtractor.MIN_CONTENT_LENGTH) {
+                    return@withTimeoutOrNull NovelChapter(url, page.title, page.content, page.nextUrl, page.prevUrl, page.catalogUrl)
+                }
+                delay(POLL_INTERVAL_MS)
+            }
+            null
+        }
+    }
+
+    private fun createHiddenWebView(): WebView {
+        return WebView(context).apply {
+            settings.javaScriptEnabled = true
+            settings.blockNetworkImage = true // 不加载图片，加快速度
+            // 设置UserAgent，防止被识别为爬虫
+            settings.userAgentString = userAgent
+        }
+    }
+
+    /**
+     * 加载页面并等待主文档加载完成，主文档加载出错时返回 false
+     */
+    private suspend fun loadAndAwait(webView: WebView, url: String): Boolean = suspendCancellableCoroutine { continuation ->
+        webView.webViewClient = object : WebViewClient() {
+            override fun onPageFinished(view: WebView?, url: String?) {
+                if (continuation.isActive) continuation.resume(true)
+            }
+
+            override fun onReceivedError(view: WebView?, request: WebResourceRequest?, error: WebResourceError?) {
+                if (request?.isForMainFrame == true && continuation.isActive) {
+                    Log.w(TAG, "后台加载失败: ${error?.description}")
+                    continuation.resume(false)
+                }
+            }
+        }
+        webView.loadUrl(url)
+    }
+
+    private suspend fun evaluate(webView: WebView, script: String): String = suspendCancellableCoroutine { continuation ->
+        webView.evaluateJavascript(script) { result ->
+            if (continuation.isActive) continuation.resume(result ?: "")
+        }
+    }
+    
+    /**
+     * 加载下一章
+     */
+    fun loadNextChapter() {
+        if (nextChapterUrl.isEmpty()) {
+            listener?.onChapterLoadFailed("没有下一章链接")
+            return
+        }
+        if (isLoadingNext || turnJob?.isActive == true) return
+        isLoadingNext = true
+        turnTo(nextChapterUrl, isAppend = true)
+    }
+    
+    /**
+     * 加载上一章
+     */
+    fun loadPrevChapter() {
+        if (prevChapterUrl.isEmpty()) {
+            listener?.onChapterLoadFailed("没有上一章链接")
+            return
+        }
+        if (isLoadingNext) return
+        turnTo(prevChapterUrl, isAppend = false) // 上一章不是追加
+    }
+    
+    /**
+     * 获取目录
+     * 优先级：1. 已缓存的目录 2. 目录链接（磁盘缓存、HTTP、后台WebView） 3. 当前页面解析
+     */
+    fun fetchCatalog() {
+        // 优先使用已缓存的目录（从章节页面解析到的）
+        if (cachedCatalog.isNotEmpty()) {
+            Log.d(TAG, "✅ 使用已缓存的目录，章节数: ${cachedCatalog.size}")
+            listener?.onCatalogLoaded(cachedCatalog)
+            return
+        }
+        
+        if (catalogUrl.isNotEmpty()) {
+            val url = catalogUrl
+            Log.d(TAG, "从目录链接加载目录: $url")
+            mainScope.launch {
+                val catalog = prefetcher?.loadCatalog(url)
+                if (!isReaderModeActive) return@launch
+                if (catalog != null) {
+                    Log.d(TAG, "✅ 目录已从缓存或HTTP获取，章节数: ${catalog.size}")
+                    cachedCatalog = catalog
+                    listener?.onCatalogLoaded(catalog)
+                } else {
+                    // 在后台加载目录页
+                    loadCatalogInBackground(url)
+                }
+            }
+        } else {
+            // 尝试直接解析当前页面（可能当前页面就包含目录）
+            Log.d(TAG, "尝试从当前页面解析目录")
+            currentWebView?.let { webView ->
+                parseCatalogFromWebView(webView, attemptsLeft = POLL_ATTEMPTS, sourceUrl = null)
+            }
+        }
+    }
+    
+    private fun loadCatalogInBackground(pageUrl: String) {
+        if (backgroundWebView == null) {
+            backgroundWebView = createHiddenWebView()
+        }
+        backgroundWebView?.webViewClient = object : WebViewClient() {
+            private var parsed = false
+
+            override fun onPageFinished(view: WebView?, url: String?) {
+                super.onPageFinished(view, url)
+                if (view == null || parsed) return
+                parsed = true
+                // 不再固定延时，解析不到时按间隔重试
+                parseCatalogFromWebView(view, attemptsLeft = POLL_ATTEMPTS, sourceUrl = pageUrl)
+            }
+            
+            override fun onReceivedError(view: WebView?, request: WebResourceRequest?, error: WebResourceError?) {
+                if (request?.isForMainFrame == true) {
+                    listener?.onCatalogLoadFailed("加载目录页失败: ${error?.description}")
+                }
+            }
+        }
+        backgroundWebView?.loadUrl(pageUrl)
+    }
+    
+    /**
+     * 从WebView解析目录，解析不到时每隔 [POLL_INTERVAL_MS] 重试，直到用完 [attemptsLeft] 次
+     *
+     * @param sourceUrl 目录页地址，不为空时解析结果会写入磁盘缓存
+     */
+    private fun parseCatalogFromWebView(webView: WebView, attemptsLeft: Int, sourceUrl: String?) {
+        webView.evaluateJavascript(CATALOG_SCRIPT) { result ->
+            try {
+                var jsonStr = result
+                if (jsonStr.startsWith("\"") && jsonStr.endsWith("\"")) {
+                    jsonStr = jsonStr.substring(1, jsonStr.length - 1).replace("\\\"", "\"").replace("\\\\", "\\")
+                }
+                
+                val jsonArray = org.json.JSONArray(jsonStr)
+                val catalog = ArrayList<CatalogItem>()
+                
                 for (i in 0 until jsonArray.length()) {
                     val item = jsonArray.getJSONObject(i)
                     catalog.add(CatalogItem(item.getString("title"), item.getString("url")))
                 }
                 
                 if (catalog.isNotEmpty()) {
+                    cachedCatalog = catalog
+                    if (sourceUrl != null) {
+                        prefetcher?.storeCatalog(sourceUrl, catalog)
+                    }
                     listener?.onCatalogLoaded(catalog)
+                } else if (attemptsLeft > 1 && isReaderModeActive) {
+                    webView.postDelayed({
+                        parseCatalogFromWebView(webView, attemptsLeft - 1, sourceUrl)
+                    }, POLL_INTERVAL_MS)
                 } else {
                     listener?.onCatalogLoadFailed("未找到目录列表")
                 }
@@ -788,8 +1005,7 @@ class NovelReaderManager(private val context: Context) {
         }
         isLoadingNext = false // 重置状态，因为这是新章节，不是追加
         Log.d(TAG, "📖 加载章节: $url")
-        currentWebView?.loadUrl(url)
-        // 页面加载完成后会自动触发 onPageFinished -> parseCurrentChapter
+        turnTo(url, isAppend = false)
     }
     
     /**
@@ -0,0 +1,464 @@
+package com.example.aifloatingball.search
+
+import net.sourceforge.pinyin4j.PinyinHelper
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * 已安装应用的预建搜索索引
+ *
+ * 每个应用在加入时生成一组检索键，全部放进一棵前缀树：
+ * - 名称本身，以及从每个词（中文按字、英文按单词和驼峰切分）开始的后缀，例如"Google Maps"可用"maps"搜到；
+ * - 全拼及从每个字开始的后缀，多音字最多取 [MAX_PINYIN_VARIANTS] 种读法组合；
+ * - 首字母及其后缀，例如"微信"可用"wx"搜到；
+ * - 包名中有意义的片段，例如"tencent"。
+ *
+ * 前缀树的每个节点预先记录子树内得分最高的 [MAX_NODE_HITS] 个应用，每次按键只需沿查询走到对应节点即可取出结果。
+ * 精确前缀结果不足时再在前缀树上按有界编辑距离（Damerau-Levenshtein）搜索容错匹配，最后才退回到名称包含匹配。
+ *
+ * 应用增删时重新生成快照并整体替换，已有应用的检索键不会重新计算；查询只读当前快照，可以在任意线程调用。
+ * 查询结果按快照缓存在一个有界 LRU 中，快照替换后旧缓存随之失效。只依赖 JDK 和 pinyin4j，可直接在 JVM 单元测试中使用。
+ */
+class AppSearchIndex<T : Any>(
+    private val labelOf: (T) -> String,
+    private val packageOf: (T) -> String,
+    private val cacheSize: Int = DEFAULT_CACHE_SIZE
+) {
+
+    companion object {
+        const val DEFAULT_LIMIT = 20
+        const val DEFAULT_CACHE_SIZE = 128
+
+        private const val SCORE_LABEL = 100
+        private const val SCORE_LABEL_WORD = 80
+        private const val SCORE_INITIALS = 75
+        private const val SCORE_PINYIN = 70
+        private const val SCORE_PINYIN_WORD = 60
+        private const val SCORE_INITIALS_WORD = 55
+        private const val SCORE_PACKAGE = 30
+        private const val SCORE_CONTAINS = 20
+        // 越靠后的词起点得分越低
+        private const val WORD_POSITION_PENALTY = 3
+        // 检索键越长，同一查询覆盖的比例越小
+        private const val LENGTH_PENALTY_DIVISOR = 2
+        // 查询恰好等于某个检索键
+        private const val EXACT_BONUS = 40
+        private const val EDIT_PENALTY = 40
+
+        private const val MAX_TOKEN_LENGTH = 24
+        private const val MAX_READINGS_PER_CHAR = 2
+        private const val MAX_PINYIN_VARIANTS = 4
+        private const val MAX_NODE_HITS = 128
+        // 查询至少这么长才做容错匹配，太短的查询容错后几乎什么都能匹配上
+        private const val FUZZY_MIN_LENGTH = 4
+        private const val FUZZY_TWO_EDITS_LENGTH = 8
+
+        private const val NO_SCORE = Int.MIN_VALUE
+
+        private val IGNORED_PACKAGE_PARTS = setOf(
+            "com", "cn", "org", "net", "io", "me", "www", "android", "app", "apps", "mobile", "client"
+        )
+
+        // pinyin4j 查表较慢，按字缓存去掉声调后的读音
+        private val readingCache = ConcurrentHashMap<Char, Array<String>>()
+
+        /**
+         * 查询和名称的归一化：转小写，只保留字母、数字和汉字
+         */
+        fun normalize(text: String): String {
+            val builder = StringBuilder(text.length)
+            for (c in text) {
+                if (Character.isLetterOrDigit(c)) builder.append(c.lowercaseChar())
+            }
+            return builder.toString()
+        }
+
+        private fun readingsOf(c: Char): Array<String> {
+            return readingCache.getOrPut(c) {
+                try {
+                    PinyinHelper.toHanyuPinyinStringArray(c)
+                        ?.map { it.trimEnd { ch -> ch in '0'..'9' }.replace("u:", "v") }
+                        ?.filter { it.isNotEmpty() }
+                        ?.distinct()
+                        ?.take(MAX_READINGS_PER_CHAR)
+                        ?.toTypedArray()
+                        ?: emptyArray()
+                } catch (e: Exception) {
+                    emptyArray()
+                }
+            }
+        }
+    }
+
+    /**
+     * 名称中的一个词：一个汉字，或一段连续的字母数字
+     *
+     * @param readings 汉字的拼音读法，拉丁单词为 null
+     */
+    private class Word(val text: String, val readings: Array<String>?)
+
+    private class Entry<T>(
+        val item: T,
+        val packageName: String,
+        val label: String,
+        val tokens: Array<String>,
+        val scores: IntArray
+    )
+
+    private class BuildNode {
+        var children: HashMap<Char, BuildNode>? = null
+        // 子树内每个条目的最高分
+        val best = HashMap<Int, Int>()
+        // 恰好在此结束的检索键
+        var exact: HashMap<Int, Int>? = null
+    }
+
+    private class Node(
+        val keys: CharArray,
+        val children: Array<Node?>,
+        // 按分数降序
+        val ids: IntArray,
+        val scores: IntArray,
+        val exactIds: IntArray,
+        val exactScores: IntArray
+    ) {
+        fun child(c: Char): Node? {
+            val index = keys.binarySearch(c)
+            return if (index >= 0) children[index] else null
+        }
+    }
+
+    /**
+     * 单次查询的得分表，每个条目只保留最高分
+     */
+    private class Collector(size: Int) {
+        val best = IntArray(size) { NO_SCORE }
+        val touched = IntArray(size)
+        var count = 0
+
+        fun offer(id: Int, score: Int) {
+            val current = best[id]
+            if (current == NO_SCORE) {
+                touched[count++] = id
+                best[id] = score
+            } else if (score > current) {
+                best[id] = score
+            }
+        }
+    }
+
+    private inner class Snapshot(val entries: List<Entry<T>>) {
+        val root: Node? = if (entries.isEmpty()) null else buildTrie(entries)
+
+        private val cache = object : LinkedHashMap<String, List<T>>(16, 0.75f, true) {
+            override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, List<T>>?): Boolean {
+                return size > cacheSize
+            }
+        }
+
+        fun cached(key: String): List<T>? {
+            if (cacheSize <= 0) return null
+            return synchronized(cache) { cache[key] }
+        }
+
+        fun store(key: String, result: List<T>) {
+            if (cacheSize <= 0) return
+            synchronized(cache) { cache[key] = result }
+        }
+
+        fun clearCache() {
+            synchronized(cache) { cache.clear() }
+        }
+    }
+
+    @Volatile
+    private var snapshot = Snapshot(emptyList())
+
+    val size: Int
+        get() = snapshot.entries.size
+
+    /**
+     * 用新的应用列表替换整个索引，列表顺序作为同分时的次序
+     */
+    fun replaceAll(items: Collection<T>) {
+        val entries = items.map { createEntry(it) }
+        synchronized(this) {
+            snapshot = Snapshot(entries)
+        }
+    }
+
+    /**
+     * 应用安装或更新：替换该包名下的全部条目；[items] 为空时等同于 [remove]
+     */
+    fun update(packageName: String, items: Collection<T>) {
+        val created = items.map { createEntry(it) }
+        synchronized(this) {
+            val kept = snapshot.entries.filter { it.packageName != packageName }
+            snapshot = Snapshot(kept + created)
+        }
+    }
+
+    /**
+     * 应用卸载：移除该包名下的全部条目
+     */
+    fun remove(packageName: String) {
+        synchronized(this) {
+            val current = snapshot.entries
+            if (current.none { it.packageName == packageName }) return
+            snapshot = Snapshot(current.filter { it.packageName != packageName })
+        }
+    }
+
+    fun clearCache() {
+        snapshot.clearCache()
+    }
+
+    /**
+     * 按得分从高到低返回最多 [limit] 个应用；查询归一化后为空时返回空列表
+     */
+    fun search(query: String, limit: Int = DEFAULT_LIMIT): List<T> {
+        val key = normalize(query)
+        if (key.isEmpty() || limit <= 0) return emptyList()
+
+        val current = snapshot
+        val cacheKey = "$limit:$key"
+        current.cached(cacheKey)?.let { return it }
+
+        val result = query(current, key, limit)
+        current.store(cacheKey, result)
+        return result
+    }
+
+    private fun query(snapshot: Snapshot, key: String, limit: Int): List<T> {
+        val root = snapshot.root ?: return emptyList()
+        val entries = snapshot.entries
+        val collector = Collector(entries.size)
+
+        // 1. 精确前缀：节点上已按分数排好
+        var node: Node? = root
+        for (c in key) {
+            node = node?.child(c)
+            if (node == null) break
+        }
+        if (node != null) {
+            collect(node, 0, collector)
+            for (i in node.exactIds.indices) {
+                collector.offer(node.exactIds[i], node.exactScores[i] + EXACT_BONUS)
+            }
+        }
+
+        // 2. 容错匹配
+        if (collector.count < limit && key.length >= FUZZY_MIN_LENGTH) {
+            val maxEdits = if (key.length >= FUZZY_TWO_EDITS_LENGTH) 2 else 1
+            val firstRow = IntArray(key.length + 1) { it }
+            fuzzy(root, key, null, firstRow, '\u0000', 0, maxEdits, collector)
+        }
+
+        // 3. 名称包含
+        if (collector.count < limit) {
+            for (id in entries.indices) {
+                if (entries[id].label.contains(key)) collector.offer(id, SCORE_CONTAINS)
+            }
+        }
+
+        val ranked = ArrayList<Int>(collector.count)
+        for (i in 0 until collector.count) ranked.add(collector.touched[i])
+        ranked.sortWith(compareByDescending<Int> { collector.best[it] }.thenBy { it })
+        return ranked.take(limit).map { entries[it].item }
+    }
+
+    private fun collect(node: Node, penalty: Int, collector: Collector) {
+        for (i in node.ids.indices) {
+            collector.offer(node.ids[i], node.scores[i] - penalty)
+        }
+    }
+
+    /**
+     * 沿前缀树逐层计算编辑距离矩阵的一行，行内最小值超过 [maxEdits] 的分支直接剪掉
+     *
+     * 查询已整体匹配到某个节点（距离不超过 [maxEdits]）时取该节点的子树结果，不再向下展开。
+     * 为避免短前缀靠删除字符匹配，节点深度需不小于查询长度，或恰好是某个检索键的结尾。
+     */
+    private fun fuzzy(
+        node: Node,
+        key: String,
+        previousRow: IntArray?,
+        row: IntArray,
+        lastChar: Char,
+        depth: Int,
+        maxEdits: Int,
+        collector: Collector
+    ) {
+        val length = key.length
+        for (index in node.keys.indices) {
+            val c = node.keys[index]
+            val child = node.children[index] ?: continue
+            val next = IntArray(length + 1)
+            next[0] = row[0] + 1
+            var rowMin = next[0]
+            for (j in 1..length) {
+                val cost = if (key[j - 1] == c) 0 else 1
+                var value = minOf(row[j] + 1, next[j - 1] + 1, row[j - 1] + cost)
+                // 相邻两字符交换算一次编辑
+                if (previousRow != null && j > 1 && key[j - 1] == lastChar && key[j - 2] == c) {
+                    value = minOf(value, previousRow[j - 2] + 1)
+                }
+                next[j] = value
+                if (value < rowMin) rowMin = value
+            }
+
+            val distance = next[length]
+            if (distance <= maxEdits && (depth + 1 >= length || child.exactIds.isNotEmpty())) {
+                collect(child, distance * EDIT_PENALTY, collector)
+                for (i in child.exactIds.indices) {
+                    collector.offer(child.exactIds[i], child.exactScores[i] - distance * EDIT_PENALTY)
+                }
+                continue
+            }
+            if (rowMin <= maxEdits) {
+                fuzzy(child, key, row, next, c, depth + 1, maxEdits, collector)
+            }
+        }
+    }
+
+    private fun createEntry(item: T): Entry<T> {
+        val label = labelOf(item)
+        val packageName = packageOf(item)
+        val tokens = HashMap<String, Int>()
+        val add = { token: String, score: Int ->
+            val text = token.take(MAX_TOKEN_LENGTH)
+            if (text.isNotEmpty()) {
+                val value = score - text.length / LENGTH_PENALTY_DIVISOR
+                val existing = tokens[text]
+                if (existing == null || value > existing) tokens[text] = value
+            }
+        }
+
+        val words = splitWords(label)
+        addSuffixes(words.map { it.text }, SCORE_LABEL, SCORE_LABEL_WORD, add)
+
+        val hasCjk = words.any { it.readings != null }
+        val variants = if (hasCjk) pinyinVariants(words) else listOf(words.map { it.text })
+        for (variant in variants) {
+            if (hasCjk) addSuffixes(variant, SCORE_PINYIN, SCORE_PINYIN_WORD, add)
+            if (hasCjk || words.size >= 2) {
+                addSuffixes(variant.map { it.take(1) }, SCORE_INITIALS, SCORE_INITIALS_WORD, add)
+            }
+        }
+
+        for (part in packageName.lowercase().split('.', '_', '-')) {
+            if (part.length >= 2 && part !in IGNORED_PACKAGE_PARTS) add(part, SCORE_PACKAGE)
+        }
+
+        val keys = tokens.keys.toTypedArray()
+        return Entry(
+            item = item,
+            packageName = packageName,
+            label = normalize(label),
+            tokens = keys,
+            scores = IntArray(keys.size) { tokens.getValue(keys[it]) }
+        )
+    }
+
+    /**
+     * 从第 0 个词开始的是整体匹配，从后面的词开始的依次降分
+     */
+    private fun addSuffixes(parts: List<String>, fullScore: Int, wordScore: Int, add: (String, Int) -> Unit) {
+        if (parts.isEmpty()) return
+        val builder = StringBuilder()
+        for (start in parts.indices.reversed()) {
+            builder.insert(0, parts[start])
+            if (builder.length > MAX_TOKEN_LENGTH) builder.setLength(MAX_TOKEN_LENGTH)
+            val score = if (start == 0) fullScore else wordScore - start * WORD_POSITION_PENALTY
+            add(builder.toString(), score)
+        }
+    }
+
+    private fun splitWords(label: String): List<Word> {
+        val words = mutableListOf<Word>()
+        var i = 0
+        while (i < label.length) {
+            val c = label[i]
+            when {
+                TextTokenizer.isCjk(c) -> {
+                    val readings = readingsOf(c)
+                    words.add(Word(c.toString(), if (readings.isEmpty()) null else readings))
+                    i++
+                }
+                Character.isLetterOrDigit(c) -> {
+                    val start = i
+                    i++
+                    // 驼峰处切开，例如 WeChat -> we、chat
+                    while (i < label.length && Character.isLetterOrDigit(label[i]) && !TextTokenizer.isCjk(label[i]) &&
+                        !(Character.isUpperCase(label[i]) && Character.isLowerCase(label[i - 1]))
+                    ) {
+                        i++
+                    }
+                    words.add(Word(label.substring(start, i).lowercase(), null))
+                }
+                else -> i++
+            }
+        }
+        return words
+    }
+
+    /**
+     * 多音字的读法组合，第一种总是每个字取最常用读法
+     */
+    private fun pinyinVariants(words: List<Word>): List<List<String>> {
+        var variants = listOf(emptyList<String>())
+        for (word in words) {
+            val options = word.readings ?: arrayOf(word.text)
+            val next = ArrayList<List<String>>(MAX_PINYIN_VARIANTS)
+            for (option in options) {
+                for (variant in variants) {
+                    if (next.size >= MAX_PINYIN_VARIANTS) break
+                    next.add(variant + option)
+                }
+            }
+            variants = next
+        }
+        return variants
+    }
+
+    private fun buildTrie(entries: List<Entry<T>>): Node {
+        val root = BuildNode()
+        entries.forEachIndexed { id, entry ->
+            for (t in entry.tokens.indices) {
+                val token = entry.tokens[t]
+                val score = entry.scores[t]
+                var node = root
+                for (c in token) {
+                    val children = node.children ?: HashMap<Char, BuildNode>(4).also { node.children = it }
+                    node = children.getOrPut(c) { BuildNode() }
+                    keepBest(node.best, id, score)
+                }
+                keepBest(node.exact ?: HashMap<Int, Int>(2).also { node.exact = it }, id, score)
+            }
+        }
+        return freeze(root)
+    }
+
+    private fun keepBest(map: HashMap<Int, Int>, id: Int, score: Int) {
+        val existing = map[id]
+        if (existing == null || score > existing) map[id] = score
+    }
+
+    private fun freeze(node: BuildNode): Node {
+        val keys = node.children?.keys?.sorted()?.toCharArray() ?: CharArray(0)
+        val children = arrayOfNulls<Node>(keys.size)
+        keys.forEachIndexed { index, c -> children[index] = freeze(node.children!!.getValue(c)) }
+
+        val hits = node.best.entries
+            .sortedWith(compareByDescending<Map.Entry<Int, Int>> { it.value }.thenBy { it.key })
+            .take(MAX_NODE_HITS)
+        val exact = node.exact?.entries?.toList().orEmpty()
+        return Node(
+            keys = keys,
+            children = children,
+            ids = IntArray(hits.size) { hits[it].key },
+            scores = IntArray(hits.size) { hits[it].value },
+            exactIds = IntArray(exact.size) { exact[it].key },
+            exactScores = IntArray(exact.size) { exact[it].value }
+        )
+    }
+}
@@ -0,0 +1,453 @@
+package com.example.aifloatingball.search
+
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.IOException
+import java.util.PriorityQueue
+import java.util.TreeMap
+import kotlin.math.ln
+
+/**
+ * 增量维护的倒排索引，按 BM25 排序并返回命中位置
+ *
+ * 文档由若干字段组成，每个字段有自己的权重；[pinyinFields] 中为 true 的字段额外索引拼音首字母。
+ * 查询中的每个检索单元都必须命中（与原先的 contains 语义接近），拉丁单词按前缀匹配。
+ * 标点、单词中间的片段等与分词对不齐的查询在索引里查不到，调用方应在没有结果时用 [scan] 逐条匹配。
+ *
+ * 索引只依赖 JDK 和 pinyin4j，可直接在 JVM 单元测试中使用。
+ */
+class FullTextIndex(
+    private val fieldWeights: FloatArray,
+    private val pinyinFields: BooleanArray
+) {
+
+    companion object {
+        private const val MAGIC = 0x46544958 // "FTIX"
+        private const val FORMAT_VERSION = 1
+
+        private const val K1 = 1.2f
+        private const val B = 0.75f
+
+        // 每个倒排项最多记录的命中位置数，够高亮用即可
+        private const val MAX_OFFSETS_PER_POSTING = 8
+        // 前缀查询最多展开的词条数
+        private const val MAX_PREFIX_EXPANSION = 64
+
+        /**
+         * 根据字段内容计算文档版本，内容不变版本就不变
+         */
+        fun versionOf(fields: List<String?>): Long {
+            var hash = 1125899906842597L
+            fields.forEach { field ->
+                hash = 31 * hash + (field?.hashCode() ?: 0)
+                hash = 31 * hash + (field?.length ?: -1)
+            }
+            return hash
+        }
+
+        /**
+         * 计算一组文档的指纹（与顺序无关），用于判断持久化的索引是否与数据一致
+         */
+        fun fingerprintOf(documents: Collection<Document>): Long {
+            var fingerprint = 0L
+            documents.forEach { fingerprint = fingerprint xor mix(it.id, it.version) }
+            return fingerprint
+        }
+
+        private fun mix(id: String, version: Long): Long {
+            var h = id.hashCode().toLong() * -7046029254386353131L + version
+            h = (h xor (h ushr 33)) * -49064778989728563L
+            return h xor (h ushr 33)
+        }
+
+        /**
+         * 不经过索引、按子串（忽略大小写）逐条匹配，保持文档原有顺序
+         *
+         * 用于索引查不到结果时兜底，命中位置同样可用于高亮。
+         */
+        fun scan(query: String, documents: Iterable<Document>, limit: Int = Int.MAX_VALUE): List<Hit> {
+            if (query.isBlank() || limit <= 0) return emptyList()
+            val hits = mutableListOf<Hit>()
+            for (document in documents) {
+                val matches = mutableListOf<MatchRange>()
+                document.fields.forEachIndexed { field, text ->
+                    if (text == null) return@forEachIndexed
+                    var start = text.indexOf(query, ignoreCase = true)
+                    while (start >= 0 && matches.size < MAX_OFFSETS_PER_POSTING) {
+                        matches.add(MatchRange(field, start, start + query.length))
+                        start = text.indexOf(query, start + query.length, ignoreCase = true)
+                    }
+                }
+                if (matches.isEmpty()) continue
+                hits.add(Hit(document.id, 0f, matches))
+                if (hits.size >= limit) break
+            }
+            return hits
+        }
+
+        /**
+         * 从 [writeTo] 写出的数据恢复索引，格式不匹配时返回 null
+         */
+        @Throws(IOException::class)
+        fun readFrom(input: DataInputStream, fieldWeights: FloatArray, pinyinFields: BooleanArray): FullTextIndex? {
+            if (input.readInt() != MAGIC || input.readInt() != FORMAT_VERSION) return null
+            if (input.readInt() != fieldWeights.size) return null
+
+            val index = FullTextIndex(fieldWeights, pinyinFields)
+            index.fingerprint = input.readLong()
+
+            val slotCount = input.readInt()
+            for (slot in 0 until slotCount) {
+                if (!input.readBoolean()) {
+                    index.docs.add(null)
+                    index.freeSlots.add(slot)
+                    continue
+                }
+                val id = input.readUTF()
+                val version = input.readLong()
+                val length = input.readInt()
+                val termIds = IntArray(input.readInt()) { input.readInt() }
+                index.docs.add(DocEntry(id, version, length, termIds))
+                index.slotById[id] = slot
+                index.totalLength += length
+            }
+
+            val termCount = input.readInt()
+            for (termId in 0 until termCount) {
+                val term = input.readUTF()
+                val list = PostingList()
+                repeat(input.readInt()) {
+                    val slot = input.readInt()
+                    val tf = input.readFloat()
+                    val offsets = IntArray(input.readInt() * 3) { input.readInt() }
+                    list.append(slot, tf, offsets)
+                }
+                index.termTexts.add(term)
+                index.termIds[term] = termId
+                index.sortedTerms[term] = termId
+                index.postings.add(list)
+            }
+            return index
+        }
+    }
+
+    /**
+     * 待索引的文档
+     */
+    class Document(val id: String, val fields: List<String?>) {
+        val version: Long = versionOf(fields)
+    }
+
+    /**
+     * 命中位置，[field] 为字段序号，[start]/[end] 为字段文本中的字符区间
+     */
+    data class MatchRange(val field: Int, val start: Int, val end: Int)
+
+    data class Hit(val id: String, val score: Float, val matches: List<MatchRange>)
+
+    private class DocEntry(val id: String, val version: Long, val length: Int, val termIds: IntArray)
+
+    /**
+     * 一个词条的倒排列表，用平行数组存储以避免装箱
+     * 列表内顺序无意义，删除时用末尾元素填补空位
+     */
+    private class PostingList {
+        var size = 0
+        var slots = IntArray(4)
+        var tfs = FloatArray(4)
+        var offsets = arrayOfNulls<IntArray>(4)
+
+        fun append(slot: Int, tf: Float, occurrences: IntArray) {
+            if (size == slots.size) {
+                val capacity = size * 2
+                slots = slots.copyOf(capacity)
+                tfs = tfs.copyOf(capacity)
+                offsets = offsets.copyOf(capacity)
+            }
+            slots[size] = slot
+            tfs[size] = tf
+            offsets[size] = occurrences
+            size++
+        }
+
+        fun removeSlot(slot: Int) {
+            var i = 0
+            while (i < size && slots[i] != slot) i++
+            if (i == size) return
+            val last = size - 1
+            slots[i] = slots[last]
+            tfs[i] = tfs[last]
+            offsets[i] = offsets[last]
+            offsets[last] = null
+            size = last
+        }
+    }
+
+    /**
+     * 单个文档分词时对某个词条的累计
+     */
+    private class PendingPosting {
+        var tf = 0f
+        var offsets = IntArray(6)
+        var offsetCount = 0
+
+        fun addOffset(field: Int, start: Int, end: Int) {
+            if (offsetCount >= MAX_OFFSETS_PER_POSTING) return
+            val base = offsetCount * 3
+            if (base + 3 > offsets.size) {
+                offsets = offsets.copyOf(minOf(offsets.size * 2, MAX_OFFSETS_PER_POSTING * 3))
+            }
+            offsets[base] = field
+            offsets[base + 1] = start
+            offsets[base + 2] = end
+            offsetCount++
+        }
+    }
+
+    private val docs = ArrayList<DocEntry?>()
+    private val slotById = HashMap<String, Int>()
+    private val freeSlots = ArrayDeque<Int>()
+
+    private val termIds = HashMap<String, Int>()
+    private val termTexts = ArrayList<String>()
+    private val sortedTerms = TreeMap<String, Int>()
+    private val postings = ArrayList<PostingList>()
+
+    private var totalLength = 0L
+
+    /**
+     * 当前索引内容的指纹，与 [fingerprintOf] 对同一批文档的结果一致
+     */
+    @Volatile
+    var fingerprint = 0L
+        private set
+
+    val size: Int
+        @Synchronized get() = slotById.size
+
+    @Synchronized
+    fun ids(): Set<String> = HashSet(slotById.keys)
+
+    @Synchronized
+    fun contains(id: String, version: Long): Boolean {
+        val slot = slotById[id] ?: return false
+        return docs[slot]?.version == version
+    }
+
+    /**
+     * 添加或更新文档；内容未变化时直接跳过
+     */
+    @Synchronized
+    fun put(document: Document) {
+        val existing = slotById[document.id]
+        if (existing != null) {
+            if (docs[existing]?.version == document.version) return
+            removeSlot(existing)
+        }
+
+        val pending = LinkedHashMap<Int, PendingPosting>()
+        var length = 0
+        document.fields.forEachIndexed { field, text ->
+            if (text.isNullOrEmpty() || field >= fieldWeights.size) return@forEachIndexed
+            val weight = fieldWeights[field]
+            TextTokenizer.tokenize(text, pinyinFields.getOrElse(field) { false }) { term, start, end ->
+                val posting = pending.getOrPut(termIdFor(term)) { PendingPosting() }
+                posting.tf += weight
+                posting.addOffset(field, start, end)
+                length++
+            }
+        }
+
+        val slot = freeSlots.removeFirstOrNull() ?: docs.size.also { docs.add(null) }
+        pending.forEach { (termId, posting) ->
+            postings[termId].append(slot, posting.tf, posting.offsets.copyOf(posting.offsetCount * 3))
+        }
+
+        docs[slot] = DocEntry(document.id, document.version, length, pending.keys.toIntArray())
+        slotById[document.id] = slot
+        totalLength += length
+        fingerprint = fingerprint xor mix(document.id, document.version)
+    }
+
+    @Synchronized
+    fun remove(id: String) {
+        val slot = slotById[id] ?: return
+        removeSlot(slot)
+    }
+
+    @Synchronized
+    fun clear() {
+        docs.clear()
+        slotById.clear()
+        freeSlots.clear()
+        termIds.clear()
+        termTexts.clear()
+        sortedTerms.clear()
+        postings.clear()
+        totalLength = 0
+        fingerprint = 0
+    }
+
+    /**
+     * 搜索，返回按 BM25 得分降序排列的结果
+     */
+    @Synchronized
+    fun search(query: String, limit: Int = Int.MAX_VALUE): List<Hit> {
+        val liveDocs = slotById.size
+        if (liveDocs == 0 || limit <= 0) return emptyList()
+
+        // 每个检索单元展开成若干候选词条（前缀、拼音），文档命中其中任一即可
+        // 先处理文档最少的检索单元，后面的单元只需检查已命中的文档
+        val groups = TextTokenizer.queryTerms(query)
+            .map { expand(it) }
+            .sortedBy { group -> group.sumOf { postings[it].size } }
+        if (groups.isEmpty() || groups.any { it.isEmpty() }) return emptyList()
+
+        val avgLength = totalLength.toFloat() / liveDocs
+        val slotCount = docs.size
+        val scores = FloatArray(slotCount)
+        val matchedGroups = IntArray(slotCount)
+        val lengthNorms = FloatArray(slotCount)
+
+        groups.forEachIndexed { groupIndex, group ->
+            group.forEach { termId ->
+                val list = postings[termId]
+                val idf = ln(1f + (liveDocs - list.size + 0.5f) / (list.size + 0.5f))
+                for (i in 0 until list.size) {
+                    val slot = list.slots[i]
+                    // 前面的检索单元未命中的文档直接跳过
+                    if (matchedGroups[slot] < groupIndex) continue
+                    var norm = lengthNorms[slot]
+                    if (norm == 0f) {
+                        norm = K1 * (1 - B + B * (docs[slot]?.length ?: 0) / avgLength)
+                        lengthNorms[slot] = norm
+                    }
+                    val tf = list.tfs[i]
+                    scores[slot] += idf * tf * (K1 + 1) / (tf + norm)
+                    matchedGroups[slot] = groupIndex + 1
+                }
+            }
+        }
+
+        // 用小顶堆保留得分最高的 limit 个结果
+        val required = groups.size
+        val top = PriorityQueue<Int>(compareBy<Int> { scores[it] })
+        for (slot in 0 until slotCount) {
+            if (matchedGroups[slot] != required) continue
+            if (top.size < limit) {
+                top.add(slot)
+            } else if (scores[slot] > scores[top.peek()!!]) {
+                top.poll()
+                top.add(slot)
+            }
+        }
+
+        val ranked = ArrayList<Int>(top.size)
+        while (top.isNotEmpty()) ranked.add(top.poll()!!)
+        ranked.reverse()
+        val matches = collectMatches(ranked, groups)
+        return ranked.map { slot ->
+            Hit(docs[slot]!!.id, scores[slot], matches[slot].orEmpty())
+        }
+    }
+
+    /**
+     * 把索引写入输出流
+     */
+    @Synchronized
+    @Throws(IOException::class)
+    fun writeTo(output: DataOutputStream) {
+        output.writeInt(MAGIC)
+        output.writeInt(FORMAT_VERSION)
+        output.writeInt(fieldWeights.size)
+        output.writeLong(fingerprint)
+
+        output.writeInt(docs.size)
+        docs.forEach { doc ->
+            output.writeBoolean(doc != null)
+            if (doc != null) {
+                output.writeUTF(doc.id)
+                output.writeLong(doc.version)
+                output.writeInt(doc.length)
+                output.writeInt(doc.termIds.size)
+                doc.termIds.forEach { output.writeInt(it) }
+            }
+        }
+
+        output.writeInt(termTexts.size)
+        termTexts.forEachIndexed { termId, term ->
+            output.writeUTF(term)
+            val list = postings[termId]
+            output.writeInt(list.size)
+            for (i in 0 until list.size) {
+                val occurrences = list.offsets[i] ?: IntArray(0)
+                output.writeInt(list.slots[i])
+                output.writeFloat(list.tfs[i])
+                output.writeInt(occurrences.size / 3)
+                occurrences.forEach { output.writeInt(it) }
+            }
+        }
+    }
+
+    // ==================== 内部实现 ====================
+
+    private fun termIdFor(term: String): Int {
+        return termIds.getOrPut(term) {
+            val id = termTexts.size
+            termTexts.add(term)
+            sortedTerms[term] = id
+            postings.add(PostingList())
+            id
+        }
+    }
+
+    private fun expand(queryTerm: TextTokenizer.QueryTerm): List<Int> {
+        val result = LinkedHashSet<Int>()
+        if (queryTerm.prefix) {
+            val tail = sortedTerms.subMap(queryTerm.term, true, queryTerm.term + Char.MAX_VALUE, false)
+            for (termId in tail.values) {
+                if (result.size >= MAX_PREFIX_EXPANSION) break
+                if (postings[termId].size > 0) result.add(termId)
+            }
+        } else {
+            termIds[queryTerm.term]?.let { if (postings[it].size > 0) result.add(it) }
+        }
+        if (queryTerm.pinyinAlternative) {
+            termIds[TextTokenizer.PINYIN_PREFIX + queryTerm.term]?.let {
+                if (postings[it].size > 0) result.add(it)
+            }
+        }
+        return result.toList()
+    }
+
+    /**
+     * 为最终结果收集命中位置，每个倒排列表只扫描一遍
+     */
+    private fun collectMatches(slots: List<Int>, groups: List<List<Int>>): Map<Int, List<MatchRange>> {
+        val matches = HashMap<Int, LinkedHashSet<MatchRange>>(slots.size * 2)
+        slots.forEach { matches[it] = LinkedHashSet() }
+        groups.forEach { group ->
+            group.forEach { termId ->
+                val list = postings[termId]
+                for (i in 0 until list.size) {
+                    val ranges = matches[list.slots[i]] ?: continue
+                    val occurrences = list.offsets[i] ?: continue
+                    for (base in occurrences.indices step 3) {
+                        ranges.add(MatchRange(occurrences[base], occurrences[base + 1], occurrences[base + 2]))
+                    }
+                }
+            }
+        }
+        return matches.mapValues { (_, ranges) -> ranges.sortedWith(compareBy({ it.field }, { it.start })) }
+    }
+
+    private fun removeSlot(slot: Int) {
+        val doc = docs[slot] ?: return
+        doc.termIds.forEach { termId -> postings[termId].removeSlot(slot) }
+        docs[slot] = null
+        slotById.remove(doc.id)
+        freeSlots.add(slot)
+        totalLength -= doc.length
+        fingerprint = fingerprint xor mix(doc.id, doc.version)
+    }
+}
@@ -0,0 +1,234 @@
+package com.example.aifloatingball.search
+
+/**
+ * 基于 MinHash 签名和 LSH 分桶的内容相似度索引
+ *
+ * 文本先切成字符片段（中文取相邻两字，拉丁单词取 3 字符窗口），再压缩成 [NUM_HASHES] 个最小哈希值。
+ * 两个签名对应位置相等的比例即为 Jaccard 相似度的估计值。
+ * 签名按 [BANDS] 个分段分桶，至少有一段完全相同的文档才作为候选，避免与全部文档逐一比较。
+ *
+ * 只依赖 JDK，可直接在 JVM 单元测试中使用。
+ */
+class MinHashLshIndex {
+
+    companion object {
+        const val NUM_HASHES = 64
+        private const val BANDS = 32
+        private const val ROWS = NUM_HASHES / BANDS
+
+        /**
+         * 低于该相似度时 LSH 的召回率明显下降，改为对全部签名直接比较
+         * 32 段 × 2 行的理论阈值约为 (1/32)^(1/2) ≈ 0.18
+         */
+        const val MIN_LSH_THRESHOLD = 0.2f
+
+        private val SEEDS = LongArray(NUM_HASHES) { i ->
+            var z = (i + 1) * -7046029254386353131L
+            z = (z xor (z ushr 30)) * -4658895280553007687L
+            z = (z xor (z ushr 27)) * -7723592293110705685L
+            z xor (z ushr 31)
+        }
+
+        /**
+         * 计算文本的 MinHash 签名，没有可用字符时返回 null
+         */
+        fun signatureOf(text: String): IntArray? {
+            val shingles = shinglesOf(text)
+            if (shingles.isEmpty()) return null
+
+            val signature = IntArray(NUM_HASHES) { Int.MAX_VALUE }
+            shingles.forEach { shingle ->
+                for (i in 0 until NUM_HASHES) {
+                    val h = hash(shingle, SEEDS[i])
+                    if (h < signature[i]) signature[i] = h
+                }
+            }
+            return signature
+        }
+
+        /**
+         * 估计两个签名对应文本的 Jaccard 相似度
+         */
+        fun similarity(a: IntArray, b: IntArray): Float {
+            if (a.size != b.size) return 0f
+            var equal = 0
+            for (i in a.indices) {
+                if (a[i] == b[i]) equal++
+            }
+            return equal.toFloat() / a.size
+        }
+
+        private fun shinglesOf(text: String): Set<Int> {
+            val shingles = HashSet<Int>()
+            val length = text.length
+            var i = 0
+            while (i < length) {
+                val c = text[i]
+                when {
+                    TextTokenizer.isCjk(c) -> {
+                        val start = i
+                        while (i < length && TextTokenizer.isCjk(text[i])) i++
+                        if (i - start == 1) {
+                            shingles.add(c.code)
+                        } else {
+                            for (k in start until i - 1) {
+                                shingles.add(text[k].code * 31 + text[k + 1].code)
+                            }
+                        }
+                    }
+                    Character.isLetterOrDigit(c) -> {
+                        val start = i
+                        while (i < length && Character.isLetterOrDigit(text[i]) && !TextTokenizer.isCjk(text[i])) i++
+                        val word = text.substring(start, i).lowercase()
+                        if (word.length <= 3) {
+                            shingles.add(word.hashCode())
+                        } else {
+                            for (k in 0..word.length - 3) {
+                                shingles.add(word.substring(k, k + 3).hashCode())
+                            }
+                        }
+                    }
+                    else -> i++
+                }
+            }
+            return shingles
+        }
+
+        private fun hash(value: Int, seed: Long): Int {
+            var z = (value.toLong() xor seed) * -7046029254386353131L
+            z = (z xor (z ushr 32)) * -4658895280553007687L
+            return (z xor (z ushr 29)).toInt()
+        }
+
+        private fun bandKey(signature: IntArray, band: Int): Long {
+            var key = band.toLong()
+            for (row in 0 until ROWS) {
+                key = key * 1_000_003L + signature[band * ROWS + row]
+            }
+            return key
+        }
+    }
+
+    private val signatures = HashMap<String, IntArray>()
+    private val buckets = HashMap<Long, MutableSet<String>>()
+
+    val size: Int
+        @Synchronized get() = signatures.size
+
+    // 非空分桶数，删除文档后不应残留空桶
+    internal val bucketCount: Int
+        @Synchronized get() = buckets.size
+
+    @Synchronized
+    fun getSignature(id: String): IntArray? = signatures[id]
+
+    @Synchronized
+    fun put(id: String, signature: IntArray?) {
+        remove(id)
+        if (signature == null || signature.size != NUM_HASHES) return
+        signatures[id] = signature
+        for (band in 0 until BANDS) {
+            buckets.getOrPut(bandKey(signature, band)) { HashSet(2) }.add(id)
+        }
+    }
+
+    @Synchronized
+    fun remove(id: String) {
+        val old = signatures.remove(id) ?: return
+        for (band in 0 until BANDS) {
+            val key = bandKey(old, band)
+            val bucket = buckets[key] ?: continue
+            bucket.remove(id)
+            if (bucket.isEmpty()) buckets.remove(key)
+        }
+    }
+
+    @Synchronized
+    fun clear() {
+        signatures.clear()
+        buckets.clear()
+    }
+
+    /**
+     * 查找与指定文档相似度不低于 [threshold] 的其他文档，按相似度降序
+     */
+    @Synchronized
+    fun findSimilar(id: String, threshold: Float): List<Pair<String, Float>> {
+        val signature = signatures[id] ?: return emptyList()
+        val candidates: Collection<String> = if (threshold < MIN_LSH_THRESHOLD) {
+            signatures.keys
+        } else {
+            candidatesOf(signature)
+        }
+
+        return candidates.mapNotNull { other ->
+            if (other == id) return@mapNotNull null
+            val similarity = similarity(signature, signatures[other] ?: return@mapNotNull null)
+            if (similarity >= threshold) Pair(other, similarity) else null
+        }.sortedByDescending { it.second }
+    }
+
+    /**
+     * 把所有文档按相似度聚类（相似度不低于 [threshold] 的文档传递地归为一类）
+     *
+     * @return 每个类中的文档ID及类内相似文档对，只返回包含两个以上文档的类
+     */
+    @Synchronized
+    fun cluster(threshold: Float): List<Cluster> {
+        val parent = HashMap<String, String>()
+        fun find(x: String): String {
+            var root = x
+            while (parent[root] != null && parent[root] != root) root = parent[root]!!
+            var node = x
+            while (node != root) {
+                val next = parent[node]!!
+                parent[node] = root
+                node = next
+            }
+            return root
+        }
+
+        val pairs = mutableListOf<Triple<String, String, Float>>()
+        signatures.keys.forEach { parent[it] = it }
+        signatures.forEach { (id, signature) ->
+            val candidates: Collection<String> = if (threshold < MIN_LSH_THRESHOLD) signatures.keys else candidatesOf(signature)
+            candidates.forEach candidate@{ other ->
+                // 每对只比较一次
+                if (other <= id) return@candidate
+                val similarity = similarity(signature, signatures[other] ?: return@candidate)
+                if (similarity >= threshold) {
+                    pairs.add(Triple(id, other, similarity))
+                    val rootA = find(id)
+                    val rootB = find(other)
+                    if (rootA != rootB) parent[rootA] = rootB
+                }
+            }
+        }
+
+        val members = HashMap<String, LinkedHashSet<String>>()
+        pairs.forEach { (a, b, _) ->
+            val ids = members.getOrPut(find(a)) { LinkedHashSet() }
+            ids.add(a)
+            ids.add(b)
+        }
+        val pairsByRoot = pairs.groupBy { find(it.first) }
+        return members.map { (root, ids) -> Cluster(ids.toList(), pairsByRoot[root].orEmpty()) }
+            .sortedByDescending { it.ids.size }
+    }
+
+    /**
+     * 一个相似内容聚类
+     *
+     * @param ids 类中的文档ID
+     * @param pairs 类内相似度达到阈值的文档对及其相似度
+     */
+    data class Cluster(val ids: List<String>, val pairs: List<Triple<String, String, Float>>)
+
+    private fun candidatesOf(signature: IntArray): Set<String> {
+        val candidates = HashSet<String>()
+        for (band in 0 until BANDS) {
+            buckets[bandKey(signature, band)]?.let { candidates.addAll(it) }
+        }
+        return candidates
+    }
+}
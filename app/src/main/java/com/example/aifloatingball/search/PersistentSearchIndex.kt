@@ -0,0 +1,277 @@
+package com.example.aifloatingball.search
+
+import android.util.Log
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+
+/**
+ * 带持久化的 [FullTextIndex]
+ *
+ * 启动时优先读取磁盘上的索引快照，快照指纹与当前数据不一致时只修正有变化的文档；
+ * 增删改后在后台延迟保存快照，连续修改只写一次。
+ *
+ * 数据分散在许多文件里（例如每个会话一个文件）时用 [openSources] 打开：快照里记录每个来源的版本戳，
+ * 打开时只读取版本戳有变化的来源，不必为了核对而读取全部数据。
+ */
+class PersistentSearchIndex(
+    private val indexFile: File,
+    private val fieldWeights: FloatArray,
+    private val pinyinFields: BooleanArray
+) {
+
+    companion object {
+        private const val TAG = "PersistentSearchIndex"
+        private const val SAVE_DELAY_MS = 2000L
+        // 快照开头的来源版本戳表；旧快照没有这部分，直接以索引数据开头
+        private const val SOURCES_MAGIC = 0x46545352 // "FTSR"
+
+        // 所有索引共用一个后台线程保存快照
+        private val saveExecutor = Executors.newSingleThreadScheduledExecutor { runnable ->
+            Thread(runnable, "search-index-writer").apply { isDaemon = true }
+        }
+    }
+
+    @Volatile
+    private var index: FullTextIndex? = null
+    private var pendingSave: ScheduledFuture<*>? = null
+    // 来源 -> 索引中该来源的内容对应的版本戳，只在 [openSources] 方式下使用
+    private val sourceStamps = HashMap<String, Long>()
+
+    /**
+     * 打开索引：读取快照并与当前文档核对，不一致的部分增量修正
+     */
+    @Synchronized
+    fun open(documents: Collection<FullTextIndex.Document>): FullTextIndex {
+        index?.let { return it }
+
+        val startTime = System.currentTimeMillis()
+        val opened = readSnapshot() ?: FullTextIndex(fieldWeights, pinyinFields)
+        reconcile(opened, documents)
+        Log.d(TAG, "打开索引 ${indexFile.name}: ${opened.size} 条, 耗时 ${System.currentTimeMillis() - startTime}ms")
+        index = opened
+        return opened
+    }
+
+    /**
+     * 按来源打开索引：读取快照，只重新读取版本戳与快照记录不同的来源并修正其中的文档
+     *
+     * @param stamps 当前每个来源的版本戳
+     * @param sourceOf 由文档ID得出所属来源
+     * @param load 读取一个来源的全部文档
+     */
+    @Synchronized
+    fun openSources(
+        stamps: Map<String, Long>,
+        sourceOf: (String) -> String,
+        load: (String) -> Collection<FullTextIndex.Document>
+    ): FullTextIndex {
+        index?.let { return it }
+
+        val startTime = System.currentTimeMillis()
+        val opened = readSnapshot() ?: FullTextIndex(fieldWeights, pinyinFields)
+        val loaded = reconcileSources(opened, stamps, sourceOf, load)
+        Log.d(TAG, "打开索引 ${indexFile.name}: ${opened.size} 条, 读取 $loaded/${stamps.size} 个来源, 耗时 ${System.currentTimeMillis() - startTime}ms")
+        index = opened
+        return opened
+    }
+
+    /**
+     * 按来源打开的索引在数据被整体重新加载后调用，只修正版本戳有变化的来源
+     */
+    @Synchronized
+    fun syncSources(
+        stamps: Map<String, Long>,
+        sourceOf: (String) -> String,
+        load: (String) -> Collection<FullTextIndex.Document>
+    ) {
+        val current = index ?: return
+        reconcileSources(current, stamps, sourceOf, load)
+    }
+
+    /**
+     * @return 重新读取的来源数
+     */
+    private fun reconcileSources(
+        target: FullTextIndex,
+        stamps: Map<String, Long>,
+        sourceOf: (String) -> String,
+        load: (String) -> Collection<FullTextIndex.Document>
+    ): Int {
+        val idsBySource = target.ids().groupBy(sourceOf)
+        var changed = 0
+        var removed = 0
+        // 已经不存在的来源
+        idsBySource.forEach { (source, ids) ->
+            if (source !in stamps) {
+                ids.forEach { target.remove(it) }
+                removed += ids.size
+            }
+        }
+        val stale = stamps.filter { (source, stamp) -> sourceStamps[source] != stamp }
+        stale.forEach { (source, stamp) ->
+            val existing = idsBySource[source].orEmpty().toMutableSet()
+            load(source).forEach { document ->
+                existing.remove(document.id)
+                if (!target.contains(document.id, document.version)) {
+                    target.put(document)
+                    changed++
+                }
+            }
+            existing.forEach { target.remove(it) }
+            removed += existing.size
+            sourceStamps[source] = stamp
+        }
+        sourceStamps.keys.retainAll(stamps.keys)
+        if (changed > 0 || removed > 0 || stale.isNotEmpty()) {
+            Log.d(TAG, "索引 ${indexFile.name} 已修正: 读取 ${stale.size} 个来源, 更新 $changed 条, 删除 $removed 条")
+            scheduleSave(target)
+        }
+        return stale.size
+    }
+
+    /**
+     * 外部数据被整体重新加载后调用，只修正有变化的文档
+     */
+    @Synchronized
+    fun sync(documents: Collection<FullTextIndex.Document>) {
+        val current = index ?: return
+        reconcile(current, documents)
+    }
+
+    private fun reconcile(target: FullTextIndex, documents: Collection<FullTextIndex.Document>) {
+        if (target.fingerprint == FullTextIndex.fingerprintOf(documents) && target.size == documents.size) {
+            return
+        }
+        val stale = target.ids().toMutableSet()
+        var changed = 0
+        documents.forEach { document ->
+            stale.remove(document.id)
+            if (!target.contains(document.id, document.version)) {
+                target.put(document)
+                changed++
+            }
+        }
+        stale.forEach { target.remove(it) }
+        Log.d(TAG, "索引 ${indexFile.name} 已修正: 更新 $changed 条, 删除 ${stale.size} 条")
+        scheduleSave(target)
+    }
+
+    fun isOpen(): Boolean = index != null
+
+    fun put(document: FullTextIndex.Document) {
+        val current = index ?: return
+        current.put(document)
+        scheduleSave(current)
+    }
+
+    /**
+     * 写入文档并记下所属来源写入后的版本戳，来源中的其他变化必须已经同步到索引
+     */
+    @Synchronized
+    fun put(document: FullTextIndex.Document, source: String, stamp: Long) {
+        val current = index ?: return
+        current.put(document)
+        sourceStamps[source] = stamp
+        scheduleSave(current)
+    }
+
+    fun remove(id: String) {
+        val current = index ?: return
+        current.remove(id)
+        scheduleSave(current)
+    }
+
+    /**
+     * 删除一个来源的全部文档，不必读取来源的内容
+     */
+    @Synchronized
+    fun removeSource(source: String, sourceOf: (String) -> String) {
+        val current = index ?: return
+        current.ids().filter { sourceOf(it) == source }.forEach { current.remove(it) }
+        sourceStamps.remove(source)
+        scheduleSave(current)
+    }
+
+    @Synchronized
+    fun clear() {
+        val current = index ?: return
+        current.clear()
+        sourceStamps.clear()
+        scheduleSave(current)
+    }
+
+    fun search(query: String, limit: Int = Int.MAX_VALUE): List<FullTextIndex.Hit> {
+        return index?.search(query, limit) ?: emptyList()
+    }
+
+    @Synchronized
+    private fun scheduleSave(target: FullTextIndex) {
+        pendingSave?.cancel(false)
+        pendingSave = saveExecutor.schedule({ writeSnapshot(target) }, SAVE_DELAY_MS, TimeUnit.MILLISECONDS)
+    }
+
+    /**
+     * 读取快照，同时恢复快照中记录的来源版本戳
+     */
+    private fun readSnapshot(): FullTextIndex? {
+        if (!indexFile.exists()) return null
+        return try {
+            DataInputStream(BufferedInputStream(FileInputStream(indexFile), 64 * 1024)).use { input ->
+                val stamps = HashMap<String, Long>()
+                input.mark(4)
+                if (input.readInt() == SOURCES_MAGIC) {
+                    repeat(input.readInt()) {
+                        val source = input.readUTF()
+                        stamps[source] = input.readLong()
+                    }
+                } else {
+                    input.reset()
+                }
+                FullTextIndex.readFrom(input, fieldWeights, pinyinFields)?.also {
+                    sourceStamps.clear()
+                    sourceStamps.putAll(stamps)
+                }
+            }
+        } catch (e: Exception) {
+            Log.w(TAG, "索引快照损坏，将重建: ${indexFile.name}", e)
+            null
+        }
+    }
+
+    private fun writeSnapshot(target: FullTextIndex) {
+        val tempFile = File(indexFile.parentFile, indexFile.name + ".tmp")
+        try {
+            indexFile.parentFile?.mkdirs()
+            FileOutputStream(tempFile).use { output ->
+                val data = DataOutputStream(BufferedOutputStream(output, 64 * 1024))
+                // 版本戳和索引内容要对应，写入期间不允许修改
+                synchronized(this) {
+                    data.writeInt(SOURCES_MAGIC)
+                    data.writeInt(sourceStamps.size)
+                    sourceStamps.forEach { (source, stamp) ->
+                        data.writeUTF(source)
+                        data.writeLong(stamp)
+                    }
+                    target.writeTo(data)
+                }
+                data.flush()
+                output.fd.sync()
+            }
+            if (!tempFile.renameTo(indexFile)) {
+                indexFile.delete()
+                tempFile.renameTo(indexFile)
+            }
+        } catch (e: Exception) {
+            Log.e(TAG, "保存索引快照失败: ${indexFile.name}", e)
+            tempFile.delete()
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.example.aifloatingball.search
+
+import net.sourceforge.pinyin4j.PinyinHelper
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * 全文检索分词器
+ *
+ * - 拉丁字母/数字：按连续片段切成单词并转小写
+ * - 中文：输出单字和相邻两字的二元词条，二元词条用于多字查询，单字用于单字查询
+ * - 拼音首字母：可选，为中文片段输出长度 2~[MAX_INITIALS] 的首字母 n-gram，词条带 [PINYIN_PREFIX] 前缀
+ *
+ * 每个词条都带有在原文中的起止位置，用于搜索结果高亮。
+ */
+object TextTokenizer {
+
+    const val PINYIN_PREFIX = "py:"
+    const val MIN_INITIALS = 2
+    const val MAX_INITIALS = 6
+
+    /**
+     * 查询中的一个检索单元
+     *
+     * @param term 词条文本
+     * @param prefix 是否按前缀匹配（拉丁单词边输入边搜索）
+     * @param pinyinAlternative 同时尝试作为拼音首字母匹配
+     */
+    data class QueryTerm(
+        val term: String,
+        val prefix: Boolean,
+        val pinyinAlternative: Boolean
+    )
+
+    fun interface TokenConsumer {
+        fun accept(term: String, start: Int, end: Int)
+    }
+
+    // pinyin4j 查表较慢，按字缓存首字母
+    private val initialCache = ConcurrentHashMap<Char, Char>()
+    private const val NO_INITIAL = '\u0000'
+
+    fun isCjk(c: Char): Boolean {
+        return Character.UnicodeScript.of(c.code) == Character.UnicodeScript.HAN
+    }
+
+    private fun isWordChar(c: Char): Boolean {
+        return Character.isLetterOrDigit(c) && !isCjk(c)
+    }
+
+    /**
+     * 对索引文本分词
+     */
+    fun tokenize(text: String, withPinyin: Boolean, consumer: TokenConsumer) {
+        val length = text.length
+        var i = 0
+        while (i < length) {
+            val c = text[i]
+            when {
+                isCjk(c) -> {
+                    val start = i
+                    while (i < length && isCjk(text[i])) i++
+                    emitCjkRun(text, start, i, withPinyin, consumer)
+                }
+                isWordChar(c) -> {
+                    val start = i
+                    while (i < length && isWordChar(text[i])) i++
+                    consumer.accept(text.substring(start, i).lowercase(), start, i)
+                }
+                else -> i++
+            }
+        }
+    }
+
+    private fun emitCjkRun(text: String, start: Int, end: Int, withPinyin: Boolean, consumer: TokenConsumer) {
+        for (i in start until end) {
+            consumer.accept(text[i].toString(), i, i + 1)
+            if (i + 1 < end) {
+                consumer.accept(text.substring(i, i + 2), i, i + 2)
+            }
+        }
+
+        if (!withPinyin || end - start < MIN_INITIALS) return
+
+        val initials = CharArray(end - start) { initialOf(text[start + it]) }
+        for (i in initials.indices) {
+            if (initials[i] == NO_INITIAL) continue
+            val builder = StringBuilder(PINYIN_PREFIX.length + MAX_INITIALS).append(PINYIN_PREFIX)
+            var j = i
+            while (j < initials.size && j - i < MAX_INITIALS && initials[j] != NO_INITIAL) {
+                builder.append(initials[j])
+                j++
+                if (j - i >= MIN_INITIALS) {
+                    consumer.accept(builder.toString(), start + i, start + j)
+                }
+            }
+        }
+    }
+
+    /**
+     * 对查询文本分词，每个返回的检索单元都必须命中（AND 语义）
+     */
+    fun queryTerms(query: String): List<QueryTerm> {
+        val terms = mutableListOf<QueryTerm>()
+        val length = query.length
+        var i = 0
+        while (i < length) {
+            val c = query[i]
+            when {
+                isCjk(c) -> {
+                    val start = i
+                    while (i < length && isCjk(query[i])) i++
+                    if (i - start == 1) {
+                        terms.add(QueryTerm(query.substring(start, i), prefix = false, pinyinAlternative = false))
+                    } else {
+                        for (k in start until i - 1) {
+                            terms.add(QueryTerm(query.substring(k, k + 2), prefix = false, pinyinAlternative = false))
+                        }
+                    }
+                }
+                isWordChar(c) -> {
+                    val start = i
+                    while (i < length && isWordChar(query[i])) i++
+                    val word = query.substring(start, i).lowercase()
+                    val pinyin = word.length in MIN_INITIALS..MAX_INITIALS && word.all { it in 'a'..'z' }
+                    terms.add(QueryTerm(word, prefix = true, pinyinAlternative = pinyin))
+                }
+                else -> i++
+            }
+        }
+        return terms.distinct()
+    }
+
+    private fun initialOf(c: Char): Char {
+        return initialCache.getOrPut(c) {
+            try {
+                PinyinHelper.toHanyuPinyinStringArray(c)?.firstOrNull()?.firstOrNull() ?: NO_INITIAL
+            } catch (e: Exception) {
+                NO_INITIAL
+            }
+        }
+    }
+}
@@ -1,8 +1,6 @@
 package com.example.aifloatingball.service
 
 import android.app.Service
-import android.content.ClipboardManager
-import android.content.Context
 import android.content.Intent
 import android.os.Handler
 import android.os.IBinder
@@ -12,13 +10,32 @@ import com.example.aifloatingball.ClipboardDialogActivity
 import com.example.aifloatingball.SettingsManager
 
 class ClipboardMonitorService : Service() {
-    private lateinit var clipboardManager: ClipboardManager
     private lateinit var settingsManager: SettingsManager
     private var lastClipText: String? = null
     private var lastClipTime: Long = 0
     private var debounceHandler: Handler? = null
     private var debounceRunnable: Runnable? = null
 
+    private val clipboardListener = ClipboardWatcher.Listener { content, _ ->
+        if (!settingsManager.isClipboardListenerEnabled()) return@Listener
+
+        val clipText = content.trim()
+
+        // 基本检查
+        if (clipText.isEmpty() || clipText == lastClipText) return@Listener
+
+        // 取消之前的防抖任务
+        debounceRunnable?.let { debounceHandler?.removeCallbacks(it) }
+
+        // 创建新的防抖任务
+        debounceRunnable = Runnable {
+            handleClipboardChange(clipText)
+        }
+
+        // 延迟执行
+        debounceHandler?.postDelayed(debounceRunnable!!, DEBOUNCE_DELAY)
+    }
+
     companion object {
         private const val DEBOUNCE_DELAY = 1000L // 1秒防抖延迟
         private const val MIN_INTERVAL = 3000L // 最小间隔3秒
@@ -39,29 +56,10 @@ class ClipboardMonitorService : Service() {
         // 以下代码被暂时禁用
         /*
         settingsManager = SettingsManager.getInstance(this)
-        clipboardManager = getSystemService(Context.CLIPBOARD_SERVICE) as ClipboardManager
         debounceHandler = Handler(Looper.getMainLooper())
 
-        // 监听剪贴板变化
-        clipboardManager.addPrimaryClipChangedListener {
-            if (!settingsManager.isClipboardListenerEnabled()) return@addPrimaryClipChangedListener
-
-            val clipText = clipboardManager.primaryClip?.getItemAt(0)?.text?.toString()?.trim()
-
-            // 基本检查
-            if (clipText.isNullOrEmpty() || clipText == lastClipText) return@addPrimaryClipChangedListener
-
-            // 取消之前的防抖任务
-            debounceRunnable?.let { debounceHandler?.removeCallbacks(it) }
-
-            // 创建新的防抖任务
-            debounceRunnable = Runnable {
-                handleClipboardChange(clipText)
-            }
-
-            // 延迟执行
-            debounceHandler?.postDelayed(debounceRunnable!!, DEBOUNCE_DELAY)
-        }
+        // 通过 ClipboardWatcher 监听剪贴板变化，与其他服务共用监听器和去重
+        ClipboardWatcher.getInstance(this).addListener(clipboardListener)
         */
     }
 
@@ -172,6 +170,7 @@ class ClipboardMonitorService : Service() {
 
     override fun onDestroy() {
         super.onDestroy()
+        ClipboardWatcher.getInstance(this).removeListener(clipboardListener)
         // 清理防抖任务
         debounceRunnable?.let { debounceHandler?.removeCallbacks(it) }
         debounceHandler = null
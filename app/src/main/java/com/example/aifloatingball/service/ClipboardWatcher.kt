@@ -0,0 +1,316 @@
+package com.example.aifloatingball.service
+
+import android.content.ClipboardManager
+import android.content.ComponentCallbacks2
+import android.content.Context
+import android.os.Build
+import android.os.Handler
+import android.os.Looper
+import android.os.SystemClock
+import android.util.Log
+
+/**
+ * 进程内唯一的剪贴板监听入口
+ *
+ * 无障碍服务和剪贴板前台服务都通过它订阅剪贴板变化，不再各自注册监听器、各自轮询：
+ * - 系统监听器 [ClipboardManager.OnPrimaryClipChangedListener] 是主要来源，只注册一次；
+ * - 监听器还没有被证明可用时（Android 10 起后台应用通常收不到回调），用指数退避的轮询兜底，
+ *   没有变化时间隔从 [MIN_POLL_INTERVAL_MS] 逐步放宽到 [MAX_POLL_INTERVAL_MS]，一旦发现变化立即恢复最短间隔；
+ * - 监听器的可用性只在前台时成立：每次进入后台（[onTrimMemory]），或轮询、提示检查发现了监听器漏掉的变化时，
+ *   都重新开始轮询，直到监听器再次报告变化；
+ * - 无障碍事件等"可能刚复制过"的提示通过 [requestCheck] 合并成一次延迟检查，不会每个事件都排一个任务。
+ *
+ * 去重按内容摘要进行，同一内容不论从哪个来源发现都只通知一次。所有回调都在主线程。
+ * 每次唤醒都会计数，可通过 [stats] 查看每小时唤醒次数。
+ */
+class ClipboardWatcher private constructor(context: Context) {
+
+    companion object {
+        private const val TAG = "ClipboardWatcher"
+
+        const val MIN_POLL_INTERVAL_MS = 1000L
+        const val MAX_POLL_INTERVAL_MS = 60_000L
+        // 提示到达后等应用完成复制再读取
+        private const val HINT_CHECK_DELAY_MS = 300L
+        // 每隔多少次唤醒输出一次统计
+        private const val STATS_LOG_EVERY = 500L
+
+        @Volatile
+        private var INSTANCE: ClipboardWatcher? = null
+
+        fun getInstance(context: Context): ClipboardWatcher {
+            return INSTANCE ?: synchronized(this) {
+                INSTANCE ?: ClipboardWatcher(context.applicationContext).also { INSTANCE = it }
+            }
+        }
+
+        /**
+         * 由 Application 转发；界面隐藏说明应用进入后台，系统回调可能不再送达
+         */
+        @JvmStatic
+        fun onTrimMemory(level: Int) {
+            if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+                INSTANCE?.onBackground()
+            }
+        }
+    }
+
+    /**
+     * 剪贴板内容变化
+     *
+     * @param source 发现变化的来源：listener、poll 或 [requestCheck] 传入的提示来源
+     */
+    fun interface Listener {
+        fun onClipboardChanged(content: String, source: String)
+    }
+
+    /**
+     * 唤醒统计
+     *
+     * @param wakeups 监听器回调、轮询和提示检查的总次数
+     * @param reads 真正读取剪贴板文本的次数（剪贴板时间戳未变时跳过读取）
+     */
+    data class Stats(
+        val wakeups: Long,
+        val listenerEvents: Long,
+        val polls: Long,
+        val hintChecks: Long,
+        val reads: Long,
+        val changes: Long,
+        val duplicates: Long,
+        val currentPollIntervalMs: Long,
+        val listenerVerified: Boolean,
+        val elapsedMs: Long
+    ) {
+        val wakeupsPerHour: Long
+            get() = if (elapsedMs <= 0) 0 else wakeups * 3_600_000L / elapsedMs
+    }
+
+    private val clipboardManager = context.getSystemService(Context.CLIPBOARD_SERVICE) as ClipboardManager
+    private val handler = Handler(Looper.getMainLooper())
+    private val listeners = LinkedHashSet<Listener>()
+
+    private var running = false
+    private var startedAt = 0L
+    private var lastHash = 0L
+    private var lastLength = -1
+    private var lastClipTimestamp = -1L
+    private var pollInterval = MIN_POLL_INTERVAL_MS
+    // 监听器报告过轮询尚未发现的变化，说明系统回调可用，不再需要空闲轮询；进入后台或回调漏报时重置
+    private var listenerVerified = false
+    private var hintPending = false
+    private var pendingHintSource = ""
+
+    private var wakeups = 0L
+    private var listenerEvents = 0L
+    private var polls = 0L
+    private var hintChecks = 0L
+    private var reads = 0L
+    private var changes = 0L
+    private var duplicates = 0L
+
+    private val clipListener = ClipboardManager.OnPrimaryClipChangedListener {
+        listenerEvents++
+        if (check("listener")) {
+            if (!listenerVerified) Log.d(TAG, "系统剪贴板回调可用，停止空闲轮询")
+            listenerVerified = true
+            handler.removeCallbacks(pollRunnable)
+        }
+    }
+
+    private val pollRunnable = object : Runnable {
+        override fun run() {
+            polls++
+            if (check("poll")) {
+                pollInterval = MIN_POLL_INTERVAL_MS
+            } else {
+                pollInterval = (pollInterval * 2).coerceAtMost(MAX_POLL_INTERVAL_MS)
+            }
+            schedulePoll()
+        }
+    }
+
+    private val hintRunnable = Runnable {
+        hintPending = false
+        hintChecks++
+        if (check(pendingHintSource)) {
+            // 变化先被提示检查发现，监听器漏掉了它
+            resumePolling("提示检查发现监听器漏掉的变化")
+        }
+    }
+
+    /**
+     * 订阅剪贴板变化；第一个订阅者加入时开始监听，当前内容视为已知，不会通知
+     */
+    fun addListener(listener: Listener) {
+        runOnMain {
+            listeners.add(listener)
+            if (!running) start()
+        }
+    }
+
+    /**
+     * 取消订阅；最后一个订阅者离开时停止监听和轮询
+     */
+    fun removeListener(listener: Listener) {
+        runOnMain {
+            listeners.remove(listener)
+            if (listeners.isEmpty() && running) stop()
+        }
+    }
+
+    /**
+     * 提示剪贴板可能刚刚变化（例如无障碍事件），稍后检查一次；短时间内的多次提示合并为一次
+     */
+    fun requestCheck(source: String) {
+        if (!running) return
+        runOnMain {
+            pendingHintSource = source
+            if (!hintPending) {
+                hintPending = true
+                handler.postDelayed(hintRunnable, HINT_CHECK_DELAY_MS)
+            }
+        }
+    }
+
+    /**
+     * 当前剪贴板文本，读取失败时返回 null
+     */
+    fun currentContent(): String? {
+        return try {
+            val clip = clipboardManager.primaryClip
+            if (clip != null && clip.itemCount > 0) clip.getItemAt(0).text?.toString() else null
+        } catch (e: Exception) {
+            Log.e(TAG, "获取剪贴板内容失败", e)
+            null
+        }
+    }
+
+    fun stats(): Stats = Stats(
+        wakeups = wakeups,
+        listenerEvents = listenerEvents,
+        polls = polls,
+        hintChecks = hintChecks,
+        reads = reads,
+        changes = changes,
+        duplicates = duplicates,
+        currentPollIntervalMs = pollInterval,
+        listenerVerified = listenerVerified,
+        elapsedMs = if (startedAt == 0L) 0 else SystemClock.elapsedRealtime() - startedAt
+    )
+
+    private fun start() {
+        try {
+            clipboardManager.addPrimaryClipChangedListener(clipListener)
+        } catch (e: Exception) {
+            Log.e(TAG, "注册剪贴板监听器失败", e)
+        }
+        running = true
+        if (startedAt == 0L) startedAt = SystemClock.elapsedRealtime()
+        // 记下当前内容，启动前已有的内容不算变化
+        currentContent()?.let { remember(it) }
+        lastClipTimestamp = clipTimestamp()
+        pollInterval = MIN_POLL_INTERVAL_MS
+        schedulePoll()
+        Log.d(TAG, "剪贴板监听已启动")
+    }
+
+    private fun stop() {
+        running = false
+        try {
+            clipboardManager.removePrimaryClipChangedListener(clipListener)
+        } catch (e: Exception) {
+            Log.e(TAG, "移除剪贴板监听器失败", e)
+        }
+        handler.removeCallbacks(pollRunnable)
+        handler.removeCallbacks(hintRunnable)
+        hintPending = false
+        Log.d(TAG, "剪贴板监听已停止: ${stats()}")
+    }
+
+    /**
+     * 应用进入后台，系统回调可能不再送达，恢复轮询
+     */
+    private fun onBackground() {
+        runOnMain {
+            if (running) resumePolling("应用进入后台")
+        }
+    }
+
+    /**
+     * 不再信任监听器，轮询从最短间隔重新开始
+     */
+    private fun resumePolling(reason: String) {
+        if (listenerVerified) Log.d(TAG, "$reason，恢复轮询")
+        listenerVerified = false
+        pollInterval = MIN_POLL_INTERVAL_MS
+        schedulePoll()
+    }
+
+    private fun schedulePoll() {
+        handler.removeCallbacks(pollRunnable)
+        if (running && !listenerVerified) {
+            handler.postDelayed(pollRunnable, pollInterval)
+        }
+    }
+
+    /**
+     * 检查一次剪贴板，有新内容时通知订阅者并返回 true
+     */
+    private fun check(source: String): Boolean {
+        if (!running) return false
+        wakeups++
+        if (wakeups % STATS_LOG_EVERY == 0L) Log.d(TAG, "唤醒统计: ${stats()}")
+
+        // 剪贴板描述中的时间戳没变时不必读取和比较整段文本
+        val timestamp = clipTimestamp()
+        if (timestamp > 0 && timestamp == lastClipTimestamp) return false
+        lastClipTimestamp = timestamp
+
+        reads++
+        val content = currentContent()
+        if (content.isNullOrEmpty()) return false
+        if (!remember(content)) {
+            duplicates++
+            return false
+        }
+        changes++
+        Log.d(TAG, "[$source] 剪贴板变化: ${content.take(30)}${if (content.length > 30) "..." else ""}")
+        for (listener in listeners.toList()) {
+            try {
+                listener.onClipboardChanged(content, source)
+            } catch (e: Exception) {
+                Log.e(TAG, "剪贴板订阅者处理失败", e)
+            }
+        }
+        return true
+    }
+
+    /**
+     * 记录内容摘要，返回内容是否与上次不同
+     */
+    private fun remember(content: String): Boolean {
+        // 64 位 FNV-1a，避免为去重保留整段剪贴板文本
+        var hash = -0x340d631b7bdddcdbL
+        for (ch in content) {
+            hash = (hash xor ch.code.toLong()) * 0x100000001b3L
+        }
+        if (hash == lastHash && content.length == lastLength) return false
+        lastHash = hash
+        lastLength = content.length
+        return true
+    }
+
+    private fun clipTimestamp(): Long {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) return -1L
+        return try {
+            clipboardManager.primaryClipDescription?.timestamp ?: -1L
+        } catch (e: Exception) {
+            -1L
+        }
+    }
+
+    private fun runOnMain(block: () -> Unit) {
+        if (Looper.myLooper() == Looper.getMainLooper()) block() else handler.post(block)
+    }
+}
@@ -3,7 +3,6 @@ package com.example.aifloatingball.service
 import android.accessibilityservice.AccessibilityService
 import android.app.ActivityManager
 import android.content.BroadcastReceiver
-import android.content.ClipboardManager
 import android.content.Context
 import android.content.Intent
 import android.content.IntentFilter
@@ -64,20 +63,12 @@ class MyAccessibilityService : AccessibilityService() {
         }
     }
 
-    private lateinit var clipboardManager: ClipboardManager
+    private var clipboardWatcher: ClipboardWatcher? = null
     private var lastClipboardContent: String? = null
     private var lastClipboardChangeTime = 0L
     private val clipboardChangeDebounceTime = 1000L // 防抖时间：1秒
 
-    // 添加主线程Handler和定时检查机制
     private val mainHandler = Handler(Looper.getMainLooper())
-    private var periodicCheckRunnable: Runnable? = null
-    private val periodicCheckInterval = 1000L // 每1秒检查一次剪贴板（更频繁）
-
-    // 激进模式：更频繁的检查
-    private var aggressiveCheckRunnable: Runnable? = null
-    private val aggressiveCheckInterval = 200L // 每0.2秒检查一次（激进模式）
-    private var isAggressiveModeEnabled = true // 启用激进模式
 
     // 自动粘贴相关变量
     private var autoPasteReceiver: BroadcastReceiver? = null
@@ -94,28 +85,13 @@ class MyAccessibilityService : AccessibilityService() {
         val timestamp: Long = System.currentTimeMillis()
     )
 
-    // 超级激进模式（后台时启用）
-    private var superAggressiveCheckRunnable: Runnable? = null
-    private val superAggressiveCheckInterval = 50L // 每50ms检查一次（超级激进）
-    private var isSuperAggressiveModeEnabled = false
-
-    // 应用状态监控
-    private var isAppInBackground = false
-    private val backgroundCheckHandler = Handler(Looper.getMainLooper())
-    private var backgroundCheckRunnable: Runnable? = null
-
     // 服务状态监控
     private val isServiceActive = AtomicBoolean(false)
-    private var serviceStatusCheckRunnable: Runnable? = null
-    private val serviceStatusCheckInterval = 5000L // 每5秒检查服务状态
-
-    private val clipboardListener = ClipboardManager.OnPrimaryClipChangedListener {
-        val currentTime = System.currentTimeMillis()
-        val currentApp = getCurrentAppPackageName()
-        Log.d(TAG, "🔔 剪贴板监听器触发 - 时间: $currentTime, 当前应用: $currentApp, 服务状态: ${isServiceActive.get()}")
 
+    // 剪贴板变化由 ClipboardWatcher 统一发现和去重，这里只做内容过滤和通知
+    private val clipboardListener = ClipboardWatcher.Listener { content, source ->
         if (isServiceActive.get()) {
-            handleClipboardChange()
+            handleClipboardChange(content, source)
         } else {
             Log.w(TAG, "⚠️ 服务未激活，尝试重新初始化")
             reinitializeService()
@@ -131,19 +107,14 @@ class MyAccessibilityService : AccessibilityService() {
 
     private fun initializeService() {
         try {
-            clipboardManager = getSystemService(Context.CLIPBOARD_SERVICE) as ClipboardManager
-            clipboardManager.addPrimaryClipChangedListener(clipboardListener)
+            val watcher = ClipboardWatcher.getInstance(this)
+            clipboardWatcher = watcher
 
             // 初始化当前剪贴板内容
-            updateLastClipboardContent()
+            lastClipboardContent = watcher.currentContent()
 
-            // 启动定期检查机制作为备用方案
-            startPeriodicClipboardCheck()
-
-            // 启动激进模式检查（更频繁）
-            if (isAggressiveModeEnabled) {
-                startAggressiveClipboardCheck()
-            }
+            // 系统回调优先，必要时由 ClipboardWatcher 退避轮询兜底
+            watcher.addListener(clipboardListener)
 
             // 注册自动粘贴广播接收器
             registerAutoPasteReceiver()
@@ -151,16 +122,10 @@ class MyAccessibilityService : AccessibilityService() {
             // 注册指令接收器
             registerCommandReceiver()
 
-            // 启动服务状态监控
-            startServiceStatusCheck()
-
-            // 启动应用状态监控
-            startBackgroundMonitoring()
-
             // 标记服务为活跃状态
             isServiceActive.set(true)
 
-            Log.d(TAG, "✅ 无障碍服务已连接，剪贴板监听器已初始化，定期检查已启动")
+            Log.d(TAG, "✅ 无障碍服务已连接，剪贴板监听已初始化")
         } catch (e: Exception) {
             Log.e(TAG, "❌ 初始化无障碍服务失败", e)
             isServiceActive.set(false)
@@ -171,9 +136,7 @@ class MyAccessibilityService : AccessibilityService() {
         Log.d(TAG, "🔄 重新初始化无障碍服务...")
         try {
             // 清理旧的监听器
-            if (::clipboardManager.isInitialized) {
-                clipboardManager.removePrimaryClipChangedListener(clipboardListener)
-            }
+            clipboardWatcher?.removeListener(clipboardListener)
 
             // 重新初始化
             initializeService()
@@ -196,10 +159,8 @@ class MyAccessibilityService : AccessibilityService() {
                 AccessibilityEvent.TYPE_VIEW_CLICKED,
                 AccessibilityEvent.TYPE_VIEW_LONG_CLICKED,
                 AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED -> {
-                    // 这些事件可能伴随剪贴板操作，延迟检查剪贴板
-                    mainHandler.postDelayed({
-                        checkClipboardChange("accessibility_event:$eventTypeName")
-                    }, 300) // 缩短延迟时间
+                    // 这些事件可能伴随剪贴板操作，提示稍后检查；连续的事件会合并为一次检查
+                    clipboardWatcher?.requestCheck("accessibility_event:$eventTypeName")
                 }
                 else -> {
                     // 其他事件类型暂不处理
@@ -222,15 +183,12 @@ class MyAccessibilityService : AccessibilityService() {
         }
     }
 
-    private fun handleClipboardChange() {
-        checkClipboardChange("clipboard_listener")
-    }
-
     /**
-     * 检查剪贴板变化的通用方法
+     * 处理剪贴板变化
+     * @param content 新的剪贴板内容，已由 ClipboardWatcher 去重
      * @param source 触发源，用于日志标识
      */
-    private fun checkClipboardChange(source: String) {
+    private fun handleClipboardChange(content: String, source: String) {
         try {
             val currentTime = System.currentTimeMillis()
 
@@ -240,62 +198,37 @@ class MyAccessibilityService : AccessibilityService() {
                 return
             }
 
-            val currentContent = getCurrentClipboardContent()
+            if (content == lastClipboardContent) {
+                Log.d(TAG, "❌ [$source] 剪贴板内容重复")
+                return
+            }
 
             // 内容验证（调试模式下放宽条件）
-            if (currentContent != null &&
-                currentContent.isNotEmpty() &&
-                currentContent != lastClipboardContent) {
-
-                val isValid = if (DEBUG_MODE) {
-                    // 调试模式：只检查基本条件
-                    currentContent.length >= 1 && currentContent.trim().isNotEmpty()
-                } else {
-                    // 正常模式：严格验证
-                    isValidClipboardContent(currentContent) && isUserGeneratedClipboard(currentContent)
-                }
+            val isValid = if (DEBUG_MODE) {
+                // 调试模式：只检查基本条件
+                content.trim().isNotEmpty()
+            } else {
+                // 正常模式：严格验证
+                isValidClipboardContent(content) && isUserGeneratedClipboard(content)
+            }
 
-                if (isValid) {
-                    Log.d(TAG, "✅ [$source] 检测到有效的剪贴板内容变化: ${currentContent.take(50)}${if (currentContent.length > 50) "..." else ""}")
+            if (isValid) {
+                Log.d(TAG, "✅ [$source] 检测到有效的剪贴板内容变化: ${content.take(50)}${if (content.length > 50) "..." else ""}")
 
-                    // 更新时间和内容
-                    lastClipboardChangeTime = currentTime
-                    lastClipboardContent = currentContent
+                // 更新时间和内容
+                lastClipboardChangeTime = currentTime
+                lastClipboardContent = content
 
-                    // 通知DynamicIslandService展开灵动岛
-                    notifyClipboardChanged(currentContent)
-                } else {
-                    Log.d(TAG, "❌ [$source] 剪贴板内容未通过验证")
-                }
+                // 通知DynamicIslandService展开灵动岛
+                notifyClipboardChanged(content)
             } else {
-                if (currentContent == null) {
-                    Log.d(TAG, "❌ [$source] 剪贴板内容为null")
-                } else if (currentContent.isEmpty()) {
-                    Log.d(TAG, "❌ [$source] 剪贴板内容为空")
-                } else if (currentContent == lastClipboardContent) {
-                    Log.d(TAG, "❌ [$source] 剪贴板内容重复")
-                }
+                Log.d(TAG, "❌ [$source] 剪贴板内容未通过验证")
             }
         } catch (e: Exception) {
             Log.e(TAG, "[$source] 处理剪贴板变化失败", e)
         }
     }
 
-    private fun getCurrentClipboardContent(): String? {
-        return try {
-            val clipData = clipboardManager.primaryClip
-            if (clipData != null && clipData.itemCount > 0) {
-                val item = clipData.getItemAt(0)
-                item.text?.toString()
-            } else {
-                null
-            }
-        } catch (e: Exception) {
-            Log.e(TAG, "获取剪贴板内容失败", e)
-            null
-        }
-    }
-    
     /**
      * 公开方法：获取剪贴板内容
      * 供其他服务调用
@@ -303,7 +236,7 @@ class MyAccessibilityService : AccessibilityService() {
     fun getClipboardContent(): String? {
         return try {
             Log.d(TAG, "外部请求获取剪贴板内容")
-            val content = getCurrentClipboardContent()
+            val content = (clipboardWatcher ?: ClipboardWatcher.getInstance(this)).currentContent()
             Log.d(TAG, "剪贴板内容: '$content'")
             content
         } catch (e: Exception) {
@@ -312,238 +245,6 @@ class MyAccessibilityService : AccessibilityService() {
         }
     }
 
-    private fun updateLastClipboardContent() {
-        lastClipboardContent = getCurrentClipboardContent()
-    }
-
-    /**
-     * 获取当前前台应用的包名
-     */
-    private fun getCurrentAppPackageName(): String {
-        return try {
-            val rootNode = rootInActiveWindow
-            rootNode?.packageName?.toString() ?: "unknown"
-        } catch (e: Exception) {
-            "error: ${e.message}"
-        }
-    }
-
-    /**
-     * 启动定期检查剪贴板的机制
-     * 作为主要监听器的备用方案
-     */
-    private fun startPeriodicClipboardCheck() {
-        stopPeriodicClipboardCheck() // 先停止之前的检查
-
-        periodicCheckRunnable = object : Runnable {
-            override fun run() {
-                checkClipboardChange("periodic_check")
-                // 继续下一次检查
-                mainHandler.postDelayed(this, periodicCheckInterval)
-            }
-        }
-
-        mainHandler.postDelayed(periodicCheckRunnable!!, periodicCheckInterval)
-        Log.d(TAG, "✅ 定期剪贴板检查已启动，间隔: ${periodicCheckInterval}ms")
-    }
-
-    /**
-     * 停止定期检查
-     */
-    private fun stopPeriodicClipboardCheck() {
-        periodicCheckRunnable?.let { runnable ->
-            mainHandler.removeCallbacks(runnable)
-            periodicCheckRunnable = null
-            Log.d(TAG, "定期剪贴板检查已停止")
-        }
-    }
-
-    /**
-     * 启动激进模式剪贴板检查
-     */
-    private fun startAggressiveClipboardCheck() {
-        stopAggressiveClipboardCheck() // 先停止之前的检查
-
-        aggressiveCheckRunnable = object : Runnable {
-            override fun run() {
-                checkClipboardChange("aggressive_check")
-                // 继续下一次检查
-                mainHandler.postDelayed(this, aggressiveCheckInterval)
-            }
-        }
-
-        mainHandler.postDelayed(aggressiveCheckRunnable!!, aggressiveCheckInterval)
-        Log.d(TAG, "🚀 激进模式剪贴板检查已启动，间隔: ${aggressiveCheckInterval}ms")
-    }
-
-    /**
-     * 停止激进模式检查
-     */
-    private fun stopAggressiveClipboardCheck() {
-        aggressiveCheckRunnable?.let { runnable ->
-            mainHandler.removeCallbacks(runnable)
-            aggressiveCheckRunnable = null
-            Log.d(TAG, "激进模式剪贴板检查已停止")
-        }
-    }
-
-    /**
-     * 启动超级激进模式剪贴板检查（后台时使用）
-     */
-    private fun startSuperAggressiveClipboardCheck() {
-        stopSuperAggressiveClipboardCheck()
-
-        superAggressiveCheckRunnable = object : Runnable {
-            override fun run() {
-                checkClipboardChange("super_aggressive_check")
-                mainHandler.postDelayed(this, superAggressiveCheckInterval)
-            }
-        }
-
-        mainHandler.postDelayed(superAggressiveCheckRunnable!!, superAggressiveCheckInterval)
-        Log.d(TAG, "🔥 超级激进模式剪贴板检查已启动，间隔: ${superAggressiveCheckInterval}ms")
-    }
-
-    /**
-     * 停止超级激进模式检查
-     */
-    private fun stopSuperAggressiveClipboardCheck() {
-        superAggressiveCheckRunnable?.let { runnable ->
-            mainHandler.removeCallbacks(runnable)
-            superAggressiveCheckRunnable = null
-            Log.d(TAG, "🛑 超级激进模式剪贴板检查已停止")
-        }
-    }
-
-    /**
-     * 启动应用状态监控
-     */
-    private fun startBackgroundMonitoring() {
-        stopBackgroundMonitoring()
-
-        backgroundCheckRunnable = object : Runnable {
-            override fun run() {
-                checkAppBackgroundStatus()
-                backgroundCheckHandler.postDelayed(this, 1000L)
-            }
-        }
-
-        backgroundCheckHandler.postDelayed(backgroundCheckRunnable!!, 1000L)
-        Log.d(TAG, "🔄 应用状态监控已启动")
-    }
-
-    /**
-     * 停止应用状态监控
-     */
-    private fun stopBackgroundMonitoring() {
-        backgroundCheckRunnable?.let { runnable ->
-            backgroundCheckHandler.removeCallbacks(runnable)
-            backgroundCheckRunnable = null
-            Log.d(TAG, "🛑 应用状态监控已停止")
-        }
-    }
-
-    /**
-     * 检查应用后台状态
-     */
-    private fun checkAppBackgroundStatus() {
-        try {
-            val activityManager = getSystemService(Context.ACTIVITY_SERVICE) as ActivityManager
-            val runningTasks = activityManager.getRunningTasks(1)
-
-            val wasInBackground = isAppInBackground
-            isAppInBackground = runningTasks.isNotEmpty() &&
-                !runningTasks[0].topActivity?.packageName.equals(packageName)
-
-            if (wasInBackground != isAppInBackground) {
-                Log.d(TAG, "应用状态变化: ${if (isAppInBackground) "进入后台" else "回到前台"}")
-
-                if (isAppInBackground && !isSuperAggressiveModeEnabled) {
-                    // 应用进入后台，启动超级激进模式
-                    isSuperAggressiveModeEnabled = true
-                    startSuperAggressiveClipboardCheck()
-                    Log.d(TAG, "🔥 应用进入后台，启动超级激进监听模式")
-                } else if (!isAppInBackground && isSuperAggressiveModeEnabled) {
-                    // 应用回到前台，停止超级激进模式
-                    isSuperAggressiveModeEnabled = false
-                    stopSuperAggressiveClipboardCheck()
-                    Log.d(TAG, "✅ 应用回到前台，停止超级激进监听模式")
-                }
-            }
-        } catch (e: Exception) {
-            Log.w(TAG, "检查应用状态失败: ${e.message}")
-        }
-    }
-
-    /**
-     * 启动服务状态监控
-     */
-    private fun startServiceStatusCheck() {
-        stopServiceStatusCheck() // 先停止之前的检查
-
-        serviceStatusCheckRunnable = object : Runnable {
-            override fun run() {
-                checkServiceStatus()
-                // 继续下一次检查
-                mainHandler.postDelayed(this, serviceStatusCheckInterval)
-            }
-        }
-
-        mainHandler.postDelayed(serviceStatusCheckRunnable!!, serviceStatusCheckInterval)
-        Log.d(TAG, "✅ 服务状态监控已启动，间隔: ${serviceStatusCheckInterval}ms")
-    }
-
-    /**
-     * 停止服务状态监控
-     */
-    private fun stopServiceStatusCheck() {
-        serviceStatusCheckRunnable?.let { runnable ->
-            mainHandler.removeCallbacks(runnable)
-            serviceStatusCheckRunnable = null
-            Log.d(TAG, "服务状态监控已停止")
-        }
-    }
-
-    /**
-     * 检查服务状态
-     */
-    private fun checkServiceStatus() {
-        try {
-            val wasActive = isServiceActive.get()
-
-            // 检查剪贴板管理器是否仍然有效
-            val isClipboardManagerValid = ::clipboardManager.isInitialized
-
-            if (!isClipboardManagerValid) {
-                Log.w(TAG, "⚠️ 剪贴板管理器无效，尝试重新初始化")
-                isServiceActive.set(false)
-                reinitializeService()
-                return
-            }
-
-            // 尝试获取剪贴板内容来测试服务是否正常
-            try {
-                getCurrentClipboardContent()
-                if (!wasActive) {
-                    Log.d(TAG, "✅ 服务状态恢复正常")
-                    isServiceActive.set(true)
-                }
-            } catch (e: Exception) {
-                Log.w(TAG, "⚠️ 剪贴板访问异常，服务可能被限制: ${e.message}")
-                if (wasActive) {
-                    isServiceActive.set(false)
-                    // 尝试重新初始化
-                    mainHandler.postDelayed({
-                        reinitializeService()
-                    }, 1000)
-                }
-            }
-
-        } catch (e: Exception) {
-            Log.e(TAG, "❌ 服务状态检查失败", e)
-        }
-    }
-
     private fun isValidClipboardContent(content: String): Boolean {
         Log.d(TAG, "验证剪贴板内容: '${content.take(50)}${if (content.length > 50) "..." else ""}' (长度: ${content.length})")
 
@@ -645,23 +346,17 @@ class MyAccessibilityService : AccessibilityService() {
             // 标记服务为非活跃状态
             isServiceActive.set(false)
 
-            // 停止所有检查机制
-            stopPeriodicClipboardCheck()
-            stopAggressiveClipboardCheck()
-            stopSuperAggressiveClipboardCheck()
-            stopBackgroundMonitoring()
-            stopServiceStatusCheck()
-
             // 移除剪贴板监听器
-            if (::clipboardManager.isInitialized) {
-                clipboardManager.removePrimaryClipChangedListener(clipboardListener)
+            clipboardWatcher?.let { watcher ->
+                watcher.removeListener(clipboardListener)
+                Log.d(TAG, "剪贴板唤醒统计: ${watcher.stats()}")
             }
 
             // 取消注册自动粘贴广播接收器
             unregisterAutoPasteReceiver()
             unregisterCommandReceiver()
 
-            Log.d(TAG, "✅ 无障碍服务已销毁，所有监听器和检查机制已清理")
+            Log.d(TAG, "✅ 无障碍服务已销毁，所有监听器已清理")
         } catch (e: Exception) {
             Log.e(TAG, "❌ 清理无障碍服务失败", e)
         }
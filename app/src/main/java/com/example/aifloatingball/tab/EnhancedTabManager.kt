@@ -11,6 +11,7 @@ import androidx.recyclerview.widget.LinearLayoutManager
 import androidx.recyclerview.widget.RecyclerView
 import androidx.viewpager2.widget.ViewPager2
 import com.example.aifloatingball.adblock.AdBlockFilter
+import com.example.aifloatingball.adblock.CosmeticFilterManager
 import com.example.aifloatingball.web.EnhancedWebViewClient
 import com.example.aifloatingball.reader.NovelReaderModeManager
 import android.content.Context.MODE_PRIVATE
@@ -297,6 +298,7 @@ class EnhancedTabManager(
                 onUrlChangeListener = onUrlChangeListener,
                 readerModeManager = readerModeManager
             )
+            CosmeticFilterManager.getInstance(context).install(this)
             
             // 设置WebChromeClient
             webChromeClient = object : WebChromeClient() {
@@ -884,7 +884,10 @@ class CardViewModeManager(
                 val url = request?.url?.toString() ?: ""
                 
                 // 拦截广告请求
-                if (adBlockFilter.shouldBlock(url)) {
+                val headers = request?.requestHeaders
+                val isMainFrame = request?.isForMainFrame == true
+                val documentUrl = if (isMainFrame) url else headers?.get("Referer")
+                if (adBlockFilter.shouldBlock(url, documentUrl, headers?.get("Accept"), isMainFrame)) {
                     Log.d(TAG, "拦截广告请求: $url")
                     return WebResourceResponse(
                         "text/plain",
@@ -13,6 +13,7 @@ import android.webkit.WebSettings
 import android.webkit.WebView
 import android.webkit.WebViewClient
 import com.example.aifloatingball.utils.WebViewConstants
+import com.example.aifloatingball.adblock.CosmeticFilterManager
 import com.example.aifloatingball.R
 import com.example.aifloatingball.ui.text.TextSelectionManager
 import android.content.Context.WINDOW_SERVICE
@@ -103,6 +104,9 @@ class WebViewFactory(private val context: Context) {
             isFocusable = true
             isFocusableInTouchMode = true
 
+            // 元素隐藏样式表在文档开始时注入
+            CosmeticFilterManager.getInstance(context).install(this)
+
             webViewClient = object : WebViewClient() {
                 override fun shouldOverrideUrlLoading(view: WebView?, request: WebResourceRequest?): Boolean {
                     val url = request?.url?.toString()
@@ -185,6 +189,7 @@ class WebViewFactory(private val context: Context) {
                 override fun onPageStarted(view: WebView?, url: String?, favicon: Bitmap?) {
                     super.onPageStarted(view, url, favicon)
                     Log.d(TAG, "CustomWebViewClient onPageStarted: $url")
+                    CosmeticFilterManager.getInstance(context).onPageStarted(view, url)
 
                     // 根据URL动态设置User-Agent
                     if (view != null && url != null) {
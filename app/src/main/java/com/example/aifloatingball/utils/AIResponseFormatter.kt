@@ -0,0 +1,396 @@
+package com.example.aifloatingball.utils
+
+import java.util.regex.Pattern
+
+/**
+ * AI回复的排版器，是 [AdvancedMarkdownRenderer] 中与 Android 无关的部分
+ *
+ * 输出的文字和样式区间与原先逐条 `toRegex()` 替换的实现完全一致，区别在于：
+ * - 预处理（去 HTML 标签、解码实体、合并空白）由线性扫描完成，不经过正则；
+ * - 扫描时顺便记录文本中出现了哪些关键字符，替换规则和样式规则只在可能匹配时才执行，
+ *   规则命中后再把它插入的字符补进记录；
+ * - 所有正则在类加载时编译一次，之后每次渲染不再重新编译。
+ *
+ * 规则按原来的顺序逐条作用于上一条的结果，后面的规则会看到前面插入的换行和符号，
+ * 这种级联决定了现有的排版效果，所以规则本身保持原样。不依赖 Android 框架，可在 JVM 单元测试中使用。
+ */
+object AIResponseFormatter {
+
+    enum class Style {
+        HEADING_1,
+        HEADING_2,
+        HEADING_3,
+        ORDERED_ITEM,
+        BULLET_ITEM,
+        CODE_BLOCK,
+        INLINE_CODE,
+        BOLD,
+        STRIKETHROUGH,
+        LINK,
+        QA,
+        HIGHLIGHT
+    }
+
+    /**
+     * 排版结果：最终文字和按应用顺序排列的样式区间
+     */
+    class Formatted internal constructor(val text: String, private val runs: IntArray, val runCount: Int) {
+        fun style(index: Int): Style = STYLES[runs[index * 3]]
+        fun start(index: Int): Int = runs[index * 3 + 1]
+        fun end(index: Int): Int = runs[index * 3 + 2]
+    }
+
+    private val STYLES = Style.values()
+
+    // ---- 关键字符 ----
+    // 每个位代表一类字符，规则所需的字符类不全在文本中时跳过该规则
+
+    private const val HASH = 1L shl 0
+    private const val NEWLINE = 1L shl 1
+    private const val CN_NUMBER = 1L shl 2
+    private const val DUN = 1L shl 3
+    private const val PERIOD = 1L shl 4
+    private const val DIGIT = 1L shl 5
+    private const val COLON = 1L shl 6
+    private const val LIST_MARK = 1L shl 7
+    private const val BULLET = 1L shl 8
+    private const val BACKTICK = 1L shl 9
+    private const val STAR = 1L shl 10
+    private const val UNDERSCORE = 1L shl 11
+    private const val BOOK_TITLE = 1L shl 12
+    private const val DOUBLE_QUOTE = 1L shl 13
+    private const val SINGLE_QUOTE = 1L shl 14
+    private const val BRACKET = 1L shl 15
+    private const val GREATER = 1L shl 16
+    private const val PIPE = 1L shl 17
+    private const val SENTENCE_END = 1L shl 18
+    private const val SEMICOLON = 1L shl 19
+    private const val COMMA = 1L shl 20
+    private const val SQUARE = 1L shl 21
+    private const val SMALL_SQUARE = 1L shl 22
+    private const val HOLLOW_SQUARE = 1L shl 23
+    private const val LIST_DOT = 1L shl 24
+    private const val BOX = 1L shl 25
+    private const val CORNER_QUOTE = 1L shl 26
+    private const val LENTICULAR = 1L shl 27
+    private const val TILDE = 1L shl 28
+    private const val SLASH = 1L shl 29
+    private const val EMOJI = 1L shl 30
+    private const val KW_WEN = 1L shl 31
+    private const val KW_DA = 1L shl 32
+    private const val KW_BU = 1L shl 33
+    private const val KW_DI = 1L shl 34
+    private const val KW_YAO = 1L shl 35
+    private const val KW_ZHU = 1L shl 36
+    private const val KW_TI = 1L shl 37
+    private const val KW_ZONG = 1L shl 38
+    private const val KW_JIE = 1L shl 39
+    private const val KW_HAO = 1L shl 40
+    private const val KW_ZHE = 1L shl 41
+    private const val KW_HE = 1L shl 42
+    private const val KW_ZHU3 = 1L shl 43
+    private const val KW_TE = 1L shl 44
+    private const val KW_YOU = 1L shl 45
+
+    private fun charBits(c: Char): Long = when (c) {
+        '#' -> HASH
+        '\n' -> NEWLINE
+        '一', '二', '三', '四', '五', '六', '七', '八', '九', '十' -> CN_NUMBER
+        '、' -> DUN
+        '.' -> PERIOD
+        in '0'..'9' -> DIGIT
+        ':', '：' -> COLON
+        '-', '+' -> LIST_MARK
+        '*' -> STAR or LIST_MARK
+        '•' -> BULLET or LIST_DOT
+        '·', '▫' -> BULLET or HOLLOW_SQUARE
+        '▪' -> BULLET or SMALL_SQUARE or LIST_DOT
+        '◦' -> LIST_DOT
+        '`' -> BACKTICK
+        '_' -> UNDERSCORE
+        '《' -> BOOK_TITLE
+        '"' -> DOUBLE_QUOTE
+        '\'' -> SINGLE_QUOTE
+        '[' -> BRACKET
+        '>' -> GREATER
+        '|' -> PIPE
+        '。', '！', '？' -> SENTENCE_END
+        '；', ';' -> SEMICOLON
+        '，', ',' -> COMMA
+        '■' -> SQUARE
+        '┌' -> BOX
+        '「' -> CORNER_QUOTE
+        '【' -> LENTICULAR
+        '~' -> TILDE
+        '/' -> SLASH
+        '⚠', '⭐', '✨', '❓' -> EMOJI
+        '问' -> KW_WEN
+        '答' -> KW_DA
+        '步' -> KW_BU
+        '第' -> KW_DI
+        '要' -> KW_YAO
+        '注' -> KW_ZHU
+        '提' -> KW_TI
+        '总' -> KW_ZONG
+        '结' -> KW_JIE
+        '好' -> KW_HAO
+        '这' -> KW_ZHE
+        '核' -> KW_HE
+        '主' -> KW_ZHU3
+        '特' -> KW_TE
+        '优' -> KW_YOU
+        else -> if (Character.isSurrogate(c)) EMOJI else 0L
+    }
+
+    private fun bitsOf(text: CharSequence): Long {
+        var bits = 0L
+        for (c in text) bits = bits or charBits(c)
+        return bits
+    }
+
+    // ---- 替换规则 ----
+
+    /**
+     * 一条替换规则
+     *
+     * @param requires 全部出现时才可能匹配的字符类
+     * @param adds 替换结果可能新引入的字符类
+     */
+    private class Rule(
+        val regex: Regex,
+        val requires: Long,
+        val replacement: String? = null,
+        val transform: ((MatchResult) -> CharSequence)? = null,
+        adds: Long = 0L
+    ) {
+        val adds: Long = adds or (replacement?.let { bitsOf(it) } ?: 0L)
+
+        fun apply(text: String): String {
+            return if (transform != null) regex.replace(text, transform) else regex.replace(text, replacement!!)
+        }
+    }
+
+    private fun rule(pattern: String, requires: Long, replacement: String) =
+        Rule(pattern.toRegex(RegexOption.MULTILINE), requires, replacement)
+
+    private fun inlineRule(pattern: String, requires: Long, replacement: String) =
+        Rule(pattern.toRegex(), requires, replacement)
+
+    private val supportedLanguages = setOf(
+        "javascript", "java", "python", "kotlin", "swift", "go", "rust", "cpp", "c", "csharp",
+        "php", "ruby", "html", "css", "xml", "json", "yaml", "sql", "bash", "shell",
+        "typescript", "dart", "scala", "r", "matlab", "perl", "lua", "powershell"
+    )
+
+    // 删除线、纯链接和小标题后换行这三条原规则的替换结果与匹配内容相同，不再执行
+    private val rules = listOf(
+        // 标题
+        rule("^#{6}\\s+(.*)$", HASH, "\n▫ $1\n"),
+        rule("^#{5}\\s+(.*)$", HASH, "\n▫ $1\n"),
+        rule("^#{4}\\s+(.*)$", HASH, "\n▫ $1\n"),
+        rule("^#{3}\\s+(.*)$", HASH, "\n▫ $1\n"),
+        rule("^#{2}\\s+(.*)$", HASH, "\n▪ $1\n"),
+        rule("^#{1}\\s+(.*)$", HASH, "\n■ $1\n"),
+        rule("^([一二三四五六七八九十]+[、.])\\s*(.*)$", CN_NUMBER, "\n▪ $1 $2\n"),
+        rule("^([0-9]+[、.])\\s*(.*)$", DIGIT, "\n▪ $1 $2\n"),
+        rule("^([^：:]+[：:])\\s*$", COLON, "\n▪ $1\n"),
+        // 列表
+        rule("^\\s*(\\d+)\\.\\s+(.*)$", DIGIT or PERIOD, "  $1. $2"),
+        rule("^\\s*([一二三四五六七八九十]+)\\.\\s+(.*)$", CN_NUMBER or PERIOD, "  $1. $2"),
+        rule("^\\s*[-*+]\\s+(.*)$", LIST_MARK, "  • $1"),
+        rule("^\\s{2,4}[-*+]\\s+(.*)$", LIST_MARK, "    ◦ $1"),
+        rule("^\\s{6,8}[-*+]\\s+(.*)$", LIST_MARK, "      ▪ $1"),
+        rule("^\\s*([•·▪▫])\\s+(.*)$", BULLET, "  • $2"),
+        // 代码块
+        Rule("```([^\\n]+)\\n([\\s\\S]*?)```".toRegex(), BACKTICK or NEWLINE, transform = { matchResult ->
+            val language = matchResult.groupValues[1].trim()
+            val code = matchResult.groupValues[2].trim()
+            val displayLanguage = if (language.isNotEmpty() && supportedLanguages.contains(language.lowercase())) {
+                language.uppercase()
+            } else {
+                "CODE"
+            }
+            "\n┌─ $displayLanguage ─┐\n$code\n└${"─".repeat(displayLanguage.length + 4)}┘\n"
+        }, adds = NEWLINE or BOX),
+        // 行内代码
+        inlineRule("`([^`]+)`", BACKTICK, "「$1」"),
+        // 强调和粗体
+        inlineRule("\\*\\*(.*?)\\*\\*", STAR, "【$1】"),
+        inlineRule("__(.*?)__", UNDERSCORE, "【$1】"),
+        inlineRule("\\*(.*?)\\*", STAR, "$1"),
+        inlineRule("_(.*?)_", UNDERSCORE, "$1"),
+        inlineRule("《([^》]+)》", BOOK_TITLE, "【$1】"),
+        inlineRule("\"([^\"]+)\"", DOUBLE_QUOTE, "「$1」"),
+        inlineRule("'([^']+)'", SINGLE_QUOTE, "「$1」"),
+        // 链接
+        inlineRule("\\[([^\\]]+)\\]\\(([^)]+)\\)", BRACKET, "$1"),
+        // 引用
+        rule("^>\\s+(.*)$", GREATER, "┌─ 引用 ─┐\n$1\n└─────────┘\n"),
+        // 表格
+        Rule("\\|(.+)\\|".toRegex(), PIPE, transform = { matchResult ->
+            val row = matchResult.groupValues[1]
+            val cells = row.split("|").map { it.trim() }
+            "┌─ ${cells.joinToString(" │ ")} ─┐\n"
+        }, adds = NEWLINE or BOX),
+        // 中文排版
+        inlineRule("([。！？])\\s*([A-Z0-9一-龯])", SENTENCE_END, "$1\n\n$2"),
+        inlineRule("([：:])\\s*([一-龯A-Z])", COLON, "$1\n$2"),
+        inlineRule("([；;])\\s*([一-龯A-Z])", SEMICOLON, "$1\n$2"),
+        inlineRule("([，,])\\s*([一-龯A-Z])", COMMA, "$1\n$2"),
+        inlineRule("(\\d+\\.\\s+[^\\n]+)\\n(\\d+\\.\\s+)", DIGIT or PERIOD or NEWLINE, "$1\n\n$2"),
+        inlineRule("\\n\\s*\\n\\s*\\n+", NEWLINE, "\n\n"),
+        // 问答、步骤、要点等特殊结构
+        rule("^问[:：]\\s*(.*)$", KW_WEN or COLON, "\n❓ 问：$1\n"),
+        rule("^答[:：]\\s*(.*)$", KW_DA or COLON, "\n💡 答：$1\n"),
+        rule("^步骤\\s*(\\d+)[:：]\\s*(.*)$", KW_BU or COLON, "\n📋 步骤$1：$2\n"),
+        rule("^第\\s*(\\d+)\\s*步[:：]\\s*(.*)$", KW_DI or COLON, "\n📋 第$1步：$2\n"),
+        rule("^要点\\s*(\\d+)[:：]\\s*(.*)$", KW_YAO or COLON, "\n🔹 要点$1：$2\n"),
+        rule("^注意[:：]\\s*(.*)$", KW_ZHU or COLON, "\n⚠️ 注意：$1\n"),
+        rule("^提示[:：]\\s*(.*)$", KW_TI or COLON, "\n💡 提示：$1\n"),
+        rule("^总结[:：]\\s*(.*)$", KW_ZONG or COLON, "\n📝 总结：$1\n"),
+        rule("^结论[:：]\\s*(.*)$", KW_JIE or COLON, "\n📝 结论：$1\n"),
+        rule("^好的[，,]?\\s*(.*)$", KW_HAO, "\n💡 $1\n"),
+        rule("^这里\\s*(.*)$", KW_ZHE, "\n📖 $1\n"),
+        rule("^核心\\s*(.*)$", KW_HE, "\n⭐ 核心$1\n"),
+        rule("^主要\\s*(.*)$", KW_ZHU3, "\n🔸 主要$1\n"),
+        rule("^特点[:：]\\s*(.*)$", KW_TE or COLON, "\n✨ 特点：$1\n"),
+        rule("^特色[:：]\\s*(.*)$", KW_TE or COLON, "\n✨ 特色：$1\n"),
+        rule("^优势[:：]\\s*(.*)$", KW_YOU or COLON, "\n🚀 优势：$1\n"),
+        rule("^优点[:：]\\s*(.*)$", KW_YOU or COLON, "\n🚀 优点：$1\n")
+    )
+
+    // ---- 样式规则 ----
+
+    private class StyleRule(val style: Style, val pattern: Pattern, val requires: Long)
+
+    private val styleRules = listOf(
+        StyleRule(Style.HEADING_1, Pattern.compile("^■\\s+(.+)$", Pattern.MULTILINE), SQUARE),
+        StyleRule(Style.HEADING_2, Pattern.compile("^▪\\s+(.+)$", Pattern.MULTILINE), SMALL_SQUARE),
+        StyleRule(Style.HEADING_3, Pattern.compile("^▫\\s+(.+)$", Pattern.MULTILINE), HOLLOW_SQUARE),
+        StyleRule(Style.ORDERED_ITEM, Pattern.compile("^\\s*(\\d+)\\.\\s+(.+)$", Pattern.MULTILINE), DIGIT or PERIOD),
+        StyleRule(Style.BULLET_ITEM, Pattern.compile("^\\s*[•◦▪]\\s+(.+)$", Pattern.MULTILINE), LIST_DOT),
+        StyleRule(Style.CODE_BLOCK, Pattern.compile("┌─\\s+(.+?)\\s+─┐[\\s\\S]*?└[─]+┘", Pattern.MULTILINE), BOX),
+        StyleRule(Style.INLINE_CODE, Pattern.compile("「([^」]+)」"), CORNER_QUOTE),
+        StyleRule(Style.BOLD, Pattern.compile("【([^】]+)】"), LENTICULAR),
+        StyleRule(Style.STRIKETHROUGH, Pattern.compile("~~([^~]+)~~"), TILDE),
+        StyleRule(Style.LINK, Pattern.compile("(https?://[^\\s]+)"), COLON or SLASH),
+        StyleRule(Style.QA, Pattern.compile("(❓|💡)\\s+(问|答)：(.+)", Pattern.MULTILINE), EMOJI),
+        StyleRule(Style.HIGHLIGHT, Pattern.compile("(📋|🔹|⚠️|💡|📝|⭐|🔸|✨|🚀)\\s+(.+：.+)", Pattern.MULTILINE), EMOJI)
+    )
+
+    /**
+     * 排版一段 AI 回复
+     */
+    fun format(content: String): Formatted {
+        var bits = 0L
+        val preprocessed = preprocess(content) { bits = it }
+
+        var text = preprocessed
+        for (rule in rules) {
+            if (bits and rule.requires != rule.requires) continue
+            val replaced = rule.apply(text)
+            // 没有匹配时返回的是同一个对象
+            if (replaced !== text) {
+                bits = bits or rule.adds
+                text = replaced
+            }
+        }
+
+        var runs = IntArray(48)
+        var count = 0
+        for (rule in styleRules) {
+            if (bits and rule.requires != rule.requires) continue
+            val matcher = rule.pattern.matcher(text)
+            while (matcher.find()) {
+                if (count * 3 + 3 > runs.size) runs = runs.copyOf(runs.size * 2)
+                runs[count * 3] = rule.style.ordinal
+                runs[count * 3 + 1] = matcher.start()
+                runs[count * 3 + 2] = matcher.end()
+                count++
+            }
+        }
+        return Formatted(text, runs, count)
+    }
+
+    /**
+     * 预处理：去掉 HTML 标签、解码常见实体、把连续空白合并为一个空格并去掉首尾空白
+     */
+    fun preprocess(content: String): String = preprocess(content) {}
+
+    /**
+     * 与原来依次执行的正则替换等价：先去标签，再按 nbsp、lt、gt、amp、quot、#39 的顺序解码实体，
+     * 其中 amp 解码出的 & 还会与后面的 quot;、#39; 组成实体；最后合并 `\s`（只含 ASCII 空白）。
+     */
+    private inline fun preprocess(content: String, onBits: (Long) -> Unit): String {
+        val source = if (content.indexOf('<') >= 0) stripTags(content) else content
+        val out = StringBuilder(source.length)
+        var bits = 0L
+        var pendingSpace = false
+        var i = 0
+        val n = source.length
+        while (i < n) {
+            var c = source[i]
+            var consumed = 1
+            if (c == '&') {
+                when {
+                    source.startsWith("&nbsp;", i) -> { c = ' '; consumed = 6 }
+                    source.startsWith("&lt;", i) -> { c = '<'; consumed = 4 }
+                    source.startsWith("&gt;", i) -> { c = '>'; consumed = 4 }
+                    source.startsWith("&amp;", i) -> when {
+                        source.startsWith("quot;", i + 5) -> { c = '"'; consumed = 10 }
+                        source.startsWith("#39;", i + 5) -> { c = '\''; consumed = 9 }
+                        else -> consumed = 5
+                    }
+                    source.startsWith("&quot;", i) -> { c = '"'; consumed = 6 }
+                    source.startsWith("&#39;", i) -> { c = '\''; consumed = 5 }
+                }
+            }
+            i += consumed
+            if (isRegexSpace(c)) {
+                pendingSpace = true
+                continue
+            }
+            if (pendingSpace) {
+                out.append(' ')
+                pendingSpace = false
+            }
+            out.append(c)
+            bits = bits or charBits(c)
+        }
+        if (pendingSpace) out.append(' ')
+        onBits(bits)
+        return out.trim().toString()
+    }
+
+    /**
+     * 等价于把 `<[^>]+>` 替换为空
+     */
+    private fun stripTags(content: String): String {
+        val out = StringBuilder(content.length)
+        var i = 0
+        val n = content.length
+        while (i < n) {
+            val c = content[i]
+            if (c == '<') {
+                val close = content.indexOf('>', i + 1)
+                if (close < 0) {
+                    // 后面没有 >，剩下的 < 都不会构成标签
+                    out.append(content, i, n)
+                    break
+                }
+                if (close > i + 1) {
+                    i = close + 1
+                    continue
+                }
+            }
+            out.append(c)
+            i++
+        }
+        return out.toString()
+    }
+
+    // 与正则的 \s 相同
+    private fun isRegexSpace(c: Char): Boolean {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\u000C' || c == '\r'
+    }
+}
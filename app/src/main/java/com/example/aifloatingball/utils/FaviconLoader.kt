@@ -2,40 +2,34 @@ package com.example.aifloatingball.utils
 
 import android.content.Context
 import android.graphics.Bitmap
-import android.graphics.BitmapFactory
-import android.graphics.drawable.BitmapDrawable
-import android.graphics.drawable.Drawable
-import android.util.LruCache
 import android.util.Log
 import android.widget.ImageView
+import com.example.aifloatingball.manager.IconService
 import kotlinx.coroutines.*
-import java.io.InputStream
-import java.net.HttpURLConnection
-import java.net.URL
 import java.util.concurrent.ConcurrentHashMap
 
 /**
  * Favicon加载器服务
  * 用于获取网站图标作为候补方案
+ *
+ * 下载、缓存和失败记录都由 [IconService] 负责，这里只决定每个网站依次尝试哪些地址。
  */
 object FaviconLoader {
 
     private const val TAG = "FaviconLoader"
-    
-    // 内存缓存
-    private val memoryCache: LruCache<String, Bitmap>
+    // 列表和聊天中的图标不超过 48dp，3 倍密度屏上约 144px，按这个尺寸采样解码
+    private const val ICON_SIZE_PX = 144
     
     // 网站到favicon URL的映射
     private val faviconUrls = ConcurrentHashMap<String, List<String>>()
 
     init {
-        val maxMemory = (Runtime.getRuntime().maxMemory() / 1024).toInt()
-        val cacheSize = maxMemory / 8
-        memoryCache = LruCache<String, Bitmap>(cacheSize)
-        
         // 初始化常用网站的favicon URL
         initFaviconUrls()
     }
+
+    private fun iconService(context: Context? = null): IconService? =
+        context?.let { IconService.getInstance(it) } ?: IconService.peekInstance()
     
     /**
      * 初始化常用网站的favicon URL
@@ -77,35 +71,8 @@ object FaviconLoader {
      */
     fun loadIcon(imageView: ImageView, url: String, defaultIconRes: Int) {
         val domain = extractDomain(url)
-        val cacheKey = "favicon_$domain"
-        
-        // 检查内存缓存
-        val cachedBitmap = memoryCache.get(cacheKey)
-        if (cachedBitmap != null) {
-            imageView.setImageBitmap(cachedBitmap)
-            return
-        }
-
-        // 设置默认图标
-        imageView.setImageResource(defaultIconRes)
-        imageView.tag = cacheKey
-        
-        // 异步加载favicon
-        CoroutineScope(Dispatchers.IO).launch {
-            try {
-                val bitmap = loadFaviconFromUrl(domain)
-                if (bitmap != null) {
-                    memoryCache.put(cacheKey, bitmap)
-                    
-                    withContext(Dispatchers.Main) {
-                        if (imageView.tag == cacheKey) {
-                            imageView.setImageBitmap(bitmap)
-                        }
-                    }
-                }
-            } catch (e: Exception) {
-                Log.e(TAG, "Failed to load favicon for $domain: ${e.message}")
-            }
+        bindFavicon(imageView, "favicon_$domain", defaultIconRes) { service ->
+            loadFaviconFromUrl(service, domain)
         }
     }
     
@@ -114,26 +81,35 @@ object FaviconLoader {
      */
     fun loadFavicon(imageView: ImageView, url: String) {
         val domain = extractDomain(url)
-        val cacheKey = "favicon_$domain"
-        
-        // 检查内存缓存
-        val cachedBitmap = memoryCache.get(cacheKey)
-        if (cachedBitmap != null) {
-            imageView.setImageBitmap(cachedBitmap)
+        bindFavicon(imageView, "favicon_$domain", android.R.drawable.ic_menu_search) { service ->
+            loadFaviconFromUrl(service, domain)
+        }
+    }
+
+    /**
+     * 先显示默认图标，加载完成后在控件仍对应同一个键时替换
+     *
+     * 同一个键上次成功的地址记在 [IconService] 中，内存命中时直接显示，不再逐个尝试候选地址。
+     */
+    private fun bindFavicon(
+        imageView: ImageView,
+        cacheKey: String,
+        defaultIconRes: Int,
+        load: suspend (IconService) -> Bitmap?
+    ) {
+        val service = iconService(imageView.context) ?: return
+        service.rememberedUrl(cacheKey)?.let { service.getCached(it, ICON_SIZE_PX) }?.let {
+            imageView.setImageBitmap(it)
             return
         }
 
-        // 设置默认图标
-        imageView.setImageResource(android.R.drawable.ic_menu_search)
+        imageView.setImageResource(defaultIconRes)
         imageView.tag = cacheKey
-        
-        // 异步加载favicon
+
         CoroutineScope(Dispatchers.IO).launch {
             try {
-                val bitmap = loadFaviconFromUrl(domain)
+                val bitmap = service.loadRemembered(cacheKey, ICON_SIZE_PX) ?: load(service)
                 if (bitmap != null) {
-                    memoryCache.put(cacheKey, bitmap)
-                    
                     withContext(Dispatchers.Main) {
                         if (imageView.tag == cacheKey) {
                             imageView.setImageBitmap(bitmap)
@@ -141,7 +117,7 @@ object FaviconLoader {
                     }
                 }
             } catch (e: Exception) {
-                Log.e(TAG, "Failed to load favicon for $domain: ${e.message}")
+                Log.e(TAG, "Failed to load icon for $cacheKey: ${e.message}")
             }
         }
     }
@@ -149,7 +125,7 @@ object FaviconLoader {
     /**
      * 从URL加载favicon
      */
-    private suspend fun loadFaviconFromUrl(domain: String): Bitmap? {
+    private suspend fun loadFaviconFromUrl(service: IconService, domain: String): Bitmap? {
         val urls = faviconUrls[domain] ?: generateFaviconUrls(domain)
         
         Log.d(TAG, "🔍 Loading favicon for domain: $domain, trying ${urls.size} URLs")
@@ -157,9 +133,10 @@ object FaviconLoader {
         for (url in urls) {
             try {
                 Log.d(TAG, "  Trying: $url")
-                val bitmap = downloadBitmap(url)
+                val bitmap = service.load(url, ICON_SIZE_PX)
                 if (bitmap != null) {
                     Log.d(TAG, "✅ Successfully loaded from: $url")
+                    service.rememberUrl("favicon_$domain", url)
                     return bitmap
                 }
             } catch (e: Exception) {
@@ -196,80 +173,16 @@ object FaviconLoader {
      * 获取AI引擎图标的Bitmap（公开方法）
      */
     suspend fun getAIEngineBitmap(engineName: String): Bitmap? {
-        return loadAIEngineIconFromUrl(engineName)
+        val service = iconService() ?: return null
+        val cacheKey = "ai_engine_${engineName.lowercase()}"
+        return service.loadRemembered(cacheKey, ICON_SIZE_PX) ?: loadAIEngineIconFromUrl(service, engineName)
     }
     
     /**
      * 下载Bitmap（公开方法）
      */
     suspend fun downloadFavicon(url: String): Bitmap? {
-        return downloadBitmap(url)
-    }
-    
-    /**
-     * 下载Bitmap
-     * 支持Google favicon服务、PNG、ICO等多种格式
-     */
-    private suspend fun downloadBitmap(url: String): Bitmap? {
-        return withContext(Dispatchers.IO) {
-            try {
-                Log.d(TAG, "📥 Downloading: $url")
-                val connection = URL(url).openConnection() as HttpURLConnection
-                connection.connectTimeout = 8000
-                connection.readTimeout = 8000
-                connection.setRequestProperty("User-Agent", "Mozilla/5.0 (Linux; Android 10) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/91.0.4472.120 Mobile Safari/537.36")
-                connection.setRequestProperty("Accept", "image/webp,image/apng,image/svg+xml,image/*,*/*;q=0.8")
-                connection.instanceFollowRedirects = true
-                
-                // 自动跟随重定向
-                var actualConnection = connection
-                var redirectCount = 0
-                while (actualConnection.responseCode in arrayOf(
-                        HttpURLConnection.HTTP_MOVED_PERM,
-                        HttpURLConnection.HTTP_MOVED_TEMP,
-                        HttpURLConnection.HTTP_SEE_OTHER,
-                        301, 302, 303, 307, 308
-                    ) && redirectCount < 5
-                ) {
-                    val redirectUrl = actualConnection.getHeaderField("Location")
-                    if (redirectUrl != null) {
-                        actualConnection.disconnect()
-                        actualConnection = URL(redirectUrl).openConnection() as HttpURLConnection
-                        actualConnection.connectTimeout = 8000
-                        actualConnection.readTimeout = 8000
-                        actualConnection.setRequestProperty("User-Agent", "Mozilla/5.0 (Linux; Android 10) AppleWebKit/537.36")
-                        actualConnection.setRequestProperty("Accept", "image/webp,image/apng,image/svg+xml,image/*,*/*;q=0.8")
-                        redirectCount++
-                    } else {
-                        break
-                    }
-                }
-                
-                if (actualConnection.responseCode == HttpURLConnection.HTTP_OK) {
-                    val inputStream: InputStream = actualConnection.inputStream
-                    val bitmap = BitmapFactory.decodeStream(inputStream)
-                    inputStream.close()
-                    actualConnection.disconnect()
-                    
-                    // 验证bitmap是否有效
-                    if (bitmap != null && !bitmap.isRecycled) {
-                        Log.d(TAG, "✅ Bitmap decoded: ${bitmap.width}x${bitmap.height} from $url")
-                        bitmap
-                    } else {
-                        Log.e(TAG, "❌ Invalid bitmap decoded from $url")
-                        actualConnection.disconnect()
-                        null
-                    }
-                } else {
-                    Log.d(TAG, "❌ HTTP ${actualConnection.responseCode} from $url")
-                    actualConnection.disconnect()
-                    null
-                }
-            } catch (e: Exception) {
-                Log.e(TAG, "Failed to download bitmap from $url: ${e.message}")
-                null
-            }
-        }
+        return iconService()?.load(url, ICON_SIZE_PX)
     }
     
     /**
@@ -290,63 +203,25 @@ object FaviconLoader {
      * 使用AI引擎名称生成对应的favicon URL
      */
     fun loadAIEngineIcon(imageView: ImageView, engineName: String, defaultIconRes: Int) {
-        val cacheKey = "ai_engine_${engineName.lowercase()}"
-        
-        Log.d(TAG, "🔍 Loading AI engine icon for: $engineName, cacheKey: $cacheKey")
-
-        // 检查内存缓存
-        val cachedBitmap = memoryCache.get(cacheKey)
-        if (cachedBitmap != null) {
-            Log.d(TAG, "✅ Found cached bitmap for $engineName")
-            imageView.setImageBitmap(cachedBitmap)
-            return
-        }
-
-        // 设置默认图标
-        imageView.setImageResource(defaultIconRes)
-        imageView.tag = cacheKey
-        
-        Log.d(TAG, "🌐 Starting async load for $engineName")
-        
-        // 异步加载AI引擎图标
-        CoroutineScope(Dispatchers.IO).launch {
-            try {
-                val bitmap = loadAIEngineIconFromUrl(engineName)
-                if (bitmap != null) {
-                    Log.d(TAG, "✅ Successfully loaded bitmap for $engineName (${bitmap.width}x${bitmap.height})")
-                    memoryCache.put(cacheKey, bitmap)
-                    
-                    withContext(Dispatchers.Main) {
-                        if (imageView.tag == cacheKey) {
-                            Log.d(TAG, "🎨 Applying bitmap to ImageView for $engineName")
-                            imageView.setImageBitmap(bitmap)
-                        } else {
-                            Log.w(TAG, "⚠️ Tag mismatch for $engineName: expected $cacheKey, got ${imageView.tag}")
-                        }
-                    }
-                } else {
-                    Log.e(TAG, "❌ Failed to load bitmap for $engineName: returned null")
-                }
-            } catch (e: Exception) {
-                Log.e(TAG, "❌ Exception loading AI engine icon for $engineName", e)
-            }
+        bindFavicon(imageView, "ai_engine_${engineName.lowercase()}", defaultIconRes) { service ->
+            loadAIEngineIconFromUrl(service, engineName)
         }
     }
     
     /**
      * 从URL加载AI引擎图标
      */
-    private suspend fun loadAIEngineIconFromUrl(engineName: String): Bitmap? {
+    private suspend fun loadAIEngineIconFromUrl(service: IconService, engineName: String): Bitmap? {
         val urls = generateAIEngineIconUrls(engineName)
         
         Log.d(TAG, "🔍 Loading AI engine icon for: $engineName, trying ${urls.size} URLs")
         
         for (url in urls) {
             try {
-                Log.d(TAG, "  Trying: $url")
-                val bitmap = downloadBitmap(url)
+                val bitmap = service.load(url, ICON_SIZE_PX)
                 if (bitmap != null) {
                     Log.d(TAG, "✅ Successfully loaded AI engine icon from: $url")
+                    service.rememberUrl("ai_engine_${engineName.lowercase()}", url)
                     return bitmap
                 }
             } catch (e: Exception) {
@@ -502,11 +377,11 @@ object FaviconLoader {
                 "www.google.com"
             )
             
+            val service = iconService() ?: return@launch
             commonDomains.forEach { domain ->
                 try {
-                    val bitmap = loadFaviconFromUrl(domain)
-                    if (bitmap != null) {
-                        memoryCache.put("favicon_$domain", bitmap)
+                    if (service.loadRemembered("favicon_$domain", ICON_SIZE_PX) == null) {
+                        loadFaviconFromUrl(service, domain)
                     }
                 } catch (e: Exception) {
                     Log.e(TAG, "Failed to preload favicon for $domain: ${e.message}")
@@ -519,7 +394,10 @@ object FaviconLoader {
      * 清除缓存
      */
     fun clearCache() {
-        memoryCache.evictAll()
+        iconService()?.let { service ->
+            service.forgetUrls("favicon_")
+            service.forgetUrls("ai_engine_")
+        }
         Log.d(TAG, "Favicon cache cleared")
     }
 } 
\ No newline at end of file
@@ -4,21 +4,21 @@ import android.content.Context
 import android.graphics.Bitmap
 import android.graphics.BitmapFactory
 import android.util.Log
-import android.util.LruCache
 import androidx.core.graphics.drawable.RoundedBitmapDrawableFactory
 import androidx.core.graphics.drawable.RoundedBitmapDrawable
 import com.example.aifloatingball.R
+import com.example.aifloatingball.manager.AppIconCache
+import com.example.aifloatingball.manager.IconService
 import kotlinx.coroutines.*
 import java.io.File
-import java.io.FileOutputStream
-import java.net.URL
-import java.security.MessageDigest
 
 class FaviconManager private constructor(private val context: Context) {
     companion object {
         private const val TAG = "FaviconManager"
-        private const val CACHE_SIZE = 20 * 1024 * 1024 // 20MB
-        private const val FAVICON_CACHE_DIR = "favicons"
+        private const val CACHE_PREFIX = "favicon:"
+        private const val SOURCE_PREFIX = "favicon_manager:"
+        // 旧版本单独保存的图标目录，清理缓存时删除
+        private const val LEGACY_CACHE_DIR = "favicons"
         
         @Volatile
         private var instance: FaviconManager? = null
@@ -30,15 +30,9 @@ class FaviconManager private constructor(private val context: Context) {
         }
     }
     
-    private val memoryCache = object : LruCache<String, Bitmap>(CACHE_SIZE) {
-        override fun sizeOf(key: String, bitmap: Bitmap): Int {
-            return bitmap.byteCount
-        }
-    }
-    
-    private val cacheDir: File by lazy {
-        File(context.cacheDir, FAVICON_CACHE_DIR).also { it.mkdirs() }
-    }
+    // 内存缓存与其他图标共用同一个上限，下载和磁盘缓存由统一的图标服务负责
+    private val iconCache = AppIconCache.getInstance(context)
+    private val iconService = IconService.getInstance(context)
     
     /**
      * 获取网站favicon图标
@@ -48,51 +42,33 @@ class FaviconManager private constructor(private val context: Context) {
      */
     fun getFavicon(domain: String, callback: (Bitmap?) -> Unit) {
         // 先从内存缓存获取
-        val cachedBitmap = memoryCache.get(domain)
+        val cachedBitmap = iconCache.get(CACHE_PREFIX + domain)
         if (cachedBitmap != null) {
             callback(cachedBitmap)
             return
         }
         
-        // 从文件缓存获取
-        val cacheFile = getFaviconFile(domain)
-        if (cacheFile.exists()) {
-            try {
-                val bitmap = BitmapFactory.decodeFile(cacheFile.absolutePath)
-                if (bitmap != null) {
-                    memoryCache.put(domain, bitmap)
-                    callback(bitmap)
-                    return
-                }
-            } catch (e: Exception) {
-                Log.e(TAG, "Failed to load favicon from cache: $domain", e)
-            }
-        }
-        
         // 尝试从资源获取
         val resourceBitmap = getResourceFavicon(domain)
         if (resourceBitmap != null) {
-            memoryCache.put(domain, resourceBitmap)
+            iconCache.put(CACHE_PREFIX + domain, resourceBitmap)
             callback(resourceBitmap)
-            saveFaviconToCache(domain, resourceBitmap)
             return
         }
         
-        // 从网络获取
+        // 上次成功的地址从共享磁盘缓存解码，否则逐个尝试网络来源
         CoroutineScope(Dispatchers.IO).launch {
             try {
-                val bitmap = downloadFavicon(domain)
+                val bitmap = iconService.loadRemembered(SOURCE_PREFIX + domain) ?: downloadFavicon(domain)
                 if (bitmap != null) {
-                    // 保存到缓存
-                    saveFaviconToCache(domain, bitmap)
-                    memoryCache.put(domain, bitmap)
+                    iconCache.put(CACHE_PREFIX + domain, bitmap)
                     withContext(Dispatchers.Main) {
                         callback(bitmap)
                     }
                 } else {
                     // 使用默认图标
                     val defaultBitmap = getDefaultFavicon()
-                    memoryCache.put(domain, defaultBitmap)
+                    iconCache.put(CACHE_PREFIX + domain, defaultBitmap)
                     withContext(Dispatchers.Main) {
                         callback(defaultBitmap)
                     }
@@ -178,20 +154,10 @@ class FaviconManager private constructor(private val context: Context) {
                 )
                 
                 for (service in services) {
-                    try {
-                        val url = URL(service)
-                        val connection = url.openConnection()
-                        connection.connectTimeout = 3000 // 3秒超时
-                        connection.readTimeout = 3000
-                        val inputStream = connection.getInputStream()
-                        val bitmap = BitmapFactory.decodeStream(inputStream)
-                        inputStream.close()
-                        if (bitmap != null && bitmap.width > 1 && bitmap.height > 1) {
-                            return@withContext bitmap
-                        }
-                    } catch (e: Exception) {
-                        Log.e(TAG, "Failed to download favicon from $service: $domain", e)
-                        continue
+                    val bitmap = iconService.load(service, minSourcePx = 2)
+                    if (bitmap != null) {
+                        iconService.rememberUrl(SOURCE_PREFIX + domain, service)
+                        return@withContext bitmap
                     }
                 }
                 null
@@ -202,36 +168,6 @@ class FaviconManager private constructor(private val context: Context) {
         }
     }
     
-    /**
-     * 将favicon保存到缓存
-     * 
-     * @param domain 域名
-     * @param bitmap 图标Bitmap
-     */
-    private fun saveFaviconToCache(domain: String, bitmap: Bitmap) {
-        try {
-            val file = getFaviconFile(domain)
-            FileOutputStream(file).use { out ->
-                bitmap.compress(Bitmap.CompressFormat.PNG, 100, out)
-            }
-        } catch (e: Exception) {
-            Log.e(TAG, "Failed to save favicon to cache: $domain", e)
-        }
-    }
-    
-    /**
-     * 获取缓存文件路径
-     * 
-     * @param domain 域名
-     * @return 缓存文件
-     */
-    private fun getFaviconFile(domain: String): File {
-        val hash = MessageDigest.getInstance("MD5")
-            .digest(domain.toByteArray())
-            .joinToString("") { "%02x".format(it) }
-        return File(cacheDir, "$hash.png")
-    }
-    
     /**
      * 创建圆角图标
      * 
@@ -249,7 +185,8 @@ class FaviconManager private constructor(private val context: Context) {
      * 清除缓存
      */
     fun clearCache() {
-        memoryCache.evictAll()
-        cacheDir.listFiles()?.forEach { it.delete() }
+        iconCache.removeByPrefix(CACHE_PREFIX)
+        iconService.forgetUrls(SOURCE_PREFIX)
+        File(context.cacheDir, LEGACY_CACHE_DIR).deleteRecursively()
     }
 } 
\ No newline at end of file
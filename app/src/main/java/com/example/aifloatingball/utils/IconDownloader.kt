@@ -2,17 +2,17 @@ package com.example.aifloatingball.utils
 
 import android.content.Context
 import android.graphics.Bitmap
-import android.graphics.BitmapFactory
 import android.util.Log
+import com.example.aifloatingball.manager.IconService
 import kotlinx.coroutines.*
 import java.io.File
 import java.io.FileOutputStream
-import java.net.URL
 import java.util.concurrent.TimeUnit
 
 class IconDownloader(private val context: Context) {
     private val scope = CoroutineScope(Dispatchers.IO + Job())
     private val iconDir = File(context.filesDir, "icons")
+    private val iconService = IconService.getInstance(context)
     
     // 搜索引擎图标映射
     private val searchEngineIcons = mapOf(
@@ -200,6 +200,8 @@ class IconDownloader(private val context: Context) {
     fun downloadAllIcons() {
         scope.launch {
             searchEngineIcons.forEach { (name, urls) ->
+                // 已导出的图标不再重复获取
+                if (getLocalIconPath(name) != null) return@forEach
                 try {
                     // 尝试从主要URL下载
                     var downloaded = false
@@ -226,28 +228,20 @@ class IconDownloader(private val context: Context) {
         }
     }
 
+    /**
+     * 通过 [IconService] 获取图标（共享下载、磁盘缓存和失败记录），再导出为 [getLocalIconPath] 返回的 PNG 文件
+     */
     private suspend fun downloadIcon(name: String, url: String): Boolean {
+        val bitmap = iconService.load(url) ?: return false
         return withContext(Dispatchers.IO) {
             try {
-                val connection = URL(url).openConnection().apply {
-                    connectTimeout = 5000
-                    readTimeout = 5000
-                }
-                
-                val inputStream = connection.getInputStream()
-                val bitmap = BitmapFactory.decodeStream(inputStream)
-                
-                if (bitmap != null) {
-                    val file = File(iconDir, "${name}.png")
-                    FileOutputStream(file).use { out ->
-                        bitmap.compress(Bitmap.CompressFormat.PNG, 100, out)
-                    }
-                    true
-                } else {
-                    false
+                val file = File(iconDir, "${name}.png")
+                FileOutputStream(file).use { out ->
+                    bitmap.compress(Bitmap.CompressFormat.PNG, 100, out)
                 }
+                true
             } catch (e: Exception) {
-                Log.e("IconDownloader", "Failed to download icon from $url", e)
+                Log.e("IconDownloader", "Failed to save icon from $url", e)
                 false
             }
         }
@@ -0,0 +1,246 @@
+package com.example.aifloatingball.utils
+
+/**
+ * 流式回复用的块级增量Markdown解析器
+ *
+ * 文本只会在末尾追加：已经结束的块（后面出现空行、下一个块开始或代码块闭合）不会再变化，
+ * 未结束的块的状态保留在解析器中，每次 [append] 只扫描新增的完整行和末尾未完整的一行，
+ * 整段回复的解析量与长度成线性关系，而不是每来一个片段就把整段重新解析一遍。
+ *
+ * 只划分块的边界和类型，块内的行内语法由渲染器处理。不依赖 Android 框架。
+ */
+class IncrementalMarkdownParser {
+
+    enum class BlockType {
+        PARAGRAPH,
+        HEADING,
+        CODE_FENCE,
+        LIST,
+        QUOTE,
+        TABLE
+    }
+
+    /**
+     * 一个块
+     *
+     * @param start 块在全文中的起始位置
+     * @param text 块的原文，不含结尾换行
+     */
+    data class Block(val type: BlockType, val start: Int, val text: String)
+
+    private val source = StringBuilder()
+    private val closedBlocks = ArrayList<Block>()
+    // 下一个要扫描的行的起点，之前的完整行不会再被扫描
+    private var scanPos = 0
+    // 未结束的块的起点和类型，没有时 openStart 为 -1
+    private var openStart = -1
+    private var openType = BlockType.PARAGRAPH
+    private var fenceMarker: String? = null
+    private var finished = false
+
+    /**
+     * 累计扫描过的字符数，用于确认没有重复解析已结束的内容
+     */
+    var scannedChars = 0L
+        private set
+
+    /** 目前为止的全文 */
+    val text: CharSequence get() = source
+
+    /** 已经结束、内容不会再变化的块 */
+    val stableBlocks: List<Block> get() = closedBlocks
+
+    /** 仍在增长的最后一个块，没有时为 null；每次访问都会重新截取，只应在渲染时读取 */
+    val openBlock: Block?
+        get() {
+            val length = source.length
+            return when {
+                openStart >= 0 -> Block(openType, openStart, source.substring(openStart, trimLineEnd(openStart, length)))
+                scanPos < length && !isBlank(scanPos, length) ->
+                    Block(lineType(scanPos, length), scanPos, source.substring(scanPos, length))
+                else -> null
+            }
+        }
+
+    /** 所有块，包括仍在增长的最后一个块 */
+    val blocks: List<Block>
+        get() = openBlock?.let { closedBlocks + it } ?: closedBlocks
+
+    /**
+     * 追加一段文本
+     *
+     * @return 本次新结束的块数
+     */
+    fun append(chunk: CharSequence): Int {
+        check(!finished) { "解析已结束" }
+        if (chunk.isEmpty()) return 0
+        source.append(chunk)
+        return scan(endOfInput = false)
+    }
+
+    /**
+     * 流结束，最后一个块也视为结束
+     *
+     * @return 本次新结束的块数
+     */
+    fun finish(): Int {
+        if (finished) return 0
+        finished = true
+        return scan(endOfInput = true)
+    }
+
+    fun reset() {
+        source.setLength(0)
+        closedBlocks.clear()
+        scanPos = 0
+        openStart = -1
+        fenceMarker = null
+        finished = false
+        scannedChars = 0
+    }
+
+    private fun scan(endOfInput: Boolean): Int {
+        val closedBefore = closedBlocks.size
+        val length = source.length
+        var lineStart = scanPos
+
+        while (lineStart < length) {
+            var lineEnd = lineStart
+            while (lineEnd < length && source[lineEnd] != '\n') lineEnd++
+            val complete = lineEnd < length
+            // 未完整的最后一行只在输入结束时参与判断，下次从它的行首继续
+            if (!complete && !endOfInput) break
+            val next = if (complete) lineEnd + 1 else lineEnd
+            scannedChars += next - lineStart
+            processLine(lineStart, lineEnd, next)
+            lineStart = next
+        }
+        scanPos = lineStart
+        if (endOfInput && openStart >= 0) closeOpen(length)
+        return closedBlocks.size - closedBefore
+    }
+
+    private fun processLine(lineStart: Int, lineEnd: Int, next: Int) {
+        val marker = fenceMarker
+        if (marker != null) {
+            if (startsWithTrimmed(lineStart, lineEnd, marker)) closeOpen(next)
+            return
+        }
+        if (isBlank(lineStart, lineEnd)) {
+            if (openStart >= 0) closeOpen(lineStart)
+            return
+        }
+
+        val type = lineType(lineStart, lineEnd)
+        if (openStart >= 0 && !continues(openType, type, lineStart)) closeOpen(lineStart)
+        if (openStart < 0) {
+            openStart = lineStart
+            openType = type
+            if (type == BlockType.CODE_FENCE) fenceMarker = fenceMarkerOf(lineStart, lineEnd)
+        }
+        // 标题只占一行
+        if (openType == BlockType.HEADING) closeOpen(next)
+    }
+
+    private fun closeOpen(end: Int) {
+        closedBlocks.add(Block(openType, openStart, source.substring(openStart, trimLineEnd(openStart, end))))
+        openStart = -1
+        fenceMarker = null
+    }
+
+    private fun continues(current: BlockType, line: BlockType, lineStart: Int): Boolean {
+        return when (current) {
+            BlockType.PARAGRAPH -> line == BlockType.PARAGRAPH
+            // 缩进的行属于上一个列表项
+            BlockType.LIST -> line == BlockType.LIST || (line == BlockType.PARAGRAPH && isIndented(lineStart))
+            BlockType.QUOTE -> line == BlockType.QUOTE
+            BlockType.TABLE -> line == BlockType.TABLE
+            BlockType.HEADING, BlockType.CODE_FENCE -> false
+        }
+    }
+
+    private fun lineType(start: Int, end: Int): BlockType {
+        var i = start
+        while (i < end && source[i] == ' ' && i - start < 4) i++
+        if (i >= end) return BlockType.PARAGRAPH
+        val c = source[i]
+        return when {
+            startsWith(i, end, "```") || startsWith(i, end, "~~~") -> BlockType.CODE_FENCE
+            c == '#' && isHeading(i, end) -> BlockType.HEADING
+            c == '>' -> BlockType.QUOTE
+            c == '|' -> BlockType.TABLE
+            isListMarker(i, end) -> BlockType.LIST
+            else -> BlockType.PARAGRAPH
+        }
+    }
+
+    private fun isHeading(start: Int, end: Int): Boolean {
+        var i = start
+        while (i < end && source[i] == '#') i++
+        val level = i - start
+        return level in 1..6 && (i == end || source[i] == ' ')
+    }
+
+    private fun isListMarker(start: Int, end: Int): Boolean {
+        val c = source[start]
+        if (c == '-' || c == '*' || c == '+' || c == '•') {
+            return start + 1 < end && source[start + 1] == ' '
+        }
+        var i = start
+        while (i < end && source[i].isDigit()) i++
+        return i > start && i - start <= 9 && i + 1 < end &&
+            (source[i] == '.' || source[i] == ')') && source[i + 1] == ' '
+    }
+
+    private fun isIndented(lineStart: Int): Boolean {
+        return lineStart < source.length && (source[lineStart] == ' ' || source[lineStart] == '\t')
+    }
+
+    private fun fenceMarkerOf(start: Int, end: Int): String {
+        var i = start
+        while (i < end && source[i] == ' ') i++
+        val c = source[i]
+        var j = i
+        while (j < end && source[j] == c) j++
+        return source.substring(i, j)
+    }
+
+    private fun startsWithTrimmed(start: Int, end: Int, prefix: String): Boolean {
+        var i = start
+        while (i < end && source[i] == ' ') i++
+        return startsWith(i, end, prefix)
+    }
+
+    private fun startsWith(start: Int, end: Int, prefix: String): Boolean {
+        if (end - start < prefix.length) return false
+        for (k in prefix.indices) {
+            if (source[start + k] != prefix[k]) return false
+        }
+        return true
+    }
+
+    private fun isBlank(start: Int, end: Int): Boolean {
+        for (i in start until end) {
+            if (!source[i].isWhitespace()) return false
+        }
+        return true
+    }
+
+    private fun trimLineEnd(start: Int, end: Int): Int {
+        var e = end
+        while (e > start && (source[e - 1] == '\n' || source[e - 1] == '\r')) e--
+        return e
+    }
+
+    companion object {
+        /**
+         * 一次性解析完整文本
+         */
+        fun parse(text: CharSequence): List<Block> {
+            val parser = IncrementalMarkdownParser()
+            parser.append(text)
+            parser.finish()
+            return parser.blocks
+        }
+    }
+}
@@ -2,18 +2,18 @@ package com.example.aifloatingball.utils
 
 import android.content.Context
 import android.graphics.Bitmap
-import android.graphics.BitmapFactory
 import android.graphics.Canvas
 import android.graphics.drawable.BitmapDrawable
 import android.graphics.drawable.Drawable
 import android.os.Handler
 import android.os.Looper
 import android.util.Log
-import android.util.LruCache
 import android.widget.ImageView
 import androidx.core.content.ContextCompat
 import com.example.aifloatingball.R
+import com.example.aifloatingball.manager.AppIconCache
 import com.example.aifloatingball.manager.AppStoreIconManager
+import com.example.aifloatingball.manager.IconService
 import com.example.aifloatingball.model.AppSearchConfig
 import kotlinx.coroutines.*
 import java.util.concurrent.Executors
@@ -25,20 +25,13 @@ import java.util.concurrent.Executors
 object PlatformIconLoader {
     
     private const val TAG = "PlatformIconLoader"
+    // 处理后的图标放在共享的图标缓存中，用前缀区分
+    private const val CACHE_PREFIX = "platform:"
     
-    private val memoryCache: LruCache<String, Bitmap>
     private val executor = Executors.newFixedThreadPool(3)
     private val uiHandler = Handler(Looper.getMainLooper())
     
     init {
-        val maxMemory = (Runtime.getRuntime().maxMemory() / 1024).toInt()
-        val cacheSize = maxMemory / 16 // 使用更小的缓存空间
-        memoryCache = object : LruCache<String, Bitmap>(cacheSize) {
-            override fun sizeOf(key: String, bitmap: Bitmap): Int {
-                return bitmap.byteCount / 1024
-            }
-        }
-        
         // 预加载常用网站的favicon
         CoroutineScope(Dispatchers.IO).launch {
             FaviconLoader.preloadCommonFavicons()
@@ -133,10 +126,11 @@ object PlatformIconLoader {
      */
     private fun loadPresetPlatformIcon(imageView: ImageView, platformName: String, config: PlatformIconConfig) {
         val cacheKey = "platform_$platformName"
+        val memoryCache = AppIconCache.getInstance(imageView.context)
         imageView.tag = cacheKey
         
         // 检查内存缓存
-        val cachedBitmap = memoryCache.get(cacheKey)
+        val cachedBitmap = memoryCache.get(CACHE_PREFIX + cacheKey)
         if (cachedBitmap != null) {
             // 使用缓存图标时移除 tint 和背景，避免绿色覆盖/底色
             imageView.imageTintList = null
@@ -172,7 +166,7 @@ object PlatformIconLoader {
                 if (imageView.tag == cacheKey) {
                     if (bitmap != null) {
                         imageView.setImageBitmap(bitmap)
-                        memoryCache.put(cacheKey, bitmap)
+                        memoryCache.put(CACHE_PREFIX + cacheKey, bitmap)
                     }
                 }
             }
@@ -186,10 +180,11 @@ object PlatformIconLoader {
      */
     private fun loadDynamicAppIcon(imageView: ImageView, appName: String, context: Context) {
         val cacheKey = "app_$appName"
+        val memoryCache = AppIconCache.getInstance(context)
         imageView.tag = cacheKey
         
         // 检查内存缓存
-        val cachedBitmap = memoryCache.get(cacheKey)
+        val cachedBitmap = memoryCache.get(CACHE_PREFIX + cacheKey)
         if (cachedBitmap != null) {
             imageView.setImageBitmap(cachedBitmap)
             return
@@ -218,7 +213,7 @@ object PlatformIconLoader {
                         // 将Drawable转换为Bitmap并缓存
                         val bitmap = drawableToBitmap(processedIcon)
                         if (bitmap != null) {
-                            memoryCache.put(cacheKey, bitmap)
+                            memoryCache.put(CACHE_PREFIX + cacheKey, bitmap)
                             if (imageView.tag == cacheKey) {
                                 imageView.imageTintList = null
                                 imageView.clearColorFilter()
@@ -233,7 +228,7 @@ object PlatformIconLoader {
                         val bitmap = drawableToBitmap(realIcon)
                         if (bitmap != null) {
                             val scaledBitmap = scaleBitmap(bitmap, 144)
-                            memoryCache.put(cacheKey, scaledBitmap)
+                            memoryCache.put(CACHE_PREFIX + cacheKey, scaledBitmap)
                             if (imageView.tag == cacheKey) {
                                 imageView.imageTintList = null
                                 imageView.clearColorFilter()
@@ -270,7 +265,7 @@ object PlatformIconLoader {
                                 if (processedIcon != null) {
                                     val bitmap = drawableToBitmap(processedIcon)
                                     if (bitmap != null) {
-                                        memoryCache.put(cacheKey, bitmap)
+                                        memoryCache.put(CACHE_PREFIX + cacheKey, bitmap)
                                         if (imageView.tag == cacheKey) {
                                             imageView.setImageBitmap(bitmap)
                                         }
@@ -391,6 +386,7 @@ object PlatformIconLoader {
      */
     private fun tryPresetIconResource(imageView: ImageView, appName: String, context: Context, cacheKey: String) {
         val config = platformIconConfigs[appName]
+        val memoryCache = AppIconCache.getInstance(context)
         if (config != null) {
             try {
                 val presetIcon = ContextCompat.getDrawable(context, config.resourceId)
@@ -401,7 +397,7 @@ object PlatformIconLoader {
                     if (processedIcon != null) {
                         val bitmap = drawableToBitmap(processedIcon)
                         if (bitmap != null) {
-                            memoryCache.put(cacheKey, bitmap)
+                            memoryCache.put(CACHE_PREFIX + cacheKey, bitmap)
                             if (imageView.tag == cacheKey) {
                                 imageView.setImageBitmap(bitmap)
                             }
@@ -510,31 +506,11 @@ object PlatformIconLoader {
     }
     
     /**
-     * 从URL加载Bitmap
+     * 从URL加载Bitmap，下载、采样解码和缓存由 [IconService] 负责，应在后台线程调用
      */
     private fun loadBitmapFromUrl(url: String, targetSize: Int): Bitmap? {
-        return try {
-            val connection = java.net.URL(url).openConnection() as java.net.HttpURLConnection
-            connection.connectTimeout = 3000
-            connection.readTimeout = 3000
-            connection.setRequestProperty("User-Agent", "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36")
-            connection.connect()
-            
-            if (connection.responseCode == 200) {
-                val inputStream = connection.inputStream
-                val bitmap = BitmapFactory.decodeStream(inputStream)
-                inputStream.close()
-                
-                if (bitmap != null && bitmap.width > 0 && bitmap.height > 0) {
-                    // 缩放到目标大小
-                    return scaleBitmap(bitmap, targetSize)
-                }
-            }
-            null
-        } catch (e: Exception) {
-            Log.e(TAG, "Error loading bitmap from $url", e)
-            null
-        }
+        val bitmap = IconService.peekInstance()?.loadBlocking(url, targetSize) ?: return null
+        return scaleBitmap(bitmap, targetSize)
     }
     
     /**
@@ -565,9 +541,10 @@ object PlatformIconLoader {
             executor.execute {
                 val config = platformIconConfigs[platformName] ?: return@execute
                 val cacheKey = "platform_$platformName"
+                val memoryCache = AppIconCache.peekInstance() ?: return@execute
                 
                 // 如果已经缓存，跳过
-                if (memoryCache.get(cacheKey) != null) {
+                if (memoryCache.get(CACHE_PREFIX + cacheKey) != null) {
                     return@execute
                 }
                 
@@ -576,7 +553,7 @@ object PlatformIconLoader {
                     try {
                         val bitmap = loadBitmapFromUrl(iconUrl, config.targetSize)
                         if (bitmap != null) {
-                            memoryCache.put(cacheKey, bitmap)
+                            memoryCache.put(CACHE_PREFIX + cacheKey, bitmap)
                             Log.d(TAG, "Preloaded icon for platform: $platformName")
                             break
                         }
@@ -593,6 +570,6 @@ object PlatformIconLoader {
      * 清理缓存
      */
     fun clearCache() {
-        memoryCache.evictAll()
+        AppIconCache.peekInstance()?.removeByPrefix(CACHE_PREFIX)
     }
 }
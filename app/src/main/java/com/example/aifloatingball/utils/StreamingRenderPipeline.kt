@@ -0,0 +1,147 @@
+package com.example.aifloatingball.utils
+
+import android.content.Context
+import android.hardware.display.DisplayManager
+import android.text.SpannableStringBuilder
+import android.util.Log
+import android.view.Choreographer
+import android.view.Display
+
+/**
+ * 流式回复的渲染管线
+ *
+ * 网络片段到达时只追加到 [IncrementalMarkdownParser]，真正的渲染通过 [Choreographer]
+ * 合并到下一帧，每帧最多一次。已结束的块只渲染一次并缓存，每帧只重新渲染最后一个未结束的块。
+ *
+ * 每次流式回复结束时输出统计：片段数、实际渲染帧数、主线程渲染耗时和回调迟到导致的掉帧数。
+ * 必须在主线程创建和调用。
+ *
+ * @param renderBlock 渲染单个块的原文
+ * @param onFrame 每帧渲染完成后回调，参数为目前为止的完整渲染结果
+ */
+class StreamingRenderPipeline(
+    private val renderBlock: (String) -> CharSequence,
+    private val frameIntervalNanos: Long = DEFAULT_FRAME_INTERVAL_NANOS,
+    private val onFrame: (CharSequence) -> Unit
+) : Choreographer.FrameCallback {
+
+    companion object {
+        private const val TAG = "StreamingRender"
+        const val DEFAULT_FRAME_INTERVAL_NANOS = 16_666_667L
+
+        /**
+         * 默认屏幕的帧间隔，获取失败时按 60Hz 计算
+         */
+        fun frameIntervalNanos(context: Context): Long {
+            val displayManager = context.getSystemService(Context.DISPLAY_SERVICE) as? DisplayManager
+            val refreshRate = displayManager?.getDisplay(Display.DEFAULT_DISPLAY)?.refreshRate ?: 0f
+            return if (refreshRate >= 1f) (1_000_000_000L / refreshRate).toLong() else DEFAULT_FRAME_INTERVAL_NANOS
+        }
+    }
+
+    /**
+     * 一次流式回复的渲染统计
+     *
+     * @param chunks 收到的内容更新次数
+     * @param frames 实际渲染的帧数
+     * @param mainThreadMs 主线程上解析和渲染的总耗时
+     * @param skippedFrames 帧回调相对垂直同步迟到的帧数
+     */
+    data class Stats(
+        val chars: Int,
+        val chunks: Int,
+        val frames: Int,
+        val blocks: Int,
+        val mainThreadMs: Double,
+        val skippedFrames: Long
+    )
+
+    private val choreographer = Choreographer.getInstance()
+    private val parser = IncrementalMarkdownParser()
+    private val stablePrefix = SpannableStringBuilder()
+    private var renderedBlocks = 0
+    private var scheduled = false
+    private var dirty = false
+
+    private var chunks = 0
+    private var frames = 0
+    private var mainThreadNanos = 0L
+    private var skippedFrames = 0L
+
+    /**
+     * 传入目前为止的完整内容；与上次内容前缀一致时只解析新增部分，否则从头开始
+     */
+    fun update(content: CharSequence) {
+        val start = System.nanoTime()
+        val current = parser.text
+        if (content.startsWith(current)) {
+            if (content.length == current.length) return
+            parser.append(content.subSequence(current.length, content.length))
+        } else {
+            resetDocument()
+            parser.append(content)
+        }
+        chunks++
+        dirty = true
+        mainThreadNanos += System.nanoTime() - start
+        if (!scheduled) {
+            scheduled = true
+            choreographer.postFrameCallback(this)
+        }
+    }
+
+    override fun doFrame(frameTimeNanos: Long) {
+        scheduled = false
+        val start = System.nanoTime()
+        val lateness = start - frameTimeNanos
+        if (lateness >= frameIntervalNanos) skippedFrames += lateness / frameIntervalNanos
+        if (!dirty) return
+        dirty = false
+
+        val rendered = render()
+        frames++
+        mainThreadNanos += System.nanoTime() - start
+        onFrame(rendered)
+    }
+
+    /**
+     * 流式回复结束，取消尚未执行的帧并输出统计
+     */
+    fun finish(): Stats {
+        choreographer.removeFrameCallback(this)
+        scheduled = false
+        dirty = false
+        val stats = Stats(
+            chars = parser.text.length,
+            chunks = chunks,
+            frames = frames,
+            blocks = parser.stableBlocks.size + if (parser.openBlock != null) 1 else 0,
+            mainThreadMs = mainThreadNanos / 1_000_000.0,
+            skippedFrames = skippedFrames
+        )
+        Log.d(TAG, "流式渲染: ${stats.chars} 字, ${stats.chunks} 次更新合并为 ${stats.frames} 帧, " +
+            "${stats.blocks} 个块, 主线程 ${"%.1f".format(stats.mainThreadMs)}ms, 掉帧 ${stats.skippedFrames}")
+        return stats
+    }
+
+    private fun render(): CharSequence {
+        val stable = parser.stableBlocks
+        while (renderedBlocks < stable.size) {
+            appendBlock(stablePrefix, stable[renderedBlocks++].text)
+        }
+        val open = parser.openBlock ?: return SpannableStringBuilder(stablePrefix)
+        return SpannableStringBuilder(stablePrefix).also { appendBlock(it, open.text) }
+    }
+
+    private fun appendBlock(builder: SpannableStringBuilder, text: String) {
+        if (builder.isNotEmpty()) builder.append('\n')
+        builder.append(renderBlock(text))
+    }
+
+    private fun resetDocument() {
+        parser.reset()
+        stablePrefix.clear()
+        stablePrefix.clearSpans()
+        renderedBlocks = 0
+    }
+}
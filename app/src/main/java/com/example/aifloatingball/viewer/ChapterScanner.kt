@@ -0,0 +1,202 @@
+package com.example.aifloatingball.viewer
+
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.IOException
+import java.nio.CharBuffer
+
+/**
+ * TXT电子书的流式章节扫描器
+ *
+ * 通过 [MappedTextBook.forEachChunk] 分块解码整本书，逐行识别卷、章、节和编号标题，
+ * 每扫完一块就把新找到的章节交给回调，目录可以边扫描边显示。章节位置是全文中的字符位置，
+ * 与分页使用同一种解码方式，除以每页字符数即为页码。
+ *
+ * 扫描结果按文件指纹保存为二进制索引，再次打开同一本书时直接读取。只依赖 JDK。
+ */
+class ChapterScanner(private val chunkChars: Int = DEFAULT_CHUNK_CHARS) {
+
+    companion object {
+        const val LEVEL_VOLUME = 0
+        const val LEVEL_CHAPTER = 1
+        const val LEVEL_SECTION = 2
+
+        private const val DEFAULT_CHUNK_CHARS = 64 * 1024
+        private const val MAX_TITLE_LENGTH = 50
+        private const val MAX_NUMBERED_TITLE_LENGTH = 30
+        private const val INDEX_MAGIC = 0x54584348 // "TXCH"
+        private const val INDEX_VERSION = 1
+
+        private const val NUMBER = "[0-9０-９零〇一二三四五六七八九十百千万两壹贰叁肆伍陆柒捌玖拾佰仟]+"
+        private val VOLUME_PATTERN = Regex("^(第${NUMBER}[卷部集篇]|卷${NUMBER}(\\s|$))")
+        private val CHAPTER_PATTERN = Regex("^(第${NUMBER}[章回]|(?i:chapter)\\s*\\d+|(序章|序言|楔子|引子|前言|尾声|后记|终章|番外))")
+        private val SECTION_PATTERN = Regex("^第${NUMBER}节")
+        private val NUMBERED_PATTERN = Regex("^(\\d{1,4})[.、．:：\\s]\\s*\\S")
+        private const val HEADING_FIRST_CHARS = "第卷Cc序楔引前尾后终番"
+        private const val SENTENCE_END_CHARS = "。，；！？…,;!?"
+
+        /**
+         * 某本书的章节索引文件
+         */
+        fun indexFile(dir: File, book: MappedTextBook): File = File(dir, book.fingerprint() + ".chi")
+
+        /**
+         * 读取章节索引，文件不存在或与书的长度不符时返回 null
+         */
+        fun load(file: File, byteLength: Int): List<Entry>? {
+            if (!file.exists()) return null
+            return try {
+                DataInputStream(file.inputStream().buffered()).use { input ->
+                    if (input.readInt() != INDEX_MAGIC || input.readInt() != INDEX_VERSION) return null
+                    if (input.readInt() != byteLength) return null
+                    val count = input.readInt()
+                    List(count) {
+                        val position = input.readInt()
+                        val level = input.readByte().toInt()
+                        Entry(input.readUTF(), position, level)
+                    }
+                }
+            } catch (e: IOException) {
+                null
+            }
+        }
+
+        /**
+         * 保存章节索引，先写临时文件再重命名
+         */
+        fun save(file: File, byteLength: Int, entries: List<Entry>) {
+            file.parentFile?.mkdirs()
+            val temp = File(file.path + ".tmp")
+            DataOutputStream(temp.outputStream().buffered()).use { output ->
+                output.writeInt(INDEX_MAGIC)
+                output.writeInt(INDEX_VERSION)
+                output.writeInt(byteLength)
+                output.writeInt(entries.size)
+                for (entry in entries) {
+                    output.writeInt(entry.position)
+                    output.writeByte(entry.level)
+                    output.writeUTF(entry.title)
+                }
+            }
+            if (!temp.renameTo(file)) {
+                temp.delete()
+                throw IOException("无法保存章节索引: ${file.path}")
+            }
+        }
+    }
+
+    /**
+     * 扫描到的章节
+     *
+     * @param position 标题在全文中的字符位置
+     * @param level [LEVEL_VOLUME]、[LEVEL_CHAPTER] 或 [LEVEL_SECTION]
+     */
+    data class Entry(val title: String, val position: Int, val level: Int)
+
+    // 跨块的未完整行
+    private val pendingLine = StringBuilder()
+    private var pendingLineStart = 0
+    private var lastNumber = 0
+    private var hasNamedChapters = false
+
+    /**
+     * 扫描整本书
+     *
+     * @param checkpoint 每扫完一块调用一次，在其中抛出异常即可中止
+     * @param onChapters 每扫完一块、有新章节时调用，参数为本块新找到的章节
+     * @return 全部章节，按位置排序
+     */
+    fun scan(
+        book: MappedTextBook,
+        checkpoint: () -> Unit = {},
+        onChapters: (List<Entry>) -> Unit = {}
+    ): List<Entry> {
+        pendingLine.setLength(0)
+        pendingLineStart = 0
+        lastNumber = 0
+        hasNamedChapters = false
+
+        val all = ArrayList<Entry>()
+        book.forEachChunk(chunkChars) { chunk, charOffset, _ ->
+            val found = ArrayList<Entry>()
+            scanChunk(chunk, charOffset, found)
+            if (found.isNotEmpty()) {
+                all.addAll(found)
+                onChapters(found)
+            }
+            checkpoint()
+        }
+        // 最后一行没有换行符
+        if (pendingLine.isNotEmpty()) {
+            val found = ArrayList<Entry>()
+            processLine(pendingLine, pendingLineStart, found)
+            pendingLine.setLength(0)
+            if (found.isNotEmpty()) {
+                all.addAll(found)
+                onChapters(found)
+            }
+        }
+        return all
+    }
+
+    private fun scanChunk(chunk: CharBuffer, charOffset: Int, found: MutableList<Entry>) {
+        val length = chunk.limit()
+        var lineStart = 0
+        for (i in 0 until length) {
+            if (chunk[i] != '\n') continue
+            if (pendingLine.isNotEmpty()) {
+                pendingLine.append(chunk, lineStart, i)
+                processLine(pendingLine, pendingLineStart, found)
+                pendingLine.setLength(0)
+            } else {
+                processLine(chunk.subSequence(lineStart, i), charOffset + lineStart, found)
+            }
+            lineStart = i + 1
+        }
+        if (lineStart < length) {
+            if (pendingLine.isEmpty()) pendingLineStart = charOffset + lineStart
+            pendingLine.append(chunk, lineStart, length)
+        }
+    }
+
+    private fun processLine(line: CharSequence, lineStart: Int, found: MutableList<Entry>) {
+        var start = 0
+        var end = line.length
+        while (start < end && isBlankChar(line[start])) start++
+        if (start == end) return
+        val first = line[start]
+        // 绝大多数行在这里就被排除，不需要跑正则
+        if (HEADING_FIRST_CHARS.indexOf(first) < 0 && !first.isDigit()) return
+        while (end > start && isBlankChar(line[end - 1])) end--
+        if (end - start > MAX_TITLE_LENGTH) return
+        if (SENTENCE_END_CHARS.indexOf(line[end - 1]) >= 0) return
+
+        val title = line.subSequence(start, end).toString()
+        val level = classify(title) ?: return
+        found.add(Entry(title, lineStart + start, level))
+    }
+
+    private fun classify(title: String): Int? {
+        if (VOLUME_PATTERN.containsMatchIn(title)) {
+            hasNamedChapters = true
+            return LEVEL_VOLUME
+        }
+        if (CHAPTER_PATTERN.containsMatchIn(title)) {
+            hasNamedChapters = true
+            return LEVEL_CHAPTER
+        }
+        if (SECTION_PATTERN.containsMatchIn(title)) return LEVEL_SECTION
+
+        // 编号标题（"1. 开端"、"002 夜雨"）只在没有"第X章"式标题的书中识别，
+        // 且编号必须连续，避免把正文中的列表当成章节
+        if (hasNamedChapters || title.length > MAX_NUMBERED_TITLE_LENGTH) return null
+        val match = NUMBERED_PATTERN.find(title) ?: return null
+        val number = match.groupValues[1].toInt()
+        if (number != lastNumber + 1) return null
+        lastNumber = number
+        return LEVEL_CHAPTER
+    }
+
+    private fun isBlankChar(c: Char): Boolean = c.isWhitespace() || c == '\u3000' || c == '\uFEFF'
+}
@@ -7,6 +7,7 @@ import android.net.Uri
 import android.os.Bundle
 import android.os.Handler
 import android.os.Looper
+import android.os.ParcelFileDescriptor
 import android.text.Html
 import android.util.Log
 import android.view.GestureDetector
@@ -19,6 +20,7 @@ import android.webkit.JavascriptInterface
 import android.webkit.WebView
 import android.webkit.WebViewClient
 import android.webkit.WebSettings
+import android.widget.ArrayAdapter
 import android.widget.Button
 import android.widget.ImageButton
 import android.widget.ImageView
@@ -38,6 +40,7 @@ import com.example.aifloatingball.model.CollectionType
 import com.example.aifloatingball.model.UnifiedCollectionItem
 import kotlinx.coroutines.*
 import java.io.File
+import java.io.IOException
 import java.io.InputStream
 import java.nio.charset.Charset
 import java.nio.charset.StandardCharsets
@@ -75,6 +78,11 @@ class FileReaderActivity : AppCompatActivity() {
         private const val EXTRA_FILE_PATH = "file_path"
         private const val EXTRA_FILE_NAME = "file_name"
         private const val EXTRA_PAGE_INDEX = "page_index"
+        private const val PAGE_INDEX_DIR = "reader_page_index"
+        private const val BOOK_COPY_DIR = "reader_books"
+        private const val CHARSET_SAMPLE_BYTES = 16 * 1024
+        private const val HEAD_SAMPLE_CHARS = 8 * 1024
+        private const val CHAPTER_INDEX_DIR = "reader_chapters"
         
         /**
          * 启动文件阅读器
@@ -151,16 +159,27 @@ class FileReaderActivity : AppCompatActivity() {
     private var filePath: String = ""
     private var fileName: String = ""
     private var fileUri: Uri? = null
-    private var fullText: String = ""
+    
+    // 内存映射的文本和按字节偏移的页索引
+    private var book: MappedTextBook? = null
+    private var bookIdentity: String = ""
+    private var bookPages: MappedTextBook.PageIndex? = null
+    private var pageIndexJob: Job? = null
+    // 页索引建好之前显示的那一页的起始字节，没有显示时为 null
+    private var previewStartByte: Int? = null
     
     // 分页信息
-    private var pages: List<String> = emptyList()
     private var currentPageIndex: Int = 0
     private var totalPages: Int = 0
     
     // 章节信息
-    private var chapters: List<Chapter> = emptyList()
+    private val chapters = mutableListOf<Chapter>()
     private var currentChapterIndex: Int = 0
+    private var chapterScanJob: Job? = null
+    private var isScanningChapters: Boolean = false
+    // 打开中的目录对话框，扫描到新章节时追加
+    private var catalogDialog: AlertDialog? = null
+    private var catalogAdapter: ArrayAdapter<String>? = null
     
     // TTS相关
     private var ttsManager: TTSManager? = null
@@ -673,7 +692,7 @@ class FileReaderActivity : AppCompatActivity() {
             override fun onStartTrackingTouch(seekBar: SeekBar?) {}
             
             override fun onStopTrackingTouch(seekBar: SeekBar?) {
-                seekBar?.let {
+                seekBar?.takeIf { totalPages > 0 }?.let {
                     val targetPage = (it.progress * totalPages / 100).coerceIn(0, totalPages - 1)
                     displayPage(targetPage)
                     updatePageInfo()
@@ -779,6 +798,9 @@ class FileReaderActivity : AppCompatActivity() {
     
     /**
      * 加载文本文件
+     *
+     * 文件通过 [MappedTextBook] 映射，不整本读入内存。页索引有缓存时直接使用；
+     * 没有时先从上次阅读的字节位置解码一页显示，再在后台建立并缓存页索引。
      */
     private suspend fun loadTextFile(uri: Uri) = withContext(Dispatchers.IO) {
         try {
@@ -790,170 +812,83 @@ class FileReaderActivity : AppCompatActivity() {
                 filePath = uri.toString()
             }
             
-            val inputStream: InputStream? = when (uri.scheme) {
-                "file" -> {
-                    val file = File(uri.path ?: "")
-                    if (file.exists()) file.inputStream() else null
-                }
-                "content" -> {
-                    contentResolver.openInputStream(uri)
+            val openStartTime = System.currentTimeMillis()
+            val opened = openTextBook(uri)
+            if (opened == null) {
+                withContext(Dispatchers.Main) {
+                    showError("无法读取文件")
                 }
-                else -> null
+                return@withContext
             }
+            val textBook = opened.first
+            book = textBook
+            bookIdentity = opened.second
             
-            // 🔧 修复：先获取文件大小，用于优化大文件处理
-            val fileSize = when (uri.scheme) {
-                "file" -> {
-                    val file = File(uri.path ?: "")
-                    if (file.exists()) file.length() else 0L
-                }
-                "content" -> {
-                    try {
-                        contentResolver.query(uri, null, null, null, null)?.use { cursor ->
-                            val sizeIndex = cursor.getColumnIndex(android.provider.OpenableColumns.SIZE)
-                            if (sizeIndex >= 0 && cursor.moveToFirst()) {
-                                cursor.getLong(sizeIndex)
-                            } else 0L
-                        } ?: 0L
-                    } catch (e: Exception) {
-                        Log.w(TAG, "无法获取文件大小", e)
-                        0L
-                    }
+            // 作者只从开头的样本中识别，章节在后台流式扫描
+            val head = textBook.decodeChars(0, HEAD_SAMPLE_CHARS).text
+            Log.d(TAG, "映射文件: ${textBook.byteLength}字节, 编码=${textBook.charset.name()}, 前100字符=${head.take(100).replace("\n", "\\n")}")
+            
+            if (head.isBlank() && head.length < HEAD_SAMPLE_CHARS) {
+                Log.w(TAG, "文件内容为空")
+                withContext(Dispatchers.Main) {
+                    showError("文件内容为空")
                 }
-                else -> 0L
+                return@withContext
             }
             
-            Log.d(TAG, "文件大小: ${fileSize / 1024 / 1024}MB")
+            // 🎯 智能识别作者
+            val detectedAuthor = extractAuthor(head)
             
-            inputStream?.use { stream ->
-                // 🔧 修复:检测文件编码并流式读取大文件
-                val charset = if (fileSize > 16384) {
-                    // 大文件：读取前16KB检测编码，然后流式读取
-                    val sampleBytes = ByteArray(16384)
-                    val bytesRead = stream.read(sampleBytes)
-                    val actualSample = if (bytesRead < sampleBytes.size) {
-                        sampleBytes.sliceArray(0 until bytesRead)
-                    } else {
-                        sampleBytes
-                    }
-                    val detectedCharset = detectCharset(actualSample)
-                    // 重新打开流（因为已经读取了前16KB）
-                    stream.close()
-                    val newStream = when (uri.scheme) {
-                        "file" -> File(uri.path ?: "").inputStream()
-                        "content" -> contentResolver.openInputStream(uri)
-                        else -> null
-                    } ?: throw Exception("无法重新打开文件流")
-                    
-                    // 🚀 优化：使用检测到的编码流式读取，带进度反馈
-                    fullText = readTextFileStreaming(
-                        newStream, 
-                        detectedCharset, 
-                        maxSize = 50 * 1024 * 1024,
-                        totalSize = fileSize
-                    ) { current, total ->
-                        // 在主线程更新进度
-                        scope.launch(Dispatchers.Main) {
-                            val progress = if (total > 0) (current * 100 / total).toInt() else 0
-                            errorTextView.text = "正在加载文件... ${current / 1024 / 1024}MB / ${total / 1024 / 1024}MB ($progress%)"
-                        }
-                    }
-                    detectedCharset
+            val charsPerPage = calculateCharsPerPage()
+            val cachedIndex = textBook.loadPageIndex(pageIndexFile(charsPerPage), charsPerPage)
+            val intentPageIndex = intent.getIntExtra(EXTRA_PAGE_INDEX, -1)
+            val progress = dataManager.getProgress(filePath)
+            // 只有知道上次阅读的字节位置时才能在分页完成前显示正确的一页
+            val preview = if (cachedIndex == null && intentPageIndex < 0 &&
+                (progress == null || progress.byteOffset > 0 || progress.currentPage == 0)) {
+                textBook.decodeChars((progress?.byteOffset ?: 0L).toInt(), charsPerPage)
+            } else null
+            
+            withContext(Dispatchers.Main) {
+                // 更新作者信息
+                if (detectedAuthor.isNotEmpty()) {
+                    bookAuthor.text = detectedAuthor
+                    Log.d(TAG, "识别到作者: $detectedAuthor")
                 } else {
-                    // 小文件：直接读取全部内容检测编码
-                    val allBytes = stream.readBytes()
-                    val detectedCharset = detectCharset(allBytes)
-                    fullText = String(allBytes, detectedCharset)
-                    detectedCharset
+                    bookAuthor.text = "未知作者"
                 }
                 
-                Log.d(TAG, "读取文件内容: 长度=${fullText.length}, 编码=${charset.name()}, 前100字符=${fullText.take(100).replace("\n", "\\n")}")
+                startChapterScan(textBook)
                 
-                if (fullText.isBlank()) {
-                    Log.w(TAG, "文件内容为空")
-                    withContext(Dispatchers.Main) {
-                        showError("文件内容为空")
+                when {
+                    cachedIndex != null -> {
+                        applyPageIndex(cachedIndex, intentPageIndex)
+                        Log.d(TAG, "使用缓存的页索引: 共 $totalPages 页")
                     }
-                    return@withContext
-                }
-                
-                // 🚀 优化：大文件异步分页，提升加载速度
-                val textLength = fullText.length
-                Log.d(TAG, "文件内容加载成功，长度=${textLength}")
-                
-                // 🎯 智能识别作者
-                val detectedAuthor = extractAuthor(fullText)
-                
-                withContext(Dispatchers.Main) {
-                    // 更新作者信息
-                    if (detectedAuthor.isNotEmpty()) {
-                        bookAuthor.text = detectedAuthor
-                        Log.d(TAG, "识别到作者: $detectedAuthor")
-                    } else {
-                        bookAuthor.text = "未知作者"
+                    preview != null -> {
+                        previewStartByte = preview.startByte
+                        loadPageHtml(preview.text)
+                        pageInfo.text = "正在分页..."
+                        startPageIndexing(textBook, charsPerPage, intentPageIndex)
+                    }
+                    else -> {
+                        progressBar.visibility = View.VISIBLE
+                        errorTextView.text = "正在分页..."
+                        errorTextView.visibility = View.VISIBLE
+                        startPageIndexing(textBook, charsPerPage, intentPageIndex)
+                        return@withContext
                     }
-                    
-                    // 显示加载提示
-                    progressBar.visibility = View.VISIBLE
-                    errorTextView.text = "正在处理文件..."
-                    errorTextView.visibility = View.VISIBLE
                 }
                 
-                // 🚀 优化1：简化章节解析 - 只解析前100KB，避免大文件卡顿
-                val chapterSampleSize = minOf(textLength, 100 * 1024)
-                val chapterSample = fullText.substring(0, chapterSampleSize)
-                parseChapters(chapterSample)
-                
-                // 🚀 优化2：异步分页 - 在后台线程执行
-                val startTime = System.currentTimeMillis()
-                pages = paginateText(fullText)
-                totalPages = pages.size
-                val paginationTime = System.currentTimeMillis() - startTime
+                // 隐藏进度条，显示WebView
+                progressBar.visibility = View.GONE
+                webView.visibility = View.VISIBLE
+                errorTextView.visibility = View.GONE
                 
-                Log.d(TAG, "分页完成: 共 $totalPages 页，耗时 ${paginationTime}ms")
+                Log.d(TAG, "首页显示耗时 ${System.currentTimeMillis() - openStartTime}ms，filePath=$filePath")
                 
-                withContext(Dispatchers.Main) {
-                    if (totalPages == 0) {
-                        Log.e(TAG, "分页失败，页面数为0")
-                        showError("无法分页，文件可能为空")
-                        progressBar.visibility = View.GONE
-                        return@withContext
-                    }
-                    
-                    // 加载阅读进度（必须在分页之后）
-                    loadReadingProgress()
-                    
-                    // 如果Intent中指定了页面索引，优先使用（用于从读书划线跳转）
-                    val intentPageIndex = intent.getIntExtra(EXTRA_PAGE_INDEX, -1)
-                    if (intentPageIndex >= 0) {
-                        currentPageIndex = intentPageIndex.coerceIn(0, totalPages - 1)
-                        Log.d(TAG, "使用Intent指定的页面索引: $intentPageIndex")
-                    }
-                    
-                    Log.d(TAG, "准备显示页面: currentPageIndex=$currentPageIndex, totalPages=$totalPages")
-                    
-                    // 显示当前页（可能是上次阅读的位置或Intent指定的位置）
-                    val targetPage = currentPageIndex.coerceIn(0, totalPages - 1)
-                    displayPage(targetPage)
-                    
-                    // 更新UI
-                    updatePageInfo()
-                    updateBookmarkButton()
-                    
-                    // 隐藏进度条，显示WebView
-                    progressBar.visibility = View.GONE
-                    webView.visibility = View.VISIBLE
-                    errorTextView.visibility = View.GONE
-                    
-                    Log.d(TAG, "文本文件加载成功，共 ${totalPages} 页，当前页=${targetPage + 1}，filePath=$filePath")
-                    
-                    // 自动收藏到AI助手的电子书收藏
-                    addToEbookCollection()
-                }
-            } ?: run {
-                withContext(Dispatchers.Main) {
-                    showError("无法读取文件")
-                }
+                // 自动收藏到AI助手的电子书收藏
+                addToEbookCollection()
             }
         } catch (e: Exception) {
             Log.e(TAG, "加载文本文件失败", e)
@@ -964,37 +899,132 @@ class FileReaderActivity : AppCompatActivity() {
     }
     
     /**
-     * 分页文本
+     * 映射文本文件，content:// 无法映射（例如来自管道）时先复制到缓存目录
+     *
+     * @return 映射后的书和用于区分文件版本的标识
      */
-    private fun paginateText(text: String): List<String> {
-        val pages = mutableListOf<String>()
-        val charsPerPage = calculateCharsPerPage()
-        
-        Log.d(TAG, "开始分页: 文本长度=${text.length}, 每页字符数=$charsPerPage")
-        
-        if (charsPerPage <= 0) {
-            Log.e(TAG, "每页字符数无效: $charsPerPage，使用默认值1000")
-            // 如果计算失败，使用默认值
-            val defaultCharsPerPage = 1000
-            var currentIndex = 0
-            while (currentIndex < text.length) {
-                val endIndex = minOf(currentIndex + defaultCharsPerPage, text.length)
-                val pageText = text.substring(currentIndex, endIndex)
-                pages.add(pageText)
-                currentIndex = endIndex
+    private fun openTextBook(uri: Uri): Pair<MappedTextBook, String>? {
+        when (uri.scheme) {
+            "file" -> {
+                val file = File(uri.path ?: "")
+                if (!file.exists()) return null
+                val charset = detectCharset(file.inputStream().use { readCharsetSample(it) })
+                return MappedTextBook.open(file, charset) to "${file.absolutePath}|${file.length()}|${file.lastModified()}"
             }
-        } else {
-            var currentIndex = 0
-            while (currentIndex < text.length) {
-                val endIndex = minOf(currentIndex + charsPerPage, text.length)
-                val pageText = text.substring(currentIndex, endIndex)
-                pages.add(pageText)
-                currentIndex = endIndex
+            "content" -> {
+                val sample = contentResolver.openInputStream(uri)?.use { readCharsetSample(it) } ?: return null
+                val charset = detectCharset(sample)
+                try {
+                    contentResolver.openFileDescriptor(uri, "r")?.let { descriptor ->
+                        ParcelFileDescriptor.AutoCloseInputStream(descriptor).use { stream ->
+                            val size = stream.channel.size()
+                            if (size > 0) return MappedTextBook.open(stream.channel, charset) to "$uri|$size"
+                        }
+                    }
+                } catch (e: Exception) {
+                    Log.w(TAG, "无法直接映射文件，复制到缓存目录", e)
+                }
+                val copy = File(File(cacheDir, BOOK_COPY_DIR), "${uri.toString().hashCode()}.txt")
+                copy.parentFile?.mkdirs()
+                contentResolver.openInputStream(uri)?.use { input ->
+                    copy.outputStream().use { input.copyTo(it) }
+                } ?: return null
+                return MappedTextBook.open(copy, charset) to "$uri|${copy.length()}"
+            }
+            else -> return null
+        }
+    }
+    
+    /**
+     * 读取文件开头用于检测编码
+     */
+    private fun readCharsetSample(stream: InputStream): ByteArray {
+        val sample = ByteArray(CHARSET_SAMPLE_BYTES)
+        var read = 0
+        while (read < sample.size) {
+            val n = stream.read(sample, read, sample.size - read)
+            if (n < 0) break
+            read += n
+        }
+        return if (read < sample.size) sample.copyOf(read) else sample
+    }
+    
+    /**
+     * 当前书在指定每页字符数下的页索引缓存文件
+     */
+    private fun pageIndexFile(charsPerPage: Int): File {
+        val textBook = book ?: throw IllegalStateException("未打开文件")
+        return MappedTextBook.indexCacheFile(File(cacheDir, PAGE_INDEX_DIR), bookIdentity, textBook.charset, charsPerPage)
+    }
+    
+    /**
+     * 读取缓存的页索引，没有时建立并缓存
+     */
+    private suspend fun loadOrBuildPageIndex(textBook: MappedTextBook, charsPerPage: Int): MappedTextBook.PageIndex =
+        withContext(Dispatchers.IO) {
+            val indexFile = pageIndexFile(charsPerPage)
+            textBook.loadPageIndex(indexFile, charsPerPage)?.let { return@withContext it }
+            
+            val startTime = System.currentTimeMillis()
+            val index = textBook.buildPageIndex(charsPerPage) { ensureActive() }
+            try {
+                textBook.savePageIndex(index, indexFile)
+            } catch (e: IOException) {
+                Log.w(TAG, "保存页索引失败", e)
+            }
+            Log.d(TAG, "分页完成: 共 ${index.pageCount} 页，每页 $charsPerPage 字，耗时 ${System.currentTimeMillis() - startTime}ms")
+            index
+        }
+    
+    /**
+     * 在后台建立页索引，完成后跳到阅读进度所在的页
+     *
+     * @param intentPageIndex Intent 指定的页码，小于0表示按阅读进度
+     */
+    private fun startPageIndexing(textBook: MappedTextBook, charsPerPage: Int, intentPageIndex: Int = -1) {
+        pageIndexJob?.cancel()
+        pageIndexJob = scope.launch {
+            try {
+                val index = loadOrBuildPageIndex(textBook, charsPerPage)
+                applyPageIndex(index, intentPageIndex)
+                progressBar.visibility = View.GONE
+                webView.visibility = View.VISIBLE
+                errorTextView.visibility = View.GONE
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                Log.e(TAG, "分页失败", e)
+                showError("无法分页: ${e.message}")
             }
         }
+    }
+    
+    /**
+     * 启用新的页索引并显示阅读进度所在的页
+     */
+    private fun applyPageIndex(index: MappedTextBook.PageIndex, intentPageIndex: Int = -1) {
+        bookPages = index
+        totalPages = index.pageCount
+        loadReadingProgress()
+        
+        // 如果Intent中指定了页面索引，优先使用（用于从读书划线跳转）
+        if (intentPageIndex >= 0) {
+            currentPageIndex = intentPageIndex.coerceIn(0, totalPages - 1)
+            Log.d(TAG, "使用Intent指定的页面索引: $intentPageIndex")
+        }
         
-        Log.d(TAG, "分页完成: 共 ${pages.size} 页")
-        return pages
+        displayPage(currentPageIndex.coerceIn(0, totalPages - 1))
+        updatePageInfo()
+        updateBookmarkButton()
+    }
+    
+    /**
+     * 指定页的文本，页索引尚未建立时返回空字符串
+     */
+    private fun readPage(pageIndex: Int): String {
+        val textBook = book ?: return ""
+        val index = bookPages ?: return ""
+        return textBook.pageText(index, pageIndex)
     }
     
     /**
@@ -1029,19 +1059,19 @@ class FileReaderActivity : AppCompatActivity() {
      * 显示指定页面
      */
     private fun displayPage(pageIndex: Int) {
-        if (pages.isEmpty()) {
+        if (bookPages == null || totalPages == 0) {
             Log.e(TAG, "页面列表为空，无法显示")
             showError("文件内容为空或加载失败")
             return
         }
         
-        if (pageIndex < 0 || pageIndex >= pages.size) {
-            Log.e(TAG, "页码超出范围: $pageIndex / ${pages.size}")
+        if (pageIndex < 0 || pageIndex >= totalPages) {
+            Log.e(TAG, "页码超出范围: $pageIndex / $totalPages")
             return
         }
         
         currentPageIndex = pageIndex
-        val pageText = pages[pageIndex]
+        val pageText = readPage(pageIndex)
         
         if (pageText.isBlank()) {
             Log.w(TAG, "当前页内容为空")
@@ -1049,34 +1079,51 @@ class FileReaderActivity : AppCompatActivity() {
         
         // 应用高亮
         val highlightedText = applyHighlights(pageText, pageIndex)
+        if (!loadPageHtml(highlightedText)) return
+        
+        // 后台预先解码下一页
+        val textBook = book
+        val index = bookPages
+        if (textBook != null && index != null && pageIndex + 1 < totalPages) {
+            scope.launch(Dispatchers.IO) {
+                // 期间换了分页（例如调整字号）时不再预读旧索引的页
+                if (bookPages === index) textBook.pageText(index, pageIndex + 1)
+            }
+        }
+        
+        // 更新章节信息
+        updateChapterInfo()
         
+        // 保存阅读进度（延迟保存，避免频繁写入）
+        handler.postDelayed({
+            saveReadingProgress()
+        }, 500)
+    }
+    
+    /**
+     * 把一页（已处理高亮的）文本生成HTML并加载到WebView
+     */
+    private fun loadPageHtml(text: String): Boolean {
         // 生成HTML
-        val htmlContent = generateHTML(highlightedText)
+        val htmlContent = generateHTML(text)
         
-        Log.d(TAG, "显示页面 $pageIndex: 原始文本长度=${pageText.length}, 高亮后长度=${highlightedText.length}, HTML长度=${htmlContent.length}")
+        Log.d(TAG, "显示页面: 文本长度=${text.length}, HTML长度=${htmlContent.length}")
         
         if (htmlContent.isBlank()) {
             Log.e(TAG, "生成的HTML内容为空！")
             showError("页面内容生成失败")
-            return
+            return false
         }
         
         // 使用正确的MIME类型和编码
-        try {
+        return try {
             webView.loadDataWithBaseURL(null, htmlContent, "text/html; charset=UTF-8", "UTF-8", null)
-            Log.d(TAG, "WebView加载HTML成功，页面索引=$pageIndex")
+            true
         } catch (e: Exception) {
             Log.e(TAG, "WebView加载HTML失败", e)
             showError("显示页面失败: ${e.message}")
+            false
         }
-        
-        // 更新章节信息
-        updateChapterInfo()
-        
-        // 保存阅读进度（延迟保存，避免频繁写入）
-        handler.postDelayed({
-            saveReadingProgress()
-        }, 500)
     }
     
     /**
@@ -1420,8 +1467,7 @@ class FileReaderActivity : AppCompatActivity() {
      * 4. 使用嵌套span来显示多个划线样式
      */
     private fun applyHighlights(text: String, pageIndex: Int): String {
-        val highlights = dataManager.getHighlights(filePath)
-            .filter { it.pageIndex == pageIndex }
+        val highlights = dataManager.getHighlightsInRange(filePath, pageIndex, 0, text.length)
             .filter { 
                 // 过滤掉无效的划线
                 it.startPosition >= 0 && 
@@ -1804,76 +1850,140 @@ class FileReaderActivity : AppCompatActivity() {
     // ==================== 章节功能 ====================
     
     /**
-     * 解析章节（优化版：支持传入样本文本，避免大文件全文解析）
+     * 在后台流式扫描整本书的章节，扫描结果按文件指纹缓存
+     *
+     * 每扫完一块就把新章节追加到目录，打开中的目录对话框会随之更新。
      */
-    private fun parseChapters(sampleText: String = fullText) {
-        chapters = mutableListOf<Chapter>().apply {
-            // 简单的章节解析：查找"第X章"、"Chapter X"等模式
-            val chapterPattern = Regex("(第[\\d一二三四五六七八九十百千万]+章|Chapter\\s+\\d+|第\\d+节)")
-            var chapterIndex = 0
-            
-            chapterPattern.findAll(sampleText).forEach { matchResult ->
-                val position = matchResult.range.first
-                val title = matchResult.value
-                add(Chapter(
-                    id = "${filePath}_chapter_${chapterIndex++}",
-                    title = title,
-                    pageIndex = 0, // 需要计算
-                    position = position
-                ))
-            }
-            
-            // 如果没有找到章节，创建一个默认章节
-            if (isEmpty()) {
-                add(Chapter(
-                    id = "${filePath}_chapter_0",
-                    title = "正文",
-                    pageIndex = 0,
-                    position = 0
-                ))
+    private fun startChapterScan(textBook: MappedTextBook) {
+        chapterScanJob?.cancel()
+        chapters.clear()
+        isScanningChapters = true
+        chapterScanJob = scope.launch {
+            try {
+                val startTime = System.currentTimeMillis()
+                val indexFile = withContext(Dispatchers.IO) {
+                    ChapterScanner.indexFile(File(cacheDir, CHAPTER_INDEX_DIR), textBook)
+                }
+                val cached = withContext(Dispatchers.IO) { ChapterScanner.load(indexFile, textBook.byteLength) }
+                if (cached != null) {
+                    appendChapters(cached)
+                    Log.d(TAG, "使用缓存的章节索引: ${cached.size} 章")
+                } else {
+                    val entries = withContext(Dispatchers.IO) {
+                        ChapterScanner().scan(textBook, checkpoint = { ensureActive() }) { batch ->
+                            launch(Dispatchers.Main) { appendChapters(batch) }
+                        }
+                    }
+                    withContext(Dispatchers.IO) {
+                        try {
+                            ChapterScanner.save(indexFile, textBook.byteLength, entries)
+                        } catch (e: IOException) {
+                            Log.w(TAG, "保存章节索引失败", e)
+                        }
+                    }
+                    Log.d(TAG, "章节扫描完成: ${entries.size} 章，耗时 ${System.currentTimeMillis() - startTime}ms")
+                }
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                Log.e(TAG, "章节扫描失败", e)
             }
+            finishChapterScan()
         }
-        
-        // 保存章节
-        dataManager.saveChapters(filePath, chapters)
+    }
+    
+    /**
+     * 追加扫描到的章节（主线程）
+     */
+    private fun appendChapters(entries: List<ChapterScanner.Entry>) {
+        val charsPerPage = bookPages?.charsPerPage ?: calculateCharsPerPage()
+        val added = entries.map { entry ->
+            Chapter(
+                id = "${filePath}_chapter_${chapters.size}",
+                title = entry.title,
+                pageIndex = entry.position / charsPerPage,
+                position = entry.position,
+                level = entry.level
+            ).also { chapters.add(it) }
+        }
+        catalogAdapter?.addAll(added.map { catalogTitle(it) })
+        updateChapterInfo()
+    }
+    
+    /**
+     * 扫描结束；没有找到章节时创建一个默认章节
+     */
+    private fun finishChapterScan() {
+        isScanningChapters = false
+        if (chapters.isEmpty()) {
+            chapters.add(Chapter(
+                id = "${filePath}_chapter_0",
+                title = "正文",
+                pageIndex = 0,
+                position = 0
+            ))
+            catalogAdapter?.add(catalogTitle(chapters[0]))
+        }
+        catalogDialog?.setTitle(catalogDialogTitle())
+        updateChapterInfo()
     }
     
     /**
      * 更新章节信息
      */
     private fun updateChapterInfo() {
-        // 找到当前页所属的章节
-        val currentPosition = currentPageIndex * calculateCharsPerPage()
-        val chapter = chapters.findLast { it.position <= currentPosition }
-        if (chapter != null) {
-            chapterName.text = chapter.title
-            currentChapterIndex = chapters.indexOf(chapter)
+        // 找到当前页所属的章节（章节按位置排序）
+        val currentPosition = currentPageIndex * (bookPages?.charsPerPage ?: calculateCharsPerPage())
+        val found = chapters.binarySearchBy(currentPosition) { it.position }
+        val index = if (found >= 0) found else -found - 2
+        if (index >= 0) {
+            chapterName.text = chapters[index].title
+            currentChapterIndex = index
         }
     }
     
+    private fun catalogTitle(chapter: Chapter): String {
+        return "　".repeat((chapter.level - ChapterScanner.LEVEL_CHAPTER).coerceAtLeast(0)) + chapter.title
+    }
+    
+    private fun catalogDialogTitle(): String {
+        return if (isScanningChapters) "目录（正在识别章节…）" else "目录（共 ${chapters.size} 章）"
+    }
+    
     /**
-     * 显示目录对话框
+     * 显示目录对话框，章节扫描未完成时随扫描结果更新
      */
     private fun showCatalogDialog() {
-        if (chapters.isEmpty()) {
+        if (chapters.isEmpty() && !isScanningChapters) {
             Toast.makeText(this, "未找到章节", Toast.LENGTH_SHORT).show()
             return
         }
         
-        val chapterTitles = chapters.map { it.title }.toTypedArray()
-        AlertDialog.Builder(this)
-            .setTitle("目录")
-            .setItems(chapterTitles) { _, which ->
+        val adapter = ArrayAdapter(this, android.R.layout.simple_list_item_1, chapters.map { catalogTitle(it) }.toMutableList())
+        val dialog = AlertDialog.Builder(this)
+            .setTitle(catalogDialogTitle())
+            .setAdapter(adapter) { _, which ->
                 val chapter = chapters[which]
                 // 计算章节对应的页码
-                val targetPage = (chapter.position / calculateCharsPerPage()).coerceIn(0, totalPages - 1)
+                val targetPage = bookPages?.pageOfChar(chapter.position) ?: return@setAdapter
                 displayPage(targetPage)
                 updatePageInfo()
                 updateBookmarkButton()
                 hideAllUI()
             }
             .setNegativeButton("取消", null)
-            .show()
+            .setOnDismissListener {
+                catalogDialog = null
+                catalogAdapter = null
+            }
+            .create()
+        catalogDialog = dialog
+        catalogAdapter = adapter
+        dialog.show()
+        // 定位到当前章节
+        if (currentChapterIndex in chapters.indices) {
+            dialog.listView?.setSelection(currentChapterIndex)
+        }
     }
     
     /**
@@ -1908,7 +2018,7 @@ class FileReaderActivity : AppCompatActivity() {
                 filePath = filePath,
                 pageIndex = currentPageIndex,
                 position = 0,
-                text = pages[currentPageIndex].take(50)
+                text = readPage(currentPageIndex).take(50)
             )
             dataManager.addBookmark(bookmark)
             Toast.makeText(this, "已添加书签", Toast.LENGTH_SHORT).show()
@@ -2021,13 +2131,8 @@ private fun showTextSelectionDialog(selectedText: String, startOffset: Int, endO
     applyMenuTheme(dialogView, isDarkMode)
     
     // 检查是否已有划线（检查重叠，不仅仅是精确匹配）
-    val existingHighlight = dataManager.getHighlights(filePath)
-        .find { it.pageIndex == currentPageIndex && 
-                // 检查是否有重叠：选中的文本与已有划线有交集
-                ((it.startPosition <= startOffset && it.endPosition > startOffset) ||  // 划线包含选中的起始位置
-                 (it.startPosition < endOffset && it.endPosition >= endOffset) ||      // 划线包含选中的结束位置
-                 (startOffset <= it.startPosition && endOffset >= it.endPosition))     // 选中的文本包含整个划线
-        }
+    val existingHighlight = dataManager.getHighlightsInRange(filePath, currentPageIndex, startOffset, endOffset)
+        .firstOrNull()
     
     // 格式选项（高亮、下划线、波浪下划线）
     // 如果已有划线，使用已有的样式和颜色；否则使用默认值
@@ -3019,14 +3124,13 @@ private fun addHighlight(text: String, startOffset: Int, endOffset: Int, color:
     }
     
     /**
-     * 更新内容显示（重新分页并显示）
+     * 更新内容显示（按新的每页字符数在后台重新分页，保持当前阅读的字节位置）
      */
     private fun updateContent() {
         dataManager.saveSettings(settings)
-        pages = paginateText(fullText)
-        totalPages = pages.size
-        displayPage(currentPageIndex.coerceIn(0, totalPages - 1))
-        updatePageInfo()
+        val textBook = book ?: return
+        saveReadingProgress()
+        startPageIndexing(textBook, calculateCharsPerPage())
     }
     
     // ==================== TTS功能 ====================
@@ -3046,9 +3150,9 @@ private fun addHighlight(text: String, startOffset: Int, endOffset: Int, color:
      * 开始TTS
      */
     private fun startTTS() {
-        if (currentPageIndex >= pages.size) return
+        if (currentPageIndex >= totalPages) return
         
-        val pageText = pages[currentPageIndex]
+        val pageText = readPage(currentPageIndex)
         ttsManager?.setSpeechRate(settings.ttsSpeed)
         ttsManager?.setPitch(settings.ttsPitch)
         ttsManager?.speak(pageText, "page_$currentPageIndex")
@@ -3234,9 +3338,9 @@ private fun addHighlight(text: String, startOffset: Int, endOffset: Int, color:
      * 分享内容
      */
     private fun shareContent() {
-        if (currentPageIndex >= pages.size) return
+        if (currentPageIndex >= totalPages) return
         
-        val pageText = pages[currentPageIndex]
+        val pageText = readPage(currentPageIndex)
         val shareText = "$fileName\n\n$pageText"
         
         val intent = Intent(Intent.ACTION_SEND).apply {
@@ -3275,10 +3379,15 @@ private fun addHighlight(text: String, startOffset: Int, endOffset: Int, color:
      */
     private fun loadReadingProgress() {
         val progress = dataManager.getProgress(filePath)
-        if (progress != null && totalPages > 0) {
-            // 确保页码在有效范围内
-            val savedPage = progress.currentPage.coerceIn(0, totalPages - 1)
-            currentPageIndex = savedPage
+        val index = bookPages
+        if (progress != null && index != null && totalPages > 0) {
+            // 优先按字节位置恢复，修改字体后页码会变但字节位置不变；旧版本的进度只有页码
+            val savedPage = if (progress.byteOffset > 0) {
+                index.pageAt(progress.byteOffset.toInt())
+            } else {
+                progress.currentPage
+            }
+            currentPageIndex = savedPage.coerceIn(0, totalPages - 1)
             Log.d(TAG, "加载阅读进度: 第${currentPageIndex + 1}页/共${totalPages}页")
         } else {
             currentPageIndex = 0
@@ -3290,11 +3399,20 @@ private fun addHighlight(text: String, startOffset: Int, endOffset: Int, color:
      * 保存阅读进度
      */
     private fun saveReadingProgress() {
+        val index = bookPages
+        // 文本还在分页且没有显示任何一页时，不要用第一页覆盖原来的进度
+        if (book != null && index == null && previewStartByte == null) return
+        val byteOffset = if (index != null && currentPageIndex < index.pageCount) {
+            index.startByte(currentPageIndex)
+        } else {
+            previewStartByte ?: 0
+        }
         val progress = ReadingProgress(
             filePath = filePath,
             currentPage = currentPageIndex,
             totalPages = totalPages,
-            position = currentPageIndex * calculateCharsPerPage()
+            position = currentPageIndex * (index?.charsPerPage ?: calculateCharsPerPage()),
+            byteOffset = byteOffset.toLong()
         )
         dataManager.saveProgress(progress)
         
@@ -3793,61 +3911,6 @@ private fun addHighlight(text: String, startOffset: Int, endOffset: Int, color:
         return true
     }
     
-    /**
-     * 流式读取大文件（分块读取，避免内存溢出）
-     * @param onProgress 进度回调 (已读取字节数, 总字节数)
-     */
-    private fun readTextFileStreaming(
-        inputStream: InputStream, 
-        charset: Charset, 
-        maxSize: Long = 50 * 1024 * 1024,
-        totalSize: Long = 0,
-        onProgress: ((Long, Long) -> Unit)? = null
-    ): String {
-        val buffer = StringBuilder()
-        val reader = inputStream.bufferedReader(charset)
-        val charBuffer = CharArray(8192) // 8KB缓冲区
-        var totalRead = 0L
-        var lastProgressUpdate = 0L
-        val progressInterval = 1024 * 1024L // 每1MB更新一次进度
-        
-        try {
-            while (true) {
-                val bytesRead = reader.read(charBuffer)
-                if (bytesRead == -1) break
-                
-                buffer.append(charBuffer, 0, bytesRead)
-                totalRead += bytesRead
-                
-                // 🚀 优化：定期更新进度
-                if (totalRead - lastProgressUpdate >= progressInterval) {
-                    onProgress?.invoke(totalRead, totalSize)
-                    lastProgressUpdate = totalRead
-                }
-                
-                // 🔧 修复：限制文件大小，避免内存溢出
-                if (totalRead > maxSize) {
-                    Log.w(TAG, "文件过大（${totalRead}字节），只读取前${maxSize}字节")
-                    buffer.append("\n\n[文件过大，已截断显示前${maxSize / 1024 / 1024}MB内容]")
-                    break
-                }
-            }
-            
-            // 最终进度更新
-            onProgress?.invoke(totalRead, totalSize)
-            
-        } catch (e: OutOfMemoryError) {
-            Log.e(TAG, "内存不足，文件过大", e)
-            // 如果已经读取了一些内容，返回部分内容
-            if (buffer.isNotEmpty()) {
-                buffer.append("\n\n[文件过大，内存不足，已截断显示]")
-            }
-            throw e
-        }
-        
-        return buffer.toString()
-    }
-    
     // ==================== 统计功能 ====================
     
     /**
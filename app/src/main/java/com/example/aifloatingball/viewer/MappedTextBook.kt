@@ -0,0 +1,315 @@
+package com.example.aifloatingball.viewer
+
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileInputStream
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.CharBuffer
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.charset.Charset
+import java.nio.charset.CharsetDecoder
+import java.nio.charset.CodingErrorAction
+import java.security.MessageDigest
+
+/**
+ * 内存映射的TXT电子书
+ *
+ * 文件通过 mmap 映射，只解码当前页附近的字节，不再把整本书读成一个 String。
+ * 分页仍按固定字符数切分，与原来对全文 substring 的结果一致，已有的页码、书签和划线不受影响；
+ * 唯一的例外是代理对（例如 emoji）正好跨过页边界时，整个代理对放到下一页，这一页少一个字符，
+ * 之后各页的字符位置随之后移。
+ * [PageIndex] 记录每页起始的字节偏移和字符位置，建好后按文件和每页字符数缓存到磁盘，再次打开时直接读取。
+ *
+ * 只依赖 JDK，可以在 JVM 单元测试中使用。
+ */
+class MappedTextBook private constructor(
+    private val buffer: ByteBuffer,
+    val charset: Charset
+) {
+
+    companion object {
+        private const val INDEX_MAGIC = 0x54584958 // "TXIX"
+        private const val INDEX_VERSION = 2
+        // 文件头：MAGIC、版本、每页字符数、文件长度、偏移数
+        private const val INDEX_HEADER_BYTES = 5 * 4
+        private const val PAGE_CACHE_SIZE = 5
+        private const val FINGERPRINT_SAMPLE_BYTES = 64 * 1024
+
+        /**
+         * 映射整个文件，文件大小超过 2GB 时抛出 [IOException]
+         */
+        fun open(file: File, charset: Charset): MappedTextBook {
+            return FileInputStream(file).use { open(it.channel, charset) }
+        }
+
+        /**
+         * 映射一个可随机访问的文件通道；映射建立后通道可以关闭
+         */
+        fun open(channel: FileChannel, charset: Charset): MappedTextBook {
+            val size = channel.size()
+            if (size > Int.MAX_VALUE) throw IOException("文件过大: $size 字节")
+            val mapped: MappedByteBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size)
+            return MappedTextBook(mapped, charset)
+        }
+
+        /**
+         * 直接使用内存中的字节，用于测试和无法映射的小文件
+         */
+        fun wrap(bytes: ByteArray, charset: Charset): MappedTextBook {
+            return MappedTextBook(ByteBuffer.wrap(bytes), charset)
+        }
+
+        /**
+         * 页索引缓存文件：同一个文件、编码和每页字符数对应同一份索引
+         *
+         * @param identity 能区分文件版本的标识，例如路径、大小和修改时间
+         */
+        fun indexCacheFile(dir: File, identity: String, charset: Charset, charsPerPage: Int): File {
+            val digest = MessageDigest.getInstance("MD5")
+                .digest("$identity|${charset.name()}|$charsPerPage".toByteArray())
+            return File(dir, digest.joinToString("") { "%02x".format(it) } + ".idx")
+        }
+    }
+
+    /**
+     * 按固定字符数分页的字节偏移索引
+     *
+     * @param offsets 每页起始字节，最后一项为文件长度，共 pageCount + 1 项
+     * @param charStarts 每页起始的字符位置，共 pageCount 项
+     */
+    class PageIndex(val charsPerPage: Int, private val offsets: IntArray, private val charStarts: IntArray) {
+
+        val pageCount: Int get() = offsets.size - 1
+
+        fun startByte(page: Int): Int = offsets[page]
+
+        fun startChar(page: Int): Int = charStarts[page]
+
+        fun endByte(page: Int): Int = offsets[page + 1]
+
+        /**
+         * 包含某个字节偏移的页码
+         */
+        fun pageAt(byteOffset: Int): Int {
+            if (pageCount <= 0) return 0
+            var low = 0
+            var high = pageCount - 1
+            while (low < high) {
+                val mid = (low + high + 1) ushr 1
+                if (offsets[mid] <= byteOffset) low = mid else high = mid - 1
+            }
+            return low
+        }
+
+        /**
+         * 全文中某个字符位置所在的页码
+         */
+        fun pageOfChar(charPosition: Int): Int {
+            if (pageCount <= 0) return 0
+            var low = 0
+            var high = pageCount - 1
+            while (low < high) {
+                val mid = (low + high + 1) ushr 1
+                if (charStarts[mid] <= charPosition) low = mid else high = mid - 1
+            }
+            return low
+        }
+    }
+
+    /**
+     * 解码结果
+     *
+     * @param endByte 解码到的字节位置，下一段从这里开始
+     */
+    class Window(val text: String, val startByte: Int, val endByte: Int)
+
+    val byteLength: Int get() = buffer.capacity()
+
+    // 按索引对象和页码缓存，换了每页字符数后旧索引的页（包括还在后台预读的）不会被当成新索引的页
+    private data class PageKey(val index: PageIndex, val page: Int)
+
+    private val pageCache = object : LinkedHashMap<PageKey, String>(PAGE_CACHE_SIZE, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<PageKey, String>?): Boolean = size > PAGE_CACHE_SIZE
+    }
+
+    /**
+     * 解码一段字节
+     */
+    fun decode(startByte: Int, endByte: Int): String {
+        val input = slice(startByte, endByte)
+        return newDecoder().decode(input).toString()
+    }
+
+    /**
+     * 从某个字节位置开始解码最多 [maxChars] 个字符，用于页索引建好之前显示
+     */
+    fun decodeChars(startByte: Int, maxChars: Int): Window {
+        val input = slice(startByte, byteLength)
+        val output = CharBuffer.allocate(maxChars.coerceAtLeast(1))
+        val decoder = newDecoder()
+        val result = decoder.decode(input, output, true)
+        if (result.isUnderflow) decoder.flush(output)
+        output.flip()
+        return Window(output.toString(), startByte, input.position())
+    }
+
+    /**
+     * 某一页的文本，最近访问的几页会被缓存
+     */
+    fun pageText(index: PageIndex, page: Int): String {
+        if (page < 0 || page >= index.pageCount) return ""
+        val key = PageKey(index, page)
+        synchronized(pageCache) {
+            pageCache[key]?.let { return it }
+        }
+        val text = decode(index.startByte(page), index.endByte(page))
+        synchronized(pageCache) {
+            pageCache[key] = text
+        }
+        return text
+    }
+
+    /**
+     * 顺序解码整本书并记录每页起始的字节位置，只占用一页大小的字符缓冲
+     *
+     * @param checkpoint 每切出一页调用一次，在其中抛出异常即可中止，例如协程的 ensureActive
+     */
+    fun buildPageIndex(charsPerPage: Int, checkpoint: () -> Unit = {}): PageIndex {
+        require(charsPerPage > 0) { "charsPerPage 必须大于0" }
+        var pageEnds = IntArray(maxOf(16, byteLength / (charsPerPage * 2) + 1))
+        var pageChars = IntArray(pageEnds.size)
+        var count = 0
+        forEachChunk(charsPerPage) { _, charOffset, endByte ->
+            if (count == pageEnds.size) {
+                pageEnds = pageEnds.copyOf(pageEnds.size * 2)
+                pageChars = pageChars.copyOf(pageEnds.size)
+            }
+            pageChars[count] = charOffset
+            pageEnds[count++] = endByte
+            checkpoint()
+        }
+
+        // 第一页从0开始，其余每页从上一页结束处开始，最后一项为文件长度
+        val offsets = IntArray(maxOf(count, 1) + 1)
+        System.arraycopy(pageEnds, 0, offsets, 1, maxOf(count - 1, 0))
+        offsets[offsets.size - 1] = byteLength
+        synchronized(pageCache) {
+            pageCache.clear()
+        }
+        return PageIndex(charsPerPage, offsets, pageChars.copyOf(offsets.size - 1))
+    }
+
+    /**
+     * 从头顺序解码整本书，每次交给 [block] 最多 [chunkChars] 个字符，只占用一块大小的字符缓冲
+     *
+     * 解码器只在字符边界上停下，所以每块的结束字节都是下一块的起始字节。
+     *
+     * @param block 参数为本块内容、本块在全文中的字符位置和结束字节；内容缓冲会被复用，不要保存引用
+     */
+    fun forEachChunk(chunkChars: Int, block: (chunk: CharBuffer, charOffset: Int, endByte: Int) -> Unit) {
+        val input = slice(0, byteLength)
+        val output = CharBuffer.allocate(chunkChars)
+        val decoder = newDecoder()
+        var charOffset = 0
+        while (true) {
+            val result = decoder.decode(input, output, true)
+            val done = !result.isOverflow
+            if (done) decoder.flush(output)
+            output.flip()
+            val length = output.remaining()
+            // 末尾没有字符的空块不交出去
+            if (length > 0) block(output, charOffset, input.position())
+            charOffset += length
+            output.clear()
+            if (done) break
+        }
+    }
+
+    /**
+     * 文件内容的指纹：长度加首尾各 64KB 的 MD5，不需要读完整个文件
+     */
+    fun fingerprint(): String {
+        val digest = MessageDigest.getInstance("MD5")
+        digest.update(byteLength.toString().toByteArray())
+        digest.update(slice(0, minOf(byteLength, FINGERPRINT_SAMPLE_BYTES)))
+        digest.update(slice(maxOf(0, byteLength - FINGERPRINT_SAMPLE_BYTES), byteLength))
+        return digest.digest().joinToString("") { "%02x".format(it) }
+    }
+
+    /**
+     * 读取缓存的页索引，文件不存在、版本或参数不符、内容损坏时返回 null，由调用方重新建索引
+     */
+    fun loadPageIndex(file: File, charsPerPage: Int): PageIndex? {
+        if (!file.exists()) return null
+        val fileLength = file.length()
+        val index = try {
+            DataInputStream(file.inputStream().buffered()).use { input ->
+                if (input.readInt() != INDEX_MAGIC || input.readInt() != INDEX_VERSION) return null
+                if (input.readInt() != charsPerPage || input.readInt() != byteLength) return null
+                // 先按文件大小核对数量，损坏的数量不会导致分配超大数组
+                val count = input.readInt()
+                if (count < 2 || fileLength != INDEX_HEADER_BYTES + 4L * count + 4L * (count - 1)) return null
+                val offsets = IntArray(count)
+                for (i in offsets.indices) offsets[i] = input.readInt()
+                val charStarts = IntArray(count - 1)
+                for (i in charStarts.indices) charStarts[i] = input.readInt()
+                if (!isValidIndex(offsets, charStarts)) return null
+                PageIndex(charsPerPage, offsets, charStarts)
+            }
+        } catch (e: Exception) {
+            return null
+        }
+        synchronized(pageCache) {
+            pageCache.clear()
+        }
+        return index
+    }
+
+    private fun isValidIndex(offsets: IntArray, charStarts: IntArray): Boolean {
+        if (offsets.first() != 0 || offsets.last() != byteLength || charStarts.first() != 0) return false
+        for (i in 1 until offsets.size) if (offsets[i] < offsets[i - 1]) return false
+        for (i in 1 until charStarts.size) if (charStarts[i] <= charStarts[i - 1]) return false
+        return true
+    }
+
+    /**
+     * 保存页索引，先写临时文件再重命名，避免留下不完整的索引
+     */
+    fun savePageIndex(index: PageIndex, file: File) {
+        file.parentFile?.mkdirs()
+        val temp = File(file.path + ".tmp")
+        DataOutputStream(temp.outputStream().buffered()).use { output ->
+            output.writeInt(INDEX_MAGIC)
+            output.writeInt(INDEX_VERSION)
+            output.writeInt(index.charsPerPage)
+            output.writeInt(byteLength)
+            output.writeInt(index.pageCount + 1)
+            for (page in 0..index.pageCount) {
+                output.writeInt(if (page < index.pageCount) index.startByte(page) else byteLength)
+            }
+            for (page in 0 until index.pageCount) {
+                output.writeInt(index.startChar(page))
+            }
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete()
+            throw IOException("无法保存页索引: ${file.path}")
+        }
+    }
+
+    private fun slice(startByte: Int, endByte: Int): ByteBuffer {
+        val view = buffer.duplicate()
+        view.limit(endByte.coerceIn(0, byteLength))
+        view.position(startByte.coerceIn(0, view.limit()))
+        return view
+    }
+
+    private fun newDecoder(): CharsetDecoder {
+        return charset.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE)
+    }
+}
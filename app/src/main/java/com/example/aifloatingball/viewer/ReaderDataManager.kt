@@ -3,6 +3,8 @@ package com.example.aifloatingball.viewer
 import android.content.Context
 import android.content.SharedPreferences
 import android.util.Log
+import com.example.aifloatingball.database.ReaderDao
+import com.example.aifloatingball.database.ReaderDatabase
 import com.google.gson.Gson
 import com.google.gson.GsonBuilder
 import com.google.gson.JsonDeserializationContext
@@ -12,11 +14,13 @@ import com.google.gson.JsonObject
 import com.google.gson.JsonParseException
 import com.google.gson.reflect.TypeToken
 import java.lang.reflect.Type
-import java.util.*
 
 /**
  * 阅读器数据管理器
  * 负责管理书签、笔记、划线、阅读进度等数据
+ *
+ * 书签、划线、笔记和阅读进度保存在 [ReaderDatabase] 中，按文件和页码建索引；
+ * 阅读器设置仍保存在 SharedPreferences。旧版本的整表 JSON 在首次创建时迁移到数据库。
  */
 class ReaderDataManager(private val context: Context) {
     
@@ -29,15 +33,21 @@ class ReaderDataManager(private val context: Context) {
         private const val KEY_CHAPTERS = "chapters"
         private const val KEY_PROGRESS = "progress"
         private const val KEY_SETTINGS = "settings"
+        private const val KEY_MIGRATED_TO_DATABASE = "migrated_to_database"
     }
     
     private val prefs: SharedPreferences = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+    private val dao: ReaderDao = ReaderDatabase.getDatabase(context).readerDao()
     
     // 创建支持 Highlight 样式字段默认值的 Gson 实例
     private val gson: Gson = GsonBuilder()
         .registerTypeAdapter(Highlight::class.java, HighlightDeserializer())
         .create()
     
+    init {
+        migrateFromPrefs()
+    }
+    
     /**
      * Highlight 反序列化器：处理旧数据中缺少 style 字段的情况
      */
@@ -97,57 +107,91 @@ class ReaderDataManager(private val context: Context) {
         }
     }
     
+    // ==================== 从 SharedPreferences 迁移 ====================
+    
+    /**
+     * 把旧版本保存在 SharedPreferences 中的整表 JSON 一次性导入数据库，成功后删除旧数据
+     */
+    private fun migrateFromPrefs() {
+        synchronized(ReaderDataManager::class.java) {
+            if (prefs.getBoolean(KEY_MIGRATED_TO_DATABASE, false)) return
+            try {
+                val bookmarks = parseLegacyList<Bookmark>(KEY_BOOKMARKS, object : TypeToken<List<Bookmark>>() {}.type)
+                val highlights = parseLegacyList<Highlight>(KEY_HIGHLIGHTS, object : TypeToken<List<Highlight>>() {}.type)
+                val notes = parseLegacyList<Note>(KEY_NOTES, object : TypeToken<List<Note>>() {}.type)
+                val progressKeys = prefs.all.keys.filter { it.startsWith("${KEY_PROGRESS}_") }
+                val progress = progressKeys.mapNotNull { key ->
+                    try {
+                        gson.fromJson(prefs.getString(key, null), ReadingProgress::class.java)
+                    } catch (e: Exception) {
+                        Log.e(TAG, "解析阅读进度失败: $key", e)
+                        null
+                    }
+                }
+                
+                dao.importAll(bookmarks, highlights, notes, progress)
+                
+                val editor = prefs.edit()
+                    .remove(KEY_BOOKMARKS)
+                    .remove(KEY_HIGHLIGHTS)
+                    .remove(KEY_NOTES)
+                    .remove(KEY_CHAPTERS)
+                    .putBoolean(KEY_MIGRATED_TO_DATABASE, true)
+                progressKeys.forEach { editor.remove(it) }
+                editor.apply()
+                Log.d(TAG, "迁移阅读数据: 书签${bookmarks.size}, 划线${highlights.size}, 笔记${notes.size}, 进度${progress.size}")
+            } catch (e: Exception) {
+                // 保留旧数据，下次启动时重试
+                Log.e(TAG, "迁移阅读数据失败", e)
+            }
+        }
+    }
+    
+    private fun <T> parseLegacyList(key: String, type: Type): List<T> {
+        val json = prefs.getString(key, null) ?: return emptyList()
+        return try {
+            // 损坏的条目（例如缺少必需字段）会被跳过
+            gson.fromJson<List<T?>>(json, type)?.filterNotNull() ?: emptyList()
+        } catch (e: Exception) {
+            Log.e(TAG, "解析旧数据失败: $key", e)
+            emptyList()
+        }
+    }
+    
     // ==================== 书签管理 ====================
     
     /**
      * 获取文件的所有书签
      */
     fun getBookmarks(filePath: String): List<Bookmark> {
-        val allBookmarks = getAllBookmarks()
-        return allBookmarks.filter { it.filePath == filePath }
+        return dao.getBookmarks(filePath)
     }
     
     /**
      * 获取所有书签
      */
     fun getAllBookmarks(): List<Bookmark> {
-        val json = prefs.getString(KEY_BOOKMARKS, "[]") ?: "[]"
-        return try {
-            val type = object : TypeToken<List<Bookmark>>() {}.type
-            gson.fromJson(json, type) ?: emptyList()
-        } catch (e: Exception) {
-            Log.e(TAG, "解析书签失败", e)
-            emptyList()
-        }
+        return dao.getAllBookmarks()
     }
     
     /**
      * 添加书签
      */
     fun addBookmark(bookmark: Bookmark) {
-        val bookmarks = getAllBookmarks().toMutableList()
         // 检查是否已存在相同位置的书签
-        val existing = bookmarks.find { 
-            it.filePath == bookmark.filePath && 
-            it.pageIndex == bookmark.pageIndex && 
-            it.position == bookmark.position 
-        }
-        if (existing == null) {
-            bookmarks.add(bookmark)
-            saveBookmarks(bookmarks)
-            Log.d(TAG, "添加书签: ${bookmark.id}")
-        } else {
+        if (dao.hasBookmark(bookmark.filePath, bookmark.pageIndex, bookmark.position)) {
             Log.d(TAG, "书签已存在，跳过添加")
+            return
         }
+        dao.insertBookmark(bookmark)
+        Log.d(TAG, "添加书签: ${bookmark.id}")
     }
     
     /**
      * 删除书签
      */
     fun deleteBookmark(bookmarkId: String) {
-        val bookmarks = getAllBookmarks().toMutableList()
-        bookmarks.removeAll { it.id == bookmarkId }
-        saveBookmarks(bookmarks)
+        dao.deleteBookmark(bookmarkId)
         Log.d(TAG, "删除书签: $bookmarkId")
     }
     
@@ -155,13 +199,7 @@ class ReaderDataManager(private val context: Context) {
      * 检查位置是否有书签
      */
     fun hasBookmark(filePath: String, pageIndex: Int, position: Int): Boolean {
-        val bookmarks = getBookmarks(filePath)
-        return bookmarks.any { it.pageIndex == pageIndex && it.position == position }
-    }
-    
-    private fun saveBookmarks(bookmarks: List<Bookmark>) {
-        val json = gson.toJson(bookmarks)
-        prefs.edit().putString(KEY_BOOKMARKS, json).apply()
+        return dao.hasBookmark(filePath, pageIndex, position)
     }
     
     // ==================== 划线/高亮管理 ====================
@@ -170,47 +208,26 @@ class ReaderDataManager(private val context: Context) {
      * 获取文件的所有划线
      */
     fun getHighlights(filePath: String): List<Highlight> {
-        val allHighlights = getAllHighlights()
-        return allHighlights.filter { it.filePath == filePath }
+        return dao.getHighlights(filePath)
+    }
+    
+    /**
+     * 获取某一页上与 [start, end) 有交集的划线，默认为整页
+     */
+    fun getHighlightsInRange(
+        filePath: String,
+        pageIndex: Int,
+        start: Int = 0,
+        end: Int = Int.MAX_VALUE
+    ): List<Highlight> {
+        return dao.getHighlightsInRange(filePath, pageIndex, start, end)
     }
     
     /**
      * 获取所有划线
      */
     fun getAllHighlights(): List<Highlight> {
-        val json = prefs.getString(KEY_HIGHLIGHTS, "[]") ?: "[]"
-        return try {
-            val type = object : TypeToken<List<Highlight>>() {}.type
-            val highlights = gson.fromJson<List<Highlight>>(json, type) ?: emptyList()
-            
-            // 自定义反序列化器已经处理了 style 字段的默认值
-            // 但为了安全起见，我们仍然检查是否有 null 值（防止其他问题）
-            val fixedHighlights = highlights.mapNotNull { highlight ->
-                try {
-                    // 确保 style 不为 null
-                    if (highlight.style == null) {
-                        Log.w(TAG, "发现 style 为 null 的划线数据: ${highlight.id}，已修复")
-                        highlight.copy(style = HighlightStyle.HIGHLIGHT)
-                    } else {
-                        highlight
-                    }
-                } catch (e: Exception) {
-                    Log.e(TAG, "处理划线数据时出错: ${highlight.id}", e)
-                    null // 跳过损坏的数据
-                }
-            }
-            
-            // 如果有修复的数据，保存回去
-            if (fixedHighlights.size != highlights.size) {
-                saveHighlights(fixedHighlights)
-                Log.d(TAG, "已修复并移除了 ${highlights.size - fixedHighlights.size} 条损坏的划线数据")
-            }
-            
-            fixedHighlights
-        } catch (e: Exception) {
-            Log.e(TAG, "解析划线失败", e)
-            emptyList()
-        }
+        return dao.getAllHighlights()
     }
     
     /**
@@ -218,64 +235,43 @@ class ReaderDataManager(private val context: Context) {
      * 支持同一个文件显示多个划线，允许重叠
      */
     fun addHighlight(highlight: Highlight) {
-        val highlights = getAllHighlights().toMutableList()
-        // 检查是否已存在相同ID的划线（避免重复添加）
-        val existing = highlights.find { it.id == highlight.id }
-        if (existing == null) {
-            highlights.add(highlight)
-            saveHighlights(highlights)
-            Log.d(TAG, "添加划线: ${highlight.id}, 文件=${highlight.filePath}, 页面=${highlight.pageIndex}, 位置=${highlight.startPosition}-${highlight.endPosition}")
-        } else {
+        // 已存在相同ID的划线时不重复添加
+        if (dao.insertHighlight(highlight) == -1L) {
             Log.d(TAG, "划线ID已存在，跳过添加: ${highlight.id}")
+            return
         }
+        Log.d(TAG, "添加划线: ${highlight.id}, 文件=${highlight.filePath}, 页面=${highlight.pageIndex}, 位置=${highlight.startPosition}-${highlight.endPosition}")
     }
     
     /**
      * 删除划线
      */
     fun deleteHighlight(highlightId: String) {
-        val highlights = getAllHighlights().toMutableList()
-        highlights.removeAll { it.id == highlightId }
-        saveHighlights(highlights)
+        dao.deleteHighlight(highlightId)
         Log.d(TAG, "删除划线: $highlightId")
     }
     
-    private fun saveHighlights(highlights: List<Highlight>) {
-        val json = gson.toJson(highlights)
-        prefs.edit().putString(KEY_HIGHLIGHTS, json).apply()
-    }
-    
     // ==================== 笔记管理 ====================
     
     /**
      * 获取文件的所有笔记
      */
     fun getNotes(filePath: String): List<Note> {
-        val allNotes = getAllNotes()
-        return allNotes.filter { it.filePath == filePath }
+        return dao.getNotes(filePath)
     }
     
     /**
      * 获取所有笔记
      */
     fun getAllNotes(): List<Note> {
-        val json = prefs.getString(KEY_NOTES, "[]") ?: "[]"
-        return try {
-            val type = object : TypeToken<List<Note>>() {}.type
-            gson.fromJson(json, type) ?: emptyList()
-        } catch (e: Exception) {
-            Log.e(TAG, "解析笔记失败", e)
-            emptyList()
-        }
+        return dao.getAllNotes()
     }
     
     /**
      * 添加笔记
      */
     fun addNote(note: Note) {
-        val notes = getAllNotes().toMutableList()
-        notes.add(note)
-        saveNotes(notes)
+        dao.insertNote(note)
         Log.d(TAG, "添加笔记: ${note.id}")
     }
     
@@ -283,11 +279,7 @@ class ReaderDataManager(private val context: Context) {
      * 更新笔记
      */
     fun updateNote(note: Note) {
-        val notes = getAllNotes().toMutableList()
-        val index = notes.indexOfFirst { it.id == note.id }
-        if (index >= 0) {
-            notes[index] = note
-            saveNotes(notes)
+        if (dao.updateNote(note) > 0) {
             Log.d(TAG, "更新笔记: ${note.id}")
         }
     }
@@ -296,70 +288,20 @@ class ReaderDataManager(private val context: Context) {
      * 删除笔记
      */
     fun deleteNote(noteId: String) {
-        val notes = getAllNotes().toMutableList()
-        notes.removeAll { it.id == noteId }
-        saveNotes(notes)
+        dao.deleteNote(noteId)
         Log.d(TAG, "删除笔记: $noteId")
     }
     
-    private fun saveNotes(notes: List<Note>) {
-        val json = gson.toJson(notes)
-        prefs.edit().putString(KEY_NOTES, json).apply()
-    }
-    
-    // ==================== 章节管理 ====================
-    
-    /**
-     * 获取文件的章节列表
-     */
-    fun getChapters(filePath: String): List<Chapter> {
-        val allChapters = getAllChapters()
-        return allChapters.filter { it.id.startsWith(filePath) }
-    }
-    
-    /**
-     * 获取所有章节
-     */
-    fun getAllChapters(): List<Chapter> {
-        val json = prefs.getString(KEY_CHAPTERS, "[]") ?: "[]"
-        return try {
-            val type = object : TypeToken<List<Chapter>>() {}.type
-            gson.fromJson(json, type) ?: emptyList()
-        } catch (e: Exception) {
-            Log.e(TAG, "解析章节失败", e)
-            emptyList()
-        }
-    }
-    
-    /**
-     * 保存章节列表
-     */
-    fun saveChapters(filePath: String, chapters: List<Chapter>) {
-        val allChapters = getAllChapters().toMutableList()
-        // 删除该文件的旧章节
-        allChapters.removeAll { it.id.startsWith(filePath) }
-        // 添加新章节
-        allChapters.addAll(chapters)
-        val json = gson.toJson(allChapters)
-        prefs.edit().putString(KEY_CHAPTERS, json).apply()
-        Log.d(TAG, "保存章节: ${chapters.size} 个")
-    }
-    
     // ==================== 阅读进度管理 ====================
     
     /**
      * 获取阅读进度
      */
     fun getProgress(filePath: String): ReadingProgress? {
-        val json = prefs.getString("${KEY_PROGRESS}_$filePath", null)
         return try {
-            if (json != null) {
-                gson.fromJson(json, ReadingProgress::class.java)
-            } else {
-                null
-            }
+            dao.getProgress(filePath)
         } catch (e: Exception) {
-            Log.e(TAG, "解析阅读进度失败", e)
+            Log.e(TAG, "读取阅读进度失败", e)
             null
         }
     }
@@ -368,8 +310,7 @@ class ReaderDataManager(private val context: Context) {
      * 保存阅读进度
      */
     fun saveProgress(progress: ReadingProgress) {
-        val json = gson.toJson(progress)
-        prefs.edit().putString("${KEY_PROGRESS}_${progress.filePath}", json).apply()
+        dao.saveProgress(progress)
         Log.d(TAG, "保存阅读进度: ${progress.currentPage}/${progress.totalPages}")
     }
     
@@ -1,5 +1,8 @@
 package com.example.aifloatingball.viewer
 
+import androidx.room.Entity
+import androidx.room.Index
+import androidx.room.PrimaryKey
 import java.io.Serializable
 
 /**
@@ -9,7 +12,9 @@ import java.io.Serializable
 /**
  * 书签数据
  */
+@Entity(tableName = "reader_bookmarks", indices = [Index(value = ["filePath", "pageIndex"])])
 data class Bookmark(
+    @PrimaryKey
     val id: String,
     val filePath: String,
     val pageIndex: Int,
@@ -21,7 +26,9 @@ data class Bookmark(
 /**
  * 划线/高亮数据
  */
+@Entity(tableName = "reader_highlights", indices = [Index(value = ["filePath", "pageIndex", "startPosition"])])
 data class Highlight(
+    @PrimaryKey
     val id: String,
     val filePath: String,
     val pageIndex: Int,
@@ -36,7 +43,9 @@ data class Highlight(
 /**
  * 笔记数据
  */
+@Entity(tableName = "reader_notes", indices = [Index(value = ["filePath", "pageIndex"])])
 data class Note(
+    @PrimaryKey
     val id: String,
     val filePath: String,
     val pageIndex: Int,
@@ -53,18 +62,22 @@ data class Chapter(
     val id: String,
     val title: String,
     val pageIndex: Int, // 章节起始页码
-    val position: Int // 章节在文本中的位置
+    val position: Int, // 章节在文本中的位置
+    val level: Int = 1 // 0为卷，1为章，2为节
 ) : Serializable
 
 /**
  * 阅读进度
  */
+@Entity(tableName = "reader_progress")
 data class ReadingProgress(
+    @PrimaryKey
     val filePath: String,
     val currentPage: Int,
     val totalPages: Int,
     val position: Int, // 当前阅读位置
-    val lastReadTime: Long = System.currentTimeMillis()
+    val lastReadTime: Long = System.currentTimeMillis(),
+    val byteOffset: Long = 0 // 当前页在文件中的起始字节，0表示未知或从头开始
 ) : Serializable
 
 /**
@@ -0,0 +1,249 @@
+package com.example.aifloatingball.voice
+
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * 录音与识别分离的音频管线
+ *
+ * 录音线程只负责从 [source] 读取 PCM 写入 [AudioRingBuffer]，不会被解码拖慢；
+ * 解码线程每次取出一批整帧，经过 [VoiceActivityDetector] 过滤掉静音帧，
+ * 把本批中需要识别的帧拼成一段交给 [decoder]。语音开始前的几帧会作为前导一起送出，不会切掉字头。
+ *
+ * 停止后解码线程会等录音线程退出、处理完缓冲区中剩余的数据，再调用 [onEnd]。
+ * [onEnd] 运行时两个线程都已不再使用 [source] 和 [decoder]，可以在其中取最终结果和释放资源，
+ * 调用方不需要在其他线程上等待管线结束。只依赖 JDK，可以在 JVM 单元测试中使用。
+ *
+ * @param source 阻塞读取的音频源，返回负数表示结束或出错
+ * @param decoder 在解码线程中调用，参数为本批需要识别的数据和长度；数组会被复用
+ * @param vad 为 null 时不做静音过滤，所有数据都送去识别
+ * @param threadSetup 两个工作线程启动时各调用一次，例如设置线程优先级
+ * @param onEnd 解码线程结束前调用，参数为音频源返回的负数结果，正常停止时为 0
+ */
+class AudioCapturePipeline(
+    private val source: AudioSource,
+    private val decoder: (pcm: ByteArray, length: Int) -> Unit,
+    private val vad: VoiceActivityDetector? = VoiceActivityDetector(),
+    sampleRate: Int = 16000,
+    bufferMillis: Int = 2000,
+    batchMillis: Int = 100,
+    preRollMillis: Int = 200,
+    private val threadSetup: () -> Unit = {},
+    private val onEnd: (code: Int) -> Unit = {}
+) {
+
+    /**
+     * 音频源，通常是 AudioRecord
+     */
+    fun interface AudioSource {
+        fun read(buffer: ByteArray, offset: Int, length: Int): Int
+    }
+
+    /**
+     * 管线统计
+     *
+     * @param skippedBytes 被静音检测过滤、没有送去识别的字节数
+     * @param decodeNanos 在 [decoder] 中花费的总时间
+     */
+    data class Stats(
+        val capturedBytes: Long,
+        val decodedBytes: Long,
+        val skippedBytes: Long,
+        val batches: Long,
+        val overflowBytes: Long,
+        val overflowCount: Long,
+        val underrunCount: Long,
+        val decodeNanos: Long
+    )
+
+    companion object {
+        private const val READ_CHUNK_MILLIS = 20
+        private val IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10)
+        private const val JOIN_TIMEOUT_MS = 2000L
+    }
+
+    private val bytesPerMilli = sampleRate * 2 / 1000
+    private val frameBytes = vad?.frameBytes ?: (bytesPerMilli * READ_CHUNK_MILLIS)
+    private val ring = AudioRingBuffer(bufferMillis * bytesPerMilli)
+    private val readBuffer = ByteArray(READ_CHUNK_MILLIS * bytesPerMilli)
+    private val batchBytes = (batchMillis * bytesPerMilli / frameBytes).coerceAtLeast(1) * frameBytes
+    private val batch = ByteArray(batchBytes)
+    private val preRollFrames = preRollMillis * bytesPerMilli / frameBytes
+    private val preRoll = ByteArray(preRollFrames * frameBytes)
+    private val output = ByteArray(batchBytes + preRoll.size)
+
+    @Volatile
+    private var running = false
+    @Volatile
+    private var readerDone = false
+    @Volatile
+    private var endCode = 0
+    @Volatile
+    private var capturedBytes = 0L
+    @Volatile
+    private var decodedBytes = 0L
+    @Volatile
+    private var skippedBytes = 0L
+    @Volatile
+    private var batches = 0L
+    @Volatile
+    private var decodeNanos = 0L
+
+    // 前导帧环形存储，只在解码线程中访问
+    private var preRollStart = 0
+    private var preRollCount = 0
+    private var inSpeech = false
+
+    private var readerThread: Thread? = null
+    private var decoderThread: Thread? = null
+
+    /**
+     * 启动录音和解码线程
+     */
+    fun start() {
+        check(readerThread == null) { "管线只能启动一次" }
+        running = true
+        vad?.reset()
+        val decodeThread = Thread({ decodeLoop() }, "VoiceDecoder")
+        decoderThread = decodeThread
+        readerThread = Thread({ readLoop(decodeThread) }, "VoiceCapture").also { it.start() }
+        decodeThread.start()
+    }
+
+    /**
+     * 通知停止，不等待；录音线程退出、解码线程处理完缓冲区中剩余的数据后调用 [onEnd]
+     *
+     * 阻塞在 [AudioSource.read] 中的录音线程要等这次读取返回才会退出，
+     * 因此 AudioRecord 应在调用本方法后 stop，release 放到 [onEnd] 中。
+     */
+    fun stop() {
+        running = false
+        readerThread?.let { LockSupport.unpark(it) }
+        decoderThread?.let { LockSupport.unpark(it) }
+    }
+
+    /**
+     * 等待录音和解码线程都结束，超时返回 false；会阻塞调用线程，不要在主线程调用
+     */
+    fun awaitEnd(timeoutMs: Long = JOIN_TIMEOUT_MS): Boolean {
+        val deadline = System.currentTimeMillis() + timeoutMs
+        for (thread in listOfNotNull(readerThread, decoderThread)) {
+            if (thread === Thread.currentThread()) return false
+            thread.join((deadline - System.currentTimeMillis()).coerceAtLeast(1))
+            if (thread.isAlive) return false
+        }
+        return true
+    }
+
+    fun stats(): Stats = Stats(
+        capturedBytes = capturedBytes,
+        decodedBytes = decodedBytes,
+        skippedBytes = skippedBytes,
+        batches = batches,
+        overflowBytes = ring.overflowBytes(),
+        overflowCount = ring.overflowCount(),
+        underrunCount = ring.underrunCount(),
+        decodeNanos = decodeNanos
+    )
+
+    private fun readLoop(decodeThread: Thread) {
+        threadSetup()
+        try {
+            while (running) {
+                val count = source.read(readBuffer, 0, readBuffer.size)
+                if (count < 0) {
+                    endCode = count
+                    break
+                }
+                if (count == 0) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS)
+                    continue
+                }
+                if (running) {
+                    ring.write(readBuffer, 0, count)
+                    capturedBytes += count
+                    LockSupport.unpark(decodeThread)
+                }
+            }
+        } finally {
+            readerDone = true
+            LockSupport.unpark(decodeThread)
+        }
+    }
+
+    private fun decodeLoop() {
+        threadSetup()
+        try {
+            while (true) {
+                // 录音线程退出后才算结束，之后不会再有线程读取音频源
+                val finished = readerDone
+                val available = ring.available()
+                // 每批只取整帧，结束时连同不足一帧的尾部一起取出
+                val wanted = if (finished) minOf(available, batchBytes) else minOf(available, batchBytes) / frameBytes * frameBytes
+                if (wanted <= 0) {
+                    if (finished) break
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS)
+                    continue
+                }
+                val length = ring.read(batch, 0, wanted)
+                processBatch(length)
+            }
+        } finally {
+            onEnd(endCode)
+        }
+    }
+
+    private fun processBatch(length: Int) {
+        var outLength = 0
+        var offset = 0
+        while (offset < length) {
+            val frameLength = minOf(frameBytes, length - offset)
+            val speech = vad?.isSpeech(batch, offset, frameLength) ?: true
+            if (speech) {
+                if (!inSpeech) {
+                    outLength = drainPreRoll(outLength)
+                    inSpeech = true
+                }
+                System.arraycopy(batch, offset, output, outLength, frameLength)
+                outLength += frameLength
+            } else {
+                inSpeech = false
+                keepPreRoll(offset, frameLength)
+                skippedBytes += frameLength
+            }
+            offset += frameLength
+        }
+        if (outLength > 0) {
+            val start = System.nanoTime()
+            decoder(output, outLength)
+            decodeNanos += System.nanoTime() - start
+            decodedBytes += outLength
+            batches++
+        }
+    }
+
+    private fun keepPreRoll(offset: Int, frameLength: Int) {
+        if (preRollFrames == 0 || frameLength != frameBytes) return
+        val slot = (preRollStart + preRollCount) % preRollFrames
+        System.arraycopy(batch, offset, preRoll, slot * frameBytes, frameBytes)
+        if (preRollCount < preRollFrames) {
+            preRollCount++
+        } else {
+            preRollStart = (preRollStart + 1) % preRollFrames
+        }
+    }
+
+    private fun drainPreRoll(outLength: Int): Int {
+        var position = outLength
+        for (i in 0 until preRollCount) {
+            val slot = (preRollStart + i) % preRollFrames
+            System.arraycopy(preRoll, slot * frameBytes, output, position, frameBytes)
+            position += frameBytes
+        }
+        // 前导帧已经计入过滤，送出后改为计入识别
+        skippedBytes -= (position - outLength).toLong()
+        preRollStart = 0
+        preRollCount = 0
+        return position
+    }
+}
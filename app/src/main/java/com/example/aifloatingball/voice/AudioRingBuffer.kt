@@ -0,0 +1,102 @@
+package com.example.aifloatingball.voice
+
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * 单生产者/单消费者的无锁音频环形缓冲区
+ *
+ * 录音线程只调用 [write]，解码线程只调用 [read]，两端各自推进自己的位置，
+ * 通过 [AtomicLong.lazySet] 发布，不需要加锁。存储在创建时一次分配，之后不再分配内存。
+ *
+ * 写入时空间不足不会阻塞录音线程，放不下的部分直接丢弃并计入溢出；
+ * 读取时没有数据计入欠载，两个计数都可以随时读取。
+ *
+ * @param capacity 最小容量（字节），实际容量向上取整到 2 的幂
+ * @param alignment 每次写入的字节数会向下取整到它的倍数，16 位单声道 PCM 为 2，保证不会切开一个采样
+ */
+class AudioRingBuffer(capacity: Int, private val alignment: Int = 2) {
+
+    private val size: Int = Integer.highestOneBit((capacity - 1).coerceAtLeast(1)) shl 1
+    private val mask = size - 1L
+    private val data = ByteArray(size)
+
+    private val writePosition = AtomicLong()
+    private val readPosition = AtomicLong()
+    private val overflowBytes = AtomicLong()
+    private val overflowCount = AtomicLong()
+    private val underrunCount = AtomicLong()
+
+    init {
+        require(capacity > 0) { "capacity 必须大于0" }
+        require(alignment > 0 && size % alignment == 0) { "alignment 必须能整除容量" }
+    }
+
+    /**
+     * 实际容量（字节）
+     */
+    val capacity: Int get() = size
+
+    /**
+     * 可读取的字节数
+     */
+    fun available(): Int = (writePosition.get() - readPosition.get()).toInt()
+
+    /**
+     * 写入数据，只能由生产者线程调用
+     *
+     * @return 实际写入的字节数，小于 [length] 时其余部分已作为溢出丢弃
+     */
+    fun write(src: ByteArray, offset: Int, length: Int): Int {
+        val write = writePosition.get()
+        val free = size - (write - readPosition.get()).toInt()
+        val count = minOf(length, free).let { it - it % alignment }
+        if (count < length) {
+            overflowBytes.addAndGet((length - count).toLong())
+            overflowCount.incrementAndGet()
+        }
+        if (count <= 0) return 0
+
+        val index = (write and mask).toInt()
+        val first = minOf(count, size - index)
+        System.arraycopy(src, offset, data, index, first)
+        if (count > first) System.arraycopy(src, offset + first, data, 0, count - first)
+        writePosition.lazySet(write + count)
+        return count
+    }
+
+    /**
+     * 读取最多 [length] 字节，只能由消费者线程调用
+     *
+     * @return 实际读取的字节数，缓冲区为空时返回 0 并计入欠载
+     */
+    fun read(dst: ByteArray, offset: Int, length: Int): Int {
+        val read = readPosition.get()
+        val count = minOf(length, (writePosition.get() - read).toInt())
+        if (count <= 0) {
+            underrunCount.incrementAndGet()
+            return 0
+        }
+
+        val index = (read and mask).toInt()
+        val first = minOf(count, size - index)
+        System.arraycopy(data, index, dst, offset, first)
+        if (count > first) System.arraycopy(data, 0, dst, offset + first, count - first)
+        readPosition.lazySet(read + count)
+        return count
+    }
+
+    /**
+     * 因空间不足丢弃的总字节数
+     */
+    fun overflowBytes(): Long = overflowBytes.get()
+
+    /**
+     * 发生丢弃的写入次数
+     */
+    fun overflowCount(): Long = overflowCount.get()
+
+    /**
+     * 读取时缓冲区为空的次数
+     */
+    fun underrunCount(): Long = underrunCount.get()
+}
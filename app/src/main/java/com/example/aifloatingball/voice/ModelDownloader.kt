@@ -0,0 +1,645 @@
+package com.example.aifloatingball.voice
+
+import com.example.aifloatingball.network.AIStreamingEngine
+import com.google.gson.Gson
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.ensureActive
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.joinAll
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import java.io.EOFException
+import java.io.File
+import java.io.IOException
+import java.io.InputStream
+import java.io.InterruptedIOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.security.MessageDigest
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.zip.ZipException
+import java.util.zip.ZipInputStream
+import kotlin.coroutines.coroutineContext
+
+/**
+ * 可断点续传、边下边解压的模型下载器
+ *
+ * 服务器支持 Range 时，ZIP 按 [segmentSize] 分段，由最多 [parallelism] 个连接按顺序领取、并行下载，
+ * 写入临时文件中对应的位置。每段已下载的字节数定期记录到临时文件旁的进度日志中：
+ * 连接中途断开时从断点重试，进程被杀或网络切换后再次下载也从断点继续。
+ * 服务器不支持 Range 时退回单连接顺序下载，断开重连后跳过已写入的部分。
+ *
+ * 解压与下载同时进行：解压线程只读取临时文件中已经连续下载完成的前缀，
+ * 用 [ZipInputStream] 逐个条目解压到临时目录并校验 CRC，同时计算整个文件的 SHA-256。
+ * 全部成功后才把临时目录换成目标目录，任何一步失败时原有的目标目录都保持不变。
+ */
+class ModelDownloader(
+    private val client: OkHttpClient = defaultClient,
+    private val segmentSize: Long = DEFAULT_SEGMENT_SIZE,
+    private val parallelism: Int = DEFAULT_PARALLELISM,
+    private val maxRetries: Int = DEFAULT_MAX_RETRIES,
+    private val retryDelayMs: Long = DEFAULT_RETRY_DELAY_MS,
+    private val progressIntervalMs: Long = DEFAULT_PROGRESS_INTERVAL_MS
+) {
+
+    companion object {
+        const val DEFAULT_SEGMENT_SIZE = 4L * 1024 * 1024
+        const val DEFAULT_PARALLELISM = 4
+        const val DEFAULT_MAX_RETRIES = 5
+        private const val DEFAULT_RETRY_DELAY_MS = 1000L
+        private const val DEFAULT_PROGRESS_INTERVAL_MS = 200L
+        private const val JOURNAL_INTERVAL_MS = 1000L
+        private const val BUFFER_SIZE = 64 * 1024
+        private const val WAIT_SLICE_MS = 500L
+
+        const val JOURNAL_SUFFIX = ".journal"
+        private const val STAGING_SUFFIX = ".staging"
+        private const val BACKUP_SUFFIX = ".old"
+
+        private val gson = Gson()
+
+        private val defaultClient: OkHttpClient by lazy {
+            AIStreamingEngine.sharedClient.newBuilder()
+                .connectTimeout(30, TimeUnit.SECONDS)
+                .readTimeout(60, TimeUnit.SECONDS)
+                .build()
+        }
+    }
+
+    /**
+     * 下载进度
+     *
+     * @param totalBytes ZIP 大小，服务器未给出时为 -1
+     * @param extractedBytes 已解压出的文件总大小
+     */
+    data class Progress(
+        val downloadedBytes: Long,
+        val totalBytes: Long,
+        val extractedBytes: Long,
+        val extractedFiles: Int,
+        val bytesPerSecond: Long
+    )
+
+    fun interface ProgressListener {
+        fun onProgress(progress: Progress)
+    }
+
+    /**
+     * 下载结果
+     *
+     * @param resumedBytes 从上次中断处继续时，本次不需要再下载的字节数
+     * @param networkBytes 本次实际从网络读取的字节数，包括重试时重复读取的部分
+     */
+    data class Result(
+        val zipBytes: Long,
+        val extractedBytes: Long,
+        val extractedFiles: Int,
+        val sha256: String,
+        val resumedBytes: Long,
+        val networkBytes: Long
+    )
+
+    /**
+     * 服务器返回了错误状态码
+     */
+    class HttpStatusException(val code: Int) : IOException("HTTP $code")
+
+    /**
+     * 下载内容与期望的 SHA-256 不一致
+     */
+    class ChecksumMismatchException(val expected: String, val actual: String) :
+        IOException("SHA-256 不匹配: 期望 $expected, 实际 $actual")
+
+    /**
+     * 续传过程中服务器上的文件发生了变化，进度日志已作废，需要重新下载
+     */
+    class ResourceChangedException(message: String) : IOException(message)
+
+    private class RemoteInfo(val length: Long, val validator: String?, val acceptsRanges: Boolean)
+
+    private class Journal(
+        val url: String,
+        val length: Long,
+        val validator: String?,
+        val segmentSize: Long,
+        val progress: LongArray
+    )
+
+    /**
+     * 下载 [url] 指向的 ZIP 并解压到 [targetDir]
+     *
+     * @param zipFile 临时文件，旁边放进度日志；成功后两者都会删除，失败时保留用于续传
+     * @param stripPrefix 条目名以它开头时去掉这一段，例如压缩包里的顶层目录 "model-name/"
+     * @param expectedSha256 不为 null 时与整个 ZIP 的 SHA-256 比较（不区分大小写）
+     * @param listener 在后台线程中按 [progressIntervalMs] 回调
+     */
+    suspend fun download(
+        url: String,
+        zipFile: File,
+        targetDir: File,
+        stripPrefix: String = "",
+        expectedSha256: String? = null,
+        listener: ProgressListener? = null
+    ): Result = withContext(Dispatchers.IO) {
+        val journalFile = File(zipFile.path + JOURNAL_SUFFIX)
+        val remote = probe(url)
+        zipFile.parentFile?.mkdirs()
+        val transfer = prepare(url, remote, zipFile, journalFile)
+        val resumedBytes = transfer.downloaded()
+
+        val parent = targetDir.absoluteFile.parentFile ?: throw IOException("无效的目标目录: $targetDir")
+        val staging = File(parent, targetDir.name + STAGING_SUFFIX)
+        staging.deleteRecursively()
+        if (!staging.mkdirs()) throw IOException("无法创建临时目录: $staging")
+
+        val digest = MessageDigest.getInstance("SHA-256")
+        var succeeded = false
+        try {
+            RandomAccessFile(zipFile, "rw").use { file ->
+                try {
+                    coroutineScope {
+                        val reporter = launch {
+                            var lastJournal = System.currentTimeMillis()
+                            var lastBytes = transfer.downloaded()
+                            var lastTime = System.nanoTime()
+                            while (isActive) {
+                                delay(progressIntervalMs)
+                                val now = System.nanoTime()
+                                val bytes = transfer.downloaded()
+                                val speed = (bytes - lastBytes) * 1_000_000_000L / (now - lastTime).coerceAtLeast(1)
+                                lastBytes = bytes
+                                lastTime = now
+                                listener?.onProgress(transfer.report(speed))
+                                if (System.currentTimeMillis() - lastJournal >= JOURNAL_INTERVAL_MS) {
+                                    checkpoint(transfer, file.channel, journalFile)
+                                    lastJournal = System.currentTimeMillis()
+                                }
+                            }
+                        }
+                        val extraction = async {
+                            extract(PrefixInputStream(zipFile, transfer, digest), staging, stripPrefix, transfer)
+                        }
+                        try {
+                            if (remote.acceptsRanges) {
+                                fetchSegments(url, transfer, file.channel)
+                            } else {
+                                fetchSequential(url, transfer, file.channel)
+                            }
+                            transfer.finish()
+                            extraction.await()
+                        } catch (e: Throwable) {
+                            // 唤醒等待数据的解压线程
+                            transfer.fail(e)
+                            throw e
+                        } finally {
+                            reporter.cancel()
+                        }
+                    }
+                } finally {
+                    if (transfer.resumable && !succeeded) checkpoint(transfer, file.channel, journalFile)
+                }
+            }
+
+            val sha256 = digest.digest().joinToString("") { "%02x".format(it) }
+            if (expectedSha256 != null && !expectedSha256.equals(sha256, ignoreCase = true)) {
+                throw ChecksumMismatchException(expectedSha256, sha256)
+            }
+            if (transfer.extractedFiles == 0) throw ZipException("压缩包中没有文件")
+
+            swapIn(staging, targetDir)
+            succeeded = true
+            listener?.onProgress(transfer.report(0))
+            Result(
+                zipBytes = transfer.length,
+                extractedBytes = transfer.extractedBytes,
+                extractedFiles = transfer.extractedFiles,
+                sha256 = sha256,
+                resumedBytes = resumedBytes,
+                networkBytes = transfer.networkBytes.get()
+            )
+        } catch (e: IOException) {
+            // 内容本身有问题时续传只会得到同样的结果，从头下载
+            if (e is ZipException || e is ChecksumMismatchException || e is ResourceChangedException) {
+                journalFile.delete()
+                zipFile.delete()
+            }
+            throw e
+        } finally {
+            if (succeeded) {
+                journalFile.delete()
+                zipFile.delete()
+            }
+            staging.deleteRecursively()
+        }
+    }
+
+    /**
+     * 取得文件大小和校验标识，并确认服务器是否支持 Range
+     */
+    private fun probe(url: String): RemoteInfo {
+        val request = Request.Builder().url(url).header("Range", "bytes=0-0").build()
+        client.newCall(request).execute().use { response ->
+            val strongEtag = response.header("ETag")?.takeIf { !it.startsWith("W/") }
+            val validator = strongEtag ?: response.header("Last-Modified")
+            return when (response.code) {
+                206 -> {
+                    val total = response.header("Content-Range")
+                        ?.substringAfterLast('/', "")
+                        ?.toLongOrNull() ?: -1L
+                    RemoteInfo(total, validator, total > 0)
+                }
+                200 -> RemoteInfo(response.body?.contentLength() ?: -1L, validator, false)
+                else -> throw HttpStatusException(response.code)
+            }
+        }
+    }
+
+    /**
+     * 读取进度日志；文件或服务器上的内容对不上时重新开始
+     */
+    private fun prepare(url: String, remote: RemoteInfo, zipFile: File, journalFile: File): Transfer {
+        if (!remote.acceptsRanges) {
+            journalFile.delete()
+            zipFile.delete()
+            return Transfer(url, remote.length, Long.MAX_VALUE, LongArray(1), null, resumable = false)
+        }
+
+        val segments = ((remote.length + segmentSize - 1) / segmentSize).toInt()
+        val journal = try {
+            journalFile.takeIf { it.exists() && remote.validator != null && zipFile.length() == remote.length }
+                ?.readText()
+                ?.let { gson.fromJson(it, Journal::class.java) }
+                ?.takeIf {
+                    it.url == url &&
+                        it.length == remote.length &&
+                        it.validator == remote.validator &&
+                        it.segmentSize == segmentSize &&
+                        it.progress.size == segments
+                }
+        } catch (e: Exception) {
+            // 日志损坏时当作没有
+            null
+        }
+        if (journal != null) {
+            return Transfer(url, remote.length, segmentSize, journal.progress, remote.validator, resumable = true)
+        }
+
+        journalFile.delete()
+        zipFile.delete()
+        RandomAccessFile(zipFile, "rw").use { it.setLength(remote.length) }
+        // 没有 ETag/Last-Modified 时无法确认文件未变，不记录进度
+        return Transfer(url, remote.length, segmentSize, LongArray(segments), remote.validator, resumable = remote.validator != null)
+    }
+
+    private suspend fun fetchSegments(url: String, transfer: Transfer, channel: FileChannel) = coroutineScope {
+        val next = AtomicInteger()
+        val workers = (0 until minOf(parallelism, transfer.segmentCount).coerceAtLeast(1)).map {
+            launch {
+                // 按顺序领取分段，保证连续前缀尽快向前推进，解压不会长时间等待
+                while (true) {
+                    val index = next.getAndIncrement()
+                    if (index >= transfer.segmentCount) break
+                    fetchSegment(url, transfer, index, channel)
+                }
+            }
+        }
+        workers.joinAll()
+    }
+
+    private suspend fun fetchSegment(url: String, transfer: Transfer, index: Int, channel: FileChannel) {
+        val end = transfer.segmentStart(index) + transfer.segmentLength(index)
+        var attempt = 0
+        while (true) {
+            val start = transfer.segmentStart(index) + transfer.written(index)
+            if (start >= end) return
+            try {
+                val request = Request.Builder()
+                    .url(url)
+                    .header("Range", "bytes=$start-${end - 1}")
+                    .apply { transfer.validator?.let { header("If-Range", it) } }
+                    .build()
+                client.newCall(request).execute().use { response ->
+                    when (response.code) {
+                        206 -> {
+                            val rangeStart = response.header("Content-Range")
+                                ?.substringAfter("bytes ", "")
+                                ?.substringBefore('-')
+                                ?.trim()
+                                ?.toLongOrNull()
+                            if (rangeStart != start) throw ResourceChangedException("服务器返回的范围不符: ${response.header("Content-Range")}")
+                        }
+                        // If-Range 不匹配时服务器返回整个文件
+                        200 -> throw ResourceChangedException("服务器上的文件已变化")
+                        else -> throw HttpStatusException(response.code)
+                    }
+                    val body = response.body ?: throw IOException("响应体为空")
+                    copyTo(body.byteStream(), transfer, index, channel, start, end)
+                }
+                return
+            } catch (e: IOException) {
+                if (!isRetryable(e)) throw e
+                // 这次有进展说明连接本身可用，重新计算重试次数
+                if (transfer.segmentStart(index) + transfer.written(index) > start) attempt = 0
+                if (++attempt > maxRetries) throw e
+                delay(retryDelayMs shl (attempt - 1).coerceAtMost(5))
+            }
+        }
+    }
+
+    /**
+     * 不支持 Range 时的单连接下载：断开后重新请求，丢弃已经写入的部分继续
+     */
+    private suspend fun fetchSequential(url: String, transfer: Transfer, channel: FileChannel) {
+        var attempt = 0
+        while (true) {
+            val written = transfer.written(0)
+            try {
+                val request = Request.Builder().url(url).build()
+                client.newCall(request).execute().use { response ->
+                    if (response.code != 200) throw HttpStatusException(response.code)
+                    val body = response.body ?: throw IOException("响应体为空")
+                    val input = body.byteStream()
+                    var skipped = 0L
+                    val scratch = ByteArray(BUFFER_SIZE)
+                    while (skipped < written) {
+                        coroutineContext.ensureActive()
+                        val count = input.read(scratch, 0, minOf(scratch.size.toLong(), written - skipped).toInt())
+                        if (count < 0) throw EOFException("重连后内容比已下载的部分短")
+                        skipped += count
+                        transfer.countNetwork(count)
+                    }
+                    copyTo(input, transfer, 0, channel, written, Long.MAX_VALUE)
+                }
+                return
+            } catch (e: IOException) {
+                if (!isRetryable(e)) throw e
+                if (transfer.written(0) > written) attempt = 0
+                if (++attempt > maxRetries) throw e
+                delay(retryDelayMs shl (attempt - 1).coerceAtMost(5))
+            }
+        }
+    }
+
+    private suspend fun copyTo(
+        input: InputStream,
+        transfer: Transfer,
+        index: Int,
+        channel: FileChannel,
+        start: Long,
+        end: Long
+    ) {
+        val buffer = ByteArray(BUFFER_SIZE)
+        var position = start
+        while (position < end) {
+            coroutineContext.ensureActive()
+            val count = input.read(buffer, 0, minOf(buffer.size.toLong(), end - position).toInt())
+            if (count < 0) {
+                if (end == Long.MAX_VALUE) return
+                throw EOFException("连接在 $position 处中断")
+            }
+            val data = ByteBuffer.wrap(buffer, 0, count)
+            var offset = position
+            while (data.hasRemaining()) {
+                offset += channel.write(data, offset)
+            }
+            position += count
+            transfer.advance(index, count)
+        }
+    }
+
+    private fun isRetryable(e: IOException): Boolean = when (e) {
+        is ResourceChangedException -> false
+        is HttpStatusException -> e.code >= 500 || e.code == 408 || e.code == 429
+        else -> true
+    }
+
+    /**
+     * 先把数据刷到磁盘再记录进度，保证日志中的进度不会超过文件中实际存在的数据
+     */
+    private fun checkpoint(transfer: Transfer, channel: FileChannel, journalFile: File) {
+        if (!transfer.resumable) return
+        try {
+            channel.force(false)
+            val journal = Journal(
+                url = transfer.url,
+                length = transfer.length,
+                validator = transfer.validator,
+                segmentSize = transfer.segmentSize,
+                progress = transfer.snapshot()
+            )
+            val temp = File(journalFile.path + ".tmp")
+            temp.writeText(gson.toJson(journal))
+            if (!temp.renameTo(journalFile)) {
+                journalFile.delete()
+                temp.renameTo(journalFile)
+            }
+        } catch (e: IOException) {
+            // 只影响续传，不影响本次下载
+        }
+    }
+
+    private fun extract(input: PrefixInputStream, staging: File, stripPrefix: String, transfer: Transfer) {
+        input.use { prefix ->
+            val root = staging.canonicalPath + File.separator
+            val zip = ZipInputStream(prefix.buffered(BUFFER_SIZE))
+            val buffer = ByteArray(BUFFER_SIZE)
+            var entry = zip.nextEntry
+            while (entry != null) {
+                val name = entry.name.removePrefix(stripPrefix)
+                if (name.isNotEmpty()) {
+                    val file = File(staging, name)
+                    if (!file.canonicalPath.startsWith(root)) throw ZipException("非法的条目路径: ${entry.name}")
+                    if (entry.isDirectory) {
+                        file.mkdirs()
+                    } else {
+                        file.parentFile?.mkdirs()
+                        file.outputStream().use { output ->
+                            // 读到条目末尾时 ZipInputStream 会校验 CRC，不一致时抛出 ZipException
+                            var count = zip.read(buffer)
+                            while (count >= 0) {
+                                output.write(buffer, 0, count)
+                                transfer.extractedBytes += count
+                                count = zip.read(buffer)
+                            }
+                        }
+                        transfer.extractedFiles++
+                    }
+                }
+                zip.closeEntry()
+                entry = zip.nextEntry
+            }
+            // 中央目录不需要解压，但要读完才能得到整个文件的摘要
+            while (prefix.read(buffer) >= 0) {
+                // 继续读取
+            }
+        }
+    }
+
+    /**
+     * 先把旧目录改名备份，再把临时目录改成目标目录；中途失败时恢复备份
+     */
+    private fun swapIn(staging: File, targetDir: File) {
+        val backup = File(staging.parentFile, targetDir.name + BACKUP_SUFFIX)
+        backup.deleteRecursively()
+        if (targetDir.exists() && !targetDir.renameTo(backup)) {
+            throw IOException("无法替换目录: $targetDir")
+        }
+        if (!staging.renameTo(targetDir)) {
+            backup.renameTo(targetDir)
+            throw IOException("无法移动解压结果到: $targetDir")
+        }
+        backup.deleteRecursively()
+    }
+
+    /**
+     * 一次下载的共享状态：各分段的进度、解压统计，以及等待连续前缀的解压线程
+     */
+    private class Transfer(
+        val url: String,
+        length: Long,
+        val segmentSize: Long,
+        private val progress: LongArray,
+        val validator: String?,
+        val resumable: Boolean
+    ) {
+        private val lock = Object()
+        private var finished = false
+        private var failure: Throwable? = null
+        // 第一个没有下载完的分段，只会向后移动
+        private var frontier = 0
+
+        @Volatile
+        var length: Long = length
+            private set
+        val networkBytes = AtomicLong()
+
+        // 只由解压线程写入
+        @Volatile
+        var extractedBytes = 0L
+        @Volatile
+        var extractedFiles = 0
+
+        val segmentCount: Int get() = progress.size
+
+        fun segmentStart(index: Int): Long = index * segmentSize
+
+        fun segmentLength(index: Int): Long =
+            if (length < 0) Long.MAX_VALUE else minOf(segmentSize, length - segmentStart(index))
+
+        fun written(index: Int): Long = synchronized(lock) { progress[index] }
+
+        fun downloaded(): Long = synchronized(lock) { progress.sum() }
+
+        fun snapshot(): LongArray = synchronized(lock) { progress.copyOf() }
+
+        fun countNetwork(count: Int) {
+            networkBytes.addAndGet(count.toLong())
+        }
+
+        fun advance(index: Int, count: Int) {
+            networkBytes.addAndGet(count.toLong())
+            synchronized(lock) {
+                progress[index] += count.toLong()
+                lock.notifyAll()
+            }
+        }
+
+        fun finish() {
+            synchronized(lock) {
+                if (length < 0) length = progress[0]
+                finished = true
+                lock.notifyAll()
+            }
+        }
+
+        fun fail(e: Throwable) {
+            synchronized(lock) {
+                if (failure == null) failure = e
+                lock.notifyAll()
+            }
+        }
+
+        fun report(bytesPerSecond: Long) = Progress(
+            downloadedBytes = downloaded(),
+            totalBytes = length,
+            extractedBytes = extractedBytes,
+            extractedFiles = extractedFiles,
+            bytesPerSecond = bytesPerSecond
+        )
+
+        /**
+         * 阻塞到 [position] 处的数据已经下载，返回连续可读的末尾位置；整个文件已读完时返回 -1
+         */
+        fun awaitReadable(position: Long): Long {
+            synchronized(lock) {
+                while (true) {
+                    // 抛出下载失败的原始异常，让调用方看到真正的原因
+                    when (val cause = failure) {
+                        null -> Unit
+                        is IOException -> throw cause
+                        is CancellationException -> throw cause
+                        else -> throw IOException("下载已中止", cause)
+                    }
+                    val available = contiguous()
+                    if (available > position) return available
+                    if (finished) return -1
+                    try {
+                        lock.wait(WAIT_SLICE_MS)
+                    } catch (e: InterruptedException) {
+                        Thread.currentThread().interrupt()
+                        throw InterruptedIOException("等待下载数据时被中断")
+                    }
+                }
+            }
+        }
+
+        private fun contiguous(): Long {
+            while (frontier < progress.size && progress[frontier] >= segmentLength(frontier)) frontier++
+            return if (frontier >= progress.size) length else segmentStart(frontier) + progress[frontier]
+        }
+    }
+
+    /**
+     * 只读取临时文件中已经连续下载完成的部分，数据未到时阻塞等待；读出的字节同时计入摘要
+     */
+    private class PrefixInputStream(
+        file: File,
+        private val transfer: Transfer,
+        private val digest: MessageDigest
+    ) : InputStream() {
+
+        private val input = RandomAccessFile(file, "r")
+        private var position = 0L
+
+        override fun read(): Int {
+            val single = ByteArray(1)
+            return if (read(single, 0, 1) < 0) -1 else single[0].toInt() and 0xFF
+        }
+
+        override fun read(b: ByteArray, off: Int, len: Int): Int {
+            if (len == 0) return 0
+            val available = transfer.awaitReadable(position)
+            if (available < 0) return -1
+            val count = minOf(len.toLong(), available - position).toInt()
+            input.seek(position)
+            val read = input.read(b, off, count)
+            if (read < 0) throw EOFException("临时文件在 $position 处意外结束")
+            digest.update(b, off, read)
+            position += read
+            return read
+        }
+
+        override fun close() {
+            input.close()
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.example.aifloatingball.voice
+
+/**
+ * 基于短时能量和过零率的语音活动检测
+ *
+ * 按固定长度的帧（默认 20ms 的 16 位单声道 PCM）判断是否有人说话：
+ * 能量明显高于噪声基底的帧是浊音；能量略高但过零率落在清辅音范围内的帧（"s""sh"等）也算语音。
+ * 噪声基底在静音帧上持续跟踪，环境噪声变化后会自动适应。
+ *
+ * 语音结束后继续放行 [hangoverMillis] 的帧，让识别器看到句尾的静音并给出最终结果。
+ * 同一个实例只能在一个线程中使用。
+ */
+class VoiceActivityDetector(
+    sampleRate: Int = 16000,
+    val frameMillis: Int = 20,
+    hangoverMillis: Int = 600,
+    // 浊音帧能量至少为噪声基底的倍数
+    private val energyRatio: Double = 3.0,
+    // 低于这个均方能量（约 RMS 200）的帧一律视为静音
+    private val minEnergy: Double = 40_000.0
+) {
+
+    companion object {
+        // 清辅音的过零率范围（每个采样）
+        private const val UNVOICED_MIN_ZCR = 0.25
+        private const val UNVOICED_MAX_ZCR = 0.7
+        private const val UNVOICED_ENERGY_RATIO = 1.5
+        private const val NOISE_ADAPT_SILENCE = 0.05
+        private const val NOISE_ADAPT_SPEECH = 0.002
+    }
+
+    /**
+     * 每帧字节数
+     */
+    val frameBytes: Int = sampleRate * frameMillis / 1000 * 2
+
+    private val hangoverFrames = hangoverMillis / frameMillis
+    private var noiseFloor = minEnergy / energyRatio
+    private var hangover = 0
+
+    /**
+     * 判断一帧是否应送去识别，包括语音后的拖尾帧
+     *
+     * @param length 帧长度，通常为 [frameBytes]
+     */
+    fun isSpeech(pcm: ByteArray, offset: Int, length: Int): Boolean {
+        val samples = length / 2
+        if (samples == 0) return hangover > 0
+
+        var energy = 0.0
+        var crossings = 0
+        var previous = 0
+        for (i in 0 until samples) {
+            val index = offset + i * 2
+            // 16 位小端
+            val sample = (pcm[index].toInt() and 0xFF) or (pcm[index + 1].toInt() shl 8)
+            energy += sample.toDouble() * sample
+            if (i > 0 && (sample xor previous) < 0) crossings++
+            previous = sample
+        }
+        energy /= samples
+        val zcr = crossings.toDouble() / samples
+
+        val voiced = energy > maxOf(noiseFloor * energyRatio, minEnergy)
+        val unvoiced = !voiced && zcr in UNVOICED_MIN_ZCR..UNVOICED_MAX_ZCR &&
+            energy > maxOf(noiseFloor * UNVOICED_ENERGY_RATIO, minEnergy / 4)
+
+        if (voiced || unvoiced) {
+            // 说话时也缓慢上调基底，避免噪声突然变大后一直被当成语音
+            noiseFloor += (energy - noiseFloor) * NOISE_ADAPT_SPEECH
+            hangover = hangoverFrames
+            return true
+        }
+        noiseFloor += (energy - noiseFloor) * NOISE_ADAPT_SILENCE
+        noiseFloor = noiseFloor.coerceAtLeast(1.0)
+        if (hangover > 0) {
+            hangover--
+            return true
+        }
+        return false
+    }
+
+    /**
+     * 开始新的一段录音时调用
+     */
+    fun reset() {
+        noiseFloor = minEnergy / energyRatio
+        hangover = 0
+    }
+}
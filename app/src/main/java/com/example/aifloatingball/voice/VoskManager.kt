@@ -7,6 +7,7 @@ import android.media.AudioRecord
 import android.media.MediaRecorder
 import android.os.Handler
 import android.os.Looper
+import android.os.Process
 import android.util.Log
 import androidx.core.content.ContextCompat
 import kotlinx.coroutines.*
@@ -15,7 +16,6 @@ import org.vosk.Model
 import org.vosk.Recognizer
 import java.io.File
 import java.io.IOException
-import java.util.zip.ZipInputStream
 
 /**
  * Vosk离线语音识别管理器
@@ -109,14 +109,21 @@ class VoskManager(private val context: Context) {
         }
     }
     
+    // 模型和识别器都来自 VoskModelRegistry，由注册表在各实例之间共享，不能直接 close
     private var model: Model? = null
     private var recognizer: Recognizer? = null
+    private var heldModelDir: File? = null
     private var audioRecord: AudioRecord? = null
+    @Volatile
     private var isRecognizing = false
-    private var recognitionJob: Job? = null
+    // 管线结束前解码线程可能还在使用识别器，识别器的归还要等 onEnd
+    private val captureLock = Any()
+    private var capturePipeline: AudioCapturePipeline? = null
+    private val pendingReleases = mutableListOf<Pair<Model?, Recognizer>>()
     private var callback: VoskCallback? = null
     private val handler = Handler(Looper.getMainLooper())
     private val scope = CoroutineScope(Dispatchers.IO + SupervisorJob())
+    private val modelDownloader = ModelDownloader()
     
     /**
      * 设置回调
@@ -348,6 +355,12 @@ class VoskManager(private val context: Context) {
     suspend fun initializeModel(autoDownload: Boolean = true): Boolean = withContext(Dispatchers.IO) {
         try {
             val modelDir = getModelDirectory()
+
+            // 已经持有同一个模型和识别器，不需要重新加载
+            if (model != null && recognizer != null && heldModelDir == modelDir) {
+                callback?.onModelStatus(true, "模型加载完成")
+                return@withContext true
+            }
             
             // 检查模型是否存在
             if (!isModelDownloaded()) {
@@ -401,25 +414,22 @@ class VoskManager(private val context: Context) {
             Log.d(TAG, "加载Vosk模型: ${modelDir.absolutePath}")
             callback?.onModelStatus(false, "正在加载模型...")
             
-            // 先释放之前的模型（如果存在）
-            model?.close()
-            model = null
-            recognizer?.close()
-            recognizer = null
+            // 先释放之前的模型（如果存在），模型本身仍由注册表保留，切换回来时不需要重新加载
+            releaseModel()
             
             // 创建Model对象
             var modelCreated = false
             try {
                 Log.d(TAG, "开始创建Model对象，路径: ${modelDir.absolutePath}")
-                model = Model(modelDir.absolutePath)
+                model = VoskModelRegistry.acquire(modelDir)
+                heldModelDir = modelDir
                 modelCreated = true
                 Log.d(TAG, "Model对象创建成功")
             } catch (e: Exception) {
                 Log.e(TAG, "创建Model对象失败", e)
                 callback?.onModelStatus(false, "模型加载失败: ${e.message}")
                 // 清理可能创建失败的部分
-                model?.close()
-                model = null
+                releaseModel()
                 return@withContext false
             }
             
@@ -427,8 +437,7 @@ class VoskManager(private val context: Context) {
             if (!modelCreated || model == null) {
                 Log.e(TAG, "Model对象创建失败或为null")
                 callback?.onModelStatus(false, "模型对象无效")
-                model?.close()
-                model = null
+                releaseModel()
                 return@withContext false
             }
             
@@ -442,8 +451,8 @@ class VoskManager(private val context: Context) {
                 }
                 Log.e(TAG, "Model创建后，模型文件验证失败: ${postValidationResult.errorMessage}")
                 callback?.onModelStatus(false, errorMsg)
-                model?.close()
-                model = null
+                releaseModel()
+                VoskModelRegistry.evict(modelDir)
                 // 删除可能损坏的模型目录
                 try {
                     if (modelDir.exists()) {
@@ -466,17 +475,15 @@ class VoskManager(private val context: Context) {
                     throw IllegalStateException("Model对象为null，无法创建Recognizer")
                 }
                 
-                recognizer = Recognizer(validModel, SAMPLE_RATE.toFloat())
-                Log.d(TAG, "Recognizer对象创建成功")
+                recognizer = VoskModelRegistry.obtainRecognizer(validModel)
+                Log.d(TAG, "Recognizer对象就绪")
             } catch (e: UnsatisfiedLinkError) {
                 // 原生库链接错误
                 Log.e(TAG, "创建Recognizer对象失败：原生库链接错误", e)
                 callback?.onModelStatus(false, "识别器初始化失败：原生库错误，可能是模型文件不兼容")
                 // 清理资源
-                model?.close()
-                model = null
-                recognizer?.close()
-                recognizer = null
+                releaseModel()
+                VoskModelRegistry.evict(modelDir)
                 return@withContext false
             } catch (e: Exception) {
                 // 其他异常（包括可能的原生崩溃导致的异常）
@@ -484,10 +491,8 @@ class VoskManager(private val context: Context) {
                 Log.e(TAG, "异常类型: ${e.javaClass.name}, 异常消息: ${e.message}")
                 callback?.onModelStatus(false, "识别器初始化失败: ${e.message ?: "未知错误"}，可能是模型文件不完整")
                 // 清理资源
-                model?.close()
-                model = null
-                recognizer?.close()
-                recognizer = null
+                releaseModel()
+                VoskModelRegistry.evict(modelDir)
                 
                 // 如果Recognizer创建失败，可能是模型文件损坏，建议删除并重新下载
                 Log.w(TAG, "Recognizer创建失败，建议删除模型并重新下载")
@@ -507,10 +512,8 @@ class VoskManager(private val context: Context) {
                 Log.e(TAG, "错误类型: ${e.javaClass.name}, 错误消息: ${e.message}")
                 callback?.onModelStatus(false, "识别器初始化失败：严重错误，请重新下载模型")
                 // 清理资源
-                model?.close()
-                model = null
-                recognizer?.close()
-                recognizer = null
+                releaseModel()
+                VoskModelRegistry.evict(modelDir)
                 
                 // 删除可能损坏的模型
                 try {
@@ -543,386 +546,61 @@ class VoskManager(private val context: Context) {
     private suspend fun downloadModel(): DownloadResult = withContext(Dispatchers.IO) {
         try {
             val modelDir = getModelDirectory()
-            if (!modelDir.exists()) {
-                modelDir.mkdirs()
-            }
-            
-            // 使用OkHttp下载模型
-            val client = okhttp3.OkHttpClient.Builder()
-                .connectTimeout(30, java.util.concurrent.TimeUnit.SECONDS)
-                .readTimeout(300, java.util.concurrent.TimeUnit.SECONDS) // 5分钟超时
-                .build()
-            
-            val request = okhttp3.Request.Builder()
-                .url(currentModelUrl)
-                .build()
-            
-            val response = try {
-                client.newCall(request).execute()
-            } catch (e: java.net.UnknownHostException) {
-                Log.e(TAG, "下载模型失败: 无法解析主机地址", e)
-                handler.post {
-                    callback?.onModelStatus(false, "网络连接失败：无法访问服务器，请检查网络设置")
-                }
-                return@withContext DownloadResult(false, "NETWORK_ERROR", "无法解析主机地址")
-            } catch (e: java.net.SocketTimeoutException) {
-                Log.e(TAG, "下载模型失败: 连接超时", e)
-                handler.post {
-                    callback?.onModelStatus(false, "网络连接超时，请检查网络连接后重试")
-                }
-                return@withContext DownloadResult(false, "NETWORK_ERROR", "连接超时")
-            } catch (e: java.io.IOException) {
-                Log.e(TAG, "下载模型失败: 网络IO错误", e)
-                handler.post {
-                    callback?.onModelStatus(false, "网络连接错误：${e.message ?: "请检查网络连接"}")
-                }
-                return@withContext DownloadResult(false, "NETWORK_ERROR", e.message ?: "网络IO错误")
-            }
-            
-            if (!response.isSuccessful) {
-                Log.e(TAG, "下载模型失败: HTTP ${response.code}")
-                handler.post {
-                    callback?.onModelStatus(false, "下载失败：服务器返回错误 ${response.code}，请稍后重试")
-                }
-                return@withContext DownloadResult(false, "HTTP_ERROR", "HTTP ${response.code}")
-            }
-            
-            val body = response.body ?: run {
-                Log.e(TAG, "下载模型失败: 响应体为空")
-                handler.post {
-                    callback?.onModelStatus(false, "下载失败：服务器响应异常，请稍后重试")
-                }
-                return@withContext DownloadResult(false, "HTTP_ERROR", "响应体为空")
-            }
-            val contentLength = body.contentLength()
-            
-            val zipTotalBytes = if (contentLength > 0) contentLength else 0L
-            Log.d(TAG, "开始下载模型ZIP文件，大小: ${if (zipTotalBytes > 0) zipTotalBytes / 1024 / 1024 else "未知"}MB")
-            
-            // 下载速度跟踪
-            var lastUpdateTime = System.currentTimeMillis()
-            var lastDownloadedBytes = 0L
-            var zipDownloadedBytes = 0L // ZIP文件已下载字节数
-            var extractedBytes = 0L // 解压后的文件总大小
-            val speedUpdateInterval = 500L // 每500ms更新一次速度
-            val progressUpdateInterval = 200L // 每200ms更新一次进度条
-            
-            // 先下载ZIP文件到临时文件
+            // 下载和解压都在临时位置进行，成功后才替换模型目录；中断时保留ZIP和进度日志，下次从断点继续
             val tempZipFile = File(context.cacheDir, "${currentModelName}_temp.zip")
-            var isDownloadingZip = true
+            val expectedSize = getModelSize(getCurrentModelType())
             
-            // 下载ZIP文件
-            body.byteStream().use { inputStream ->
-                tempZipFile.outputStream().use { outputStream ->
-                    val buffer = ByteArray(8192)
-                    var len: Int
-                    
-                    while (inputStream.read(buffer).also { len = it } != -1) {
-                        outputStream.write(buffer, 0, len)
-                        zipDownloadedBytes += len
-                        
-                        // 更新ZIP下载进度
-                        val currentTime = System.currentTimeMillis()
-                        val timeDiff = currentTime - lastUpdateTime
-                        
-                        if (timeDiff >= progressUpdateInterval || zipDownloadedBytes == zipTotalBytes) {
-                            val bytesDiff = zipDownloadedBytes - lastDownloadedBytes
-                            val downloadSpeed = if (timeDiff > 0) {
-                                (bytesDiff * 1000) / timeDiff
-                            } else {
-                                0L
-                            }
-                            
-                            // ZIP下载进度（0-90%）
-                            val zipProgress = if (zipTotalBytes > 0) {
-                                ((zipDownloadedBytes * 90) / zipTotalBytes).toInt().coerceIn(0, 90)
-                            } else {
-                                // 没有总大小，根据预期大小估算
-                                val expectedZipSize = (getModelSize(getCurrentModelType()) * 0.7 * 1024 * 1024).toLong() // ZIP通常比解压后小30%
-                                if (expectedZipSize > 0) {
-                                    ((zipDownloadedBytes * 90) / expectedZipSize).toInt().coerceIn(0, 89)
-                                } else {
-                                    0
-                                }
-                            }
-                            
-                            val downloadedMB = zipDownloadedBytes / 1024.0 / 1024.0
-                            val totalMB = if (zipTotalBytes > 0) {
-                                zipTotalBytes / 1024.0 / 1024.0
-                            } else {
-                                (getModelSize(getCurrentModelType()) * 0.7) // ZIP压缩后大约70%大小
-                            }
-                            
-                            Log.d(TAG, "ZIP下载进度: $zipProgress% (${String.format("%.2f", downloadedMB)}MB / ${String.format("%.2f", totalMB)}MB), 速度: ${downloadSpeed / 1024}KB/s")
-                            
-                            handler.post {
-                                callback?.onDownloadProgress(zipProgress, zipDownloadedBytes, zipTotalBytes, downloadSpeed)
-                                callback?.onModelStatus(false, "正在下载ZIP文件: $zipProgress% (${String.format("%.1f", downloadedMB)}MB / ${String.format("%.1f", totalMB)}MB)")
-                            }
-                            
-                            if (timeDiff >= speedUpdateInterval) {
-                                lastUpdateTime = currentTime
-                                lastDownloadedBytes = zipDownloadedBytes
-                            }
-                        }
+            Log.d(TAG, "开始下载模型: $currentModelUrl")
+            val result = try {
+                modelDownloader.download(
+                    url = currentModelUrl,
+                    zipFile = tempZipFile,
+                    targetDir = modelDir,
+                    stripPrefix = "$currentModelName/"
+                ) { progress ->
+                    // 解压与下载同时进行，进度按ZIP下载量计算，全部完成前最多显示99%
+                    val percent = if (progress.totalBytes > 0) {
+                        (progress.downloadedBytes * 100 / progress.totalBytes).toInt().coerceIn(0, 99)
+                    } else {
+                        0
                     }
-                }
-            }
-            
-            isDownloadingZip = false
-            Log.d(TAG, "ZIP文件下载完成，开始解压...")
-            handler.post {
-                callback?.onModelStatus(false, "ZIP文件下载完成，正在解压...")
-            }
-            
-            // 验证ZIP文件完整性
-            if (!tempZipFile.exists() || tempZipFile.length() == 0L) {
-                val errorMsg = "ZIP文件下载失败或文件为空"
-                Log.e(TAG, errorMsg)
-                handler.post {
-                    callback?.onModelStatus(false, errorMsg)
-                }
-                return@withContext DownloadResult(false, "IO_ERROR", errorMsg)
-            }
-            
-            Log.d(TAG, "ZIP文件大小: ${tempZipFile.length() / 1024 / 1024}MB，开始解压...")
-            
-            // 解压ZIP文件
-            var extractedFileCount = 0
-            var failedFileCount = 0
-            val criticalFiles = mutableSetOf<String>() // 记录关键文件
-            val allZipEntries = mutableListOf<String>() // 记录所有ZIP条目，用于调试
-            val extractedCriticalFiles = mutableSetOf<String>() // 记录已解压的关键文件
-            
-            try {
-                // 首先使用ZipFile扫描所有条目，了解ZIP文件结构
-                java.util.zip.ZipFile(tempZipFile).use { zipFile ->
-                    val entries = zipFile.entries()
-                    while (entries.hasMoreElements()) {
-                        val entry = entries.nextElement()
-                        allZipEntries.add(entry.name)
+                    val downloadedMB = progress.downloadedBytes / 1024.0 / 1024.0
+                    val totalMB = if (progress.totalBytes > 0) {
+                        progress.totalBytes / 1024.0 / 1024.0
+                    } else {
+                        expectedSize * 0.7 // ZIP压缩后大约70%大小
                     }
-                }
-                
-                // 分析ZIP文件结构，确定路径前缀
-                var pathPrefix = ""
-                if (allZipEntries.isNotEmpty()) {
-                    val firstEntry = allZipEntries[0]
-                    if (firstEntry.contains("/")) {
-                        val parts = firstEntry.split("/")
-                        if (parts.isNotEmpty() && parts[0] == currentModelName) {
-                            pathPrefix = "$currentModelName/"
-                            Log.d(TAG, "检测到ZIP文件使用模型名称前缀: $pathPrefix")
-                        } else if (parts.isNotEmpty() && (parts[0] == "conf" || parts[0] == "graph" || parts[0] == "am")) {
-                            pathPrefix = ""
-                            Log.d(TAG, "检测到ZIP文件直接包含模型文件，无前缀")
-                        }
+                    handler.post {
+                        callback?.onDownloadProgress(percent, progress.downloadedBytes, progress.totalBytes.coerceAtLeast(0L), progress.bytesPerSecond)
+                        callback?.onModelStatus(false, "正在下载并解压: $percent% (${String.format("%.1f", downloadedMB)}MB / ${String.format("%.1f", totalMB)}MB)，已解压 ${progress.extractedFiles} 个文件")
                     }
                 }
-                
-                Log.d(TAG, "ZIP文件包含 ${allZipEntries.size} 个条目")
-                Log.d(TAG, "前10个条目: ${allZipEntries.take(10).joinToString(", ")}")
-                
-                // 查找关键文件在ZIP中的实际路径
-                val wordsTxtInZip = allZipEntries.find { 
-                    it.endsWith("graph/words.txt") || (it.endsWith("/words.txt") && it.contains("graph"))
-                }
-                val mfccConfInZip = allZipEntries.find { 
-                    it.endsWith("conf/mfcc.conf") || (it.endsWith("/mfcc.conf") && it.contains("conf"))
+            } catch (e: ModelDownloader.HttpStatusException) {
+                Log.e(TAG, "下载模型失败: HTTP ${e.code}")
+                handler.post {
+                    callback?.onModelStatus(false, "下载失败：服务器返回错误 ${e.code}，请稍后重试")
                 }
-                
-                Log.d(TAG, "ZIP中的graph/words.txt路径: ${wordsTxtInZip ?: "未找到"}")
-                Log.d(TAG, "ZIP中的conf/mfcc.conf路径: ${mfccConfInZip ?: "未找到"}")
-                
-                // 现在解压文件
-                tempZipFile.inputStream().use { inputStream ->
-                    ZipInputStream(inputStream).use { zipInputStream ->
-                        var entry = zipInputStream.nextEntry
-                        var lastExtractedUpdateTime = System.currentTimeMillis()
-                        var lastExtractedBytes = 0L
-                        
-                        while (entry != null) {
-                            if (!entry.isDirectory) {
-                                val entryName = entry.name
-                                
-                                // 处理路径：移除模型名称前缀（如果存在）
-                                val relativePath = when {
-                                    entryName.startsWith("$currentModelName/") -> {
-                                        entryName.substring(currentModelName.length + 1)
-                                    }
-                                    entryName.startsWith(pathPrefix) && pathPrefix.isNotEmpty() -> {
-                                        entryName.substring(pathPrefix.length)
-                                    }
-                                    else -> {
-                                        entryName
-                                    }
-                                }
-                                
-                                // 记录关键文件
-                                val isCritical = relativePath == "conf/mfcc.conf" || 
-                                                 relativePath == "graph/words.txt" ||
-                                                 relativePath.startsWith("conf/") ||
-                                                 relativePath.startsWith("graph/") ||
-                                                 relativePath.startsWith("am/")
-                                
-                                if (isCritical) {
-                                    criticalFiles.add(relativePath)
-                                    Log.d(TAG, "发现关键文件: ZIP路径=$entryName, 相对路径=$relativePath")
-                                }
-                                
-                                val file = File(modelDir, relativePath)
-                                val parentDir = file.parentFile
-                                if (parentDir != null && !parentDir.exists()) {
-                                    val created = parentDir.mkdirs()
-                                    if (!created && !parentDir.exists()) {
-                                        Log.e(TAG, "无法创建目录: ${parentDir.absolutePath}")
-                                    }
-                                }
-                                
-                                try {
-                                    file.outputStream().use { outputStream ->
-                                        val buffer = ByteArray(8192)
-                                        var len: Int
-                                        var fileBytes = 0L
-                                        
-                                        while (zipInputStream.read(buffer).also { len = it } != -1) {
-                                            outputStream.write(buffer, 0, len)
-                                            extractedBytes += len
-                                            fileBytes += len
-                                        }
-                                        
-                                        // 验证文件大小（如果ZIP条目有大小信息）
-                                        if (entry.size > 0 && fileBytes != entry.size) {
-                                            Log.w(TAG, "文件大小不匹配: $relativePath, 期望: ${entry.size}, 实际: $fileBytes")
-                                            failedFileCount++
-                                        } else {
-                                            extractedFileCount++
-                                        }
-                                        
-                                        // 记录关键文件已解压
-                                        if (isCritical && fileBytes > 0) {
-                                            extractedCriticalFiles.add(relativePath)
-                                            Log.d(TAG, "关键文件已解压: $relativePath, 大小: $fileBytes 字节")
-                                        }
-                                        
-                                        // 验证关键文件不为空
-                                        if (fileBytes == 0L && (relativePath == "conf/mfcc.conf" || relativePath == "graph/words.txt")) {
-                                            Log.e(TAG, "关键文件为空: $relativePath")
-                                            failedFileCount++
-                                        }
-                                        
-                                        // 验证文件是否真的存在
-                                        if (isCritical && !file.exists()) {
-                                            Log.e(TAG, "关键文件解压后不存在: ${file.absolutePath}")
-                                            failedFileCount++
-                                        }
-                                    }
-                                } catch (e: Exception) {
-                                    Log.e(TAG, "解压文件失败: $relativePath", e)
-                                    failedFileCount++
-                                }
-                                
-                                // 更新解压进度（90-100%）
-                                val currentTime = System.currentTimeMillis()
-                                val timeDiff = currentTime - lastExtractedUpdateTime
-                                
-                                if (timeDiff >= progressUpdateInterval) {
-                                    val extractedMB = extractedBytes / 1024.0 / 1024.0
-                                    val expectedSize = getModelSize(getCurrentModelType())
-                                    
-                                    // 解压进度从90%到100%
-                                    val extractProgress = if (expectedSize > 0) {
-                                        val progress = 90 + ((extractedMB / expectedSize) * 10).toInt().coerceIn(0, 10)
-                                        progress.coerceIn(90, 100)
-                                    } else {
-                                        95 // 默认显示95%
-                                    }
-                                    
-                                    Log.d(TAG, "解压进度: $extractProgress% (已解压: ${String.format("%.2f", extractedMB)}MB, 文件数: $extractedFileCount)")
-                                    
-                                    handler.post {
-                                        // 使用解压后的实际大小作为totalBytes
-                                        val totalExtractedBytes = (expectedSize * 1024 * 1024).toLong()
-                                        callback?.onDownloadProgress(extractProgress, extractedBytes, totalExtractedBytes, 0L)
-                                        callback?.onModelStatus(false, "正在解压模型: $extractProgress% (${String.format("%.1f", extractedMB)}MB / ${expectedSize}MB)")
-                                    }
-                                    
-                                    lastExtractedUpdateTime = currentTime
-                                }
-                            }
-                            
-                            zipInputStream.closeEntry()
-                            entry = zipInputStream.nextEntry
-                        }
-                    }
+                return@withContext DownloadResult(false, "HTTP_ERROR", "HTTP ${e.code}")
+            } catch (e: ModelDownloader.ChecksumMismatchException) {
+                Log.e(TAG, "模型文件校验失败", e)
+                handler.post {
+                    callback?.onModelStatus(false, "模型文件校验失败，请重新下载")
                 }
-            } catch (e: Exception) {
+                return@withContext DownloadResult(false, "VALIDATION_ERROR", e.message)
+            } catch (e: java.util.zip.ZipException) {
                 Log.e(TAG, "解压ZIP文件失败", e)
                 handler.post {
                     callback?.onModelStatus(false, "解压失败: ${e.message ?: "未知错误"}，请重新下载")
                 }
-                // 清理不完整的模型目录
-                try {
-                    if (modelDir.exists()) {
-                        modelDir.deleteRecursively()
-                    }
-                } catch (cleanupException: Exception) {
-                    Log.e(TAG, "清理模型目录失败", cleanupException)
-                }
                 return@withContext DownloadResult(false, "EXTRACTION_ERROR", e.message ?: "解压失败")
             }
             
-            Log.d(TAG, "解压完成: 成功 $extractedFileCount 个文件，失败 $failedFileCount 个文件")
-            Log.d(TAG, "关键文件统计: 期望 ${criticalFiles.size} 个，已解压 ${extractedCriticalFiles.size} 个")
-            Log.d(TAG, "期望的关键文件: ${criticalFiles.joinToString(", ")}")
-            Log.d(TAG, "已解压的关键文件: ${extractedCriticalFiles.joinToString(", ")}")
-            
-            // 检查关键文件是否都解压成功
-            val missingCriticalFiles = criticalFiles.filter { it !in extractedCriticalFiles }
-            if (missingCriticalFiles.isNotEmpty()) {
-                Log.e(TAG, "关键文件未解压: ${missingCriticalFiles.joinToString(", ")}")
-            }
-            
-            // 验证关键文件是否真的存在于文件系统中
-            val missingFiles = mutableListOf<String>()
-            for (criticalFile in criticalFiles) {
-                val file = File(modelDir, criticalFile)
-                if (!file.exists() || file.length() == 0L) {
-                    missingFiles.add(criticalFile)
-                    Log.e(TAG, "关键文件缺失或为空: $criticalFile, 路径: ${file.absolutePath}")
-                }
-            }
-            
-            if (missingFiles.isNotEmpty()) {
-                Log.e(TAG, "解压后关键文件缺失: ${missingFiles.joinToString(", ")}")
-                Log.e(TAG, "模型目录内容: ${modelDir.listFiles()?.joinToString { it.name }}")
-                if (File(modelDir, "graph").exists()) {
-                    Log.e(TAG, "graph目录内容: ${File(modelDir, "graph").listFiles()?.joinToString { it.name }}")
-                }
-            }
-            
-            if (failedFileCount > 0 || missingFiles.isNotEmpty()) {
-                Log.w(TAG, "解压过程中有 $failedFileCount 个文件失败，${missingFiles.size} 个关键文件缺失，可能影响模型完整性")
-            }
-            
-            // 删除临时ZIP文件
-            try {
-                if (tempZipFile.exists()) {
-                    tempZipFile.delete()
-                }
-            } catch (e: Exception) {
-                Log.w(TAG, "删除临时ZIP文件失败", e)
-            }
-            
-            // 解压完成，显示100%进度
-            val expectedSize = getModelSize(getCurrentModelType())
-            val totalExtractedBytes = (expectedSize * 1024 * 1024).toLong()
-            val extractedMB = extractedBytes / 1024.0 / 1024.0
-            
-            Log.d(TAG, "模型解压完成，实际大小: ${String.format("%.2f", extractedMB)}MB，预期大小: ${expectedSize}MB")
-            
+            Log.d(TAG, "模型下载完成: ZIP ${result.zipBytes / 1024 / 1024}MB（续传 ${result.resumedBytes / 1024 / 1024}MB），" +
+                "解压 ${result.extractedFiles} 个文件共 ${result.extractedBytes / 1024 / 1024}MB，SHA-256: ${result.sha256}")
+            // 目录已被替换，之前按这个路径加载的模型不能再复用
+            VoskModelRegistry.evict(modelDir)
             handler.post {
-                callback?.onDownloadProgress(100, extractedBytes, totalExtractedBytes, 0L)
+                callback?.onDownloadProgress(100, result.extractedBytes, result.extractedBytes, 0L)
                 callback?.onModelStatus(false, "解压完成，正在验证文件...")
             }
             
@@ -964,47 +642,17 @@ class VoskManager(private val context: Context) {
             handler.post {
                 callback?.onModelStatus(false, "网络连接失败：无法访问服务器，请检查网络设置")
             }
-            // 清理可能的部分文件
-            try {
-                val modelDir = getModelDirectory()
-                if (modelDir.exists()) {
-                    modelDir.deleteRecursively()
-                    Log.d(TAG, "已清理下载失败的模型目录")
-                }
-            } catch (cleanupException: Exception) {
-                Log.e(TAG, "清理模型目录失败", cleanupException)
-            }
             return@withContext DownloadResult(false, "NETWORK_ERROR", "无法解析主机地址")
         } catch (e: java.net.SocketTimeoutException) {
             Log.e(TAG, "下载模型失败: 连接超时", e)
             handler.post {
                 callback?.onModelStatus(false, "网络连接超时，请检查网络连接后重试")
             }
-            // 清理可能的部分文件
-            try {
-                val modelDir = getModelDirectory()
-                if (modelDir.exists()) {
-                    modelDir.deleteRecursively()
-                    Log.d(TAG, "已清理下载失败的模型目录")
-                }
-            } catch (cleanupException: Exception) {
-                Log.e(TAG, "清理模型目录失败", cleanupException)
-            }
             return@withContext DownloadResult(false, "NETWORK_ERROR", "连接超时")
         } catch (e: java.io.IOException) {
             Log.e(TAG, "下载模型失败: IO错误", e)
             handler.post {
-                callback?.onModelStatus(false, "下载失败：${e.message ?: "IO错误"}，请检查网络连接后重试")
-            }
-            // 清理可能的部分文件
-            try {
-                val modelDir = getModelDirectory()
-                if (modelDir.exists()) {
-                    modelDir.deleteRecursively()
-                    Log.d(TAG, "已清理下载失败的模型目录")
-                }
-            } catch (cleanupException: Exception) {
-                Log.e(TAG, "清理模型目录失败", cleanupException)
+                callback?.onModelStatus(false, "下载失败：${e.message ?: "IO错误"}，请检查网络连接后重试，已下载的部分会继续使用")
             }
             return@withContext DownloadResult(false, "IO_ERROR", e.message ?: "IO错误")
         } catch (e: Exception) {
@@ -1012,16 +660,6 @@ class VoskManager(private val context: Context) {
             handler.post {
                 callback?.onModelStatus(false, "下载失败：${e.message ?: "未知错误"}，请稍后重试")
             }
-            // 如果下载失败，尝试清理可能的部分文件
-            try {
-                val modelDir = getModelDirectory()
-                if (modelDir.exists()) {
-                    modelDir.deleteRecursively()
-                    Log.d(TAG, "已清理下载失败的模型目录")
-                }
-            } catch (cleanupException: Exception) {
-                Log.e(TAG, "清理模型目录失败", cleanupException)
-            }
             return@withContext DownloadResult(false, "UNKNOWN_ERROR", e.message ?: "未知错误")
         }
     }
@@ -1040,6 +678,13 @@ class VoskManager(private val context: Context) {
             callback?.onError("模型未初始化，请先调用initializeModel()")
             return
         }
+
+        // 上一次的管线还在处理剩余数据，识别器不能同时给两个管线用
+        if (synchronized(captureLock) { capturePipeline != null }) {
+            Log.w(TAG, "上一次识别尚未结束")
+            callback?.onError("上一次识别正在结束，请稍后再试")
+            return
+        }
         
         // 检查录音权限
         val hasPermission = ContextCompat.checkSelfPermission(
@@ -1140,10 +785,7 @@ class VoskManager(private val context: Context) {
             
             Log.d(TAG, "开始Vosk语音识别，录制状态正常")
             
-            // 在协程中处理音频数据
-            recognitionJob = scope.launch {
-                processAudioData(bufferSize)
-            }
+            startCapture(audioRecord!!)
             
         } catch (e: SecurityException) {
             Log.e(TAG, "启动识别失败：权限问题", e)
@@ -1169,88 +811,135 @@ class VoskManager(private val context: Context) {
     }
     
     /**
-     * 处理音频数据
+     * 启动录音管线：录音线程只把数据写入环形缓冲区，解码线程过滤静音后分批送入识别器，
+     * 识别慢时不会拖住录音，静音也不再按完整代价解码
      */
-    private suspend fun processAudioData(bufferSize: Int) = withContext(Dispatchers.IO) {
-        val buffer = ByteArray(bufferSize)
-        var lastPartialResultTime = System.currentTimeMillis()
-        
-        try {
-            while (isRecognizing && audioRecord != null) {
-                val readResult = audioRecord?.read(buffer, 0, buffer.size) ?: -1
-                
-                if (readResult < 0) {
-                    val errorMsg = when (readResult) {
-                        AudioRecord.ERROR_INVALID_OPERATION -> "音频录制操作无效"
-                        AudioRecord.ERROR_BAD_VALUE -> "音频录制参数错误"
-                        else -> "读取音频数据失败，错误码: $readResult"
-                    }
-                    Log.e(TAG, errorMsg)
-                    handler.post {
-                        callback?.onError(errorMsg)
-                    }
-                    break
-                }
-                
-                if (readResult == 0) {
-                    // 读取到0字节，可能是缓冲区问题，继续尝试
-                    delay(50)
-                    continue
-                }
-                
-                // 将音频数据传递给识别器
-                if (recognizer?.acceptWaveForm(buffer, readResult) == true) {
-                    // 获取最终结果
-                    val result = recognizer?.result
-                    if (result != null && result.isNotEmpty()) {
-                        handler.post {
-                            callback?.onFinalResult(result)
-                        }
-                    }
-                } else {
-                    // 获取部分结果（实时流式输出）
-                    val partialResult = recognizer?.partialResult
-                    val currentTime = System.currentTimeMillis()
-                    
-                    // 限制部分结果回调频率，避免过于频繁
-                    if (currentTime - lastPartialResultTime >= PARTIAL_RESULT_INTERVAL_MS) {
-                        if (partialResult != null && partialResult.isNotEmpty()) {
+    private fun startCapture(record: AudioRecord) {
+        val rec = recognizer ?: return
+        val startTime = System.currentTimeMillis()
+        // 第一个部分结果不受频率限制，尽快给出反馈
+        var lastPartialResultTime = 0L
+        var failed = false
+        lateinit var pipeline: AudioCapturePipeline
+        pipeline = AudioCapturePipeline(
+            source = AudioCapturePipeline.AudioSource { buffer, offset, length ->
+                record.read(buffer, offset, length)
+            },
+            decoder = decoder@{ pcm, length ->
+                // 出错后丢弃剩余数据
+                if (failed) return@decoder
+                try {
+                    // 将音频数据传递给识别器
+                    if (rec.acceptWaveForm(pcm, length)) {
+                        // 获取最终结果
+                        val result = rec.result
+                        if (result != null && result.isNotEmpty()) {
                             handler.post {
-                                callback?.onPartialResult(partialResult)
+                                callback?.onFinalResult(result)
+                            }
+                        }
+                    } else {
+                        val currentTime = System.currentTimeMillis()
+                        // 限制部分结果回调频率，避免过于频繁
+                        if (currentTime - lastPartialResultTime >= PARTIAL_RESULT_INTERVAL_MS) {
+                            // 获取部分结果（实时流式输出）
+                            val partialResult = rec.partialResult
+                            if (partialResult != null && partialResult.isNotEmpty()) {
+                                if (lastPartialResultTime == 0L) {
+                                    Log.d(TAG, "首个部分结果耗时: ${currentTime - startTime}ms")
+                                }
+                                handler.post {
+                                    callback?.onPartialResult(partialResult)
+                                }
+                                lastPartialResultTime = currentTime
                             }
-                            lastPartialResultTime = currentTime
                         }
                     }
+                } catch (e: Exception) {
+                    Log.e(TAG, "处理音频数据失败", e)
+                    failed = true
+                    handler.post {
+                        callback?.onError("识别过程出错: ${e.message}")
+                    }
+                    pipeline.stop()
                 }
-                
-                // 避免CPU占用过高
-                delay(10)
+            },
+            threadSetup = { Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO) },
+            onEnd = { code -> onCaptureEnd(pipeline, record, rec, code, failed) }
+        )
+        synchronized(captureLock) {
+            capturePipeline = pipeline
+        }
+        pipeline.start()
+    }
+
+    /**
+     * 录音管线结束，在解码线程中调用
+     *
+     * 此时录音线程已经退出、识别器不再被送入数据，在这里取最终结果、释放录音，
+     * 再归还管线运行期间被要求释放的识别器。
+     */
+    private fun onCaptureEnd(
+        pipeline: AudioCapturePipeline,
+        record: AudioRecord,
+        rec: Recognizer,
+        code: Int,
+        failed: Boolean
+    ) {
+        val stats = pipeline.stats()
+        val bytesPerMs = SAMPLE_RATE * 2 / 1000
+        Log.d(TAG, "录音管线结束: 录制 ${stats.capturedBytes / bytesPerMs}ms, 识别 ${stats.decodedBytes / bytesPerMs}ms, " +
+            "静音跳过 ${stats.skippedBytes / bytesPerMs}ms, ${stats.batches} 批, 溢出 ${stats.overflowBytes} 字节/${stats.overflowCount} 次, " +
+            "欠载 ${stats.underrunCount} 次, 识别耗时 ${stats.decodeNanos / 1_000_000}ms")
+
+        if (code < 0) {
+            val errorMsg = when (code) {
+                AudioRecord.ERROR_INVALID_OPERATION -> "音频录制操作无效"
+                AudioRecord.ERROR_BAD_VALUE -> "音频录制参数错误"
+                else -> "读取音频数据失败，错误码: $code"
             }
-            
-            // 识别结束，获取最终结果
-            if (isRecognizing) {
-                val finalResult = recognizer?.finalResult
+            Log.e(TAG, errorMsg)
+            handler.post {
+                callback?.onError(errorMsg)
+            }
+        }
+
+        // 获取最终结果
+        if (!failed) {
+            try {
+                val finalResult = rec.finalResult
                 if (finalResult != null) {
                     handler.post {
                         callback?.onFinalResult(finalResult)
                     }
-                } else {
-                    // 无最终结果，无需处理
                 }
-            } else {
-                // 识别已停止，无需处理
+            } catch (e: Exception) {
+                Log.e(TAG, "获取最终结果失败", e)
             }
-            
+        }
+
+        try {
+            if (record.recordingState == AudioRecord.RECORDSTATE_RECORDING) record.stop()
+            record.release()
         } catch (e: Exception) {
-            Log.e(TAG, "处理音频数据失败", e)
-            handler.post {
-                callback?.onError("识别过程出错: ${e.message}")
-            }
+            Log.e(TAG, "释放AudioRecord失败", e)
+        }
+        // 录音异常结束时没有经过 stopRecognition
+        isRecognizing = false
+        handler.post {
+            if (audioRecord === record) audioRecord = null
         }
+
+        val releases = synchronized(captureLock) {
+            if (capturePipeline === pipeline) capturePipeline = null
+            pendingReleases.toList().also { pendingReleases.clear() }
+        }
+        releases.forEach { (heldModel, heldRecognizer) -> recycle(heldModel, heldRecognizer) }
+        Log.d(TAG, "Vosk识别已停止")
     }
     
     /**
-     * 停止语音识别
+     * 停止语音识别，不等待录音管线结束；最终结果由解码线程在管线结束时回调
      */
     fun stopRecognition() {
         if (!isRecognizing) {
@@ -1260,27 +949,17 @@ class VoskManager(private val context: Context) {
         isRecognizing = false
         
         try {
-            recognitionJob?.cancel()
-            recognitionJob = null
+            val pipeline = synchronized(captureLock) { capturePipeline }
+            pipeline?.stop()
             
+            // 让阻塞在读取中的录音线程返回，release 在管线结束时进行
             audioRecord?.apply {
                 if (recordingState == AudioRecord.RECORDSTATE_RECORDING) {
                     stop()
                 }
-                release()
+                if (pipeline == null) release()
             }
             audioRecord = null
-            
-            // 获取最终结果
-            val finalResult = recognizer?.finalResult
-            if (finalResult != null) {
-                handler.post {
-                    callback?.onFinalResult(finalResult)
-                }
-            }
-            
-            Log.d(TAG, "Vosk识别已停止")
-            
         } catch (e: Exception) {
             Log.e(TAG, "停止识别失败", e)
         }
@@ -1292,17 +971,43 @@ class VoskManager(private val context: Context) {
     fun release() {
         stopRecognition()
         
-        recognizer?.close()
-        recognizer = null
-        
-        model?.close()
-        model = null
+        releaseModel()
         
         scope.cancel()
         
         Log.d(TAG, "VoskManager资源已释放")
     }
     
+    /**
+     * 把识别器归还到池中，并释放对共享模型的引用
+     */
+    private fun releaseModel() {
+        val currentModel = model
+        val currentRecognizer = recognizer
+        recognizer = null
+        model = null
+        heldModelDir = null
+        if (currentRecognizer == null) {
+            if (currentModel != null) VoskModelRegistry.release(currentModel)
+            return
+        }
+        // 管线还在运行时解码线程可能正在 acceptWaveForm，等管线结束再归还
+        val deferred = synchronized(captureLock) {
+            if (capturePipeline != null) pendingReleases.add(currentModel to currentRecognizer)
+            capturePipeline != null
+        }
+        if (!deferred) recycle(currentModel, currentRecognizer)
+    }
+
+    private fun recycle(heldModel: Model?, heldRecognizer: Recognizer) {
+        if (heldModel != null) {
+            VoskModelRegistry.recycleRecognizer(heldModel, heldRecognizer)
+            VoskModelRegistry.release(heldModel)
+        } else {
+            heldRecognizer.close()
+        }
+    }
+    
     /**
      * 检查是否正在识别
      */
@@ -1419,13 +1124,11 @@ class VoskManager(private val context: Context) {
         
         val modelDir = File(context.filesDir, "vosk_models/$modelName")
         
-        // 如果正在使用该模型，先释放
-        if (currentModelName == modelName && model != null) {
-            model?.close()
-            model = null
-            recognizer?.close()
-            recognizer = null
+        // 如果正在使用该模型，先释放；其他实例仍在使用时由注册表在最后一个引用释放后关闭
+        if (heldModelDir == modelDir) {
+            releaseModel()
         }
+        VoskModelRegistry.evict(modelDir)
         
         // 删除模型目录
         if (modelDir.exists()) {
@@ -0,0 +1,260 @@
+package com.example.aifloatingball.voice
+
+import android.content.ComponentCallbacks2
+import android.util.Log
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.launch
+import org.vosk.Model
+import org.vosk.Recognizer
+import java.io.File
+import java.util.IdentityHashMap
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ExecutionException
+
+/**
+ * 进程内共享的Vosk模型注册表
+ *
+ * 同一个模型目录只加载一次，按引用计数共享给所有 [VoskManager]；引用归零后模型保持加载（空闲），
+ * 下次进入语音输入时不需要重新加载几百MB的模型，只在内存紧张时（[onTrimMemory]）释放。
+ *
+ * 每个模型还维护一个小的 [Recognizer] 池：模型被取用后会在后台预先创建一个识别器，
+ * 用完的识别器 reset 后放回池中，点击麦克风到开始识别不再需要等待识别器创建。
+ */
+object VoskModelRegistry {
+
+    private const val TAG = "VoskModelRegistry"
+    private const val SAMPLE_RATE = 16000f
+    private const val MAX_POOLED_RECOGNIZERS = 2
+
+    private class Entry(val key: String, val model: Model) {
+        var refCount = 0
+        // 删除模型文件时标记，最后一个引用释放后立即关闭
+        var evicted = false
+        var warming = false
+        // 预热中被关闭时，等预热结束再关闭模型
+        var closed = false
+        val idleRecognizers = ArrayDeque<Recognizer>()
+    }
+
+    // 正在加载的模型：并发取用同一目录的调用方共享一次加载
+    private class PendingLoad {
+        val future = CompletableFuture<Entry>()
+        // 等待这次加载的调用方数量，加载完成时一并计入引用
+        var waiters = 0
+        var evicted = false
+    }
+
+    // 按目录查找可复用的模型；被淘汰但仍在使用的模型只留在 liveModels 中
+    private val entries = HashMap<String, Entry>()
+    private val liveModels = IdentityHashMap<Model, Entry>()
+    private val loading = HashMap<String, PendingLoad>()
+    private val warmScope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+
+    /**
+     * 取得模型并增加引用计数；模型未加载时在当前线程加载，加载失败时抛出异常
+     *
+     * 加载耗时数秒，在锁外进行，不会阻塞主线程上的 [release]、[onTrimMemory]；
+     * 同一目录正在被其他线程加载时等待那次加载的结果。
+     */
+    fun acquire(modelDir: File): Model {
+        val key = modelDir.absolutePath
+        var owner = false
+        val entryOrLoad: Any = synchronized(this) {
+            val existing = entries[key]?.takeIf { !it.evicted }
+            if (existing != null) {
+                Log.d(TAG, "复用已加载的模型: ${modelDir.name}")
+                existing.refCount++
+                existing
+            } else {
+                loading.getOrPut(key) {
+                    owner = true
+                    PendingLoad()
+                }.also { it.waiters++ }
+            }
+        }
+
+        val entry = when (entryOrLoad) {
+            is Entry -> entryOrLoad
+            else -> {
+                val pending = entryOrLoad as PendingLoad
+                if (owner) load(key, pending)
+                try {
+                    pending.future.get()
+                } catch (e: ExecutionException) {
+                    throw e.cause ?: e
+                }
+            }
+        }
+        warmUp(entry)
+        return entry.model
+    }
+
+    /**
+     * 在锁外加载模型，完成后在锁内发布并计入所有等待者的引用
+     */
+    private fun load(key: String, pending: PendingLoad) {
+        val start = System.currentTimeMillis()
+        val model = try {
+            Model(key)
+        } catch (e: Throwable) {
+            synchronized(this) {
+                if (loading[key] === pending) loading.remove(key)
+            }
+            pending.future.completeExceptionally(e)
+            return
+        }
+        val created = Entry(key, model)
+        synchronized(this) {
+            if (loading[key] === pending) loading.remove(key)
+            created.refCount = pending.waiters
+            liveModels[model] = created
+            if (pending.evicted) {
+                // 加载期间模型被删除：只给这次的调用方使用，不再复用
+                created.evicted = true
+            } else {
+                entries[key] = created
+            }
+        }
+        Log.d(TAG, "模型加载完成: ${File(key).name}, 耗时 ${System.currentTimeMillis() - start}ms")
+        pending.future.complete(created)
+    }
+
+    /**
+     * 释放一个引用；引用归零后模型保持空闲，直到内存紧张或被删除
+     */
+    fun release(model: Model) {
+        synchronized(this) {
+            val entry = liveModels[model] ?: return
+            entry.refCount = (entry.refCount - 1).coerceAtLeast(0)
+            if (entry.refCount == 0 && entry.evicted) {
+                close(entry)
+            }
+        }
+    }
+
+    /**
+     * 从池中取一个识别器，池为空时立即创建；调用前必须已经 [acquire]
+     */
+    fun obtainRecognizer(model: Model): Recognizer {
+        synchronized(this) {
+            val entry = liveModels[model] ?: throw IllegalStateException("模型未通过注册表加载")
+            entry.idleRecognizers.removeFirstOrNull()?.let { pooled ->
+                warmUp(entry)
+                return pooled
+            }
+        }
+        Log.d(TAG, "识别器池为空，直接创建")
+        return Recognizer(model, SAMPLE_RATE)
+    }
+
+    /**
+     * 归还识别器：重置后放回池中，池已满或模型已释放时关闭
+     */
+    fun recycleRecognizer(model: Model, recognizer: Recognizer) {
+        synchronized(this) {
+            val entry = liveModels[model]
+            if (entry != null && !entry.evicted && entry.idleRecognizers.size < MAX_POOLED_RECOGNIZERS) {
+                try {
+                    recognizer.reset()
+                    entry.idleRecognizers.addLast(recognizer)
+                    return
+                } catch (e: Exception) {
+                    Log.w(TAG, "重置识别器失败", e)
+                }
+            }
+        }
+        closeQuietly(recognizer)
+    }
+
+    /**
+     * 模型文件被删除或损坏：不再复用，空闲时立即关闭，仍在使用时在最后一个引用释放后关闭
+     */
+    fun evict(modelDir: File) {
+        val key = modelDir.absolutePath
+        synchronized(this) {
+            loading.remove(key)?.evicted = true
+            val entry = entries.remove(key) ?: return
+            entry.evicted = true
+            entry.idleRecognizers.forEach { closeQuietly(it) }
+            entry.idleRecognizers.clear()
+            if (entry.refCount == 0) close(entry)
+        }
+    }
+
+    /**
+     * 内存紧张时释放空闲的模型；情况严重时连正在使用的模型的识别器池也清空
+     */
+    fun onTrimMemory(level: Int) {
+        if (level < ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) return
+        val critical = level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL ||
+            level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+        synchronized(this) {
+            for (entry in liveModels.values.toList()) {
+                if (entry.refCount == 0) {
+                    Log.d(TAG, "内存紧张(level=$level)，释放空闲模型: ${File(entry.key).name}")
+                    close(entry)
+                } else if (critical) {
+                    entry.idleRecognizers.forEach { closeQuietly(it) }
+                    entry.idleRecognizers.clear()
+                }
+            }
+        }
+    }
+
+    /**
+     * 后台补充一个预热的识别器
+     */
+    private fun warmUp(entry: Entry) {
+        synchronized(this) {
+            if (entry.warming || entry.evicted || entry.idleRecognizers.isNotEmpty()) return
+            entry.warming = true
+        }
+        warmScope.launch {
+            val recognizer = try {
+                Recognizer(entry.model, SAMPLE_RATE)
+            } catch (e: Exception) {
+                Log.w(TAG, "预热识别器失败", e)
+                null
+            }
+            synchronized(this@VoskModelRegistry) {
+                entry.warming = false
+                if (recognizer != null) {
+                    if (!entry.closed && !entry.evicted) {
+                        entry.idleRecognizers.addLast(recognizer)
+                    } else {
+                        closeQuietly(recognizer)
+                    }
+                }
+                if (entry.closed) closeModel(entry)
+            }
+        }
+    }
+
+    private fun close(entry: Entry) {
+        entry.idleRecognizers.forEach { closeQuietly(it) }
+        entry.idleRecognizers.clear()
+        if (entries[entry.key] === entry) entries.remove(entry.key)
+        liveModels.remove(entry.model)
+        entry.closed = true
+        // 预热线程正在用这个模型创建识别器，由它结束后关闭
+        if (!entry.warming) closeModel(entry)
+    }
+
+    private fun closeModel(entry: Entry) {
+        try {
+            entry.model.close()
+        } catch (e: Exception) {
+            Log.w(TAG, "关闭模型失败", e)
+        }
+    }
+
+    private fun closeQuietly(recognizer: Recognizer) {
+        try {
+            recognizer.close()
+        } catch (e: Exception) {
+            Log.w(TAG, "关闭识别器失败", e)
+        }
+    }
+}
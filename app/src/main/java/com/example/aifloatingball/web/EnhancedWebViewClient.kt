@@ -6,6 +6,7 @@ import android.util.Log
 import android.webkit.*
 import android.widget.Toast
 import com.example.aifloatingball.adblock.AdBlockFilter
+import com.example.aifloatingball.adblock.CosmeticFilterManager
 import com.example.aifloatingball.reader.NovelReaderModeManager
 import java.io.ByteArrayInputStream
 
@@ -34,6 +35,10 @@ class EnhancedWebViewClient(
     }
     
     private var blockedRequestsCount = 0
+
+    // 当前页面URL，拦截线程上不能调用 WebView.getUrl()，在 onPageStarted 中记录
+    @Volatile
+    private var currentPageUrl: String? = null
     
     override fun shouldInterceptRequest(
         view: WebView,
@@ -42,7 +47,9 @@ class EnhancedWebViewClient(
         val url = request.url.toString()
         
         // 检查是否应该拦截这个请求
-        if (adBlockFilter.shouldBlock(url)) {
+        val headers = request.requestHeaders
+        val documentUrl = if (request.isForMainFrame) url else headers?.get("Referer") ?: currentPageUrl
+        if (adBlockFilter.shouldBlock(url, documentUrl, headers?.get("Accept"), request.isForMainFrame)) {
             blockedRequestsCount++
             Log.d(TAG, "Blocked request: $url (Total blocked: $blockedRequestsCount)")
             
@@ -61,6 +68,8 @@ class EnhancedWebViewClient(
         super.onPageStarted(view, url, favicon)
         
         Log.d(TAG, "Page started loading: $url")
+        currentPageUrl = url
+        view?.let { CosmeticFilterManager.getInstance(it.context).onPageStarted(it, url) }
         
         // 重置拦截计数
         blockedRequestsCount = 0
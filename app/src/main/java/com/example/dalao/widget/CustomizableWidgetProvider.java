@@ -59,14 +59,35 @@ public class CustomizableWidgetProvider extends AppWidgetProvider {
 
         // 根据尺寸选择布局
         int layoutId = getLayoutForSize(config.size);
-        RemoteViews views = new RemoteViews(context.getPackageName(), layoutId);
 
-        // 根据模板类型设置内容
-        setupWidgetContent(context, views, config, appWidgetId);
+        // 配置没有变化时跳过，点击事件依赖显示模式，悬浮模式下还带着剪贴板内容
+        WidgetRenderPipeline pipeline = WidgetRenderPipeline.getInstance(context);
+        String displayMode = getCurrentDisplayMode(context);
+        String clipboardText = "simple_mode".equals(displayMode) ? null : ClipboardHelper.getClipboardText(context);
+        String hash = WidgetRenderPipeline.configHash(config, layoutId, displayMode, clipboardText);
+        if (!pipeline.begin(appWidgetId, hash)) {
+            Log.d(TAG, "小组件配置未变化，跳过更新: " + appWidgetId);
+            return;
+        }
 
-        // 更新小组件
-        appWidgetManager.updateAppWidget(appWidgetId, views);
-        Log.d(TAG, "小组件更新完成: " + appWidgetId);
+        // 中途失败时必须清除进行中的记录，否则同样的配置之后都会被当成"正在渲染"而跳过
+        boolean submitted = false;
+        try {
+            RemoteViews views = new RemoteViews(context.getPackageName(), layoutId);
+
+            // 根据模板类型设置内容，需要解码或下载的图标先显示占位图标
+            java.util.List<WidgetRenderPipeline.IconSlot> pendingIcons = new java.util.ArrayList<>();
+            setupWidgetContent(context, views, config, appWidgetId, pendingIcons);
+
+            // 更新小组件，其余图标在后台解析完后一次性部分更新
+            pipeline.render(appWidgetManager, appWidgetId, layoutId, hash, views, pendingIcons);
+            submitted = true;
+            Log.d(TAG, "小组件更新完成: " + appWidgetId + "，待解析图标: " + pendingIcons.size());
+        } finally {
+            if (!submitted) {
+                pipeline.abort(appWidgetId, hash);
+            }
+        }
     }
     
     private static WidgetConfig getWidgetConfig(Context context, int appWidgetId) {
@@ -114,7 +135,8 @@ public class CustomizableWidgetProvider extends AppWidgetProvider {
         }
     }
 
-    private static void setupWidgetContent(Context context, RemoteViews views, WidgetConfig config, int appWidgetId) {
+    private static void setupWidgetContent(Context context, RemoteViews views, WidgetConfig config, int appWidgetId,
+                                           java.util.List<WidgetRenderPipeline.IconSlot> pendingIcons) {
         if (config.size.isSearchOnly()) {
             // 搜索图标模板
             setupSearchOnlyWidget(context, views, config, appWidgetId);
@@ -123,7 +145,7 @@ public class CustomizableWidgetProvider extends AppWidgetProvider {
             if (config.size.hasSearchBox()) {
                 setupSearchBox(context, views, config, appWidgetId);
             }
-            setupUnifiedIcons(context, views, config, appWidgetId);
+            setupUnifiedIcons(context, views, config, appWidgetId, pendingIcons);
         }
     }
 
@@ -145,7 +167,8 @@ public class CustomizableWidgetProvider extends AppWidgetProvider {
         views.setOnClickPendingIntent(R.id.search_icon, searchPendingIntent);
     }
 
-    private static void setupUnifiedIcons(Context context, RemoteViews views, WidgetConfig config, int appWidgetId) {
+    private static void setupUnifiedIcons(Context context, RemoteViews views, WidgetConfig config, int appWidgetId,
+                                          java.util.List<WidgetRenderPipeline.IconSlot> pendingIcons) {
         int maxIcons = config.size.getMaxIcons();
         Log.d(TAG, "设置统一图标，最大数量: " + maxIcons);
 
@@ -162,7 +185,7 @@ public class CustomizableWidgetProvider extends AppWidgetProvider {
 
             if (i <= allItems.size()) {
                 AppItem item = allItems.get(i - 1);
-                setupSingleIcon(context, views, iconId, labelId, item, appWidgetId, i);
+                setupSingleIcon(context, views, iconId, labelId, item, appWidgetId, i, pendingIcons);
             } else {
                 // 隐藏未使用的图标
                 views.setViewVisibility(iconId, android.view.View.GONE);
@@ -201,12 +224,13 @@ public class CustomizableWidgetProvider extends AppWidgetProvider {
         }
     }
 
-    private static void setupSingleIcon(Context context, RemoteViews views, int iconId, int labelId, AppItem item, int appWidgetId, int position) {
+    private static void setupSingleIcon(Context context, RemoteViews views, int iconId, int labelId, AppItem item, int appWidgetId, int position,
+                                        java.util.List<WidgetRenderPipeline.IconSlot> pendingIcons) {
         // 显示图标
         views.setViewVisibility(iconId, android.view.View.VISIBLE);
 
         // 使用优化的图标加载策略
-        loadOptimizedIcon(context, views, iconId, item, R.drawable.ic_apps);
+        loadOptimizedIcon(context, views, iconId, item, R.drawable.ic_apps, pendingIcons);
 
         // 设置标签
         if (labelId != 0) {
@@ -761,16 +785,20 @@ public class CustomizableWidgetProvider extends AppWidgetProvider {
     @Override
     public void onDeleted(Context context, int[] appWidgetIds) {
         // 清理小组件配置
+        WidgetRenderPipeline pipeline = WidgetRenderPipeline.getInstance(context);
         for (int appWidgetId : appWidgetIds) {
             WidgetUtils.deleteWidgetConfig(context, appWidgetId);
+            pipeline.forget(appWidgetId);
         }
     }
 
     /**
      * 智能图标加载策略
-     * 根据应用类型采用不同的优先级策略
+     * 根据应用类型采用不同的优先级策略，这里只设置资源图标和内存中已有的图标，
+     * 需要解码或下载的图标加入 [pendingIcons]，由渲染管线在后台统一解析
      */
-    private static void loadOptimizedIcon(Context context, RemoteViews views, int iconId, AppItem item, int defaultIconRes) {
+    private static void loadOptimizedIcon(Context context, RemoteViews views, int iconId, AppItem item, int defaultIconRes,
+                                          java.util.List<WidgetRenderPipeline.IconSlot> pendingIcons) {
         // 判断应用类型
         AppType appType = determineAppType(item.name, item.packageName);
 
@@ -778,12 +806,12 @@ public class CustomizableWidgetProvider extends AppWidgetProvider {
             case AI_APP:
             case SEARCH_ENGINE:
                 // AI应用和搜索引擎：优先使用预设资源图标
-                loadResourceFirstStrategy(context, views, iconId, item, defaultIconRes, appType);
+                loadResourceFirstStrategy(context, views, iconId, item, defaultIconRes, appType, pendingIcons);
                 break;
             case REGULAR_APP:
             default:
                 // 常规应用：优先使用设备已安装图标
-                loadDeviceFirstStrategy(context, views, iconId, item, defaultIconRes);
+                loadDeviceFirstStrategy(context, views, iconId, item, defaultIconRes, pendingIcons);
                 break;
         }
     }
@@ -791,7 +819,8 @@ public class CustomizableWidgetProvider extends AppWidgetProvider {
     /**
      * 资源优先策略 - 适用于AI应用和搜索引擎
      */
-    private static void loadResourceFirstStrategy(Context context, RemoteViews views, int iconId, AppItem item, int defaultIconRes, AppType appType) {
+    private static void loadResourceFirstStrategy(Context context, RemoteViews views, int iconId, AppItem item, int defaultIconRes, AppType appType,
+                                                  java.util.List<WidgetRenderPipeline.IconSlot> pendingIcons) {
         // 1. 优先使用预设的资源图标
         Log.d(TAG, "🔍 尝试加载图标: " + item.name + ", iconName: " + item.iconName + ", packageName: " + item.packageName);
 
@@ -820,32 +849,19 @@ public class CustomizableWidgetProvider extends AppWidgetProvider {
             }
         }
 
-        // 2.5. 使用智能图标管理器获取真实图标（异步）
-        tryLoadSmartIcon(context, views, iconId, item, appType);
-
-        // 2.6. 尝试从官方网站获取真实图标（备用方案）
-        tryLoadOfficialIcon(context, views, iconId, item, appType);
-
-        // 3. 尝试获取设备中已安装应用的图标（作为备选）
-        try {
-            android.graphics.drawable.Drawable installedAppIcon = context.getPackageManager().getApplicationIcon(item.packageName);
-            if (installedAppIcon != null) {
-                android.graphics.Bitmap iconBitmap = drawableToBitmap(installedAppIcon);
-                if (iconBitmap != null) {
-                    views.setImageViewBitmap(iconId, iconBitmap);
-                    Log.d(TAG, "✅ 使用设备已安装应用图标: " + item.name + " (类型: " + appType + ")");
-                    return;
-                }
-            }
-        } catch (android.content.pm.PackageManager.NameNotFoundException e) {
-            Log.d(TAG, "应用未安装: " + item.packageName);
-        } catch (Exception e) {
-            Log.w(TAG, "获取应用图标失败: " + item.packageName, e);
+        // 3. 已解析过的真实图标（智能图标管理器或已安装应用）
+        WidgetRenderPipeline.IconSlot slot = new WidgetRenderPipeline.IconSlot(iconId, item, true, false);
+        android.graphics.Bitmap cachedIcon = WidgetRenderPipeline.getInstance(context).getCached(slot);
+        if (cachedIcon != null) {
+            views.setImageViewBitmap(iconId, cachedIcon);
+            Log.d(TAG, "✅ 使用已缓存的真实图标: " + item.name + " (类型: " + appType + ")");
+            return;
         }
 
-        // 4. 使用默认图标
+        // 4. 先显示默认图标，真实图标在后台解析
         views.setImageViewResource(iconId, defaultIconRes);
-        Log.d(TAG, "⚠️ 使用默认图标: " + item.name + " (类型: " + appType + ")");
+        pendingIcons.add(slot);
+        Log.d(TAG, "⏳ 使用默认图标，等待后台解析: " + item.name + " (类型: " + appType + ")");
     }
 
     /**
@@ -902,54 +918,6 @@ public class CustomizableWidgetProvider extends AppWidgetProvider {
         return null;
     }
 
-    /**
-     * 使用智能图标管理器加载真实图标 - 最新优化方案
-     */
-    private static void tryLoadSmartIcon(Context context, RemoteViews views, int iconId, AppItem item, AppType appType) {
-        Log.d(TAG, "🧠 开始智能图标加载: " + item.name + " (类型: " + appType + ")");
-
-        SmartIconManager iconManager = SmartIconManager.getInstance(context);
-        iconManager.loadSmartIcon(views, iconId, item.name, item.packageName, () -> {
-            Log.d(TAG, "🔄 智能图标加载完成，更新小组件: " + item.name);
-            updateWidget(context, views);
-        });
-    }
-
-    /**
-     * 尝试从官方网站加载真实图标 - 使用新的RealIconProvider
-     */
-    private static void tryLoadOfficialIcon(Context context, RemoteViews views, int iconId, AppItem item, AppType appType) {
-        Log.d(TAG, "🌐 开始加载真实官方图标: " + item.name + " (类型: " + appType + ")");
-
-        // 使用新的真实图标提供器
-        RealIconProvider iconProvider = RealIconProvider.getInstance(context);
-        iconProvider.setRealIcon(views, iconId, item.name, item.packageName, () -> {
-            Log.d(TAG, "🔄 真实图标加载完成，更新小组件: " + item.name);
-            // 更新小组件显示
-            updateWidget(context, views);
-        });
-
-        // 同时保留原有的OfficialIconManager作为备用
-        OfficialIconManager iconManager = OfficialIconManager.getInstance(context);
-        iconManager.getOfficialIcon(item.name, item.packageName, new OfficialIconManager.IconCallback() {
-            @Override
-            public void onIconLoaded(android.graphics.Bitmap icon) {
-                try {
-                    views.setImageViewBitmap(iconId, icon);
-                    Log.d(TAG, "✅ 使用备用官方下载图标: " + item.name + " (类型: " + appType + ")");
-                    updateWidget(context, views);
-                } catch (Exception e) {
-                    Log.e(TAG, "设置备用官方图标失败: " + item.name, e);
-                }
-            }
-
-            @Override
-            public void onIconLoadFailed() {
-                Log.w(TAG, "⚠️ 备用官方图标加载失败: " + item.name);
-            }
-        });
-    }
-
     /**
      * 测试图标资源是否存在
      */
@@ -964,37 +932,27 @@ public class CustomizableWidgetProvider extends AppWidgetProvider {
     /**
      * 设备优先策略 - 适用于常规应用
      */
-    private static void loadDeviceFirstStrategy(Context context, RemoteViews views, int iconId, AppItem item, int defaultIconRes) {
-        // 1. 优先尝试获取设备中已安装应用的真实图标
-        try {
-            android.graphics.drawable.Drawable installedAppIcon = context.getPackageManager().getApplicationIcon(item.packageName);
-            if (installedAppIcon != null) {
-                android.graphics.Bitmap iconBitmap = drawableToBitmap(installedAppIcon);
-                if (iconBitmap != null) {
-                    views.setImageViewBitmap(iconId, iconBitmap);
-                    Log.d(TAG, "✅ 使用设备已安装应用图标: " + item.name);
-                    return;
-                }
-            }
-        } catch (android.content.pm.PackageManager.NameNotFoundException e) {
-            Log.d(TAG, "应用未安装: " + item.packageName);
-        } catch (Exception e) {
-            Log.w(TAG, "获取应用图标失败: " + item.packageName, e);
+    private static void loadDeviceFirstStrategy(Context context, RemoteViews views, int iconId, AppItem item, int defaultIconRes,
+                                                java.util.List<WidgetRenderPipeline.IconSlot> pendingIcons) {
+        // 预设的资源图标，作为占位图标，应用未安装时也作为最终图标
+        int iconRes = 0;
+        if (item.iconName != null && !item.iconName.isEmpty()) {
+            iconRes = context.getResources().getIdentifier(item.iconName, "drawable", context.getPackageName());
         }
 
-        // 2. 尝试使用预设的资源图标
-        if (item.iconName != null && !item.iconName.isEmpty()) {
-            int iconRes = context.getResources().getIdentifier(item.iconName, "drawable", context.getPackageName());
-            if (iconRes != 0) {
-                views.setImageViewResource(iconId, iconRes);
-                Log.d(TAG, "✅ 使用预设资源图标: " + item.name);
-                return;
-            }
+        // 1. 优先使用内存中已有的设备已安装应用图标
+        WidgetRenderPipeline.IconSlot slot = new WidgetRenderPipeline.IconSlot(iconId, item, false, iconRes != 0);
+        android.graphics.Bitmap cachedIcon = WidgetRenderPipeline.getInstance(context).getCached(slot);
+        if (cachedIcon != null) {
+            views.setImageViewBitmap(iconId, cachedIcon);
+            Log.d(TAG, "✅ 使用设备已安装应用图标: " + item.name);
+            return;
         }
 
-        // 3. 使用默认图标
-        views.setImageViewResource(iconId, defaultIconRes);
-        Log.d(TAG, "⚠️ 使用默认图标: " + item.name);
+        // 2. 先显示预设资源图标或默认图标，已安装应用的图标在后台解码
+        views.setImageViewResource(iconId, iconRes != 0 ? iconRes : defaultIconRes);
+        pendingIcons.add(slot);
+        Log.d(TAG, "⏳ 使用占位图标，等待后台解析: " + item.name);
     }
 
     /**
@@ -1092,32 +1050,4 @@ public class CustomizableWidgetProvider extends AppWidgetProvider {
 
         return false;
     }
-
-    /**
-     * 将Drawable转换为Bitmap
-     */
-    private static android.graphics.Bitmap drawableToBitmap(android.graphics.drawable.Drawable drawable) {
-        try {
-            if (drawable instanceof android.graphics.drawable.BitmapDrawable) {
-                return ((android.graphics.drawable.BitmapDrawable) drawable).getBitmap();
-            }
-
-            int width = drawable.getIntrinsicWidth();
-            int height = drawable.getIntrinsicHeight();
-
-            // 确保尺寸有效
-            if (width <= 0) width = 96;
-            if (height <= 0) height = 96;
-
-            android.graphics.Bitmap bitmap = android.graphics.Bitmap.createBitmap(width, height, android.graphics.Bitmap.Config.ARGB_8888);
-            android.graphics.Canvas canvas = new android.graphics.Canvas(bitmap);
-            drawable.setBounds(0, 0, canvas.getWidth(), canvas.getHeight());
-            drawable.draw(canvas);
-
-            return bitmap;
-        } catch (Exception e) {
-            Log.w(TAG, "Drawable转Bitmap失败", e);
-            return null;
-        }
-    }
 }
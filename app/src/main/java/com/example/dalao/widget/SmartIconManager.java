@@ -2,7 +2,6 @@ package com.example.dalao.widget;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.PorterDuff;
@@ -12,11 +11,9 @@ import android.graphics.RectF;
 import android.util.Log;
 import android.widget.RemoteViews;
 
+import com.example.aifloatingball.manager.IconService;
+
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
@@ -30,17 +27,19 @@ public class SmartIconManager {
     private static final String TAG = "SmartIconManager";
     private static SmartIconManager instance;
     private final Context context;
+    // 小组件图标尺寸
+    private static final int ICON_SIZE_PX = 128;
+    // 旧版本单独保存的图标目录，清理缓存时删除
+    private static final String LEGACY_CACHE_DIR = "widget_icons";
     private final ExecutorService executor;
-    private final File cacheDir;
+    private final IconService iconService;
     private final Map<String, String> iconUrlMap;
     
     private SmartIconManager(Context context) {
         this.context = context.getApplicationContext();
         this.executor = Executors.newFixedThreadPool(3);
-        this.cacheDir = new File(context.getCacheDir(), "widget_icons");
-        if (!cacheDir.exists()) {
-            cacheDir.mkdirs();
-        }
+        // 下载、磁盘缓存和失败记录与应用内其他图标加载器共用
+        this.iconService = IconService.getInstance(context);
         this.iconUrlMap = initIconUrlMap();
     }
     
@@ -98,7 +97,7 @@ public class SmartIconManager {
         
         executor.execute(() -> {
             try {
-                Bitmap iconBitmap = getOrDownloadIcon(iconKey, appName);
+                Bitmap iconBitmap = getOrDownloadIcon(iconKey, appName, ICON_SIZE_PX);
                 if (iconBitmap != null) {
                     // 在主线程更新UI
                     android.os.Handler mainHandler = new android.os.Handler(android.os.Looper.getMainLooper());
@@ -124,79 +123,42 @@ public class SmartIconManager {
     }
     
     /**
-     * 获取或下载图标
+     * 同步获取处理好的图标，按 [sizePx] 输出，只能在后台线程调用
      */
-    private Bitmap getOrDownloadIcon(String iconKey, String appName) {
-        // 1. 检查缓存
-        File cacheFile = new File(cacheDir, iconKey + ".png");
-        if (cacheFile.exists()) {
-            try {
-                Bitmap cachedBitmap = BitmapFactory.decodeFile(cacheFile.getAbsolutePath());
-                if (cachedBitmap != null) {
-                    Log.d(TAG, "📁 使用缓存图标: " + appName);
-                    return processIcon(cachedBitmap);
-                }
-            } catch (Exception e) {
-                Log.w(TAG, "读取缓存图标失败: " + appName, e);
-            }
+    public Bitmap loadSmartIconBlocking(String appName, String packageName, int sizePx) {
+        String iconKey = getIconKey(appName, packageName);
+        if (iconKey == null) {
+            return null;
         }
-        
-        // 2. 下载新图标
+        Bitmap icon = getOrDownloadIcon(iconKey, appName, sizePx);
+        Log.d(TAG, (icon != null ? "✅ 智能图标加载成功: " : "❌ 智能图标加载失败: ") + appName);
+        return icon;
+    }
+    
+    /**
+     * 获取或下载图标，按图标尺寸解码后处理成圆角样式
+     */
+    private Bitmap getOrDownloadIcon(String iconKey, String appName, int sizePx) {
         String iconUrl = iconUrlMap.get(iconKey);
         if (iconUrl == null) {
             Log.w(TAG, "无图标URL: " + iconKey);
             return null;
         }
         
-        try {
-            Log.d(TAG, "📥 下载图标: " + iconUrl);
-            
-            URL url = new URL(iconUrl);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setConnectTimeout(8000);
-            connection.setReadTimeout(15000);
-            connection.setRequestProperty("User-Agent", "Mozilla/5.0 (Linux; Android 10; Mobile) AppleWebKit/537.36");
-            connection.setRequestProperty("Accept", "image/webp,image/apng,image/*,*/*;q=0.8");
-            
-            int responseCode = connection.getResponseCode();
-            if (responseCode == HttpURLConnection.HTTP_OK) {
-                InputStream inputStream = connection.getInputStream();
-                Bitmap originalBitmap = BitmapFactory.decodeStream(inputStream);
-                inputStream.close();
-                connection.disconnect();
-                
-                if (originalBitmap != null) {
-                    // 缓存原始图标
-                    saveToCache(originalBitmap, cacheFile);
-                    
-                    // 处理并返回图标
-                    Bitmap processedBitmap = processIcon(originalBitmap);
-                    Log.d(TAG, "✅ 图标下载成功: " + appName);
-                    return processedBitmap;
-                } else {
-                    Log.w(TAG, "图标解码失败: " + appName);
-                }
-            } else {
-                Log.w(TAG, "图标下载失败，响应码: " + responseCode + " for " + appName);
-            }
-            
-            connection.disconnect();
-            
-        } catch (Exception e) {
-            Log.e(TAG, "下载图标异常: " + appName, e);
+        Bitmap originalBitmap = iconService.loadBlocking(iconUrl, sizePx);
+        if (originalBitmap == null) {
+            Log.w(TAG, "图标获取失败: " + appName);
+            return null;
         }
-        
-        return null;
+        return processIcon(originalBitmap, sizePx);
     }
     
     /**
      * 处理图标：调整尺寸和样式
      */
-    private Bitmap processIcon(Bitmap original) {
+    private Bitmap processIcon(Bitmap original, int targetSize) {
         if (original == null) return null;
         
-        int targetSize = 128;
-        
         // 调整尺寸
         Bitmap resized = Bitmap.createScaledBitmap(original, targetSize, targetSize, true);
         
@@ -229,20 +191,6 @@ public class SmartIconManager {
         return output;
     }
     
-    /**
-     * 保存图标到缓存
-     */
-    private void saveToCache(Bitmap bitmap, File cacheFile) {
-        try {
-            FileOutputStream fos = new FileOutputStream(cacheFile);
-            bitmap.compress(Bitmap.CompressFormat.PNG, 90, fos);
-            fos.close();
-            Log.d(TAG, "💾 图标已缓存: " + cacheFile.getName());
-        } catch (Exception e) {
-            Log.w(TAG, "缓存图标失败: " + cacheFile.getName(), e);
-        }
-    }
-    
     /**
      * 获取图标键值
      */
@@ -281,7 +229,7 @@ public class SmartIconManager {
     public void clearCache() {
         executor.execute(() -> {
             try {
-                File[] files = cacheDir.listFiles();
+                File[] files = new File(context.getCacheDir(), LEGACY_CACHE_DIR).listFiles();
                 if (files != null) {
                     for (File file : files) {
                         if (file.delete()) {
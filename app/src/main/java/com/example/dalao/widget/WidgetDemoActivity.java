@@ -86,6 +86,8 @@ public class WidgetDemoActivity extends AppCompatActivity {
         } else {
             status.append("请点击下方按钮添加小组件到桌面");
         }
+
+        status.append("\n\n渲染统计:\n").append(WidgetRenderPipeline.getInstance(this).getStatsSummary());
         
         statusTextView.setText(status.toString());
     }
@@ -2,167 +2,123 @@ package com.example.dalao.widget;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.PorterDuff;
 import android.graphics.PorterDuffXfermode;
 import android.graphics.RectF;
-import android.os.AsyncTask;
 import android.util.Log;
-import android.widget.RemoteViews;
+
+import com.example.aifloatingball.manager.AppIconCache;
+import com.example.aifloatingball.manager.IconService;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 /**
  * 小组件图标加载器
- * 使用iTunes API获取高质量应用图标
+ * 使用iTunes API获取高质量应用图标，由 WidgetRenderPipeline 在后台批量调用
  */
 public class WidgetIconLoader {
     
     private static final String TAG = "WidgetIconLoader";
     private static final String ITUNES_SEARCH_URL = "https://itunes.apple.com/search";
-    private static final int TIMEOUT_MS = 5000;
-    
-    // 缓存已加载的图标，避免重复网络请求
-    private static final Map<String, Bitmap> iconCache = new HashMap<>();
-    // URL缓存 - 避免重复搜索
-    private static final Map<String, List<String>> urlCache = new HashMap<>();
-    // 失败缓存 - 避免重复尝试失败的URL
-    private static final Set<String> failedUrls = new HashSet<>();
+    // 处理后的图标放在共享的图标缓存中，用前缀区分
+    private static final String CACHE_PREFIX = "widget:";
+    // 小组件图标尺寸：32dp * 3
+    private static final int ICON_SIZE_PX = 96;
+    // 小于这个尺寸的图标视为无效
+    private static final int MIN_ICON_PX = 16;
     
     /**
-     * 异步加载图标并设置到RemoteViews
+     * 同步获取处理好的网络图标，只能在后台线程调用
+     *
+     * 由 WidgetRenderPipeline 在批量解析小组件图标时调用，结果由调用方一次性推送到小组件。
      */
-    public static void loadIconFromiTunes(Context context, RemoteViews views, int viewId, 
-                                         String appName, String packageName, int defaultIconRes) {
-        
-        String cacheKey = packageName + "_" + appName;
-        
+    public static Bitmap loadIconBlocking(Context context, String appName, String packageName) {
+        String cacheKey = CACHE_PREFIX + packageName + "_" + appName;
+        AppIconCache iconCache = AppIconCache.getInstance(context);
+
         // 检查缓存
-        if (iconCache.containsKey(cacheKey)) {
-            Bitmap cachedIcon = iconCache.get(cacheKey);
-            if (cachedIcon != null) {
-                views.setImageViewBitmap(viewId, cachedIcon);
-                Log.d(TAG, "使用缓存图标: " + appName);
-                return;
-            }
+        Bitmap cachedIcon = iconCache.get(cacheKey);
+        if (cachedIcon != null) {
+            Log.d(TAG, "使用缓存图标: " + appName);
+            return cachedIcon;
         }
-        
-        // 异步加载图标
-        new IconLoadTask(context, views, viewId, appName, packageName, defaultIconRes, cacheKey).execute();
+
+        Bitmap icon = downloadFromSources(IconService.getInstance(context), cacheKey, appName, packageName);
+        if (icon == null) {
+            Log.d(TAG, "未找到图标: " + appName);
+            return null;
+        }
+
+        // 应用Material Design风格的图标处理，缓存处理后的图标
+        Bitmap processedIcon = applyMaterialDesignStyle(icon);
+        iconCache.put(cacheKey, processedIcon);
+        Log.d(TAG, "成功加载并处理图标: " + appName);
+        return processedIcon;
     }
-    
+
     /**
-     * 异步图标加载任务
+     * 依次尝试各个图标源
      */
-    private static class IconLoadTask extends AsyncTask<Void, Void, Bitmap> {
-        
-        private final Context context;
-        private final RemoteViews views;
-        private final int viewId;
-        private final String appName;
-        private final String packageName;
-        private final int defaultIconRes;
-        private final String cacheKey;
-        
-        public IconLoadTask(Context context, RemoteViews views, int viewId, String appName, 
-                           String packageName, int defaultIconRes, String cacheKey) {
-            this.context = context;
-            this.views = views;
-            this.viewId = viewId;
-            this.appName = appName;
-            this.packageName = packageName;
-            this.defaultIconRes = defaultIconRes;
-            this.cacheKey = cacheKey;
-        }
-        
-        @Override
-        protected Bitmap doInBackground(Void... voids) {
-            try {
-                // 1. 首先检查预定义的图标映射
-                String predefinedUrl = getPredefinedIconUrl(packageName, appName);
-                if (predefinedUrl != null) {
-                    Bitmap icon = downloadIcon(predefinedUrl);
-                    if (icon != null) {
-                        Log.d(TAG, "使用预定义图标: " + appName);
-                        return icon;
-                    }
+    private static Bitmap downloadFromSources(IconService iconService, String cacheKey, String appName, String packageName) {
+        try {
+            // 0. 上次找到的图标地址，直接从共享磁盘缓存解码
+            Bitmap remembered = iconService.loadRememberedBlocking(cacheKey, ICON_SIZE_PX);
+            if (remembered != null) {
+                return remembered;
+            }
+
+            // 1. 首先检查预定义的图标映射
+            String predefinedUrl = getPredefinedIconUrl(packageName, appName);
+            if (predefinedUrl != null) {
+                Bitmap icon = downloadIcon(iconService, cacheKey, predefinedUrl);
+                if (icon != null) {
+                    Log.d(TAG, "使用预定义图标: " + appName);
+                    return icon;
                 }
+            }
 
-                // 2. 尝试从iTunes获取图标URL
-                List<String> iconUrls = searchiTunesForIcons(appName);
+            // 2. 尝试从iTunes获取图标URL
+            List<String> iconUrls = searchiTunesForIcons(iconService, appName);
 
-                // 3. 下载第一个可用的图标
-                for (String iconUrl : iconUrls) {
-                    Bitmap icon = downloadIcon(iconUrl);
-                    if (icon != null) {
-                        Log.d(TAG, "使用iTunes图标: " + appName);
-                        return icon;
-                    }
+            // 3. 下载第一个可用的图标
+            for (String iconUrl : iconUrls) {
+                Bitmap icon = downloadIcon(iconService, cacheKey, iconUrl);
+                if (icon != null) {
+                    Log.d(TAG, "使用iTunes图标: " + appName);
+                    return icon;
                 }
+            }
 
-                // 4. 尝试多个备用图标源
-                List<String> fallbackUrls = getFallbackIconUrls(packageName, appName);
-                for (String fallbackUrl : fallbackUrls) {
-                    Bitmap icon = downloadIcon(fallbackUrl);
-                    if (icon != null) {
-                        Log.d(TAG, "使用备用图标源: " + appName);
-                        return icon;
-                    }
+            // 4. 尝试多个备用图标源
+            List<String> fallbackUrls = getFallbackIconUrls(packageName, appName);
+            for (String fallbackUrl : fallbackUrls) {
+                Bitmap icon = downloadIcon(iconService, cacheKey, fallbackUrl);
+                if (icon != null) {
+                    Log.d(TAG, "使用备用图标源: " + appName);
+                    return icon;
                 }
-
-            } catch (Exception e) {
-                Log.e(TAG, "加载图标失败: " + appName, e);
             }
 
-            return null;
-        }
-        
-        @Override
-        protected void onPostExecute(Bitmap icon) {
-            if (icon != null) {
-                // 应用Material Design风格的图标处理
-                Bitmap processedIcon = applyMaterialDesignStyle(icon);
-
-                // 缓存处理后的图标
-                iconCache.put(cacheKey, processedIcon);
-
-                // 设置图标到RemoteViews
-                views.setImageViewBitmap(viewId, processedIcon);
-                Log.d(TAG, "成功加载并处理图标: " + appName);
-
-                // 更新小组件
-                updateWidget(context, views);
-            } else {
-                // 使用默认图标
-                views.setImageViewResource(viewId, defaultIconRes);
-                Log.d(TAG, "使用默认图标: " + appName);
-                
-                // 更新小组件
-                updateWidget(context, views);
-            }
+        } catch (Exception e) {
+            Log.e(TAG, "加载图标失败: " + appName, e);
         }
+
+        return null;
     }
     
     /**
      * 从多个源获取图标URL（改进版）
      */
-    private static List<String> searchiTunesForIcons(String appName) {
+    private static List<String> searchiTunesForIcons(IconService iconService, String appName) {
         List<String> iconUrls = new ArrayList<>();
 
         try {
@@ -171,7 +127,7 @@ public class WidgetIconLoader {
             String searchUrl = ITUNES_SEARCH_URL + "?term=" + encodedName +
                               "&media=software&entity=software&limit=10";
 
-            String response = downloadText(searchUrl);
+            String response = iconService.fetchTextBlocking(searchUrl);
             if (response != null) {
                 iconUrls = parseiTunesResponse(response, appName);
             }
@@ -186,7 +142,7 @@ public class WidgetIconLoader {
                                        URLEncoder.encode(keyword, "UTF-8") +
                                        "&media=software&entity=software&limit=5";
 
-                    String keywordResponse = downloadText(keywordUrl);
+                    String keywordResponse = iconService.fetchTextBlocking(keywordUrl);
                     if (keywordResponse != null) {
                         List<String> keywordIcons = parseiTunesResponse(keywordResponse, appName);
                         iconUrls.addAll(keywordIcons);
@@ -508,106 +464,25 @@ public class WidgetIconLoader {
     }
     
     /**
-     * 下载文本内容
-     */
-    private static String downloadText(String urlString) {
-        try {
-            URL url = new URL(urlString);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setConnectTimeout(TIMEOUT_MS);
-            connection.setReadTimeout(TIMEOUT_MS);
-            connection.setRequestMethod("GET");
-            
-            BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-            StringBuilder response = new StringBuilder();
-            String line;
-            
-            while ((line = reader.readLine()) != null) {
-                response.append(line);
-            }
-            
-            reader.close();
-            connection.disconnect();
-            
-            return response.toString();
-            
-        } catch (Exception e) {
-            Log.e(TAG, "下载文本失败: " + urlString, e);
-            return null;
-        }
-    }
-    
-    /**
-     * 下载图标（优化版）
+     * 下载图标：下载、按小组件尺寸解码、磁盘缓存和失败记录由 IconService 统一负责，
+     * 成功时记下地址，下次直接从磁盘缓存解码
      */
-    private static Bitmap downloadIcon(String iconUrl) {
+    private static Bitmap downloadIcon(IconService iconService, String cacheKey, String iconUrl) {
         if (iconUrl == null || iconUrl.isEmpty()) {
             return null;
         }
 
-        // 检查失败缓存
-        if (failedUrls.contains(iconUrl)) {
-            Log.d(TAG, "跳过已知失败的URL: " + iconUrl);
+        Bitmap bitmap = iconService.loadBlocking(iconUrl, ICON_SIZE_PX, MIN_ICON_PX);
+        if (bitmap == null) {
+            Log.d(TAG, "图标不可用: " + iconUrl);
             return null;
         }
 
-        try {
-            URL url = new URL(iconUrl);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setConnectTimeout(TIMEOUT_MS);
-            connection.setReadTimeout(TIMEOUT_MS);
-            connection.setDoInput(true);
-
-            // 设置User-Agent，避免某些服务器拒绝请求
-            connection.setRequestProperty("User-Agent", "Mozilla/5.0 (Android; Mobile; rv:40.0)");
-
-            connection.connect();
-
-            int responseCode = connection.getResponseCode();
-            if (responseCode != HttpURLConnection.HTTP_OK) {
-                Log.w(TAG, "HTTP错误: " + responseCode + " for " + iconUrl);
-                failedUrls.add(iconUrl);
-                connection.disconnect();
-                return null;
-            }
-
-            InputStream input = connection.getInputStream();
-            Bitmap bitmap = BitmapFactory.decodeStream(input);
-            input.close();
-            connection.disconnect();
-
-            if (bitmap == null) {
-                Log.w(TAG, "无法解码图标: " + iconUrl);
-                failedUrls.add(iconUrl);
-                return null;
-            }
-
-            // 验证图标质量
-            if (bitmap.getWidth() < 16 || bitmap.getHeight() < 16) {
-                Log.w(TAG, "图标尺寸太小: " + bitmap.getWidth() + "x" + bitmap.getHeight() + " for " + iconUrl);
-                failedUrls.add(iconUrl);
-                return null;
-            }
-
-            Log.d(TAG, "成功下载图标: " + iconUrl + " (" + bitmap.getWidth() + "x" + bitmap.getHeight() + ")");
-            return bitmap;
-
-        } catch (Exception e) {
-            Log.e(TAG, "下载图标失败: " + iconUrl, e);
-            failedUrls.add(iconUrl);
-            return null;
-        }
+        iconService.rememberUrl(cacheKey, iconUrl);
+        Log.d(TAG, "成功获取图标: " + iconUrl + " (" + bitmap.getWidth() + "x" + bitmap.getHeight() + ")");
+        return bitmap;
     }
     
-    /**
-     * 更新小组件
-     */
-    private static void updateWidget(Context context, RemoteViews views) {
-        // 这里需要根据具体的小组件更新逻辑来实现
-        // 由于我们在CustomizableWidgetProvider中调用，这个方法可能不需要做任何事情
-        // 因为RemoteViews的更改会在方法返回后自动应用
-    }
-
     /**
      * 应用Material Design风格的图标处理 (优化版)
      * 根据实际显示需求调整尺寸
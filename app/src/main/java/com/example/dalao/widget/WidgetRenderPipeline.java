@@ -0,0 +1,349 @@
+package com.example.dalao.widget;
+
+import android.appwidget.AppWidgetManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+import android.util.Log;
+import android.widget.RemoteViews;
+
+import com.example.aifloatingball.manager.AppIconCache;
+import com.example.aifloatingball.manager.IconService;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 小组件渲染管线
+ *
+ * 一次配置渲染最多两次跨进程更新：先用资源图标和内存中已有的位图做一次完整更新（不访问磁盘和网络），
+ * 需要解码或下载的图标在同一个后台任务里全部解析完，最后用一次 partiallyUpdateAppWidget 只推送这些图标。
+ * 配置哈希与上次完整完成的渲染相同时整次跳过。
+ *
+ * 解析结果按小组件尺寸缩放后放在共享的图标缓存里，网络图标另外存进 {@link IconService} 的磁盘缓存，
+ * 进程重启后不必重新下载和处理，磁盘占用也由它统一限制。
+ */
+public final class WidgetRenderPipeline {
+
+    private static final String TAG = "WidgetRenderPipeline";
+    // 小组件图标尺寸：32dp * 3，和 WidgetIconLoader 一致
+    static final int ICON_SIZE_PX = 96;
+    private static final String CACHE_PREFIX = "widget:render:";
+    // 旧版本单独使用的磁盘缓存目录，现在统一存进 IconService
+    private static final String LEGACY_DISK_DIR = "widget_render";
+
+    private static volatile WidgetRenderPipeline instance;
+
+    public static WidgetRenderPipeline getInstance(Context context) {
+        if (instance == null) {
+            synchronized (WidgetRenderPipeline.class) {
+                if (instance == null) {
+                    instance = new WidgetRenderPipeline(context.getApplicationContext());
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * 需要在后台解析的图标槽位
+     */
+    static final class IconSlot {
+        final int viewId;
+        final String name;
+        final String packageName;
+        // AI应用和搜索引擎：取网络图标；常规应用：取已安装应用图标
+        final boolean remote;
+        // 完整更新里已经设置了合适的资源图标，解析不到时保留它即可
+        final boolean hasResourceIcon;
+
+        IconSlot(int viewId, AppItem item, boolean remote, boolean hasResourceIcon) {
+            this.viewId = viewId;
+            this.name = item.name != null ? item.name : "";
+            this.packageName = item.packageName != null ? item.packageName : "";
+            this.remote = remote;
+            this.hasResourceIcon = hasResourceIcon;
+        }
+
+        String cacheKey() {
+            return packageName + "|" + name;
+        }
+    }
+
+    private final Context context;
+    private final AppIconCache iconCache;
+    private final IconService iconService;
+    // 单线程：同一时间只有一个小组件在解析，不和前台抢网络和CPU
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    private final Object lock = new Object();
+    // 小组件ID -> 最近一次完整完成的配置哈希
+    private final Map<Integer, String> renderedHashes = new HashMap<>();
+    // 小组件ID -> 正在渲染的配置哈希，后台任务据此丢弃过期的结果
+    private final Map<Integer, String> pendingHashes = new HashMap<>();
+    private final Map<Integer, Long> startTimes = new HashMap<>();
+
+    private long renders;
+    private long skipped;
+    private long fullUpdates;
+    private long partialUpdates;
+    private long discarded;
+    private long completed;
+    private long totalRefreshMs;
+    private long lastRefreshMs;
+    private long maxRefreshMs;
+
+    private WidgetRenderPipeline(Context context) {
+        this.context = context;
+        this.iconCache = AppIconCache.getInstance(context);
+        this.iconService = IconService.getInstance(context);
+        executor.execute(() -> deleteLegacyDiskCache(new File(context.getCacheDir(), LEGACY_DISK_DIR)));
+    }
+
+    /**
+     * 配置哈希：布局、图标项、搜索框、显示模式以及点击事件里带上的剪贴板内容
+     */
+    static String configHash(WidgetConfig config, int layoutId, String displayMode, String clipboardText) {
+        StringBuilder sb = new StringBuilder();
+        try {
+            sb.append(config.toJson());
+        } catch (Exception e) {
+            // 序列化失败时用当前时间，保证这次一定渲染
+            sb.append(System.nanoTime());
+        }
+        sb.append('|').append(layoutId)
+            .append('|').append(displayMode)
+            .append('|').append(clipboardText);
+        return IconService.sha1(sb.toString());
+    }
+
+    /**
+     * 开始一次渲染，配置与上次完成或正在进行的渲染相同时返回 false
+     */
+    boolean begin(int appWidgetId, String hash) {
+        synchronized (lock) {
+            if (hash.equals(renderedHashes.get(appWidgetId)) || hash.equals(pendingHashes.get(appWidgetId))) {
+                skipped++;
+                return false;
+            }
+            renders++;
+            pendingHashes.put(appWidgetId, hash);
+            startTimes.put(appWidgetId, SystemClock.elapsedRealtime());
+            return true;
+        }
+    }
+
+    /**
+     * 渲染没有完成就失败了（例如位图超出 RemoteViews 的大小限制），清除进行中的记录，下次刷新会重新渲染
+     */
+    void abort(int appWidgetId, String hash) {
+        synchronized (lock) {
+            if (hash.equals(pendingHashes.get(appWidgetId))) {
+                pendingHashes.remove(appWidgetId);
+                startTimes.remove(appWidgetId);
+            }
+        }
+    }
+
+    /**
+     * 内存中已解析好的图标，不做任何 IO，可在主线程调用
+     */
+    Bitmap getCached(IconSlot slot) {
+        Bitmap bitmap = slot.remote ? null : iconCache.getAppIcon(slot.packageName, ICON_SIZE_PX);
+        if (bitmap == null) {
+            bitmap = iconCache.get(CACHE_PREFIX + slot.cacheKey());
+        }
+        return bitmap;
+    }
+
+    /**
+     * 推送完整更新，再在后台解析 [pending] 中的图标并一次性部分更新
+     */
+    void render(AppWidgetManager appWidgetManager, int appWidgetId, int layoutId, String hash,
+                RemoteViews views, List<IconSlot> pending) {
+        synchronized (lock) {
+            if (!hash.equals(pendingHashes.get(appWidgetId))) {
+                return;
+            }
+            appWidgetManager.updateAppWidget(appWidgetId, views);
+            fullUpdates++;
+        }
+
+        if (pending.isEmpty()) {
+            finish(appWidgetId, hash, true);
+            return;
+        }
+
+        executor.execute(() -> {
+            try {
+                resolveAndUpdate(appWidgetManager, appWidgetId, layoutId, hash, pending);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "小组件图标更新失败: " + appWidgetId, e);
+                abort(appWidgetId, hash);
+            }
+        });
+    }
+
+    /**
+     * 在后台线程解析 [pending] 中的图标并一次性部分更新
+     */
+    private void resolveAndUpdate(AppWidgetManager appWidgetManager, int appWidgetId, int layoutId, String hash,
+                                  List<IconSlot> pending) {
+        if (!isCurrent(appWidgetId, hash)) {
+            synchronized (lock) {
+                discarded++;
+            }
+            return;
+        }
+        RemoteViews partial = new RemoteViews(context.getPackageName(), layoutId);
+        int changed = 0;
+        boolean complete = true;
+        for (IconSlot slot : pending) {
+            Bitmap bitmap = null;
+            try {
+                bitmap = resolve(slot);
+            } catch (Exception e) {
+                Log.w(TAG, "解析图标失败: " + slot.name, e);
+            }
+            if (bitmap != null) {
+                partial.setImageViewBitmap(slot.viewId, bitmap);
+                changed++;
+            } else if (!slot.hasResourceIcon) {
+                // 还显示着默认图标，下次刷新时重试
+                complete = false;
+            }
+        }
+
+        synchronized (lock) {
+            if (!hash.equals(pendingHashes.get(appWidgetId))) {
+                discarded++;
+                Log.d(TAG, "小组件 " + appWidgetId + " 配置已变化，丢弃过期的图标");
+                return;
+            }
+            if (changed > 0) {
+                try {
+                    appWidgetManager.partiallyUpdateAppWidget(appWidgetId, partial);
+                    partialUpdates++;
+                } catch (Exception e) {
+                    Log.e(TAG, "部分更新小组件失败: " + appWidgetId, e);
+                    complete = false;
+                }
+            }
+        }
+        Log.d(TAG, "小组件 " + appWidgetId + " 解析图标 " + changed + "/" + pending.size());
+        finish(appWidgetId, hash, complete);
+    }
+
+    /**
+     * 小组件被删除时清除记录
+     */
+    void forget(int appWidgetId) {
+        synchronized (lock) {
+            renderedHashes.remove(appWidgetId);
+            pendingHashes.remove(appWidgetId);
+            startTimes.remove(appWidgetId);
+        }
+    }
+
+    /**
+     * 渲染统计：跨进程更新次数 = 完整更新 + 部分更新
+     */
+    public String getStatsSummary() {
+        synchronized (lock) {
+            long avgMs = completed > 0 ? totalRefreshMs / completed : 0;
+            return "渲染 " + renders + " 次，跳过 " + skipped + " 次，丢弃 " + discarded + " 次\n"
+                + "跨进程更新 " + (fullUpdates + partialUpdates)
+                + "（完整 " + fullUpdates + "，部分 " + partialUpdates + "）\n"
+                + "刷新耗时 最近 " + lastRefreshMs + "ms，平均 " + avgMs + "ms，最长 " + maxRefreshMs + "ms";
+        }
+    }
+
+    private boolean isCurrent(int appWidgetId, String hash) {
+        synchronized (lock) {
+            return hash.equals(pendingHashes.get(appWidgetId));
+        }
+    }
+
+    /**
+     * @param complete 所有图标都已是最终状态，只有这时才记下哈希，否则下次刷新还会重新渲染
+     */
+    private void finish(int appWidgetId, String hash, boolean complete) {
+        synchronized (lock) {
+            if (!hash.equals(pendingHashes.get(appWidgetId))) {
+                return;
+            }
+            pendingHashes.remove(appWidgetId);
+            Long start = startTimes.remove(appWidgetId);
+            if (complete) {
+                renderedHashes.put(appWidgetId, hash);
+            } else {
+                renderedHashes.remove(appWidgetId);
+            }
+            completed++;
+            if (start != null) {
+                lastRefreshMs = SystemClock.elapsedRealtime() - start;
+                totalRefreshMs += lastRefreshMs;
+                maxRefreshMs = Math.max(maxRefreshMs, lastRefreshMs);
+            }
+        }
+        Log.d(TAG, "小组件 " + appWidgetId + " 刷新完成，耗时 " + lastRefreshMs + "ms\n" + getStatsSummary());
+    }
+
+    /**
+     * 在后台线程解析一个图标槽位
+     *
+     * AI应用和搜索引擎：网络图标，其次已安装应用的图标；
+     * 常规应用：已安装应用的图标（AppIconCache 的缩略图磁盘缓存），未安装且没有资源图标时再查网络图标。
+     */
+    private Bitmap resolve(IconSlot slot) {
+        if (!slot.remote) {
+            Bitmap installed = iconCache.loadAppIcon(slot.packageName, ICON_SIZE_PX);
+            if (installed != null || slot.hasResourceIcon) {
+                return installed;
+            }
+        }
+
+        String key = slot.cacheKey();
+        Bitmap bitmap = iconCache.get(CACHE_PREFIX + key);
+        if (bitmap != null) {
+            return bitmap;
+        }
+
+        bitmap = iconService.loadStoredBitmap(CACHE_PREFIX + key);
+        if (bitmap != null) {
+            iconCache.put(CACHE_PREFIX + key, bitmap);
+            return bitmap;
+        }
+
+        if (slot.remote) {
+            bitmap = SmartIconManager.getInstance(context).loadSmartIconBlocking(slot.name, slot.packageName, ICON_SIZE_PX);
+            if (bitmap == null) {
+                return iconCache.loadAppIcon(slot.packageName, ICON_SIZE_PX);
+            }
+        } else {
+            bitmap = WidgetIconLoader.loadIconBlocking(context, slot.name, slot.packageName);
+        }
+        if (bitmap == null) {
+            return null;
+        }
+
+        iconCache.put(CACHE_PREFIX + key, bitmap);
+        iconService.storeBitmap(CACHE_PREFIX + key, bitmap);
+        return bitmap;
+    }
+
+    private static void deleteLegacyDiskCache(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            file.delete();
+        }
+        dir.delete();
+    }
+}
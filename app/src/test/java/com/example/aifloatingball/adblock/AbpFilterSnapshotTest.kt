@@ -0,0 +1,165 @@
+package com.example.aifloatingball.adblock
+
+import com.example.aifloatingball.adblock.AbpFilterParser.TYPE_DOCUMENT
+import com.example.aifloatingball.adblock.AbpFilterParser.TYPE_IMAGE
+import com.example.aifloatingball.adblock.AbpFilterParser.TYPE_OTHER
+import com.example.aifloatingball.adblock.AbpFilterParser.TYPE_SCRIPT
+import com.example.aifloatingball.adblock.AbpFilterParser.TYPE_SUBDOCUMENT
+import com.example.aifloatingball.adblock.AbpFilterSnapshot.Result
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Ignore
+import org.junit.Test
+import java.io.File
+import java.nio.file.Files
+import kotlin.random.Random
+
+/**
+ * EasyList 规则导入与预编译快照测试
+ *
+ * 5 万条规则的加载与匹配耗时基准默认跳过，调优快照格式时手动运行。
+ */
+class AbpFilterSnapshotTest {
+
+    private lateinit var tempDir: File
+
+    @Before
+    fun setUp() {
+        tempDir = Files.createTempDirectory("abp").toFile()
+    }
+
+    @After
+    fun tearDown() {
+        tempDir.deleteRecursively()
+    }
+
+    private fun loadFixture(): AbpFilterSnapshot {
+        val stream = javaClass.classLoader!!.getResourceAsStream("adblock/easylist_fixture.txt")
+        val result = AbpFilterParser.parse(stream.bufferedReader())
+        assertEquals("正则和不支持选项的行应被跳过", 2, result.skipped)
+        assertEquals(listOf("example.com##.ad-banner", "example.com#@#.sponsored"), result.cosmeticRules)
+
+        val file = File(tempDir, "filters.bin")
+        AbpFilterSnapshot.compile(result.filters, file)
+        return AbpFilterSnapshot.open(file)!!
+    }
+
+    @Test
+    fun testHostAnchorAndSeparator() {
+        val snapshot = loadFixture()
+        assertEquals(Result.BLOCK, snapshot.match("https://adserver.example/x.png", null, TYPE_IMAGE))
+        assertEquals(Result.BLOCK, snapshot.match("https://a.b.adserver.example:8080/x", null, TYPE_OTHER))
+        assertEquals(Result.NO_MATCH, snapshot.match("https://notadserver.example/x", null, TYPE_OTHER))
+        assertEquals(Result.NO_MATCH, snapshot.match("https://adserver.example.com/x", null, TYPE_OTHER))
+    }
+
+    @Test
+    fun testOptions() {
+        val snapshot = loadFixture()
+        val tracker = "https://tracker.example.net/t.gif"
+        assertEquals(Result.BLOCK, snapshot.match(tracker, "www.site.com", TYPE_IMAGE))
+        assertEquals(Result.NO_MATCH, snapshot.match(tracker, "www.example.net", TYPE_IMAGE))
+
+        val ads = "https://cdn.example.org/ads/loader.js"
+        assertEquals(Result.BLOCK, snapshot.match(ads, "site.com", TYPE_SCRIPT))
+        assertEquals(Result.NO_MATCH, snapshot.match(ads, "site.com", TYPE_IMAGE))
+
+        val metrics = "https://metrics.example.com/p.gif"
+        assertEquals(Result.BLOCK, snapshot.match(metrics, "news.example.com", TYPE_IMAGE))
+        assertEquals(Result.NO_MATCH, snapshot.match(metrics, "sports.news.example.com", TYPE_IMAGE))
+        assertEquals(Result.NO_MATCH, snapshot.match(metrics, "other.com", TYPE_IMAGE))
+    }
+
+    @Test
+    fun testThirdPartyUsesPublicSuffix() {
+        val snapshot = loadFixture()
+        val tracker = "https://tracker.example.co.uk/t.gif"
+        // co.uk 是公共后缀，example.co.uk 和 other.co.uk 是不同站点
+        assertEquals(Result.NO_MATCH, snapshot.match(tracker, "www.example.co.uk", TYPE_IMAGE))
+        assertEquals(Result.BLOCK, snapshot.match(tracker, "www.other.co.uk", TYPE_IMAGE))
+        // 页面本身是公共后缀时，它下面的站点仍是第三方
+        assertEquals(Result.BLOCK, snapshot.match(tracker, "co.uk", TYPE_IMAGE))
+        assertEquals(Result.BLOCK, snapshot.match("https://tracker.example.net/t.gif", "www.example.com.cn", TYPE_IMAGE))
+    }
+
+    @Test
+    fun testMainFrameOnlyMatchesDocumentRules() {
+        val snapshot = loadFixture()
+        assertEquals(TYPE_DOCUMENT, AbpFilterParser.inferResourceType("https://adserver.example/", "text/html", isMainFrame = true))
+        assertEquals(TYPE_SUBDOCUMENT, AbpFilterParser.inferResourceType("https://adserver.example/", "text/html"))
+
+        // 普通规则只拦截页面中的子资源，不拦截顶层导航
+        assertEquals(Result.NO_MATCH, snapshot.match("https://adserver.example/", "adserver.example", TYPE_DOCUMENT))
+        assertEquals(Result.BLOCK, snapshot.match("https://adserver.example/", "site.com", TYPE_SUBDOCUMENT))
+        assertEquals(Result.BLOCK, snapshot.match("https://popunder.example/landing", "popunder.example", TYPE_DOCUMENT))
+        assertEquals(Result.NO_MATCH, snapshot.match("https://popunder.example/p.js", "site.com", TYPE_SCRIPT))
+    }
+
+    @Test
+    fun testAnchorsWildcardsAndExceptions() {
+        val snapshot = loadFixture()
+        assertEquals(Result.BLOCK, snapshot.match("https://banner.example.io/top.png", null, TYPE_IMAGE))
+        assertEquals(Result.NO_MATCH, snapshot.match("http://banner.example.io/top.png", null, TYPE_IMAGE))
+        assertEquals(Result.BLOCK, snapshot.match("https://x.com/pagead/js/r20/show_ads.js", null, TYPE_SCRIPT))
+        assertEquals(Result.BLOCK, snapshot.match("https://x.com/img/top-ad-300x250.png", null, TYPE_IMAGE))
+        assertEquals(Result.BLOCK, snapshot.match("https://x.com/flash/movie.swf", null, TYPE_OTHER))
+        assertEquals(Result.NO_MATCH, snapshot.match("https://x.com/flash/movie.swf?v=1", null, TYPE_OTHER))
+        assertEquals(Result.BLOCK, snapshot.match("https://x.com/a?id=1&adtype=popup", null, TYPE_OTHER))
+
+        assertEquals(Result.EXCEPTION, snapshot.match("https://adserver.example/allowed/a.png", null, TYPE_IMAGE))
+        assertEquals(Result.EXCEPTION, snapshot.match("https://cdn.example.org/ads/consent.js", "www.example.org", TYPE_SCRIPT))
+        assertEquals(Result.BLOCK, snapshot.match("https://cdn.example.org/ads/consent.js", "other.com", TYPE_SCRIPT))
+    }
+
+    private fun largeRuleList(random: Random): List<String> {
+        fun word() = String(CharArray(4 + random.nextInt(6)) { 'a' + random.nextInt(26) })
+        return List(50_000) {
+            when (random.nextInt(4)) {
+                0 -> "||${word()}.${word()}.com^\$third-party"
+                1 -> "/${word()}/${word()}-"
+                2 -> "||${word()}.net/${word()}/*\$script"
+                else -> "-${word()}_${word()}."
+            }
+        }
+    }
+
+    @Test
+    fun testLargeRuleListRoundTripsThroughSnapshot() {
+        val lines = largeRuleList(Random(3))
+        val file = File(tempDir, "big.bin")
+        val filters = AbpFilterParser.parse(lines.joinToString("\n").reader().buffered()).filters
+        AbpFilterSnapshot.compile(filters, file)
+
+        val snapshot = AbpFilterSnapshot.open(file)!!
+        assertEquals(50_000, snapshot.ruleCount)
+        val host = lines.first { it.endsWith("\$third-party") }.removePrefix("||").substringBefore('^')
+        assertEquals(Result.BLOCK, snapshot.match("https://$host/a.js", "www.site.com", TYPE_SCRIPT))
+        assertEquals(Result.NO_MATCH, snapshot.match("https://$host/a.js", host, TYPE_SCRIPT))
+    }
+
+    @Ignore("性能基准，需要时手动运行")
+    @Test
+    fun benchmarkLoadAndMatchWith50kRules() {
+        val random = Random(3)
+        val file = File(tempDir, "big.bin")
+        val filters = AbpFilterParser.parse(largeRuleList(random).joinToString("\n").reader().buffered()).filters
+        AbpFilterSnapshot.compile(filters, file)
+
+        val loadStart = System.nanoTime()
+        val snapshot = AbpFilterSnapshot.open(file)!!
+        val loadMs = (System.nanoTime() - loadStart) / 1_000_000.0
+
+        fun word() = String(CharArray(4 + random.nextInt(6)) { 'a' + random.nextInt(26) })
+        val urls = List(2_000) {
+            "https://www.${word()}.com/${word()}/${word()}/${word()}.js?id=${random.nextInt()}"
+        }
+        urls.forEach { snapshot.match(it, "www.site.com", TYPE_SCRIPT) }
+        val matchStart = System.nanoTime()
+        repeat(5) { urls.forEach { snapshot.match(it, "www.site.com", TYPE_SCRIPT) } }
+        val perMatchUs = (System.nanoTime() - matchStart) / 1_000.0 / (5 * urls.size)
+
+        assertTrue("快照加载应在几十毫秒内完成，实际 $loadMs ms", loadMs < 50)
+        assertTrue("单次匹配应在微秒级，实际 $perMatchUs us", perMatchUs < 50)
+    }
+}
@@ -0,0 +1,123 @@
+package com.example.aifloatingball.adblock
+
+import org.junit.Assert.*
+import org.junit.Ignore
+import org.junit.Test
+import kotlin.random.Random
+
+/**
+ * 广告拦截匹配器测试
+ *
+ * 编译后的匹配器与逐条 contains 的旧实现逐个URL对比结果；1 万条URL的吞吐量基准默认跳过，需要时手动运行。
+ */
+class AdBlockMatcherTest {
+
+    private fun matcher(
+        customRules: Collection<String> = emptyList(),
+        whitelist: Collection<String> = emptyList()
+    ) = AdBlockMatcher.build(
+        AdBlockFilter.AD_DOMAINS,
+        AdBlockFilter.AD_PATHS,
+        AdBlockFilter.AD_EXTENSIONS,
+        AdBlockFilter.AD_PARAMS,
+        customRules,
+        whitelist
+    )
+
+    /**
+     * 旧实现：对每类规则逐条做子串查找
+     */
+    private fun legacyShouldBlock(url: String, customRules: Set<String>, whitelist: Set<String>): Boolean {
+        val lowerUrl = url.lowercase()
+        if (whitelist.any { lowerUrl.contains(it) }) return false
+        if (customRules.any { lowerUrl.contains(it) }) return true
+        if (AdBlockFilter.AD_DOMAINS.any { lowerUrl.contains(it) }) return true
+        if (AdBlockFilter.AD_PATHS.any { lowerUrl.contains(it) }) return true
+        if (AdBlockFilter.AD_EXTENSIONS.any { lowerUrl.endsWith(it) }) return true
+        if (!lowerUrl.contains("?")) return false
+        val queryString = lowerUrl.substringAfter("?")
+        return AdBlockFilter.AD_PARAMS.any { queryString.contains("$it=") }
+    }
+
+    @Test
+    fun testDomainRulesMatchHostAndSubdomains() {
+        val matcher = matcher()
+        assertEquals(AdBlockMatcher.Verdict.DOMAIN, matcher.match("https://doubleclick.net/x.js"))
+        assertEquals(AdBlockMatcher.Verdict.DOMAIN, matcher.match("https://stats.g.doubleclick.net:443/x"))
+        assertEquals(AdBlockMatcher.Verdict.DOMAIN, matcher.match("https://www.facebook.com/tr?id=1"))
+        assertEquals(AdBlockMatcher.Verdict.ALLOW, matcher.match("https://socialmedia.net/index.html"))
+        assertEquals(AdBlockMatcher.Verdict.ALLOW, matcher.match("https://example.com/?next=doubleclick.net"))
+    }
+
+    @Test
+    fun testPathExtensionAndParamRules() {
+        val matcher = matcher()
+        assertEquals(AdBlockMatcher.Verdict.PATH, matcher.match("https://cdn.example.com/ads/banner.png"))
+        assertEquals(AdBlockMatcher.Verdict.EXTENSION, matcher.match("https://cdn.example.com/lib/site.analytics.js"))
+        assertEquals(AdBlockMatcher.Verdict.ALLOW, matcher.match("https://cdn.example.com/lib/site.analytics.js.map"))
+        assertEquals(AdBlockMatcher.Verdict.PARAM, matcher.match("https://example.com/page?a=1&utm_source=x"))
+        assertEquals(AdBlockMatcher.Verdict.ALLOW, matcher.match("https://example.com/page?a=1&my_utm_source_x=2"))
+    }
+
+    @Test
+    fun testCustomRulesAndWhitelist() {
+        val matcher = matcher(customRules = listOf("evil.cn", "广告"), whitelist = listOf("example.com/ads/"))
+        assertEquals(AdBlockMatcher.Verdict.CUSTOM, matcher.match("https://evil.cn/x"))
+        assertEquals(AdBlockMatcher.Verdict.CUSTOM, matcher.match("https://site.cn/广告/1.png"))
+        assertEquals(AdBlockMatcher.Verdict.WHITELISTED, matcher.match("https://example.com/ads/a.png"))
+        assertEquals("example.com", AdBlockMatcher.hostOf("https://user@example.com:8080/a?b#c"))
+    }
+
+    private val customRules = List(50) { "tracker$it.example.net" }.toSet()
+    private val whitelist = List(20) { "trusted$it.example.com" }.toSet()
+
+    private fun sampleUrls(count: Int): List<String> {
+        val random = Random(7)
+        val hosts = List(300) { "www.site$it.com" } + listOf("pagead2.googlesyndication.com", "cdn.taboola.com", "static.example.org")
+        val segments = listOf("static", "img", "js", "css", "api", "v1", "user", "news", "ads", "click", "video", "assets")
+        val files = listOf("app.js", "style.css", "logo.png", "main.bundle.js", "site.analytics.js", "data.json", "index.html")
+        val params = listOf("id", "page", "utm_source", "q", "lang", "ts", "gclid", "ref")
+
+        return List(count) {
+            buildString {
+                append("https://").append(hosts.random(random))
+                repeat(1 + random.nextInt(4)) { append('/').append(segments.random(random)) }
+                append('/').append(files.random(random))
+                if (random.nextBoolean()) {
+                    append('?')
+                    append((0 until 1 + random.nextInt(3)).joinToString("&") { "${params.random(random)}=${random.nextInt(1000)}" })
+                }
+            }
+        }
+    }
+
+    @Test
+    fun testCompiledMatcherAgreesWithLegacyLookup() {
+        val matcher = matcher(customRules, whitelist)
+        val urls = sampleUrls(2_000)
+
+        for (url in urls) {
+            assertEquals(url, legacyShouldBlock(url, customRules, whitelist), matcher.shouldBlock(url.lowercase()))
+        }
+        assertTrue(urls.any { matcher.shouldBlock(it.lowercase()) })
+    }
+
+    @Ignore("性能基准，需要时手动运行")
+    @Test
+    fun benchmarkThroughputOn10kUrls() {
+        val urls = sampleUrls(10_000)
+        val matcher = matcher(customRules, whitelist)
+
+        fun requestsPerSecond(check: (String) -> Boolean): Double {
+            repeat(2) { urls.forEach { check(it) } }
+            val rounds = 5
+            val start = System.nanoTime()
+            repeat(rounds) { urls.forEach { check(it) } }
+            return rounds * urls.size / ((System.nanoTime() - start) / 1_000_000_000.0)
+        }
+
+        val legacy = requestsPerSecond { legacyShouldBlock(it, customRules, whitelist) }
+        val compiled = requestsPerSecond { matcher.shouldBlock(it.lowercase()) }
+        assertTrue("编译后的匹配器应快于逐条查找，旧 $legacy req/s，新 $compiled req/s", compiled > legacy)
+    }
+}
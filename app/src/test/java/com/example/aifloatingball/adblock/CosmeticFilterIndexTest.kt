@@ -0,0 +1,110 @@
+package com.example.aifloatingball.adblock
+
+import org.junit.Assert.*
+import org.junit.Test
+
+/**
+ * 元素隐藏规则索引测试
+ */
+class CosmeticFilterIndexTest {
+
+    private fun index(vararg rules: String) = CosmeticFilterIndex().apply { addRules(rules.asSequence()) }
+
+    @Test
+    fun testGenericRulesApplyToEveryHost() {
+        val index = index("##.ad-banner", "##div[id^=\"div-gpt-ad\"]")
+
+        assertEquals(listOf(".ad-banner", "div[id^=\"div-gpt-ad\"]"), index.selectorsFor("news.example.com"))
+        assertEquals(index.selectorsFor("news.example.com"), index.selectorsFor("other.org"))
+        assertEquals(
+            ".ad-banner{display:none!important}\ndiv[id^=\"div-gpt-ad\"]{display:none!important}\n",
+            index.genericStylesheet()
+        )
+        assertEquals(index.genericStylesheet(), index.stylesheetFor("other.org"))
+        assertEquals(2, index.ruleCount)
+    }
+
+    @Test
+    fun testHostSpecificRulesMatchDomainAndSubdomains() {
+        val index = index("##.ad-banner", "example.com,foo.org##.sidebar-ad", "~example.com##.promo")
+
+        assertEquals(listOf(".ad-banner", ".sidebar-ad"), index.selectorsFor("www.example.com").sorted())
+        assertEquals(listOf(".ad-banner", ".promo", ".sidebar-ad"), index.selectorsFor("foo.org").sorted())
+        assertEquals(listOf(".ad-banner", ".promo"), index.selectorsFor("badexample.com").sorted())
+        // ~域名 排除的通用规则对子域名同样不生效
+        assertFalse(index.selectorsFor("example.com").contains(".promo"))
+        assertFalse(index.stylesheetFor("example.com").contains(".promo"))
+
+        assertTrue(index.stylesheetFor("WWW.Example.com").contains(".sidebar-ad{display:none!important}"))
+        assertFalse(index.stylesheetFor("other.org").contains(".sidebar-ad"))
+        assertFalse(index.genericStylesheet().contains(".sidebar-ad"))
+    }
+
+    @Test
+    fun testExceptionRulesRemoveSelectors() {
+        val index = index(
+            "##.ad-banner",
+            "##.sponsored",
+            "example.com##.sidebar-ad",
+            "example.com#@#.ad-banner",
+            "m.example.com#@#.sidebar-ad",
+            "#@#.sponsored"
+        )
+
+        assertEquals(listOf(".sidebar-ad"), index.selectorsFor("www.example.com"))
+        assertTrue(index.selectorsFor("m.example.com").isEmpty())
+        assertEquals("", index.stylesheetFor("m.example.com"))
+        // 不带域名的例外全局生效
+        assertEquals(listOf(".ad-banner"), index.selectorsFor("other.org"))
+        assertFalse(index.genericStylesheet().contains(".sponsored"))
+    }
+
+    @Test
+    fun testUnsupportedRulesAreIgnored() {
+        val index = CosmeticFilterIndex()
+
+        assertFalse(index.addRule("! comment ##.x"))
+        assertFalse(index.addRule("example.com#?#.ad:-abp-has(.x)"))
+        assertFalse(index.addRule("example.com#$#abort-on-property-read x"))
+        assertFalse(index.addRule("##.x:-abp-contains(ad)"))
+        assertFalse(index.addRule("||ads.example.com^"))
+        assertTrue(index.addRule("##.ok"))
+        assertEquals(1, index.ruleCount)
+    }
+
+    @Test
+    fun testDocumentStartTable() {
+        val index = index(
+            "##.a",
+            "~foo.org##.b",
+            "example.com##.c",
+            "example.com#@#.a",
+            "##.gone",
+            "#@#.gone",
+            "news.example.com,foo.org##div[title=\"x\"]"
+        )
+
+        assertEquals(
+            "{\"s\":[\".a\",\".b\",\".c\",\"div[title=\\\"x\\\"]\"],\"g\":[0,1]," +
+                "\"d\":{\"example.com\":[2],\"foo.org\":[3],\"news.example.com\":[3]}," +
+                "\"x\":{\"example.com\":[0],\"foo.org\":[1]}}",
+            index.documentStartTable()
+        )
+
+        index.addRule("other.org##.late")
+        assertTrue(index.documentStartTable().contains("\"other.org\":[4]"))
+    }
+
+    @Test
+    fun testStylesheetCacheIsInvalidatedByNewRules() {
+        val index = index("##.ad-banner")
+        assertFalse(index.stylesheetFor("example.com").contains(".late"))
+
+        index.addRule("example.com##.late")
+        assertTrue(index.stylesheetFor("example.com").contains(".late"))
+
+        index.clear()
+        assertEquals("", index.stylesheetFor("example.com"))
+        assertEquals(0, index.ruleCount)
+    }
+}
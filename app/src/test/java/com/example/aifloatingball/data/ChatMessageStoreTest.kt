@@ -0,0 +1,159 @@
+package com.example.aifloatingball.data
+
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Ignore
+import org.junit.Test
+import java.io.File
+import java.nio.file.Files
+
+/**
+ * 聊天消息分段存储测试
+ *
+ * 追加耗时与已有消息数无关的基准依赖机器负载，标记为 @Ignore，只在手动调优时运行。
+ */
+class ChatMessageStoreTest {
+
+    private lateinit var rootDir: File
+    private lateinit var store: ChatMessageStore
+
+    @Before
+    fun setUp() {
+        rootDir = Files.createTempDirectory("chat-store").toFile()
+        store = ChatMessageStore(rootDir)
+    }
+
+    @After
+    fun tearDown() {
+        rootDir.deleteRecursively()
+    }
+
+    private fun message(i: Int) = ChatDataManager.ChatMessage(
+        role = if (i % 2 == 0) "user" else "assistant",
+        content = "第 $i 条消息\n包含换行和 \"引号\"",
+        timestamp = 1_000L + i,
+        messageId = "m$i"
+    )
+
+    @Test
+    fun testAppendAndReadBack() {
+        store.createSession("DEEPSEEK", "s1")
+        store.append("DEEPSEEK", "s1", message(0))
+        store.append("DEEPSEEK", "s1", message(1))
+        store.append("KIMI", "s/2", message(2))
+
+        val reopened = ChatMessageStore(rootDir)
+        assertEquals(listOf(message(0), message(1)), reopened.readSession("DEEPSEEK", "s1"))
+        assertEquals(listOf("s/2"), reopened.sessionIds("KIMI"))
+        assertTrue(reopened.readSession("DEEPSEEK", "missing").isEmpty())
+    }
+
+    @Test
+    fun testTruncatedTailIsSkipped() {
+        store.writeSession("DEEPSEEK", "s1", listOf(message(0), message(1)))
+        val file = rootDir.walkTopDown().first { it.isFile }
+        file.appendText("{\"role\":\"user\",\"cont")
+
+        assertEquals(listOf(message(0), message(1)), store.readSession("DEEPSEEK", "s1"))
+    }
+
+    @Test
+    fun testDeleteAndClear() {
+        store.append("DEEPSEEK", "s1", message(0))
+        store.append("DEEPSEEK", "s2", message(1))
+        store.deleteSession("DEEPSEEK", "s1")
+        assertEquals(listOf("s2"), store.sessionIds("DEEPSEEK"))
+
+        store.clearService("DEEPSEEK")
+        assertTrue(store.sessionIds("DEEPSEEK").isEmpty())
+    }
+
+    @Test
+    fun testSessionsOrderedByCreationTime() {
+        store.createSession("DEEPSEEK", "new", createdAt = 3_000L)
+        store.append("DEEPSEEK", "old", message(0))
+        store.writeSession("DEEPSEEK", "migrated", listOf(message(500)))
+        // 追加消息不改变会话的先后顺序
+        store.append("DEEPSEEK", "old", message(1))
+        store.append("DEEPSEEK", "new", message(2))
+
+        assertEquals(listOf("old", "migrated", "new"), ChatMessageStore(rootDir).sessionIds("DEEPSEEK"))
+    }
+
+    @Test
+    fun testReadHeaderWithoutReadingMessages() {
+        store.createSession("DEEPSEEK", "s1", createdAt = 500L)
+        store.append("DEEPSEEK", "s1", message(1))
+        store.append("DEEPSEEK", "s1", message(2))
+        store.append("DEEPSEEK", "s1", message(3))
+        val file = rootDir.walkTopDown().first { it.isFile }
+        file.appendText("{\"role\":\"user\",\"cont")
+
+        val header = store.readHeader("DEEPSEEK", "s1")!!
+        assertEquals(500L, header.createdAt)
+        assertEquals(message(3).timestamp, header.updatedAt)
+        assertEquals(message(2).content, header.firstUserMessage)
+        assertEquals(listOf(message(1), message(2), message(3)), store.readSession("DEEPSEEK", "s1"))
+
+        assertNull(store.readHeader("DEEPSEEK", "missing"))
+        val empty = ChatMessageStore(rootDir).apply { createSession("KIMI", "empty", createdAt = 700L) }.readHeader("KIMI", "empty")!!
+        assertEquals(700L, empty.updatedAt)
+        assertNull(empty.firstUserMessage)
+    }
+
+    @Test
+    fun testLegacyFileWithoutHeader() {
+        val dir = File(rootDir, "DEEPSEEK").apply { mkdirs() }
+        val gson = com.google.gson.Gson()
+        File(dir, "legacy.log").writeText(gson.toJson(message(7)) + "\n" + gson.toJson(message(8)) + "\n")
+        store.append("DEEPSEEK", "later", message(9))
+
+        assertEquals(listOf("legacy", "later"), store.sessionIds("DEEPSEEK"))
+        val header = store.readHeader("DEEPSEEK", "legacy")!!
+        assertEquals(message(7).timestamp, header.createdAt)
+        assertEquals(message(8).timestamp, header.updatedAt)
+        assertEquals(message(8).content, header.firstUserMessage)
+        assertEquals(listOf(message(7), message(8)), store.readSession("DEEPSEEK", "legacy"))
+    }
+
+    @Test
+    fun testLastMessageSpanningSeveralTailChunks() {
+        val long = ChatDataManager.ChatMessage("assistant", "长".repeat(20_000), 9_999L, "long")
+        store.append("DEEPSEEK", "s1", message(0))
+        store.append("DEEPSEEK", "s1", long)
+
+        assertEquals(9_999L, store.readHeader("DEEPSEEK", "s1")!!.updatedAt)
+    }
+
+    @Test
+    fun testSessionStampChangesOnAppend() {
+        store.append("DEEPSEEK", "s1", message(0))
+        val before = store.sessionStamp("DEEPSEEK", "s1")
+        store.append("DEEPSEEK", "s1", message(1))
+
+        assertNotEquals(before, store.sessionStamp("DEEPSEEK", "s1"))
+        assertEquals(mapOf("s1" to store.sessionStamp("DEEPSEEK", "s1")), store.sessionStamps("DEEPSEEK"))
+        assertNull(store.sessionStamp("DEEPSEEK", "missing"))
+    }
+
+    @Ignore("性能基准，需要时手动运行")
+    @Test
+    fun benchmarkAppendCostIndependentOfSessionSize() {
+        store.writeSession("DEEPSEEK", "small", List(10) { message(it) })
+        store.writeSession("DEEPSEEK", "large", List(10_000) { message(it) })
+
+        fun appendMs(sessionId: String): Double {
+            val rounds = 200
+            // 预热
+            repeat(20) { store.append("DEEPSEEK", sessionId, message(it)) }
+            val start = System.nanoTime()
+            repeat(rounds) { store.append("DEEPSEEK", sessionId, message(it)) }
+            return (System.nanoTime() - start) / 1_000_000.0 / rounds
+        }
+
+        val small = appendMs("small")
+        val large = appendMs("large")
+        assertTrue("追加耗时不应随会话长度增长，N=10: $small ms, N=10000: $large ms", large < small * 3 + 0.05)
+    }
+}
@@ -0,0 +1,186 @@
+package com.example.aifloatingball.manager
+
+import org.junit.Assert.*
+import org.junit.Test
+import java.util.TreeMap
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * 延迟合并写入测试：模拟群聊中多个成员同时流式回复
+ *
+ * 定时任务交给手动推进的 [ManualScheduler]，结果不受机器负载影响。
+ */
+class CoalescingFlusherTest {
+
+    /**
+     * 手动推进的时钟，到期的任务在 [advanceBy] 的调用线程中按时间顺序执行
+     */
+    private class ManualScheduler : CoalescingFlusher.Scheduler {
+        private var now = 0L
+        private var sequence = 0L
+        // 按到期时间、加入顺序排序
+        private val tasks = TreeMap<Pair<Long, Long>, () -> Unit>(compareBy<Pair<Long, Long>> { it.first }.thenBy { it.second })
+
+        @Synchronized
+        override fun schedule(delayMs: Long, task: () -> Unit) {
+            tasks[Pair(now + delayMs, sequence++)] = task
+        }
+
+        fun advanceBy(ms: Long) {
+            val target = synchronized(this) { now + ms }
+            while (true) {
+                val task = synchronized(this) {
+                    val first = tasks.firstEntry()
+                    if (first == null || first.key.first > target) {
+                        now = target
+                        return
+                    }
+                    tasks.remove(first.key)
+                    now = first.key.first
+                    first.value
+                }
+                task()
+            }
+        }
+    }
+
+    private val scheduler = ManualScheduler()
+    private val writes = ConcurrentHashMap<String, AtomicInteger>()
+
+    private fun writeCount(key: String) = writes[key]?.get() ?: 0
+
+    private fun flusher(intervalMs: Long, maxRetries: Int = CoalescingFlusher.DEFAULT_MAX_RETRIES, write: (String) -> Unit = {}) =
+        CoalescingFlusher(scheduler, intervalMs, maxRetries) { key ->
+            write(key)
+            writes.getOrPut(key) { AtomicInteger() }.incrementAndGet()
+        }
+
+    @Test
+    fun testSixMembersStreamingCauseBoundedWrites() {
+        val intervalMs = 50L
+        val flusher = flusher(intervalMs)
+        val chunksPerMember = 2000
+
+        // 六个成员轮流各收到一个片段，每轮经过 1ms
+        repeat(chunksPerMember) {
+            repeat(6) {
+                // 每个片段都会改动群聊消息，最后一条消息还会改动群聊列表
+                flusher.markDirty("group")
+                flusher.markDirty("chats")
+            }
+            scheduler.advanceBy(1)
+        }
+        // 回复结束时立即落盘
+        flusher.flush()
+
+        // 2000ms 内每 50ms 写一次，加上结束时的一次
+        val maxWrites = (chunksPerMember / intervalMs + 1).toInt()
+        assertTrue("写入次数 ${writeCount("group")} 应不超过 $maxWrites", writeCount("group") in 1..maxWrites)
+        assertEquals(writeCount("group"), writeCount("chats"))
+        assertEquals(12L * chunksPerMember, flusher.stats().marks)
+        assertFalse(flusher.hasPending())
+    }
+
+    @Test
+    fun testConcurrentMarksAreWrittenOnce() {
+        val flusher = flusher(50)
+        val chunksPerMember = 2000
+
+        val members = (1..6).map {
+            Thread {
+                repeat(chunksPerMember) {
+                    flusher.markDirty("group")
+                    flusher.markDirty("chats")
+                }
+            }.apply { start() }
+        }
+        members.forEach { it.join() }
+        // 时钟没有推进，只有结束时的一次写入
+        flusher.flush()
+
+        assertEquals(1, writeCount("group"))
+        assertEquals(1, writeCount("chats"))
+        assertEquals(12L * chunksPerMember, flusher.stats().marks)
+        assertFalse(flusher.hasPending())
+    }
+
+    @Test
+    fun testMarkedKeyIsWrittenWithinInterval() {
+        val flusher = flusher(30)
+        flusher.markDirty("a")
+        scheduler.advanceBy(29)
+        assertEquals(0, writeCount("a"))
+
+        scheduler.advanceBy(1)
+        assertEquals(1, writeCount("a"))
+
+        // 刷盘后的新变化由下一个周期写入
+        flusher.markDirty("a")
+        scheduler.advanceBy(30)
+        assertEquals(2, writeCount("a"))
+        assertFalse(flusher.hasPending())
+    }
+
+    @Test
+    fun testFlushWritesImmediatelyAndOnlyOnce() {
+        val flusher = flusher(10_000)
+        flusher.markDirty("a")
+        flusher.markDirty("b")
+        flusher.markDirty("a")
+
+        flusher.flush()
+        assertEquals(1, writeCount("a"))
+        assertEquals(1, writeCount("b"))
+
+        // 没有新变化时再刷盘不会重复写入，到期的定时任务也不会
+        flusher.flush()
+        scheduler.advanceBy(10_000)
+        assertEquals(1, writeCount("a"))
+        assertEquals(1, flusher.stats().flushes)
+    }
+
+    @Test
+    fun testFailedWriteIsRetried() {
+        val failures = AtomicInteger(1)
+        val flusher = flusher(20) { if (failures.getAndDecrement() > 0) throw IllegalStateException("写入失败") }
+
+        flusher.markDirty("a")
+        flusher.flush()
+        assertEquals(0, writeCount("a"))
+        assertTrue(flusher.hasPending())
+
+        scheduler.advanceBy(20)
+        assertEquals(1, writeCount("a"))
+        assertEquals(1L, flusher.stats().failures)
+        assertFalse(flusher.hasPending())
+    }
+
+    @Test
+    fun testRetriesBackOffAndGiveUp() {
+        val attempts = ArrayList<Long>()
+        var elapsed = 0L
+        val flusher = flusher(10, maxRetries = 3) {
+            attempts.add(elapsed)
+            throw IllegalStateException("写入失败")
+        }
+
+        flusher.markDirty("a")
+        while (elapsed < 1_000) {
+            elapsed++
+            scheduler.advanceBy(1)
+        }
+
+        // 首次写入后按 10、20、40ms 退避重试，之后放弃
+        assertEquals(listOf(10L, 20L, 40L, 80L), attempts)
+        val stats = flusher.stats()
+        assertEquals(4L, stats.failures)
+        assertEquals(1L, stats.abandoned)
+        assertFalse(flusher.hasPending())
+
+        // 再次变化时重新尝试
+        flusher.markDirty("a")
+        scheduler.advanceBy(10)
+        assertEquals(5, attempts.size)
+    }
+}
@@ -0,0 +1,142 @@
+package com.example.aifloatingball.manager
+
+import org.junit.Assert.*
+import org.junit.Test
+import kotlin.math.abs
+
+/**
+ * token 估算精度和按预算裁剪历史的测试
+ */
+class ConversationContextBuilderTest {
+
+    private val openAi = TokenEstimator(TokenEstimator.Family.OPENAI)
+    private val deepSeek = TokenEstimator(TokenEstimator.Family.DEEPSEEK)
+
+    /**
+     * cl100k_base 的实际分词结果
+     */
+    private val cl100kSamples = listOf(
+        "Hello world" to 2,
+        "The quick brown fox jumps over the lazy dog." to 10,
+        "tiktoken is great!" to 6,
+        "antidisestablishmentarianism" to 6,
+        "2 + 2 = 4" to 7,
+        "お誕生日おめでとう" to 9
+    )
+
+    @Test
+    fun testOpenAiEstimateMatchesReferenceCounts() {
+        var estimated = 0
+        var expected = 0
+        cl100kSamples.forEach { (text, count) ->
+            val estimate = openAi.estimate(text)
+            assertTrue("\"$text\" 估算 $estimate，实际 $count", abs(estimate - count) <= maxOf(1, count / 5))
+            estimated += estimate
+            expected += count
+        }
+        // 整体误差在 10% 以内
+        assertTrue(abs(estimated - expected) <= expected / 10)
+    }
+
+    @Test
+    fun testCjkRatioPerFamily() {
+        val chinese = "今天天气很好我们一起去公园散步吧".repeat(50)
+
+        // DeepSeek 官方换算：1 个中文字符约 0.6 token
+        val expected = chinese.length * 0.6
+        assertEquals(expected, deepSeek.estimate(chinese).toDouble(), expected * 0.05)
+
+        // 同一段中文，中文词表明显比 cl100k 省 token；英文差别不大
+        assertTrue(deepSeek.estimate(chinese) < openAi.estimate(chinese) * 0.7)
+        val english = "The quick brown fox jumps over the lazy dog."
+        assertTrue(abs(deepSeek.estimate(english) - openAi.estimate(english)) <= 2)
+
+        assertEquals(TokenEstimator.Family.DEEPSEEK, TokenEstimator.Family.forService("DEEPSEEK"))
+        assertEquals(TokenEstimator.Family.CHINESE, TokenEstimator.Family.forService("QIANWEN"))
+        assertEquals(TokenEstimator.Family.OPENAI, TokenEstimator.Family.forService(null))
+    }
+
+    @Test
+    fun testLongConversationFitsBudgetAndKeepsRecentTurns() {
+        val store = HashMap<String, String>()
+        val builder = ConversationContextBuilder(
+            ConversationContextBuilder.Budget(maxTokens = 2000),
+            { store[it] }, { k, v -> store[k] = v }
+        )
+        val turns = conversation(60)
+
+        val result = builder.build("s1", turns, openAi, reservedTokens = 100)
+        val report = result.report
+        val sent = openAi.estimateMessages(result.messages)
+
+        assertTrue("实际 $sent 超出预算", sent + 100 <= 2000)
+        assertTrue("裁剪后 ${report.finalTokens} / 原始 ${report.originalTokens}", report.finalTokens * 4 < report.originalTokens)
+        assertEquals(sent, report.finalTokens)
+
+        // 最近的轮次原样保留，更早的压缩成摘要
+        assertEquals(turns.last().content, result.messages.last()["content"])
+        assertEquals(turns[turns.size - 2].content, result.messages[result.messages.size - 2]["content"])
+        assertTrue(result.messages.first()["content"]!!.startsWith("【更早的对话摘要】"))
+        assertEquals(turns.size, report.entries.size)
+        assertTrue(report.entries.first().decision == ConversationContextBuilder.Decision.SUMMARIZED)
+        assertTrue(store.containsKey("s1"))
+    }
+
+    @Test
+    fun testShortConversationIsSentVerbatim() {
+        val builder = ConversationContextBuilder(ConversationContextBuilder.Budget(), { null }, { _, _ -> })
+        val turns = conversation(4)
+
+        val result = builder.build("s2", turns, openAi)
+        assertEquals(turns.map { it.content }, result.messages.map { it["content"] })
+        assertEquals(result.report.originalTokens, result.report.finalTokens)
+    }
+
+    @Test
+    fun testSummaryIsReusedAndExtendedFromStore() {
+        val store = HashMap<String, String>()
+        val budget = ConversationContextBuilder.Budget(maxTokens = 1500)
+        val turns = conversation(40)
+        ConversationContextBuilder(budget, { store[it] }, { k, v -> store[k] = v }).build("s3", turns, openAi)
+        val saved = store["s3"]
+
+        // 新进程只有持久化的摘要；同样的历史直接命中缓存
+        val reloaded = ConversationContextBuilder(budget, { store[it] }, { k, v -> store[k] = v })
+        val same = reloaded.build("s3", turns, openAi)
+        assertTrue(same.report.summaryFromCache)
+        assertEquals(saved, store["s3"])
+
+        // 又聊了几轮，只把新挤出窗口的轮次追加到摘要里
+        val more = reloaded.build("s3", turns + conversation(6, offset = 40), openAi)
+        assertTrue(more.report.summaryFromCache)
+        val summarized = { r: ConversationContextBuilder.Result ->
+            r.report.entries.count { it.decision == ConversationContextBuilder.Decision.SUMMARIZED }
+        }
+        assertTrue(summarized(more) > summarized(same))
+        assertNotEquals(saved, store["s3"])
+        assertTrue(openAi.estimateMessages(more.messages) <= 1500)
+    }
+
+    @Test
+    fun testOversizedRecentTurnIsTruncated() {
+        val builder = ConversationContextBuilder(
+            ConversationContextBuilder.Budget(maxTokens = 1000, maxTurnTokens = 300), { null }, { _, _ -> }
+        )
+        val huge = ConversationContextBuilder.Turn("big", "assistant", "这是一段非常长的回答。".repeat(400))
+        val result = builder.build("s4", listOf(ConversationContextBuilder.Turn("q", "user", "请详细解释"), huge), openAi)
+
+        assertEquals(ConversationContextBuilder.Decision.TRUNCATED, result.report.entries.last().decision)
+        assertTrue(openAi.estimate(result.messages.last()["content"]!!) <= 330)
+        assertTrue(result.messages.last()["content"]!!.contains("省略"))
+    }
+
+    private fun conversation(rounds: Int, offset: Int = 0): List<ConversationContextBuilder.Turn> {
+        val answer = "这是关于这个问题的详细回答，包含多个段落和一些 English words mixed in。".repeat(12)
+        return (offset until offset + rounds).flatMap { i ->
+            listOf(
+                ConversationContextBuilder.Turn("u$i", "user", "问题 $i：请解释一下第 $i 个概念是什么？"),
+                ConversationContextBuilder.Turn("a$i", "assistant", "回答 $i。$answer")
+            )
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.example.aifloatingball.manager
+
+import com.example.aifloatingball.manager.FanOutScheduler.Event
+import kotlinx.coroutines.awaitCancellation
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.toList
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import org.junit.Assert.*
+import org.junit.Test
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * 群聊并发调度测试，请求由假的 [FanOutScheduler.StreamSource] 模拟
+ */
+class FanOutSchedulerTest {
+
+    private fun target(id: String, type: AIServiceType = AIServiceType.DEEPSEEK) =
+        FanOutScheduler.Target(id, type, "hi")
+
+    // 每个成员第几次被请求
+    private val calls = ConcurrentHashMap<String, AtomicInteger>()
+
+    private fun callNumber(target: FanOutScheduler.Target) =
+        calls.getOrPut(target.memberId) { AtomicInteger() }.incrementAndGet()
+
+    @Test
+    fun testMembersBeyondLimitAreQueuedNotDropped() = runBlocking {
+        val running = AtomicInteger()
+        val peak = AtomicInteger()
+        val scheduler = FanOutScheduler(
+            source = { target, callback ->
+                peak.accumulateAndGet(running.incrementAndGet(), ::maxOf)
+                delay(30)
+                callback.onChunkReceived("来自${target.memberId}")
+                callback.onComplete("来自${target.memberId}")
+                running.decrementAndGet()
+            },
+            config = FanOutScheduler.Config(maxConcurrent = 2, maxPerProvider = 10)
+        )
+
+        val targets = (1..5).map { target("ai$it") }
+        val completed = scheduler.fanOut(targets).toList().filterIsInstance<Event.Completed>()
+
+        assertEquals((1..5).map { "ai$it" }.toSet(), completed.map { it.memberId }.toSet())
+        assertEquals("来自ai3", completed.first { it.memberId == "ai3" }.content)
+        assertEquals("并发不应超过上限", 2, peak.get())
+    }
+
+    @Test
+    fun testPerProviderLimit() = runBlocking {
+        val running = ConcurrentHashMap<AIServiceType, AtomicInteger>()
+        val peak = AtomicInteger()
+        val scheduler = FanOutScheduler(
+            source = { target, callback ->
+                val counter = running.getOrPut(target.serviceType) { AtomicInteger() }
+                if (target.serviceType == AIServiceType.KIMI) peak.accumulateAndGet(counter.incrementAndGet(), ::maxOf)
+                delay(20)
+                if (target.serviceType == AIServiceType.KIMI) counter.decrementAndGet()
+                callback.onComplete("ok")
+            },
+            config = FanOutScheduler.Config(maxConcurrent = 6, maxPerProvider = 1)
+        )
+
+        val targets = (1..3).map { target("kimi$it", AIServiceType.KIMI) } + target("claude", AIServiceType.CLAUDE)
+        val events = scheduler.fanOut(targets).toList()
+
+        assertEquals(4, events.count { it is Event.Completed })
+        assertEquals(1, peak.get())
+    }
+
+    @Test
+    fun testHedgedRequestWinsOverSlowFirstAttempt() = runBlocking {
+        val cancelled = AtomicInteger()
+        val scheduler = FanOutScheduler(
+            source = { target, callback ->
+                if (callNumber(target) == 1) {
+                    try {
+                        delay(5_000)
+                        callback.onComplete("慢")
+                    } finally {
+                        cancelled.incrementAndGet()
+                    }
+                } else {
+                    callback.onChunkReceived("快")
+                    callback.onComplete("快")
+                }
+            },
+            config = FanOutScheduler.Config(hedgeDelayMs = 50, firstTokenTimeoutMs = 2_000)
+        )
+
+        val events = scheduler.fanOut(listOf(target("ai"))).toList()
+        val completed = events.last() as Event.Completed
+
+        assertEquals("快", completed.content)
+        assertEquals(2, completed.attempts)
+        assertEquals("慢的请求应被取消", 1, cancelled.get())
+        assertEquals(listOf("快"), events.filterIsInstance<Event.Chunk>().map { it.text })
+    }
+
+    @Test
+    fun testFirstTokenTimeoutFailsOnlyThatMember() = runBlocking {
+        val scheduler = FanOutScheduler(
+            source = { target, callback ->
+                if (target.memberId == "stuck") awaitCancellation()
+                callback.onChunkReceived("正常")
+                callback.onComplete("正常")
+            },
+            config = FanOutScheduler.Config(firstTokenTimeoutMs = 100, hedgeDelayMs = 0)
+        )
+
+        val events = scheduler.fanOut(listOf(target("stuck"), target("ok", AIServiceType.CLAUDE))).toList()
+
+        val failed = events.filterIsInstance<Event.Failed>().single()
+        assertEquals("stuck", failed.memberId)
+        assertTrue(failed.timedOut)
+        assertEquals("ok", events.filterIsInstance<Event.Completed>().single().memberId)
+    }
+
+    @Test
+    fun testErrorBeforeFirstTokenRetriesImmediately() = runBlocking {
+        val scheduler = FanOutScheduler(
+            source = { target, callback ->
+                when (callNumber(target)) {
+                    1 -> callback.onError("连接被重置")
+                    else -> {
+                        callback.onChunkReceived("第二次")
+                        callback.onComplete("第二次")
+                    }
+                }
+            },
+            config = FanOutScheduler.Config(hedgeDelayMs = 0)
+        )
+
+        val completed = scheduler.fanOut(listOf(target("ai"))).toList().last() as Event.Completed
+        assertEquals("第二次", completed.content)
+        assertEquals(2, completed.attempts)
+
+        // 超过最大请求数后以最后一次的错误失败
+        val failing = FanOutScheduler(
+            source = { _, callback -> callback.onError("额度不足") },
+            config = FanOutScheduler.Config(hedgeDelayMs = 0, maxAttempts = 2)
+        )
+        val failed = failing.fanOut(listOf(target("ai"))).toList().last() as Event.Failed
+        assertEquals("额度不足", failed.error)
+        assertFalse(failed.timedOut)
+        assertEquals(2, failed.attempts)
+    }
+
+    @Test
+    fun testCancellingCollectorCancelsInFlightRequests() = runBlocking {
+        val started = AtomicInteger()
+        val cancelled = AtomicInteger()
+        val scheduler = FanOutScheduler(
+            source = { _, callback ->
+                started.incrementAndGet()
+                try {
+                    callback.onChunkReceived("开头")
+                    awaitCancellation()
+                } finally {
+                    cancelled.incrementAndGet()
+                }
+            },
+            config = FanOutScheduler.Config(maxPerProvider = 3)
+        )
+
+        val job = launch { scheduler.fanOut((1..3).map { target("ai$it") }).collect {} }
+        while (started.get() < 3) delay(10)
+        job.cancel()
+        job.join()
+
+        assertEquals(3, cancelled.get())
+    }
+}
@@ -0,0 +1,118 @@
+package com.example.aifloatingball.manager
+
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Test
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * 图标请求合并与失败缓存测试：模拟列表滚动时多个控件同时请求同一个图标
+ */
+class IconRequestGateTest {
+
+    private val scope = CoroutineScope(Dispatchers.Default + SupervisorJob())
+    private var now = 0L
+
+    private fun gate(ttlMs: Long = 1000) = IconRequestGate(scope, ttlMs) { now }
+
+    @After
+    fun tearDown() {
+        scope.cancel()
+    }
+
+    @Test
+    fun testConcurrentRequestsShareOneLoad() = runBlocking {
+        val gate = gate()
+        val loads = AtomicInteger()
+        val release = CompletableDeferred<Unit>()
+
+        val callers = (1..32).map {
+            async(Dispatchers.Default) {
+                gate.run("url:96:https://a/icon.png", failureKey = "https://a/icon.png") {
+                    loads.incrementAndGet()
+                    release.await()
+                    "bitmap"
+                }
+            }
+        }
+        // 等所有调用方都挂在同一个加载上再放行
+        withTimeout(5000) {
+            while (gate.stats().started + gate.stats().coalesced < 32) Thread.sleep(1)
+        }
+        release.complete(Unit)
+
+        assertTrue(callers.awaitAll().all { it == "bitmap" })
+        assertEquals(1, loads.get())
+        val stats = gate.stats()
+        assertEquals(1, stats.started)
+        assertEquals(31, stats.coalesced)
+        assertEquals(0, stats.inFlight)
+    }
+
+    @Test
+    fun testFinishedLoadIsNotReused() = runBlocking {
+        val gate = gate()
+        val loads = AtomicInteger()
+        repeat(3) {
+            assertEquals("ok", gate.run("k") { loads.incrementAndGet(); "ok" })
+        }
+        // 结果的缓存由调用方负责，完成后的键会重新加载
+        assertEquals(3, loads.get())
+    }
+
+    @Test
+    fun testFailedUrlIsSkippedUntilTtlExpires() = runBlocking {
+        val gate = gate(ttlMs = 1000)
+        val loads = AtomicInteger()
+        val failing: suspend () -> String? = { loads.incrementAndGet(); null }
+
+        assertNull(gate.run("url:48:x", failureKey = "x", load = failing))
+        // 同一来源的其他尺寸也直接跳过
+        assertNull(gate.run("url:96:x", failureKey = "x", load = failing))
+        assertTrue(gate.isFailed("x"))
+        assertEquals(1, loads.get())
+        assertEquals(1, gate.stats().negativeHits)
+
+        now += 1001
+        assertFalse(gate.isFailed("x"))
+        assertEquals("ok", gate.run("url:48:x", failureKey = "x") { loads.incrementAndGet(); "ok" })
+        assertEquals(2, loads.get())
+    }
+
+    @Test
+    fun testExceptionCountsAsFailure() = runBlocking {
+        val gate = gate()
+        val result: String? = gate.run("k") { throw IllegalStateException("boom") }
+        assertNull(result)
+        assertTrue(gate.isFailed("k"))
+        gate.clearFailures()
+        assertFalse(gate.isFailed("k"))
+    }
+
+    @Test
+    fun testCancelledCallerDoesNotCancelOthers() = runBlocking {
+        val gate = gate()
+        val release = CompletableDeferred<Unit>()
+        val load: suspend () -> String? = { release.await(); "shared" }
+
+        val first = async(Dispatchers.Default) { gate.run("k", load = load) }
+        val second = async(Dispatchers.Default) { gate.run("k", load = load) }
+        withTimeout(5000) {
+            while (gate.stats().started + gate.stats().coalesced < 2) Thread.sleep(1)
+        }
+        first.cancel()
+        release.complete(Unit)
+
+        assertEquals("shared", second.await())
+        assertFalse(gate.isFailed("k"))
+    }
+}
@@ -0,0 +1,72 @@
+package com.example.aifloatingball.manager
+
+import org.junit.Assert.*
+import org.junit.Test
+import kotlin.random.Random
+
+/**
+ * 流式表情过滤测试：逐片段处理的结果必须与一次性清理完整文本一致
+ */
+class StreamingEmojiFilterTest {
+
+    private val grinning = String(Character.toChars(0x1F600))
+    private val heart = String(Character.toChars(0x1F496))
+    // 数学字母在辅助平面但不是表情，需要保留
+    private val mathBold = String(Character.toChars(0x1D400))
+
+    private fun stream(chunks: List<String>): Pair<List<String>, String> {
+        val filter = StreamingEmojiFilter()
+        val partials = chunks.map { filter.append(it) }
+        return Pair(partials, filter.finish())
+    }
+
+    @Test
+    fun testCleanRemovesEmojisAndNames() {
+        assertEquals("你好，世界！ ok", StreamingEmojiFilter.clean("  你好，世界！$grinning\n\n ok :smile: $heart "))
+        assertEquals("2024-01-01 a:b", StreamingEmojiFilter.clean("2024-01-01 a:b"))
+        assertEquals("x${mathBold}y", StreamingEmojiFilter.clean("x${mathBold}y"))
+        // 落单的代理字符一并去掉
+        assertEquals("ab", StreamingEmojiFilter.clean("a\uD83Db\uDE00"))
+    }
+
+    @Test
+    fun testBoundariesSplitAcrossChunks() {
+        // 代理对被拆在两个片段里
+        val (partials, result) = stream(listOf("好$grinning".dropLast(1), grinning.takeLast(1) + "的"))
+        assertEquals(listOf("好", "好的"), partials)
+        assertEquals("好的", result)
+
+        // :name: 跨片段，闭合前不输出
+        val (namePartials, nameResult) = stream(listOf("看 :thu", "mbs", "_up: 好"))
+        assertEquals(listOf("看", "看", "看 好"), namePartials)
+        assertEquals("看 好", nameResult)
+
+        // 没有闭合的 :name 在结束时按普通文本输出
+        assertEquals("比分 3:2", stream(listOf("比分 3", ":2")).second)
+    }
+
+    @Test
+    fun testRandomChunkingMatchesFullClean() {
+        val random = Random(21)
+        val pieces = listOf("a", "Z", "9", "_", ":", ":", " ", "\n", "\t", "-", "，", "好", grinning, heart, mathBold,
+            "\uD83D", "\uDE00", ":ok:", ":smile_2:")
+
+        repeat(2000) {
+            val text = buildString { repeat(random.nextInt(0, 40)) { append(pieces.random(random)) } }
+            val chunks = ArrayList<String>()
+            var start = 0
+            while (start < text.length) {
+                // 切分点可能落在代理对中间
+                val end = minOf(text.length, start + random.nextInt(1, 6))
+                chunks.add(text.substring(start, end))
+                start = end
+            }
+
+            val (partials, result) = stream(chunks)
+            assertEquals("文本: $text", StreamingEmojiFilter.clean(text), result)
+            // 中间结果只会在末尾追加，界面上不会回退
+            partials.forEach { assertTrue(result.startsWith(it)) }
+            partials.zipWithNext().forEach { (a, b) -> assertTrue(b.startsWith(a)) }
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.example.aifloatingball.network
+
+import com.example.aifloatingball.manager.AIApiManager.AIServiceConfig
+import com.example.aifloatingball.manager.AIApiManager.StreamingCallback
+import com.example.aifloatingball.manager.AIServiceType
+import okhttp3.mockwebserver.MockResponse
+import okhttp3.mockwebserver.MockWebServer
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+import java.util.concurrent.TimeUnit
+
+/**
+ * SSE 解析器与流式引擎测试（引擎部分使用本地 MockWebServer）
+ */
+class AIStreamingEngineTest {
+
+    private lateinit var server: MockWebServer
+    private val engine = AIStreamingEngine()
+
+    private class RecordingCallback : StreamingCallback {
+        val chunks = mutableListOf<String>()
+        var complete: String? = null
+        var error: String? = null
+
+        override fun onChunkReceived(chunk: String) { chunks.add(chunk) }
+        override fun onComplete(fullResponse: String) { complete = fullResponse }
+        override fun onError(error: String) { this.error = error }
+    }
+
+    @Before
+    fun setUp() {
+        server = MockWebServer()
+        server.start()
+    }
+
+    @After
+    fun tearDown() {
+        server.shutdown()
+    }
+
+    private fun config(type: AIServiceType, name: String = type.name) = AIServiceConfig(
+        type = type,
+        name = name,
+        apiUrl = server.url("/v1/chat").toString(),
+        apiKey = "test-key",
+        model = "test-model"
+    )
+
+    private fun openAiEvent(content: String) =
+        "data: {\"choices\":[{\"delta\":{\"content\":\"$content\"}}]}\n\n"
+
+    private fun sseResponse(body: String) = MockResponse()
+        .setHeader("Content-Type", "text/event-stream; charset=utf-8")
+        .setBody(body)
+
+    @Test
+    fun testParserHandlesMultiLineDataEventsAndLineEndings() {
+        val events = mutableListOf<Pair<String?, String>>()
+        val parser = SseParser { event, data -> events.add(event to data) }
+        val stream = ": keep-alive\r\n" +
+            "event: content_block_delta\r\n" +
+            "data: first\r\n" +
+            "data:second\r\n\r\n" +
+            "id: 7\n" +
+            "retry: 3000\n" +
+            "data: {\"a\":1}\n\n" +
+            "data: tail"
+        val bytes = stream.toByteArray()
+        // 逐字节送入，验证跨读取边界的行和 \r\n
+        bytes.forEachIndexed { i, _ -> parser.feed(bytes, i, 1) }
+        parser.finish()
+
+        assertEquals(
+            listOf("content_block_delta" to "first\nsecond", null to "{\"a\":1}", null to "tail"),
+            events
+        )
+        assertEquals("7", parser.lastEventId)
+        assertEquals(3000L, parser.retryMillis)
+    }
+
+    @Test
+    fun testParserKeepsUtf8SplitAcrossReads() {
+        val events = mutableListOf<String>()
+        val parser = SseParser { _, data -> events.add(data) }
+        val bytes = "data: 你好，世界\n\n".toByteArray()
+        // 在“好”字的第二个字节处切开
+        val split = "data: 你".toByteArray().size + 1
+        parser.feed(bytes, 0, split)
+        parser.feed(bytes, split, bytes.size - split)
+        assertEquals(listOf("你好，世界"), events)
+    }
+
+    @Test
+    fun testOpenAiCompatibleStream() {
+        server.enqueue(sseResponse(openAiEvent("你好") + ": ping\n\n" + openAiEvent("，世界") + "data: [DONE]\n\n"))
+
+        val callback = RecordingCallback()
+        val metrics = engine.execute(OpenAiCompatibleAdapter(), config(AIServiceType.CHATGPT), "hi",
+            listOf(mapOf("role" to "assistant", "content" to "earlier")), callback)
+
+        assertNull(callback.error)
+        assertEquals("你好，世界", callback.complete)
+        assertEquals("你好，世界", callback.chunks.joinToString(""))
+        assertNotNull(metrics)
+        assertEquals("两个内容事件加结束标记", 3, metrics!!.events)
+        assertTrue(metrics.firstTokenMs in 0..metrics.totalMs)
+        assertTrue(AIStreamingEngine.latencyStats(AIServiceType.CHATGPT)!!.count >= 1)
+
+        val request = server.takeRequest()
+        assertEquals("Bearer test-key", request.getHeader("Authorization"))
+        val body = request.body.readUtf8()
+        assertTrue(body.contains("\"stream\":true"))
+        assertTrue(body.contains("\"content\":\"earlier\""))
+        assertTrue(body.contains("\"content\":\"hi\""))
+    }
+
+    @Test
+    fun testClaudeEvents() {
+        server.enqueue(sseResponse(
+            "event: message_start\ndata: {\"type\":\"message_start\"}\n\n" +
+                "event: content_block_delta\ndata: {\"type\":\"content_block_delta\",\"delta\":{\"type\":\"text_delta\",\"text\":\"Hello\"}}\n\n" +
+                "event: content_block_delta\ndata: {\"type\":\"content_block_delta\",\"delta\":{\"type\":\"text_delta\",\"text\":\" there\"}}\n\n" +
+                "event: message_stop\ndata: {\"type\":\"message_stop\"}\n\n"
+        ))
+
+        val callback = RecordingCallback()
+        engine.execute(ClaudeAdapter(), config(AIServiceType.CLAUDE), "hi", emptyList(), callback)
+
+        assertEquals("Hello there", callback.complete)
+        val request = server.takeRequest()
+        assertEquals("test-key", request.getHeader("x-api-key"))
+        assertEquals("2023-06-01", request.getHeader("anthropic-version"))
+    }
+
+    @Test
+    fun testNonStreamingJsonFallbackAndErrors() {
+        server.enqueue(MockResponse()
+            .setHeader("Content-Type", "application/json")
+            .setBody("{\"choices\":[{\"message\":{\"content\":\"完整回答\"}}]}"))
+        server.enqueue(MockResponse()
+            .setResponseCode(401)
+            .setBody("{\"error\":{\"message\":\"invalid key\"}}"))
+        server.enqueue(sseResponse("data: {\"error\":{\"message\":\"quota exceeded\"}}\n\n"))
+
+        val json = RecordingCallback()
+        engine.execute(DoubaoAdapter(), config(AIServiceType.DOUBAO, "豆包Pro"), "hi", emptyList(), json)
+        assertEquals(listOf("完整回答"), json.chunks)
+        assertEquals("完整回答", json.complete)
+
+        val unauthorized = RecordingCallback()
+        assertNull(engine.execute(DeepSeekAdapter(), config(AIServiceType.DEEPSEEK), "hi", emptyList(), unauthorized))
+        assertEquals("认证失败：invalid key", unauthorized.error)
+
+        val inStream = RecordingCallback()
+        engine.execute(OpenAiCompatibleAdapter(), config(AIServiceType.KIMI), "hi", emptyList(), inStream)
+        assertEquals("quota exceeded", inStream.error)
+        assertNull(inStream.complete)
+    }
+
+    @Test
+    fun testRequestsReuseConnectionAndMeasureFirstToken() {
+        // 第一个事件立即返回，其余内容限速发送，首字耗时应明显小于总耗时
+        val tail = (1..20).joinToString("") { openAiEvent("块$it") }
+        server.enqueue(sseResponse(openAiEvent("首") + tail + "data: [DONE]\n\n")
+            .throttleBody(256, 20, TimeUnit.MILLISECONDS))
+        server.enqueue(sseResponse(openAiEvent("再次") + "data: [DONE]\n\n"))
+
+        val first = RecordingCallback()
+        val metrics = engine.execute(OpenAiCompatibleAdapter(), config(AIServiceType.CHATGPT), "hi", emptyList(), first)!!
+        assertTrue(first.complete!!.startsWith("首块1"))
+        assertTrue("首字 ${metrics.firstTokenMs}ms 应早于结束 ${metrics.totalMs}ms", metrics.firstTokenMs < metrics.totalMs)
+
+        val second = RecordingCallback()
+        engine.execute(OpenAiCompatibleAdapter(), config(AIServiceType.CHATGPT), "hi", emptyList(), second)
+        assertEquals("再次", second.complete)
+
+        assertEquals(0, server.takeRequest().sequenceNumber)
+        assertEquals("第二个请求应复用同一连接", 1, server.takeRequest().sequenceNumber)
+    }
+}
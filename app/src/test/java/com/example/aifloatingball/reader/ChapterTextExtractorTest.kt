@@ -0,0 +1,51 @@
+package com.example.aifloatingball.reader
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class ChapterTextExtractorTest {
+
+    private val paragraph = "夜色渐深，城外的风一阵紧似一阵，他站在城头望着远处连绵的灯火，久久没有说话。"
+
+    @Test
+    fun extractsContentTitleAndLinks() {
+        val html = """
+            <html><head><title>第十二章 夜雨-某某小说网</title><script>var a = "<div id='content'>假的</div>";</script></head>
+            <body>
+              <h1>第十二章 夜雨</h1>
+              <div id="content"><div class="ad">广告</div>${"&nbsp;&nbsp;$paragraph<br/>".repeat(6)}</div>
+              <a href="11.html">上一章</a> <a href="/book/1/">目录</a> <a href="13.html">下一章</a>
+            </body></html>
+        """.trimIndent()
+
+        val chapter = ChapterTextExtractor.extract(html, "https://example.com/book/1/12.html")!!
+
+        assertEquals("第十二章 夜雨", chapter.title)
+        assertTrue(chapter.content.startsWith("广告\n$paragraph"))
+        assertEquals(7, chapter.content.lines().size)
+        assertEquals("https://example.com/book/1/13.html", chapter.nextUrl)
+        assertEquals("https://example.com/book/1/11.html", chapter.prevUrl)
+        assertEquals("https://example.com/book/1/", chapter.catalogUrl)
+    }
+
+    @Test
+    fun returnsNullForScriptRenderedPage() {
+        val html = "<html><body><div id=\"content\"></div><script>render()</script></body></html>"
+
+        assertNull(ChapterTextExtractor.extract(html, "https://example.com/1.html"))
+    }
+
+    @Test
+    fun extractsCatalogAndDecodesDeclaredCharset() {
+        val links = (1..12).joinToString("") { "<dd><a href=\"/book/1/$it.html\">第${it}章 标题</a></dd>" }
+        val html = "<html><head><meta charset=\"gbk\"></head><body><a href=\"/\">首页</a><dl>$links</dl></body></html>"
+
+        val decoded = ChapterTextExtractor.decode(html.toByteArray(charset("GBK")), "text/html")
+        val catalog = ChapterTextExtractor.extractCatalog(decoded, "https://example.com/book/1/")
+
+        assertEquals(12, catalog.size)
+        assertEquals("第1章 标题" to "https://example.com/book/1/1.html", catalog.first())
+    }
+}
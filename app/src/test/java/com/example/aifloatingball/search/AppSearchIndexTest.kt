@@ -0,0 +1,119 @@
+package com.example.aifloatingball.search
+
+import org.junit.Assert.*
+import org.junit.Ignore
+import org.junit.Test
+import java.util.Random
+
+class AppSearchIndexTest {
+
+    private data class App(val label: String, val packageName: String)
+
+    private fun indexOf(vararg apps: App, cacheSize: Int = AppSearchIndex.DEFAULT_CACHE_SIZE): AppSearchIndex<App> {
+        return AppSearchIndex<App>({ it.label }, { it.packageName }, cacheSize).also { it.replaceAll(apps.toList()) }
+    }
+
+    private val wechat = App("微信", "com.tencent.mm")
+    private val weibo = App("微博", "com.sina.weibo")
+    private val bank = App("招商银行", "cmb.pb")
+    private val maps = App("Google Maps", "com.google.android.apps.maps")
+    private val music = App("QQ音乐", "com.tencent.qqmusic")
+    private val youtube = App("YouTube", "com.google.android.youtube")
+
+    private fun labels(results: List<App>) = results.map { it.label }
+
+    @Test
+    fun testPinyinInitialsAndWordStarts() {
+        val index = indexOf(wechat, weibo, bank, maps, music, youtube)
+
+        assertEquals("微信", index.search("weixin").first().label)
+        assertEquals("微信", index.search("wx").first().label)
+        assertEquals("微信", index.search("微信").first().label)
+        assertEquals(setOf("微信", "微博"), labels(index.search("微")).toSet())
+        // 多音字：银行 读 yinhang
+        assertEquals("招商银行", index.search("yinhang").first().label)
+        assertEquals("招商银行", index.search("zsyh").first().label)
+        // 英文单词开头和首字母
+        assertEquals("Google Maps", index.search("maps").first().label)
+        assertEquals("Google Maps", index.search("gm").first().label)
+        assertEquals("YouTube", index.search("tube").first().label)
+        assertEquals("QQ音乐", index.search("qqyy").first().label)
+        assertEquals("QQ音乐", index.search("yinyue").first().label)
+        // 包名片段
+        assertTrue(labels(index.search("tencent")).containsAll(listOf("微信", "QQ音乐")))
+        assertTrue(index.search("   ").isEmpty())
+    }
+
+    @Test
+    fun testExactMatchRanksFirst() {
+        val index = indexOf(App("微信读书", "com.tencent.weread"), wechat, App("微信输入法", "com.tencent.wetype"))
+        assertEquals("微信", index.search("微信").first().label)
+        assertEquals("微信", index.search("weixin").first().label)
+    }
+
+    @Test
+    fun testTypoTolerance() {
+        val index = indexOf(wechat, weibo, maps, youtube)
+
+        // 漏字、错字、相邻交换
+        assertEquals("微信", index.search("weixn").firstOrNull()?.label)
+        assertEquals("Google Maps", index.search("goolge").firstOrNull()?.label)
+        assertEquals("YouTube", index.search("yuotube").firstOrNull()?.label)
+        // 短查询不做容错
+        assertTrue(index.search("wxq").isEmpty())
+    }
+
+    @Test
+    fun testPackageAddAndRemove() {
+        val index = indexOf(wechat, weibo)
+        assertTrue(index.search("yinhang").isEmpty())
+
+        index.update(bank.packageName, listOf(bank))
+        assertEquals("招商银行", index.search("yinhang").first().label)
+        assertEquals(3, index.size)
+
+        index.remove(wechat.packageName)
+        assertTrue(index.search("weixin").none { it.label == "微信" })
+        assertEquals(2, index.size)
+
+        // 更新同一包名时替换而不是重复加入
+        index.update(bank.packageName, listOf(bank.copy(label = "招商银行Pro")))
+        assertEquals(listOf("招商银行Pro"), labels(index.search("zsyh")))
+    }
+
+    @Ignore("性能基准，需要时手动运行")
+    @Test
+    fun benchmarkKeystrokeLatencyOn500Apps() {
+        val random = Random(7)
+        val hanzi = "微信博支付宝淘京东美团饿了么抖音快手哔哩腾讯视频音乐网易云地图高德百度知乎小红书拼多多携程滴滴出行银行招商工商建设农业邮政中国移动联通电信健康天气日历相机阅读新闻头条"
+        val english = listOf("google", "maps", "chrome", "music", "video", "cloud", "note", "photo", "mail", "play",
+            "store", "office", "drive", "chat", "pay", "book", "reader", "news", "weather", "fit")
+        val apps = (0 until 500).map { i ->
+            val label = if (i % 2 == 0) {
+                (0 until 2 + random.nextInt(4)).map { hanzi[random.nextInt(hanzi.length)] }.joinToString("")
+            } else {
+                (0 until 1 + random.nextInt(3)).joinToString(" ") { english[random.nextInt(english.size)].replaceFirstChar { c -> c.uppercase() } }
+            }
+            App(label, "com.vendor$i.${english[random.nextInt(english.size)]}")
+        }
+
+        // 关闭结果缓存，测的是真实查询耗时
+        val index = AppSearchIndex<App>({ it.label }, { it.packageName }, cacheSize = 0)
+        index.replaceAll(apps)
+
+        val words = listOf("weixin", "zhifubao", "wx", "googlemaps", "gm", "music", "yinhang", "zsyh", "douyin",
+            "weather", "goolge", "chrmoe", "yinyeu", "map", "drive", "支付", "微", "dd", "kuaishou", "reader")
+        // 边输入边搜索：每个查询的所有前缀
+        val keystrokes = words.flatMap { word -> (1..word.length).map { word.substring(0, it) } }
+
+        repeat(20) { keystrokes.forEach { index.search(it) } }
+        val rounds = 50
+        val start = System.nanoTime()
+        var found = 0
+        repeat(rounds) { keystrokes.forEach { found += index.search(it).size } }
+        val perKeystrokeMs = (System.nanoTime() - start) / 1_000_000.0 / (rounds * keystrokes.size)
+
+        assertTrue(found > 0)
+        assertTrue("每次按键耗时 $perKeystrokeMs ms", perKeystrokeMs < 1.0)
+    }
+}
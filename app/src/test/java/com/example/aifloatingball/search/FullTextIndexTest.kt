@@ -0,0 +1,167 @@
+package com.example.aifloatingball.search
+
+import org.junit.Assert.*
+import org.junit.Ignore
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import kotlin.random.Random
+
+/**
+ * 倒排索引测试
+ *
+ * 5 万条数据的查询耗时基准受机器负载影响，默认不运行。
+ */
+class FullTextIndexTest {
+
+    private val fieldWeights = floatArrayOf(3f, 2f, 1f)
+    private val pinyinFields = booleanArrayOf(true, true, false)
+
+    private fun newIndex() = FullTextIndex(fieldWeights, pinyinFields)
+
+    private fun doc(id: String, title: String, tags: String = "", content: String = "") =
+        FullTextIndex.Document(id, listOf(title, tags, content))
+
+    @Test
+    fun testLatinPrefixAndCjkBigram() {
+        val index = newIndex()
+        index.put(doc("1", "Android开发指南"))
+        index.put(doc("2", "iOS开发教程"))
+        index.put(doc("3", "Web前端开发"))
+
+        assertEquals(listOf("1"), index.search("Andr").map { it.id })
+        assertEquals(setOf("1", "2", "3"), index.search("开发").map { it.id }.toSet())
+        assertEquals(listOf("1"), index.search("开发指南").map { it.id })
+        assertTrue("不相关的词不应命中", index.search("Python").isEmpty())
+    }
+
+    @Test
+    fun testPinyinInitials() {
+        val index = newIndex()
+        index.put(doc("1", "北京大学录取通知"))
+        index.put(doc("2", "上海交通大学"))
+
+        assertEquals(listOf("1"), index.search("bjdx").map { it.id })
+        assertEquals(listOf("2"), index.search("jtdx").map { it.id })
+    }
+
+    @Test
+    fun testRankingAndMatchOffsets() {
+        val index = newIndex()
+        index.put(doc("body", "笔记", content = "这里顺便提到了协程"))
+        index.put(doc("title", "Kotlin 协程入门"))
+
+        val hits = index.search("协程")
+        assertEquals("标题命中应排在正文命中之前", "title", hits[0].id)
+
+        val match = hits[0].matches.first()
+        assertEquals(0, match.field)
+        assertEquals("协程", "Kotlin 协程入门".substring(match.start, match.end))
+    }
+
+    @Test
+    fun testUpdateRemoveAndPersistence() {
+        val index = newIndex()
+        index.put(doc("1", "旧标题"))
+        index.put(doc("1", "新标题 updated"))
+        index.put(doc("2", "另一个条目"))
+        index.remove("2")
+
+        assertTrue(index.search("旧标").isEmpty())
+        assertEquals(listOf("1"), index.search("updated").map { it.id })
+        assertTrue(index.search("条目").isEmpty())
+
+        val bytes = ByteArrayOutputStream().also { index.writeTo(DataOutputStream(it)) }.toByteArray()
+        val restored = FullTextIndex.readFrom(DataInputStream(ByteArrayInputStream(bytes)), fieldWeights, pinyinFields)
+
+        assertNotNull(restored)
+        assertEquals(index.fingerprint, restored!!.fingerprint)
+        assertEquals(FullTextIndex.fingerprintOf(listOf(doc("1", "新标题 updated"))), restored.fingerprint)
+        assertEquals(listOf("1"), restored.search("新标题").map { it.id })
+    }
+
+    @Test
+    fun testScanFallbackCoversContainsQueries() {
+        val docs = listOf(
+            doc("cpp", "C++ 入门"),
+            doc("manager", "unified collection manager"),
+            doc("account", "用户ID：abc123xyz"),
+            doc("release", "版本v2.0发布", tags = "更新"),
+            doc("country", "中华人民共和国成立")
+        )
+        val index = newIndex()
+        docs.forEach { index.put(it) }
+
+        // 与 UnifiedCollectionManager / ChatDataManager 相同：索引没有结果时逐条子串匹配
+        fun search(query: String) = index.search(query).ifEmpty { FullTextIndex.scan(query, docs) }.map { it.id }
+
+        // 标点、单词中间的片段：分词对不齐，索引查不到
+        for ((query, expected) in listOf("++" to "cpp", "lect" to "manager", "nager" to "manager", "123" to "account", "：" to "account", "2.0" to "release")) {
+            assertTrue("索引不应命中 $query", index.search(query).isEmpty())
+            assertEquals(query, listOf(expected), search(query))
+        }
+        // 索引能查到的照常走索引
+        assertEquals(listOf("country"), search("共和国"))
+        assertEquals(listOf("release"), search("V2.0"))
+        assertTrue(search("不存在的内容").isEmpty())
+    }
+
+    @Test
+    fun testScanKeepsOrderAndRanges() {
+        val docs = listOf(
+            doc("a", "无关"),
+            doc("b", "Collection", content = "another COLLECTION here"),
+            doc("c", "recollect")
+        )
+
+        val hits = FullTextIndex.scan("collect", docs)
+        assertEquals(listOf("b", "c"), hits.map { it.id })
+        assertEquals(
+            listOf(FullTextIndex.MatchRange(0, 0, 7), FullTextIndex.MatchRange(2, 8, 15)),
+            hits[0].matches
+        )
+        assertEquals(listOf("b"), FullTextIndex.scan("collect", docs, limit = 1).map { it.id })
+        assertTrue(FullTextIndex.scan("  ", docs).isEmpty())
+    }
+
+    @Ignore("性能基准，需要时手动运行")
+    @Test
+    fun benchmarkQueryLatencyOn50kItems() {
+        val random = Random(42)
+        // 用常用汉字随机组词，模拟真实收藏内容的词汇分布
+        val commonChars = "的一是在不了有和人这中大为上个国我以要他时来用们生到作地于出就分对成会可主发年动同工也能下过子说产种面而方后多定行学法所民得经十三之进着等部度家电力里如水化高自二理起小物现实加量都两体制机当使点从业本去把性好应开它合还因由其些然前外天政四日那社义事平形相全表间样与关各重新线内数正心反你明看原又么利比或但质气第向道命此变条只没结解问意建月公无系军很情者最立代想已通并提直题党程展五果料象员革位入常文总次品式活设及管特件长求老头基资边流路级少图山统接知较将组见计别她手角期根论运农指几九区强放决西被干做必战先回则任取据处队南给色光门即保治北造百规热领七海口东导器压志世金增争济阶油思术极交受联什认六共权收证改清己美再采转更单风切打白教速花带安场身车例真务具万每目至达走积示议声报斗完类八离华名确才科张信马节话米整空元况今集温传土许步群广石记需段研界拉林律叫且究观越织装影算低持音众书布复容儿须际商非验连断深难近矿千周委素技备半办青省列习响约支般史感劳便团往酸历市克何除消构府称太准精值号率族维划选标写存候毛亲快效斯院查江型眼王按格养易置派层片始却专状育厂京识适属圆包火住调满县局照参红细引听该铁价严龙飞"
+        val cjkWords = List(3000) {
+            val length = 2 + random.nextInt(3)
+            String(CharArray(length) { commonChars[random.nextInt(commonChars.length)] })
+        }
+        val latinWords = List(800) {
+            val length = 3 + random.nextInt(7)
+            String(CharArray(length) { 'a' + random.nextInt(26) })
+        } + listOf("android", "kotlin", "deepseek", "markdown")
+
+        fun sentence(words: Int) = buildString {
+            repeat(words) {
+                if (random.nextInt(4) == 0) append(latinWords.random(random)).append(' ')
+                else append(cjkWords.random(random))
+            }
+        }
+
+        val index = newIndex()
+        repeat(50_000) { i ->
+            index.put(doc("item-$i", sentence(4), latinWords.random(random), sentence(20)))
+        }
+        assertEquals(50_000, index.size)
+
+        val queries = listOf(cjkWords[0], cjkWords[1] + cjkWords[2], "kotlin", "andr", "de", "bj", latinWords[5] + " " + cjkWords[3], cjkWords[4].take(1))
+        // 预热
+        queries.forEach { index.search(it, 50) }
+
+        val rounds = 20
+        val start = System.nanoTime()
+        repeat(rounds) { queries.forEach { index.search(it, 50) } }
+        val perQueryMs = (System.nanoTime() - start) / 1_000_000.0 / (rounds * queries.size)
+        assertTrue("单次查询耗时应低于5ms，实际 $perQueryMs ms", perQueryMs < 5.0)
+    }
+}
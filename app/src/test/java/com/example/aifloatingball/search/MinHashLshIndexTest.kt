@@ -0,0 +1,167 @@
+package com.example.aifloatingball.search
+
+import org.junit.Assert.*
+import org.junit.Test
+import kotlin.random.Random
+
+/**
+ * MinHash + LSH 相似度索引测试
+ */
+class MinHashLshIndexTest {
+
+    private val random = Random(11)
+
+    // 互不相同的随机英文单词，拼成测试文本
+    private val words = generateSequence { String(CharArray(6) { 'a' + random.nextInt(26) }) }
+        .distinct().take(2000).toList()
+
+    private fun text(range: IntRange) = range.joinToString(" ") { words[it] }
+
+    private fun signature(text: String) = MinHashLshIndex.signatureOf(text)!!
+
+    private fun similarity(a: String, b: String) = MinHashLshIndex.similarity(signature(a), signature(b))
+
+    private fun indexOf(docs: Map<String, String>) = MinHashLshIndex().apply {
+        docs.forEach { (id, text) -> put(id, MinHashLshIndex.signatureOf(text)) }
+    }
+
+    /**
+     * 直接比较全部签名得到的相似文档，作为 LSH 结果的对照
+     */
+    private fun bruteForce(signatures: Map<String, IntArray>, id: String, threshold: Float): Set<String> {
+        val signature = signatures.getValue(id)
+        return signatures.filter { (other, candidate) ->
+            other != id && MinHashLshIndex.similarity(signature, candidate) >= threshold
+        }.keys
+    }
+
+    @Test
+    fun testSimilarityOfNearDuplicatesAndUnrelatedText() {
+        val cjk = "协程是一种轻量级的并发方案，可以用同步的写法编写异步代码，挂起函数不会阻塞线程，适合网络请求和数据库读写"
+        val cjkEdited = cjk.replace("网络请求", "文件下载")
+        val cjkOther = "今天天气晴朗，适合去公园散步，晚上记得早点休息，明天还要早起赶火车回老家过节"
+        assertTrue(similarity(cjk, cjkEdited) > 0.7f)
+        assertTrue(similarity(cjk, cjkOther) < 0.2f)
+
+        val latin = text(0 until 40)
+        val latinEdited = text(0 until 36) + " " + text(100 until 104)
+        assertTrue(similarity(latin, latinEdited) > 0.7f)
+        assertTrue(similarity(latin, text(200 until 240)) < 0.2f)
+        // 大小写和标点不影响签名
+        assertEquals(1f, similarity(latin, latin.uppercase().replace(" ", ", ")))
+
+        assertEquals(1f, similarity(cjk, cjk))
+        assertNull(MinHashLshIndex.signatureOf("，。！？ ..."))
+        assertEquals(0f, MinHashLshIndex.similarity(signature(cjk), IntArray(8)))
+    }
+
+    @Test
+    fun testLshRecallAtAndAboveThreshold() {
+        // 每篇原文配几篇改动比例不同的变体，相似度分布在整个区间
+        val docs = LinkedHashMap<String, String>()
+        for (base in 0 until 30) {
+            val start = base * 60
+            docs["b$base"] = text(start until start + 30)
+            listOf(3, 9, 15, 21).forEach { replaced ->
+                docs["b$base-$replaced"] = text(start until start + 30 - replaced) + " " +
+                    text(start + 30 until start + 30 + replaced)
+            }
+        }
+        val index = indexOf(docs)
+        val signatures = docs.mapValues { signature(it.value) }
+
+        for (threshold in listOf(MinHashLshIndex.MIN_LSH_THRESHOLD, 0.5f, 0.8f)) {
+            var expected = 0
+            var found = 0
+            for (id in docs.keys) {
+                val truth = bruteForce(signatures, id, threshold)
+                val result = index.findSimilar(id, threshold)
+                // 返回的结果都达到阈值，并按相似度降序
+                assertTrue(result.all { it.second >= threshold })
+                assertEquals(result.sortedByDescending { it.second }, result)
+                assertTrue(truth.containsAll(result.map { it.first }))
+                expected += truth.size
+                found += result.size
+            }
+            assertTrue("阈值 $threshold 时应有相似文档", expected > 0)
+            assertTrue("阈值 $threshold 时召回 $found/$expected", found >= expected * 0.9)
+        }
+
+        // 几乎相同的文档一定能找到
+        docs.keys.filter { it.endsWith("-3") }.forEach { variant ->
+            assertTrue(index.findSimilar(variant, 0.5f).any { it.first == variant.substringBefore('-') })
+        }
+    }
+
+    @Test
+    fun testLowThresholdFallsBackToFullScan() {
+        val docs = (0 until 20).associate { i -> "d$i" to text(i * 15 until i * 15 + 30) }
+        val index = indexOf(docs)
+        val signatures = docs.mapValues { signature(it.value) }
+        val threshold = MinHashLshIndex.MIN_LSH_THRESHOLD / 2
+
+        for (id in docs.keys) {
+            assertEquals(bruteForce(signatures, id, threshold), index.findSimilar(id, threshold).map { it.first }.toSet())
+        }
+        // 阈值为 0 时所有其他文档都是结果
+        assertEquals(docs.size - 1, index.findSimilar("d0", 0f).size)
+    }
+
+    @Test
+    fun testRemoveCleansUpBuckets() {
+        val index = MinHashLshIndex()
+        val a = text(0 until 30)
+        val b = text(0 until 27) + " " + text(500 until 503)
+        index.put("a", MinHashLshIndex.signatureOf(a))
+        index.put("b", MinHashLshIndex.signatureOf(b))
+        assertEquals(listOf("b"), index.findSimilar("a", 0.5f).map { it.first })
+        assertTrue(index.bucketCount > 0)
+
+        index.remove("a")
+        assertNull(index.getSignature("a"))
+        assertTrue(index.findSimilar("b", 0f).isEmpty())
+        assertEquals(1, index.size)
+
+        // 重新放入同一ID时旧签名的分桶被清掉
+        index.put("b", MinHashLshIndex.signatureOf(text(800 until 830)))
+        index.put("a", MinHashLshIndex.signatureOf(a))
+        assertTrue(index.findSimilar("a", MinHashLshIndex.MIN_LSH_THRESHOLD).isEmpty())
+
+        index.remove("a")
+        index.remove("b")
+        index.remove("missing")
+        assertEquals(0, index.size)
+        assertEquals(0, index.bucketCount)
+
+        // 空签名等于删除
+        index.put("c", MinHashLshIndex.signatureOf(a))
+        index.put("c", null)
+        assertEquals(0, index.size)
+        assertEquals(0, index.bucketCount)
+    }
+
+    @Test
+    fun testClusterGroupsTransitively() {
+        // a 与 c 没有共同内容，只通过 b 连到一起
+        val docs = mapOf(
+            "a" to text(0 until 20),
+            "b" to text(0 until 40),
+            "c" to text(20 until 40),
+            "x" to text(1000 until 1030),
+            "y" to text(1000 until 1027) + " " + text(1100 until 1103),
+            "lonely" to text(1500 until 1530)
+        )
+        val index = indexOf(docs)
+        assertTrue(similarity(docs.getValue("a"), docs.getValue("c")) < 0.3f)
+
+        val clusters = index.cluster(0.3f)
+
+        assertEquals(2, clusters.size)
+        assertEquals(setOf("a", "b", "c"), clusters[0].ids.toSet())
+        assertEquals(setOf("x", "y"), clusters[1].ids.toSet())
+        val pairs = clusters[0].pairs.map { setOf(it.first, it.second) }.toSet()
+        assertEquals(setOf(setOf("a", "b"), setOf("b", "c")), pairs)
+        assertTrue(clusters.flatMap { it.pairs }.all { it.third >= 0.3f })
+        assertTrue(clusters.none { "lonely" in it.ids })
+    }
+}
@@ -0,0 +1,385 @@
+package com.example.aifloatingball.utils
+
+import org.junit.Assert.*
+import org.junit.Ignore
+import org.junit.Test
+import java.util.regex.Pattern
+import kotlin.random.Random
+
+/**
+ * AI回复排版测试：结果必须与原来逐条正则替换的实现逐字符、逐样式一致
+ *
+ * 与原实现的速度对比只作为手动运行的基准，不放进常规测试。
+ */
+class AIResponseFormatterTest {
+
+    /**
+     * 真实的 AI 回复，涵盖标题、列表、代码块、表格、引用、链接、强调和中文特殊结构
+     */
+    private val corpus = listOf(
+        """
+        |好的，下面是关于 Kotlin 协程的简要介绍。
+        |
+        |## 什么是协程
+        |
+        |协程是一种**轻量级**的并发方案，可以用同步的写法编写异步代码。
+        |
+        |### 核心概念
+        |
+        |1. `suspend` 函数：可以挂起而不阻塞线程
+        |2. `CoroutineScope`：管理协程的生命周期
+        |3. `Dispatcher`：决定协程运行在哪个线程
+        |
+        |```kotlin
+        |suspend fun load(): String {
+        |    delay(100)
+        |    return "done"
+        |}
+        |```
+        |
+        |注意：不要在主线程调用阻塞方法。
+        |
+        |总结：协程让异步代码*更易读*，详见 [官方文档](https://kotlinlang.org/docs/coroutines-overview.html)。
+        """.trimMargin(),
+        """
+        |# Comparing HTTP clients
+        |
+        |Here is a quick comparison:
+        |
+        || Client | Streaming | HTTP/2 |
+        ||--------|-----------|--------|
+        || OkHttp | Yes | Yes |
+        || HttpURLConnection | Partial | No |
+        |
+        |- OkHttp has connection pooling
+        |- Retrofit builds on top of OkHttp
+        |  - converters for Gson and Moshi
+        |
+        |> Tip: reuse a single OkHttpClient instance.
+        |
+        |See https://square.github.io/okhttp/ for details. Use __interceptors__ for logging & metrics.
+        """.trimMargin(),
+        """
+        |这里是三个步骤：
+        |
+        |步骤1：打开设置
+        |步骤2：进入"隐私"页面
+        |第3步：关闭 'personalized ads' 选项
+        |
+        |要点1：所有修改即时生效
+        |提示：可以随时恢复默认
+        |
+        |问：为什么广告还是很多？
+        |答：系统广告和应用内广告是分开的，需要在各应用中单独设置。
+        """.trimMargin(),
+        """
+        |一、背景
+        |随着移动互联网发展，用户对响应速度要求越来越高；因此，性能优化十分重要。
+        |
+        |二、主要手段
+        |- 减少主线程工作
+        |- 使用缓存：内存缓存、磁盘缓存
+        |- 预加载
+        |
+        |三、结论
+        |核心在于测量。没有数据，优化就是猜测！
+        |
+        |特点：简单、直接
+        |优势：成本低
+        |优点：见效快
+        |特色：《性能之巅》推荐的方法论
+        """.trimMargin(),
+        """
+        |<p>Sure! Here&#39;s a <b>Python</b> example:</p>
+        |
+        |```python
+        |def fib(n):
+        |    a, b = 0, 1
+        |    for _ in range(n):
+        |        a, b = b, a + b
+        |    return a
+        |```
+        |
+        |The time complexity is O(n) &amp; space is O(1). Compare with the ~~naive~~ recursive version &lt;exponential&gt;.
+        |
+        |1. Iterative: fast
+        |2. Memoized: also fast
+        |10. Naive: slow
+        """.trimMargin(),
+        """
+        |结论：推荐使用 Room 数据库。
+        |
+        |主要原因如下：
+        |
+        |* 编译期校验 SQL
+        |* 与 LiveData、Flow 集成
+        |+ 支持迁移
+        |
+        |#### 迁移示例
+        |
+        |```
+        |ALTER TABLE user ADD COLUMN age INTEGER
+        |```
+        |
+        |###### 参考
+        |https://developer.android.com/training/data-storage/room?hl=zh-cn
+        """.trimMargin(),
+        """
+        |OK, let's break it down. First, the API returns JSON; second, the client parses it, then renders.
+        |
+        |**Step by step:**
+        |
+        |1) Fetch data
+        |2) Parse with `Gson().fromJson(json, User::class.java)`
+        |3) Display
+        |
+        |&nbsp;&nbsp;Indented&nbsp;text with &quot;quotes&quot; and &amp;quot;double-encoded&amp;quot; entities.
+        |
+        |Questions? Ask me!
+        """.trimMargin(),
+        """
+        |好的
+        |这里有一些建议
+        |
+        |• 早睡早起
+        |· 多喝水
+        |▪ 适量运动
+        |
+        |五、饮食
+        |
+        |十. 其他
+        |
+        |注意事项: 因人而异，请咨询医生。
+        """.trimMargin()
+    )
+
+    private fun assertSameOutput(content: String) {
+        val expected = LegacyFormatter.format(content)
+        val actual = AIResponseFormatter.format(content)
+        assertEquals("文字不一致: ${content.take(40)}", expected.text, actual.text)
+        val actualRuns = (0 until actual.runCount).map { Triple(actual.style(it).name, actual.start(it), actual.end(it)) }
+        assertEquals("样式不一致: ${content.take(40)}", expected.runs, actualRuns)
+    }
+
+    @Test
+    fun testCorpusMatchesLegacyRenderer() {
+        corpus.forEach { assertSameOutput(it) }
+        // 语料确实覆盖到了各种样式
+        val styles = corpus.flatMap { content ->
+            val formatted = AIResponseFormatter.format(content)
+            (0 until formatted.runCount).map { formatted.style(it) }
+        }.toSet()
+        assertTrue("语料覆盖的样式: $styles", styles.containsAll(listOf(
+            AIResponseFormatter.Style.HEADING_1, AIResponseFormatter.Style.INLINE_CODE,
+            AIResponseFormatter.Style.BOLD, AIResponseFormatter.Style.LINK
+        )))
+    }
+
+    @Test
+    fun testRandomInputsMatchLegacyRenderer() {
+        val pieces = listOf(
+            "# ", "## ", "### ", "#### ", "###### ", "#", "\n", "\n\n", "\n\n\n", " ", "  ", "\t",
+            "1. ", "2、", "10. ", "一、", "三. ", "- ", "* ", "+ ", "  - ", "• ", "· ", "▪ ", "▫ ",
+            "```", "```kotlin\n", "```unknown\n", "`", "**", "__", "*", "_", "~~", "《", "》", "\"", "'",
+            "[链接](https://a.b/c)", "https://example.com/x?y=1", "> ", ">", "| a | b |", "|",
+            "。", "！", "？", "：", ":", "；", ";", "，", ",", "问：", "答:", "步骤2：", "第 3 步：", "要点1：",
+            "注意：", "提示:", "总结：", "结论：", "好的，", "这里", "核心", "主要", "特点：", "特色：", "优势：", "优点：",
+            "<b>", "</b>", "<", ">", "<>", "&nbsp;", "&lt;", "&gt;", "&amp;", "&quot;", "&#39;", "&amp;quot;", "&amp;#39;",
+            "&amp;amp;", " ", "　", "❓", "💡", "⚠️", "文字", "Text", "ABC", "123", "中文内容", "代码"
+        )
+        val random = Random(7)
+        repeat(3000) {
+            val content = buildString {
+                repeat(random.nextInt(1, 30)) { append(pieces[random.nextInt(pieces.size)]) }
+            }
+            assertSameOutput(content)
+        }
+    }
+
+    @Test
+    fun testPreprocessDecodesLikeSequentialReplacement() {
+        assertEquals("a b", AIResponseFormatter.preprocess("a<br/>&nbsp; \n\tb"))
+        assertEquals("\"", AIResponseFormatter.preprocess("&amp;quot;"))
+        assertEquals("&amp;", AIResponseFormatter.preprocess("&amp;amp;"))
+        assertEquals("&lt;", AIResponseFormatter.preprocess("&amp;lt;"))
+        assertEquals("<", AIResponseFormatter.preprocess("&l<i>t;"))
+        assertEquals("a <> b", AIResponseFormatter.preprocess("a <> b"))
+    }
+
+    @Ignore("性能基准，需要时手动运行")
+    @Test
+    fun benchmarkAgainstLegacyRenderer() {
+        val rounds = 30
+        // 预热
+        repeat(5) { corpus.forEach { LegacyFormatter.format(it); AIResponseFormatter.format(it) } }
+
+        var start = System.nanoTime()
+        repeat(rounds) { corpus.forEach { LegacyFormatter.format(it) } }
+        val legacyMs = (System.nanoTime() - start) / 1_000_000.0 / (rounds * corpus.size)
+
+        start = System.nanoTime()
+        repeat(rounds) { corpus.forEach { AIResponseFormatter.format(it) } }
+        val newMs = (System.nanoTime() - start) / 1_000_000.0 / (rounds * corpus.size)
+
+        assertTrue("新实现 $newMs ms 应快于原实现 $legacyMs ms", newMs < legacyMs)
+    }
+
+    /**
+     * 原 AdvancedMarkdownRenderer 的实现，照搬其正则，只是把 setSpan 换成记录区间，作为对照
+     */
+    private object LegacyFormatter {
+
+        class Result(val text: String, val runs: List<Triple<String, Int, Int>>)
+
+        private val supportedLanguages = setOf(
+            "javascript", "java", "python", "kotlin", "swift", "go", "rust", "cpp", "c", "csharp",
+            "php", "ruby", "html", "css", "xml", "json", "yaml", "sql", "bash", "shell",
+            "typescript", "dart", "scala", "r", "matlab", "perl", "lua", "powershell"
+        )
+
+        fun format(content: String): Result {
+            val cleanedContent = preprocessContent(content)
+            val parsedContent = parseMarkdownStructure(cleanedContent)
+            val optimizedContent = applyChineseTypographyOptimization(parsedContent)
+            val runs = ArrayList<Triple<String, Int, Int>>()
+            applyTextStyles(optimizedContent, runs)
+            return Result(optimizedContent, runs)
+        }
+
+        private fun preprocessContent(content: String): String {
+            var processed = content
+            processed = processed.replace("<[^>]+>".toRegex(), "")
+            processed = processed.replace("&nbsp;".toRegex(), " ")
+            processed = processed.replace("&lt;".toRegex(), "<")
+            processed = processed.replace("&gt;".toRegex(), ">")
+            processed = processed.replace("&amp;".toRegex(), "&")
+            processed = processed.replace("&quot;".toRegex(), "\"")
+            processed = processed.replace("&#39;".toRegex(), "'")
+            processed = processed.replace("\\s+".toRegex(), " ")
+            processed = processed.replace("\\n\\s*\\n\\s*\\n+".toRegex(), "\n\n")
+            return processed.trim()
+        }
+
+        private fun parseMarkdownStructure(content: String): String {
+            var parsed = content
+            parsed = parseHeadings(parsed)
+            parsed = parseLists(parsed)
+            parsed = parseCodeBlocks(parsed)
+            parsed = parsed.replace("`([^`]+)`".toRegex(), "「$1」")
+            parsed = parseEmphasis(parsed)
+            parsed = parsed.replace("\\[([^\\]]+)\\]\\(([^)]+)\\)".toRegex(), "$1")
+            parsed = parsed.replace("(https?://[^\\s]+)".toRegex(), "$1")
+            parsed = parsed.replace("^>\\s+(.*)$".toRegex(RegexOption.MULTILINE), "┌─ 引用 ─┐\n$1\n└─────────┘\n")
+            parsed = parsed.replace("\\|(.+)\\|".toRegex()) { matchResult ->
+                val row = matchResult.groupValues[1]
+                val cells = row.split("|").map { it.trim() }
+                "┌─ ${cells.joinToString(" │ ")} ─┐\n"
+            }
+            return parsed
+        }
+
+        private fun parseHeadings(content: String): String {
+            var parsed = content
+            parsed = parsed.replace("^#{6}\\s+(.*)$".toRegex(RegexOption.MULTILINE), "\n▫ $1\n")
+            parsed = parsed.replace("^#{5}\\s+(.*)$".toRegex(RegexOption.MULTILINE), "\n▫ $1\n")
+            parsed = parsed.replace("^#{4}\\s+(.*)$".toRegex(RegexOption.MULTILINE), "\n▫ $1\n")
+            parsed = parsed.replace("^#{3}\\s+(.*)$".toRegex(RegexOption.MULTILINE), "\n▫ $1\n")
+            parsed = parsed.replace("^#{2}\\s+(.*)$".toRegex(RegexOption.MULTILINE), "\n▪ $1\n")
+            parsed = parsed.replace("^#{1}\\s+(.*)$".toRegex(RegexOption.MULTILINE), "\n■ $1\n")
+            parsed = parsed.replace("^([一二三四五六七八九十]+[、.])\\s*(.*)$".toRegex(RegexOption.MULTILINE), "\n▪ $1 $2\n")
+            parsed = parsed.replace("^([0-9]+[、.])\\s*(.*)$".toRegex(RegexOption.MULTILINE), "\n▪ $1 $2\n")
+            parsed = parsed.replace("^([^：:]+[：:])\\s*$".toRegex(RegexOption.MULTILINE), "\n▪ $1\n")
+            return parsed
+        }
+
+        private fun parseLists(content: String): String {
+            var parsed = content
+            parsed = parsed.replace("^\\s*(\\d+)\\.\\s+(.*)$".toRegex(RegexOption.MULTILINE), "  $1. $2")
+            parsed = parsed.replace("^\\s*([一二三四五六七八九十]+)\\.\\s+(.*)$".toRegex(RegexOption.MULTILINE), "  $1. $2")
+            parsed = parsed.replace("^\\s*[-*+]\\s+(.*)$".toRegex(RegexOption.MULTILINE), "  • $1")
+            parsed = parsed.replace("^\\s{2,4}[-*+]\\s+(.*)$".toRegex(RegexOption.MULTILINE), "    ◦ $1")
+            parsed = parsed.replace("^\\s{6,8}[-*+]\\s+(.*)$".toRegex(RegexOption.MULTILINE), "      ▪ $1")
+            parsed = parsed.replace("^\\s*([•·▪▫])\\s+(.*)$".toRegex(RegexOption.MULTILINE), "  • $2")
+            return parsed
+        }
+
+        private fun parseCodeBlocks(content: String): String {
+            return content.replace("```([^\\n]+)\\n([\\s\\S]*?)```".toRegex()) { matchResult ->
+                val language = matchResult.groupValues[1].trim()
+                val code = matchResult.groupValues[2].trim()
+                val displayLanguage = if (language.isNotEmpty() && supportedLanguages.contains(language.lowercase())) {
+                    language.uppercase()
+                } else {
+                    "CODE"
+                }
+                "\n┌─ $displayLanguage ─┐\n$code\n└${"─".repeat(displayLanguage.length + 4)}┘\n"
+            }
+        }
+
+        private fun parseEmphasis(content: String): String {
+            var parsed = content
+            parsed = parsed.replace("\\*\\*(.*?)\\*\\*".toRegex(), "【$1】")
+            parsed = parsed.replace("__(.*?)__".toRegex(), "【$1】")
+            parsed = parsed.replace("\\*(.*?)\\*".toRegex(), "$1")
+            parsed = parsed.replace("_(.*?)_".toRegex(), "$1")
+            parsed = parsed.replace("~~(.*?)~~".toRegex(), "~~$1~~")
+            parsed = parsed.replace("《([^》]+)》".toRegex(), "【$1】")
+            parsed = parsed.replace("\"([^\"]+)\"".toRegex(), "「$1」")
+            parsed = parsed.replace("'([^']+)'".toRegex(), "「$1」")
+            return parsed
+        }
+
+        private fun applyChineseTypographyOptimization(content: String): String {
+            var optimized = content
+            optimized = optimized.replace("([。！？])\\s*([A-Z0-9一-龯])".toRegex(), "$1\n\n$2")
+            optimized = optimized.replace("([：:])\\s*([一-龯A-Z])".toRegex(), "$1\n$2")
+            optimized = optimized.replace("([；;])\\s*([一-龯A-Z])".toRegex(), "$1\n$2")
+            optimized = optimized.replace("([，,])\\s*([一-龯A-Z])".toRegex(), "$1\n$2")
+            optimized = optimized.replace("(\\d+\\.\\s+[^\\n]+)\\n(\\d+\\.\\s+)".toRegex(), "$1\n\n$2")
+            optimized = optimized.replace("(▪\\s+[^\\n]+)\\n([^▪\\n])".toRegex(), "$1\n$2")
+            optimized = optimized.replace("\\n\\s*\\n\\s*\\n+".toRegex(), "\n\n")
+            return parseSpecialStructures(optimized)
+        }
+
+        private fun parseSpecialStructures(content: String): String {
+            var parsed = content
+            parsed = parsed.replace("^问[:：]\\s*(.*)$".toRegex(RegexOption.MULTILINE), "\n❓ 问：$1\n")
+            parsed = parsed.replace("^答[:：]\\s*(.*)$".toRegex(RegexOption.MULTILINE), "\n💡 答：$1\n")
+            parsed = parsed.replace("^步骤\\s*(\\d+)[:：]\\s*(.*)$".toRegex(RegexOption.MULTILINE), "\n📋 步骤$1：$2\n")
+            parsed = parsed.replace("^第\\s*(\\d+)\\s*步[:：]\\s*(.*)$".toRegex(RegexOption.MULTILINE), "\n📋 第$1步：$2\n")
+            parsed = parsed.replace("^要点\\s*(\\d+)[:：]\\s*(.*)$".toRegex(RegexOption.MULTILINE), "\n🔹 要点$1：$2\n")
+            parsed = parsed.replace("^注意[:：]\\s*(.*)$".toRegex(RegexOption.MULTILINE), "\n⚠️ 注意：$1\n")
+            parsed = parsed.replace("^提示[:：]\\s*(.*)$".toRegex(RegexOption.MULTILINE), "\n💡 提示：$1\n")
+            parsed = parsed.replace("^总结[:：]\\s*(.*)$".toRegex(RegexOption.MULTILINE), "\n📝 总结：$1\n")
+            parsed = parsed.replace("^结论[:：]\\s*(.*)$".toRegex(RegexOption.MULTILINE), "\n📝 结论：$1\n")
+            parsed = parsed.replace("^好的[，,]?\\s*(.*)$".toRegex(RegexOption.MULTILINE), "\n💡 $1\n")
+            parsed = parsed.replace("^这里\\s*(.*)$".toRegex(RegexOption.MULTILINE), "\n📖 $1\n")
+            parsed = parsed.replace("^核心\\s*(.*)$".toRegex(RegexOption.MULTILINE), "\n⭐ 核心$1\n")
+            parsed = parsed.replace("^主要\\s*(.*)$".toRegex(RegexOption.MULTILINE), "\n🔸 主要$1\n")
+            parsed = parsed.replace("^特点[:：]\\s*(.*)$".toRegex(RegexOption.MULTILINE), "\n✨ 特点：$1\n")
+            parsed = parsed.replace("^特色[:：]\\s*(.*)$".toRegex(RegexOption.MULTILINE), "\n✨ 特色：$1\n")
+            parsed = parsed.replace("^优势[:：]\\s*(.*)$".toRegex(RegexOption.MULTILINE), "\n🚀 优势：$1\n")
+            parsed = parsed.replace("^优点[:：]\\s*(.*)$".toRegex(RegexOption.MULTILINE), "\n🚀 优点：$1\n")
+            return parsed
+        }
+
+        private fun applyTextStyles(text: String, runs: MutableList<Triple<String, Int, Int>>) {
+            fun collect(style: String, pattern: Pattern) {
+                val matcher = pattern.matcher(text)
+                while (matcher.find()) runs.add(Triple(style, matcher.start(), matcher.end()))
+            }
+            collect("HEADING_1", Pattern.compile("^■\\s+(.+)$", Pattern.MULTILINE))
+            collect("HEADING_2", Pattern.compile("^▪\\s+(.+)$", Pattern.MULTILINE))
+            collect("HEADING_3", Pattern.compile("^▫\\s+(.+)$", Pattern.MULTILINE))
+            collect("ORDERED_ITEM", Pattern.compile("^\\s*(\\d+)\\.\\s+(.+)$", Pattern.MULTILINE))
+            collect("BULLET_ITEM", Pattern.compile("^\\s*[•◦▪]\\s+(.+)$", Pattern.MULTILINE))
+            collect("CODE_BLOCK", Pattern.compile("┌─\\s+(.+?)\\s+─┐[\\s\\S]*?└[─]+┘", Pattern.MULTILINE))
+            collect("INLINE_CODE", Pattern.compile("「([^」]+)」"))
+            collect("BOLD", Pattern.compile("【([^】]+)】"))
+            collect("STRIKETHROUGH", Pattern.compile("~~([^~]+)~~"))
+            collect("LINK", Pattern.compile("(https?://[^\\s]+)"))
+            collect("QA", Pattern.compile("(❓|💡)\\s+(问|答)：(.+)", Pattern.MULTILINE))
+            collect("HIGHLIGHT", Pattern.compile("(📋|🔹|⚠️|💡|📝|⭐|🔸|✨|🚀)\\s+(.+：.+)", Pattern.MULTILINE))
+        }
+    }
+}
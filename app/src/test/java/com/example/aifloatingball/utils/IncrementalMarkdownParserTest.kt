@@ -0,0 +1,122 @@
+package com.example.aifloatingball.utils
+
+import com.example.aifloatingball.utils.IncrementalMarkdownParser.BlockType
+import org.junit.Assert.*
+import org.junit.Test
+import kotlin.random.Random
+
+/**
+ * 增量Markdown解析测试：任意切分方式的流式输入都应与一次性解析结果一致
+ */
+class IncrementalMarkdownParserTest {
+
+    private val sample = """
+        |# 标题
+        |第一段第一行
+        |第一段第二行
+        |
+        |- 列表一
+        |  续行
+        |- 列表二
+        |1. 有序
+        |
+        |```kotlin
+        |val a = 1
+        |
+        |println(a)
+        |```
+        |> 引用一
+        |> 引用二
+        || a | b |
+        || - | - |
+        |## 小标题
+        |结尾段落
+    """.trimMargin()
+
+    @Test
+    fun testBlockStructure() {
+        val blocks = IncrementalMarkdownParser.parse(sample)
+
+        assertEquals(
+            listOf(
+                BlockType.HEADING, BlockType.PARAGRAPH, BlockType.LIST, BlockType.CODE_FENCE,
+                BlockType.QUOTE, BlockType.TABLE, BlockType.HEADING, BlockType.PARAGRAPH
+            ),
+            blocks.map { it.type }
+        )
+        assertEquals("第一段第一行\n第一段第二行", blocks[1].text)
+        assertEquals("- 列表一\n  续行\n- 列表二\n1. 有序", blocks[2].text)
+        assertTrue("代码块中的空行不应拆分代码块", blocks[3].text.contains("val a = 1\n\nprintln(a)"))
+        assertEquals(sample.indexOf("```kotlin"), blocks[3].start)
+    }
+
+    @Test
+    fun testRandomChunkingMatchesOneShotParse() {
+        val expected = IncrementalMarkdownParser.parse(sample)
+        val random = Random(42)
+        repeat(200) {
+            val parser = IncrementalMarkdownParser()
+            var offset = 0
+            while (offset < sample.length) {
+                val end = minOf(sample.length, offset + 1 + random.nextInt(12))
+                parser.append(sample.substring(offset, end))
+                offset = end
+
+                // 已结束的块在之后的输入中不会再变化
+                val stable = parser.stableBlocks
+                assertEquals(expected.subList(0, stable.size), stable)
+                parser.openBlock?.let { open ->
+                    assertTrue(sample.startsWith(open.text, open.start))
+                }
+            }
+            parser.finish()
+            assertEquals(expected, parser.blocks)
+            assertNull(parser.openBlock)
+        }
+    }
+
+    @Test
+    fun testOpenBlockWhileStreaming() {
+        val parser = IncrementalMarkdownParser()
+        parser.append("说明如下：\n\n```py")
+        assertEquals(1, parser.stableBlocks.size)
+        assertEquals(BlockType.CODE_FENCE, parser.openBlock!!.type)
+
+        parser.append("\nprint(1)\n\n")
+        assertEquals("未闭合的代码块仍是同一个块", 1, parser.stableBlocks.size)
+        assertEquals("```py\nprint(1)", parser.openBlock!!.text)
+
+        assertEquals(1, parser.append("```\n后续"))
+        assertEquals(BlockType.CODE_FENCE, parser.stableBlocks.last().type)
+        assertEquals("后续", parser.openBlock!!.text)
+    }
+
+    @Test
+    fun testLongStreamScansEachLineOnce() {
+        // 约 4k token 的回复，以 3 个字符为单位流式送入
+        val answer = buildString {
+            var i = 0
+            while (length < 16_000) {
+                i++
+                append("## 第${i}节\n")
+                append("这是第${i}节的正文，包含一些**强调**和`代码`。\n")
+                append("- 要点一\n- 要点二\n\n")
+                if (i % 5 == 0) append("```\ncode line $i\n```\n")
+            }
+        }
+        val parser = IncrementalMarkdownParser()
+        var offset = 0
+        while (offset < answer.length) {
+            val end = minOf(answer.length, offset + 3)
+            parser.append(answer, offset, end)
+            offset = end
+        }
+        parser.finish()
+
+        assertEquals("每一行只应被扫描一次", answer.length.toLong(), parser.scannedChars)
+        assertEquals(IncrementalMarkdownParser.parse(answer), parser.blocks)
+    }
+
+    private fun IncrementalMarkdownParser.append(text: String, start: Int, end: Int) =
+        append(text.subSequence(start, end))
+}
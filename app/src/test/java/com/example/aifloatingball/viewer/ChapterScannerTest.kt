@@ -0,0 +1,92 @@
+package com.example.aifloatingball.viewer
+
+import org.junit.Assert.*
+import org.junit.Test
+import java.nio.charset.Charset
+import java.nio.file.Files
+
+/**
+ * 章节扫描测试：识别规则、跨块的行、逐步回调，以及大文件中章节到页码的映射
+ */
+class ChapterScannerTest {
+
+    private fun book(text: String, charset: Charset = Charsets.UTF_8) =
+        MappedTextBook.wrap(text.toByteArray(charset), charset)
+
+    @Test
+    fun testRecognizesVolumesChaptersAndSections() {
+        val text = """
+            |﻿第一卷　风起
+            |　　第一章 少年
+            |正文里提到第二章的内容，但这不是标题。
+            |第二章天下
+            |第一节 入门
+            |Chapter 3: The Road
+            |番外
+            |1. 这是正文中的列表
+            |尾声
+        """.trimMargin()
+
+        val entries = ChapterScanner(chunkChars = 16).scan(book(text))
+
+        assertEquals(
+            listOf("第一卷　风起", "第一章 少年", "第二章天下", "第一节 入门", "Chapter 3: The Road", "番外", "尾声"),
+            entries.map { it.title }
+        )
+        assertEquals(
+            listOf(ChapterScanner.LEVEL_VOLUME, ChapterScanner.LEVEL_CHAPTER, ChapterScanner.LEVEL_CHAPTER,
+                ChapterScanner.LEVEL_SECTION, ChapterScanner.LEVEL_CHAPTER, ChapterScanner.LEVEL_CHAPTER,
+                ChapterScanner.LEVEL_CHAPTER),
+            entries.map { it.level }
+        )
+        entries.forEach { assertTrue(text.startsWith(it.title, it.position)) }
+    }
+
+    @Test
+    fun testNumberedHeadingsMustBeConsecutive() {
+        val text = "1. 开端\n正文\n2、夜雨\n5. 不是标题\n3 远行\n第三行写着 4. 也不是\n"
+
+        val entries = ChapterScanner().scan(book(text, Charset.forName("GBK")))
+
+        assertEquals(listOf("1. 开端", "2、夜雨", "3 远行"), entries.map { it.title })
+    }
+
+    @Test
+    fun testTenMegabyteBookMapsChaptersToPages() {
+        val chapterCount = 3_000
+        val text = buildString {
+            for (i in 1..chapterCount) {
+                append("第${i}章 第${i}个故事\n")
+                while (length < i * 3_500L) append("　　夜色深沉，城头的灯火一盏盏亮起，少年握紧了手中的剑。\n")
+            }
+        }
+        val bytes = text.toByteArray(Charsets.UTF_8)
+        assertTrue(bytes.size > 10 * 1024 * 1024)
+        val dir = Files.createTempDirectory("chapters").toFile()
+        try {
+            val source = dir.resolve("book.txt").apply { writeBytes(bytes) }
+            val book = MappedTextBook.open(source, Charsets.UTF_8)
+
+            val batches = mutableListOf<Int>()
+            val entries = ChapterScanner().scan(book) { batches.add(it.size) }
+            assertEquals(chapterCount, entries.size)
+            assertTrue("应逐块回调", batches.size > 10)
+            assertEquals(chapterCount, batches.sum())
+
+            val index = book.buildPageIndex(1_234)
+            for (entry in entries.filterIndexed { i, _ -> i % 97 == 0 } + entries.last()) {
+                val page = index.pageOfChar(entry.position)
+                val offsetInPage = entry.position - index.startChar(page)
+                val pageText = book.pageText(index, page) + book.pageText(index, page + 1)
+                assertTrue(entry.title, pageText.startsWith(entry.title, offsetInPage))
+            }
+
+            val indexFile = ChapterScanner.indexFile(dir, book)
+            ChapterScanner.save(indexFile, book.byteLength, entries)
+            assertEquals(entries, ChapterScanner.load(indexFile, book.byteLength))
+            assertNull(ChapterScanner.load(indexFile, book.byteLength + 1))
+        } finally {
+            dir.deleteRecursively()
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.example.aifloatingball.viewer
+
+import org.junit.Assert.*
+import org.junit.Test
+import java.io.File
+import java.nio.charset.Charset
+import java.nio.file.Files
+
+/**
+ * 内存映射分页测试：按字节偏移切出的页必须与原来对全文 substring 分页的结果一致
+ */
+class MappedTextBookTest {
+
+    private val text = buildString {
+        for (i in 1..300) {
+            append("第${i}章 风起\n")
+            append("少年推开木门，看见院中那棵老槐树。It was $i o'clock.\n\n")
+        }
+    }
+
+    private fun substringPages(text: String, charsPerPage: Int): List<String> =
+        (text.indices step charsPerPage).map { text.substring(it, minOf(it + charsPerPage, text.length)) }
+
+    @Test
+    fun testPagesMatchSubstringPagination() {
+        for (charset in listOf(Charsets.UTF_8, Charset.forName("GBK"), Charsets.UTF_16LE)) {
+            val book = MappedTextBook.wrap(text.toByteArray(charset), charset)
+            for (charsPerPage in listOf(100, 137, text.length, text.length + 5)) {
+                val index = book.buildPageIndex(charsPerPage)
+                val expected = substringPages(text, charsPerPage)
+
+                assertEquals("${charset.name()} $charsPerPage", expected.size, index.pageCount)
+                expected.forEachIndexed { page, pageText ->
+                    assertEquals(pageText, book.pageText(index, page))
+                    assertEquals(page, index.pageAt(index.startByte(page)))
+                }
+            }
+        }
+    }
+
+    @Test
+    fun testPreviewStartsAtSavedByteOffset() {
+        val book = MappedTextBook.wrap(text.toByteArray(Charsets.UTF_8), Charsets.UTF_8)
+        val index = book.buildPageIndex(200)
+
+        val preview = book.decodeChars(index.startByte(7), 200)
+        assertEquals(book.pageText(index, 7), preview.text)
+        assertEquals(index.endByte(7), preview.endByte)
+        // 章节的字符位置直接对应页码
+        val chapterPosition = text.indexOf("第50章")
+        assertTrue(book.pageText(index, index.pageOfChar(chapterPosition)).isNotEmpty())
+        assertEquals(chapterPosition / 200, index.pageOfChar(chapterPosition))
+    }
+
+    @Test
+    fun testIndexCacheRoundTrip() {
+        val dir = Files.createTempDirectory("reader_index").toFile()
+        try {
+            val source = File(dir, "book.txt").apply { writeText(text, Charsets.UTF_8) }
+            val book = MappedTextBook.open(source, Charsets.UTF_8)
+            val index = book.buildPageIndex(150)
+            val cacheFile = MappedTextBook.indexCacheFile(dir, source.path, Charsets.UTF_8, 150)
+            book.savePageIndex(index, cacheFile)
+
+            val loaded = book.loadPageIndex(cacheFile, 150)!!
+            assertEquals(index.pageCount, loaded.pageCount)
+            for (page in 0 until index.pageCount) assertEquals(index.startByte(page), loaded.startByte(page))
+            assertNull("每页字符数不同时不能使用缓存", book.loadPageIndex(cacheFile, 151))
+
+            // 文件长度变化后缓存失效
+            source.appendText("追加")
+            assertNull(MappedTextBook.open(source, Charsets.UTF_8).loadPageIndex(cacheFile, 150))
+        } finally {
+            dir.deleteRecursively()
+        }
+    }
+
+    @Test
+    fun testSurrogatePairAtPageBoundary() {
+        // 第 10 个字符是 emoji 的高位代理，整个代理对放到下一页
+        val emojiText = "一二三四五六七八九😀十一十二十三十四十五十六十七十八十九二十"
+        val book = MappedTextBook.wrap(emojiText.toByteArray(Charsets.UTF_8), Charsets.UTF_8)
+        val index = book.buildPageIndex(10)
+
+        assertEquals("一二三四五六七八九", book.pageText(index, 0))
+        assertTrue(book.pageText(index, 1).startsWith("😀"))
+        assertEquals(emojiText, (0 until index.pageCount).joinToString("") { book.pageText(index, it) })
+        var charStart = 0
+        for (page in 0 until index.pageCount) {
+            assertEquals(charStart, index.startChar(page))
+            assertEquals(page, index.pageOfChar(charStart))
+            charStart += book.pageText(index, page).length
+        }
+        assertEquals(1, index.pageOfChar(emojiText.indexOf("😀")))
+        assertEquals(index.pageCount - 1, index.pageOfChar(emojiText.length - 1))
+    }
+
+    @Test
+    fun testPageCacheFollowsIndex() {
+        val dir = Files.createTempDirectory("reader_index").toFile()
+        try {
+            val book = MappedTextBook.wrap(text.toByteArray(Charsets.UTF_8), Charsets.UTF_8)
+            val large = book.buildPageIndex(300)
+            val largeFile = MappedTextBook.indexCacheFile(dir, "book", Charsets.UTF_8, 300)
+            book.savePageIndex(large, largeFile)
+            val small = book.buildPageIndex(100)
+
+            // 调整字号：先显示小页，再读取缓存的大页索引，同一页码必须是新分页的内容
+            val oldPage = book.pageText(small, 3)
+            val loaded = book.loadPageIndex(largeFile, 300)!!
+            assertEquals(text.substring(900, 1200), book.pageText(loaded, 3))
+            // 旧索引的预读不会污染新索引
+            assertEquals(oldPage, book.pageText(small, 3))
+            assertEquals(text.substring(900, 1200), book.pageText(loaded, 3))
+        } finally {
+            dir.deleteRecursively()
+        }
+    }
+
+    @Test
+    fun testCorruptIndexIsRejected() {
+        val dir = Files.createTempDirectory("reader_index").toFile()
+        try {
+            val book = MappedTextBook.wrap(text.toByteArray(Charsets.UTF_8), Charsets.UTF_8)
+            val file = MappedTextBook.indexCacheFile(dir, "book", Charsets.UTF_8, 150)
+            book.savePageIndex(book.buildPageIndex(150), file)
+            val bytes = file.readBytes()
+
+            // 偏移数被改成极大的值
+            file.writeBytes(bytes.copyOf().also { it[16] = 0x7f })
+            assertNull(book.loadPageIndex(file, 150))
+
+            // 文件被截断
+            file.writeBytes(bytes.copyOf(bytes.size - 6))
+            assertNull(book.loadPageIndex(file, 150))
+
+            // 偏移不再递增
+            file.writeBytes(bytes.copyOf().also { it[27] = 0x7f; it[26] = 0x7f })
+            assertNull(book.loadPageIndex(file, 150))
+
+            file.writeBytes(bytes)
+            assertNotNull(book.loadPageIndex(file, 150))
+        } finally {
+            dir.deleteRecursively()
+        }
+    }
+}
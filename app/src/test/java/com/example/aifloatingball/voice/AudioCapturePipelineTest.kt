@@ -0,0 +1,217 @@
+package com.example.aifloatingball.voice
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Ignore
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+import java.lang.management.ManagementFactory
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.Random
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.locks.LockSupport
+import kotlin.math.PI
+import kotlin.math.sin
+
+/**
+ * 录音/解码双线程管线测试
+ *
+ * 静音过滤节省解码线程 CPU 的对比受机器负载影响，放在默认跳过的基准里。
+ */
+class AudioCapturePipelineTest {
+
+    companion object {
+        private const val DECODE_WORK_PER_SAMPLE = 2000
+    }
+
+    private val sampleRate = 16000
+    private var sink = 0L
+
+    @Test
+    fun ringBufferWrapsAndCountsOverflowAndUnderrun() {
+        val ring = AudioRingBuffer(8)
+        val out = ByteArray(8)
+
+        assertEquals(0, ring.read(out, 0, 8))
+        assertEquals(6, ring.write(byteArrayOf(1, 2, 3, 4, 5, 6), 0, 6))
+        assertEquals(4, ring.read(out, 0, 4))
+        // 写入跨过数组末尾，放不下的 2 字节被丢弃
+        assertEquals(6, ring.write(byteArrayOf(7, 8, 9, 10, 11, 12, 13, 14), 0, 8))
+        assertEquals(8, ring.read(out, 0, 8))
+
+        assertEquals(listOf<Byte>(5, 6, 7, 8, 9, 10, 11, 12), out.toList())
+        assertEquals(2L, ring.overflowBytes())
+        assertEquals(1L, ring.overflowCount())
+        assertEquals(1L, ring.underrunCount())
+    }
+
+    @Test
+    fun silenceIsGatedAndSpeechIsDecodedInBatches() {
+        // 1 秒静音、2 秒语音、2 秒静音
+        val wav = wavFixture(listOf(1000 to false, 2000 to true, 2000 to false))
+        val pcm = pcmFromWav(wav)
+
+        // 缓冲区装得下整段音频，解码快慢都不会溢出
+        val gated = run(pcm, VoiceActivityDetector(), bufferMillis = 6000)
+        val ungated = run(pcm, null, bufferMillis = 6000)
+
+        assertEquals(pcm.size.toLong(), gated.stats.capturedBytes)
+        assertEquals(0L, gated.stats.overflowBytes)
+        assertEquals(pcm.size.toLong(), gated.stats.decodedBytes + gated.stats.skippedBytes)
+        assertEquals(pcm.size.toLong(), ungated.stats.decodedBytes)
+
+        // 语音（2 秒）加前导和拖尾，最多不超过 3 秒
+        val decodedMs = gated.stats.decodedBytes / (sampleRate * 2 / 1000)
+        assertTrue("识别了 ${decodedMs}ms", decodedMs in 2000..3000)
+        // 静音期间不调用识别器
+        assertTrue(gated.stats.batches <= gated.stats.decodedBytes / VoiceActivityDetector().frameBytes)
+        assertEquals(gated.stats.decodedBytes, gated.decoded.size.toLong())
+        // 语音段原样、连续地送去识别
+        val speech = pcm.copyOfRange(sampleRate * 2, sampleRate * 2 * 3)
+        assertTrue(containsRange(gated.decoded, speech))
+    }
+
+    @Test
+    fun slowDecoderDoesNotBlockCapture() {
+        val pcm = pcmFromWav(wavFixture(listOf(3000 to true)))
+        // 200ms 的缓冲区，解码线程卡住直到音频读完，录音线程照常读取，多出的数据计入溢出
+        val captured = CountDownLatch(1)
+        val result = run(pcm, null, bufferMillis = 200, paceMicrosPerChunk = 0, onSourceEnd = { captured.countDown() }) {
+            captured.await()
+        }
+
+        assertEquals(pcm.size.toLong(), result.stats.capturedBytes)
+        assertTrue(result.stats.overflowBytes > 0)
+        assertEquals(pcm.size.toLong(), result.stats.decodedBytes + result.stats.overflowBytes)
+        // 积压时一次取出多帧
+        assertTrue(result.stats.batches * 2 < result.stats.decodedBytes / VoiceActivityDetector().frameBytes)
+    }
+
+    @Ignore("性能基准，需要时手动运行")
+    @Test
+    fun benchmarkSilenceGatingSavesDecoderCpu() {
+        val pcm = pcmFromWav(wavFixture(listOf(1000 to false, 2000 to true, 2000 to false)))
+
+        // 先跑一遍预热 JIT，避免先测的一方吃亏
+        run(pcm, VoiceActivityDetector(), decodeWorkPerSample = DECODE_WORK_PER_SAMPLE)
+        val gated = run(pcm, VoiceActivityDetector(), decodeWorkPerSample = DECODE_WORK_PER_SAMPLE)
+        val ungated = run(pcm, null, decodeWorkPerSample = DECODE_WORK_PER_SAMPLE)
+
+        val audioSeconds = pcm.size / (sampleRate * 2.0)
+        val gatedCpuMsPerSecond = gated.decoderCpuNanos / 1e6 / audioSeconds
+        val ungatedCpuMsPerSecond = ungated.decoderCpuNanos / 1e6 / audioSeconds
+        // 静音检测本身的开销远小于省下的识别开销
+        assertTrue(
+            "过滤静音 ${gatedCpuMsPerSecond}ms/s，不过滤 ${ungatedCpuMsPerSecond}ms/s",
+            gatedCpuMsPerSecond < ungatedCpuMsPerSecond * 0.8
+        )
+    }
+
+    private class Result(val stats: AudioCapturePipeline.Stats, val decoderCpuNanos: Long, val decoded: ByteArray)
+
+    private fun run(
+        pcm: ByteArray,
+        vad: VoiceActivityDetector?,
+        bufferMillis: Int = 2000,
+        paceMicrosPerChunk: Long = 1000,
+        decodeWorkPerSample: Int = 0,
+        onSourceEnd: () -> Unit = {},
+        work: () -> Unit = {}
+    ): Result {
+        var position = 0
+        // 按 20 倍速模拟实时录音：每次读取 20ms 的数据后等待 1ms
+        val source = AudioCapturePipeline.AudioSource { buffer, offset, length ->
+            if (position >= pcm.size) {
+                onSourceEnd()
+                return@AudioSource -1
+            }
+            if (paceMicrosPerChunk > 0) LockSupport.parkNanos(paceMicrosPerChunk * 1000)
+            val count = minOf(length, pcm.size - position)
+            System.arraycopy(pcm, position, buffer, offset, count)
+            position += count
+            count
+        }
+        val decoded = ByteArrayOutputStream()
+        val threads = ManagementFactory.getThreadMXBean()
+        var cpuNanos = 0L
+        val pipeline = AudioCapturePipeline(
+            source = source,
+            decoder = { data, length ->
+                // 模拟识别器：每个采样做固定量的计算，耗时与送入的数据量成正比
+                var acc = 0L
+                for (i in 0 until length step 2) {
+                    var x = data[i].toLong() + 1
+                    for (k in 0 until decodeWorkPerSample) x = x * 31 + k
+                    acc += x
+                }
+                sink += acc
+                decoded.write(data, 0, length)
+                work()
+            },
+            vad = vad,
+            bufferMillis = bufferMillis,
+            onEnd = { cpuNanos = threads.currentThreadCpuTime }
+        )
+        pipeline.start()
+        assertTrue(pipeline.awaitEnd(30_000))
+        return Result(pipeline.stats(), cpuNanos, decoded.toByteArray())
+    }
+
+    private fun containsRange(data: ByteArray, range: ByteArray): Boolean {
+        val head = range.copyOfRange(0, 64)
+        for (start in 0..data.size - range.size) {
+            if (data.copyOfRange(start, start + head.size).contentEquals(head)) {
+                return data.copyOfRange(start, start + range.size).contentEquals(range)
+            }
+        }
+        return false
+    }
+
+    /**
+     * 生成 16kHz 16 位单声道 WAV：语音段为带包络的谐波加噪声，静音段只有微弱噪声
+     */
+    private fun wavFixture(segments: List<Pair<Int, Boolean>>): ByteArray {
+        val random = Random(42)
+        val samples = ArrayList<Short>()
+        for ((millis, speech) in segments) {
+            val count = sampleRate * millis / 1000
+            for (i in 0 until count) {
+                val t = i.toDouble() / sampleRate
+                val noise = random.nextGaussian() * 30
+                val value = if (speech) {
+                    val envelope = 0.6 + 0.4 * sin(2 * PI * 4 * t)
+                    val voice = sin(2 * PI * 180 * t) + 0.5 * sin(2 * PI * 360 * t) + 0.3 * sin(2 * PI * 900 * t)
+                    voice * envelope * 4000 + noise
+                } else {
+                    noise
+                }
+                samples.add(value.toInt().coerceIn(Short.MIN_VALUE.toInt(), Short.MAX_VALUE.toInt()).toShort())
+            }
+        }
+        val dataBytes = samples.size * 2
+        val buffer = ByteBuffer.allocate(44 + dataBytes).order(ByteOrder.LITTLE_ENDIAN)
+        buffer.put("RIFF".toByteArray()).putInt(36 + dataBytes).put("WAVE".toByteArray())
+        buffer.put("fmt ".toByteArray()).putInt(16).putShort(1).putShort(1)
+            .putInt(sampleRate).putInt(sampleRate * 2).putShort(2).putShort(16)
+        buffer.put("data".toByteArray()).putInt(dataBytes)
+        samples.forEach { buffer.putShort(it) }
+        return buffer.array()
+    }
+
+    /**
+     * 取出 WAV 中 data 块的 PCM 数据
+     */
+    private fun pcmFromWav(wav: ByteArray): ByteArray {
+        val buffer = ByteBuffer.wrap(wav).order(ByteOrder.LITTLE_ENDIAN)
+        buffer.position(12)
+        while (buffer.remaining() >= 8) {
+            val id = String(wav, buffer.position(), 4)
+            buffer.position(buffer.position() + 4)
+            val size = buffer.int
+            if (id == "data") return wav.copyOfRange(buffer.position(), buffer.position() + size)
+            buffer.position(buffer.position() + size)
+        }
+        throw IllegalArgumentException("没有 data 块")
+    }
+}
@@ -0,0 +1,222 @@
+package com.example.aifloatingball.voice
+
+import kotlinx.coroutines.runBlocking
+import okhttp3.OkHttpClient
+import okhttp3.mockwebserver.Dispatcher
+import okhttp3.mockwebserver.MockResponse
+import okhttp3.mockwebserver.MockWebServer
+import okhttp3.mockwebserver.RecordedRequest
+import okhttp3.mockwebserver.SocketPolicy
+import okio.Buffer
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.nio.file.Files
+import java.security.MessageDigest
+import java.util.Random
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.zip.ZipEntry
+import java.util.zip.ZipOutputStream
+
+/**
+ * 模型下载器测试：本地 MockWebServer 按 Range 返回分段，并按设定在响应体中途断开连接
+ */
+class ModelDownloaderTest {
+
+    private lateinit var server: MockWebServer
+    private lateinit var workDir: File
+    private lateinit var files: Map<String, ByteArray>
+    private lateinit var zip: ByteArray
+    private lateinit var sha256: String
+    private lateinit var dispatcher: ZipDispatcher
+
+    private val client = OkHttpClient.Builder()
+        .readTimeout(5, TimeUnit.SECONDS)
+        .build()
+
+    private val downloader = ModelDownloader(
+        client = client,
+        segmentSize = SEGMENT_SIZE,
+        parallelism = 4,
+        retryDelayMs = 10,
+        progressIntervalMs = 20
+    )
+
+    companion object {
+        private const val SEGMENT_SIZE = 128L * 1024
+        private const val PREFIX = "vosk-model-test/"
+        private const val ETAG = "\"model-v1\""
+    }
+
+    /**
+     * 模拟模型服务器
+     *
+     * @param dropEvery 每隔多少个请求在响应体中途断开一次，0 表示不断开
+     * @param failAfter 超过这个请求数后一律返回 404
+     */
+    private inner class ZipDispatcher(
+        var supportsRanges: Boolean = true,
+        var dropEvery: Int = 0,
+        var failAfter: Int = Int.MAX_VALUE
+    ) : Dispatcher() {
+        val requests = AtomicInteger()
+        val drops = AtomicInteger()
+        val rangeBytes = AtomicInteger()
+
+        override fun dispatch(request: RecordedRequest): MockResponse {
+            val count = requests.incrementAndGet()
+            if (count > failAfter) return MockResponse().setResponseCode(404)
+
+            val range = request.getHeader("Range")
+            val response = if (range == null || !supportsRanges) {
+                MockResponse().setBody(Buffer().write(zip))
+            } else {
+                val (start, end) = range.removePrefix("bytes=").split("-").map { it.toInt() }
+                val last = minOf(end, zip.size - 1)
+                rangeBytes.addAndGet(last - start + 1)
+                MockResponse()
+                    .setResponseCode(206)
+                    .setHeader("Content-Range", "bytes $start-$last/${zip.size}")
+                    .setBody(Buffer().write(zip, start, last - start + 1))
+            }
+            response.setHeader("ETag", ETAG)
+            if (dropEvery > 0 && count % dropEvery == 0 && response.getBody()!!.size > 1) {
+                drops.incrementAndGet()
+                response.setSocketPolicy(SocketPolicy.DISCONNECT_DURING_RESPONSE_BODY)
+            }
+            return response
+        }
+    }
+
+    @Before
+    fun setUp() {
+        val random = Random(42)
+        val entries = LinkedHashMap<String, ByteArray>()
+        entries["conf/mfcc.conf"] = "--sample-frequency=16000\n".toByteArray()
+        entries["graph/words.txt"] = (0 until 2000).joinToString("\n") { "词$it $it" }.toByteArray()
+        for (i in 0 until 6) {
+            // 随机数据几乎不可压缩，ZIP 大小接近原始大小，能覆盖多个分段
+            entries["am/part$i.bin"] = ByteArray(90_000 + random.nextInt(40_000)).also { random.nextBytes(it) }
+        }
+        files = entries
+
+        val output = ByteArrayOutputStream()
+        ZipOutputStream(output).use { stream ->
+            stream.putNextEntry(ZipEntry(PREFIX))
+            stream.closeEntry()
+            entries.forEach { (name, data) ->
+                stream.putNextEntry(ZipEntry(PREFIX + name))
+                stream.write(data)
+                stream.closeEntry()
+            }
+        }
+        zip = output.toByteArray()
+        sha256 = MessageDigest.getInstance("SHA-256").digest(zip).joinToString("") { "%02x".format(it) }
+
+        dispatcher = ZipDispatcher()
+        server = MockWebServer()
+        server.dispatcher = dispatcher
+        server.start()
+        workDir = Files.createTempDirectory("model-download").toFile()
+    }
+
+    @After
+    fun tearDown() {
+        server.shutdown()
+        workDir.deleteRecursively()
+    }
+
+    private val url get() = server.url("/models/test.zip").toString()
+    private val zipFile get() = File(workDir, "cache/test_temp.zip")
+    private val journalFile get() = File(zipFile.path + ModelDownloader.JOURNAL_SUFFIX)
+    private val targetDir get() = File(workDir, "models/test")
+
+    private fun assertExtracted() {
+        files.forEach { (name, data) ->
+            assertArrayEquals("内容不一致: $name", data, File(targetDir, name).readBytes())
+        }
+    }
+
+    @Test
+    fun testSegmentedDownloadSurvivesMidStreamDisconnects() {
+        dispatcher.dropEvery = 3
+        val updates = mutableListOf<ModelDownloader.Progress>()
+
+        val result = runBlocking {
+            downloader.download(url, zipFile, targetDir, PREFIX, sha256) { synchronized(updates) { updates.add(it) } }
+        }
+
+        assertTrue("应该发生过断开", dispatcher.drops.get() > 0)
+        assertExtracted()
+        assertEquals(sha256, result.sha256)
+        assertEquals(zip.size.toLong(), result.zipBytes)
+        assertEquals(files.size, result.extractedFiles)
+        // 断开后从断点续传，只多读了被中断请求已传输的那部分
+        assertTrue(result.networkBytes < zip.size * 2L)
+        assertFalse(zipFile.exists())
+        assertFalse(journalFile.exists())
+        assertEquals(zip.size.toLong(), updates.last().downloadedBytes)
+    }
+
+    @Test
+    fun testResumesFromJournalAfterAbort() {
+        File(targetDir, "old.txt").apply { parentFile!!.mkdirs(); writeText("旧模型") }
+        // 探测加上并行的前四个分段成功，之后服务器开始报错
+        dispatcher.failAfter = 5
+
+        try {
+            runBlocking { downloader.download(url, zipFile, targetDir, PREFIX, sha256) }
+            fail("服务器报错时应该失败")
+        } catch (e: ModelDownloader.HttpStatusException) {
+            assertEquals(404, e.code)
+        }
+        assertTrue("失败后应保留进度日志", journalFile.exists())
+        assertTrue("失败时不应改动原有目录", File(targetDir, "old.txt").exists())
+
+        dispatcher.failAfter = Int.MAX_VALUE
+        dispatcher.rangeBytes.set(0)
+        val result = runBlocking { downloader.download(url, zipFile, targetDir, PREFIX, sha256) }
+
+        assertTrue("应从上次的进度继续", result.resumedBytes > 0)
+        assertTrue(dispatcher.rangeBytes.get() < zip.size)
+        assertEquals(zip.size.toLong(), result.resumedBytes + result.networkBytes)
+        assertExtracted()
+        assertFalse(File(targetDir, "old.txt").exists())
+    }
+
+    @Test
+    fun testChecksumMismatchKeepsExistingModel() {
+        File(targetDir, "old.txt").apply { parentFile!!.mkdirs(); writeText("旧模型") }
+
+        try {
+            runBlocking { downloader.download(url, zipFile, targetDir, PREFIX, "0".repeat(64)) }
+            fail("摘要不一致时应该失败")
+        } catch (e: ModelDownloader.ChecksumMismatchException) {
+            assertEquals(sha256, e.actual)
+        }
+
+        assertEquals("旧模型", File(targetDir, "old.txt").readText())
+        assertFalse(File(targetDir, "conf/mfcc.conf").exists())
+        // 内容有误时不保留续传数据
+        assertFalse(zipFile.exists())
+        assertFalse(journalFile.exists())
+    }
+
+    @Test
+    fun testSequentialFallbackWithoutRangeSupport() {
+        dispatcher.supportsRanges = false
+        dispatcher.dropEvery = 2
+
+        val result = runBlocking { downloader.download(url, zipFile, targetDir, PREFIX, sha256) }
+
+        assertTrue(dispatcher.drops.get() > 0)
+        assertEquals(0L, result.resumedBytes)
+        assertEquals(sha256, result.sha256)
+        assertExtracted()
+        assertFalse(journalFile.exists())
+    }
+}